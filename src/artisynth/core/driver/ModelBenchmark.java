@@ -0,0 +1,456 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.driver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import artisynth.core.mechmodels.SolverPhaseTimer;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
+import artisynth.core.modelbase.ComponentUtils;
+import artisynth.core.modelbase.ModelComponentBase;
+import artisynth.core.util.TimeBase;
+import artisynth.core.workspace.RootModel;
+import maspack.util.ClassAliases;
+import maspack.util.NumberFormat;
+
+/**
+ * Measures whole-simulation throughput for a set of models, by building each
+ * model without a GUI and advancing it for a fixed number of steps without
+ * rendering. For each model, the total and per-step times are reported,
+ * along with the time spent in each of the solver phases described by
+ * {@link SolverPhaseTimer.Phase}. Results can be written in CSV or JSON
+ * format.
+ *
+ * <p>This can be run from the command line using
+ * <pre>
+ * java artisynth.core.driver.ModelBenchmark [options] [modelClass ...]
+ * </pre>
+ * If no model classes are given, a default set of demo models is used.
+ */
+public class ModelBenchmark {
+
+   /**
+    * Default set of models used for benchmarking.
+    */
+   public static final String[] DEFAULT_MODELS = new String[] {
+      "artisynth.demos.fem.FemMuscleDemo",
+      "artisynth.demos.fem.SelfCollision",
+      "artisynth.demos.fem.BigBeam3d",
+      "artisynth.demos.fem.ArticulatedFem",
+      "artisynth.demos.inverse.PointModel2d",
+      "artisynth.demos.inverse.HydrostatInvDemo",
+   };
+
+   private int myNumSteps = 100;
+   private int myNumWarmupSteps = 10;
+
+   /**
+    * Timing results for a single model.
+    */
+   public static class Result {
+      String myModelName;
+      int myNumSteps;
+      double myStepSize;
+      double myTotalMsec;
+      double[] myPhaseMsec = new double[Phase.values().length];
+      int[] myPhaseCounts = new int[Phase.values().length];
+      String myError;
+
+      Result (String modelName) {
+         myModelName = modelName;
+      }
+
+      /**
+       * Returns the name of the model class.
+       *
+       * @return model class name
+       */
+      public String getModelName() {
+         return myModelName;
+      }
+
+      /**
+       * Returns the number of timed steps.
+       *
+       * @return number of timed steps
+       */
+      public int getNumSteps() {
+         return myNumSteps;
+      }
+
+      /**
+       * Returns the step size used to advance the model.
+       *
+       * @return step size
+       */
+      public double getStepSize() {
+         return myStepSize;
+      }
+
+      /**
+       * Returns the total time for the timed steps, in milliseconds.
+       *
+       * @return total time
+       */
+      public double getTotalMsec() {
+         return myTotalMsec;
+      }
+
+      /**
+       * Returns the total time spent in a specific solver phase, in
+       * milliseconds.
+       *
+       * @param phase solver phase
+       * @return total time for the phase
+       */
+      public double getPhaseMsec (Phase phase) {
+         return myPhaseMsec[phase.ordinal()];
+      }
+
+      /**
+       * Returns the number of times a specific solver phase was executed.
+       *
+       * @param phase solver phase
+       * @return number of executions of the phase
+       */
+      public int getPhaseCount (Phase phase) {
+         return myPhaseCounts[phase.ordinal()];
+      }
+
+      /**
+       * Returns an error message if the model could not be built or
+       * advanced, or <code>null</code> otherwise.
+       *
+       * @return error message, if any
+       */
+      public String getError() {
+         return myError;
+      }
+   }
+
+   /**
+    * Sets the number of steps for which each model is timed. The default
+    * value is 100.
+    *
+    * @param num number of timed steps
+    */
+   public void setNumSteps (int num) {
+      myNumSteps = num;
+   }
+
+   /**
+    * Returns the number of steps for which each model is timed.
+    *
+    * @return number of timed steps
+    */
+   public int getNumSteps() {
+      return myNumSteps;
+   }
+
+   /**
+    * Sets the number of untimed steps that are run before timing begins, to
+    * allow the runtime compiler to optimize the code. The default value is
+    * 10.
+    *
+    * @param num number of warmup steps
+    */
+   public void setNumWarmupSteps (int num) {
+      myNumWarmupSteps = num;
+   }
+
+   /**
+    * Returns the number of untimed steps run before timing begins.
+    *
+    * @return number of warmup steps
+    */
+   public int getNumWarmupSteps() {
+      return myNumWarmupSteps;
+   }
+
+   /**
+    * Creates and builds a root model, in the same way as done by {@link
+    * Main}, but without a viewer.
+    */
+   protected RootModel createRootModel (String className, String[] args)
+      throws Exception {
+      ModelComponentBase.enforceUniqueNames = true;
+      Class<?> cls = ClassAliases.resolveClass (className);
+      if (cls == null) {
+         throw new IllegalArgumentException (
+            "class "+className+" not found");
+      }
+      RootModel root = (RootModel)cls.getConstructor().newInstance();
+      root.setName (cls.getSimpleName());
+      root.build (args);
+      ComponentUtils.checkReferenceContainment (root, root);
+      return root;
+   }
+
+   /**
+    * Advances a root model by a number of steps, starting at time t.
+    *
+    * @return time after the last step
+    */
+   private double advance (RootModel root, double t, double h, int nsteps) {
+      for (int i=0; i<nsteps; i++) {
+         double t1 = TimeBase.round (t+h);
+         root.advance (t, t1, 0);
+         t = t1;
+      }
+      return t;
+   }
+
+   /**
+    * Builds and times a single model.
+    *
+    * @param className name of the model class
+    * @param args arguments to pass to the model's build method
+    * @return timing result
+    */
+   public Result run (String className, String[] args) {
+      Result result = new Result (className);
+      boolean wasEnabled = SolverPhaseTimer.isEnabled();
+      try {
+         RootModel root = createRootModel (className, args);
+         double h = root.getMaxStepSize();
+         result.myStepSize = h;
+         root.initialize (0);
+         double t = advance (root, 0, h, myNumWarmupSteps);
+
+         SolverPhaseTimer.reset();
+         SolverPhaseTimer.setEnabled (true);
+         long t0 = System.nanoTime();
+         advance (root, t, h, myNumSteps);
+         result.myTotalMsec = (System.nanoTime()-t0)/1e6;
+         SolverPhaseTimer.setEnabled (wasEnabled);
+
+         result.myNumSteps = myNumSteps;
+         for (Phase phase : Phase.values()) {
+            int idx = phase.ordinal();
+            result.myPhaseMsec[idx] = SolverPhaseTimer.getTimeNsec (phase)/1e6;
+            result.myPhaseCounts[idx] = SolverPhaseTimer.getCount (phase);
+         }
+         root.dispose();
+      }
+      catch (Throwable e) {
+         SolverPhaseTimer.setEnabled (wasEnabled);
+         result.myError = e.toString();
+      }
+      return result;
+   }
+
+   /**
+    * Builds and times a list of models.
+    *
+    * @param classNames names of the model classes
+    * @return timing results
+    */
+   public ArrayList<Result> run (List<String> classNames) {
+      ArrayList<Result> results = new ArrayList<Result>();
+      for (String name : classNames) {
+         Result res = run (name, new String[0]);
+         if (res.myError != null) {
+            System.out.println (name + ": FAILED: " + res.myError);
+         }
+         else {
+            System.out.println (
+               name + ": " + new NumberFormat("%.3f").format (
+                  res.myTotalMsec/res.myNumSteps) + " msec/step");
+         }
+         results.add (res);
+      }
+      return results;
+   }
+
+   /**
+    * Writes a list of results in CSV format, with one line per model.
+    *
+    * @param pw writer to write the results to
+    * @param results results to write
+    */
+   public static void writeCsv (PrintWriter pw, List<Result> results) {
+      NumberFormat fmt = new NumberFormat ("%.6g");
+      StringBuilder sb = new StringBuilder();
+      sb.append ("model,steps,stepSize,totalMsec,msecPerStep");
+      for (Phase phase : Phase.values()) {
+         sb.append (","+phase+"Msec,"+phase+"Count");
+      }
+      sb.append (",error");
+      pw.println (sb);
+      for (Result res : results) {
+         sb.setLength (0);
+         sb.append (res.myModelName);
+         sb.append (","+res.myNumSteps);
+         sb.append (","+fmt.format (res.myStepSize));
+         sb.append (","+fmt.format (res.myTotalMsec));
+         sb.append (
+            ","+fmt.format (res.myNumSteps > 0 ?
+                            res.myTotalMsec/res.myNumSteps : 0));
+         for (Phase phase : Phase.values()) {
+            sb.append (","+fmt.format (res.getPhaseMsec (phase)));
+            sb.append (","+res.getPhaseCount (phase));
+         }
+         sb.append (",");
+         if (res.myError != null) {
+            sb.append ("\"" + res.myError.replace ("\"", "\"\"") + "\"");
+         }
+         pw.println (sb);
+      }
+   }
+
+   private static String jsonString (String str) {
+      StringBuilder sb = new StringBuilder();
+      sb.append ('"');
+      for (int i=0; i<str.length(); i++) {
+         char c = str.charAt(i);
+         if (c == '"' || c == '\\') {
+            sb.append ('\\');
+            sb.append (c);
+         }
+         else if (c < 0x20) {
+            sb.append (String.format ("\\u%04x", (int)c));
+         }
+         else {
+            sb.append (c);
+         }
+      }
+      sb.append ('"');
+      return sb.toString();
+   }
+
+   /**
+    * Writes a list of results in JSON format, as an array containing one
+    * object per model.
+    *
+    * @param pw writer to write the results to
+    * @param results results to write
+    */
+   public static void writeJson (PrintWriter pw, List<Result> results) {
+      NumberFormat fmt = new NumberFormat ("%.6g");
+      pw.println ("[");
+      for (int i=0; i<results.size(); i++) {
+         Result res = results.get(i);
+         pw.println ("  {");
+         pw.println ("    \"model\": " + jsonString (res.myModelName) + ",");
+         if (res.myError != null) {
+            pw.println ("    \"error\": " + jsonString (res.myError));
+         }
+         else {
+            pw.println ("    \"steps\": " + res.myNumSteps + ",");
+            pw.println ("    \"stepSize\": " + fmt.format (res.myStepSize) + ",");
+            pw.println ("    \"totalMsec\": " + fmt.format (res.myTotalMsec) + ",");
+            pw.println (
+               "    \"msecPerStep\": " +
+               fmt.format (res.myTotalMsec/res.myNumSteps) + ",");
+            pw.println ("    \"phases\": {");
+            Phase[] phases = Phase.values();
+            for (int k=0; k<phases.length; k++) {
+               pw.println (
+                  "      \"" + phases[k] + "\": { \"msec\": " +
+                  fmt.format (res.getPhaseMsec (phases[k])) +
+                  ", \"count\": " + res.getPhaseCount (phases[k]) + " }" +
+                  (k < phases.length-1 ? "," : ""));
+            }
+            pw.println ("    }");
+         }
+         pw.println ("  }" + (i < results.size()-1 ? "," : ""));
+      }
+      pw.println ("]");
+   }
+
+   private static void printUsageAndExit() {
+      System.out.println (
+"Usage: java artisynth.core.driver.ModelBenchmark [options] [modelClass ...]\n"+
+"Options:\n" +
+"  -steps <n>         number of timed steps (default 100)\n" +
+"  -warmup <n>        number of untimed warmup steps (default 10)\n" +
+"  -out <file>        write the results to <file>\n" +
+"  -format csv|json   format of the results file (default csv)\n" +
+"If no model classes are given, a default set of demo models is used.");
+      System.exit (1);
+   }
+
+   public static void main (String[] args) {
+      ModelBenchmark bench = new ModelBenchmark();
+      ArrayList<String> models = new ArrayList<String>();
+      File outFile = null;
+      String format = "csv";
+
+      try {
+         for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith ("-")) {
+               if (i == args.length-1) {
+                  printUsageAndExit();
+               }
+               if (arg.equals ("-steps")) {
+                  bench.setNumSteps (Integer.parseInt (args[++i]));
+               }
+               else if (arg.equals ("-warmup")) {
+                  bench.setNumWarmupSteps (Integer.parseInt (args[++i]));
+               }
+               else if (arg.equals ("-out")) {
+                  outFile = new File (args[++i]);
+               }
+               else if (arg.equals ("-format")) {
+                  format = args[++i];
+                  if (!format.equals ("csv") && !format.equals ("json")) {
+                     printUsageAndExit();
+                  }
+               }
+               else {
+                  printUsageAndExit();
+               }
+            }
+            else {
+               models.add (arg);
+            }
+         }
+      }
+      catch (NumberFormatException e) {
+         printUsageAndExit();
+      }
+      if (models.size() == 0) {
+         for (String name : DEFAULT_MODELS) {
+            models.add (name);
+         }
+      }
+      ArrayList<Result> results = bench.run (models);
+      PrintWriter pw;
+      try {
+         if (outFile != null) {
+            pw = new PrintWriter (
+               new BufferedWriter (new FileWriter (outFile)));
+         }
+         else {
+            pw = new PrintWriter (System.out);
+         }
+         if (format.equals ("json")) {
+            writeJson (pw, results);
+         }
+         else {
+            writeCsv (pw, results);
+         }
+         pw.flush();
+         if (outFile != null) {
+            pw.close();
+         }
+      }
+      catch (IOException e) {
+         System.out.println ("Error writing results: " + e.getMessage());
+         System.exit (1);
+      }
+      // some models may leave non-daemon threads running
+      System.exit (0);
+   }
+}
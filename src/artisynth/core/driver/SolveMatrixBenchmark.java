@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.driver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import artisynth.core.mechmodels.MechSystemBase;
+import artisynth.core.modelbase.Model;
+import artisynth.core.util.TimeBase;
+import artisynth.core.workspace.RootModel;
+import maspack.benchmark.Benchmark;
+import maspack.benchmark.BenchmarkResult;
+import maspack.benchmark.BenchmarkRunner;
+import maspack.concurrency.WorkerPool;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.SparseNumberedBlockMatrix;
+import maspack.matrix.VectorNd;
+
+/**
+ * Benchmarks sparse matrix-vector products on the solve and constraint
+ * matrices produced by actual models. Each model is built without a viewer
+ * and advanced for a number of steps, after which its solve matrix (created
+ * by {@link MechSystemBase#buildSolveMatrix} and filled using {@link
+ * MechSystemBase#addPosJacobian}), and bilateral and unilateral constraint
+ * matrices, are extracted. Products with these matrices are then timed using
+ * {@link BenchmarkRunner}, with the benchmark size giving the number of
+ * threads set by {@link SparseBlockMatrix#setNumMulThreads}.
+ */
+public class SolveMatrixBenchmark {
+
+   /**
+    * Default set of models used for benchmarking.
+    */
+   public static final String[] DEFAULT_MODELS = new String[] {
+      "artisynth.demos.fem.FemMuscleDemo",
+      "artisynth.demos.fem.BigBeam3d",
+      "artisynth.demos.fem.SelfCollision",
+   };
+
+   private static abstract class MulBenchmark extends Benchmark {
+      SparseBlockMatrix myM;
+      VectorNd myIn;
+      VectorNd myOut;
+      int myNumThreadsSave;
+
+      MulBenchmark (String name, SparseBlockMatrix M, int... nthreads) {
+         super (name, nthreads);
+         myM = M;
+      }
+
+      public void setup (int nthreads) {
+         myNumThreadsSave = SparseBlockMatrix.getNumMulThreads();
+         SparseBlockMatrix.setNumMulThreads (nthreads);
+      }
+
+      public void teardown() {
+         SparseBlockMatrix.setNumMulThreads (myNumThreadsSave);
+      }
+   }
+
+   private static void addMulBenchmarks (
+      ArrayList<Benchmark> list, String name,
+      SparseBlockMatrix M, int... nthreads) {
+
+      if (M.numBlocks() == 0) {
+         return;
+      }
+      list.add (new MulBenchmark (name+".mul", M, nthreads) {
+         public void setup (int nthreads) {
+            super.setup (nthreads);
+            myIn = new VectorNd (myM.colSize());
+            myOut = new VectorNd (myM.rowSize());
+            myIn.setRandom();
+         }
+         public double run() {
+            myM.mul (myOut, myIn);
+            return myOut.get(0);
+         }
+      });
+      list.add (new MulBenchmark (name+".mulTranspose", M, nthreads) {
+         public void setup (int nthreads) {
+            super.setup (nthreads);
+            myIn = new VectorNd (myM.rowSize());
+            myOut = new VectorNd (myM.colSize());
+            myIn.setRandom();
+         }
+         public double run() {
+            myM.mulTranspose (myOut, myIn);
+            return myOut.get(0);
+         }
+      });
+   }
+
+   /**
+    * Builds a model, advances it, and creates benchmarks for its solve and
+    * constraint matrices.
+    *
+    * @param list list to which the benchmarks should be added
+    * @param className name of the model class
+    * @param nsteps number of steps to advance the model before extracting
+    * the matrices
+    * @param nthreads thread numbers to benchmark
+    */
+   public static void addModelBenchmarks (
+      ArrayList<Benchmark> list, String className, int nsteps,
+      int... nthreads) throws Exception {
+
+      RootModel root =
+         new ModelBenchmark().createRootModel (className, new String[0]);
+      MechSystemBase mech = null;
+      for (Model model : root.models()) {
+         if (model instanceof MechSystemBase) {
+            mech = (MechSystemBase)model;
+            break;
+         }
+      }
+      if (mech == null) {
+         throw new IllegalArgumentException (
+            "model "+className+" contains no MechSystemBase");
+      }
+      double h = root.getMaxStepSize();
+      root.initialize (0);
+      double t = 0;
+      for (int i=0; i<nsteps; i++) {
+         double t1 = TimeBase.round (t+h);
+         root.advance (t, t1, 0);
+         t = t1;
+      }
+      SparseNumberedBlockMatrix S = new SparseNumberedBlockMatrix();
+      mech.buildSolveMatrix (S);
+      mech.addPosJacobian (S, null, -h*h);
+      SparseNumberedBlockMatrix GT = new SparseNumberedBlockMatrix();
+      mech.getBilateralConstraints (GT, new VectorNd());
+      SparseNumberedBlockMatrix NT = new SparseNumberedBlockMatrix();
+      mech.getUnilateralConstraints (NT, new VectorNd());
+
+      String name = root.getName();
+      System.out.println (
+         name+": S "+S.rowSize()+"x"+S.colSize()+
+         ", GT "+GT.rowSize()+"x"+GT.colSize()+
+         ", NT "+NT.rowSize()+"x"+NT.colSize());
+      addMulBenchmarks (list, name+".S", S, nthreads);
+      addMulBenchmarks (list, name+".GT", GT, nthreads);
+      addMulBenchmarks (list, name+".NT", NT, nthreads);
+      root.dispose();
+   }
+
+   private static void printUsageAndExit() {
+      System.out.println (
+"Usage: java artisynth.core.driver.SolveMatrixBenchmark [options] "+
+"[modelClass ...]\n"+
+"Options:\n" +
+"  -threads <n>   number of threads to compare with serial execution\n" +
+"                 (default is the number of processors, or 2)\n" +
+"  -steps <n>     steps to advance each model before extracting the\n" +
+"                 matrices (default 10)\n" +
+"  -minSize <n>   value for SparseBlockMatrix.minParallelMulSize\n" +
+"  -out <file>    write the results to <file>\n" +
+"If no model classes are given, a default set of demo models is used.");
+      System.exit (1);
+   }
+
+   public static void main (String[] args) {
+      int nthreads = Math.max (2, WorkerPool.getDefaultNumThreads());
+      int nsteps = 10;
+      File outFile = null;
+      ArrayList<String> models = new ArrayList<String>();
+
+      try {
+         for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith ("-")) {
+               if (i == args.length-1) {
+                  printUsageAndExit();
+               }
+               if (arg.equals ("-threads")) {
+                  nthreads = Integer.parseInt (args[++i]);
+               }
+               else if (arg.equals ("-steps")) {
+                  nsteps = Integer.parseInt (args[++i]);
+               }
+               else if (arg.equals ("-minSize")) {
+                  SparseBlockMatrix.minParallelMulSize =
+                     Integer.parseInt (args[++i]);
+               }
+               else if (arg.equals ("-out")) {
+                  outFile = new File (args[++i]);
+               }
+               else {
+                  printUsageAndExit();
+               }
+            }
+            else {
+               models.add (arg);
+            }
+         }
+      }
+      catch (NumberFormatException e) {
+         printUsageAndExit();
+      }
+      if (models.size() == 0) {
+         for (String name : DEFAULT_MODELS) {
+            models.add (name);
+         }
+      }
+      ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+      for (String className : models) {
+         try {
+            addModelBenchmarks (benchmarks, className, nsteps, 1, nthreads);
+         }
+         catch (Exception e) {
+            System.out.println (className + ": FAILED: " + e);
+         }
+      }
+      BenchmarkRunner runner = new BenchmarkRunner();
+      ArrayList<BenchmarkResult> results = runner.run (benchmarks);
+      if (outFile != null) {
+         try {
+            BenchmarkRunner.writeResults (outFile, results);
+         }
+         catch (IOException e) {
+            System.out.println ("Error writing results: " + e.getMessage());
+            System.exit (1);
+         }
+      }
+      // some models may leave non-daemon threads running
+      System.exit (0);
+   }
+}
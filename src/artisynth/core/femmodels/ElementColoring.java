@@ -0,0 +1,89 @@
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Partitions a set of FEM elements into color groups, such that no two
+ * elements within the same group share a node. Element contributions to
+ * nodal quantities (such as internal forces and the stiffness blocks stored
+ * in {@link FemNodeNeighbor}) can then be accumulated concurrently for all
+ * elements within a group, without synchronization.
+ *
+ * <p>The coloring is computed greedily, visiting the elements in the order
+ * in which they are supplied. It therefore depends only on the element
+ * order, and elements within each group retain that order.
+ */
+public class ElementColoring<E extends FemElement3dBase> {
+
+   protected ArrayList<ArrayList<E>> myGroups;
+
+   /**
+    * Creates a coloring for the specified elements.
+    *
+    * @param elems elements to color
+    */
+   public ElementColoring (List<? extends E> elems) {
+      myGroups = new ArrayList<>();
+      HashMap<FemNode3d,BitSet> nodeColors = new HashMap<>();
+      BitSet used = new BitSet();
+      for (E e : elems) {
+         FemNode3d[] nodes = e.getNodes();
+         used.clear();
+         for (FemNode3d n : nodes) {
+            BitSet colors = nodeColors.get (n);
+            if (colors != null) {
+               used.or (colors);
+            }
+         }
+         int c = used.nextClearBit (0);
+         if (c == myGroups.size()) {
+            myGroups.add (new ArrayList<E>());
+         }
+         myGroups.get(c).add (e);
+         for (FemNode3d n : nodes) {
+            BitSet colors = nodeColors.get (n);
+            if (colors == null) {
+               colors = new BitSet();
+               nodeColors.put (n, colors);
+            }
+            colors.set (c);
+         }
+      }
+   }
+
+   /**
+    * Returns the number of color groups.
+    *
+    * @return number of color groups
+    */
+   public int numGroups() {
+      return myGroups.size();
+   }
+
+   /**
+    * Returns the elements in the <code>k</code>-th color group. The
+    * returned list should not be modified.
+    *
+    * @param k color group index
+    * @return elements in the group
+    */
+   public ArrayList<E> getGroup (int k) {
+      return myGroups.get(k);
+   }
+
+   /**
+    * Returns the total number of elements in all color groups.
+    *
+    * @return total number of elements
+    */
+   public int numElements() {
+      int num = 0;
+      for (ArrayList<E> group : myGroups) {
+         num += group.size();
+      }
+      return num;
+   }
+}
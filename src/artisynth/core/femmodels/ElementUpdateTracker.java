@@ -0,0 +1,518 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.mechmodels.SolverPhaseTimer;
+import artisynth.core.mechmodels.SolverPhaseTimer.Counter;
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+
+/**
+ * Allows the stress and stiffness computation of a {@link FemModel3d} to
+ * skip elements whose nodes have barely moved. For each volumetric element,
+ * the tracker stores the element's contributions to the node forces and
+ * stiffness blocks, together with the node positions at which they were
+ * evaluated. When the stresses are next updated, an element whose nodes
+ * have each moved less than a specified tolerance from these positions is
+ * not re-evaluated. Instead, its stored stiffness is reused, and its node
+ * forces are estimated from the stored forces using the first order
+ * correction
+ * <pre>
+ * f = f0 + K0 (x - x0)
+ * </pre>
+ * where f0, K0 and x0 are the stored forces, stiffness and node positions.
+ * Since the tolerance is measured from the positions at the last
+ * evaluation, rather than at the last update, slowly moving elements are
+ * still re-evaluated from time to time.
+ *
+ * <p>This is most useful for nonlinear materials in models where only a
+ * small region is deforming at any one time. Elements are always evaluated
+ * if they have auxiliary materials (such as muscle materials, whose
+ * excitations may change over time) or materials with state, if they are
+ * inverted, or if any of their nodes require nodal stress or strain
+ * values. Tracking is not used with NODAL soft incompressibility.
+ *
+ * <p>The tracker also records the number of elements that were evaluated
+ * and skipped, both for the most recent update and in total. These counts
+ * are also added to the {@link Counter#EvaluatedElements} and {@link
+ * Counter#SkippedElements} counters of {@link SolverPhaseTimer}.
+ */
+public class ElementUpdateTracker {
+
+   protected FemModel3d myFem;
+   protected double myTolerance;
+   protected IdentityHashMap<FemElement3d,ElementState> myStates;
+   // true if tracking is being used for the current update
+   protected boolean myActive;
+   // symmetric storage setting used for the stored stiffness blocks
+   protected boolean mySymmetric;
+   protected IncompMethod mySoftIncomp;
+
+   protected int myNumEvaluated;
+   protected int myNumSkipped;
+   protected long myTotalEvaluated;
+   protected long myTotalSkipped;
+
+   private static final int UNKNOWN = 0;
+   private static final int EVALUATED = 1;
+   private static final int SKIPPED = 2;
+
+   /**
+    * Stored contributions for a single element.
+    */
+   static class ElementState {
+      FemElement3d myElem;
+      // node positions at the last evaluation
+      double[] myPos;
+      // node force contributions at the last evaluation
+      double[] myForces;
+      // stiffness block contributions, stored row-major for each node pair
+      double[] myK;
+      // contributions to the blocks not subject to stiffness damping,
+      // allocated only if needed
+      double[] myKX;
+      // which node pairs have stiffness blocks
+      boolean[] myHasBlk;
+      // true if forces and stiffness have been stored
+      boolean myValid;
+      int myStatus = UNKNOWN;
+
+      ElementState (FemElement3d e) {
+         myElem = e;
+         int nn = e.numNodes();
+         myPos = new double[3*nn];
+         myForces = new double[3*nn];
+         myK = new double[9*nn*nn];
+         myHasBlk = new boolean[nn*nn];
+      }
+   }
+
+   /**
+    * Creates a tracker for a specified FEM model.
+    *
+    * @param fem model whose elements are to be tracked
+    * @param tol tolerance for node displacements
+    */
+   public ElementUpdateTracker (FemModel3d fem, double tol) {
+      myFem = fem;
+      setTolerance (tol);
+   }
+
+   /**
+    * Returns the FEM model associated with this tracker.
+    *
+    * @return FEM model
+    */
+   public FemModel3d getFem() {
+      return myFem;
+   }
+
+   /**
+    * Queries the tolerance for node displacements. See {@link
+    * #setTolerance}.
+    *
+    * @return node displacement tolerance
+    */
+   public double getTolerance() {
+      return myTolerance;
+   }
+
+   /**
+    * Sets the tolerance for node displacements. An element is re-evaluated
+    * if any of its nodes has moved by more than this distance since the
+    * element was last evaluated.
+    *
+    * @param tol node displacement tolerance
+    */
+   public void setTolerance (double tol) {
+      if (tol < 0) {
+         throw new IllegalArgumentException ("tolerance must be non-negative");
+      }
+      myTolerance = tol;
+   }
+
+   /**
+    * Clears all stored element contributions, so that all elements will be
+    * evaluated at the next update. Should be called whenever the model's
+    * structure or materials change.
+    */
+   public void clear() {
+      myStates = null;
+   }
+
+   /**
+    * Returns the number of elements that were evaluated during the most
+    * recent stress update.
+    *
+    * @return number of evaluated elements
+    */
+   public int numEvaluatedElements() {
+      return myNumEvaluated;
+   }
+
+   /**
+    * Returns the number of elements that were skipped during the most
+    * recent stress update.
+    *
+    * @return number of skipped elements
+    */
+   public int numSkippedElements() {
+      return myNumSkipped;
+   }
+
+   /**
+    * Returns the total number of elements that have been evaluated since
+    * this tracker was created or {@link #resetStatistics} was called.
+    *
+    * @return total number of evaluated elements
+    */
+   public long getTotalEvaluated() {
+      return myTotalEvaluated;
+   }
+
+   /**
+    * Returns the total number of elements that have been skipped since
+    * this tracker was created or {@link #resetStatistics} was called.
+    *
+    * @return total number of skipped elements
+    */
+   public long getTotalSkipped() {
+      return myTotalSkipped;
+   }
+
+   /**
+    * Returns the fraction of element evaluations that have been skipped
+    * since this tracker was created or {@link #resetStatistics} was called.
+    *
+    * @return fraction of skipped elements
+    */
+   public double getSkipFraction() {
+      long total = myTotalEvaluated + myTotalSkipped;
+      return total > 0 ? myTotalSkipped/(double)total : 0;
+   }
+
+   /**
+    * Resets the element statistics.
+    */
+   public void resetStatistics() {
+      myNumEvaluated = 0;
+      myNumSkipped = 0;
+      myTotalEvaluated = 0;
+      myTotalSkipped = 0;
+   }
+
+   /**
+    * Called at the start of a stress update, to prepare the stored element
+    * contributions. Must not be called concurrently with other methods.
+    *
+    * @param softIncomp soft incompressibility method for the update
+    * @param symmetric if <code>true</code>, stiffness is stored only for
+    * the upper triangle of the solve matrix
+    * @param enable if <code>false</code>, tracking is not used for this
+    * update
+    */
+   void beginUpdate (
+      IncompMethod softIncomp, boolean symmetric, boolean enable) {
+
+      if (symmetric != mySymmetric || softIncomp != mySoftIncomp) {
+         myStates = null;
+         mySymmetric = symmetric;
+         mySoftIncomp = softIncomp;
+      }
+      if (myStates == null) {
+         myStates = new IdentityHashMap<FemElement3d,ElementState>();
+         for (FemElement3d e : myFem.getElements()) {
+            myStates.put (e, new ElementState (e));
+         }
+      }
+      myActive = (enable && softIncomp != IncompMethod.NODAL);
+      if (!myActive) {
+         // stored values will not be updated
+         for (ElementState state : myStates.values()) {
+            state.myValid = false;
+         }
+      }
+   }
+
+   /**
+    * Called at the end of a stress update, to update the element
+    * statistics. Must not be called concurrently with other methods.
+    */
+   void endUpdate() {
+      int nevaluated = 0;
+      int nskipped = 0;
+      if (myActive) {
+         for (ElementState state : myStates.values()) {
+            if (state.myStatus == SKIPPED) {
+               nskipped++;
+            }
+            else if (state.myStatus == EVALUATED) {
+               nevaluated++;
+            }
+            state.myStatus = UNKNOWN;
+         }
+      }
+      else {
+         nevaluated = myFem.numElements();
+      }
+      myNumEvaluated = nevaluated;
+      myNumSkipped = nskipped;
+      myTotalEvaluated += nevaluated;
+      myTotalSkipped += nskipped;
+      SolverPhaseTimer.count (Counter.EvaluatedElements, nevaluated);
+      SolverPhaseTimer.count (Counter.SkippedElements, nskipped);
+   }
+
+   /**
+    * Returns the stored state for an element, if tracking is active and
+    * the element can be tracked.
+    */
+   ElementState getState (
+      FemElement3d e, FemMaterial mat, ArrayList<FemMaterial> amats) {
+
+      if (!myActive) {
+         return null;
+      }
+      ElementState state = myStates.get (e);
+      if (state == null) {
+         return null;
+      }
+      if (mat.hasState() || hasStateMaterials (amats) ||
+          hasStateMaterials (e.getAugmentingMaterials()) ||
+          e.numAuxiliaryMaterials() > 0 || e.needsStressStrain() != 0) {
+         state.myValid = false;
+         state.myStatus = EVALUATED;
+         return null;
+      }
+      return state;
+   }
+
+   private boolean hasStateMaterials (ArrayList<FemMaterial> mats) {
+      if (mats != null) {
+         for (FemMaterial mat : mats) {
+            if (mat.hasState()) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns <code>true</code> if the stiffness block for nodes i and j of
+    * an element is computed, given their solve indices.
+    */
+   private boolean hasBlock (int bi, int bj) {
+      return bi != -1 && (!mySymmetric || bj >= bi);
+   }
+
+   /**
+    * If all the nodes of an element have moved less than the tolerance
+    * since it was last evaluated, adds the element's stored force and
+    * (optionally) stiffness contributions to the nodes and returns
+    * <code>true</code>. Otherwise, returns <code>false</code>.
+    *
+    * @param state stored element state
+    * @param stiffness if <code>true</code>, stiffness is also being computed
+    * @return <code>true</code> if the element was skipped
+    */
+   boolean skipIfUnchanged (ElementState state, boolean stiffness) {
+      FemElement3d e = state.myElem;
+      if (!state.myValid || e.isInverted()) {
+         return false;
+      }
+      FemNode3d[] nodes = e.getNodes();
+      int nn = nodes.length;
+      double[] pos = state.myPos;
+      double tol = myTolerance;
+      // check the node displacements. Nodes whose stiffness columns are not
+      // stored must not have moved at all, since the force change they
+      // induce cannot be estimated.
+      for (int j=0; j<nn; j++) {
+         Point3d p = nodes[j].getLocalPosition();
+         double dx = Math.abs (p.x-pos[3*j]);
+         double dy = Math.abs (p.y-pos[3*j+1]);
+         double dz = Math.abs (p.z-pos[3*j+2]);
+         if (dx > tol || dy > tol || dz > tol) {
+            return false;
+         }
+         if ((dx != 0 || dy != 0 || dz != 0) &&
+             nodes[j].getLocalSolveIndex() == -1) {
+            return false;
+         }
+      }
+      double[] K = state.myK;
+      double[] KX = state.myKX;
+      boolean[] hasBlk = state.myHasBlk;
+      double[] forces = state.myForces;
+      for (int i=0; i<nn; i++) {
+         // f_i = f0_i + sum_j K_ij (x_j - x0_j)
+         double fx = forces[3*i];
+         double fy = forces[3*i+1];
+         double fz = forces[3*i+2];
+         for (int j=0; j<nn; j++) {
+            Point3d p = nodes[j].getLocalPosition();
+            double dx = p.x-pos[3*j];
+            double dy = p.y-pos[3*j+1];
+            double dz = p.z-pos[3*j+2];
+            if (dx == 0 && dy == 0 && dz == 0) {
+               continue;
+            }
+            if (hasBlk[i*nn+j]) {
+               int k = 9*(i*nn+j);
+               fx += K[k  ]*dx + K[k+1]*dy + K[k+2]*dz;
+               fy += K[k+3]*dx + K[k+4]*dy + K[k+5]*dz;
+               fz += K[k+6]*dx + K[k+7]*dy + K[k+8]*dz;
+               if (KX != null) {
+                  fx += KX[k  ]*dx + KX[k+1]*dy + KX[k+2]*dz;
+                  fy += KX[k+3]*dx + KX[k+4]*dy + KX[k+5]*dz;
+                  fz += KX[k+6]*dx + KX[k+7]*dy + KX[k+8]*dz;
+               }
+            }
+            else if (hasBlk[j*nn+i]) {
+               // use the transpose of the block for nodes j and i
+               int k = 9*(j*nn+i);
+               fx += K[k  ]*dx + K[k+3]*dy + K[k+6]*dz;
+               fy += K[k+1]*dx + K[k+4]*dy + K[k+7]*dz;
+               fz += K[k+2]*dx + K[k+5]*dy + K[k+8]*dz;
+               if (KX != null) {
+                  fx += KX[k  ]*dx + KX[k+3]*dy + KX[k+6]*dz;
+                  fy += KX[k+1]*dx + KX[k+4]*dy + KX[k+7]*dz;
+                  fz += KX[k+2]*dx + KX[k+5]*dy + KX[k+8]*dz;
+               }
+            }
+         }
+         Vector3d f = nodes[i].myInternalForce;
+         f.x += fx;
+         f.y += fy;
+         f.z += fz;
+      }
+      if (stiffness) {
+         for (int i=0; i<nn; i++) {
+            for (int j=0; j<nn; j++) {
+               if (hasBlk[i*nn+j]) {
+                  FemNodeNeighbor nbr = e.myNbrs[i][j];
+                  nbr.addStiffnessFrom (K, 9*(i*nn+j), /*x=*/false);
+                  if (KX != null) {
+                     nbr.addStiffnessFrom (KX, 9*(i*nn+j), /*x=*/true);
+                  }
+               }
+            }
+         }
+      }
+      state.myStatus = SKIPPED;
+      return true;
+   }
+
+   /**
+    * Called before an element is evaluated. Saves the current node forces
+    * and (optionally) stiffness blocks, so that the element's contributions
+    * can be determined by {@link #endEvaluation}. If this method returns
+    * <code>false</code>, the contributions cannot be stored and {@link
+    * #endEvaluation} should not be called.
+    *
+    * @param state stored element state
+    * @param stiffness if <code>true</code>, stiffness is also being computed
+    * @return <code>true</code> if the contributions are to be stored
+    */
+   boolean beginEvaluation (ElementState state, boolean stiffness) {
+      state.myStatus = EVALUATED;
+      if (!stiffness && !state.myValid) {
+         // stiffness is not available, so the element can't be skipped
+         // until it has been evaluated with stiffness
+         return false;
+      }
+      FemElement3d e = state.myElem;
+      FemNode3d[] nodes = e.getNodes();
+      int nn = nodes.length;
+      double[] forces = state.myForces;
+      for (int i=0; i<nn; i++) {
+         Vector3d f = nodes[i].myInternalForce;
+         forces[3*i  ] = -f.x;
+         forces[3*i+1] = -f.y;
+         forces[3*i+2] = -f.z;
+      }
+      if (stiffness) {
+         double[] K = state.myK;
+         boolean[] hasBlk = state.myHasBlk;
+         Arrays.fill (K, 0);
+         if (state.myKX != null) {
+            Arrays.fill (state.myKX, 0);
+         }
+         for (int i=0; i<nn; i++) {
+            int bi = nodes[i].getLocalSolveIndex();
+            for (int j=0; j<nn; j++) {
+               int k = i*nn+j;
+               hasBlk[k] = hasBlock (bi, nodes[j].getLocalSolveIndex());
+               if (hasBlk[k]) {
+                  FemNodeNeighbor nbr = e.myNbrs[i][j];
+                  nbr.scaledAddStiffnessTo (K, 9*k, -1, /*x=*/false);
+                  if (nbr.hasKX()) {
+                     if (state.myKX == null) {
+                        state.myKX = new double[K.length];
+                     }
+                     nbr.scaledAddStiffnessTo (
+                        state.myKX, 9*k, -1, /*x=*/true);
+                  }
+               }
+            }
+         }
+      }
+      state.myValid = false;
+      return true;
+   }
+
+   /**
+    * Called after an element is evaluated, to store its contributions to
+    * the node forces and (optionally) stiffness blocks, along with the
+    * node positions.
+    *
+    * @param state stored element state
+    * @param stiffness if <code>true</code>, stiffness is also being computed
+    */
+   void endEvaluation (ElementState state, boolean stiffness) {
+      FemElement3d e = state.myElem;
+      FemNode3d[] nodes = e.getNodes();
+      int nn = nodes.length;
+      double[] forces = state.myForces;
+      double[] pos = state.myPos;
+      for (int i=0; i<nn; i++) {
+         Vector3d f = nodes[i].myInternalForce;
+         forces[3*i  ] += f.x;
+         forces[3*i+1] += f.y;
+         forces[3*i+2] += f.z;
+         Point3d p = nodes[i].getLocalPosition();
+         pos[3*i  ] = p.x;
+         pos[3*i+1] = p.y;
+         pos[3*i+2] = p.z;
+      }
+      if (stiffness) {
+         double[] K = state.myK;
+         boolean[] hasBlk = state.myHasBlk;
+         for (int k=0; k<nn*nn; k++) {
+            if (hasBlk[k]) {
+               FemNodeNeighbor nbr = e.myNbrs[k/nn][k%nn];
+               nbr.scaledAddStiffnessTo (K, 9*k, 1, /*x=*/false);
+               if (nbr.hasKX()) {
+                  if (state.myKX == null) {
+                     // storage was allocated during the evaluation
+                     state.myKX = new double[K.length];
+                  }
+                  nbr.scaledAddStiffnessTo (state.myKX, 9*k, 1, /*x=*/true);
+               }
+            }
+         }
+      }
+      state.myValid = true;
+   }
+}
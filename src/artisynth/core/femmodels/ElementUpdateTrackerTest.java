@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.LinearMaterial;
+import artisynth.core.materials.MooneyRivlinMaterial;
+import artisynth.core.materials.NeoHookeanMaterial;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Checks the forces and stiffness computed by FemModel3d when lazy element
+ * updates are enabled, by comparing them with those computed by an
+ * identical model in which every element is evaluated.
+ */
+public class ElementUpdateTrackerTest extends UnitTest {
+
+   static double TOL = 1e-3;
+
+   FemModel3d createBeam (
+      FemElementType type, FemMaterial mat, IncompMethod softIncomp) {
+      FemModel3d fem = FemTestUtils.createBeam (type, mat, 4, 0);
+      fem.setSoftIncompMethod (softIncomp);
+      return fem;
+   }
+
+   /**
+    * Displaces the nodes of two models by the same random amount, for
+    * nodes whose rest x coordinate is at least xmin. The largest component
+    * of each displacement has magnitude mag.
+    */
+   void displaceNodes (
+      FemModel3d fem0, FemModel3d fem1, double mag, double xmin) {
+      Vector3d del = new Vector3d();
+      for (int i=0; i<fem0.numNodes(); i++) {
+         FemNode3d n0 = fem0.getNode(i);
+         if (n0.getRestPosition().x >= xmin) {
+            del.setRandom();
+            del.scale (mag/del.infinityNorm());
+            Point3d pos = new Point3d (n0.getPosition());
+            pos.add (del);
+            n0.setPosition (pos);
+            fem1.getNode(i).setPosition (pos);
+         }
+      }
+   }
+
+   /**
+    * Updates the stress and (optionally) stiffness for a model, and returns
+    * the nodal forces and, if stiffness is computed, the position Jacobian.
+    */
+   void update (
+      FemModel3d fem, boolean stiffness, VectorNd f, MatrixNd J) {
+      // invalidates stresses, stiffness and element volumes
+      fem.updateSlavePos();
+      if (stiffness) {
+         fem.updateStressAndStiffness();
+      }
+      else {
+         fem.updateStress();
+      }
+      FemTestUtils.getNodalForces (fem, f);
+      if (stiffness) {
+         FemTestUtils.getJacobian (fem, 1.0, 0, J);
+      }
+   }
+
+   void checkCounts (
+      String name, FemModel3d fem, int nevaluated, int nskipped) {
+      ElementUpdateTracker tracker = fem.getElementUpdateTracker();
+      if (tracker.numEvaluatedElements() != nevaluated ||
+          tracker.numSkippedElements() != nskipped) {
+         throw new TestException (
+            name + ": "+tracker.numEvaluatedElements()+" evaluated and "+
+            tracker.numSkippedElements()+" skipped elements, expected "+
+            nevaluated+" and "+nskipped);
+      }
+   }
+
+   /**
+    * Returns the number of elements whose nodes all have a rest x
+    * coordinate less than xmin.
+    */
+   int numUnmovedElements (FemModel3d fem, double xmin) {
+      int num = 0;
+      for (FemElement3d e : fem.getElements()) {
+         boolean moved = false;
+         for (FemNode3d n : e.getNodes()) {
+            if (n.getRestPosition().x >= xmin) {
+               moved = true;
+            }
+         }
+         if (!moved) {
+            num++;
+         }
+      }
+      return num;
+   }
+
+   void testBeam (
+      FemElementType type, FemMaterial mat, IncompMethod softIncomp,
+      boolean packed, int nthreads) {
+
+      String name =
+         type + " beam with " + mat.getClass().getSimpleName() +
+         ", softIncomp=" + softIncomp + ", packed=" + packed +
+         ", nthreads=" + nthreads;
+
+      // fem0 evaluates all elements, while fem1 uses lazy updates
+      FemModel3d fem0 = createBeam (type, mat, softIncomp);
+      FemModel3d fem1 = createBeam (type, mat, softIncomp);
+      fem1.setLazyUpdateTolerance (TOL);
+      for (FemModel3d fem : new FemModel3d[] { fem0, fem1 }) {
+         fem.setPackedStiffness (packed);
+         fem.setNumStressThreads (nthreads);
+      }
+      int numElems = fem0.numElements();
+      displaceNodes (fem0, fem1, 0.02, -1);
+
+      VectorNd f0 = new VectorNd();
+      VectorNd f1 = new VectorNd();
+      MatrixNd J0 = new MatrixNd();
+      MatrixNd J1 = new MatrixNd();
+
+      // first update evaluates all elements
+      update (fem0, true, f0, J0);
+      update (fem1, true, f1, J1);
+      checkCounts (name + ", first update", fem1, numElems, 0);
+      double ftol = 1e-10*f0.infinityNorm();
+      double ktol = 1e-10*J0.frobeniusNorm();
+      checkEquals (name + ", first update: forces", f1, f0, ftol);
+      checkEquals (name + ", first update: stiffness", J1, J0, ktol);
+
+      // displacing nodes at one end should cause only the adjacent elements
+      // to be evaluated, with the results otherwise unchanged
+      double xmin = 0.2;
+      displaceNodes (fem0, fem1, 0.01, xmin);
+      int nskipped = numUnmovedElements (fem0, xmin);
+      if (nskipped == 0 || nskipped == numElems) {
+         throw new TestException (
+            name + ": displaced region should contain some elements");
+      }
+      update (fem0, true, f0, J0);
+      update (fem1, true, f1, J1);
+      checkCounts (name + ", local update", fem1, numElems-nskipped, nskipped);
+      checkEquals (name + ", local update: forces", f1, f0, ftol);
+      checkEquals (name + ", local update: stiffness", J1, J0, ktol);
+
+      // displacing all nodes by less than the tolerance should cause all
+      // elements to be skipped, with the forces correct to first order.
+      // Corotated linear stiffness is only an approximate tangent, and so
+      // gives a larger error.
+      double ctol = (mat.isLinear() ? 0.05 : 0.002);
+      // forces at which the elements were last evaluated
+      VectorNd feval = new VectorNd (f0);
+      displaceNodes (fem0, fem1, TOL/10, -1);
+      update (fem0, true, f0, J0);
+      update (fem1, true, f1, J1);
+      checkCounts (name + ", small update", fem1, 0, numElems);
+      VectorNd df = new VectorNd();
+      df.sub (f0, feval);
+      checkEquals (name + ", small update: forces", f1, f0, ctol*df.norm());
+
+      // the same for a stress update without stiffness
+      displaceNodes (fem0, fem1, TOL/10, -1);
+      update (fem0, false, f0, null);
+      update (fem1, false, f1, null);
+      checkCounts (name + ", stress update", fem1, 0, numElems);
+      df.sub (f0, feval);
+      checkEquals (name + ", stress update: forces", f1, f0, ctol*df.norm());
+
+      // changing the material should cause all elements to be evaluated
+      FemMaterial newMat = mat.clone();
+      fem0.setMaterial (newMat);
+      fem1.setMaterial (newMat.clone());
+      update (fem0, true, f0, J0);
+      update (fem1, true, f1, J1);
+      checkCounts (name + ", new material", fem1, numElems, 0);
+      checkEquals (name + ", new material: forces", f1, f0, ftol);
+      checkEquals (name + ", new material: stiffness", J1, J0, ktol);
+
+      ElementUpdateTracker tracker = fem1.getElementUpdateTracker();
+      long total = tracker.getTotalEvaluated() + tracker.getTotalSkipped();
+      if (total != 5*numElems) {
+         throw new TestException (
+            name + ": total element count is "+total+", expected "+
+            5*numElems);
+      }
+   }
+
+   public void test() {
+      FemElementType[] types = new FemElementType[] {
+         FemElementType.Tet, FemElementType.Hex };
+      for (FemElementType type : types) {
+         for (int nthreads=1; nthreads<=2; nthreads++) {
+            for (boolean packed : new boolean[] { false, true }) {
+               testBeam (
+                  type, new LinearMaterial (10000, 0.33, /*corotated=*/true),
+                  IncompMethod.OFF, packed, nthreads);
+               testBeam (
+                  type, new NeoHookeanMaterial (10000, 0.33),
+                  IncompMethod.OFF, packed, nthreads);
+               testBeam (
+                  type, new MooneyRivlinMaterial (1000, 200, 0, 0, 0, 100000),
+                  IncompMethod.ELEMENT, packed, nthreads);
+            }
+         }
+      }
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      ElementUpdateTrackerTest tester = new ElementUpdateTrackerTest();
+      tester.runtest();
+   }
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.IncompressibleMaterialBase;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix6d;
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.SymmetricMatrix3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+
+/**
+ * Computes the stresses and stiffnesses of a {@link FemModel3d}'s volumetric
+ * elements in bundles, so that the material stress and tangent for all the
+ * integration points in a bundle can be found with a single call to the
+ * batch method {@link
+ * FemMaterial#computeStressAndTangent(double[],double[],double[],double[],
+ * double[],int)}. Elements are added to the bundle one at a time, and the
+ * bundle is processed when it is full, when an element with a different
+ * material is added, or when {@link #flush} is called. Processing occurs in
+ * three phases: the deformation gradients and pressures for all integration
+ * points are computed and packed into arrays, the material is evaluated for
+ * all points at once, and the resulting stresses and tangents are then
+ * accumulated into the node forces and stiffness blocks, in the same order
+ * as for {@link FemModel3d#computeStressAndStiffness}.
+ *
+ * <p>An evaluator maintains its own workspace, and so each thread computing
+ * stresses requires its own evaluator.
+ */
+public class FemBatchStressEvaluator {
+
+   /**
+    * Default maximum number of integration points in a bundle.
+    */
+   public static int DEFAULT_MAX_POINTS = 256;
+
+   protected FemModel3d myFem;
+   protected int myMaxPoints;
+
+   // material, stiffness flag and incompressibility method for the bundle
+   protected FemMaterial myMat;
+   protected boolean myComputeStiffness;
+   protected IncompMethod mySoftIncomp;
+
+   // elements in the bundle
+   protected FemElement3d[] myElems = new FemElement3d[0];
+   protected int myNumElems;
+   // pressures and inverse pressure stiffnesses for ELEMENT incompressibility
+   protected VectorNd[] myPressures = new VectorNd[0];
+   protected MatrixNd[] myRinvs = new MatrixNd[0];
+
+   // integration point values, packed into arrays
+   protected int myNumPnts;
+   protected double[] myF = new double[0];     // deformation gradients
+   protected double[] myDetF = new double[0];  // deformation determinants
+   protected double[] myP = new double[0];     // average pressures
+   protected double[] myK = new double[0];     // bulk moduli (FULL only)
+   protected double[] myInvJ = new double[0];  // inverse Jacobians
+   protected double[] myDetJ = new double[0];  // Jacobian determinants
+   protected double[] mySig = new double[0];   // stresses
+   protected double[] myD = new double[0];     // tangents
+
+   // workspace
+   protected FemDeformedPoint myDpnt = new FemDeformedPoint();
+   protected Matrix3d myInvJMat = new Matrix3d();
+   protected SymmetricMatrix3d mySigma = new SymmetricMatrix3d();
+   protected Matrix6d myDMat = new Matrix6d();
+   protected Vector3d[] myGNx = new Vector3d[0];
+   protected Vector3d[] myNodalConstraints = new Vector3d[] {
+      new Vector3d(), new Vector3d(), new Vector3d(), new Vector3d() };
+
+   // workspace of the thread using this evaluator, in which element condition
+   // info is recorded, or null if it should be recorded in the model
+   protected FemStressWorkspace myWorkspace;
+
+   /**
+    * Creates a new evaluator for a specified FEM model, with a default
+    * maximum bundle size.
+    *
+    * @param fem model whose elements are to be evaluated
+    */
+   public FemBatchStressEvaluator (FemModel3d fem) {
+      this (fem, DEFAULT_MAX_POINTS);
+   }
+
+   /**
+    * Creates a new evaluator for a specified FEM model.
+    *
+    * @param fem model whose elements are to be evaluated
+    * @param maxPoints maximum number of integration points in a bundle
+    */
+   public FemBatchStressEvaluator (FemModel3d fem, int maxPoints) {
+      myFem = fem;
+      myMaxPoints = Math.max (1, maxPoints);
+   }
+
+   /**
+    * Sets the workspace of the stress computation thread that is using this
+    * evaluator. Element condition info is then recorded in the workspace
+    * instead of the model. Should be reset to {@code null} when the thread
+    * is done.
+    *
+    * @param ws workspace of the calling thread, or {@code null}
+    */
+   void setWorkspace (FemStressWorkspace ws) {
+      myWorkspace = ws;
+   }
+
+   /**
+    * Returns the effective soft incompressibility method for a material.
+    */
+   private IncompMethod getSoftIncomp (
+      FemMaterial mat, IncompMethod softIncomp) {
+      return (mat.isIncompressible() ? softIncomp : IncompMethod.OFF);
+   }
+
+   /**
+    * Queries whether an element can be evaluated using this evaluator. This
+    * requires the element to be volumetric, with a nonlinear material that
+    * supports batch evaluation and has no state, and with no other
+    * nonlinear or linear materials, nodal stress or strain computation, or
+    * nodal incompressibility other than that of tet elements.
+    *
+    * @param e element to check
+    * @param mat material for the element
+    * @param amats augmenting materials for the model
+    * @param softIncomp soft incompressibility method for the model
+    * @return {@code true} if the element can be evaluated
+    */
+   public boolean canEvaluate (
+      FemElement3dBase e, FemMaterial mat, ArrayList<FemMaterial> amats,
+      IncompMethod softIncomp) {
+
+      if (!(e instanceof FemElement3d) ||
+          !mat.supportsBatchEvaluation() || mat.isLinear() || mat.hasState()) {
+         return false;
+      }
+      if ((amats != null && amats.size() > 0) ||
+          e.numAugmentingMaterials() > 0 || e.numAuxiliaryMaterials() > 0 ||
+          e.needsStressStrain() != 0) {
+         return false;
+      }
+      if (!e.getStiffnessWarper(1.0).isCacheEmpty()) {
+         return false;
+      }
+      switch (getSoftIncomp (mat, softIncomp)) {
+         case OFF:
+         case FULL:
+         case ELEMENT: {
+            return true;
+         }
+         case NODAL: {
+            return e instanceof TetElement;
+         }
+         default: {
+            return false;
+         }
+      }
+   }
+
+   private void ensurePointCapacity (int cap) {
+      if (myDetF.length < cap) {
+         cap = Math.max (cap, 2*myDetF.length);
+         myF = Arrays.copyOf (myF, 9*cap);
+         myDetF = Arrays.copyOf (myDetF, cap);
+         myP = Arrays.copyOf (myP, cap);
+         myK = Arrays.copyOf (myK, cap);
+         myInvJ = Arrays.copyOf (myInvJ, 9*cap);
+         myDetJ = Arrays.copyOf (myDetJ, cap);
+         mySig = Arrays.copyOf (mySig, 6*cap);
+         myD = Arrays.copyOf (myD, 36*cap);
+      }
+   }
+
+   private void ensureElementCapacity (int cap) {
+      if (myElems.length < cap) {
+         int oldCap = myElems.length;
+         cap = Math.max (cap, 2*oldCap);
+         myElems = Arrays.copyOf (myElems, cap);
+         myPressures = Arrays.copyOf (myPressures, cap);
+         myRinvs = Arrays.copyOf (myRinvs, cap);
+         for (int i=oldCap; i<cap; i++) {
+            myPressures[i] = new VectorNd (FemModel3d.MAX_PRESSURE_VALS);
+            myRinvs[i] = new MatrixNd();
+         }
+      }
+   }
+
+   private static void set3x3 (double[] vals, int k, Matrix3d M) {
+      int off = 9*k;
+      vals[off  ] = M.m00; vals[off+1] = M.m01; vals[off+2] = M.m02;
+      vals[off+3] = M.m10; vals[off+4] = M.m11; vals[off+5] = M.m12;
+      vals[off+6] = M.m20; vals[off+7] = M.m21; vals[off+8] = M.m22;
+   }
+
+   private static void get3x3 (Matrix3d M, double[] vals, int k) {
+      int off = 9*k;
+      M.m00 = vals[off  ]; M.m01 = vals[off+1]; M.m02 = vals[off+2];
+      M.m10 = vals[off+3]; M.m11 = vals[off+4]; M.m12 = vals[off+5];
+      M.m20 = vals[off+6]; M.m21 = vals[off+7]; M.m22 = vals[off+8];
+   }
+
+   /**
+    * Adds an element to the current bundle, first processing the bundle if
+    * it is full or if the element's material, stiffness flag, or
+    * incompressibility method differ from those of the bundle. The element
+    * should be one for which {@link #canEvaluate} returns {@code true}.
+    *
+    * @param e element to add
+    * @param mat material for the element
+    * @param computeStiffness if {@code true}, stiffness should be computed
+    * as well as stress
+    * @param softIncomp soft incompressibility method for the model
+    */
+   public void addElement (
+      FemElement3d e, FemMaterial mat, boolean computeStiffness,
+      IncompMethod softIncomp) {
+
+      softIncomp = getSoftIncomp (mat, softIncomp);
+      int npnts = e.numIntegrationPoints();
+      if (myNumElems > 0 &&
+          (mat != myMat || computeStiffness != myComputeStiffness ||
+           softIncomp != mySoftIncomp || myNumPnts+npnts > myMaxPoints)) {
+         flush();
+      }
+      myMat = mat;
+      myComputeStiffness = computeStiffness;
+      mySoftIncomp = softIncomp;
+      ensureElementCapacity (myNumElems+1);
+      ensurePointCapacity (myNumPnts+npnts);
+      int ei = myNumElems++;
+      myElems[ei] = e;
+      computeDeformation (e, ei);
+   }
+
+   /**
+    * Computes the deformation gradients and pressures for the integration
+    * points of an element, and stores them in the point arrays.
+    */
+   protected void computeDeformation (FemElement3d e, int ei) {
+      IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
+      IntegrationData3d[] idata = e.getIntegrationData();
+      FemNode3d[] nodes = e.getNodes();
+      FemDeformedPoint dpnt = myDpnt;
+      IncompressibleMaterialBase imat = myMat.getIncompressibleComponent();
+
+      e.setInverted (false); // will check this below
+      double[] pbuf = null;
+      if (mySoftIncomp == IncompMethod.ELEMENT) {
+         VectorNd pressures = myPressures[ei];
+         myFem.computePressuresAndRinv (e, imat, dpnt, pressures, myRinvs[ei]);
+         pbuf = pressures.getBuffer();
+         if (myComputeStiffness) {
+            MatrixBlock[] constraints = e.getIncompressConstraints();
+            for (int i = 0; i < nodes.length; i++) {
+               constraints[i].setZero();
+            }
+         }
+      }
+      boolean invertible = e.materialsAreInvertible();
+
+      for (int k = 0; k < ipnts.length; k++) {
+         IntegrationPoint3d pt = ipnts[k];
+         IntegrationData3d dt = idata[k];
+         int n = myNumPnts++;
+
+         dpnt.setFromIntegrationPoint (pt, dt, null, e, k);
+         double detJ = myInvJMat.fastInvert (dpnt.getJ());
+         myFem.checkElementCondition (e, detJ, !invertible, myWorkspace);
+         set3x3 (myInvJ, n, myInvJMat);
+         myDetJ[n] = detJ;
+         set3x3 (myF, n, dpnt.getF());
+         myDetF[n] = dpnt.getDetF();
+
+         double pressure = 0;
+         switch (mySoftIncomp) {
+            case ELEMENT: {
+               double[] H = pt.getPressureWeights().getBuffer();
+               int npvals = e.numPressureVals();
+               for (int l = 0; l < npvals; l++) {
+                  pressure += H[l] * pbuf[l];
+               }
+               break;
+            }
+            case NODAL: {
+               // tet elements only: use the average pressure for all nodes
+               for (int i = 0; i < nodes.length; i++) {
+                  pressure += nodes[i].myPressure;
+               }
+               pressure /= nodes.length;
+               break;
+            }
+            case FULL: {
+               double K = imat.getBulkModulus (dpnt);
+               myK[n] = K;
+               pressure = imat.getEffectivePressure (K, detJ / dt.getDetJ0());
+               break;
+            }
+            default: {
+               // no need to compute pressure
+            }
+         }
+         myP[n] = pressure;
+      }
+   }
+
+   /**
+    * Processes all elements in the current bundle: evaluates the material
+    * for all integration points at once, and then adds the resulting
+    * stresses and stiffnesses to the nodes. Does nothing if the bundle is
+    * empty.
+    */
+   public void flush() {
+      if (myNumElems == 0) {
+         return;
+      }
+      myMat.computeStressAndTangent (
+         mySig, myComputeStiffness ? myD : null, myF, myDetF, myP, myNumPnts);
+
+      IncompressibleMaterialBase imat = myMat.getIncompressibleComponent();
+      Matrix6d D = (myComputeStiffness ? myDMat : null);
+      int n = 0;
+      for (int ei=0; ei<myNumElems; ei++) {
+         FemElement3d e = myElems[ei];
+         IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
+         IntegrationData3d[] idata = e.getIntegrationData();
+         int nnodes = e.numNodes();
+         if (myGNx.length < nnodes) {
+            int oldLen = myGNx.length;
+            myGNx = Arrays.copyOf (myGNx, nnodes);
+            for (int i=oldLen; i<nnodes; i++) {
+               myGNx[i] = new Vector3d();
+            }
+         }
+         MatrixBlock[] constraints = null;
+         if (D != null && mySoftIncomp == IncompMethod.ELEMENT) {
+            constraints = e.getIncompressConstraints();
+         }
+         for (int k = 0; k < ipnts.length; k++) {
+            IntegrationPoint3d pt = ipnts[k];
+            IntegrationData3d dt = idata[k];
+
+            get3x3 (myInvJMat, myInvJ, n);
+            pt.computeShapeGradient (myInvJMat, myGNx);
+            double detJ = myDetJ[n];
+            double dv = detJ * pt.getWeight();
+            FemMaterial.getStress (mySigma, mySig, n);
+            if (D != null) {
+               FemMaterial.getTangent (D, myD, n);
+            }
+            double p = 0;
+            double kp = 0;
+            double[] H = null;
+            if (mySoftIncomp == IncompMethod.ELEMENT) {
+               H = pt.getPressureWeights().getBuffer();
+               p = myP[n];
+            }
+            else if (mySoftIncomp == IncompMethod.FULL) {
+               double dV = dt.getDetJ0() * pt.getWeight();
+               kp = imat.getEffectiveModulus (
+                  myK[n], detJ / dt.getDetJ0()) * dV;
+               p = myP[n];
+            }
+            myFem.addPointStressAndStiffness (
+               e, myGNx, mySigma, D, dv, p, kp, H, constraints);
+            n++;
+         }
+         if (D != null) {
+            myFem.addIncompressibilityStiffness (
+               e, mySoftIncomp, myRinvs[ei], constraints, myNodalConstraints);
+         }
+         myElems[ei] = null;
+      }
+      myNumElems = 0;
+      myNumPnts = 0;
+      myMat = null;
+   }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.LinearMaterial;
+import artisynth.core.materials.MooneyRivlinMaterial;
+import artisynth.core.materials.NeoHookeanMaterial;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.VectorNd;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Checks that FemModel3d gives the same forces and stiffness blocks with
+ * batch material evaluation as it does when materials are evaluated one
+ * integration point at a time.
+ */
+public class FemBatchStressEvaluatorTest extends UnitTest {
+
+   /**
+    * NeoHookean material that counts the number of points evaluated by the
+    * batch method. The counter is shared with clones, so that points
+    * evaluated by stress computation threads are also counted.
+    */
+   static class CountingNeoHookean extends NeoHookeanMaterial {
+      int[] myCount = new int[1];
+
+      CountingNeoHookean (double E, double nu) {
+         super (E, nu);
+      }
+
+      public void computeStressAndTangent (
+         double[] sig, double[] D, double[] F, double[] detF, double[] p,
+         int num) {
+         synchronized (myCount) {
+            myCount[0] += num;
+         }
+         super.computeStressAndTangent (sig, D, F, detF, p, num);
+      }
+   }
+
+   /**
+    * Computes the stress, and optionally the stiffness, and returns the
+    * nodal forces and copies of the stiffness blocks.
+    */
+   void computeStressAndStiffness (
+      FemModel3d fem, boolean batch, boolean stiffness,
+      VectorNd f, ArrayList<Matrix3d> K) {
+
+      fem.setBatchMaterialEvaluation (batch);
+      K.clear();
+      FemTestUtils.computeStressAndStiffness (fem, f, stiffness ? K : null);
+   }
+
+   void testBeam (
+      FemModel3d fem, String name, IncompMethod softIncomp, int nthreads,
+      boolean stiffness) {
+
+      fem.setSoftIncompMethod (softIncomp);
+      fem.setNumStressThreads (nthreads);
+      name += ", softIncomp=" + softIncomp + ", nthreads=" + nthreads +
+         ", stiffness=" + stiffness;
+
+      VectorNd f0 = new VectorNd();
+      ArrayList<Matrix3d> K0 = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, false, stiffness, f0, K0);
+
+      VectorNd f1 = new VectorNd();
+      ArrayList<Matrix3d> K1 = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, true, stiffness, f1, K1);
+
+      // batch evaluation uses the same arithmetic, and accumulates values in
+      // the same order, so the results should be identical
+      checkEquals (name + ": forces", f1, f0, 0);
+      if (K1.size() != K0.size()) {
+         throw new TestException (
+            name + ": "+K1.size()+" stiffness blocks, expected "+K0.size());
+      }
+      for (int i=0; i<K0.size(); i++) {
+         checkEquals (name + ": stiffness block "+i, K1.get(i), K0.get(i));
+      }
+   }
+
+   void testBeams (FemElementType type, int nthreads) {
+      FemMaterial[] mats = new FemMaterial[] {
+         new LinearMaterial (10000, 0.33, /*corotated=*/true),
+         new NeoHookeanMaterial (10000, 0.33),
+         new MooneyRivlinMaterial (1000, 200, 0, 0, 0, 100000),
+      };
+      IncompMethod[] methods = new IncompMethod[] {
+         IncompMethod.OFF, IncompMethod.ELEMENT, IncompMethod.FULL,
+         IncompMethod.NODAL };
+      for (FemMaterial mat : mats) {
+         FemModel3d fem = FemTestUtils.createBeam (type, mat, 4, 0.02);
+         String name =
+            type + " beam with " + mat.getClass().getSimpleName();
+         for (IncompMethod method : methods) {
+            if (method == IncompMethod.NODAL && type != FemElementType.Tet) {
+               continue;
+            }
+            if (method != IncompMethod.OFF && !mat.isIncompressible()) {
+               continue;
+            }
+            testBeam (fem, name, method, nthreads, true);
+            testBeam (fem, name, method, nthreads, false);
+         }
+      }
+   }
+
+   /**
+    * Checks that elements with their own materials are handled correctly,
+    * and that the batch method is used for the elements which use the
+    * model's material.
+    */
+   void testMixedMaterials (int nthreads) {
+      CountingNeoHookean mat = new CountingNeoHookean (10000, 0.33);
+      FemModel3d fem =
+         FemTestUtils.createBeam (FemElementType.Hex, mat, 8, 0.02);
+      int npnts = 0;
+      int k = 0;
+      for (FemElement3d e : fem.getElements()) {
+         switch (k++ % 3) {
+            case 0: {
+               e.setMaterial (new NeoHookeanMaterial (20000, 0.4));
+               break;
+            }
+            case 1: {
+               e.setMaterial (new LinearMaterial (10000, 0.33));
+               break;
+            }
+            default: {
+               npnts += e.numIntegrationPoints();
+            }
+         }
+      }
+      String name = "mixed material beam";
+      testBeam (fem, name, IncompMethod.OFF, nthreads, true);
+      mat.myCount[0] = 0;
+      fem.setBatchMaterialEvaluation (true);
+      fem.invalidateStressAndStiffness();
+      fem.updateStressAndStiffness();
+      if (mat.myCount[0] != npnts) {
+         throw new TestException (
+            name + ": batch evaluated " + mat.myCount[0] +
+            " points, expected " + npnts);
+      }
+   }
+
+   public void test() {
+      for (int nthreads=1; nthreads<=2; nthreads++) {
+         testBeams (FemElementType.Tet, nthreads);
+         testBeams (FemElementType.Hex, nthreads);
+         testMixedMaterials (nthreads);
+      }
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      FemBatchStressEvaluatorTest tester = new FemBatchStressEvaluatorTest();
+      tester.runtest();
+   }
+}
@@ -748,6 +748,9 @@ public abstract class FemElement extends RenderableComponentBase
       if (e instanceof MaterialChangeEvent) {
          MaterialChangeEvent mce = (MaterialChangeEvent)e;
          invalidateRestData();
+         if (getGrandParent() instanceof FemModel3d) {
+            ((FemModel3d)getGrandParent()).notifyMaterialsChanged();
+         }
          if (mce.stateChanged() && e.getHost() == getMaterial()) {
             notifyStateVersionChanged(); // clear element material state 
          }
@@ -22,7 +22,9 @@ import java.util.Map;
 import artisynth.core.materials.FemMaterial;
 import artisynth.core.materials.IncompressibleMaterialBase;
 import artisynth.core.materials.IncompressibleMaterialBase.BulkPotential;
+import artisynth.core.materials.MaterialChangeEvent;
 import artisynth.core.materials.MaterialStateObject;
+import artisynth.core.materials.MuscleMaterial;
 import artisynth.core.mechmodels.BodyConnector;
 import artisynth.core.mechmodels.Collidable;
 import artisynth.core.mechmodels.ConnectableBody;
@@ -42,9 +44,12 @@ import artisynth.core.mechmodels.PointAttachable;
 import artisynth.core.mechmodels.PointAttachment;
 import artisynth.core.mechmodels.PointList;
 import artisynth.core.mechmodels.PointParticleAttachment;
+import artisynth.core.mechmodels.SolverPhaseTimer;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
 import artisynth.core.modelbase.ComponentChangeEvent;
 import artisynth.core.modelbase.ComponentChangeEvent.Code;
 import artisynth.core.modelbase.ComponentList;
+import artisynth.core.modelbase.ComponentState;
 import artisynth.core.modelbase.ComponentUtils;
 import artisynth.core.modelbase.CompositeComponent;
 import artisynth.core.modelbase.CopyableComponent;
@@ -53,6 +58,7 @@ import artisynth.core.modelbase.FieldComponent;
 import artisynth.core.modelbase.HasNumericState;
 import artisynth.core.modelbase.ModelComponent;
 import artisynth.core.modelbase.ModelComponentBase;
+import artisynth.core.modelbase.PropertyChangeEvent;
 import artisynth.core.modelbase.RenderableComponentList;
 import artisynth.core.modelbase.ScalarField;
 import artisynth.core.modelbase.ScalarFieldPointFunction;
@@ -100,6 +106,8 @@ import maspack.matrix.Vector2d;
 import maspack.matrix.Vector3d;
 import maspack.matrix.VectorNd;
 import maspack.matrix.VectorNi;
+import maspack.concurrency.WorkerPool;
+import maspack.properties.HasProperties;
 import maspack.properties.PropertyList;
 import maspack.properties.PropertyMode;
 import maspack.properties.PropertyUtils;
@@ -238,8 +246,43 @@ PointAttachable, ConnectableBody {
    protected static boolean DEFAULT_USE_CONSISTENT_MASS = false;
    protected boolean myUseConsistentMass = DEFAULT_USE_CONSISTENT_MASS;
 
+   protected static int DEFAULT_NUM_STRESS_THREADS = 1;
+   protected int myNumStressThreads = DEFAULT_NUM_STRESS_THREADS;
+   // worker threads and element coloring used to compute element stresses
+   // and stiffnesses in parallel; created on demand
+   protected WorkerPool myStressWorkers;
+   protected ElementColoring<FemElement3dBase> myElementColoring;
+   // workspace for computing element stresses serially, and per-thread
+   // workspaces, with material copies, for computing them in parallel
+   protected FemStressWorkspace myStressWorkspace =
+      new FemStressWorkspace (/*copyMaterials=*/false);
+   protected FemStressWorkspace[] myThreadWorkspaces;
+
+   protected static boolean DEFAULT_PACKED_STIFFNESS = false;
+   protected boolean myPackedStiffness = DEFAULT_PACKED_STIFFNESS;
+   // packed storage for the node neighbor stiffness blocks, if enabled;
+   // rebuilt on demand after structure changes
+   protected FemStiffnessStorage myStiffnessStorage;
+   protected boolean myStiffnessStorageValidP = false;
+   // true if the packed storage includes blocks for myKX
+   protected boolean myStiffnessStorageHasKX = false;
+
+   protected static boolean DEFAULT_BATCH_MATERIAL_EVALUATION = false;
+   protected boolean myBatchMaterialEvaluation =
+      DEFAULT_BATCH_MATERIAL_EVALUATION;
+   // per-thread evaluators for batch material evaluation; created on demand
+   protected FemBatchStressEvaluator[] myBatchEvaluators;
+   // if non-null, used to advance the model in reduced coordinates
+   protected FemReducedSolver myReducedSolver;
+
+   protected static double DEFAULT_LAZY_UPDATE_TOLERANCE = 0;
+   protected double myLazyUpdateTolerance = DEFAULT_LAZY_UPDATE_TOLERANCE;
+   // tracks element contributions so that the evaluation of unchanged
+   // elements can be skipped; non-null if the lazy update tolerance is > 0
+   protected ElementUpdateTracker myUpdateTracker;
+
    // maximum number of pressure DOFs that can occur in an element
-   private static int MAX_PRESSURE_VALS = 8;
+   static int MAX_PRESSURE_VALS = 8;
    // maximum number of nodes for elements associated with nodal
    // incompressibility
    private static int MAX_NODAL_INCOMP_NODES = 8;
@@ -305,6 +348,22 @@ PointAttachable, ConnectableBody {
          "useConsistentMass",
          "use consistent mass matrix and gravity loadings", 
          DEFAULT_USE_CONSISTENT_MASS);
+      myProps.add (
+         "numStressThreads",
+         "number of threads used to compute element stresses and stiffnesses",
+         DEFAULT_NUM_STRESS_THREADS, "[1,inf)");
+      myProps.add (
+         "packedStiffness",
+         "store node neighbor stiffness blocks in a single packed array",
+         DEFAULT_PACKED_STIFFNESS);
+      myProps.add (
+         "batchMaterialEvaluation",
+         "evaluate element materials in batches of integration points",
+         DEFAULT_BATCH_MATERIAL_EVALUATION);
+      myProps.add (
+         "lazyUpdateTolerance",
+         "node displacement below which element stress updates are skipped",
+         DEFAULT_LAZY_UPDATE_TOLERANCE, "[0,inf)");
    }
 
    public PropertyList getAllPropertyInfo() {
@@ -571,6 +630,276 @@ PointAttachable, ConnectableBody {
       }
    }
 
+   /**
+    * Queries the number of threads used to compute element stresses and
+    * stiffnesses. See {@link #setNumStressThreads}.
+    *
+    * @return number of stress and stiffness threads
+    */
+   public int getNumStressThreads() {
+      return myNumStressThreads;
+   }
+
+   /**
+    * Sets the number of threads used to compute element stresses and
+    * stiffnesses in {@link #updateStressAndStiffness}. The default value of
+    * 1 computes them serially. For larger values, the elements are
+    * partitioned into color groups such that no two elements in a group
+    * share a node, and the elements within each group are processed
+    * concurrently. Results are then reproducible from one run to the next,
+    * but may differ from the serial results by round-off error, since nodal
+    * quantities are accumulated in a different order.
+    *
+    * @param num number of stress and stiffness threads
+    */
+   public void setNumStressThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumStressThreads) {
+         myNumStressThreads = num;
+         if (myStressWorkers != null) {
+            myStressWorkers.shutdown();
+            myStressWorkers = null;
+         }
+         myThreadWorkspaces = null;
+      }
+   }
+
+   /**
+    * Queries whether node neighbor stiffness blocks are stored in a single
+    * packed array. See {@link #setPackedStiffness}.
+    *
+    * @return {@code true} if packed stiffness storage is enabled
+    */
+   public boolean getPackedStiffness() {
+      return myPackedStiffness;
+   }
+
+   /**
+    * Enables or disables packed stiffness storage. By default, each {@link
+    * FemNodeNeighbor} stores its stiffness blocks in separate {@link
+    * Matrix3d} objects. When packed storage is enabled, the blocks for all
+    * neighbors are instead stored contiguously in a single {@link
+    * FemStiffnessStorage}, with the blocks for each node adjacent in memory.
+    * For large models this greatly reduces the number of heap objects and
+    * improves memory locality when stiffness is computed and assembled into
+    * the solve matrix. Packed storage is not currently used for models
+    * containing shell elements.
+    *
+    * @param enable if {@code true}, enables packed stiffness storage
+    */
+   public void setPackedStiffness (boolean enable) {
+      if (enable != myPackedStiffness) {
+         myPackedStiffness = enable;
+         myStiffnessStorageValidP = false;
+      }
+   }
+
+   /**
+    * Queries whether element materials are evaluated in batches. See {@link
+    * #setBatchMaterialEvaluation}.
+    *
+    * @return {@code true} if batch material evaluation is enabled
+    */
+   public boolean getBatchMaterialEvaluation() {
+      return myBatchMaterialEvaluation;
+   }
+
+   /**
+    * Enables or disables batch material evaluation. By default, the stress
+    * and tangent of an element's material are computed separately for each
+    * integration point. When batch evaluation is enabled, elements whose
+    * material supports it (as indicated by {@link
+    * FemMaterial#supportsBatchEvaluation}) are instead processed in bundles,
+    * with the material evaluated for all the integration points in a
+    * bundle using a single call to {@link
+    * FemMaterial#computeStressAndTangent(double[],double[],double[],double[],
+    * double[],int)}. Elements with augmenting, auxiliary or linear
+    * materials, or requiring nodal stresses or strains, are processed in
+    * the usual way. See {@link FemBatchStressEvaluator} for details.
+    *
+    * @param enable if {@code true}, enables batch material evaluation
+    */
+   public void setBatchMaterialEvaluation (boolean enable) {
+      myBatchMaterialEvaluation = enable;
+   }
+
+   /**
+    * Queries the node displacement tolerance used for lazy element stress
+    * updates. See {@link #setLazyUpdateTolerance}.
+    *
+    * @return lazy update tolerance
+    */
+   public double getLazyUpdateTolerance() {
+      return myLazyUpdateTolerance;
+   }
+
+   /**
+    * Sets the node displacement tolerance used for lazy element stress
+    * updates. If {@code tol} is greater than 0, the force and stiffness
+    * contributions of each volumetric element are stored when the element
+    * is evaluated. Subsequent evaluations of the element are skipped until
+    * one of its nodes moves by more than {@code tol} from the positions at
+    * which the contributions were computed. A skipped element reuses its
+    * stored stiffness, while its forces are corrected to first order using
+    * the stored stiffness. This can greatly reduce the cost of
+    * evaluating nonlinear materials in models where only a small region is
+    * deforming. The default value of 0 disables lazy updates. See {@link
+    * ElementUpdateTracker} for details, and {@link #getElementUpdateTracker}
+    * for statistics on the number of skipped elements.
+    *
+    * @param tol lazy update tolerance
+    */
+   public void setLazyUpdateTolerance (double tol) {
+      if (tol < 0) {
+         throw new IllegalArgumentException ("tolerance must be non-negative");
+      }
+      myLazyUpdateTolerance = tol;
+      if (tol == 0) {
+         myUpdateTracker = null;
+      }
+      else if (myUpdateTracker == null) {
+         myUpdateTracker = new ElementUpdateTracker (this, tol);
+      }
+      else {
+         myUpdateTracker.setTolerance (tol);
+      }
+   }
+
+   /**
+    * Returns the tracker used for lazy element stress updates, or {@code
+    * null} if lazy updates are not enabled. The tracker can be used to
+    * obtain statistics on the number of skipped elements.
+    *
+    * @return element update tracker, if any
+    */
+   public ElementUpdateTracker getElementUpdateTracker() {
+      return myUpdateTracker;
+   }
+
+   /**
+    * Returns the batch evaluator for a given stress computation thread, or
+    * {@code null} if batch material evaluation is not enabled.
+    */
+   protected FemBatchStressEvaluator getBatchEvaluator (int tidx) {
+      if (!myBatchMaterialEvaluation) {
+         return null;
+      }
+      if (myBatchEvaluators == null || myBatchEvaluators.length <= tidx) {
+         FemBatchStressEvaluator[] evaluators =
+            new FemBatchStressEvaluator[tidx+1];
+         for (int i=0; i<evaluators.length; i++) {
+            if (myBatchEvaluators != null && i < myBatchEvaluators.length) {
+               evaluators[i] = myBatchEvaluators[i];
+            }
+            else {
+               evaluators[i] = new FemBatchStressEvaluator (this);
+            }
+         }
+         myBatchEvaluators = evaluators;
+      }
+      return myBatchEvaluators[tidx];
+   }
+
+   /**
+    * Returns the reduced-order solver for this model, or {@code null} if
+    * the model is simulated in the usual way.
+    *
+    * @return reduced-order solver
+    */
+   public FemReducedSolver getReducedSolver() {
+      return myReducedSolver;
+   }
+
+   /**
+    * Sets a reduced-order solver for this model. When the solver is
+    * non-{@code null} and dynamics are enabled, it is used by {@link
+    * #advance} to simulate the model in the subspace given by the solver's
+    * basis, instead of performing a full nonlinear solve. Since the solver
+    * replaces the model's own advance method, it is only used when this
+    * model is a top-level model, and not when it is a component of some
+    * other mechanical system. Adding a model with a reduced solver to
+    * another mechanical system therefore also throws an
+    * IllegalStateException. See {@link FemReducedSolver} for details.
+    *
+    * @param solver reduced-order solver, or {@code null} to disable reduced
+    * simulation
+    * @throws IllegalStateException if this model is contained in another
+    * mechanical system
+    */
+   public void setReducedSolver (FemReducedSolver solver) {
+      if (solver != null && solver.getFem() != this) {
+         throw new IllegalArgumentException (
+            "Reduced solver was not created for this model");
+      }
+      if (solver != null && getGrandParent() instanceof MechSystemBase) {
+         throw new IllegalStateException (
+            "Reduced solver can only be used by a top-level model");
+      }
+      myReducedSolver = solver;
+      if (solver != null) {
+         solver.invalidateReducedState();
+      }
+   }
+
+   /**
+    * Returns the packed storage for the node neighbor stiffness blocks, or
+    * {@code null} if packed storage is not in use.
+    *
+    * @return packed stiffness storage
+    */
+   public FemStiffnessStorage getStiffnessStorage() {
+      return myStiffnessStorage;
+   }
+
+   /**
+    * Creates, rebuilds or removes the packed stiffness storage as needed,
+    * depending on whether packed storage is enabled and on whether the
+    * neighbor structure has changed. Existing stiffness values are
+    * preserved.
+    */
+   protected void updateStiffnessStorage() {
+      boolean pack = (myPackedStiffness && myShellElements.size() == 0);
+      if (myStiffnessStorageValidP &&
+          (myStiffnessStorage != null) == pack &&
+          (!pack || !noIncompressStiffnessDamping || myStiffnessStorageHasKX)) {
+         return;
+      }
+      FemStiffnessStorage storage = null;
+      if (pack) {
+         int nblks = 0;
+         for (int i=0; i<myNodes.size(); i++) {
+            FemNode3d n = myNodes.get(i);
+            nblks += n.getNodeNeighbors().size();
+            if (n.getIndirectNeighbors() != null) {
+               nblks += n.getIndirectNeighbors().size();
+            }
+         }
+         if (noIncompressStiffnessDamping) {
+            nblks *= 2;
+         }
+         storage = new FemStiffnessStorage (nblks);
+      }
+      // pack the neighbors of each node in turn, so that blocks for the
+      // same node are adjacent
+      for (int i=0; i<myNodes.size(); i++) {
+         FemNode3d n = myNodes.get(i);
+         for (FemNodeNeighbor nbr : n.getNodeNeighbors()) {
+            nbr.setStiffnessStorage (storage, noIncompressStiffnessDamping);
+         }
+         if (n.getIndirectNeighbors() != null) {
+            for (FemNodeNeighbor nbr : n.getIndirectNeighbors()) {
+               nbr.setStiffnessStorage (storage, noIncompressStiffnessDamping);
+            }
+         }
+      }
+      myStiffnessStorage = storage;
+      myStiffnessStorageHasKX = (pack && noIncompressStiffnessDamping);
+      myStiffnessStorageValidP = true;
+   }
+
    protected void setDefaultValues() {
       super.setDefaultValues();
       myDensity = DEFAULT_DENSITY;
@@ -583,12 +912,17 @@ PointAttachable, ConnectableBody {
       myColorMap = createDefaultColorMap();
       setMaterial(createDefaultMaterial());
       myAutoGenerateSurface = defaultAutoGenerateSurface;
+      myNumStressThreads = DEFAULT_NUM_STRESS_THREADS;
+      myPackedStiffness = DEFAULT_PACKED_STIFFNESS;
+      myBatchMaterialEvaluation = DEFAULT_BATCH_MATERIAL_EVALUATION;
+      setLazyUpdateTolerance (DEFAULT_LAZY_UPDATE_TOLERANCE);
    }
 
    /* --- Material Methods --- */
    
    public <T extends FemMaterial> void setMaterial (T mat) {
       mySoftIncompMethodValidP = false;
+      notifyMaterialsChanged();
       /*T newMat=*/super.setMaterial(mat);
       updateSoftIncompMethod();
       //return newMat;
@@ -1853,7 +2187,12 @@ PointAttachable, ConnectableBody {
       myHardIncompMethodValidP = false;
       myHardIncompConfigValidP = false;
       myAllElements = null;
+      myElementColoring = null;
+      myStiffnessStorageValidP = false;
       myNumTetElements = -1; // invalidates all element counts
+      if (myUpdateTracker != null) {
+         myUpdateTracker.clear();
+      }
       //myNodeNeighborsValidP = false;
    }
 
@@ -1928,6 +2267,33 @@ PointAttachable, ConnectableBody {
    public void invalidateRestData() {
       super.invalidateRestData();
       invalidateNodalRestVolumes();
+      if (myUpdateTracker != null) {
+         myUpdateTracker.clear();
+      }
+   }
+
+   public void propertyChanged (PropertyChangeEvent e) {
+      super.propertyChanged (e);
+      if (e instanceof MaterialChangeEvent) {
+         notifyMaterialsChanged();
+      }
+   }
+
+   /**
+    * Called when a material used by this model, its elements or its muscle
+    * bundles, or one of the properties of such a material, changes. Discards
+    * cached data that depends on the materials, including the per-thread
+    * material copies and the state of lazy element updates.
+    */
+   void notifyMaterialsChanged() {
+      if (myThreadWorkspaces != null) {
+         for (FemStressWorkspace ws : myThreadWorkspaces) {
+            ws.clearMaterialCopies();
+         }
+      }
+      if (myUpdateTracker != null) {
+         myUpdateTracker.clear();
+      }
    }
 
    public void resetRestPosition() {
@@ -2026,6 +2392,32 @@ PointAttachable, ConnectableBody {
    }
    
    /* --- Advance and Initialize --- */
+
+   public StepAdjustment advance (double t0, double t1, int flags) {
+      if (myReducedSolver != null && getDynamicsEnabled()) {
+         return myReducedSolver.advance (t0, t1, flags);
+      }
+      return super.advance (t0, t1, flags);
+   }
+
+   public void setState (ComponentState pstate) {
+      super.setState (pstate);
+      if (myReducedSolver != null) {
+         // node states have changed, so the reduced state must be recomputed
+         myReducedSolver.invalidateReducedState();
+      }
+   }
+
+   @Override
+   public void connectToHierarchy (CompositeComponent hcomp) {
+      super.connectToHierarchy (hcomp);
+      if (myReducedSolver != null &&
+          getGrandParent() instanceof MechSystemBase) {
+         // the reduced solver would never be used
+         throw new IllegalStateException (
+            "FEM model with a reduced solver can only be a top-level model");
+      }
+   }
    
    public void recursivelyFinalizeAdvance(
       StepAdjustment stepAdjust, double t0, double t1, int flags, int level) {
@@ -2438,13 +2830,24 @@ PointAttachable, ConnectableBody {
    
    protected void computePressuresAndRinv(
       FemElement3d e, IncompressibleMaterialBase imat, FemDeformedPoint dpnt) {
+      computePressuresAndRinv (e, imat, dpnt, myPressures, myRinv);
+   }
+
+   /**
+    * Computes the element pressures and inverse pressure stiffness for
+    * element-based soft incompressibility, storing the results in
+    * <code>pressures</code> and <code>Rinv</code>.
+    */
+   protected void computePressuresAndRinv(
+      FemElement3d e, IncompressibleMaterialBase imat, FemDeformedPoint dpnt,
+      VectorNd pressures, MatrixNd Rinv) {
 
       int npvals = e.numPressureVals();
 
-      myRinv.setSize(npvals, npvals);
-      myPressures.setSize(npvals);
+      Rinv.setSize(npvals, npvals);
+      pressures.setSize(npvals);
 
-      double[] pbuf = myPressures.getBuffer();
+      double[] pbuf = pressures.getBuffer();
       double restVol = e.getRestVolume();
       double K;
       if (imat.getBulkModulusField() != null) {
@@ -2457,12 +2860,12 @@ PointAttachable, ConnectableBody {
       }
       
       if (npvals > 1) {
-         myPressures.setZero();
+         pressures.setZero();
          IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
          IntegrationData3d[] idata = e.getIntegrationData();
 
          if (imat.getBulkPotential() != BulkPotential.QUADRATIC) {
-            myRinv.setZero();
+            Rinv.setZero();
          }
          for (int k = 0; k < ipnts.length; k++) {
             IntegrationPoint3d pt = ipnts[k];
@@ -2478,31 +2881,31 @@ PointAttachable, ConnectableBody {
                double mod = imat.getEffectiveModulus(K, detJ);
                for (int i = 0; i < npvals; i++) {
                   for (int j = 0; j < npvals; j++) {
-                     myRinv.add(i, j, H[i] * H[j] * mod * dV);
+                     Rinv.add(i, j, H[i] * H[j] * mod * dV);
                   }
                }
             }
          }
          Matrix W = e.getPressureWeightMatrix();
-         W.mul(myPressures, myPressures);
-         myPressures.scale(1 / restVol);
+         W.mul(pressures, pressures);
+         pressures.scale(1 / restVol);
          if (imat.getBulkPotential() == BulkPotential.QUADRATIC) {
-            myRinv.set(W);
-            myRinv.scale(K/restVol);
+            Rinv.set(W);
+            Rinv.scale(K/restVol);
          }
          else {
             // optimize later
             MatrixNd Wtmp = new MatrixNd(W);
             Wtmp.scale(1.0 / restVol);
-            myRinv.mul(Wtmp);
-            myRinv.mul(Wtmp, myRinv);
+            Rinv.mul(Wtmp);
+            Rinv.mul(Wtmp, Rinv);
          }
       }
       else {
          double Jpartial = e.myVolumes[0] / e.myRestVolumes[0];
          pbuf[0] = (imat.getEffectivePressure(K, Jpartial) +
             0 * e.myLagrangePressures[0]);
-         myRinv.set(0, 0, imat.getEffectiveModulus(K, Jpartial) / restVol);
+         Rinv.set(0, 0, imat.getEffectiveModulus(K, Jpartial) / restVol);
       }
    }
    
@@ -2716,19 +3119,26 @@ PointAttachable, ConnectableBody {
 
    public void updateStress() {
       updateIntegrationIndices();
+      updateStiffnessStorage();
       // clear existing internal forces and maybe stiffnesses
       timerStart();
+      boolean packed = (myStiffnessStorage != null);
+      if (packed) {
+         myStiffnessStorage.setZero();
+      }
       for (FemNode3d n : myNodes) {
          n.myInternalForce.setZero();
          if (n.myBackNode != null) {
             n.myBackNode.myInternalForce.setZero();
          }
-         for (FemNodeNeighbor nbr : getNodeNeighbors(n)) {
-            nbr.zeroStiffness();
-         }
-         // used for soft nodal-based incompressibilty:
-         for (FemNodeNeighbor nbr : getIndirectNeighbors(n)) {
-            nbr.zeroStiffness();
+         if (!packed) {
+            for (FemNodeNeighbor nbr : getNodeNeighbors(n)) {
+               nbr.zeroStiffness();
+            }
+            // used for soft nodal-based incompressibilty:
+            for (FemNodeNeighbor nbr : getIndirectNeighbors(n)) {
+               nbr.zeroStiffness();
+            }
          }
          n.zeroStressStrain();
       }
@@ -2742,42 +3152,290 @@ PointAttachable, ConnectableBody {
       }
 
       ArrayList<FemMaterial> amats = getAugmentingMaterials();
+      if (myUpdateTracker != null) {
+         myUpdateTracker.beginUpdate (
+            softIncomp, mySolveMatrixSymmetricP, /*enable=*/true);
+      }
 
       // compute new forces as well as stiffness matrix if warping is enabled
       // myMinDetJ = Double.MAX_VALUE;
-      for (FemElement3d e : myElements) {
-         FemMaterial mat = getElementMaterial(e);
-         computeStressAndStiffness(
-            e, mat, amats,/* D= */null, softIncomp);
+      if (myNumStressThreads > 1) {
+         computeElementStressesInParallel (
+            amats, softIncomp, /*stiffness=*/false);
       }
-      for (ShellElement3d e : myShellElements) {
-         FemMaterial mat = getElementMaterial(e);
-         if (e.getElementClass() == ElementClass.SHELL) {
-            computeShellStressAndStiffness(e, mat, amats, /*D=*/null);
+      else {
+         FemBatchStressEvaluator batch = getBatchEvaluator (0);
+         for (FemElement3d e : myElements) {
+            FemMaterial mat = getElementMaterial(e);
+            computeElementStressAndStiffness(
+               e, mat, amats,/* D= */null, softIncomp, batch,
+               myStressWorkspace);
          }
-         else {
-            computeMembraneStressAndStiffness(e, mat, amats, /*D=*/null);
+         if (batch != null) {
+            batch.flush();
+         }
+         for (ShellElement3d e : myShellElements) {
+            FemMaterial mat = getElementMaterial(e);
+            if (e.getElementClass() == ElementClass.SHELL) {
+               computeShellStressAndStiffness(e, mat, amats, /*D=*/null);
+            }
+            else {
+               computeMembraneStressAndStiffness(e, mat, amats, /*D=*/null);
+            }
          }
       }
+      if (myUpdateTracker != null) {
+         myUpdateTracker.endUpdate();
+      }
       myStressesValidP = true;
    }
 
+   /**
+    * Computes the stress, and optionally the stiffness, for a single
+    * element. If <code>batch</code> is non-<code>null</code> and can
+    * evaluate the element, the element is instead added to the batch, which
+    * must later be flushed. Otherwise, the batch is flushed first so that
+    * elements are processed in order. If lazy updates are enabled, the
+    * element may instead be skipped, or evaluated directly so that its
+    * contributions can be stored. <code>ws</code> supplies the workspace
+    * for the calling thread, along with any thread-specific copies of the
+    * muscle materials used by the element's auxiliary materials.
+    */
+   private void computeElementStressAndStiffness (
+      FemElement3dBase e, FemMaterial mat, ArrayList<FemMaterial> amats, 
+      Matrix6d D, IncompMethod softIncomp, FemBatchStressEvaluator batch,
+      FemStressWorkspace ws) {
+
+      if (myUpdateTracker != null && e instanceof FemElement3d) {
+         ElementUpdateTracker.ElementState state =
+            myUpdateTracker.getState ((FemElement3d)e, mat, amats);
+         if (state != null) {
+            boolean stiffness = (D != null && !myStiffnessesValidP);
+            if (myUpdateTracker.skipIfUnchanged (state, stiffness)) {
+               return;
+            }
+            // flush the batch first, since its elements may contribute to
+            // the same nodes
+            if (batch != null) {
+               batch.flush();
+            }
+            if (myUpdateTracker.beginEvaluation (state, stiffness)) {
+               computeStressAndStiffness (
+                  (FemElement3d)e, mat, amats, D, softIncomp, ws);
+               myUpdateTracker.endEvaluation (state, stiffness);
+               return;
+            }
+         }
+      }
+
+      if (batch != null) {
+         if (batch.canEvaluate (e, mat, amats, softIncomp)) {
+            batch.addElement ((FemElement3d)e, mat, D != null, softIncomp);
+            return;
+         }
+         batch.flush();
+      }
+      if (e instanceof ShellElement3d) {
+         ShellElement3d se = (ShellElement3d)e;
+         if (se.getElementClass() == ElementClass.SHELL) {
+            computeShellStressAndStiffness(se, mat, amats, D, ws);
+         }
+         else {
+            computeMembraneStressAndStiffness(se, mat, amats, D, ws);
+         }
+      }
+      else {
+         computeStressAndStiffness (
+            (FemElement3d)e, mat, amats, D, softIncomp, ws);
+      }
+   }
+
+   /**
+    * Returns true if an element has its own augmenting or auxiliary
+    * materials which cannot be evaluated using thread-specific material
+    * copies. Such elements are not processed in parallel. The exception is
+    * the auxiliary materials of muscle elements, whose muscle materials are
+    * copied for each thread.
+    */
+   private boolean hasElementSpecificMaterials (FemElement3dBase e) {
+      if (e.numAugmentingMaterials() > 0) {
+         return true;
+      }
+      if (e.numAuxiliaryMaterials() > 0) {
+         if (e instanceof ShellElement3d) {
+            return true;
+         }
+         for (AuxiliaryMaterial amat : e.myAuxMaterials) {
+            if (!(amat instanceof MuscleElementDesc)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Creates a copy of a material for use by a single stress computation
+    * thread. This is needed because materials maintain internal workspace
+    * and so cannot be evaluated concurrently.
+    */
+   static FemMaterial createThreadMaterial (FemMaterial mat) {
+      // detach the material from its host while cloning, so that the
+      // copy does not generate property change notifications
+      HasProperties host = mat.getPropertyHost();
+      mat.setPropertyHost (null);
+      FemMaterial copy = mat.clone();
+      mat.setPropertyHost (host);
+      return copy;
+   }
+
+   protected ElementColoring<FemElement3dBase> getElementColoring() {
+      if (myElementColoring == null) {
+         myElementColoring =
+            new ElementColoring<FemElement3dBase>(getAllElements());
+      }
+      return myElementColoring;
+   }
+
+   /**
+    * Multithreaded version of the element loop in {@link
+    * #updateStressAndStiffness} and {@link #updateStress}. Elements are
+    * processed one color group at a time, with the elements of each group
+    * divided among the threads. Since elements within a group do not share
+    * nodes, their contributions to node forces, stresses and {@link
+    * FemNodeNeighbor} blocks can be accumulated without synchronization, and
+    * the order of accumulation is independent of the thread scheduling.
+    */
+   protected void computeElementStressesInParallel (
+      ArrayList<FemMaterial> amats, IncompMethod softIncomp,
+      boolean computeStiffness) {
+
+      if (myStressWorkers == null) {
+         myStressWorkers = new WorkerPool ("femStress", myNumStressThreads);
+      }
+      WorkerPool workers = myStressWorkers;
+      int nthreads = workers.numThreads();
+      ElementColoring<FemElement3dBase> coloring = getElementColoring();
+
+      // Make sure each thread has copies of all materials, including the
+      // muscle materials of muscle elements, whose net excitations are also
+      // stored beforehand. Also update warping stiffnesses beforehand, since
+      // this may evaluate shared materials.
+      FemStressWorkspace[] workspaces = getThreadWorkspaces (nthreads);
+      for (FemElement3dBase e : getAllElements()) {
+         boolean parallel = !hasElementSpecificMaterials(e);
+         if (parallel) {
+            FemMaterial mat = getElementMaterial(e);
+            for (FemStressWorkspace ws : workspaces) {
+               ws.addMaterialCopy (mat);
+            }
+         }
+         if (parallel && e.numAuxiliaryMaterials() > 0) {
+            for (AuxiliaryMaterial amat : e.myAuxMaterials) {
+               MuscleElementDesc desc = (MuscleElementDesc)amat;
+               MuscleMaterial mmat = desc.getEffectiveMuscleMaterial();
+               if (mmat != null) {
+                  for (FemStressWorkspace ws : workspaces) {
+                     ws.addMaterialCopy (mmat);
+                  }
+                  desc.storeNetExcitation();
+               }
+            }
+         }
+         e.getStiffnessWarper(1.0);
+      }
+      for (FemStressWorkspace ws : workspaces) {
+         ws.updateAugmentingMaterials (amats);
+      }
+      // create the batch evaluators, if needed, before the threads use them
+      getBatchEvaluator (nthreads-1);
+      for (FemStressWorkspace ws : workspaces) {
+         ws.clearElementConditionInfo();
+      }
+
+      for (int k=0; k<coloring.numGroups(); k++) {
+         ArrayList<FemElement3dBase> group = coloring.getGroup(k);
+         workers.forEachRange (group.size(), (tidx, start, end) -> {
+            FemStressWorkspace ws = workspaces[tidx];
+            FemBatchStressEvaluator batch = getBatchEvaluator (tidx);
+            if (batch != null) {
+               batch.setWorkspace (ws);
+            }
+            ArrayList<FemMaterial> amatsCopy = ws.getAugmentingMaterials (amats);
+            Matrix6d D = (computeStiffness ? ws.myD : null);
+            for (int i=start; i<end; i++) {
+               FemElement3dBase e = group.get(i);
+               if (!hasElementSpecificMaterials (e)) {
+                  computeElementStressAndStiffness (
+                     e, ws.getMaterial (getElementMaterial(e)), amatsCopy,
+                     D, softIncomp, batch, ws);
+               }
+            }
+            if (batch != null) {
+               batch.flush();
+               batch.setWorkspace (null);
+            }
+         });
+      }
+      // combine the element condition info recorded by each thread, in
+      // thread order so that the result does not depend on scheduling
+      for (FemStressWorkspace ws : workspaces) {
+         if (ws.myMinDetJ < myMinDetJ) {
+            myMinDetJ = ws.myMinDetJ;
+            myMinDetJElement = ws.myMinDetJElement;
+         }
+         myNumInverted += ws.myNumInverted;
+      }
+      // remaining elements are processed serially, in their original order
+      Matrix6d D = (computeStiffness ? myStressWorkspace.myD : null);
+      for (FemElement3dBase e : getAllElements()) {
+         if (hasElementSpecificMaterials (e)) {
+            computeElementStressAndStiffness (
+               e, getElementMaterial(e), amats, D, softIncomp, null,
+               myStressWorkspace);
+         }
+      }
+   }
+
+   /**
+    * Returns the workspaces used by each thread when computing element
+    * stresses in parallel. These are retained between calls, together with
+    * their material copies, until the number of threads changes.
+    */
+   protected FemStressWorkspace[] getThreadWorkspaces (int nthreads) {
+      if (myThreadWorkspaces == null ||
+          myThreadWorkspaces.length != nthreads) {
+         myThreadWorkspaces = new FemStressWorkspace[nthreads];
+         for (int t=0; t<nthreads; t++) {
+            myThreadWorkspaces[t] =
+               new FemStressWorkspace (/*copyMaterials=*/true);
+         }
+      }
+      return myThreadWorkspaces;
+   }
+
    // DIVBLK
    public void updateStressAndStiffness() {
       if (profileStressAndStiffness) {
          timerStart();
       }
+      long ptime = SolverPhaseTimer.start (Phase.StressAndStiffness);
       updateIntegrationIndices();
       // allocate or deallocate nodal incompressibility blocks
       setNodalIncompBlocksAllocated (getSoftIncompMethod()==IncompMethod.NODAL);
+      updateStiffnessStorage();
 
       // clear existing internal forces and maybe stiffnesses
+      boolean packed = (myStiffnessStorage != null);
+      if (packed && !myStiffnessesValidP) {
+         myStiffnessStorage.setZero();
+      }
       for (FemNode3d n : myNodes) {
          n.myInternalForce.setZero();
          if (n.myBackNode != null) {
             n.myBackNode.myInternalForce.setZero();
          }
-         if (!myStiffnessesValidP) {
+         if (!myStiffnessesValidP && !packed) {
             for (FemNodeNeighbor nbr : getNodeNeighbors(n)) {
                nbr.zeroStiffness();
             }
@@ -2807,7 +3465,7 @@ PointAttachable, ConnectableBody {
          }
       }
 
-      Matrix6d D = new Matrix6d();
+      Matrix6d D = myStressWorkspace.myD;
       // compute new forces as well as stiffness matrix if warping is enabled
 
       clearElementConditionInfo();
@@ -2816,34 +3474,53 @@ PointAttachable, ConnectableBody {
       FemElement3dBase minE = null;
 
       ArrayList<FemMaterial> amats = getAugmentingMaterials();
+      if (myUpdateTracker != null) {
+         myUpdateTracker.beginUpdate (
+            softIncomp, mySolveMatrixSymmetricP, !checkTangentStability);
+      }
 
-      for (FemElement3d e : myElements) {
-         FemMaterial mat = getElementMaterial(e);
-         computeStressAndStiffness(e, mat, amats, D, softIncomp);
-         if (checkTangentStability) {
-            double s = checkMatrixStability(D);
-            if (s < mins) {
-               mins = s;
-               minE = e;
-            }
-         }
+      if (myNumStressThreads > 1 && !checkTangentStability) {
+         computeElementStressesInParallel (
+            amats, softIncomp, /*stiffness=*/true);
       }
-      for (ShellElement3d e : myShellElements) {
-         FemMaterial mat = getElementMaterial(e);
-         if (e.getElementClass() == ElementClass.SHELL) {
-            computeShellStressAndStiffness(e, mat, amats, D);
+      else {
+         FemBatchStressEvaluator batch =
+            (checkTangentStability ? null : getBatchEvaluator (0));
+         for (FemElement3d e : myElements) {
+            FemMaterial mat = getElementMaterial(e);
+            computeElementStressAndStiffness(
+               e, mat, amats, D, softIncomp, batch, myStressWorkspace);
+            if (checkTangentStability) {
+               double s = checkMatrixStability(D);
+               if (s < mins) {
+                  mins = s;
+                  minE = e;
+               }
+            }
          }
-         else {
-            computeMembraneStressAndStiffness(e, mat, amats, D);
+         if (batch != null) {
+            batch.flush();
          }
-         if (checkTangentStability) {
-            double s = checkMatrixStability(D);
-            if (s < mins) {
-               mins = s;
-               minE = e;
+         for (ShellElement3d e : myShellElements) {
+            FemMaterial mat = getElementMaterial(e);
+            if (e.getElementClass() == ElementClass.SHELL) {
+               computeShellStressAndStiffness(e, mat, amats, D);
+            }
+            else {
+               computeMembraneStressAndStiffness(e, mat, amats, D);
+            }
+            if (checkTangentStability) {
+               double s = checkMatrixStability(D);
+               if (s < mins) {
+                  mins = s;
+                  minE = e;
+               }
             }
          }
-      }     
+      }
+      if (myUpdateTracker != null) {
+         myUpdateTracker.endUpdate();
+      }
 
       // incompressibility
       if ((softIncomp == IncompMethod.NODAL) && 
@@ -2895,6 +3572,7 @@ PointAttachable, ConnectableBody {
 
       myStiffnessesValidP = true;
       myStressesValidP = true;
+      SolverPhaseTimer.stop (Phase.StressAndStiffness, ptime);
       if (profileStressAndStiffness) {
          timerStop("stressAndStiffness");
       }
@@ -3034,7 +3712,7 @@ PointAttachable, ConnectableBody {
       return true;
    }
 
-   protected boolean areLinear (AuxiliaryMaterial[] mats) {
+   protected boolean areLinear (Collection<AuxiliaryMaterial> mats) {
       if (mats != null) {
          for (AuxiliaryMaterial amat : mats) {
             if (!amat.isLinear()) {
@@ -3073,25 +3751,32 @@ PointAttachable, ConnectableBody {
    }
 
    private int addAuxStressAndTangent (
-      SymmetricMatrix3d sigma, Matrix6d D, AuxiliaryMaterial[] mats,
+      SymmetricMatrix3d sigma, Matrix6d D, ArrayList<AuxiliaryMaterial> mats,
       FemDeformedPoint dpnt, IntegrationPoint3d pt,
-      IntegrationData3d dt, int ks) {
+      IntegrationData3d dt, int ks, FemStressWorkspace ws) {
 
       for (AuxiliaryMaterial amat : mats) {
-         SymmetricMatrix3d sigmaTmp = new SymmetricMatrix3d();
+         SymmetricMatrix3d sigmaTmp = ws.mySigmaTmp;
          // skip linear materials
          if (!amat.isLinear()) {
             MaterialStateObject state =
                (amat.hasState() ? dt.getStateObjects()[ks++] : null);
-            if (D != null) {
-               Matrix6d Dtmp = new Matrix6d();
-               amat.computeStressAndTangent (
-                  sigmaTmp, Dtmp, dpnt, pt, dt, state);
-               D.add (Dtmp);
+            Matrix6d Dtmp = (D != null ? ws.myDtmp : null);
+            if (ws.copiesMaterials() && amat instanceof MuscleElementDesc) {
+               // use a thread-specific muscle material and stored excitation
+               MuscleElementDesc desc = (MuscleElementDesc)amat;
+               MuscleMaterial mat = (MuscleMaterial)ws.getMaterial (
+                  desc.getEffectiveMuscleMaterial());
+               desc.computeStressAndTangent (
+                  sigmaTmp, Dtmp, dpnt, pt, state,
+                  mat, desc.myStoredExcitation);
             }
             else {
                amat.computeStressAndTangent (
-                  sigmaTmp, null, dpnt, pt, dt, state);
+                  sigmaTmp, Dtmp, dpnt, pt, dt, state);
+            }
+            if (D != null) {
+               D.add (Dtmp);
             }
             sigma.add(sigmaTmp);
          }
@@ -3103,6 +3788,22 @@ PointAttachable, ConnectableBody {
    public void computeStressAndStiffness (
       FemElement3d e, FemMaterial mat, ArrayList<FemMaterial> amats, 
       Matrix6d D, IncompMethod softIncomp) {
+      computeStressAndStiffness (
+         e, mat, amats, D, softIncomp, myStressWorkspace);
+   }
+
+   /**
+    * Version of {@link
+    * #computeStressAndStiffness(FemElement3d,FemMaterial,ArrayList,Matrix6d,IncompMethod)}
+    * that uses the workspace <code>ws</code>, which must not be in use by
+    * any other thread. If <code>ws</code> contains thread-specific material
+    * copies, the muscle materials of the element's muscle descriptors are
+    * replaced by their copies and evaluated using the net excitations stored
+    * for each descriptor.
+    */
+   protected void computeStressAndStiffness (
+      FemElement3d e, FemMaterial mat, ArrayList<FemMaterial> amats, 
+      Matrix6d D, IncompMethod softIncomp, FemStressWorkspace ws) {
 
       IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
       IntegrationData3d[] idata = e.getIntegrationData();
@@ -3116,9 +3817,9 @@ PointAttachable, ConnectableBody {
          softIncomp = IncompMethod.OFF;
       }
       
-      FemDeformedPoint dpnt = new FemDeformedPoint();
-      SymmetricMatrix3d sigma = new SymmetricMatrix3d();
-      Matrix3d invJ = new Matrix3d();
+      FemDeformedPoint dpnt = ws.myDpnt;
+      SymmetricMatrix3d sigma = ws.mySigma;
+      Matrix3d invJ = ws.myInvJ;
       
       //===========================================
       // linear material optimizations
@@ -3141,6 +3842,7 @@ PointAttachable, ConnectableBody {
 
          // add force and stiffness
          int needsStressStrain = 0;
+         Matrix3d Kwarp = null; // used if stiffness storage is packed
          for (int i = 0; i < nodes.length; i++) {
             FemNode3d ni = nodes[i];
             int bi = ni.getLocalSolveIndex();
@@ -3149,7 +3851,18 @@ PointAttachable, ConnectableBody {
                   for (int j = 0; j < nodes.length; j++) {
                      int bj = nodes[j].getLocalSolveIndex();
                      if (!mySolveMatrixSymmetricP || bj >= bi) {
-                        warper.addNodeStiffness(e.myNbrs[i][j].getK00(), i, j);
+                        FemNodeNeighbor nbr = e.myNbrs[i][j];
+                        if (nbr.myOff00 != -1) {
+                           if (Kwarp == null) {
+                              Kwarp = new Matrix3d();
+                           }
+                           Kwarp.setZero();
+                           warper.addNodeStiffness(Kwarp, i, j);
+                           nbr.addK00 (Kwarp);
+                        }
+                        else {
+                           warper.addNodeStiffness(nbr.myK00, i, j);
+                        }
                      }
                   }
                }
@@ -3171,7 +3884,7 @@ PointAttachable, ConnectableBody {
       if (mat.isLinear() &&
           areLinear(amats) &&
           areLinear(e.getAugmentingMaterials()) &&
-          areLinear(e.getAuxiliaryMaterials())) {
+          areLinear(e.myAuxMaterials)) {
          return;
       }
 
@@ -3182,23 +3895,21 @@ PointAttachable, ConnectableBody {
       // non-linear materials
       //===========================================
 
-      // temporary stress and tangent
-      SymmetricMatrix3d sigmaTmp = new SymmetricMatrix3d();
-      Matrix6d Dtmp = null;
-      if (D != null) {
-         Dtmp = new Matrix6d();
-      }
-
       // incompressibility
       IncompressibleMaterialBase imat = mat.getIncompressibleComponent();
 
       MatrixBlock[] constraints = null;
-      SymmetricMatrix3d C = new SymmetricMatrix3d();
 
-      // initialize incompressible pressure
-      double[] pbuf = myPressures.getBuffer();
+      // initialize incompressible pressure. Pressures, Rinv and GNx are
+      // kept in the workspace so that elements can be processed concurrently.
+      VectorNd pressures = null;
+      MatrixNd Rinv = null;
+      double[] pbuf = null;
       if (softIncomp == IncompMethod.ELEMENT) {
-         computePressuresAndRinv (e, imat, dpnt);
+         pressures = ws.myPressures;
+         Rinv = ws.myRinv;
+         computePressuresAndRinv (e, imat, dpnt, pressures, Rinv);
+         pbuf = pressures.getBuffer();
          if (D != null) {
             constraints = e.getIncompressConstraints();
             for (int i = 0; i < e.myNodes.length; i++) {
@@ -3219,6 +3930,8 @@ PointAttachable, ConnectableBody {
       // cache invertible flag
       boolean invertible = (e.materialsAreInvertible() && areInvertible(amats));
 
+      Vector3d[] GNx = ws.getShapeGradients (nodes.length);
+
       // loop through each integration point
       for (int k = 0; k < ipnts.length; k++) {
          IntegrationPoint3d pt = ipnts[k];
@@ -3229,11 +3942,11 @@ PointAttachable, ConnectableBody {
          dpnt.setFromIntegrationPoint (pt, dt, null, e, k);
 
          double detJ = invJ.fastInvert(dpnt.getJ()); // pt.computeInverseJacobian();
-         checkElementCondition (e, detJ, !invertible);
+         checkElementCondition (e, detJ, !invertible, ws);
 
          // compute shape function gradient and volume fraction
          double dv = detJ * pt.getWeight();
-         Vector3d[] GNx = pt.updateShapeGradient(invJ);
+         pt.computeShapeGradient(invJ, GNx);
 
          // compute pressure
          double pressure = 0;
@@ -3301,7 +4014,7 @@ PointAttachable, ConnectableBody {
 
          // other materials. 
          ArrayList<FemMaterial> augmats;
-         AuxiliaryMaterial[] auxmats;
+         ArrayList<AuxiliaryMaterial> auxmats;
          // reset pressure to zero
          dpnt.setAveragePressure(0);
          if (amats != null) {
@@ -3310,61 +4023,38 @@ PointAttachable, ConnectableBody {
          if ((augmats=e.getAugmentingMaterials()) != null) {
             ks = addStressAndTangent (sigma, D, augmats, dpnt, dt, ks);
          }
-         if ((auxmats=e.getAuxiliaryMaterials()) != null) {
-            ks = addAuxStressAndTangent (sigma, D, auxmats, dpnt, pt, dt, ks);
+         if ((auxmats=e.myAuxMaterials) != null) {
+            ks = addAuxStressAndTangent (
+               sigma, D, auxmats, dpnt, pt, dt, ks, ws);
          }
 
          // XXX only uses non-linear stress
          dpnt.setAveragePressure(pressure);
 
          // sum stress/stiffness contributions to each node
-         for (int i = 0; i < e.myNodes.length; i++) {
-            FemNode3d nodei = e.myNodes[i];
-            int bi = nodei.getLocalSolveIndex();
-
-            FemUtilities.addStressForce(
-               nodei.myInternalForce, GNx[i], sigma, dv);
-
-            if (D != null) {              
-               double p = 0;
-               double kp = 0;
-               if (softIncomp == IncompMethod.ELEMENT) {
-                  FemUtilities.addToIncompressConstraints(
-                     constraints[i], H, GNx[i], dv);
-                  p = pressure;
-               }
-               else if (softIncomp == IncompMethod.FULL) {
-                  double dV = dt.getDetJ0() * pt.getWeight();
-                  kp = imat.getEffectiveModulus(K, detJ / dt.getDetJ0()) * dV;
-                  p = pressure;
-               }
-
-               // compute stiffness
-               if (bi != -1) {
-                  for (int j = 0; j < e.myNodes.length; j++) {
-                     int bj = e.myNodes[j].getLocalSolveIndex();
-                     if (!mySolveMatrixSymmetricP || bj >= bi) {
-                        FemNodeNeighbor nbr = e.myNbrs[i][j];
-                        nbr.addMaterialStiffness (GNx[i], D, GNx[j], dv);
-                        nbr.addGeometricStiffness (GNx[i], sigma, GNx[j], dv);
-                        nbr.addPressureStiffness (GNx[i], p, GNx[j], dv);   
-                        if (kp != 0) {
-                           nbr.addDilationalStiffness (kp, GNx[i], GNx[j]);
-                        }
-                     }
-                  }
-               }
-            } // if D != null
+         double p = 0;
+         double kp = 0;
+         if (softIncomp == IncompMethod.ELEMENT) {
+            p = pressure;
+         }
+         else if (softIncomp == IncompMethod.FULL) {
+            double dV = dt.getDetJ0() * pt.getWeight();
+            kp = imat.getEffectiveModulus(K, detJ / dt.getDetJ0()) * dV;
+            p = pressure;
+         }
+         addPointStressAndStiffness (
+            e, GNx, sigma, D, dv, p, kp, H, constraints);
 
-            // nodal stress/strain
-            if (nodalExtrapMat != null) {
+         // nodal stress/strain
+         if (nodalExtrapMat != null) {
+            for (int i = 0; i < e.myNodes.length; i++) {
                double a = nodalExtrapMat[i*ipnts.length + k];
                if (a != 0) {
                   accumulateNonlinearNodalStressStrain (
-                     nodei, a, sigma, mat, dpnt);
+                     e.myNodes[i], a, sigma, mat, dpnt);
                }
             }
-         } // looping through nodes computing stress
+         }
 
          // nodal incompressibility constraints
          if (D != null && softIncomp == IncompMethod.NODAL &&
@@ -3397,33 +4087,108 @@ PointAttachable, ConnectableBody {
       } // end looping through integration points
 
       if (D != null) {
-         if (softIncomp == IncompMethod.NODAL && e instanceof TetElement) {
-            // tet nodal incompressibility
-            ((TetElement)e).getAreaWeightedNormals(myNodalConstraints);
-            for (int i = 0; i < 4; i++) {
-               myNodalConstraints[i].scale(-1 / 12.0);
-            }
+         addIncompressibilityStiffness (
+            e, softIncomp, Rinv, constraints, ws.myNodalConstraints);
+      }
+   }
 
-            for (int i=0; i<e.numNodes(); ++i) {
-               for (FemNodeNeighbor nbr : getNodeNeighbors(e.myNodes[i])) {
-                  int j = e.getLocalNodeIndex(nbr.myNode);
-                  if (j != -1) {
-                     nbr.myDivBlk.scaledAdd(1, myNodalConstraints[j]);
+   /**
+    * Adds the contributions of the stress and tangent at a single
+    * integration point to the internal forces of an element's nodes and, if
+    * <code>D</code> is non-<code>null</code>, to the stiffness blocks
+    * between those nodes.
+    *
+    * @param e element containing the integration point
+    * @param GNx shape function gradients at the integration point
+    * @param sigma stress at the integration point
+    * @param D if non-<code>null</code>, tangent at the integration point
+    * @param dv integration weight times the Jacobian determinant
+    * @param p pressure used in computing the pressure stiffness
+    * @param kp if non-zero, scale factor for the dilational stiffness
+    * (used for FULL soft incompressibility)
+    * @param H pressure weights, needed for ELEMENT soft incompressibility
+    * @param constraints if non-<code>null</code>, element incompressibility
+    * constraints to be updated using <code>H</code>
+    */
+   protected void addPointStressAndStiffness (
+      FemElement3d e, Vector3d[] GNx, SymmetricMatrix3d sigma, Matrix6d D,
+      double dv, double p, double kp, double[] H, MatrixBlock[] constraints) {
+
+      for (int i = 0; i < e.myNodes.length; i++) {
+         FemNode3d nodei = e.myNodes[i];
+         int bi = nodei.getLocalSolveIndex();
+
+         FemUtilities.addStressForce(
+            nodei.myInternalForce, GNx[i], sigma, dv);
+
+         if (D != null) {              
+            if (constraints != null) {
+               FemUtilities.addToIncompressConstraints(
+                  constraints[i], H, GNx[i], dv);
+            }
+            // compute stiffness
+            if (bi != -1) {
+               for (int j = 0; j < e.myNodes.length; j++) {
+                  int bj = e.myNodes[j].getLocalSolveIndex();
+                  if (!mySolveMatrixSymmetricP || bj >= bi) {
+                     FemNodeNeighbor nbr = e.myNbrs[i][j];
+                     nbr.addMaterialStiffness (GNx[i], D, GNx[j], dv);
+                     nbr.addGeometricStiffness (GNx[i], sigma, GNx[j], dv);
+                     nbr.addPressureStiffness (GNx[i], p, GNx[j], dv);   
+                     if (kp != 0) {
+                        nbr.addDilationalStiffness (kp, GNx[i], GNx[j]);
+                     }
                   }
                }
             }
+         } // if D != null
+      }
+   }
+
+   /**
+    * Adds the stiffness terms for soft incompressibility that are computed
+    * once per element, after all its integration points have been
+    * processed. This includes the nodal incompressibility constraints for
+    * tet elements with NODAL incompressibility, and the dilational stiffness
+    * for ELEMENT incompressibility.
+    *
+    * @param e element being processed
+    * @param softIncomp soft incompressibility method
+    * @param Rinv inverse pressure stiffness, for ELEMENT incompressibility
+    * @param constraints incompressibility constraints, for ELEMENT
+    * incompressibility
+    * @param nodalConstraints workspace of at least four vectors, used for
+    * tet NODAL incompressibility
+    */
+   protected void addIncompressibilityStiffness (
+      FemElement3d e, IncompMethod softIncomp, MatrixNd Rinv,
+      MatrixBlock[] constraints, Vector3d[] nodalConstraints) {
+      if (softIncomp == IncompMethod.NODAL && e instanceof TetElement) {
+         // tet nodal incompressibility
+         ((TetElement)e).getAreaWeightedNormals(nodalConstraints);
+         for (int i = 0; i < 4; i++) {
+            nodalConstraints[i].scale(-1 / 12.0);
+         }
+
+         for (int i=0; i<e.numNodes(); ++i) {
+            for (FemNodeNeighbor nbr : getNodeNeighbors(e.myNodes[i])) {
+               int j = e.getLocalNodeIndex(nbr.myNode);
+               if (j != -1) {
+                  nbr.myDivBlk.scaledAdd(1, nodalConstraints[j]);
+               }
+            }
          }
-         else if (softIncomp == IncompMethod.ELEMENT) {
-            // element-wise incompressibility
-            for (int i = 0; i < e.myNodes.length; i++) {
-               int bi = e.myNodes[i].getLocalSolveIndex();
-               if (bi != -1) {
-                  for (int j = 0; j < e.myNodes.length; j++) {
-                     int bj = e.myNodes[j].getLocalSolveIndex();
-                     if (!mySolveMatrixSymmetricP || bj >= bi) {
-                        e.myNbrs[i][j].addDilationalStiffness(
-                           myRinv, constraints[i], constraints[j]);
-                     }
+      }
+      else if (softIncomp == IncompMethod.ELEMENT) {
+         // element-wise incompressibility
+         for (int i = 0; i < e.myNodes.length; i++) {
+            int bi = e.myNodes[i].getLocalSolveIndex();
+            if (bi != -1) {
+               for (int j = 0; j < e.myNodes.length; j++) {
+                  int bj = e.myNodes[j].getLocalSolveIndex();
+                  if (!mySolveMatrixSymmetricP || bj >= bi) {
+                     e.myNbrs[i][j].addDilationalStiffness(
+                        Rinv, constraints[i], constraints[j]);
                   }
                }
             }
@@ -3434,6 +4199,16 @@ PointAttachable, ConnectableBody {
    protected void computeShellStressAndStiffness(
       ShellElement3d e, FemMaterial mat,
       ArrayList<FemMaterial> amats, Matrix6d D) {
+      computeShellStressAndStiffness (e, mat, amats, D, myStressWorkspace);
+   }
+
+   /**
+    * Version of {@link #computeShellStressAndStiffness} that uses the
+    * workspace <code>ws</code> of the calling thread.
+    */
+   protected void computeShellStressAndStiffness(
+      ShellElement3d e, FemMaterial mat,
+      ArrayList<FemMaterial> amats, Matrix6d D, FemStressWorkspace ws) {
 
       IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
       IntegrationData3d[] idata = e.getIntegrationData();
@@ -3488,7 +4263,7 @@ PointAttachable, ConnectableBody {
       if (mat.isLinear() &&
           areLinear(amats) &&
           areLinear(e.getAugmentingMaterials()) &&
-          areLinear(e.getAuxiliaryMaterials())) {
+          areLinear(e.myAuxMaterials)) {
          return;
       }
       
@@ -3522,15 +4297,7 @@ PointAttachable, ConnectableBody {
             
          dpnt.setFromIntegrationPoint (pt, dt, null, e, k%nump);
          double detJ = invJ.fastInvert (dpnt.getJ());
-         if (detJ < myMinDetJ) {
-            myMinDetJ = detJ;
-            myMinDetJElement = e;
-         }
-         // SKIPPED
-         if (detJ <= 0 && !invertible) {
-            e.setInverted(true);
-            myNumInverted++;
-         }
+         checkElementCondition (e, detJ, !invertible, ws);
 
          double t = pt.getCoords().z;
          double dv = detJ * pt.getWeight();
@@ -3553,7 +4320,7 @@ PointAttachable, ConnectableBody {
 
          // other materials. 
          ArrayList<FemMaterial> augmats;
-         AuxiliaryMaterial[] auxmats;
+         ArrayList<AuxiliaryMaterial> auxmats;
          // reset pressure to zero
          dpnt.setAveragePressure(0);
          if (amats != null) {
@@ -3562,8 +4329,9 @@ PointAttachable, ConnectableBody {
          if ((augmats=e.getAugmentingMaterials()) != null) {
             ks = addStressAndTangent (sigma, D, augmats, dpnt, dt, ks);
          }
-         if ((auxmats=e.getAuxiliaryMaterials()) != null) {
-            ks = addAuxStressAndTangent (sigma, D, auxmats, dpnt, pt, dt, ks);
+         if ((auxmats=e.myAuxMaterials) != null) {
+            ks = addAuxStressAndTangent (
+               sigma, D, auxmats, dpnt, pt, dt, ks, ws);
          }
 
          for (int i = 0; i < e.myNodes.length; i++) {
@@ -3613,6 +4381,16 @@ PointAttachable, ConnectableBody {
    protected void computeMembraneStressAndStiffness(
       ShellElement3d e, FemMaterial mat,
       ArrayList<FemMaterial> amats, Matrix6d D) {
+      computeMembraneStressAndStiffness (e, mat, amats, D, myStressWorkspace);
+   }
+
+   /**
+    * Version of {@link #computeMembraneStressAndStiffness} that uses the
+    * workspace <code>ws</code> of the calling thread.
+    */
+   protected void computeMembraneStressAndStiffness(
+      ShellElement3d e, FemMaterial mat,
+      ArrayList<FemMaterial> amats, Matrix6d D, FemStressWorkspace ws) {
 
       IntegrationPoint3d[] ipnts = e.getIntegrationPoints();
       IntegrationData3d[] idata = e.getIntegrationData();
@@ -3666,7 +4444,7 @@ PointAttachable, ConnectableBody {
       if (mat.isLinear() &&
           areLinear(amats) &&
           areLinear(e.getAugmentingMaterials()) &&
-          areLinear(e.getAuxiliaryMaterials())) {
+          areLinear(e.myAuxMaterials)) {
          return;
       }
       
@@ -3700,15 +4478,7 @@ PointAttachable, ConnectableBody {
             
          dpnt.setFromIntegrationPoint (pt, dt, null, e, k);
          double detJ = invJ.fastInvert (dpnt.getJ());
-         if (detJ < myMinDetJ) {
-            myMinDetJ = detJ;
-            myMinDetJElement = e;
-         }
-         // SKIPPED
-         if (detJ <= 0 && !invertible) {
-            e.setInverted(true);
-            myNumInverted++;
-         }
+         checkElementCondition (e, detJ, !invertible, ws);
 
          double dv = detJ*pt.getWeight()*e.getDefaultThickness();
          Vector3d[] dNs = pt.getGNs();
@@ -3729,7 +4499,7 @@ PointAttachable, ConnectableBody {
 
          // other materials. 
          ArrayList<FemMaterial> augmats;
-         AuxiliaryMaterial[] auxmats;
+         ArrayList<AuxiliaryMaterial> auxmats;
          // reset pressure to zero
          dpnt.setAveragePressure(0);
          if (amats != null) {
@@ -3738,8 +4508,9 @@ PointAttachable, ConnectableBody {
          if ((augmats=e.getAugmentingMaterials()) != null) {
             ks = addStressAndTangent (sigma, D, augmats, dpnt, dt, ks);
          }
-         if ((auxmats=e.getAuxiliaryMaterials()) != null) {
-            ks = addAuxStressAndTangent (sigma, D, auxmats, dpnt, pt, dt, ks);
+         if ((auxmats=e.myAuxMaterials) != null) {
+            ks = addAuxStressAndTangent (
+               sigma, D, auxmats, dpnt, pt, dt, ks, ws);
          }
 
          for (int i = 0; i < e.myNodes.length; i++) {
@@ -4186,6 +4957,7 @@ PointAttachable, ConnectableBody {
          }
          // XXX signal structure change for solve matrix
          myNodalIncompBlocksAllocatedP = allocated;
+         myStiffnessStorageValidP = false;
          return true;
       }
       else {
@@ -4283,6 +5055,23 @@ PointAttachable, ConnectableBody {
       }
    }
 
+   /**
+    * Version of {@link #checkElementCondition(FemElement3dBase,double,boolean)}
+    * used while computing element stresses. If <code>ws</code> is one of
+    * the thread workspaces, the condition is recorded in the workspace, to be
+    * combined with that of the other threads once they are finished.
+    */
+   boolean checkElementCondition (
+      FemElement3dBase e, double detJ, boolean recordInversion,
+      FemStressWorkspace ws) {
+      if (ws != null && ws != myStressWorkspace) {
+         return ws.checkElementCondition (e, detJ, recordInversion);
+      }
+      else {
+         return checkElementCondition (e, detJ, recordInversion);
+      }
+   }
+
    public PointAttachment createPointAttachment (Point pnt) {
       return createPointAttachment (pnt, /*reduceTol=*/1e-8);
    }
@@ -5258,6 +6047,17 @@ PointAttachable, ConnectableBody {
       fem.myNodalIncompBlocksAllocatedP = false;
       fem.myNodalIncompConstraintsAllocatedP = false;
 
+      fem.myStressWorkers = null;
+      fem.myElementColoring = null;
+      fem.myStressWorkspace = new FemStressWorkspace (/*copyMaterials=*/false);
+      fem.myThreadWorkspaces = null;
+      fem.myStiffnessStorage = null;
+      fem.myStiffnessStorageValidP = false;
+      fem.myBatchEvaluators = null;
+      fem.myReducedSolver = null;
+      fem.myUpdateTracker = null;
+      fem.setLazyUpdateTolerance (myLazyUpdateTolerance);
+
       fem.myPressures = new VectorNd(MAX_PRESSURE_VALS);
       fem.myKp = new double[MAX_PRESSURE_VALS];
       fem.myNodalConstraints = new Vector3d[MAX_NODAL_INCOMP_NODES];
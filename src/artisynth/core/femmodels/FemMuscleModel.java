@@ -425,6 +425,7 @@ public class FemMuscleModel extends FemModel3d implements ExcitationComponent {
       MuscleMaterial old = myMuscleMat;
       myMuscleMat = (MuscleMaterial)MaterialBase.updateMaterial(
          this, "muscleMaterial", myMuscleMat, mat);
+      notifyMaterialsChanged();
       // issue change event in case solve matrix symmetry or state has changed:
       MaterialChangeEvent mce = 
          MaterialBase.symmetryOrStateChanged ("muscleMaterial", mat, old);
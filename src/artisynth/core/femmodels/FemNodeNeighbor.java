@@ -33,27 +33,52 @@ public class FemNodeNeighbor {
    protected Matrix3x1Block myDivBlk;
    // Matrix3x1Block myDivBlk1;
 
-   public void zeroStiffness() {
-      myK00.setZero();
-      if (myKX != null) {
-         myKX.setZero();
+   // Packed storage for the stiffness blocks, if any. A block whose offset
+   // is not -1 is stored in myStorage at that offset, and its corresponding
+   // Matrix3d field is null. All neighbors within a model use the same
+   // storage mode.
+   protected FemStiffnessStorage myStorage;
+   protected int myOff00 = -1;
+   protected int myOffX = -1;
+   protected int myOff01 = -1;
+   protected int myOff10 = -1;
+   protected int myOff11 = -1;
+
+   private void setZero (Matrix3d K, int off) {
+      if (off != -1) {
+         myStorage.setZero (off);
       }
-      if (myK01 != null) {
-         myK01.setZero();
-         myK10.setZero();
-         myK11.setZero();
+      else if (K != null) {
+         K.setZero();
+      }
+   }
+
+   public void zeroStiffness() {
+      setZero (myK00, myOff00);
+      setZero (myKX, myOffX);
+      if (hasDirectorStorage()) {
+         setZero (myK01, myOff01);
+         setZero (myK10, myOff10);
+         setZero (myK11, myOff11);
       }
    }
    
    public boolean hasDirectorStorage() {
-      return myK01 != null;
+      return myK01 != null || myOff01 != -1;
    }
    
    protected void allocateDirectorStorage () {
       if (!hasDirectorStorage()) {
-         myK01 = new Matrix3d();
-         myK10 = new Matrix3d();
-         myK11 = new Matrix3d();
+         if (myStorage != null) {
+            myOff01 = myStorage.allocateBlock();
+            myOff10 = myStorage.allocateBlock();
+            myOff11 = myStorage.allocateBlock();
+         }
+         else {
+            myK01 = new Matrix3d();
+            myK10 = new Matrix3d();
+            myK11 = new Matrix3d();
+         }
       }
    }
    
@@ -62,23 +87,205 @@ public class FemNodeNeighbor {
          myK01 = null;
          myK10 = null;
          myK11 = null;
+         myOff01 = -1;
+         myOff10 = -1;
+         myOff11 = -1;
       }
    }
-   
+
+   boolean hasKX() {
+      return myKX != null || myOffX != -1;
+   }
+
+   private void allocateKXIfNecessary() {
+      if (!hasKX()) {
+         myKX = new Matrix3d();
+      }
+   }
+
+   /**
+    * Returns a block as a Matrix3d. Packed blocks are returned as a copy.
+    */
+   private Matrix3d getBlock (Matrix3d K, int off) {
+      if (off != -1) {
+         Matrix3d Kcopy = new Matrix3d();
+         myStorage.get (Kcopy, off);
+         return Kcopy;
+      }
+      else {
+         return K;
+      }
+   }
+
+   /**
+    * Returns the stiffness block for this neighbor. If the block is stored
+    * in a {@link FemStiffnessStorage}, a copy is returned, and changes to it
+    * will not affect the stiffness.
+    *
+    * @return stiffness block
+    */
    public Matrix3d getK00()  {
-      return myK00;
+      return getBlock (myK00, myOff00);
    }
    
    public Matrix3d getK01()  {
-      return myK01;
+      return getBlock (myK01, myOff01);
    }
    
    public Matrix3d getK10()  {
-      return myK10;
+      return getBlock (myK10, myOff10);
    }
    
    public Matrix3d getK11()  {
-      return myK11;
+      return getBlock (myK11, myOff11);
+   }
+
+   /**
+    * Adds a matrix to the stiffness block for this neighbor.
+    *
+    * @param K matrix to add
+    */
+   public void addK00 (Matrix3d K) {
+      addBlock (myK00, myOff00, K);
+   }
+
+   public void addK01 (Matrix3d K) {
+      addBlock (myK01, myOff01, K);
+   }
+
+   public void addK10 (Matrix3d K) {
+      addBlock (myK10, myOff10, K);
+   }
+
+   public void addK11 (Matrix3d K) {
+      addBlock (myK11, myOff11, K);
+   }
+
+   private void addBlock (Matrix3d Kblk, int off, Matrix3d K) {
+      if (off != -1) {
+         myStorage.add (off, K);
+      }
+      else {
+         Kblk.add (K);
+      }
+   }
+
+   /**
+    * Adds <code>s</code> times the stiffness block for this neighbor to a
+    * 3x3 block stored in row-major order within <code>buf</code>, starting
+    * at <code>idx</code>. If <code>x</code> is <code>true</code>, the block
+    * used is the one not subject to stiffness damping.
+    */
+   void scaledAddStiffnessTo (double[] buf, int idx, double s, boolean x) {
+      Matrix3d K = (x ? myKX : myK00);
+      int off = (x ? myOffX : myOff00);
+      if (off != -1) {
+         double[] v = myStorage.getValues();
+         for (int k=0; k<9; k++) {
+            buf[idx+k] += s*v[off+k];
+         }
+      }
+      else if (K != null) {
+         buf[idx  ] += s*K.m00; buf[idx+1] += s*K.m01; buf[idx+2] += s*K.m02;
+         buf[idx+3] += s*K.m10; buf[idx+4] += s*K.m11; buf[idx+5] += s*K.m12;
+         buf[idx+6] += s*K.m20; buf[idx+7] += s*K.m21; buf[idx+8] += s*K.m22;
+      }
+   }
+
+   /**
+    * Adds a 3x3 block stored in row-major order within <code>buf</code>,
+    * starting at <code>idx</code>, to the stiffness block for this
+    * neighbor. If <code>x</code> is <code>true</code>, the block is added to
+    * the block not subject to stiffness damping, which is allocated if
+    * necessary.
+    */
+   void addStiffnessFrom (double[] buf, int idx, boolean x) {
+      if (x) {
+         allocateKXIfNecessary();
+      }
+      Matrix3d K = (x ? myKX : myK00);
+      int off = (x ? myOffX : myOff00);
+      if (off != -1) {
+         double[] v = myStorage.getValues();
+         for (int k=0; k<9; k++) {
+            v[off+k] += buf[idx+k];
+         }
+      }
+      else {
+         K.m00 += buf[idx  ]; K.m01 += buf[idx+1]; K.m02 += buf[idx+2];
+         K.m10 += buf[idx+3]; K.m11 += buf[idx+4]; K.m12 += buf[idx+5];
+         K.m20 += buf[idx+6]; K.m21 += buf[idx+7]; K.m22 += buf[idx+8];
+      }
+   }
+
+   /**
+    * Returns the packed storage for the stiffness blocks of this neighbor,
+    * or <code>null</code> if the blocks are stored in separate matrices.
+    *
+    * @return packed stiffness storage
+    */
+   public FemStiffnessStorage getStiffnessStorage() {
+      return myStorage;
+   }
+
+   private int packBlock (Matrix3d K) {
+      int off = myStorage.allocateBlock();
+      if (K != null) {
+         myStorage.set (off, K);
+      }
+      return off;
+   }
+
+   /**
+    * Moves the stiffness blocks of this neighbor into packed storage, or,
+    * if <code>storage</code> is <code>null</code>, back into separate
+    * matrices. Current block values are preserved.
+    *
+    * @param storage packed storage for the blocks, or <code>null</code>
+    * @param allocateKX if <code>true</code> and <code>storage</code> is
+    * non-null, storage is allocated for the stiffness block that is not
+    * subject to stiffness damping, even if it is not yet in use
+    */
+   protected void setStiffnessStorage (
+      FemStiffnessStorage storage, boolean allocateKX) {
+      boolean hasDirector = hasDirectorStorage();
+      Matrix3d K00 = getK00();
+      Matrix3d KX = getBlock (myKX, myOffX);
+      Matrix3d K01 = null;
+      Matrix3d K10 = null;
+      Matrix3d K11 = null;
+      if (hasDirector) {
+         K01 = getK01();
+         K10 = getK10();
+         K11 = getK11();
+      }
+      myStorage = storage;
+      if (storage != null) {
+         myOff00 = packBlock (K00);
+         myOffX = (KX != null || allocateKX) ? packBlock (KX) : -1;
+         if (hasDirector) {
+            myOff01 = packBlock (K01);
+            myOff10 = packBlock (K10);
+            myOff11 = packBlock (K11);
+         }
+         myK00 = null;
+         myKX = null;
+         myK01 = null;
+         myK10 = null;
+         myK11 = null;
+      }
+      else {
+         myK00 = K00;
+         myKX = KX;
+         myK01 = K01;
+         myK10 = K10;
+         myK11 = K11;
+         myOff00 = -1;
+         myOffX = -1;
+         myOff01 = -1;
+         myOff10 = -1;
+         myOff11 = -1;
+      }
    }
    
    public Matrix3x1Block getDivBlk() {
@@ -94,17 +301,32 @@ public class FemNodeNeighbor {
     * the stiffness components of another node neighbour. 
     */
    public void setTransposedStiffness (FemNodeNeighbor nbr) {
-      myK00.transpose (nbr.myK00);
-      if (nbr.myKX != null) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
-         }
-         myKX.transpose (nbr.myKX);
+      setTransposedBlock (myK00, myOff00, nbr, nbr.myK00, nbr.myOff00);
+      if (nbr.hasKX()) {
+         allocateKXIfNecessary();
+         setTransposedBlock (myKX, myOffX, nbr, nbr.myKX, nbr.myOffX);
       }
-      if (nbr.myK01 != null) {
-         myK01.transpose (nbr.myK10);
-         myK10.transpose (nbr.myK01);
-         myK11.transpose (nbr.myK11);
+      if (nbr.hasDirectorStorage()) {
+         setTransposedBlock (myK01, myOff01, nbr, nbr.myK10, nbr.myOff10);
+         setTransposedBlock (myK10, myOff10, nbr, nbr.myK01, nbr.myOff01);
+         setTransposedBlock (myK11, myOff11, nbr, nbr.myK11, nbr.myOff11);
+      }
+   }
+
+   private void setTransposedBlock (
+      Matrix3d K, int off, FemNodeNeighbor nbr, Matrix3d KT, int offT) {
+      if (off != -1 && offT != -1 && myStorage == nbr.myStorage) {
+         myStorage.setTranspose (off, offT);
+      }
+      else {
+         Matrix3d Kt = new Matrix3d();
+         Kt.transpose (nbr.getBlock (KT, offT));
+         if (off != -1) {
+            myStorage.set (off, Kt);
+         }
+         else {
+            K.set (Kt);
+         }
       }
    }
    
@@ -183,6 +405,15 @@ public class FemNodeNeighbor {
       }
    }
 
+   private void scaledAddBlock (Matrix3d blk, double s, Matrix3d K, int off) {
+      if (off != -1) {
+         myStorage.scaledAddTo (blk, s, off);
+      }
+      else {
+         blk.scaledAdd (s, K, blk);
+      }
+   }
+
    private void addMassDamping (Matrix3d blk, double d) {
       blk.m00 += d;
       blk.m11 += d;
@@ -196,7 +427,7 @@ public class FemNodeNeighbor {
       Matrix3x3Block blk;
       if (myBlkNum != -1) {
          blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum);
-         blk.scaledAdd (sk, myK00, blk);
+         scaledAddBlock (blk, sk, myK00, myOff00);
          if (useConsistentMass && myNode.isActiveLocal()) {
             addMassDamping (blk, sm*myMass00);
          }
@@ -206,15 +437,15 @@ public class FemNodeNeighbor {
       }
       if (myBlkNum01 != -1) {
          blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum01);
-         blk.scaledAdd (sk, myK01, blk);
+         scaledAddBlock (blk, sk, myK01, myOff01);
 
          if (myBlkNum10 != -1) {
             blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum10);
-            blk.scaledAdd (sk, myK10, blk);
+            scaledAddBlock (blk, sk, myK10, myOff10);
          }
          if (myBlkNum11 != -1) {
             blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum11);
-            blk.scaledAdd (sk, myK11, blk);
+            scaledAddBlock (blk, sk, myK11, myOff11);
             if (node == myNode && node.isActiveLocal()) {
                addMassDamping (blk, sm*myNode.getBackNode().getMass());
             }
@@ -228,22 +459,22 @@ public class FemNodeNeighbor {
       Matrix3x3Block blk;
       if (myBlkNum != -1) {
          blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum);
-         blk.scaledAdd (s, myK00, blk);
-         if (myKX != null) {
-            blk.scaledAdd (s, myKX, blk);
+         scaledAddBlock (blk, s, myK00, myOff00);
+         if (hasKX()) {
+            scaledAddBlock (blk, s, myKX, myOffX);
          }
       }
       if (myBlkNum01 != -1) {
          blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum01);
-         blk.scaledAdd (s, myK01, blk);
+         scaledAddBlock (blk, s, myK01, myOff01);
 
          if (myBlkNum10 != -1) {
             blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum10);
-            blk.scaledAdd (s, myK10, blk);
+            scaledAddBlock (blk, s, myK10, myOff10);
          }
          if (myBlkNum11 != -1) {
             blk = (Matrix3x3Block)S.getBlockByNumber(myBlkNum11);
-            blk.scaledAdd (s, myK11, blk);
+            scaledAddBlock (blk, s, myK11, myOff11);
          }
       }
    }
@@ -252,9 +483,18 @@ public class FemNodeNeighbor {
     * @deprecated 
     */
    public void addPosJacobian (Matrix3d blk, double s) {
-      blk.scaledAdd (-s, myK00, blk);
-      if (myKX != null) {
-         blk.scaledAdd (-s, myKX, blk);
+      scaledAddStiffness (blk, -s);
+   }
+
+   /**
+    * Adds <code>s</code> times the stiffness block for this neighbor,
+    * including any part not subject to stiffness damping, to
+    * <code>blk</code>.
+    */
+   void scaledAddStiffness (Matrix3d blk, double s) {
+      scaledAddBlock (blk, s, myK00, myOff00);
+      if (hasKX()) {
+         scaledAddBlock (blk, s, myKX, myOffX);
       }
    }
    
@@ -262,24 +502,33 @@ public class FemNodeNeighbor {
       return myNode;
    }
 
+   private void mulAddBlock (Vector3d vr, Matrix3d K, int off, Vector3d v1) {
+      if (off != -1) {
+         myStorage.mulAdd (vr, off, v1);
+      }
+      else {
+         vr.mulAdd (K, v1, vr);
+      }
+   }
+
    public void addDampingForce (Vector3d fd) {
       // XXX check that we want to use local velocity for this
-      fd.mulAdd (myK00, myNode.getLocalVelocity(), fd);
+      mulAddBlock (fd, myK00, myOff00, myNode.getLocalVelocity());
    }
 
    public void addStiffnessDampingForce (Vector3d fd, Vector3d fb) {
       // XXX check that we want to use local velocity for this
-      fd.mulAdd (myK00, myNode.getLocalVelocity(), fd);
-      if (myK01 != null) {
+      mulAddBlock (fd, myK00, myOff00, myNode.getLocalVelocity());
+      if (hasDirectorStorage()) {
          if (myNode.myBackNode == null) {
             System.out.println (" myNode.hasDirector()=" + myNode.hasDirector());
             System.out.println (
                " NodeNeighor.hasDirectorStorage()=" + hasDirectorStorage());
          }
-         fd.mulAdd (myK01, myNode.myBackNode.myVel, fd);
+         mulAddBlock (fd, myK01, myOff01, myNode.myBackNode.myVel);
          if (fb != null) {
-            fb.mulAdd (myK10, myNode.getLocalVelocity(), fb);
-            fb.mulAdd (myK11, myNode.myBackNode.myVel, fb);
+            mulAddBlock (fb, myK10, myOff10, myNode.getLocalVelocity());
+            mulAddBlock (fb, myK11, myOff11, myNode.myBackNode.myVel);
          }
       }
    }
@@ -288,10 +537,18 @@ public class FemNodeNeighbor {
       double kp, Vector3d intGi, Vector3d intGj) {
 
       if (FemModel3d.noIncompressStiffnessDamping) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
+         allocateKXIfNecessary();
+         if (myOffX != -1) {
+            FemUtilities.addDilationalStiffness (
+               myStorage.myValues, myOffX, kp, intGi, intGj);
+         }
+         else {
+            FemUtilities.addDilationalStiffness (myKX, kp, intGi, intGj);
          }
-         FemUtilities.addDilationalStiffness (myKX, kp, intGi, intGj);
+      }
+      else if (myOff00 != -1) {
+         FemUtilities.addDilationalStiffness (
+            myStorage.myValues, myOff00, kp, intGi, intGj);
       }
       else {
          FemUtilities.addDilationalStiffness (myK00, kp, intGi, intGj);
@@ -303,10 +560,18 @@ public class FemNodeNeighbor {
       double kp, Matrix3x1 intGi, Matrix3x1 intGj) {
 
       if (FemModel3d.noIncompressStiffnessDamping) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
+         allocateKXIfNecessary();
+         if (myOffX != -1) {
+            FemUtilities.addDilationalStiffness (
+               myStorage.myValues, myOffX, kp, intGi, intGj);
+         }
+         else {
+            FemUtilities.addDilationalStiffness (myKX, kp, intGi, intGj);
          }
-         FemUtilities.addDilationalStiffness (myKX, kp, intGi, intGj);
+      }
+      else if (myOff00 != -1) {
+         FemUtilities.addDilationalStiffness (
+            myStorage.myValues, myOff00, kp, intGi, intGj);
       }
       else {
          FemUtilities.addDilationalStiffness (myK00, kp, intGi, intGj);
@@ -317,14 +582,24 @@ public class FemNodeNeighbor {
    public void addDilationalStiffness (
       MatrixNd Rinv, MatrixBlock GT_i, MatrixBlock GT_j) {
 
+      Matrix3d K;
+      int off;
       if (FemModel3d.noIncompressStiffnessDamping) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
-         }
-         FemUtilities.addDilationalStiffness (myKX, Rinv, GT_i, GT_j);
+         allocateKXIfNecessary();
+         K = myKX;
+         off = myOffX;
       }
       else {
-         FemUtilities.addDilationalStiffness (myK00, Rinv, GT_i, GT_j);
+         K = myK00;
+         off = myOff00;
+      }
+      if (off != -1) {
+         Matrix3d Kinc = new Matrix3d();
+         FemUtilities.addDilationalStiffness (Kinc, Rinv, GT_i, GT_j);
+         myStorage.add (off, Kinc);
+      }
+      else {
+         FemUtilities.addDilationalStiffness (K, Rinv, GT_i, GT_j);
       }
       
    }
@@ -333,10 +608,19 @@ public class FemNodeNeighbor {
       double s, Vector3d intGi, Vector3d intGj) {
 
       if (FemModel3d.noIncompressStiffnessDamping) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
+         allocateKXIfNecessary();
+         if (myOffX != -1) {
+            FemUtilities.addIncompressibilityStiffness (
+               myStorage.myValues, myOffX, s, intGi, intGj);
+         }
+         else {
+            FemUtilities.addIncompressibilityStiffness (
+               myKX, s, intGi, intGj);
          }
-         FemUtilities.addIncompressibilityStiffness (myKX, s, intGi, intGj);
+      }
+      else if (myOff00 != -1) {
+         FemUtilities.addIncompressibilityStiffness (
+            myStorage.myValues, myOff00, s, intGi, intGj);
       }
       else {
          FemUtilities.addIncompressibilityStiffness (myK00, s, intGi, intGj);
@@ -348,7 +632,7 @@ public class FemNodeNeighbor {
       Vector3d gi, Matrix6d D, double p,
       SymmetricMatrix3d sig, Vector3d gj, double dv) {
 
-      FemUtilities.addMaterialStiffness (myK00, gi, D, sig, gj, dv);   
+      addMaterialStiffness (gi, D, sig, gj, dv);
       addPressureStiffness(gi, p, gj, dv);
    }
    
@@ -356,11 +640,25 @@ public class FemNodeNeighbor {
    // Separated pressure term so I can compute incompressibility component separately
    public void addMaterialStiffness(Vector3d gi, Matrix6d D,
       SymmetricMatrix3d sig, Vector3d gj, double dv) {
-      FemUtilities.addMaterialStiffness (myK00, gi, D, sig, gj, dv);
+      if (myOff00 != -1) {
+         FemUtilities.addMaterialStiffness (
+            myStorage.myValues, myOff00, gi, D, gj, dv);
+         FemUtilities.addGeometricStiffness (
+            myStorage.myValues, myOff00, gi, sig, gj, dv);
+      }
+      else {
+         FemUtilities.addMaterialStiffness (myK00, gi, D, sig, gj, dv);
+      }
    }
    
    public void addMaterialStiffness(Vector3d gi, Matrix6d D, Vector3d gj, double dv) {
-      FemUtilities.addMaterialStiffness (myK00, gi, D, gj, dv);
+      if (myOff00 != -1) {
+         FemUtilities.addMaterialStiffness (
+            myStorage.myValues, myOff00, gi, D, gj, dv);
+      }
+      else {
+         FemUtilities.addMaterialStiffness (myK00, gi, D, gj, dv);
+      }
    }
 
    /**
@@ -368,18 +666,34 @@ public class FemNodeNeighbor {
     */
    public void addGeometricStiffness (
       Vector3d gi, SymmetricMatrix3d sig, Vector3d gj, double dv) {
-      FemUtilities.addGeometricStiffness (myK00, gi, sig, gj, dv);   
+      if (myOff00 != -1) {
+         FemUtilities.addGeometricStiffness (
+            myStorage.myValues, myOff00, gi, sig, gj, dv);
+      }
+      else {
+         FemUtilities.addGeometricStiffness (myK00, gi, sig, gj, dv);
+      }
    }
    
    public void addPressureStiffness( Vector3d gi, double p,
       Vector3d gj, double dv) {
       
       if (FemModel3d.noIncompressStiffnessDamping) {
-         if (myKX == null) {
-            myKX = new Matrix3d();
+         allocateKXIfNecessary();
+         if (myOffX != -1) {
+            FemUtilities.addPressureStiffness (
+               myStorage.myValues, myOffX, gi, p, gj, dv);
+         }
+         else {
+            FemUtilities.addPressureStiffness (myKX, gi, p, gj, dv);
+         }
+         if (myOff00 != -1) {
+            FemUtilities.addPressureStiffness (
+               myStorage.myValues, myOff00, gi, -p, gj, dv);
+         }
+         else {
+            FemUtilities.addPressureStiffness (myK00, gi, -p, gj, dv);
          }
-         FemUtilities.addPressureStiffness (myKX, gi, p, gj, dv);  
-         FemUtilities.addPressureStiffness (myK00, gi, -p, gj, dv);  
       }
       
    }
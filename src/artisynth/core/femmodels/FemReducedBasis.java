@@ -0,0 +1,674 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import artisynth.core.probes.NumericOutputProbe;
+import maspack.interpolation.NumericListKnot;
+import maspack.matrix.CholeskyDecomposition;
+import maspack.matrix.EigenDecomposition;
+import maspack.matrix.Matrix;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix3x3Block;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.Point3d;
+import maspack.matrix.SparseNumberedBlockMatrix;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.properties.HasProperties;
+import maspack.properties.Property;
+import maspack.solvers.SparseLDLSolver;
+
+/**
+ * Displacement basis for reduced-order simulation of a {@link FemModel3d}.
+ * The positions of the model's active nodes are approximated by
+ * <pre>
+ * x = X0 + U q
+ * </pre>
+ * where X0 gives the node rest positions, q is a vector of reduced
+ * coordinates, and U is a 3n X r basis matrix, with n being the number of
+ * active nodes and r the number of modes. Non-active nodes (such as those
+ * which are fixed or attached) are not described by the basis.
+ *
+ * <p>The basis is orthonormal with respect to the model's lumped nodal
+ * masses M, so that U^T M U = I. It can be created either from the lowest
+ * frequency linear vibration modes of the model at rest, using {@link
+ * #createModal}, or from a principal component analysis (POD) of
+ * displacement snapshots, using {@link #createFromSnapshots} or {@link
+ * #createFromProbe}.
+ *
+ * <p>The basis refers to the model's nodes as they were when it was
+ * created, and should be recreated if nodes are added, removed, or change
+ * their active status.
+ */
+public class FemReducedBasis {
+
+   /**
+    * Maximum number of subspace iterations used for computing modal bases.
+    */
+   public static int maxModalIterations = 100;
+
+   /**
+    * Relative tolerance for the eigenvalues used to detect convergence of
+    * the subspace iterations.
+    */
+   public static double modalTolerance = 1e-10;
+
+   protected FemModel3d myFem;
+   protected FemNode3d[] myNodes;       // active nodes
+   protected HashMap<FemNode3d,Integer> myNodeIdxs;
+   protected VectorNd myRest;           // rest positions of active nodes
+   protected VectorNd myMass;           // lumped mass for each active dof
+   protected MatrixNd myU;              // the basis
+   protected VectorNd myValues;         // eigenvalues for each mode
+
+   /**
+    * Creates an empty basis for the active nodes of a FEM model.
+    */
+   protected FemReducedBasis (FemModel3d fem) {
+      myFem = fem;
+      ArrayList<FemNode3d> nodes = new ArrayList<FemNode3d>();
+      for (FemNode3d n : fem.getNodes()) {
+         if (n.isActive()) {
+            nodes.add (n);
+         }
+      }
+      if (nodes.size() == 0) {
+         throw new IllegalArgumentException ("FEM model has no active nodes");
+      }
+      myNodes = nodes.toArray (new FemNode3d[0]);
+      myNodeIdxs = new HashMap<FemNode3d,Integer>();
+      myRest = new VectorNd (3*myNodes.length);
+      myMass = new VectorNd (3*myNodes.length);
+      for (int i=0; i<myNodes.length; i++) {
+         FemNode3d n = myNodes[i];
+         myNodeIdxs.put (n, i);
+         Point3d p = n.getRestPosition();
+         myRest.set (3*i  , p.x);
+         myRest.set (3*i+1, p.y);
+         myRest.set (3*i+2, p.z);
+         double m = n.getMass();
+         myMass.set (3*i  , m);
+         myMass.set (3*i+1, m);
+         myMass.set (3*i+2, m);
+      }
+      myU = new MatrixNd (3*myNodes.length, 0);
+      myValues = new VectorNd (0);
+   }
+
+   /**
+    * Creates a basis from the lowest frequency vibration modes of a FEM
+    * model, computed using the model's tangent stiffness at its rest
+    * position. The modes are found by shift-invert subspace iteration, using
+    * a sparse factorization of the stiffness matrix. If the model has no
+    * fixed nodes, the first six modes will be rigid body modes. The
+    * eigenvalue associated with each mode, equal to the square of its
+    * natural frequency, is returned by {@link #getValues}.
+    *
+    * @param fem model for which the basis should be created
+    * @param nmodes number of modes to compute
+    * @return modal basis
+    */
+   public static FemReducedBasis createModal (FemModel3d fem, int nmodes) {
+      FemReducedBasis basis = new FemReducedBasis (fem);
+      SparseNumberedBlockMatrix K = basis.createRestStiffness();
+      basis.computeModes (K, nmodes);
+      return basis;
+   }
+
+   /**
+    * Creates a basis from the principal components (proper orthogonal
+    * decomposition) of a set of position snapshots, using the method of
+    * snapshots. Each snapshot gives the positions of all the model's nodes,
+    * ordered as in {@link FemModel3d#getNodes}, and is converted into a
+    * displacement from the rest position. The value associated with each
+    * mode, returned by {@link #getValues}, is the mass-weighted energy of
+    * the snapshots along that mode. Fewer than <code>nmodes</code> modes
+    * will be created if the snapshots do not span enough independent
+    * displacements.
+    *
+    * @param fem model for which the basis should be created
+    * @param snapshots node position snapshots
+    * @param nmodes maximum number of modes
+    * @return POD basis
+    */
+   public static FemReducedBasis createFromSnapshots (
+      FemModel3d fem, List<VectorNd> snapshots, int nmodes) {
+      FemReducedBasis basis = new FemReducedBasis (fem);
+      basis.computePrincipalModes (snapshots, nmodes);
+      return basis;
+   }
+
+   /**
+    * Creates a POD basis, as described for {@link #createFromSnapshots},
+    * using the data recorded by an output probe. The probe's properties
+    * should all be the <code>position</code> properties of nodes in the
+    * model, with each knot of the probe's data giving their values in
+    * order. Nodes whose positions were not recorded are assumed to remain
+    * at rest.
+    *
+    * @param fem model for which the basis should be created
+    * @param probe probe containing the position data
+    * @param nmodes maximum number of modes
+    * @return POD basis
+    */
+   public static FemReducedBasis createFromProbe (
+      FemModel3d fem, NumericOutputProbe probe, int nmodes) {
+
+      Property[] props = probe.getAttachedProperties();
+      int[] nodeIdxs = new int[props.length];
+      for (int k=0; k<props.length; k++) {
+         HasProperties host = props[k].getHost();
+         int idx = -1;
+         if (host instanceof FemNode3d &&
+             props[k].getName().equals ("position") &&
+             ((FemNode3d)host).getParent() == fem.getNodes()) {
+            idx = fem.getNodes().indexOf ((FemNode3d)host);
+         }
+         if (idx == -1) {
+            throw new IllegalArgumentException (
+               "Probe property " + props[k].getName() +
+               " is not the position of a node in the FEM model");
+         }
+         nodeIdxs[k] = idx;
+      }
+      if (probe.getVsize() != 3*props.length) {
+         throw new IllegalArgumentException (
+            "Probe vector size is " + probe.getVsize() + ", expected " +
+            3*props.length);
+      }
+      VectorNd rest = new VectorNd (3*fem.numNodes());
+      int i = 0;
+      for (FemNode3d n : fem.getNodes()) {
+         rest.setSubVector (3*i, n.getRestPosition());
+         i++;
+      }
+      ArrayList<VectorNd> snapshots = new ArrayList<VectorNd>();
+      for (NumericListKnot knot : probe.getNumericList()) {
+         VectorNd x = new VectorNd (rest);
+         for (int k=0; k<nodeIdxs.length; k++) {
+            for (int j=0; j<3; j++) {
+               x.set (3*nodeIdxs[k]+j, knot.v.get (3*k+j));
+            }
+         }
+         snapshots.add (x);
+      }
+      return createFromSnapshots (fem, snapshots, nmodes);
+   }
+
+   /**
+    * Returns the FEM model associated with this basis.
+    *
+    * @return FEM model
+    */
+   public FemModel3d getFem() {
+      return myFem;
+   }
+
+   /**
+    * Returns the number of modes in this basis.
+    *
+    * @return number of modes
+    */
+   public int numModes() {
+      return myU.colSize();
+   }
+
+   /**
+    * Returns the number of active nodes described by this basis.
+    *
+    * @return number of active nodes
+    */
+   public int numNodes() {
+      return myNodes.length;
+   }
+
+   /**
+    * Returns the active node with a given index within this basis.
+    *
+    * @param idx node index
+    * @return node with the given index
+    */
+   public FemNode3d getNode (int idx) {
+      return myNodes[idx];
+   }
+
+   /**
+    * Returns the index of a node within this basis, or -1 if the node is
+    * not described by the basis.
+    *
+    * @param node node to find the index for
+    * @return index of the node, or -1
+    */
+   public int getNodeIndex (FemNode3d node) {
+      Integer idx = myNodeIdxs.get (node);
+      return idx != null ? idx : -1;
+   }
+
+   /**
+    * Returns the basis matrix U. Its rows are arranged in groups of three
+    * for each active node, in the order given by {@link #getNode}. The
+    * returned matrix should not be modified.
+    *
+    * @return basis matrix
+    */
+   public MatrixNd getBasis() {
+      return myU;
+   }
+
+   /**
+    * Returns the value associated with each mode. For modal bases, these
+    * are the eigenvalues of the modes, while for POD bases, they are the
+    * snapshot energies. The returned vector should not be modified.
+    *
+    * @return mode values
+    */
+   public VectorNd getValues() {
+      return myValues;
+   }
+
+   /**
+    * Computes the position of an active node for a given set of reduced
+    * coordinates.
+    *
+    * @param pos returns the node position
+    * @param idx node index within this basis
+    * @param q reduced coordinates
+    */
+   public void computeNodePosition (Point3d pos, int idx, VectorNd q) {
+      pos.set (myRest.get(3*idx), myRest.get(3*idx+1), myRest.get(3*idx+2));
+      addNodeDisplacement (pos, idx, q);
+   }
+
+   /**
+    * Adds U_i q to a vector, where U_i denotes the rows of the basis
+    * associated with a given node.
+    */
+   void addNodeDisplacement (Vector3d vec, int idx, VectorNd q) {
+      double[] ubuf = myU.getBuffer();
+      double[] qbuf = q.getBuffer();
+      int w = myU.getBufferWidth();
+      int nm = numModes();
+      int off = 3*idx*w;
+      double x = 0, y = 0, z = 0;
+      for (int k=0; k<nm; k++) {
+         x += ubuf[off+k]*qbuf[k];
+         y += ubuf[off+w+k]*qbuf[k];
+         z += ubuf[off+2*w+k]*qbuf[k];
+      }
+      vec.x += x;
+      vec.y += y;
+      vec.z += z;
+   }
+
+   /**
+    * Adds U_i^T f to a vector, where U_i denotes the rows of the basis
+    * associated with a given node.
+    */
+   void addReducedForce (VectorNd fr, int idx, double s, Vector3d f) {
+      double[] ubuf = myU.getBuffer();
+      double[] rbuf = fr.getBuffer();
+      int w = myU.getBufferWidth();
+      int nm = numModes();
+      int off = 3*idx*w;
+      double fx = s*f.x, fy = s*f.y, fz = s*f.z;
+      for (int k=0; k<nm; k++) {
+         rbuf[k] += ubuf[off+k]*fx + ubuf[off+w+k]*fy + ubuf[off+2*w+k]*fz;
+      }
+   }
+
+   /**
+    * Sets the positions and velocities of all the active nodes from a set
+    * of reduced coordinates and their velocities.
+    *
+    * @param q reduced coordinates
+    * @param qvel reduced velocities
+    */
+   public void setNodeStates (VectorNd q, VectorNd qvel) {
+      Point3d pos = new Point3d();
+      Vector3d vel = new Vector3d();
+      for (int i=0; i<myNodes.length; i++) {
+         computeNodePosition (pos, i, q);
+         vel.setZero();
+         addNodeDisplacement (vel, i, qvel);
+         myNodes[i].setPosition (pos);
+         myNodes[i].setVelocity (vel);
+      }
+   }
+
+   /**
+    * Projects the current positions and velocities of the active nodes into
+    * the basis, by computing
+    * <pre>
+    * q = U^T M (x - X0),   qvel = U^T M v
+    * </pre>
+    * Since the basis is mass-orthonormal, this gives the reduced coordinates
+    * whose node positions are closest to x in the mass-weighted norm.
+    *
+    * @param q returns the reduced coordinates
+    * @param qvel if non-<code>null</code>, returns the reduced velocities
+    */
+   public void projectNodeStates (VectorNd q, VectorNd qvel) {
+      q.setSize (numModes());
+      q.setZero();
+      if (qvel != null) {
+         qvel.setSize (numModes());
+         qvel.setZero();
+      }
+      Vector3d del = new Vector3d();
+      for (int i=0; i<myNodes.length; i++) {
+         double m = myMass.get (3*i);
+         Point3d pos = myNodes[i].getPosition();
+         del.set (myRest.get(3*i), myRest.get(3*i+1), myRest.get(3*i+2));
+         del.sub (pos, del);
+         addReducedForce (q, i, m, del);
+         if (qvel != null) {
+            addReducedForce (qvel, i, m, myNodes[i].getVelocity());
+         }
+      }
+   }
+
+   /**
+    * Checks that the model's nodes have solve indices, which are needed for
+    * computing stiffness matrices. If they don't, and the model is not
+    * contained within another mechanical system, they are assigned.
+    */
+   void ensureSolveIndices() {
+      for (FemNode3d n : myNodes) {
+         if (n.getLocalSolveIndex() == -1) {
+            // assigns solve indices for a top-level model
+            myFem.getActivePosStateSize();
+            return;
+         }
+      }
+   }
+
+   /**
+    * Returns the block at (bi, bj), creating it if necessary.
+    */
+   private Matrix3x3Block getOrCreateBlock (
+      SparseNumberedBlockMatrix S, int bi, int bj) {
+      Matrix3x3Block blk = (Matrix3x3Block)S.getBlock (bi, bj);
+      if (blk == null) {
+         blk = new Matrix3x3Block();
+         S.addBlock (bi, bj, blk);
+      }
+      return blk;
+   }
+
+   private void addStiffnessBlocks (
+      SparseNumberedBlockMatrix K, FemNode3d node, int ia,
+      FemNodeNeighbor nbr, Matrix3d Kblk) {
+
+      int ja = getNodeIndex (nbr.getNode());
+      if (ja == -1) {
+         return;
+      }
+      int bi = node.getLocalSolveIndex();
+      int bj = nbr.getNode().getLocalSolveIndex();
+      if (myFem.mySolveMatrixSymmetricP && bj < bi) {
+         // block not computed; its transpose is stored by the other node
+         return;
+      }
+      Kblk.setZero();
+      nbr.scaledAddStiffness (Kblk, 1);
+      getOrCreateBlock (K, ia, ja).add (Kblk);
+      if (myFem.mySolveMatrixSymmetricP && bj != bi) {
+         Kblk.transpose();
+         getOrCreateBlock (K, ja, ia).add (Kblk);
+      }
+   }
+
+   /**
+    * Creates the stiffness matrix for the active nodes with the model at
+    * its rest position. The node positions are restored afterward.
+    */
+   SparseNumberedBlockMatrix createRestStiffness() {
+      ArrayList<Point3d> saved = new ArrayList<Point3d>();
+      for (FemNode3d n : myFem.getNodes()) {
+         saved.add (new Point3d (n.getPosition()));
+         n.setPosition (n.getRestPosition());
+      }
+      SparseNumberedBlockMatrix K = createStiffness();
+      int k = 0;
+      for (FemNode3d n : myFem.getNodes()) {
+         n.setPosition (saved.get (k++));
+      }
+      myFem.invalidateStressAndStiffness();
+      return K;
+   }
+
+   /**
+    * Creates the stiffness matrix for the active nodes at their current
+    * positions, with rows and columns ordered by node index within this
+    * basis.
+    */
+   SparseNumberedBlockMatrix createStiffness() {
+      ensureSolveIndices();
+      myFem.invalidateStressAndStiffness();
+      myFem.updateStressAndStiffness();
+
+      int[] sizes = new int[myNodes.length];
+      for (int i=0; i<sizes.length; i++) {
+         sizes[i] = 3;
+      }
+      SparseNumberedBlockMatrix K = new SparseNumberedBlockMatrix (sizes);
+      Matrix3d Kblk = new Matrix3d();
+      for (int i=0; i<myNodes.length; i++) {
+         FemNode3d n = myNodes[i];
+         for (FemNodeNeighbor nbr : myFem.getNodeNeighbors (n)) {
+            addStiffnessBlocks (K, n, i, nbr, Kblk);
+         }
+         // used for soft nodal-based incompressibilty:
+         for (FemNodeNeighbor nbr : myFem.getIndirectNeighbors (n)) {
+            addStiffnessBlocks (K, n, i, nbr, Kblk);
+         }
+      }
+      return K;
+   }
+
+   /**
+    * Solves the small generalized eigenproblem A z = lam B z, with B
+    * symmetric positive definite, returning the eigenvalues in ascending
+    * order, and the eigenvectors normalized so that Z^T B Z = I.
+    */
+   static void solveGeneralizedEigenproblem (
+      VectorNd lam, MatrixNd Z, MatrixNd A, MatrixNd B) {
+
+      int n = A.rowSize();
+      CholeskyDecomposition chol = new CholeskyDecomposition (B);
+      MatrixNd Linv = new MatrixNd();
+      chol.get (Linv);
+      Linv.invert();
+      MatrixNd LA = new MatrixNd();
+      LA.mul (Linv, A);
+      MatrixNd C = new MatrixNd();
+      C.mulTransposeRight (LA, Linv);
+      // symmetrize to remove round-off
+      MatrixNd CT = new MatrixNd();
+      CT.transpose (C);
+      C.add (CT);
+      C.scale (0.5);
+
+      EigenDecomposition evd = new EigenDecomposition();
+      evd.factorSymmetric (C);
+      VectorNd eig = evd.getEigReal();
+      MatrixNd W = evd.getV();
+      MatrixNd ZU = new MatrixNd();
+      ZU.mulTransposeLeft (Linv, W);
+
+      int[] perm = sortAscending (eig);
+      lam.setSize (n);
+      Z.setSize (n, n);
+      for (int k=0; k<n; k++) {
+         lam.set (k, eig.get (perm[k]));
+         for (int i=0; i<n; i++) {
+            Z.set (i, k, ZU.get (i, perm[k]));
+         }
+      }
+   }
+
+   private static int[] sortAscending (VectorNd vals) {
+      int n = vals.size();
+      Integer[] idxs = new Integer[n];
+      for (int i=0; i<n; i++) {
+         idxs[i] = i;
+      }
+      Arrays.sort (
+         idxs, (a, b) -> Double.compare (vals.get(a), vals.get(b)));
+      int[] perm = new int[n];
+      for (int i=0; i<n; i++) {
+         perm[i] = idxs[i];
+      }
+      return perm;
+   }
+
+   /**
+    * Computes the basis from the lowest modes of K x = lam M x using
+    * shift-invert subspace iteration.
+    */
+   void computeModes (SparseNumberedBlockMatrix K, int nmodes) {
+      int n = 3*myNodes.length;
+      nmodes = Math.min (nmodes, n);
+      int p = Math.min (n, Math.max (2*nmodes, nmodes+8));
+
+      // shift K by a small multiple of M so that it is non-singular even if
+      // the model has unconstrained rigid body modes
+      double trK = 0;
+      double trM = myMass.sum();
+      for (int i=0; i<myNodes.length; i++) {
+         trK += ((Matrix3x3Block)K.getBlock (i, i)).trace();
+      }
+      double shift = 1e-6*trK/trM;
+      SparseNumberedBlockMatrix A = K.clone();
+      for (int i=0; i<myNodes.length; i++) {
+         Matrix3x3Block blk = (Matrix3x3Block)A.getBlock (i, i);
+         blk.m00 += shift*myMass.get(3*i);
+         blk.m11 += shift*myMass.get(3*i+1);
+         blk.m22 += shift*myMass.get(3*i+2);
+      }
+      SparseLDLSolver solver = new SparseLDLSolver();
+      solver.analyze (A, n, Matrix.SYMMETRIC);
+      solver.factor();
+
+      MatrixNd X = new MatrixNd (n, p);
+      MatrixNd Y = new MatrixNd (n, p);
+      MatrixNd KY = new MatrixNd (n, p);
+      MatrixNd MY = new MatrixNd (n, p);
+      MatrixNd Kr = new MatrixNd (p, p);
+      MatrixNd Mr = new MatrixNd (p, p);
+      MatrixNd Z = new MatrixNd (p, p);
+      VectorNd lam = new VectorNd (p);
+      VectorNd lamPrev = new VectorNd (p);
+      VectorNd x = new VectorNd (n);
+      VectorNd y = new VectorNd (n);
+      VectorNd b = new VectorNd (n);
+
+      X.setRandom();
+      for (int iter=0; iter<maxModalIterations; iter++) {
+         for (int k=0; k<p; k++) {
+            X.getColumn (k, x);
+            for (int i=0; i<n; i++) {
+               b.set (i, myMass.get(i)*x.get(i));
+            }
+            solver.solve (y, b);
+            Y.setColumn (k, y);
+            K.mul (b, y);
+            KY.setColumn (k, b);
+            for (int i=0; i<n; i++) {
+               b.set (i, myMass.get(i)*y.get(i));
+            }
+            MY.setColumn (k, b);
+         }
+         // Rayleigh-Ritz projection onto the subspace spanned by Y
+         Kr.mulTransposeLeft (Y, KY);
+         Mr.mulTransposeLeft (Y, MY);
+         solveGeneralizedEigenproblem (lam, Z, Kr, Mr);
+         X.mul (Y, Z);
+
+         boolean converged = (iter > 0);
+         double tol = modalTolerance*Math.max (
+            Math.abs (lam.get(nmodes-1)), shift);
+         for (int k=0; k<nmodes && converged; k++) {
+            if (Math.abs (lam.get(k)-lamPrev.get(k)) > tol) {
+               converged = false;
+            }
+         }
+         lamPrev.set (lam);
+         if (converged) {
+            break;
+         }
+      }
+      myU = new MatrixNd (n, nmodes);
+      X.getSubMatrix (0, 0, myU);
+      myValues = new VectorNd (nmodes);
+      lam.getSubVector (0, myValues);
+   }
+
+   /**
+    * Computes the basis from the principal components of a set of position
+    * snapshots.
+    */
+   void computePrincipalModes (List<VectorNd> snapshots, int nmodes) {
+      int n = 3*myNodes.length;
+      int ns = snapshots.size();
+      int[] nodeIdxs = new int[myNodes.length];
+      for (int i=0; i<myNodes.length; i++) {
+         nodeIdxs[i] = myFem.getNodes().indexOf (myNodes[i]);
+      }
+      // displacement matrix D
+      MatrixNd D = new MatrixNd (n, ns);
+      MatrixNd MD = new MatrixNd (n, ns);
+      for (int k=0; k<ns; k++) {
+         VectorNd x = snapshots.get (k);
+         if (x.size() != 3*myFem.numNodes()) {
+            throw new IllegalArgumentException (
+               "Snapshot "+k+" has size "+x.size()+", expected "+
+               3*myFem.numNodes());
+         }
+         for (int i=0; i<myNodes.length; i++) {
+            for (int j=0; j<3; j++) {
+               double d = x.get(3*nodeIdxs[i]+j) - myRest.get(3*i+j);
+               D.set (3*i+j, k, d);
+               MD.set (3*i+j, k, myMass.get(3*i+j)*d);
+            }
+         }
+      }
+      // snapshot correlation matrix C = D^T M D
+      MatrixNd C = new MatrixNd (ns, ns);
+      C.mulTransposeLeft (D, MD);
+      EigenDecomposition evd = new EigenDecomposition();
+      evd.factorSymmetric (C);
+      VectorNd eig = evd.getEigReal();
+      MatrixNd V = evd.getV();
+      int[] perm = sortAscending (eig);
+
+      double maxEig = (ns > 0 ? eig.get (perm[ns-1]) : 0);
+      int nm = 0;
+      while (nm < Math.min (nmodes, ns) &&
+             eig.get (perm[ns-1-nm]) > 1e-12*maxEig) {
+         nm++;
+      }
+      myU = new MatrixNd (n, nm);
+      myValues = new VectorNd (nm);
+      VectorNd v = new VectorNd (ns);
+      VectorNd u = new VectorNd (n);
+      for (int k=0; k<nm; k++) {
+         int idx = perm[ns-1-k];
+         double mu = eig.get (idx);
+         V.getColumn (idx, v);
+         u.mul (D, v);
+         u.scale (1/Math.sqrt (mu));
+         myU.setColumn (k, u);
+         myValues.set (k, mu);
+      }
+   }
+}
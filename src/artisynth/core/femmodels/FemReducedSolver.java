@@ -0,0 +1,542 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.femmodels.integration.FemElementCubature;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.modelbase.StepAdjustment;
+import maspack.matrix.LUDecomposition;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix6d;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.NumericalException;
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.util.RandomGenerator;
+
+/**
+ * Reduced-order solver for a {@link FemModel3d}. The model's active node
+ * positions are restricted to the subspace given by a {@link
+ * FemReducedBasis},
+ * <pre>
+ * x = X0 + U q
+ * </pre>
+ * and the equations of motion are integrated for the reduced coordinates q
+ * using a linearly implicit backward Euler step:
+ * <pre>
+ * (I + h D_r + h^2 K_r) dv = h (f_r - D_r v - h K_r v)
+ * </pre>
+ * where f_r and K_r are the reduced forces and stiffness, and D_r = a I + b
+ * K_r is the reduced Rayleigh damping, with a and b given by the model's
+ * mass and stiffness damping.
+ *
+ * <p>The reduced internal forces and stiffness are evaluated using a {@link
+ * FemElementCubature}, as a weighted sum of the contributions of a subset
+ * of the model's elements, each of which is computed using the element's
+ * usual integration points and materials. By default, the cubature contains
+ * all the elements with unit weights, which is exact. A much smaller
+ * cubature can be fitted to a set of training poses using {@link
+ * #fitCubature}. Gravity and the external forces applied to the nodes are
+ * projected directly into the basis.
+ *
+ * <p>During a step, only the nodes of the cubature elements are updated.
+ * The positions and velocities of all the active nodes are reconstructed
+ * at the end of each step, so that the model can be rendered and its
+ * attachments updated. When the model's state is set, as happens when the
+ * simulation is reset, the model calls {@link #invalidateReducedState} so
+ * that the reduced state is recomputed by projecting the nodes into the
+ * basis. This method should also be called if the node positions or
+ * velocities are changed in some other way.
+ *
+ * <p>A reduced solver is enabled by calling {@link
+ * FemModel3d#setReducedSolver}, and is only used when the model is advanced
+ * as a top-level model; setting it for a model contained in another
+ * mechanical system, or adding a model with a reduced solver to such a
+ * system, is an error. Shell elements are not supported, and NODAL soft
+ * incompressibility is evaluated using the ELEMENT method, since it cannot
+ * be computed element by element.
+ */
+public class FemReducedSolver {
+
+   protected FemModel3d myFem;
+   protected FemReducedBasis myBasis;
+   protected FemElementCubature myCubature;
+   protected int[][] myElemNodeIdxs;   // basis indices of cubature elem nodes
+   protected int[] myCubatureNodes;    // basis indices of all cubature nodes
+
+   protected VectorNd myQ;
+   protected VectorNd myQvel;
+   // false if the node states may have changed since myQ and myQvel were
+   // last computed
+   protected boolean myReducedStateValid = false;
+
+   // workspace
+   protected VectorNd myFr;
+   protected MatrixNd myKr;
+   protected MatrixNd myS;
+   protected VectorNd myRhs;
+   protected VectorNd myDv;
+   protected LUDecomposition myLU = new LUDecomposition();
+   protected Matrix6d myD = new Matrix6d();
+   protected Matrix3d myKblk = new Matrix3d();
+   protected MatrixNd myKe = new MatrixNd();
+   protected MatrixNd myUe = new MatrixNd();
+   protected MatrixNd myKeUe = new MatrixNd();
+   protected MatrixNd myKre = new MatrixNd();
+
+   /**
+    * Creates a reduced solver for a FEM model, using a given basis and an
+    * exact cubature containing all the model's elements.
+    *
+    * @param fem model to be simulated
+    * @param basis reduced basis for the model
+    */
+   public FemReducedSolver (FemModel3d fem, FemReducedBasis basis) {
+      if (basis.getFem() != fem) {
+         throw new IllegalArgumentException (
+            "Basis was not created for the specified FEM model");
+      }
+      if (fem.numShellElements() > 0) {
+         throw new IllegalArgumentException (
+            "Reduced solver does not support shell elements");
+      }
+      myFem = fem;
+      myBasis = basis;
+      int nm = basis.numModes();
+      myQ = new VectorNd (nm);
+      myQvel = new VectorNd (nm);
+      myFr = new VectorNd (nm);
+      myKr = new MatrixNd (nm, nm);
+      myS = new MatrixNd (nm, nm);
+      myRhs = new VectorNd (nm);
+      myDv = new VectorNd (nm);
+      setCubature (new FemElementCubature (fem.getElements()));
+   }
+
+   /**
+    * Returns the FEM model associated with this solver.
+    *
+    * @return FEM model
+    */
+   public FemModel3d getFem() {
+      return myFem;
+   }
+
+   /**
+    * Returns the basis used by this solver.
+    *
+    * @return reduced basis
+    */
+   public FemReducedBasis getBasis() {
+      return myBasis;
+   }
+
+   /**
+    * Returns the cubature used by this solver to evaluate the reduced
+    * internal forces.
+    *
+    * @return force cubature
+    */
+   public FemElementCubature getCubature() {
+      return myCubature;
+   }
+
+   /**
+    * Sets the cubature used by this solver to evaluate the reduced internal
+    * forces. All of its elements must belong to the solver's model.
+    *
+    * @param cubature force cubature
+    */
+   public void setCubature (FemElementCubature cubature) {
+      int ne = cubature.numElements();
+      int[][] elemNodeIdxs = new int[ne][];
+      boolean[] marked = new boolean[myBasis.numNodes()];
+      int nnodes = 0;
+      for (int k=0; k<ne; k++) {
+         FemElement3d e = cubature.getElement (k);
+         if (e.getParent() != myFem.getElements()) {
+            throw new IllegalArgumentException (
+               "Cubature element "+e.getNumber()+
+               " does not belong to the FEM model");
+         }
+         int[] idxs = getNodeIndices (e);
+         for (int idx : idxs) {
+            if (idx != -1 && !marked[idx]) {
+               marked[idx] = true;
+               nnodes++;
+            }
+         }
+         elemNodeIdxs[k] = idxs;
+      }
+      myCubatureNodes = new int[nnodes];
+      int i = 0;
+      for (int idx=0; idx<marked.length; idx++) {
+         if (marked[idx]) {
+            myCubatureNodes[i++] = idx;
+         }
+      }
+      myElemNodeIdxs = elemNodeIdxs;
+      myCubature = cubature;
+   }
+
+   /**
+    * Returns the basis indices of an element's nodes, with -1 for nodes that
+    * are not active.
+    */
+   private int[] getNodeIndices (FemElement3d e) {
+      FemNode3d[] nodes = e.getNodes();
+      int[] idxs = new int[nodes.length];
+      for (int i=0; i<nodes.length; i++) {
+         idxs[i] = myBasis.getNodeIndex (nodes[i]);
+      }
+      return idxs;
+   }
+
+   /**
+    * Returns the current reduced coordinates. The returned vector should not
+    * be modified.
+    *
+    * @return reduced coordinates
+    */
+   public VectorNd getReducedPosition() {
+      return myQ;
+   }
+
+   /**
+    * Returns the current reduced velocities. The returned vector should not
+    * be modified.
+    *
+    * @return reduced velocities
+    */
+   public VectorNd getReducedVelocity() {
+      return myQvel;
+   }
+
+   /**
+    * Sets the reduced coordinates and velocities, and updates the positions
+    * and velocities of the model's active nodes accordingly.
+    *
+    * @param q reduced coordinates
+    * @param qvel reduced velocities
+    */
+   public void setReducedState (VectorNd q, VectorNd qvel) {
+      myQ.set (q);
+      myQvel.set (qvel);
+      updateNodeStates();
+      myReducedStateValid = true;
+   }
+
+   /**
+    * Notes that the positions or velocities of the model's nodes have been
+    * changed externally, so that the reduced coordinates and velocities
+    * will be recomputed by {@link #projectNodeStates} at the start of the
+    * next step.
+    */
+   public void invalidateReducedState() {
+      myReducedStateValid = false;
+   }
+
+   /**
+    * Sets the reduced coordinates and velocities by projecting the current
+    * positions and velocities of the model's active nodes into the basis.
+    */
+   public void projectNodeStates() {
+      myBasis.projectNodeStates (myQ, myQvel);
+      myReducedStateValid = true;
+   }
+
+   /**
+    * Reconstructs the positions and velocities of all the model's active
+    * nodes from the reduced state, and updates the model's attachments.
+    */
+   protected void updateNodeStates() {
+      myBasis.setNodeStates (myQ, myQvel);
+      myFem.updatePosState();
+      myFem.updateVelState();
+      myFem.invalidateStressAndStiffness();
+      myFem.myVolumeValid = false;
+   }
+
+   /**
+    * Sets the positions of the nodes used by the cubature elements from a
+    * set of reduced coordinates.
+    */
+   protected void setCubatureNodePositions (VectorNd q) {
+      Point3d pos = new Point3d();
+      for (int idx : myCubatureNodes) {
+         myBasis.computeNodePosition (pos, idx, q);
+         myBasis.getNode(idx).setPosition (pos);
+      }
+   }
+
+   /**
+    * Soft incompressibility method used when evaluating elements.
+    */
+   private IncompMethod getElementIncompMethod() {
+      IncompMethod softIncomp = myFem.getSoftIncompMethod();
+      return softIncomp == IncompMethod.NODAL ? IncompMethod.ELEMENT : softIncomp;
+   }
+
+   /**
+    * Adds the weighted reduced force, and optionally the reduced stiffness,
+    * of a single element, computed at the current node positions.
+    */
+   private void addElementForces (
+      FemElement3d e, int[] idxs, double w, VectorNd fr, MatrixNd Kr,
+      ArrayList<FemMaterial> amats, IncompMethod softIncomp) {
+
+      FemNode3d[] nodes = e.getNodes();
+      int nn = nodes.length;
+      for (int i=0; i<nn; i++) {
+         nodes[i].myInternalForce.setZero();
+         if (Kr != null) {
+            for (int j=0; j<nn; j++) {
+               e.myNbrs[i][j].zeroStiffness();
+            }
+         }
+      }
+      myFem.computeStressAndStiffness (
+         e, myFem.getElementMaterial(e), amats,
+         Kr != null ? myD : null, softIncomp);
+      for (int i=0; i<nn; i++) {
+         if (idxs[i] != -1) {
+            // the internal force is the negative of the applied force
+            myBasis.addReducedForce (fr, idxs[i], -w, nodes[i].myInternalForce);
+         }
+      }
+      if (Kr != null) {
+         int nm = myBasis.numModes();
+         MatrixNd U = myBasis.getBasis();
+         myKe.setSize (3*nn, 3*nn);
+         myKe.setZero();
+         myUe.setSize (3*nn, nm);
+         myUe.setZero();
+         boolean symmetric = myFem.mySolveMatrixSymmetricP;
+         for (int i=0; i<nn; i++) {
+            if (idxs[i] == -1) {
+               continue;
+            }
+            for (int k=0; k<3; k++) {
+               for (int l=0; l<nm; l++) {
+                  myUe.set (3*i+k, l, U.get (3*idxs[i]+k, l));
+               }
+            }
+            int bi = nodes[i].getLocalSolveIndex();
+            for (int j=0; j<nn; j++) {
+               if (idxs[j] == -1) {
+                  continue;
+               }
+               int bj = nodes[j].getLocalSolveIndex();
+               myKblk.setZero();
+               if (!symmetric || bj >= bi) {
+                  e.myNbrs[i][j].scaledAddStiffness (myKblk, 1);
+               }
+               else {
+                  // only the transposed block was computed
+                  e.myNbrs[j][i].scaledAddStiffness (myKblk, 1);
+                  myKblk.transpose();
+               }
+               myKe.setSubMatrix (3*i, 3*j, myKblk);
+            }
+         }
+         myKeUe.mul (myKe, myUe);
+         myKre.mulTransposeLeft (myUe, myKeUe);
+         Kr.scaledAdd (w, myKre);
+      }
+   }
+
+   /**
+    * Computes the reduced internal forces, and optionally the reduced
+    * stiffness matrix, using the cubature and the current positions of the
+    * cubature element nodes.
+    *
+    * @param fr returns the reduced internal forces
+    * @param Kr if non-<code>null</code>, returns the reduced stiffness
+    */
+   public void computeReducedForces (VectorNd fr, MatrixNd Kr) {
+      int nm = myBasis.numModes();
+      fr.setSize (nm);
+      fr.setZero();
+      if (Kr != null) {
+         Kr.setSize (nm, nm);
+         Kr.setZero();
+         // stiffness blocks can only be computed for nodes with solve indices
+         myBasis.ensureSolveIndices();
+      }
+      // element stiffness blocks are overwritten
+      myFem.invalidateStressAndStiffness();
+      ArrayList<FemMaterial> amats = myFem.getAugmentingMaterials();
+      IncompMethod softIncomp = getElementIncompMethod();
+      for (int k=0; k<myCubature.numElements(); k++) {
+         addElementForces (
+            myCubature.getElement(k), myElemNodeIdxs[k],
+            myCubature.getWeight(k), fr, Kr, amats, softIncomp);
+      }
+   }
+
+   /**
+    * Adds the reduced gravity and external node forces to a reduced force
+    * vector.
+    */
+   protected void addExternalForces (VectorNd fr) {
+      Vector3d gravity = myFem.getGravity();
+      for (int i=0; i<myBasis.numNodes(); i++) {
+         FemNode3d n = myBasis.getNode (i);
+         myBasis.addReducedForce (fr, i, n.getMass(), gravity);
+         myBasis.addReducedForce (fr, i, 1.0, n.getExternalForce());
+      }
+   }
+
+   /**
+    * Advances the reduced model from time t0 to t1.
+    *
+    * @param t0 current time
+    * @param t1 new time
+    * @param flags advance flags
+    * @return step adjustment information
+    */
+   public StepAdjustment advance (double t0, double t1, int flags) {
+      double h = t1 - t0;
+      if (!myReducedStateValid) {
+         projectNodeStates();
+      }
+      setCubatureNodePositions (myQ);
+      computeReducedForces (myFr, myKr);
+      addExternalForces (myFr);
+
+      double a = myFem.getMassDamping();
+      double b = myFem.getStiffnessDamping();
+      int nm = myBasis.numModes();
+      myS.scale (h*b + h*h, myKr);
+      for (int i=0; i<nm; i++) {
+         myS.set (i, i, myS.get (i, i) + 1 + h*a);
+      }
+      myRhs.mul (myKr, myQvel);
+      myRhs.scale (-(b + h));
+      myRhs.scaledAdd (-a, myQvel);
+      myRhs.add (myFr);
+      myRhs.scale (h);
+      myLU.factor (myS);
+      if (!myLU.solve (myDv, myRhs)) {
+         throw new NumericalException ("Reduced system is singular");
+      }
+      myQvel.add (myDv);
+      myQ.scaledAdd (h, myQvel);
+
+      updateNodeStates();
+      return new StepAdjustment();
+   }
+
+   /**
+    * Creates random training poses for fitting a cubature. The reduced
+    * coordinates of each pose are random, and scaled so that the maximum
+    * node displacement is a random fraction of <code>maxDisp</code>.
+    *
+    * @param num number of poses
+    * @param maxDisp maximum node displacement
+    * @return list of poses, each given by its reduced coordinates
+    */
+   public ArrayList<VectorNd> createTrainingPoses (int num, double maxDisp) {
+      ArrayList<VectorNd> poses = new ArrayList<VectorNd>();
+      Vector3d del = new Vector3d();
+      for (int k=0; k<num; k++) {
+         VectorNd q = new VectorNd (myBasis.numModes());
+         q.setRandom();
+         double max = 0;
+         for (int i=0; i<myBasis.numNodes(); i++) {
+            del.setZero();
+            myBasis.addNodeDisplacement (del, i, q);
+            max = Math.max (max, del.norm());
+         }
+         if (max > 0) {
+            q.scale (maxDisp*RandomGenerator.nextDouble (0.1, 1)/max);
+         }
+         poses.add (q);
+      }
+      return poses;
+   }
+
+   /**
+    * Fits a new cubature to a set of training poses, and makes it the
+    * cubature used by this solver. For each pose, the reduced internal
+    * force of every element of the model is computed, and {@link
+    * FemElementCubature#fit} is used to find a sparse set of weighted
+    * elements which reproduces the total reduced forces. The forces for
+    * each pose are normalized so that all poses are weighted equally. The
+    * model's node positions are restored afterward.
+    *
+    * @param poses training poses, each given by its reduced coordinates
+    * @param tol relative residual tolerance for the fit
+    * @param maxElems maximum number of elements in the cubature
+    * @return relative residual of the fit
+    */
+   public double fitCubature (List<VectorNd> poses, double tol, int maxElems) {
+      int nm = myBasis.numModes();
+      ArrayList<FemElement3d> elems = new ArrayList<FemElement3d>();
+      for (FemElement3d e : myFem.getElements()) {
+         elems.add (e);
+      }
+      int ne = elems.size();
+      int[][] elemNodeIdxs = new int[ne][];
+      for (int j=0; j<ne; j++) {
+         elemNodeIdxs[j] = getNodeIndices (elems.get(j));
+      }
+      ArrayList<Point3d> saved = new ArrayList<Point3d>();
+      for (int i=0; i<myBasis.numNodes(); i++) {
+         saved.add (new Point3d (myBasis.getNode(i).getPosition()));
+      }
+      MatrixNd G = new MatrixNd (nm*poses.size(), ne);
+      VectorNd b = new VectorNd (nm*poses.size());
+      VectorNd fe = new VectorNd (nm);
+      VectorNd bs = new VectorNd (nm);
+      ArrayList<FemMaterial> amats = myFem.getAugmentingMaterials();
+      IncompMethod softIncomp = getElementIncompMethod();
+      Point3d pos = new Point3d();
+      for (int s=0; s<poses.size(); s++) {
+         VectorNd q = poses.get(s);
+         for (int i=0; i<myBasis.numNodes(); i++) {
+            myBasis.computeNodePosition (pos, i, q);
+            myBasis.getNode(i).setPosition (pos);
+         }
+         bs.setZero();
+         for (int j=0; j<ne; j++) {
+            fe.setZero();
+            addElementForces (
+               elems.get(j), elemNodeIdxs[j], 1.0, fe, null,
+               amats, softIncomp);
+            for (int l=0; l<nm; l++) {
+               G.set (s*nm+l, j, fe.get(l));
+            }
+            bs.add (fe);
+         }
+         double mag = bs.norm();
+         if (mag > 0) {
+            for (int i=s*nm; i<(s+1)*nm; i++) {
+               for (int j=0; j<ne; j++) {
+                  G.set (i, j, G.get (i, j)/mag);
+               }
+            }
+            bs.scale (1/mag);
+         }
+         b.setSubVector (s*nm, bs);
+      }
+      for (int i=0; i<myBasis.numNodes(); i++) {
+         myBasis.getNode(i).setPosition (saved.get(i));
+      }
+      myFem.invalidateStressAndStiffness();
+
+      FemElementCubature cubature =
+         FemElementCubature.fit (elems, G, b, tol, maxElems);
+      setCubature (cubature);
+      return cubature.getResidual();
+   }
+}
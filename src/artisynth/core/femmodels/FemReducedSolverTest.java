@@ -0,0 +1,423 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.femmodels.integration.FemElementCubature;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.LinearMaterial;
+import artisynth.core.materials.MooneyRivlinMaterial;
+import artisynth.core.materials.NeoHookeanMaterial;
+import artisynth.core.mechmodels.MechModel;
+import artisynth.core.modelbase.ComponentState;
+import artisynth.core.probes.NumericOutputProbe;
+import artisynth.core.util.TimeBase;
+import artisynth.core.workspace.RootModel;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.Point3d;
+import maspack.matrix.SparseNumberedBlockMatrix;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.properties.Property;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests the creation of reduced bases, the reduced forces and cubatures
+ * computed by FemReducedSolver, and reduced simulation of a FEM model.
+ */
+public class FemReducedSolverTest extends UnitTest {
+
+   /**
+    * Creates a cantilever beam whose left end is fixed.
+    */
+   FemModel3d createBeam (FemElementType type, FemMaterial mat, int nx) {
+      int nyz = Math.max (1, nx/4);
+      FemModel3d fem = FemFactory.createGrid (
+         null, type, 1.0, 0.2, 0.2, nx, nyz, nyz);
+      fem.setMaterial (mat);
+      fem.setDensity (1000);
+      for (FemNode3d n : fem.getNodes()) {
+         if (n.getPosition().x < -0.5+1e-8) {
+            n.setDynamic (false);
+         }
+      }
+      return fem;
+   }
+
+   void perturbNodes (FemModel3d fem, double mag) {
+      Vector3d del = new Vector3d();
+      for (FemNode3d n : fem.getNodes()) {
+         if (n.isActive()) {
+            del.setRandom();
+            del.scale (mag);
+            Point3d pos = new Point3d (n.getPosition());
+            pos.add (del);
+            n.setPosition (pos);
+         }
+      }
+   }
+
+   VectorNd getNodePositions (FemModel3d fem) {
+      VectorNd x = new VectorNd (3*fem.numNodes());
+      int k = 0;
+      for (FemNode3d n : fem.getNodes()) {
+         x.setSubVector (3*k++, n.getPosition());
+      }
+      return x;
+   }
+
+   void setNodePositions (FemModel3d fem, VectorNd x) {
+      Point3d pos = new Point3d();
+      int k = 0;
+      for (FemNode3d n : fem.getNodes()) {
+         x.getSubVector (3*k++, pos);
+         n.setPosition (pos);
+      }
+   }
+
+   /**
+    * Checks that U^T M U = I.
+    */
+   void checkMassOrthonormal (String name, FemReducedBasis basis) {
+      MatrixNd U = basis.getBasis();
+      MatrixNd MU = new MatrixNd (U);
+      for (int i=0; i<U.rowSize(); i++) {
+         double m = basis.getNode(i/3).getMass();
+         for (int j=0; j<U.colSize(); j++) {
+            MU.set (i, j, m*U.get (i, j));
+         }
+      }
+      MatrixNd UMU = new MatrixNd();
+      UMU.mulTransposeLeft (U, MU);
+      MatrixNd I = new MatrixNd (U.colSize(), U.colSize());
+      I.setIdentity();
+      checkEquals (name + ": U^T M U", UMU, I, 1e-8);
+   }
+
+   /**
+    * Checks that the basis reproduces the node positions x.
+    */
+   void checkReproduction (
+      String name, FemReducedBasis basis, VectorNd x, double tol) {
+      FemModel3d fem = basis.getFem();
+      VectorNd xsave = getNodePositions (fem);
+      setNodePositions (fem, x);
+      VectorNd q = new VectorNd();
+      VectorNd qvel = new VectorNd();
+      basis.projectNodeStates (q, qvel);
+      basis.setNodeStates (q, qvel);
+      checkEquals (name + ": reproduced positions", getNodePositions(fem), x, tol);
+      setNodePositions (fem, xsave);
+   }
+
+   void testModalBasis (FemElementType type) {
+      FemModel3d fem = createBeam (type, new LinearMaterial (5e6, 0.33), 6);
+      int nmodes = 8;
+      FemReducedBasis basis = FemReducedBasis.createModal (fem, nmodes);
+      String name = type + " modal basis";
+      if (basis.numModes() != nmodes) {
+         throw new TestException (
+            name + ": "+basis.numModes()+" modes, expected "+nmodes);
+      }
+      checkMassOrthonormal (name, basis);
+      // check that each mode satisfies K u = lam M u
+      SparseNumberedBlockMatrix K = basis.createRestStiffness();
+      MatrixNd U = basis.getBasis();
+      VectorNd u = new VectorNd (U.rowSize());
+      VectorNd Ku = new VectorNd (U.rowSize());
+      VectorNd res = new VectorNd (U.rowSize());
+      for (int k=0; k<nmodes; k++) {
+         double lam = basis.getValues().get(k);
+         if (k > 0 && lam < basis.getValues().get(k-1)) {
+            throw new TestException (name + ": eigenvalues not ascending");
+         }
+         U.getColumn (k, u);
+         K.mul (Ku, u);
+         for (int i=0; i<u.size(); i++) {
+            res.set (i, Ku.get(i) - lam*basis.getNode(i/3).getMass()*u.get(i));
+         }
+         if (res.norm() > 1e-4*Ku.norm()) {
+            throw new TestException (
+               name + ": mode "+k+" has eigen residual "+res.norm()/Ku.norm());
+         }
+      }
+   }
+
+   void testSnapshotBases () {
+      FemModel3d fem = createBeam (
+         FemElementType.Hex, new LinearMaterial (5e6, 0.33), 6);
+      VectorNd xrest = getNodePositions (fem);
+      // create snapshots from combinations of three displacement fields
+      VectorNd[] fields = new VectorNd[3];
+      for (int k=0; k<fields.length; k++) {
+         perturbNodes (fem, 0.01);
+         fields[k] = getNodePositions (fem);
+         fields[k].sub (xrest);
+         setNodePositions (fem, xrest);
+      }
+      ArrayList<VectorNd> snapshots = new ArrayList<VectorNd>();
+      for (int s=0; s<6; s++) {
+         VectorNd x = new VectorNd (xrest);
+         for (int k=0; k<fields.length; k++) {
+            x.scaledAdd (RandomGenerator.nextDouble (-1, 1), fields[k]);
+         }
+         snapshots.add (x);
+      }
+      FemReducedBasis basis =
+         FemReducedBasis.createFromSnapshots (fem, snapshots, 5);
+      String name = "snapshot basis";
+      if (basis.numModes() != 3) {
+         throw new TestException (
+            name + ": "+basis.numModes()+" modes, expected 3");
+      }
+      checkMassOrthonormal (name, basis);
+      for (VectorNd x : snapshots) {
+         checkReproduction (name, basis, x, 1e-10);
+      }
+
+      // record the same snapshots using an output probe
+      Property[] props = new Property[fem.numNodes()];
+      for (int i=0; i<fem.numNodes(); i++) {
+         props[i] = fem.getNode(i).getProperty ("position");
+      }
+      NumericOutputProbe probe = new NumericOutputProbe (props, 0.01);
+      for (int s=0; s<snapshots.size(); s++) {
+         setNodePositions (fem, snapshots.get(s));
+         probe.apply (s*0.01);
+      }
+      setNodePositions (fem, xrest);
+      FemReducedBasis pbasis =
+         FemReducedBasis.createFromProbe (fem, probe, 5);
+      name = "probe basis";
+      if (pbasis.numModes() != 3) {
+         throw new TestException (
+            name + ": "+pbasis.numModes()+" modes, expected 3");
+      }
+      checkEquals (
+         name + ": values", pbasis.getValues(), basis.getValues(), 1e-10);
+      for (VectorNd x : snapshots) {
+         checkReproduction (name, pbasis, x, 1e-10);
+      }
+   }
+
+   /**
+    * Checks the reduced forces and stiffness computed by the solver against
+    * those obtained by projecting the full forces and stiffness.
+    */
+   void testReducedForces (
+      FemElementType type, FemMaterial mat, IncompMethod softIncomp) {
+
+      FemModel3d fem = createBeam (type, mat, 4);
+      fem.setSoftIncompMethod (softIncomp);
+      FemReducedBasis basis = FemReducedBasis.createModal (fem, 6);
+      FemReducedSolver solver = new FemReducedSolver (fem, basis);
+      perturbNodes (fem, 0.02);
+      String name = type + " beam with " + mat.getClass().getSimpleName() +
+         ", softIncomp=" + softIncomp;
+
+      VectorNd fr = new VectorNd();
+      MatrixNd Kr = new MatrixNd();
+      solver.computeReducedForces (fr, Kr);
+
+      SparseNumberedBlockMatrix K = basis.createStiffness();
+      MatrixNd U = basis.getBasis();
+      VectorNd f = new VectorNd (U.rowSize());
+      for (int i=0; i<basis.numNodes(); i++) {
+         Vector3d fi = new Vector3d (basis.getNode(i).myInternalForce);
+         fi.negate();
+         f.setSubVector (3*i, fi);
+      }
+      VectorNd frCheck = new VectorNd();
+      frCheck.mulTranspose (U, f);
+      MatrixNd KU = new MatrixNd (U.rowSize(), U.colSize());
+      VectorNd u = new VectorNd (U.rowSize());
+      VectorNd Ku = new VectorNd (U.rowSize());
+      for (int k=0; k<U.colSize(); k++) {
+         U.getColumn (k, u);
+         K.mul (Ku, u);
+         KU.setColumn (k, Ku);
+      }
+      MatrixNd KrCheck = new MatrixNd();
+      KrCheck.mulTransposeLeft (U, KU);
+
+      checkEquals (
+         name + ": reduced forces", fr, frCheck,
+         1e-10*Math.max (1, frCheck.norm()));
+      checkEquals (
+         name + ": reduced stiffness", Kr, KrCheck,
+         1e-10*Math.max (1, KrCheck.frobeniusNorm()));
+   }
+
+   void testCubature() {
+      FemModel3d fem = createBeam (
+         FemElementType.Hex, new NeoHookeanMaterial (5e6, 0.33), 12);
+      FemReducedBasis basis = FemReducedBasis.createModal (fem, 8);
+      FemReducedSolver solver = new FemReducedSolver (fem, basis);
+      ArrayList<VectorNd> poses = solver.createTrainingPoses (20, 0.05);
+
+      // reduced forces for the training poses, using an exact cubature
+      ArrayList<VectorNd> forces = new ArrayList<VectorNd>();
+      for (VectorNd q : poses) {
+         VectorNd fr = new VectorNd();
+         solver.setCubatureNodePositions (q);
+         solver.computeReducedForces (fr, null);
+         forces.add (fr);
+      }
+      double tol = 1e-3;
+      double res = solver.fitCubature (poses, tol, fem.numElements());
+      FemElementCubature cubature = solver.getCubature();
+      if (res > tol) {
+         throw new TestException (
+            "cubature residual is "+res+", expected <= "+tol);
+      }
+      if (cubature.numElements() >= fem.numElements()) {
+         throw new TestException (
+            "cubature has "+cubature.numElements()+" elements, expected < "+
+            fem.numElements());
+      }
+      for (int k=0; k<cubature.numElements(); k++) {
+         if (cubature.getWeight(k) <= 0) {
+            throw new TestException ("cubature weight not positive");
+         }
+      }
+      VectorNd fr = new VectorNd();
+      for (int s=0; s<poses.size(); s++) {
+         solver.setCubatureNodePositions (poses.get(s));
+         solver.computeReducedForces (fr, null);
+         VectorNd fcheck = forces.get(s);
+         checkEquals (
+            "cubature force for pose "+s, fr, fcheck, 0.01*fcheck.norm());
+      }
+   }
+
+   double advance (RootModel root, double t0, int nsteps, double h,
+                   ArrayList<VectorNd> snapshots, FemModel3d fem) {
+      double t = t0;
+      for (int i=0; i<nsteps; i++) {
+         double t1 = TimeBase.round (t+h);
+         root.advance (t, t1, /*flags=*/0);
+         t = t1;
+         if (snapshots != null) {
+            snapshots.add (getNodePositions (fem));
+         }
+      }
+      return t;
+   }
+
+   /**
+    * Checks that a reduced simulation using a POD basis created from the
+    * snapshots of a full simulation reproduces that simulation, and that
+    * the reduced state is recomputed after the model's state is reset.
+    */
+   void testSimulation() {
+      int nsteps = 20;
+      double h = 0.01;
+      FemMaterial mat = new NeoHookeanMaterial (5e7, 0.33);
+      FemModel3d full = createBeam (FemElementType.Hex, mat, 8);
+      RootModel root = new RootModel();
+      root.addModel (full);
+      ArrayList<VectorNd> snapshots = new ArrayList<VectorNd>();
+      advance (root, 0, nsteps, h, snapshots, full);
+
+      FemModel3d fem = createBeam (FemElementType.Hex, mat, 8);
+      VectorNd xrest = getNodePositions (fem);
+      FemReducedBasis basis =
+         FemReducedBasis.createFromSnapshots (fem, snapshots, nsteps);
+      fem.setReducedSolver (new FemReducedSolver (fem, basis));
+      root = new RootModel();
+      root.addModel (fem);
+      ComponentState state = root.createState (null);
+      root.getState (state);
+      ArrayList<VectorNd> reduced = new ArrayList<VectorNd>();
+      double t = advance (root, 0, nsteps, h, reduced, fem);
+
+      VectorNd xfinal = snapshots.get (nsteps-1);
+      VectorNd disp = new VectorNd (xfinal);
+      disp.sub (xrest);
+      double tol = 1e-4*disp.infinityNorm();
+      for (int i=0; i<nsteps; i++) {
+         checkEquals (
+            "reduced positions, step "+i, reduced.get(i), snapshots.get(i),
+            tol);
+      }
+      // continue the simulation, and then reset the model's state and check
+      // that the same results are obtained
+      advance (root, t, 5, h, null, fem);
+      root.setState (state);
+      reduced.clear();
+      advance (root, 0, nsteps, h, reduced, fem);
+      for (int i=0; i<nsteps; i++) {
+         checkEquals (
+            "reset reduced positions, step "+i, reduced.get(i),
+            snapshots.get(i), tol);
+      }
+   }
+
+   /**
+    * Checks that a reduced solver cannot be set for a model contained in a
+    * MechModel, and that a model with a reduced solver cannot be added to a
+    * MechModel, since the solver would not be used.
+    */
+   void testNonTopLevel() {
+      FemModel3d fem =
+         createBeam (FemElementType.Hex, new LinearMaterial (10000, 0.33), 4);
+      FemReducedBasis basis = FemReducedBasis.createModal (fem, 4);
+      MechModel mech = new MechModel();
+      mech.addModel (fem);
+      try {
+         fem.setReducedSolver (new FemReducedSolver (fem, basis));
+         throw new TestException (
+            "setReducedSolver did not fail for a non top-level model");
+      }
+      catch (IllegalStateException e) {
+         // expected
+      }
+      mech.removeModel (fem);
+      fem.setReducedSolver (new FemReducedSolver (fem, basis));
+      try {
+         mech.addModel (fem);
+         throw new TestException (
+            "adding a model with a reduced solver to a MechModel did not fail");
+      }
+      catch (IllegalStateException e) {
+         // expected
+      }
+      check ("model was added to MechModel", fem.getParent() == null);
+   }
+
+   public void test() {
+      testModalBasis (FemElementType.Hex);
+      testModalBasis (FemElementType.Tet);
+      testSnapshotBases();
+      FemElementType[] types = new FemElementType[] {
+         FemElementType.Tet, FemElementType.Hex };
+      for (FemElementType type : types) {
+         testReducedForces (
+            type, new LinearMaterial (10000, 0.33, /*corotated=*/true),
+            IncompMethod.OFF);
+         testReducedForces (
+            type, new NeoHookeanMaterial (10000, 0.33), IncompMethod.OFF);
+         testReducedForces (
+            type, new MooneyRivlinMaterial (1000, 200, 0, 0, 0, 100000),
+            IncompMethod.ELEMENT);
+      }
+      testCubature();
+      testSimulation();
+      testNonTopLevel();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      FemReducedSolverTest tester = new FemReducedSolverTest();
+      tester.runtest();
+   }
+}
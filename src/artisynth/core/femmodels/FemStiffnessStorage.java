@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.Arrays;
+
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix3dBase;
+import maspack.matrix.Vector3d;
+
+/**
+ * Packed storage for the 3 x 3 stiffness blocks of a set of {@link
+ * FemNodeNeighbor}s. Rather than each neighbor holding its blocks in
+ * separate {@link Matrix3d} objects, all blocks are stored contiguously in a
+ * single <code>double</code> array, with each block occupying 9 consecutive
+ * entries in row-major order. Blocks are identified by their offset within
+ * this array, which is equal to 9 times the block number.
+ *
+ * <p>Blocks are allocated in the order in which they are requested, so that
+ * when the neighbors of each node are packed in turn, the blocks associated
+ * with a node are adjacent in memory.
+ */
+public class FemStiffnessStorage {
+
+   protected double[] myValues;
+   protected int myNumBlocks;
+
+   /**
+    * Creates a new storage object with an initial capacity for a given
+    * number of blocks.
+    *
+    * @param capacity initial block capacity
+    */
+   public FemStiffnessStorage (int capacity) {
+      myValues = new double[9*Math.max(capacity,1)];
+      myNumBlocks = 0;
+   }
+
+   /**
+    * Allocates a new block, initialized to zero, and returns its offset
+    * within the value array. Since the value array may be reallocated, this
+    * method should not be called while other threads are accessing the
+    * storage.
+    *
+    * @return offset of the new block
+    */
+   public int allocateBlock() {
+      int off = 9*myNumBlocks;
+      if (off+9 > myValues.length) {
+         myValues = Arrays.copyOf (myValues, Math.max (2*myValues.length, 9));
+      }
+      myNumBlocks++;
+      return off;
+   }
+
+   /**
+    * Returns the number of blocks that have been allocated.
+    *
+    * @return number of allocated blocks
+    */
+   public int numBlocks() {
+      return myNumBlocks;
+   }
+
+   /**
+    * Returns the array containing the block values. Block entries are
+    * stored in row-major order, starting at the offset returned by {@link
+    * #allocateBlock}. The returned array should not be cached, since it is
+    * reallocated as blocks are added.
+    *
+    * @return array of block values
+    */
+   public double[] getValues() {
+      return myValues;
+   }
+
+   /**
+    * Sets all allocated blocks to zero.
+    */
+   public void setZero() {
+      Arrays.fill (myValues, 0, 9*myNumBlocks, 0.0);
+   }
+
+   /**
+    * Sets the block at a given offset to zero.
+    *
+    * @param off offset of the block
+    */
+   public void setZero (int off) {
+      Arrays.fill (myValues, off, off+9, 0.0);
+   }
+
+   /**
+    * Copies the block at a given offset into a matrix.
+    *
+    * @param K returns the block values
+    * @param off offset of the block
+    */
+   public void get (Matrix3d K, int off) {
+      double[] v = myValues;
+      K.m00 = v[off  ]; K.m01 = v[off+1]; K.m02 = v[off+2];
+      K.m10 = v[off+3]; K.m11 = v[off+4]; K.m12 = v[off+5];
+      K.m20 = v[off+6]; K.m21 = v[off+7]; K.m22 = v[off+8];
+   }
+
+   /**
+    * Sets the block at a given offset from a matrix.
+    *
+    * @param off offset of the block
+    * @param K new block values
+    */
+   public void set (int off, Matrix3dBase K) {
+      double[] v = myValues;
+      v[off  ] = K.m00; v[off+1] = K.m01; v[off+2] = K.m02;
+      v[off+3] = K.m10; v[off+4] = K.m11; v[off+5] = K.m12;
+      v[off+6] = K.m20; v[off+7] = K.m21; v[off+8] = K.m22;
+   }
+
+   /**
+    * Adds a matrix to the block at a given offset.
+    *
+    * @param off offset of the block
+    * @param K matrix to add
+    */
+   public void add (int off, Matrix3dBase K) {
+      double[] v = myValues;
+      v[off  ] += K.m00; v[off+1] += K.m01; v[off+2] += K.m02;
+      v[off+3] += K.m10; v[off+4] += K.m11; v[off+5] += K.m12;
+      v[off+6] += K.m20; v[off+7] += K.m21; v[off+8] += K.m22;
+   }
+
+   /**
+    * Sets the block at one offset to the transpose of the block at another.
+    * The two blocks should be distinct.
+    *
+    * @param off offset of the block to set
+    * @param offT offset of the block to transpose
+    */
+   public void setTranspose (int off, int offT) {
+      double[] v = myValues;
+      v[off  ] = v[offT  ]; v[off+1] = v[offT+3]; v[off+2] = v[offT+6];
+      v[off+3] = v[offT+1]; v[off+4] = v[offT+4]; v[off+5] = v[offT+7];
+      v[off+6] = v[offT+2]; v[off+7] = v[offT+5]; v[off+8] = v[offT+8];
+   }
+
+   /**
+    * Adds a scaled copy of the block at a given offset to a matrix. If K is
+    * the block, this computes
+    * <pre>
+    * M += s K
+    * </pre>
+    *
+    * @param M matrix to add the block to
+    * @param s scale factor
+    * @param off offset of the block
+    */
+   public void scaledAddTo (Matrix3dBase M, double s, int off) {
+      double[] v = myValues;
+      M.m00 += s*v[off  ]; M.m01 += s*v[off+1]; M.m02 += s*v[off+2];
+      M.m10 += s*v[off+3]; M.m11 += s*v[off+4]; M.m12 += s*v[off+5];
+      M.m20 += s*v[off+6]; M.m21 += s*v[off+7]; M.m22 += s*v[off+8];
+   }
+
+   /**
+    * Multiplies a vector by the block at a given offset and adds the result
+    * to another vector. If K is the block, this computes
+    * <pre>
+    * vr = K v1 + vr
+    * </pre>
+    *
+    * @param vr vector to add the result to
+    * @param off offset of the block
+    * @param v1 vector to multiply
+    */
+   public void mulAdd (Vector3d vr, int off, Vector3d v1) {
+      double[] v = myValues;
+      double x = v[off  ]*v1.x + v[off+1]*v1.y + v[off+2]*v1.z;
+      double y = v[off+3]*v1.x + v[off+4]*v1.y + v[off+5]*v1.z;
+      double z = v[off+6]*v1.x + v[off+7]*v1.y + v[off+8]*v1.z;
+      vr.x = x + vr.x;
+      vr.y = y + vr.y;
+      vr.z = z + vr.z;
+   }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.femmodels.FemModel.IncompMethod;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.LinearMaterial;
+import artisynth.core.materials.MooneyRivlinMaterial;
+import artisynth.core.materials.NeoHookeanMaterial;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Checks that FemModel3d gives the same forces, stiffness blocks and solve
+ * matrix Jacobians with packed stiffness storage as it does with the
+ * default per-neighbor storage.
+ */
+public class FemStiffnessStorageTest extends UnitTest {
+
+   FemModel3d createBeam (FemElementType type, FemMaterial mat, int nx) {
+      FemModel3d fem = FemTestUtils.createBeam (type, mat, nx, 0.02);
+      // give the nodes velocities, to produce stiffness damping forces
+      Vector3d vel = new Vector3d();
+      for (FemNode3d n : fem.getNodes()) {
+         vel.setRandom();
+         vel.scale (0.02);
+         n.setVelocity (vel);
+      }
+      return fem;
+   }
+
+   /**
+    * Computes the stress and stiffness, and returns the nodal forces, the
+    * stiffness blocks, the stiffness damping forces, and the Jacobian
+    * formed by adding the position and velocity Jacobians to a solve
+    * matrix.
+    */
+   void computeStressAndStiffness (
+      FemModel3d fem, boolean packed, VectorNd f, VectorNd fd,
+      ArrayList<Matrix3d> K, MatrixNd J) {
+
+      fem.setPackedStiffness (packed);
+      FemTestUtils.computeStressAndStiffness (fem, f, K);
+      if ((fem.getStiffnessStorage() != null) != packed) {
+         throw new TestException (
+            "stiffness storage is "+(packed ? "not " : "")+"packed");
+      }
+      fd.setSize (3*fem.numNodes());
+      int k = 0;
+      Vector3d fdamp = new Vector3d();
+      for (FemNode3d n : fem.getNodes()) {
+         fdamp.setZero();
+         for (FemNodeNeighbor nbr : fem.getNodeNeighbors (n)) {
+            nbr.addDampingForce (fdamp);
+         }
+         for (FemNodeNeighbor nbr : fem.getIndirectNeighbors (n)) {
+            nbr.addDampingForce (fdamp);
+         }
+         fd.setSubVector (k, fdamp);
+         k += 3;
+      }
+      FemTestUtils.getJacobian (fem, -0.0001, -0.01, J);
+   }
+
+   void testBeam (
+      FemElementType type, FemMaterial mat, IncompMethod softIncomp,
+      int nthreads) {
+
+      FemModel3d fem = createBeam (type, mat, 4);
+      fem.setSoftIncompMethod (softIncomp);
+      fem.setNumStressThreads (nthreads);
+      fem.setStiffnessDamping (0.1);
+
+      VectorNd f0 = new VectorNd();
+      VectorNd fd0 = new VectorNd();
+      ArrayList<Matrix3d> K0 = new ArrayList<Matrix3d>();
+      MatrixNd J0 = new MatrixNd();
+      computeStressAndStiffness (fem, false, f0, fd0, K0, J0);
+
+      VectorNd f1 = new VectorNd();
+      VectorNd fd1 = new VectorNd();
+      ArrayList<Matrix3d> K1 = new ArrayList<Matrix3d>();
+      MatrixNd J1 = new MatrixNd();
+      computeStressAndStiffness (fem, true, f1, fd1, K1, J1);
+
+      String name =
+         type + " beam with " + mat.getClass().getSimpleName() +
+         ", softIncomp=" + softIncomp + ", nthreads=" + nthreads;
+      double ftol = 1e-12*Math.max (1, f0.infinityNorm());
+      checkEquals (name + ": forces", f1, f0, ftol);
+      double ktol = 1e-12*Math.max (1, FemTestUtils.maxNorm (K0));
+      checkEquals (name + ": damping forces", fd1, fd0, ktol);
+      if (K1.size() != K0.size()) {
+         throw new TestException (
+            name + ": "+K1.size()+" stiffness blocks, expected "+K0.size());
+      }
+      for (int i=0; i<K0.size(); i++) {
+         checkEquals (
+            name + ": stiffness block "+i, K1.get(i), K0.get(i), ktol);
+      }
+      checkEquals (name + ": Jacobian", J1, J0, ktol);
+
+      // the stiffness should be preserved when packed storage is turned off
+      // without recomputing the stiffness
+      fem.setPackedStiffness (false);
+      fem.updateStiffnessStorage();
+      if (fem.getStiffnessStorage() != null) {
+         throw new TestException (name + ": storage not removed");
+      }
+      int k = 0;
+      for (FemNode3d n : fem.getNodes()) {
+         for (FemNodeNeighbor nbr : fem.getNodeNeighbors (n)) {
+            checkEquals (
+               name + ": unpacked stiffness block "+k,
+               nbr.getK00(), K1.get(k++), 0);
+         }
+         for (FemNodeNeighbor nbr : fem.getIndirectNeighbors (n)) {
+            checkEquals (
+               name + ": unpacked stiffness block "+k,
+               nbr.getK00(), K1.get(k++), 0);
+         }
+      }
+   }
+
+   void testBeams (int nthreads) {
+      FemElementType[] types = new FemElementType[] {
+         FemElementType.Tet, FemElementType.Hex };
+      for (FemElementType type : types) {
+         testBeam (
+            type, new LinearMaterial (10000, 0.33, /*corotated=*/true),
+            IncompMethod.OFF, nthreads);
+         testBeam (
+            type, new NeoHookeanMaterial (10000, 0.33),
+            IncompMethod.OFF, nthreads);
+         testBeam (
+            type, new MooneyRivlinMaterial (1000, 0, 0, 0, 0, 100000),
+            IncompMethod.ELEMENT, nthreads);
+      }
+      testBeam (
+         FemElementType.Tet, new MooneyRivlinMaterial (1000, 0, 0, 0, 0, 100000),
+         IncompMethod.NODAL, nthreads);
+   }
+
+   public void test() {
+      testBeams (1);
+      testBeams (2);
+      // check the stiffness blocks that are not subject to stiffness damping
+      boolean save = FemModel3d.noIncompressStiffnessDamping;
+      FemModel3d.noIncompressStiffnessDamping = true;
+      try {
+         testBeams (1);
+      }
+      finally {
+         FemModel3d.noIncompressStiffnessDamping = save;
+      }
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      FemStiffnessStorageTest tester = new FemStiffnessStorageTest();
+      tester.runtest();
+   }
+}
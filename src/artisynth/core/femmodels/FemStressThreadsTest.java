@@ -0,0 +1,287 @@
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.materials.BlemkerMuscle;
+import artisynth.core.materials.FemMaterial;
+import artisynth.core.materials.FullBlemkerMuscle;
+import artisynth.core.materials.GenericMuscle;
+import artisynth.core.materials.LinearMaterial;
+import artisynth.core.materials.MooneyRivlinMaterial;
+import artisynth.core.materials.NeoHookeanMaterial;
+import artisynth.core.mechmodels.MuscleExciter;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.util.FunctionTimer;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Checks the multithreaded computation of element stresses and stiffnesses
+ * in FemModel3d against the serial computation, for both plain and muscle
+ * models. Run with the argument <code>-timing</code> to instead time the
+ * serial and multithreaded computations for beams of increasing size.
+ */
+public class FemStressThreadsTest extends UnitTest {
+
+   /**
+    * Creates a muscle beam with three bundles, using different muscle
+    * materials, and with excitations combined from the bundles, the element
+    * descriptors and other excitation sources. Some elements belong to two
+    * bundles.
+    */
+   FemMuscleModel createMuscleBeam (
+      FemElementType type, int nx, double perturb) {
+
+      FemMuscleModel fem = FemTestUtils.createBeam (
+         new FemMuscleModel(), type,
+         new NeoHookeanMaterial (10000, 0.33), nx, perturb);
+      // used by bundles that do not have their own material
+      fem.setMuscleMaterial (new FullBlemkerMuscle());
+      MuscleBundle[] bundles = new MuscleBundle[3];
+      for (int k=0; k<bundles.length; k++) {
+         bundles[k] = new MuscleBundle ("bundle"+k);
+         fem.addMuscleBundle (bundles[k]);
+         bundles[k].setExcitation (0.2+0.3*k);
+      }
+      bundles[0].setMuscleMaterial (new BlemkerMuscle());
+      bundles[1].setMuscleMaterial (new GenericMuscle());
+      bundles[2].addExcitationSource (bundles[0], 0.5);
+      MuscleExciter exciter = new MuscleExciter ("exciter");
+      exciter.setExcitation (0.4);
+
+      Vector3d dir = new Vector3d();
+      int i = 0;
+      for (FemElement3d e : fem.getElements()) {
+         dir.setRandom();
+         dir.x += 2;
+         dir.normalize();
+         MuscleElementDesc desc = bundles[i%3].addElement (e, dir);
+         if (i%4 == 0) {
+            desc.setExcitation (0.1);
+            desc.addExcitationSource (exciter, 2.0);
+         }
+         if (i%5 == 0) {
+            bundles[(i+1)%3].addElement (e, dir);
+         }
+         i++;
+      }
+      return fem;
+   }
+
+   void computeStressAndStiffness (
+      FemModel3d fem, int nthreads, VectorNd f, ArrayList<Matrix3d> K) {
+      fem.setNumStressThreads (nthreads);
+      FemTestUtils.computeStressAndStiffness (fem, f, K);
+   }
+
+   void testBeam (FemElementType type, FemMaterial mat, int nx) {
+      FemModel3d fem = FemTestUtils.createBeam (type, mat, nx, 0.02);
+
+      VectorNd fser = new VectorNd();
+      ArrayList<Matrix3d> Kser = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, 1, fser, Kser);
+
+      VectorNd fpar = new VectorNd();
+      ArrayList<Matrix3d> Kpar = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, 4, fpar, Kpar);
+
+      String name = type + " beam with " + mat.getClass().getSimpleName();
+      double ftol = 1e-10*Math.max (1, fser.infinityNorm());
+      checkEquals (name + ": forces", fpar, fser, ftol);
+      double ktol = 1e-10*Math.max (1, FemTestUtils.maxNorm (Kser));
+      for (int i=0; i<Kser.size(); i++) {
+         checkEquals (name + ": stiffness block "+i, Kpar.get(i), Kser.get(i), ktol);
+      }
+
+      // results for a given thread count should be exactly reproducible
+      VectorNd frep = new VectorNd();
+      ArrayList<Matrix3d> Krep = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, 4, frep, Krep);
+      if (!frep.equals (fpar)) {
+         throw new TestException (
+            name + ": forces not reproducible for fixed thread count");
+      }
+      for (int i=0; i<Kpar.size(); i++) {
+         if (!Krep.get(i).equals (Kpar.get(i))) {
+            throw new TestException (
+               name + ": stiffness not reproducible for fixed thread count");
+         }
+      }
+
+      // changing the material in place must update the thread copies
+      fem.getMaterial().scaleMass (2);
+      computeStressAndStiffness (fem, 4, fpar, Kpar);
+      computeStressAndStiffness (fem, 1, fser, Kser);
+      checkEquals (name + ": forces after material change", fpar, fser, ftol);
+      fem.setNumStressThreads (1);
+   }
+
+   void testMuscleBeam (FemElementType type, int nx) {
+      FemMuscleModel fem = createMuscleBeam (type, nx, 0.02);
+      String name = type + " muscle beam";
+
+      VectorNd fser = new VectorNd();
+      ArrayList<Matrix3d> Kser = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, 1, fser, Kser);
+
+      VectorNd fpar = new VectorNd();
+      ArrayList<Matrix3d> Kpar = new ArrayList<Matrix3d>();
+      computeStressAndStiffness (fem, 4, fpar, Kpar);
+
+      double ftol = 1e-10*Math.max (1, fser.infinityNorm());
+      checkEquals (name + ": forces", fpar, fser, ftol);
+      double ktol = 1e-10*Math.max (1, FemTestUtils.maxNorm (Kser));
+      for (int i=0; i<Kser.size(); i++) {
+         checkEquals (name + ": stiffness block "+i, Kpar.get(i), Kser.get(i), ktol);
+      }
+
+      // make sure the muscles actually contribute to the forces
+      for (MuscleBundle bundle : fem.getMuscleBundles()) {
+         bundle.setExcitation (0);
+      }
+      VectorNd fpas = new VectorNd();
+      computeStressAndStiffness (fem, 4, fpas, Kpar);
+      fpas.sub (fpar);
+      if (fpas.norm() < 1e-3*fpar.norm()) {
+         throw new TestException (
+            name + ": muscle excitation does not change forces");
+      }
+
+      // changing a muscle material in place must update the thread copies
+      for (MuscleBundle bundle : fem.getMuscleBundles()) {
+         bundle.setExcitation (0.5);
+      }
+      MuscleBundle bundle0 = fem.getMuscleBundles().get(0);
+      computeStressAndStiffness (fem, 4, fpar, Kpar);
+      bundle0.getMuscleMaterial().scaleMass (2);
+      computeStressAndStiffness (fem, 4, fpar, Kpar);
+      computeStressAndStiffness (fem, 1, fser, Kser);
+      checkEquals (name + ": forces after material change", fpar, fser, ftol);
+      fem.setNumStressThreads (1);
+   }
+
+   /**
+    * Checks that the minimum Jacobian determinant and the number of inverted
+    * elements found by the multithreaded computation agree with the serial
+    * computation, for a beam in which one element has been inverted.
+    */
+   void testElementCondition (FemElementType type, boolean batch) {
+      FemModel3d fem = FemTestUtils.createBeam (
+         type, new NeoHookeanMaterial (10000, 0.33), 8, 0.02);
+      fem.setBatchMaterialEvaluation (batch);
+      fem.setWarnOnInvertedElements (false);
+      // invert the first element by moving one of its nodes beyond the
+      // opposite side of the element
+      FemElement3d elem = fem.getElements().get(0);
+      Point3d cent = new Point3d();
+      elem.computeCentroid (cent);
+      FemNode3d node = elem.getNodes()[0];
+      Point3d pos = new Point3d();
+      pos.scaledAdd (3, cent);
+      pos.scaledAdd (-2, node.getPosition());
+      node.setPosition (pos);
+
+      computeStressAndStiffness (
+         fem, 1, new VectorNd(), new ArrayList<Matrix3d>());
+      double minDetJ = fem.myMinDetJ;
+      FemElement3dBase minElem = fem.myMinDetJElement;
+      int numInverted = fem.myNumInverted;
+      if (numInverted == 0) {
+         throw new TestException ("no inverted elements found");
+      }
+      for (int k=0; k<2; k++) {
+         computeStressAndStiffness (
+            fem, 4, new VectorNd(), new ArrayList<Matrix3d>());
+         String name = type + " beam" + (batch ? " with batch evaluation" : "");
+         if (fem.myMinDetJ != minDetJ || fem.myMinDetJElement != minElem) {
+            throw new TestException (
+               name + ": min detJ " + fem.myMinDetJ + " for element " +
+               fem.myMinDetJElement.getNumber() + ", expected " + minDetJ +
+               " for element " + minElem.getNumber());
+         }
+         if (fem.myNumInverted != numInverted) {
+            throw new TestException (
+               name + ": " + fem.myNumInverted +
+               " inverted elements, expected " + numInverted);
+         }
+      }
+      fem.setNumStressThreads (1);
+   }
+
+   public void test() {
+      FemElementType[] types = new FemElementType[] {
+         FemElementType.Tet, FemElementType.Hex };
+      for (FemElementType type : types) {
+         testBeam (type, new LinearMaterial (10000, 0.33, /*corotated=*/true), 8);
+         testBeam (type, new NeoHookeanMaterial (10000, 0.33), 8);
+         testBeam (
+            type, new MooneyRivlinMaterial (1000, 0, 0, 0, 0, 100000), 8);
+         testMuscleBeam (type, 8);
+         testElementCondition (type, /*batch=*/false);
+         testElementCondition (type, /*batch=*/true);
+      }
+   }
+
+   public void timing() {
+      timing ("beam", false);
+      timing ("muscle beam", true);
+   }
+
+   void timing (String name, boolean muscle) {
+      FunctionTimer timer = new FunctionTimer();
+      int[] threadCounts = new int[] { 1, 2, 4, 8 };
+      int cnt = 10;
+
+      System.out.println (name + " stress and stiffness timing (msec):");
+      System.out.print ("  elements");
+      for (int nthreads : threadCounts) {
+         System.out.printf ("   %d thread%s", nthreads, nthreads>1 ? "s" : " ");
+      }
+      System.out.println ("");
+      for (int nx=10; nx<=40; nx *= 2) {
+         FemModel3d fem;
+         if (muscle) {
+            fem = createMuscleBeam (FemElementType.Tet, nx, 0.1/nx);
+         }
+         else {
+            fem = FemTestUtils.createBeam (
+               FemElementType.Tet,
+               new MooneyRivlinMaterial (1000, 0, 0, 0, 0, 100000), nx, 0.1/nx);
+         }
+         System.out.printf ("%10d", fem.numElements());
+         for (int nthreads : threadCounts) {
+            fem.setNumStressThreads (nthreads);
+            // warm up
+            for (int i=0; i<3; i++) {
+               fem.invalidateStressAndStiffness();
+               fem.updateStressAndStiffness();
+            }
+            timer.start();
+            for (int i=0; i<cnt; i++) {
+               fem.invalidateStressAndStiffness();
+               fem.updateStressAndStiffness();
+            }
+            timer.stop();
+            System.out.printf ("%11.2f", timer.getTimeUsec()/(1000.0*cnt));
+         }
+         System.out.println ("");
+         fem.setNumStressThreads (1);
+      }
+   }
+
+   public static void main (String[] args) {
+      FemStressThreadsTest tester = new FemStressThreadsTest();
+      RandomGenerator.setSeed (0x1234);
+      if (args.length > 0 && args[0].equals ("-timing")) {
+         tester.timing();
+      }
+      else {
+         tester.runtest();
+      }
+   }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import artisynth.core.materials.FemMaterial;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix6d;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.SymmetricMatrix3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+
+/**
+ * Workspace used by {@link FemModel3d} to compute the stress and stiffness
+ * of its volumetric elements, so that this can be done without allocating
+ * objects for each element. Since the workspace is modified during the
+ * computation, each thread computing stresses requires its own workspace.
+ *
+ * <p>A workspace used by a multithreaded computation also holds the
+ * thread's own copies of the materials, since materials maintain internal
+ * workspace and so cannot be evaluated concurrently. These are created on
+ * demand, and must be cleared when any of the original materials change.
+ */
+public class FemStressWorkspace {
+
+   // thread-specific material copies, keyed by the original material, or
+   // null if materials are to be evaluated directly
+   IdentityHashMap<FemMaterial,FemMaterial> myMaterialCopies;
+   // augmenting materials for which myAmatCopies was created
+   ArrayList<FemMaterial> myAmats = new ArrayList<FemMaterial>();
+   ArrayList<FemMaterial> myAmatCopies = new ArrayList<FemMaterial>();
+
+   // tangent matrix passed to computeStressAndStiffness
+   Matrix6d myD = new Matrix6d();
+
+   // scratch space for computeStressAndStiffness
+   FemDeformedPoint myDpnt = new FemDeformedPoint();
+   SymmetricMatrix3d mySigma = new SymmetricMatrix3d();
+   SymmetricMatrix3d mySigmaTmp = new SymmetricMatrix3d();
+   Matrix6d myDtmp = new Matrix6d();
+   Matrix3d myInvJ = new Matrix3d();
+   VectorNd myPressures = new VectorNd (FemModel3d.MAX_PRESSURE_VALS);
+   MatrixNd myRinv = new MatrixNd();
+   Vector3d[] myGNx = new Vector3d[0];
+   Vector3d[] myNodalConstraints = new Vector3d[4];
+
+   // element condition info recorded by a multithreaded computation, to be
+   // combined with that of the other threads once they are finished
+   double myMinDetJ = Double.MAX_VALUE;
+   FemElement3dBase myMinDetJElement = null;
+   int myNumInverted = 0;
+
+   /**
+    * Creates a new workspace.
+    *
+    * @param copyMaterials if {@code true}, the workspace will use its own
+    * copies of the materials
+    */
+   public FemStressWorkspace (boolean copyMaterials) {
+      if (copyMaterials) {
+         myMaterialCopies = new IdentityHashMap<FemMaterial,FemMaterial>();
+      }
+      for (int i=0; i<myNodalConstraints.length; i++) {
+         myNodalConstraints[i] = new Vector3d();
+      }
+   }
+
+   /**
+    * Returns {@code true} if this workspace uses its own material copies.
+    */
+   public boolean copiesMaterials() {
+      return myMaterialCopies != null;
+   }
+
+   /**
+    * Clears all material copies, so that they will be recreated from the
+    * current materials when next needed.
+    */
+   public void clearMaterialCopies() {
+      if (myMaterialCopies != null) {
+         myMaterialCopies.clear();
+         myAmats.clear();
+         myAmatCopies.clear();
+      }
+   }
+
+   /**
+    * Makes sure that a copy exists for the specified material. Since
+    * copying a material temporarily modifies it, this should not be called
+    * while other threads are computing stresses.
+    */
+   void addMaterialCopy (FemMaterial mat) {
+      if (myMaterialCopies != null && mat != null &&
+          !myMaterialCopies.containsKey (mat)) {
+         myMaterialCopies.put (mat, FemModel3d.createThreadMaterial (mat));
+      }
+   }
+
+   /**
+    * Makes sure that {@link #getAugmentingMaterials} will return copies of
+    * the specified augmenting materials. Like {@link #addMaterialCopy}, this
+    * should not be called while other threads are computing stresses.
+    */
+   void updateAugmentingMaterials (ArrayList<FemMaterial> amats) {
+      if (myMaterialCopies == null || amats == null) {
+         return;
+      }
+      boolean changed = (amats.size() != myAmats.size());
+      for (int i=0; i<amats.size() && !changed; i++) {
+         changed = (amats.get(i) != myAmats.get(i));
+      }
+      if (changed) {
+         myAmats.clear();
+         myAmatCopies.clear();
+         for (FemMaterial amat : amats) {
+            myAmats.add (amat);
+            myAmatCopies.add (FemModel3d.createThreadMaterial (amat));
+         }
+      }
+   }
+
+   /**
+    * Returns the material that should be evaluated for <code>mat</code>.
+    * This is either <code>mat</code> itself, or the copy created for it by
+    * {@link #addMaterialCopy}.
+    */
+   FemMaterial getMaterial (FemMaterial mat) {
+      if (myMaterialCopies == null || mat == null) {
+         return mat;
+      }
+      return myMaterialCopies.get (mat);
+   }
+
+   /**
+    * Returns the augmenting materials that should be evaluated in place of
+    * <code>amats</code>.
+    */
+   ArrayList<FemMaterial> getAugmentingMaterials (ArrayList<FemMaterial> amats) {
+      if (myMaterialCopies == null || amats == null) {
+         return amats;
+      }
+      return myAmatCopies;
+   }
+
+   /**
+    * Clears the element condition info recorded by {@link
+    * #checkElementCondition}.
+    */
+   void clearElementConditionInfo() {
+      myMinDetJ = Double.MAX_VALUE;
+      myMinDetJElement = null;
+      myNumInverted = 0;
+   }
+
+   /**
+    * Thread-specific version of {@link
+    * FemModel3d#checkElementCondition(FemElement3dBase,double,boolean)},
+    * which records the element condition in this workspace.
+    */
+   boolean checkElementCondition (
+      FemElement3dBase e, double detJ, boolean recordInversion) {
+      if (detJ < myMinDetJ) {
+         myMinDetJ = detJ;
+         myMinDetJElement = e;
+      }
+      if (detJ <= 0 && recordInversion) {
+         e.setInverted(true);
+         myNumInverted++;
+         return false;
+      }
+      else {
+         return true;
+      }
+   }
+
+   /**
+    * Returns an array of at least <code>num</code> vectors for storing
+    * shape function gradients.
+    */
+   Vector3d[] getShapeGradients (int num) {
+      if (myGNx.length < num) {
+         int oldLen = myGNx.length;
+         myGNx = Arrays.copyOf (myGNx, num);
+         for (int i=oldLen; i<num; i++) {
+            myGNx[i] = new Vector3d();
+         }
+      }
+      return myGNx;
+   }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels;
+
+import java.util.ArrayList;
+
+import artisynth.core.femmodels.FemFactory.FemElementType;
+import artisynth.core.materials.FemMaterial;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.Point3d;
+import maspack.matrix.SparseNumberedBlockMatrix;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+
+/**
+ * Methods shared by the tests that compare the forces and stiffnesses
+ * computed by FemModel3d under different settings.
+ */
+class FemTestUtils {
+
+   /**
+    * Creates a beam of length 1 with <code>nx</code> elements along its
+    * length, and randomly perturbs each node position by up to
+    * <code>perturb</code> in each coordinate.
+    */
+   static FemModel3d createBeam (
+      FemElementType type, FemMaterial mat, int nx, double perturb) {
+      return createBeam (new FemModel3d(), type, mat, nx, perturb);
+   }
+
+   /**
+    * Creates the beam of {@link #createBeam(FemElementType,FemMaterial,int,
+    * double)} within an existing model.
+    */
+   static <T extends FemModel3d> T createBeam (
+      T fem, FemElementType type, FemMaterial mat, int nx, double perturb) {
+
+      int nyz = Math.max (1, nx/4);
+      FemFactory.createGrid (fem, type, 1.0, 0.25, 0.25, nx, nyz, nyz);
+      fem.setMaterial (mat);
+      // assign solve indices, needed for computing stiffness
+      fem.getActivePosStateSize();
+      if (perturb != 0) {
+         Vector3d del = new Vector3d();
+         for (FemNode3d n : fem.getNodes()) {
+            del.setRandom();
+            del.scale (perturb);
+            Point3d pos = new Point3d (n.getPosition());
+            pos.add (del);
+            n.setPosition (pos);
+         }
+      }
+      return fem;
+   }
+
+   /**
+    * Recomputes the stress, and the stiffness if <code>K</code> is not
+    * <code>null</code>, and returns the nodal forces and copies of the
+    * stiffness blocks of all direct and indirect node neighbors.
+    */
+   static void computeStressAndStiffness (
+      FemModel3d fem, VectorNd f, ArrayList<Matrix3d> K) {
+
+      fem.invalidateStressAndStiffness();
+      if (K != null) {
+         fem.updateStressAndStiffness();
+      }
+      else {
+         fem.updateStress();
+      }
+      getNodalForces (fem, f);
+      if (K != null) {
+         getStiffnessBlocks (fem, K);
+      }
+   }
+
+   /**
+    * Returns the internal forces of all nodes.
+    */
+   static void getNodalForces (FemModel3d fem, VectorNd f) {
+      f.setSize (3*fem.numNodes());
+      int k = 0;
+      for (FemNode3d n : fem.getNodes()) {
+         f.setSubVector (k, n.myInternalForce);
+         k += 3;
+      }
+   }
+
+   /**
+    * Returns copies of the stiffness blocks of all direct and indirect node
+    * neighbors.
+    */
+   static void getStiffnessBlocks (FemModel3d fem, ArrayList<Matrix3d> K) {
+      K.clear();
+      for (FemNode3d n : fem.getNodes()) {
+         for (FemNodeNeighbor nbr : fem.getNodeNeighbors (n)) {
+            K.add (new Matrix3d (nbr.getK00()));
+         }
+         for (FemNodeNeighbor nbr : fem.getIndirectNeighbors (n)) {
+            K.add (new Matrix3d (nbr.getK00()));
+         }
+      }
+   }
+
+   /**
+    * Returns the Jacobian formed by adding the position and velocity
+    * Jacobians, scaled by <code>spos</code> and <code>svel</code>, to a
+    * solve matrix.
+    */
+   static void getJacobian (
+      FemModel3d fem, double spos, double svel, MatrixNd J) {
+      int[] sizes = new int[fem.numNodes()];
+      for (int i=0; i<sizes.length; i++) {
+         sizes[i] = 3;
+      }
+      SparseNumberedBlockMatrix S = new SparseNumberedBlockMatrix (sizes);
+      fem.addSolveBlocks (S);
+      fem.addPosJacobian (S, spos);
+      if (svel != 0) {
+         fem.addVelJacobian (S, svel);
+      }
+      J.set (S);
+   }
+
+   /**
+    * Returns the largest Frobenius norm of a set of matrices.
+    */
+   static double maxNorm (ArrayList<Matrix3d> K) {
+      double max = 0;
+      for (Matrix3d M : K) {
+         max = Math.max (max, M.frobeniusNorm());
+      }
+      return max;
+   }
+}
@@ -374,6 +374,178 @@ public class FemUtilities {
       //K.m22 += (giz*gjz - gjz*giz); don't need to compute; is zero
    }
 
+   /**
+    * Version of {@link #addMaterialStiffness(Matrix3d,Vector3d,Matrix6d,
+    * Vector3d,double)} that adds the stiffness to a 3 x 3 block stored in
+    * row-major order within an array, starting at a given offset. This is
+    * used with {@link FemStiffnessStorage}.
+    */
+   public static void addMaterialStiffness (
+      double[] K, int off, Vector3d gi, Matrix6d D, Vector3d gj, double dv) {
+      double gjx = gj.x*dv;
+      double gjy = gj.y*dv;
+      double gjz = gj.z*dv;
+
+      double dm00 = D.m00*gjx + D.m03*gjy + D.m05*gjz;
+      double dm01 = D.m01*gjy + D.m03*gjx + D.m04*gjz;
+      double dm02 = D.m02*gjz + D.m04*gjy + D.m05*gjx;
+      
+      double dm10 = D.m10*gjx + D.m13*gjy + D.m15*gjz;
+      double dm11 = D.m11*gjy + D.m13*gjx + D.m14*gjz;
+      double dm12 = D.m12*gjz + D.m14*gjy + D.m15*gjx;
+      
+      double dm20 = D.m20*gjx + D.m23*gjy + D.m25*gjz;
+      double dm21 = D.m21*gjy + D.m23*gjx + D.m24*gjz;
+      double dm22 = D.m22*gjz + D.m24*gjy + D.m25*gjx;
+      
+      double dm30 = D.m30*gjx + D.m33*gjy + D.m35*gjz;
+      double dm31 = D.m31*gjy + D.m33*gjx + D.m34*gjz;
+      double dm32 = D.m32*gjz + D.m34*gjy + D.m35*gjx;
+      
+      double dm40 = D.m40*gjx + D.m43*gjy + D.m45*gjz;
+      double dm41 = D.m41*gjy + D.m43*gjx + D.m44*gjz;
+      double dm42 = D.m42*gjz + D.m44*gjy + D.m45*gjx;
+      
+      double dm50 = D.m50*gjx + D.m53*gjy + D.m55*gjz;
+      double dm51 = D.m51*gjy + D.m53*gjx + D.m54*gjz;
+      double dm52 = D.m52*gjz + D.m54*gjy + D.m55*gjx;
+
+      double gix = gi.x;
+      double giy = gi.y;
+      double giz = gi.z;
+
+      K[off  ] += gix*dm00 + giy*dm30 + giz*dm50;
+      K[off+1] += gix*dm01 + giy*dm31 + giz*dm51;
+      K[off+2] += gix*dm02 + giy*dm32 + giz*dm52;
+
+      K[off+3] += giy*dm10 + gix*dm30 + giz*dm40;
+      K[off+4] += giy*dm11 + gix*dm31 + giz*dm41;
+      K[off+5] += giy*dm12 + gix*dm32 + giz*dm42;
+
+      K[off+6] += giz*dm20 + giy*dm40 + gix*dm50;
+      K[off+7] += giz*dm21 + giy*dm41 + gix*dm51;
+      K[off+8] += giz*dm22 + giy*dm42 + gix*dm52;
+   }
+
+   /**
+    * Version of {@link #addGeometricStiffness(Matrix3d,Vector3d,
+    * SymmetricMatrix3d,Vector3d,double)} that adds the stiffness to a 3 x 3
+    * block stored in row-major order within an array.
+    */
+   public static void addGeometricStiffness (
+      double[] K, int off, Vector3d gi, 
+      SymmetricMatrix3d sig, Vector3d gj, double dv) {
+
+      double Kg = (
+         gi.x*(sig.m00*gj.x + sig.m01*gj.y + sig.m02*gj.z) +
+         gi.y*(sig.m10*gj.x + sig.m11*gj.y + sig.m12*gj.z) +
+         gi.z*(sig.m20*gj.x + sig.m21*gj.y + sig.m22*gj.z));
+      Kg = Kg*dv;
+
+      K[off  ] += Kg;
+      K[off+4] += Kg;
+      K[off+8] += Kg;
+   }
+
+   /**
+    * Version of {@link #addPressureStiffness(Matrix3d,Vector3d,double,
+    * Vector3d,double)} that adds the stiffness to a 3 x 3 block stored in
+    * row-major order within an array.
+    */
+   public static void addPressureStiffness (
+      double[] K, int off, Vector3d gi, double p, Vector3d gj, double dv) {
+
+      double gjx = p*gj.x*dv;
+      double gjy = p*gj.y*dv;
+      double gjz = p*gj.z*dv;
+
+      double gix = gi.x;
+      double giy = gi.y;
+      double giz = gi.z;
+
+      double diag = -gix*gjx - giy*gjy - giz*gjz;
+
+      K[off  ] += diag;
+      K[off+1] += gix*gjy - giy*gjx;
+      K[off+2] += gix*gjz - giz*gjx;
+
+      K[off+3] += giy*gjx - gix*gjy;
+      K[off+4] += diag;
+      K[off+5] += giy*gjz - giz*gjy;
+
+      K[off+6] += giz*gjx - gix*gjz;
+      K[off+7] += giz*gjy - giy*gjz;
+      K[off+8] += diag;
+   }
+
+   /**
+    * Version of {@link #addDilationalStiffness(Matrix3d,double,Vector3d,
+    * Vector3d)} that adds the stiffness to a 3 x 3 block stored in
+    * row-major order within an array.
+    */
+   public static void addDilationalStiffness (
+      double[] K, int off, double kp, Vector3d intGi, Vector3d intGj) {
+
+      addOuterProduct (
+         K, off, kp*intGi.x, kp*intGi.y, kp*intGi.z, intGj.x, intGj.y, intGj.z);
+   }
+
+   /**
+    * Version of {@link #addDilationalStiffness(Matrix3d,double,Matrix3x1,
+    * Matrix3x1)} that adds the stiffness to a 3 x 3 block stored in
+    * row-major order within an array.
+    */
+   public static void addDilationalStiffness (
+      double[] K, int off, double kp, Matrix3x1 GT_i, Matrix3x1 GT_j) {
+
+      addOuterProduct (
+         K, off, kp*GT_i.m00, kp*GT_i.m10, kp*GT_i.m20,
+         GT_j.m00, GT_j.m10, GT_j.m20);
+   }
+
+   private static void addOuterProduct (
+      double[] K, int off, double gix, double giy, double giz,
+      double gjx, double gjy, double gjz) {
+
+      K[off  ] += gix*gjx;
+      K[off+1] += gix*gjy;
+      K[off+2] += gix*gjz;
+
+      K[off+3] += giy*gjx;
+      K[off+4] += giy*gjy;
+      K[off+5] += giy*gjz;
+
+      K[off+6] += giz*gjx;
+      K[off+7] += giz*gjy;
+      K[off+8] += giz*gjz;
+   }
+
+   /**
+    * Version of {@link #addIncompressibilityStiffness(Matrix3d,double,
+    * Vector3d,Vector3d)} that adds the stiffness to a 3 x 3 block stored in
+    * row-major order within an array.
+    */
+   public static void addIncompressibilityStiffness (
+      double[] K, int off, double s, Vector3d intGi, Vector3d intGj) {
+
+      double gix = s*intGi.x;
+      double giy = s*intGi.y;
+      double giz = s*intGi.z;    
+
+      double gjx = intGj.x;
+      double gjy = intGj.y;
+      double gjz = intGj.z;    
+
+      K[off+1] += (gix*gjy - gjx*giy);
+      K[off+2] += (gix*gjz - gjx*giz);
+
+      K[off+3] += (giy*gjx - gjy*gix);
+      K[off+5] += (giy*gjz - gjy*giz);
+
+      K[off+6] += (giz*gjx - gjz*gix);
+      K[off+7] += (giz*gjy - gjz*giy);
+   }
+
    /** 
     * Adds H^T GNx dv to a matrix block, where H is a row vector of weight
     * values, and dv is a volume differential. It is assumed that the matrix
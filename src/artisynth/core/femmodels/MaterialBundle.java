@@ -445,6 +445,7 @@ public class MaterialBundle extends RenderableComponentBase
          FemModel3d fem = getAncestorFem(this);
          if (fem != null) {
             fem.invalidateStressAndStiffness();
+            fem.notifyMaterialsChanged();
             if (e.getHost() instanceof FemMaterial && 
                 ((FemMaterial)e.getHost()).isLinear()) {
                // invalidate rest data for linear materials, to rebuild
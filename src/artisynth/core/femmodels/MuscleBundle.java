@@ -454,6 +454,7 @@ public class MuscleBundle extends CompositeComponentBase
          }      
          fem.invalidateStressAndStiffness();
          fem.invalidateRestData();
+         fem.notifyMaterialsChanged();
       }
       // return newMat
    }
@@ -1009,6 +1010,9 @@ public class MuscleBundle extends CompositeComponentBase
          FemModel fem = getAncestorFem(this);
          if (fem != null) {
             fem.invalidateStressAndStiffness();
+            if (fem instanceof FemModel3d) {
+               ((FemModel3d)fem).notifyMaterialsChanged();
+            }
             if (e.getHost() instanceof FemMaterial && 
                 ((FemMaterial)e.getHost()).isLinear()) {
                // invalidate rest data for linear materials, to rebuild
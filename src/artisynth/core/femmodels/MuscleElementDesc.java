@@ -70,6 +70,8 @@ public class MuscleElementDesc
    private double myExcitation = 0;
    protected ExcitationSourceList myExcitationSources;
    protected CombinationRule myComboRule = CombinationRule.Sum;
+   // net excitation stored for concurrent stress evaluation
+   double myStoredExcitation = 0;
 
    // the following are set if an activation color is specified:
    protected float[] myDirectionColor; // render color for directions
@@ -492,7 +494,7 @@ public class MuscleElementDesc
       }
    }
 
-   private MuscleMaterial getEffectiveMuscleMaterial () {
+   MuscleMaterial getEffectiveMuscleMaterial () {
 //      if (myMuscleMat != null) {
 //         return myMuscleMat;
 //      }
@@ -548,13 +550,39 @@ public class MuscleElementDesc
       IntegrationPoint3d pt, IntegrationData3d dt, MaterialStateObject state) {
 
       MuscleMaterial mat = getEffectiveMuscleMaterial();
+      double excitation = (mat != null ? getNetExcitation() : 0);
+      computeStressAndTangent (sigma, D, def, pt, state, mat, excitation);
+   }  
+
+   /**
+    * Stores the current net excitation, for later use by {@link
+    * #computeStressAndTangent(SymmetricMatrix3d,Matrix6d,DeformedPoint,
+    * IntegrationPoint3d,MaterialStateObject,MuscleMaterial,double)}.
+    * Computing this once per update also avoids combining the excitation
+    * sources at every integration point.
+    */
+   void storeNetExcitation() {
+      myStoredExcitation = getNetExcitation();
+   }
+
+   /**
+    * Computes the stress and tangent using a specified muscle material and
+    * net excitation. This allows elements to be evaluated concurrently, with
+    * <code>mat</code> a thread-specific copy of the effective muscle
+    * material.
+    */
+   void computeStressAndTangent( 
+      SymmetricMatrix3d sigma, Matrix6d D, DeformedPoint def,
+      IntegrationPoint3d pt, MaterialStateObject state,
+      MuscleMaterial mat, double excitation) {
+
       Vector3d dir = null;
       if (mat != null) {
          dir = getMuscleDirection(pt.getNumber());
       }
       if (dir != null) {
          mat.computeStressAndTangent (
-            sigma, D, def, dir, getNetExcitation(), state);
+            sigma, D, def, dir, excitation, state);
       }
       else {
          sigma.setZero();
@@ -233,24 +233,24 @@ public class StiffnessWarper3d {
       if (corotated != null) {
          Matrix3d Kr = new Matrix3d();
          Kr.transform (R, corotated.getInitialStiffness00(i,j));
-         nbr.myK00.add(Kr);
+         nbr.addK00(Kr);
          if (corotated.hasShellData()) {
             Kr.transform (R, corotated.getInitialStiffness01(i,j));
-            nbr.myK01.add(Kr);
+            nbr.addK01(Kr);
             Kr.transform (R, corotated.getInitialStiffness10(i,j));
-            nbr.myK10.add(Kr);
+            nbr.addK10(Kr);
             Kr.transform (R, corotated.getInitialStiffness11(i,j));
-            nbr.myK11.add(Kr);
+            nbr.addK11(Kr);
          }
       }
       
       // linear component
       if (linear != null) {
-         nbr.myK00.add (linear.getInitialStiffness00(i, j));
+         nbr.addK00 (linear.getInitialStiffness00(i, j));
          if (linear.hasShellData()) {
-            nbr.myK01.add (linear.getInitialStiffness01(i, j));
-            nbr.myK10.add (linear.getInitialStiffness10(i, j));
-            nbr.myK11.add (linear.getInitialStiffness11(i, j));
+            nbr.addK01 (linear.getInitialStiffness01(i, j));
+            nbr.addK10 (linear.getInitialStiffness10(i, j));
+            nbr.addK11 (linear.getInitialStiffness11(i, j));
          }
       }
    }
@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.femmodels.integration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import artisynth.core.femmodels.FemElement3d;
+import maspack.function.Function3x1;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.QRDecomposition;
+import maspack.matrix.VectorNd;
+
+/**
+ * Element-level cubature rule, which approximates an integral over a set of
+ * elements by a weighted sum of integrals over a small subset of them. Each
+ * element integral is itself computed using a {@link FemElementIntegrator},
+ * typically based on the element's own integration points.
+ *
+ * <p>Rules of this type are used in reduced-order simulation, where the
+ * reduced forces of a model can be approximated accurately using only a
+ * few elements. The elements and weights are found by {@link #fit}, which
+ * solves a non-negative least squares problem that matches the
+ * contributions of all elements for a set of training samples.
+ */
+public class FemElementCubature {
+
+   protected ArrayList<FemElement3d> myElements;
+   protected VectorNd myWeights;
+   protected double myResidual;
+
+   /**
+    * Creates an empty cubature rule.
+    */
+   public FemElementCubature() {
+      myElements = new ArrayList<FemElement3d>();
+      myWeights = new VectorNd();
+      myResidual = 0;
+   }
+
+   /**
+    * Creates an exact cubature rule, which contains each of the specified
+    * elements with a weight of 1.
+    *
+    * @param elems elements to add to the rule
+    */
+   public FemElementCubature (Collection<? extends FemElement3d> elems) {
+      this();
+      for (FemElement3d e : elems) {
+         addElement (e, 1.0);
+      }
+   }
+
+   /**
+    * Adds an element to this rule.
+    *
+    * @param elem element to add
+    * @param w weight of the element
+    */
+   public void addElement (FemElement3d elem, double w) {
+      myElements.add (elem);
+      myWeights.append (w);
+   }
+
+   /**
+    * Removes all elements from this rule.
+    */
+   public void clear() {
+      myElements.clear();
+      myWeights.setSize (0);
+      myResidual = 0;
+   }
+
+   /**
+    * Returns the number of elements in this rule.
+    *
+    * @return number of elements
+    */
+   public int numElements() {
+      return myElements.size();
+   }
+
+   /**
+    * Returns the <code>k</code>-th element of this rule.
+    *
+    * @param k element index
+    * @return element
+    */
+   public FemElement3d getElement (int k) {
+      return myElements.get (k);
+   }
+
+   /**
+    * Returns the weight of the <code>k</code>-th element of this rule.
+    *
+    * @param k element index
+    * @return element weight
+    */
+   public double getWeight (int k) {
+      return myWeights.get (k);
+   }
+
+   /**
+    * Returns the relative residual of the least squares fit used to create
+    * this rule, or 0 if the rule was not created by fitting.
+    *
+    * @return relative fit residual
+    */
+   public double getResidual() {
+      return myResidual;
+   }
+
+   /**
+    * Approximates the integral of a function over the elements from which
+    * this rule was created, by integrating it over each of the rule's
+    * elements and forming the weighted sum.
+    *
+    * @param func function to integrate
+    * @param integrator integrator used for each element
+    * @return approximate integral
+    */
+   public double integrate (Function3x1 func, FemElementIntegrator integrator) {
+      double out = 0;
+      for (int k=0; k<myElements.size(); k++) {
+         out += myWeights.get(k)*integrator.integrate (myElements.get(k), func);
+      }
+      return out;
+   }
+
+   /**
+    * Fits a cubature rule to training data. Column <code>j</code> of
+    * <code>G</code> gives the contribution of element <code>j</code> to a
+    * set of training quantities (such as the reduced forces of the element
+    * for several training poses), and <code>b</code> gives the values to be
+    * matched, which are usually the row sums of <code>G</code>. The rule is
+    * found by solving
+    * <pre>
+    * min || G w - b ||,  w &gt;= 0
+    * </pre>
+    * for a sparse set of weights w. Elements are added greedily, choosing
+    * at each step the element whose contribution is most correlated with
+    * the current residual and then recomputing all the weights using the
+    * Lawson-Hanson non-negative least squares method. Elements are added
+    * until the relative residual ||G w - b|| / ||b|| is less than
+    * <code>tol</code>, or the rule contains <code>maxElems</code> elements.
+    *
+    * @param elems elements corresponding to the columns of <code>G</code>
+    * @param G training matrix
+    * @param b values to be matched
+    * @param tol relative residual tolerance
+    * @param maxElems maximum number of elements in the rule
+    * @return fitted cubature rule
+    */
+   public static FemElementCubature fit (
+      List<? extends FemElement3d> elems, MatrixNd G, VectorNd b,
+      double tol, int maxElems) {
+
+      int m = G.rowSize();
+      int ne = G.colSize();
+      if (elems.size() != ne) {
+         throw new IllegalArgumentException (
+            "Number of elements "+elems.size()+" does not equal "+
+            "number of columns "+ne);
+      }
+      if (b.size() != m) {
+         throw new IllegalArgumentException (
+            "Size of b is "+b.size()+", expected "+m);
+      }
+      VectorNd colNorms = new VectorNd (ne);
+      VectorNd col = new VectorNd (m);
+      for (int j=0; j<ne; j++) {
+         G.getColumn (j, col);
+         colNorms.set (j, col.norm());
+      }
+      double bnorm = b.norm();
+      boolean[] selected = new boolean[ne];
+      ArrayList<Integer> active = new ArrayList<Integer>();
+      VectorNd w = new VectorNd();
+      VectorNd r = new VectorNd (b);
+      VectorNd c = new VectorNd (ne);
+      double res = (bnorm > 0 ? 1.0 : 0.0);
+
+      // least squares solves require at least as many rows as elements
+      int nmax = Math.min (maxElems, Math.min (ne, m));
+      // limits the number of steps in case elements are repeatedly added
+      // and then removed
+      int maxSteps = 4*nmax;
+      for (int step=0; step<maxSteps && res>tol && active.size()<nmax; step++) {
+         // find the element most correlated with the residual
+         c.mulTranspose (G, r);
+         int jmax = -1;
+         double cmax = 0;
+         for (int j=0; j<ne; j++) {
+            if (!selected[j] && colNorms.get(j) > 0) {
+               double cj = c.get(j)/colNorms.get(j);
+               if (cj > cmax) {
+                  cmax = cj;
+                  jmax = j;
+               }
+            }
+         }
+         if (jmax == -1) {
+            break;
+         }
+         selected[jmax] = true;
+         active.add (jmax);
+         w.append (0);
+         solveNonNegative (w, G, b, active, selected);
+         computeResidual (r, G, b, w, active);
+         res = r.norm()/bnorm;
+      }
+
+      FemElementCubature cubature = new FemElementCubature();
+      for (int k=0; k<active.size(); k++) {
+         if (w.get(k) > 0) {
+            cubature.addElement (elems.get (active.get(k)), w.get(k));
+         }
+      }
+      cubature.myResidual = res;
+      return cubature;
+   }
+
+   /**
+    * Computes r = b - G w, where w gives the weights for the active columns
+    * of G.
+    */
+   private static void computeResidual (
+      VectorNd r, MatrixNd G, VectorNd b, VectorNd w, List<Integer> active) {
+      r.set (b);
+      for (int k=0; k<active.size(); k++) {
+         int j = active.get(k);
+         double wk = w.get(k);
+         if (wk != 0) {
+            for (int i=0; i<r.size(); i++) {
+               r.add (i, -wk*G.get (i, j));
+            }
+         }
+      }
+   }
+
+   /**
+    * Solves the unconstrained least squares problem for the active columns
+    * of G.
+    */
+   private static void solveLeastSquares (
+      VectorNd z, MatrixNd G, VectorNd b, List<Integer> active) {
+      MatrixNd GA = new MatrixNd (G.rowSize(), active.size());
+      for (int k=0; k<active.size(); k++) {
+         int j = active.get(k);
+         for (int i=0; i<G.rowSize(); i++) {
+            GA.set (i, k, G.get (i, j));
+         }
+      }
+      QRDecomposition qrd = new QRDecomposition (GA);
+      qrd.solve (z, b);
+   }
+
+   /**
+    * Recomputes the weights w for the active columns of G using the
+    * Lawson-Hanson method. Columns whose weights become zero are removed
+    * from the active set.
+    */
+   private static void solveNonNegative (
+      VectorNd w, MatrixNd G, VectorNd b, List<Integer> active,
+      boolean[] selected) {
+
+      VectorNd z = new VectorNd (active.size());
+      solveLeastSquares (z, G, b, active);
+      int maxIter = 3*active.size();
+      for (int iter=0; iter<maxIter; iter++) {
+         // stop if the unconstrained solution is feasible
+         double alpha = 1.0;
+         int kmin = -1;
+         for (int k=0; k<z.size(); k++) {
+            if (z.get(k) <= 0) {
+               double a = w.get(k)/(w.get(k)-z.get(k));
+               if (kmin == -1 || a < alpha) {
+                  alpha = a;
+                  kmin = k;
+               }
+            }
+         }
+         if (kmin == -1) {
+            break;
+         }
+         // move toward z as far as feasibility allows, and then remove
+         // columns whose weights have become zero
+         for (int k=z.size()-1; k>=0; k--) {
+            double wk = w.get(k) + alpha*(z.get(k)-w.get(k));
+            if (k == kmin || wk <= 0) {
+               selected[active.get(k)] = false;
+               active.remove (k);
+               removeEntry (w, k);
+            }
+            else {
+               w.set (k, wk);
+            }
+         }
+         if (active.size() == 0) {
+            z.setSize (0);
+            break;
+         }
+         z.setSize (active.size());
+         solveLeastSquares (z, G, b, active);
+      }
+      w.set (z);
+   }
+
+   private static void removeEntry (VectorNd v, int k) {
+      for (int i=k; i<v.size()-1; i++) {
+         v.set (i, v.get(i+1));
+      }
+      v.setSize (v.size()-1);
+   }
+}
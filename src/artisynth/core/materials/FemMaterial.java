@@ -108,6 +108,186 @@ public abstract class FemMaterial extends MaterialBase
    public abstract void computeStressAndTangent (
       SymmetricMatrix3d sigma, Matrix6d D, DeformedPoint def, 
       Matrix3d Q, double excitation, MaterialStateObject state);
+
+   /**
+    * Returns true if this material provides a specialized implementation of
+    * {@link #computeStressAndTangent(double[],double[],double[],double[],
+    * double[],int) computeStressAndTangent()} for evaluating many points at
+    * once. Callers may use the batch method regardless, but when this method
+    * returns false it simply evaluates each point in turn using the
+    * single-point method.
+    *
+    * @return true if batch evaluation is specialized for this material
+    */
+   public boolean supportsBatchEvaluation() {
+      return false;
+   }
+
+   /**
+    * Computes the Cauchy stress, and optionally the tangent matrix, for a
+    * batch of points. The deformation information for all points is packed
+    * into primitive arrays so that implementations can evaluate the points in
+    * a single loop without per-point virtual calls or object allocation.
+    * Stresses are stored as 6 values per point, in the order <code>(xx, yy,
+    * zz, xy, yz, xz)</code> used by the rows of the tangent matrix, and
+    * tangent matrices and deformation gradients are stored as 36 and 9 values
+    * per point, respectively, in row-major order.
+    *
+    * <p>Batch evaluation assumes an isotropic material without state and
+    * without field-dependent properties, so that the result depends only on
+    * the deformation gradient and pressure. Each point is evaluated as though
+    * by the single-point method with <code>Q</code> equal to the identity, an
+    * excitation of 0, and <code>state</code> equal to <code>null</code>. The
+    * default implementation does exactly this.
+    *
+    * @param sig returns the Cauchy stresses (6 values per point)
+    * @param D optional; if non-{@code null}, returns the tangent matrices (36
+    * values per point)
+    * @param F deformation gradients (9 values per point)
+    * @param detF determinants of the deformation gradients
+    * @param p optional; if non-{@code null}, gives the average pressure for
+    * each point. Otherwise, the pressures are assumed to be 0.
+    * @param num number of points to evaluate
+    */
+   public void computeStressAndTangent (
+      double[] sig, double[] D, double[] F, double[] detF, double[] p,
+      int num) {
+
+      DeformedPointBase dpnt = new DeformedPointBase();
+      SymmetricMatrix3d sigma = new SymmetricMatrix3d();
+      Matrix6d Dmat = (D != null ? new Matrix6d() : null);
+      Matrix3d Fmat = new Matrix3d();
+      for (int k=0; k<num; k++) {
+         getDeformationGradient (Fmat, F, k);
+         dpnt.setF (Fmat);
+         dpnt.setAveragePressure (p != null ? p[k] : 0);
+         computeStressAndTangent (
+            sigma, Dmat, dpnt, Matrix3d.IDENTITY, 0.0, null);
+         setStress (sig, k, sigma);
+         if (D != null) {
+            setTangent (D, k, Dmat);
+         }
+      }
+   }
+
+   /**
+    * Loads the <code>k</code>-th deformation gradient from an array used
+    * for batch evaluation.
+    *
+    * @param Fmat returns the deformation gradient
+    * @param F array of deformation gradients (9 values per point)
+    * @param k index of the point
+    */
+   public static void getDeformationGradient (
+      Matrix3d Fmat, double[] F, int k) {
+      int off = 9*k;
+      Fmat.m00 = F[off  ]; Fmat.m01 = F[off+1]; Fmat.m02 = F[off+2];
+      Fmat.m10 = F[off+3]; Fmat.m11 = F[off+4]; Fmat.m12 = F[off+5];
+      Fmat.m20 = F[off+6]; Fmat.m21 = F[off+7]; Fmat.m22 = F[off+8];
+   }
+
+   /**
+    * Stores the <code>k</code>-th deformation gradient into an array used
+    * for batch evaluation.
+    *
+    * @param F array of deformation gradients (9 values per point)
+    * @param k index of the point
+    * @param Fmat deformation gradient to store
+    */
+   public static void setDeformationGradient (
+      double[] F, int k, Matrix3d Fmat) {
+      int off = 9*k;
+      F[off  ] = Fmat.m00; F[off+1] = Fmat.m01; F[off+2] = Fmat.m02;
+      F[off+3] = Fmat.m10; F[off+4] = Fmat.m11; F[off+5] = Fmat.m12;
+      F[off+6] = Fmat.m20; F[off+7] = Fmat.m21; F[off+8] = Fmat.m22;
+   }
+
+   /**
+    * Loads the <code>k</code>-th stress from an array used for batch
+    * evaluation.
+    *
+    * @param sigma returns the stress
+    * @param sig array of stresses (6 values per point)
+    * @param k index of the point
+    */
+   public static void getStress (SymmetricMatrix3d sigma, double[] sig, int k) {
+      int off = 6*k;
+      sigma.m00 = sig[off  ];
+      sigma.m11 = sig[off+1];
+      sigma.m22 = sig[off+2];
+      sigma.m01 = sig[off+3];
+      sigma.m12 = sig[off+4];
+      sigma.m02 = sig[off+5];
+      sigma.m10 = sigma.m01;
+      sigma.m21 = sigma.m12;
+      sigma.m20 = sigma.m02;
+   }
+
+   /**
+    * Stores the <code>k</code>-th stress into an array used for batch
+    * evaluation.
+    *
+    * @param sig array of stresses (6 values per point)
+    * @param k index of the point
+    * @param sigma stress to store
+    */
+   public static void setStress (double[] sig, int k, SymmetricMatrix3d sigma) {
+      int off = 6*k;
+      sig[off  ] = sigma.m00;
+      sig[off+1] = sigma.m11;
+      sig[off+2] = sigma.m22;
+      sig[off+3] = sigma.m01;
+      sig[off+4] = sigma.m12;
+      sig[off+5] = sigma.m02;
+   }
+
+   /**
+    * Loads the <code>k</code>-th tangent matrix from an array used for
+    * batch evaluation.
+    *
+    * @param Dmat returns the tangent matrix
+    * @param D array of tangent matrices (36 values per point)
+    * @param k index of the point
+    */
+   public static void getTangent (Matrix6d Dmat, double[] D, int k) {
+      int off = 36*k;
+      Dmat.m00 = D[off   ]; Dmat.m01 = D[off+ 1]; Dmat.m02 = D[off+ 2];
+      Dmat.m03 = D[off+ 3]; Dmat.m04 = D[off+ 4]; Dmat.m05 = D[off+ 5];
+      Dmat.m10 = D[off+ 6]; Dmat.m11 = D[off+ 7]; Dmat.m12 = D[off+ 8];
+      Dmat.m13 = D[off+ 9]; Dmat.m14 = D[off+10]; Dmat.m15 = D[off+11];
+      Dmat.m20 = D[off+12]; Dmat.m21 = D[off+13]; Dmat.m22 = D[off+14];
+      Dmat.m23 = D[off+15]; Dmat.m24 = D[off+16]; Dmat.m25 = D[off+17];
+      Dmat.m30 = D[off+18]; Dmat.m31 = D[off+19]; Dmat.m32 = D[off+20];
+      Dmat.m33 = D[off+21]; Dmat.m34 = D[off+22]; Dmat.m35 = D[off+23];
+      Dmat.m40 = D[off+24]; Dmat.m41 = D[off+25]; Dmat.m42 = D[off+26];
+      Dmat.m43 = D[off+27]; Dmat.m44 = D[off+28]; Dmat.m45 = D[off+29];
+      Dmat.m50 = D[off+30]; Dmat.m51 = D[off+31]; Dmat.m52 = D[off+32];
+      Dmat.m53 = D[off+33]; Dmat.m54 = D[off+34]; Dmat.m55 = D[off+35];
+   }
+
+   /**
+    * Stores the <code>k</code>-th tangent matrix into an array used for
+    * batch evaluation.
+    *
+    * @param D array of tangent matrices (36 values per point)
+    * @param k index of the point
+    * @param Dmat tangent matrix to store
+    */
+   public static void setTangent (double[] D, int k, Matrix6d Dmat) {
+      int off = 36*k;
+      D[off   ] = Dmat.m00; D[off+ 1] = Dmat.m01; D[off+ 2] = Dmat.m02;
+      D[off+ 3] = Dmat.m03; D[off+ 4] = Dmat.m04; D[off+ 5] = Dmat.m05;
+      D[off+ 6] = Dmat.m10; D[off+ 7] = Dmat.m11; D[off+ 8] = Dmat.m12;
+      D[off+ 9] = Dmat.m13; D[off+10] = Dmat.m14; D[off+11] = Dmat.m15;
+      D[off+12] = Dmat.m20; D[off+13] = Dmat.m21; D[off+14] = Dmat.m22;
+      D[off+15] = Dmat.m23; D[off+16] = Dmat.m24; D[off+17] = Dmat.m25;
+      D[off+18] = Dmat.m30; D[off+19] = Dmat.m31; D[off+20] = Dmat.m32;
+      D[off+21] = Dmat.m33; D[off+22] = Dmat.m34; D[off+23] = Dmat.m35;
+      D[off+24] = Dmat.m40; D[off+25] = Dmat.m41; D[off+26] = Dmat.m42;
+      D[off+27] = Dmat.m43; D[off+28] = Dmat.m44; D[off+29] = Dmat.m45;
+      D[off+30] = Dmat.m50; D[off+31] = Dmat.m51; D[off+32] = Dmat.m52;
+      D[off+33] = Dmat.m53; D[off+34] = Dmat.m54; D[off+35] = Dmat.m55;
+   }
    
    /**
     * Returns true if this material is defined for a deformation gradient
@@ -255,6 +255,51 @@ public class FemMaterialTest extends UnitTest {
    //  }
 
 
+   /**
+    * Checks that the batch version of computeStressAndTangent gives the
+    * same results as the single-point version, for all the deformation
+    * gradients in myFVals.
+    */
+   public void testBatchEvaluation (FemMaterial mat) {
+      int num = myFVals.size();
+      double[] F = new double[9*num];
+      double[] detF = new double[num];
+      double[] p = new double[num];
+      for (int k=0; k<num; k++) {
+         FemMaterial.setDeformationGradient (F, k, myFVals.get(k));
+         detF[k] = myFVals.get(k).determinant();
+         p[k] = myPressure*(k+1);
+      }
+      double[] sig = new double[6*num];
+      double[] D = new double[36*num];
+      mat.computeStressAndTangent (sig, D, F, detF, p, num);
+
+      SymmetricMatrix3d sigChk = new SymmetricMatrix3d();
+      Matrix6d DChk = new Matrix6d();
+      SymmetricMatrix3d sigBatch = new SymmetricMatrix3d();
+      Matrix6d DBatch = new Matrix6d();
+      DeformedPointBase defp = new DeformedPointBase();
+      String name = mat.getClass().getSimpleName();
+      for (int k=0; k<num; k++) {
+         defp.setF (myFVals.get(k));
+         defp.setAveragePressure (p[k]);
+         mat.computeStressAndTangent (
+            sigChk, DChk, defp, Matrix3d.IDENTITY, 0.0, null);
+         FemMaterial.getStress (sigBatch, sig, k);
+         FemMaterial.getTangent (DBatch, D, k);
+         checkNormedEquals (name+" batch stress", sigBatch, sigChk, 1e-14);
+         checkNormedEquals (name+" batch tangent", DBatch, DChk, 1e-14);
+      }
+      // stresses should not depend on whether tangents are computed
+      double[] sigNoD = new double[6*num];
+      mat.computeStressAndTangent (sigNoD, null, F, detF, p, num);
+      for (int k=0; k<num; k++) {
+         FemMaterial.getStress (sigChk, sig, k);
+         FemMaterial.getStress (sigBatch, sigNoD, k);
+         checkEquals (name+" batch stress, no D", sigBatch, sigChk);
+      }
+   }
+
    /**
     * Test method executed by runtest().
     */
@@ -332,6 +377,13 @@ public class FemMaterialTest extends UnitTest {
       testTangent (fullBlemkerMuscle, tol);
       testTangent (simpleMuscle, tol);
       testTangent (blemkerMuscle, tol);
+
+      testBatchEvaluation (neohook);
+      testBatchEvaluation (mooney);
+      testBatchEvaluation (
+         new MooneyRivlinMaterial (1.2, 3.4, 0.5, 0.6, 0.7, 1000.0));
+      testBatchEvaluation (stvk);
+      testBatchEvaluation (incompNeohook);
    }
 
    public static void main (String[] args) {
@@ -791,6 +791,8 @@ public class FungMaterial extends IncompressibleMaterialBase {
    public FungMaterial clone() {
       FungMaterial mat = (FungMaterial)super.clone();
       mat.myB = new SymmetricMatrix3d();
+      mat.myC = new SymmetricMatrix3d();
+      mat.myC2 = new SymmetricMatrix3d();
       return mat;
    }
 
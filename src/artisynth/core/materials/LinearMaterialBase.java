@@ -162,6 +162,7 @@ public abstract class LinearMaterialBase extends FemMaterial {
 
    public LinearMaterialBase clone() {
       LinearMaterialBase mat = (LinearMaterialBase)super.clone();
+      mat.mySVD = null;
       return mat;
    }
 
@@ -386,23 +386,29 @@ public class MooneyRivlinMaterial extends IncompressibleMaterialBase {
       // Weiss, Makerc, and Govindjeed, Computer Methods in Applied Mechanical
       // Engineering, 1996.
 
-      double J = def.getDetF();
+      computeLeftCauchyGreen(myB,def);
+      computeDevStressAndTangent (
+         sigma, D, def.getDetF(), getC10(def), getC01(def), getC11(def),
+         getC20(def), getC02(def));
+   }
+
+   /**
+    * Computes the deviatoric stress and tangent for given values of J and
+    * the material parameters, assuming that the left Cauchy-Green tensor
+    * has been placed in myB.
+    */
+   private void computeDevStressAndTangent (
+      SymmetricMatrix3d sigma, Matrix6d D, double J, 
+      double c10, double c01, double c11, double c20, double c02) {
 
       computePhiVals (myPhiVals, J);
       double phi = myPhiVals[0];
       double dphi = myPhiVals[1];
 
-      computeLeftCauchyGreen(myB,def);
       // scale to compute deviatoric part; use phi in place of pow(J,-2/3);
       myB.scale (phi);
       myB2.mulTransposeLeft (myB); // compute B*B
 
-      double c10 = getC10(def);
-      double c01 = getC01(def);
-      double c11 = getC11(def);
-      double c20 = getC20(def);
-      double c02 = getC02(def);
-      
       double I1 = myB.trace();
       double I2 = 0.5*(I1*I1 - myB2.trace());
 
@@ -440,8 +446,6 @@ public class MooneyRivlinMaterial extends IncompressibleMaterialBase {
          double wcc = wc1*I1 + wc2*(I1*I1-2*I2);
          double w0 = W1*I1 + 2*W2*I2;
 
-         double p = def.getAveragePressure();      
-
          D.setZero();
 
          double zeta = ((dphi+J*ddphi)*w0 + J*dphi*dphi/phi*(wcc-2*w0))/phi;
@@ -466,6 +470,56 @@ public class MooneyRivlinMaterial extends IncompressibleMaterialBase {
       }
    }
 
+   /**
+    * {@inheritDoc}
+    *
+    * <p>Batch evaluation is specialized unless any of the material
+    * parameters are determined by field functions.
+    */
+   public boolean supportsBatchEvaluation() {
+      return (myC10Function == null && myC01Function == null &&
+              myC11Function == null && myC20Function == null &&
+              myC02Function == null);
+   }
+
+   public void computeStressAndTangent (
+      double[] sig, double[] D, double[] F, double[] detF, double[] p,
+      int num) {
+
+      if (!supportsBatchEvaluation()) {
+         super.computeStressAndTangent (sig, D, F, detF, p, num);
+         return;
+      }
+      SymmetricMatrix3d sigma = new SymmetricMatrix3d();
+      Matrix6d Dmat = (D != null ? new Matrix6d() : null);
+      for (int k=0; k<num; k++) {
+         // left Cauchy-Green tensor B = F F^T
+         int fo = 9*k;
+         double f00 = F[fo  ], f01 = F[fo+1], f02 = F[fo+2];
+         double f10 = F[fo+3], f11 = F[fo+4], f12 = F[fo+5];
+         double f20 = F[fo+6], f21 = F[fo+7], f22 = F[fo+8];
+         myB.m00 = f00*f00 + f01*f01 + f02*f02;
+         myB.m11 = f10*f10 + f11*f11 + f12*f12;
+         myB.m22 = f20*f20 + f21*f21 + f22*f22;
+         myB.m01 = f00*f10 + f01*f11 + f02*f12;
+         myB.m02 = f00*f20 + f01*f21 + f02*f22;
+         myB.m12 = f10*f20 + f11*f21 + f12*f22;
+         myB.m10 = myB.m01;
+         myB.m20 = myB.m02;
+         myB.m21 = myB.m12;
+
+         computeDevStressAndTangent (
+            sigma, Dmat, detF[k], myC10, myC01, myC11, myC20, myC02);
+         double pk = (p != null ? p[k] : 0);
+         addPressureStress (sigma, pk);
+         setStress (sig, k, sigma);
+         if (D != null) {
+            addPressureTangent (Dmat, pk);
+            setTangent (D, k, Dmat);
+         }
+      }
+   }
+
    public boolean equals (FemMaterial mat) {
       if (!(mat instanceof MooneyRivlinMaterial)) {
          return false;
@@ -488,6 +542,7 @@ public class MooneyRivlinMaterial extends IncompressibleMaterialBase {
       mat.myB = new SymmetricMatrix3d();
       mat.myB2 = new SymmetricMatrix3d();
       mat.myTmp = new SymmetricMatrix3d();
+      mat.myPhiVals = new double[3];
       return mat;
    }
 
@@ -98,6 +98,7 @@ public abstract class MuscleMaterial extends FemMaterial {
     * Hook to notify associated components of change in parameters.
     */
    protected void notifyHostOfPropertyChange() {
+      notifyHostOfPropertyChange ("???");
    }
 
    public void computeStressAndTangent (
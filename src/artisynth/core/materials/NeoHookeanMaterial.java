@@ -1,5 +1,7 @@
 package artisynth.core.materials;
 
+import java.util.Arrays;
+
 import artisynth.core.modelbase.*;
 import maspack.matrix.Matrix3d;
 import maspack.matrix.Matrix6d;
@@ -138,6 +140,65 @@ public class NeoHookeanMaterial extends FemMaterial {
       }
    }
 
+   /**
+    * {@inheritDoc}
+    *
+    * <p>Batch evaluation is specialized unless Young's modulus is
+    * determined by a field function.
+    */
+   public boolean supportsBatchEvaluation() {
+      return myEFunc == null;
+   }
+
+   public void computeStressAndTangent (
+      double[] sig, double[] D, double[] F, double[] detF, double[] p,
+      int num) {
+
+      if (!supportsBatchEvaluation()) {
+         super.computeStressAndTangent (sig, D, F, detF, p, num);
+         return;
+      }
+      double E = myE;
+      double G = E/(2*(1+myNu));
+      double lam = (E*myNu)/((1-2*myNu)*(1+myNu));
+      double mu = G;
+
+      for (int k=0; k<num; k++) {
+         double J = detF[k];
+         double logJ = Math.log(J);
+
+         // left Cauchy-Green tensor B = F F^T
+         int fo = 9*k;
+         double f00 = F[fo  ], f01 = F[fo+1], f02 = F[fo+2];
+         double f10 = F[fo+3], f11 = F[fo+4], f12 = F[fo+5];
+         double f20 = F[fo+6], f21 = F[fo+7], f22 = F[fo+8];
+
+         double s = mu/J;
+         double diagTerm = (lam*logJ-mu)/J;
+         int so = 6*k;
+         sig[so  ] = s*(f00*f00 + f01*f01 + f02*f02) + diagTerm;
+         sig[so+1] = s*(f10*f10 + f11*f11 + f12*f12) + diagTerm;
+         sig[so+2] = s*(f20*f20 + f21*f21 + f22*f22) + diagTerm;
+         sig[so+3] = s*(f00*f10 + f01*f11 + f02*f12);
+         sig[so+4] = s*(f10*f20 + f11*f21 + f12*f22);
+         sig[so+5] = s*(f00*f20 + f01*f21 + f02*f22);
+
+         if (D != null) {
+            double a = lam/J;
+            double b = 2*(mu-lam*logJ)/J;
+            double h = b*0.5;
+            int off = 36*k;
+            Arrays.fill (D, off, off+36, 0.0);
+            D[off   ] = a + b; D[off+ 1] = a;     D[off+ 2] = a;
+            D[off+ 6] = a;     D[off+ 7] = a + b; D[off+ 8] = a;
+            D[off+12] = a;     D[off+13] = a;     D[off+14] = a + b;
+            D[off+21] = h;
+            D[off+28] = h;
+            D[off+35] = h;
+         }
+      }
+   }
+
    public boolean equals (FemMaterial mat) {
       if (!(mat instanceof NeoHookeanMaterial)) {
          return false;
@@ -971,7 +971,11 @@ public class OgdenMaterial extends IncompressibleMaterialBase {
 
    public OgdenMaterial clone() {
       OgdenMaterial mat = (OgdenMaterial)super.clone();
+      mat.myMu = myMu.clone();
+      mat.myAlpha = myAlpha.clone();
       mat.myB = new SymmetricMatrix3d();
+      mat.myB2 = new SymmetricMatrix3d();
+      mat.myTmp = new SymmetricMatrix3d();
       return mat;
    }
 
@@ -27,6 +27,9 @@ public class AxialSpring extends PointSpringBase
    protected Point myPnt0;
    protected Point myPnt1;
    protected SegmentData mySeg = new SegmentData (null, null);
+   // temporaries used to avoid allocating memory at each time step
+   private Vector3d myTmpForce = new Vector3d();
+   private Matrix3d myTmpJacobian = new Matrix3d();
 
    public static PropertyList myProps =
       new PropertyList (AxialSpring.class, PointSpringBase.class);
@@ -124,7 +127,7 @@ public class AxialSpring extends PointSpringBase
    }
 
    public void applyForces (double t) {
-      Vector3d tmp = new Vector3d();
+      Vector3d tmp = myTmpForce;
       computeForce (tmp);
       myPnt0.addForce (tmp);
       myPnt1.subForce (tmp);
@@ -261,7 +264,7 @@ public class AxialSpring extends PointSpringBase
    }
 
    public void addPosJacobian (SparseNumberedBlockMatrix M, double s) {
-      Matrix3d Tmp = new Matrix3d();
+      Matrix3d Tmp = myTmpJacobian;
       double l = getLength();
       double ldot = getLengthDot();
       double F = computeF (l, ldot);
@@ -271,7 +274,7 @@ public class AxialSpring extends PointSpringBase
    }
 
    public void addVelJacobian (SparseNumberedBlockMatrix M, double s) {
-      Matrix3d Tmp = new Matrix3d();
+      Matrix3d Tmp = myTmpJacobian;
       double l = getLength();
       double ldot = getLengthDot();
       double dFdldot = computeDFdldot (l, ldot);
@@ -374,6 +377,8 @@ public class AxialSpring extends PointSpringBase
       //comp.setStiffness (myStiffness);
       //comp.setDamping (myDamping);
       comp.mySeg = new SegmentData (pnt0, pnt1);
+      comp.myTmpForce = new Vector3d();
+      comp.myTmpJacobian = new Matrix3d();
 
       return comp;
    }
@@ -59,6 +59,14 @@ public class CollisionHandler extends ConstrainerBase
    // to force values in rendering code
    ArrayList<ContactConstraint> myPrevUnilaterals;
    int myMaxUnilaterals = 100;
+   // workspace for initializeUnilateralForces(): previous contacts keyed by
+   // their first contact point, and previous contacts whose first point has
+   // no vertices, sorted by the point's x coordinate
+   HashMap<ContactPoint,ContactConstraint> myPrevVertexContacts =
+      new HashMap<ContactPoint,ContactConstraint>();
+   ArrayList<ContactConstraint> myPrevPointContacts =
+      new ArrayList<ContactConstraint>();
+   ContactXComparator myContactXComparator = new ContactXComparator();
    ContactInfo myLastContactInfo; // last contact info produced by this handler
    ContactInfo myRenderContactInfo; // contact info to be used for rendering
 
@@ -322,6 +330,9 @@ public class CollisionHandler extends ConstrainerBase
                   "Unimplemented collision method: "+getMethod());
             }
          }
+         if (myManager != null && myManager.getWarmStartContacts()) {
+            initializeUnilateralForces();
+         }
       }
       else {
          clearContactActivity();
@@ -587,6 +598,99 @@ public class CollisionHandler extends ConstrainerBase
       return attached.size() > 0 ? attached : null;
    }
 
+   /**
+    * Initializes the forces of newly created unilateral contacts from those
+    * of the matching contacts of the previous collision update, so that they
+    * can be used to warm start the contact solve. Contacts whose first
+    * contact point is defined by mesh vertices are matched by those
+    * vertices. Other contacts (such as those created by the contour region
+    * method) are matched to the nearest previous contact whose first contact
+    * point is within a small fraction of the collision mesh radius. These
+    * are found by sorting the previous contacts along x and only checking
+    * those whose x coordinate is within that distance.
+    */
+   protected void initializeUnilateralForces() {
+      if (myPrevUnilaterals.size() == 0 || myUnilaterals.size() == 0) {
+         return;
+      }
+      myPrevVertexContacts.clear();
+      myPrevPointContacts.clear();
+      for (ContactConstraint c : myPrevUnilaterals) {
+         if (c.myCpnt0.getVertices() != null) {
+            myPrevVertexContacts.put (c.myCpnt0, c);
+         }
+         else {
+            myPrevPointContacts.add (c);
+         }
+      }
+      double tol = 0;
+      if (myPrevPointContacts.size() > 0) {
+         PolygonalMesh mesh = myCollidable0.getCollisionMesh();
+         tol = (mesh != null ? 0.05*mesh.getRadius() : 0);
+         myPrevPointContacts.sort (myContactXComparator);
+      }
+      for (ContactConstraint c : myUnilaterals) {
+         ContactConstraint prev = null;
+         if (c.myCpnt0.getVertices() != null) {
+            prev = myPrevVertexContacts.get (c.myCpnt0);
+         }
+         else if (myPrevPointContacts.size() > 0) {
+            prev = findNearestPointContact (c.myCpnt0.getPoint(), tol);
+         }
+         if (prev != null) {
+            c.setForce (prev.getForce());
+         }
+      }
+      myPrevVertexContacts.clear();
+      myPrevPointContacts.clear();
+   }
+
+   /**
+    * Sorts contacts by the x coordinate of their first contact point.
+    */
+   private static class ContactXComparator
+      implements Comparator<ContactConstraint> {
+
+      public int compare (ContactConstraint c0, ContactConstraint c1) {
+         return Double.compare (
+            c0.myCpnt0.getPoint().x, c1.myCpnt0.getPoint().x);
+      }
+   }
+
+   /**
+    * Finds the contact in myPrevPointContacts, which must be sorted by x,
+    * whose first contact point is nearest to pnt and within a distance tol.
+    */
+   private ContactConstraint findNearestPointContact (Point3d pnt, double tol) {
+      // binary search for the first contact with x >= pnt.x - tol
+      int lo = 0;
+      int hi = myPrevPointContacts.size();
+      while (lo < hi) {
+         int mid = (lo+hi) >>> 1;
+         if (myPrevPointContacts.get(mid).myCpnt0.getPoint().x < pnt.x-tol) {
+            lo = mid+1;
+         }
+         else {
+            hi = mid;
+         }
+      }
+      ContactConstraint nearest = null;
+      double mind = tol;
+      for (int i=lo; i<myPrevPointContacts.size(); i++) {
+         ContactConstraint p = myPrevPointContacts.get(i);
+         Point3d ppnt = p.myCpnt0.getPoint();
+         if (ppnt.x > pnt.x+tol) {
+            break;
+         }
+         double d = ppnt.distance (pnt);
+         if (d <= mind) {
+            mind = d;
+            nearest = p;
+         }
+      }
+      return nearest;
+   }
+
    protected void updateAttachedVertices() {
       if (!myAttachedVerticesValid) {
          myAttachedVertices0 =
@@ -28,6 +28,9 @@ public class CollisionHandlerTable {
 
    private CollisionManager myManager;
    private LinkedHashMap<CollidableBody,Anchor> myAnchors;
+   // values of myAnchors, in the same order, so that they can be traversed
+   // at each time step without allocating an iterator
+   private ArrayList<Anchor> myAnchorList = new ArrayList<Anchor>();
 
    private class Anchor {
       CollidableBody myBody;
@@ -163,26 +166,26 @@ public class CollisionHandlerTable {
    }
 
    void setHandlerActivity (boolean activity) {
-      for (Anchor a : myAnchors.values()) {
-         a.setRowActivity (activity);
+      for (int i=0; i<myAnchorList.size(); i++) {
+         myAnchorList.get(i).setRowActivity (activity);
       }
    }
 
    void removeInactiveHandlers () {
-      for (Anchor a : myAnchors.values()) {
-         a.removeInactiveHandlers ();
+      for (int i=0; i<myAnchorList.size(); i++) {
+         myAnchorList.get(i).removeInactiveHandlers ();
       }
    }
 
    void removeAllHandlers () {
-      for (Anchor a : myAnchors.values()) {
-         a.removeAllHandlers ();
+      for (int i=0; i<myAnchorList.size(); i++) {
+         myAnchorList.get(i).removeAllHandlers ();
       }
    }
 
    void collectHandlers (ArrayList<CollisionHandler> handlers) {
-      for (Anchor a : myAnchors.values()) {
-         a.collectRowHandlers (handlers);
+      for (int i=0; i<myAnchorList.size(); i++) {
+         myAnchorList.get(i).collectRowHandlers (handlers);
       }
    }
 
@@ -278,6 +281,12 @@ public class CollisionHandlerTable {
 
    public void clear() {
       myAnchors.clear();
+      myAnchorList.clear();
+   }
+
+   private void updateAnchorList() {
+      myAnchorList.clear();
+      myAnchorList.addAll (myAnchors.values());
    }
 
    public void initialize (List<CollidableBody> collidables) {
@@ -285,6 +294,7 @@ public class CollisionHandlerTable {
       for (CollidableBody cbody : collidables) {
          myAnchors.put (cbody, new Anchor (cbody));
       }
+      updateAnchorList();
    }
 
    /**
@@ -322,6 +332,7 @@ public class CollisionHandlerTable {
          }
       }
 
+      updateAnchorList();
       if (removeNeeded) {
          removeInactiveHandlers();
       }
@@ -331,6 +342,7 @@ public class CollisionHandlerTable {
          for (CollidableBody cbody : newCollidables) {
             myAnchors.put (cbody, new Anchor (cbody));
          }
+         updateAnchorList();
       }
 
       setHandlerActivity (false); // XXXX
@@ -17,8 +17,13 @@ import maspack.collision.MeshCollider;
 import maspack.collision.SurfaceMeshIntersector;
 import maspack.collision.SurfaceMeshIntersector.RegionType;
 import maspack.collision.SignedDistanceCollider;
+import maspack.collision.SweepAndPrune;
+import maspack.concurrency.WorkerPool;
 import maspack.geometry.PolygonalMesh;
 import maspack.geometry.DistanceGrid;
+import maspack.matrix.Point3d;
+import maspack.matrix.RigidTransform3d;
+import maspack.matrix.RotationMatrix3d;
 import maspack.matrix.SparseBlockMatrix;
 import maspack.matrix.Vector3d;
 import maspack.matrix.VectorNd;
@@ -46,6 +51,7 @@ import artisynth.core.mechmodels.Collidable.Collidability;
 import artisynth.core.mechmodels.Collidable.Group;
 import artisynth.core.mechmodels.MechSystem.ConstraintInfo;
 import artisynth.core.mechmodels.MechSystem.FrictionInfo;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
 import artisynth.core.modelbase.ComponentChangeEvent;
 import artisynth.core.modelbase.ComponentUtils;
 import artisynth.core.modelbase.CompositeComponent;
@@ -160,12 +166,67 @@ public class CollisionManager extends RenderableCompositeBase
 
    AbstractCollider myCollider = null;
 
-   SurfaceMeshIntersector myAjlIntersector = null;
-   SignedDistanceCollider mySDCollider = null;
-   MeshCollider myTriTriCollider = null;
+   // narrow-phase colliders, with one instance per collision thread
+   SurfaceMeshIntersector[] myAjlIntersectors = new SurfaceMeshIntersector[1];
+   SignedDistanceCollider[] mySDColliders = new SignedDistanceCollider[1];
+   MeshCollider[] myTriTriColliders = new MeshCollider[1];
 
    double myMaxpen; // accumulates maximum penetration 
 
+   // broad phase used to cull body pairs whose bounding boxes are disjoint,
+   // indexed by the bodies' collidable indices
+   SweepAndPrune myBroadPhase = new SweepAndPrune();
+   ArrayList<CollidableBody> myBroadPhaseBodies =
+      new ArrayList<CollidableBody>();
+   int[] myBroadPhaseStamps = new int[0];
+   int myBroadPhaseStamp = 0;
+   Point3d myBroadPhaseMin = new Point3d();
+   Point3d myBroadPhaseMax = new Point3d();
+   int myNumPairsTested;
+   int myNumPairsCulled;
+
+   // body pairs which have passed broad-phase culling and whose contact
+   // information is computed afterward by the narrow phase. Only the first
+   // myNumCandidates entries are in use; the rest are kept for reuse.
+   ArrayList<ContactCandidate> myCandidates = new ArrayList<ContactCandidate>();
+   int myNumCandidates = 0;
+   // worker threads used to compute the narrow phase in parallel; created on
+   // demand
+   WorkerPool myCollisionWorkers;
+
+   // lists reused by updateConstraints() to avoid allocating them at each
+   // time step
+   ArrayList<MechModel> mySubMechs = new ArrayList<MechModel>();
+   ArrayList<ContactConstraint> myReducedBilaterals =
+      new ArrayList<ContactConstraint>();
+
+   /**
+    * Body pair whose contact information is to be computed by the narrow
+    * phase, along with the behavior and behavior source used to create or
+    * update its collision handler.
+    */
+   private static class ContactCandidate {
+      CollidableBody myC0;
+      CollidableBody myC1;
+      CollisionBehavior myBehav;
+      BehaviorSource mySrc;
+      ContactInfo myCinfo;
+
+      void set (
+         CollidableBody c0, CollidableBody c1,
+         CollisionBehavior behav, BehaviorSource src) {
+         myC0 = c0;
+         myC1 = c1;
+         myBehav = behav;
+         mySrc = src;
+         myCinfo = null;
+      }
+
+      void clear() {
+         set (null, null, null, null);
+      }
+   }
+
    /**
     * Specifies the collider that generates contact information between the
     * two meshes. Contact information is returned in a 
@@ -336,6 +397,13 @@ public class CollisionManager extends RenderableCompositeBase
    int myColorMapCollidableNum = defaultColorMapCollidableNum;
    PropertyMode myColorMapCollidableMode = PropertyMode.Inherited;
 
+   static boolean defaultBroadPhaseCulling = true;
+   boolean myBroadPhaseCulling = defaultBroadPhaseCulling;
+   boolean myWarmStartContacts = false;
+
+   static int defaultNumCollisionThreads = 1;
+   int myNumCollisionThreads = defaultNumCollisionThreads;
+
    static ColorMapBase defaultColorMap = new HueColorMap (2.0/3, 0);
    ColorMapBase myColorMap = defaultColorMap.copy();
 
@@ -440,6 +508,14 @@ public class CollisionManager extends RenderableCompositeBase
       myProps.addInheritable (
          "colliderType", "type of collider to use for collisions",
          myDefaultColliderType);
+      myProps.add (
+         "broadPhaseCulling",
+         "skip narrow-phase collision detection for bodies whose "+
+         "bounding boxes are disjoint", defaultBroadPhaseCulling);
+      myProps.add (
+         "numCollisionThreads",
+         "number of threads used for narrow-phase collision detection",
+         defaultNumCollisionThreads, "[1,inf)");
    }
 
    public PropertyList getAllPropertyInfo() {
@@ -549,6 +625,8 @@ public class CollisionManager extends RenderableCompositeBase
       myColorMapCollidableNum = defaultColorMapCollidableNum;
       myColorMapCollidableMode = PropertyMode.Inherited;
       setColorMapRange (defaultColorMapRange);
+      myBroadPhaseCulling = defaultBroadPhaseCulling;
+      setNumCollisionThreads (defaultNumCollisionThreads);
       myForceBehavior = null;
    }
 
@@ -1165,6 +1243,118 @@ public class CollisionManager extends RenderableCompositeBase
       return myColliderTypeMode;
    }
 
+   /**
+    * Queries whether broad-phase culling is enabled. See {@link
+    * #setBroadPhaseCulling}.
+    *
+    * @return <code>true</code> if broad-phase culling is enabled
+    */
+   public boolean getBroadPhaseCulling() {
+      return myBroadPhaseCulling;
+   }
+
+   /**
+    * Sets whether broad-phase culling is enabled. If enabled (the default),
+    * the world-space bounding boxes of all collidable bodies are maintained
+    * in a sweep-and-prune structure, and pairs of bodies whose boxes are
+    * disjoint are skipped without calling the narrow-phase collider. Since
+    * bodies whose boxes are disjoint cannot be in contact, this does not
+    * change the contacts that are found.
+    *
+    * @param enable if <code>true</code>, enables broad-phase culling
+    */
+   public void setBroadPhaseCulling (boolean enable) {
+      myBroadPhaseCulling = enable;
+   }
+
+   /**
+    * Queries whether unilateral contact forces are carried over between
+    * collision updates. See {@link #setWarmStartContacts}.
+    *
+    * @return <code>true</code> if contact forces are carried over
+    */
+   public boolean getWarmStartContacts() {
+      return myWarmStartContacts;
+   }
+
+   /**
+    * Sets whether unilateral contact forces are carried over between
+    * collision updates. Unilateral contacts are recreated at each update, and
+    * their forces are normally initialized to zero. If this is enabled, the
+    * force of each new contact is instead initialized from the force of the
+    * previous contact with the same vertex (or vertices), if any, so that it
+    * can be used to warm start the contact solve. This is enabled by {@link
+    * MechSystemSolver#setLCPWarmStart}.
+    *
+    * @param enable if <code>true</code>, carries contact forces over
+    */
+   public void setWarmStartContacts (boolean enable) {
+      myWarmStartContacts = enable;
+   }
+
+   /**
+    * Returns the number of body pairs that were passed to the narrow-phase
+    * collider during the most recent collision update. This includes pairs
+    * handled by the collision managers of sub-MechModels.
+    *
+    * @return number of body pairs tested by the narrow phase
+    */
+   public int numPairsTested() {
+      return myNumPairsTested;
+   }
+
+   /**
+    * Returns the number of body pairs that were skipped by broad-phase
+    * culling during the most recent collision update. This includes pairs
+    * handled by the collision managers of sub-MechModels.
+    *
+    * @return number of body pairs culled by the broad phase
+    */
+   public int numPairsCulled() {
+      return myNumPairsCulled;
+   }
+
+   /**
+    * Queries the number of threads used for narrow-phase collision
+    * detection. See {@link #setNumCollisionThreads}.
+    *
+    * @return number of collision threads
+    */
+   public int getNumCollisionThreads() {
+      return myNumCollisionThreads;
+   }
+
+   /**
+    * Sets the number of threads used for narrow-phase collision detection.
+    * The default value of 1 computes the contact information for each body
+    * pair serially. For larger values, the contact information for different
+    * body pairs is computed concurrently, with each thread using its own
+    * collider instances. Collision handlers and their contact constraints
+    * are still created and updated serially, in the same order as for serial
+    * computation, so that the results do not depend on the number of
+    * threads. This setting applies only to pairs handled by this collision
+    * manager, and not to those handled by the collision managers of
+    * sub-MechModels.
+    *
+    * @param num number of collision threads
+    */
+   public void setNumCollisionThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumCollisionThreads) {
+         myNumCollisionThreads = num;
+         if (myCollisionWorkers != null) {
+            myCollisionWorkers.shutdown();
+            myCollisionWorkers = null;
+         }
+         myAjlIntersectors = new SurfaceMeshIntersector[num];
+         mySDColliders = new SignedDistanceCollider[num];
+         myTriTriColliders = new MeshCollider[num];
+      }
+   }
+
    // end of property accessors
 
    // behavior and response accessors
@@ -2191,12 +2381,13 @@ public class CollisionManager extends RenderableCompositeBase
       }
    }
 
-   ContactInfo computeContactInfo (
+   /**
+    * Returns the collider type that will actually be used to compute the
+    * contact information between c0 and c1.
+    */
+   ColliderType getEffectiveColliderType (
       CollidableBody c0, CollidableBody c1, CollisionBehavior behav) {
 
-      PolygonalMesh mesh0 = c0.getCollisionMesh();
-      PolygonalMesh mesh1 = c1.getCollisionMesh();
-      ContactInfo cinfo;
       ColliderType colliderType = behav.getColliderType();
       if (colliderType == ColliderType.SIGNED_DISTANCE) {
          // if using signed distance collider, at least one collidable
@@ -2206,12 +2397,28 @@ public class CollisionManager extends RenderableCompositeBase
             colliderType = ColliderType.AJL_CONTOUR;
          }
       }
+      return colliderType;
+   }
+
+   /**
+    * Computes the contact information between c0 and c1, using the collider
+    * instances belonging to the collision thread with index
+    * <code>tidx</code>.
+    */
+   ContactInfo computeContactInfo (
+      CollidableBody c0, CollidableBody c1, CollisionBehavior behav,
+      int tidx) {
+
+      PolygonalMesh mesh0 = c0.getCollisionMesh();
+      PolygonalMesh mesh1 = c1.getCollisionMesh();
+      ContactInfo cinfo;
+      ColliderType colliderType = getEffectiveColliderType (c0, c1, behav);
       //FunctionTimer timer = new FunctionTimer();
       //timer.start();
       switch (colliderType) {
          case AJL_CONTOUR: {
-            if (myAjlIntersector == null) {
-               myAjlIntersector = new SurfaceMeshIntersector();
+            if (myAjlIntersectors[tidx] == null) {
+               myAjlIntersectors[tidx] = new SurfaceMeshIntersector();
             }
             // types of regions that we need to compute for mesh0 and mesh1
             RegionType regions0 = RegionType.INSIDE;
@@ -2231,24 +2438,24 @@ public class CollisionManager extends RenderableCompositeBase
                   regions1 = RegionType.NONE;
                }
             }
-            cinfo = myAjlIntersector.findContoursAndRegions (
+            cinfo = myAjlIntersectors[tidx].findContoursAndRegions (
                mesh0, regions0, mesh1, regions1);
             break;
          }
          case TRI_INTERSECTION: {
-            if (myTriTriCollider == null) {
-               myTriTriCollider = new MeshCollider();
+            if (myTriTriColliders[tidx] == null) {
+               myTriTriColliders[tidx] = new MeshCollider();
             }
-            cinfo = myTriTriCollider.getContacts (mesh0, mesh1);
+            cinfo = myTriTriColliders[tidx].getContacts (mesh0, mesh1);
             break;
          }
          case SIGNED_DISTANCE: {
-            if (mySDCollider == null) {
-               mySDCollider = new SignedDistanceCollider();
+            if (mySDColliders[tidx] == null) {
+               mySDColliders[tidx] = new SignedDistanceCollider();
             }
             DistanceGridComp gcomp0 = c0.getDistanceGridComp();
             DistanceGridComp gcomp1 = c1.getDistanceGridComp();
-            cinfo = mySDCollider.getContacts (
+            cinfo = mySDColliders[tidx].getContacts (
                mesh0, gcomp0 != null ? gcomp0.getGrid() : null,
                mesh1, gcomp1 != null ? gcomp1.getGrid() : null);
             break;
@@ -2271,19 +2478,196 @@ public class CollisionManager extends RenderableCompositeBase
          c0 = c1;
          c1 = tmp;
       }
-      ContactInfo cinfo;
+      if (myBroadPhaseCulling && !testMode &&
+          !myBroadPhase.overlaps (
+             c0.getCollidableIndex(), c1.getCollidableIndex())) {
+         // bounding boxes are disjoint, so the bodies cannot be in contact
+         myNumPairsCulled++;
+         return;
+      }
+      // contact information is computed later by computeNarrowPhase()
+      if (myNumCandidates == myCandidates.size()) {
+         myCandidates.add (new ContactCandidate());
+      }
+      myCandidates.get(myNumCandidates++).set (c0, c1, behav, src);
+   }
+
+   /**
+    * Updates the lazily computed mesh and distance grid quantities that are
+    * used by the colliders, so that the colliders only read shared data and
+    * can be called concurrently for different body pairs. This includes
+    * the vertex normals of distance grids, which are otherwise computed
+    * lazily by the distance queries.
+    */
+   private void prepareForNarrowPhase (ContactCandidate cand) {
+      ColliderType colliderType =
+         getEffectiveColliderType (cand.myC0, cand.myC1, cand.myBehav);
+      prepareForNarrowPhase (cand.myC0, colliderType);
+      prepareForNarrowPhase (cand.myC1, colliderType);
+   }
+
+   private void prepareForNarrowPhase (
+      CollidableBody c, ColliderType colliderType) {
+      PolygonalMesh mesh = c.getCollisionMesh();
+      mesh.updateFaceNormals();
+      mesh.isTriangular();
+      mesh.isClosed();
+      mesh.getLocalBounds (null, null);
+      mesh.getWorldBounds (null, null);
+      if (colliderType == ColliderType.SIGNED_DISTANCE) {
+         DistanceGridComp gcomp = c.getDistanceGridComp();
+         DistanceGrid grid = (gcomp != null ? gcomp.getGrid() : null);
+         if (grid != null) {
+            grid.computeAllNormals();
+         }
+      }
+      else {
+         mesh.getBVTree();
+      }
+   }
+
+   /**
+    * Computes the contact information for all the candidate body pairs
+    * collected by {@link #checkForContact}, and then creates or updates
+    * their collision handlers in the order in which the pairs were
+    * collected. If more than one collision thread is specified, the contact
+    * information is computed in parallel.
+    */
+   void computeNarrowPhase (boolean testMode) {
+      int ncands = myNumCandidates;
+      if (ncands == 0) {
+         return;
+      }
       if (testMode) {
-         cinfo = new ContactInfo (c0.getCollisionMesh(), c1.getCollisionMesh());
+         for (int k=0; k<ncands; k++) {
+            ContactCandidate cand = myCandidates.get(k);
+            cand.myCinfo = new ContactInfo (
+               cand.myC0.getCollisionMesh(), cand.myC1.getCollisionMesh());
+         }
+      }
+      else if (myNumCollisionThreads > 1 && ncands > 1) {
+         for (int k=0; k<ncands; k++) {
+            prepareForNarrowPhase (myCandidates.get(k));
+         }
+         if (myCollisionWorkers == null) {
+            myCollisionWorkers =
+               new WorkerPool ("collision", myNumCollisionThreads);
+         }
+         myCollisionWorkers.forEachIndex (ncands, (tidx, idx) -> {
+            ContactCandidate cand = myCandidates.get(idx);
+            cand.myCinfo =
+               computeContactInfo (cand.myC0, cand.myC1, cand.myBehav, tidx);
+         });
+         myNumPairsTested += ncands;
       }
       else {
-         cinfo = computeContactInfo (c0, c1, behav);
-         //timer.stop();
-         //System.out.println ("time=" + timer.getTimeUsec());
-         //cinfo = myCollider.getContacts (mesh0, mesh1);
+         for (int k=0; k<ncands; k++) {
+            ContactCandidate cand = myCandidates.get(k);
+            cand.myCinfo =
+               computeContactInfo (cand.myC0, cand.myC1, cand.myBehav, 0);
+         }
+         myNumPairsTested += ncands;
       }
-      if (cinfo != null) {
-         addOrUpdateHandler (cinfo, c0, c1, behav, src);
-      }     
+      for (int k=0; k<ncands; k++) {
+         ContactCandidate cand = myCandidates.get(k);
+         if (cand.myCinfo != null) {
+            addOrUpdateHandler (
+               cand.myCinfo, cand.myC0, cand.myC1, cand.myBehav, cand.mySrc);
+         }
+         // release references to the bodies and contact information
+         cand.clear();
+      }
+      myNumCandidates = 0;
+   }
+
+   /**
+    * Computes a world-space bounding box for a body's collision mesh. For
+    * fixed meshes, which move rigidly, the box is obtained by transforming
+    * the mesh's local bounding box, which is conservative but avoids having
+    * to transform all the vertices.
+    */
+   private void getBroadPhaseBounds (
+      CollidableBody body, Point3d pmin, Point3d pmax) {
+
+      PolygonalMesh mesh = body.getCollisionMesh();
+      if (mesh.isFixed()) {
+         mesh.getLocalBounds (pmin, pmax);
+         RigidTransform3d X = mesh.getMeshToWorld();
+         RotationMatrix3d R = X.R;
+         double hx = (pmax.x-pmin.x)/2;
+         double hy = (pmax.y-pmin.y)/2;
+         double hz = (pmax.z-pmin.z)/2;
+         pmax.add (pmin);
+         pmax.scale (0.5);
+         pmax.transform (X);
+         double ex = Math.abs(R.m00)*hx+Math.abs(R.m01)*hy+Math.abs(R.m02)*hz;
+         double ey = Math.abs(R.m10)*hx+Math.abs(R.m11)*hy+Math.abs(R.m12)*hz;
+         double ez = Math.abs(R.m20)*hx+Math.abs(R.m21)*hy+Math.abs(R.m22)*hz;
+         pmin.set (pmax.x-ex, pmax.y-ey, pmax.z-ez);
+         pmax.set (pmax.x+ex, pmax.y+ey, pmax.z+ez);
+      }
+      else {
+         mesh.getWorldBounds (pmin, pmax);
+      }
+   }
+
+   private void addBroadPhaseBodies (ArrayList<CollidableBody> bodies) {
+      for (int i=0; i<bodies.size(); i++) {
+         myBroadPhaseBodies.add (bodies.get(i));
+      }
+   }
+
+   /**
+    * Updates the bounding boxes of all bodies whose collisions are checked
+    * by this manager, and finds the pairs of boxes that overlap. Boxes for
+    * bodies that are not checked are set to empty.
+    */
+   void updateBroadPhase (ArrayList<MechModel> subMechs) {
+      myBroadPhaseBodies.clear();
+      if (myExplicitBehaviors.size() > 0) {
+         for (CollidablePair pair : myExplicitBehaviors.keySet()) {
+            myBroadPhaseBodies.add ((CollidableBody)pair.myComp0);
+            myBroadPhaseBodies.add ((CollidableBody)pair.myComp1);
+         }
+      }
+      addBroadPhaseBodies (myRigidExts);
+      addBroadPhaseBodies (myDeformableExts);
+      addBroadPhaseBodies (myDeformableInts);
+      for (int i=0; i<subMechs.size(); i++) {
+         MechModel mech = subMechs.get(i);
+         if (mech != myMechModel) {
+            CollisionManager cm = mech.getCollisionManager();
+            addBroadPhaseBodies (cm.myRigidExts);
+            addBroadPhaseBodies (cm.myDeformableExts);
+         }
+      }
+      int numBoxes = 0;
+      for (int i=0; i<myBroadPhaseBodies.size(); i++) {
+         CollidableBody body = myBroadPhaseBodies.get(i);
+         numBoxes = Math.max (numBoxes, body.getCollidableIndex()+1);
+      }
+      if (myBroadPhase.numBoxes() != numBoxes) {
+         myBroadPhase.setNumBoxes (numBoxes);
+         myBroadPhaseStamps = new int[numBoxes];
+      }
+      int stamp = ++myBroadPhaseStamp;
+      Point3d pmin = myBroadPhaseMin;
+      Point3d pmax = myBroadPhaseMax;
+      for (int i=0; i<myBroadPhaseBodies.size(); i++) {
+         CollidableBody body = myBroadPhaseBodies.get(i);
+         int idx = body.getCollidableIndex();
+         if (myBroadPhaseStamps[idx] != stamp) {
+            getBroadPhaseBounds (body, pmin, pmax);
+            myBroadPhase.setBox (idx, pmin, pmax);
+            myBroadPhaseStamps[idx] = stamp;
+         }
+      }
+      for (int idx=0; idx<numBoxes; idx++) {
+         if (myBroadPhaseStamps[idx] != stamp) {
+            myBroadPhase.setEmpty (idx);
+         }
+      }
+      myBroadPhase.update();
    }
 
    CollisionBehavior getBehavior (
@@ -2621,11 +3005,14 @@ public class CollisionManager extends RenderableCompositeBase
          return myHandlers.size() == 0 ? -1 : 0;
       }
 
+      long ptime = SolverPhaseTimer.start (Phase.Collision);
       myHandlers.clear();
       double maxpen = updateConstraints (myHandlers, t, flags);
+      SolverPhaseTimer.stop (Phase.Collision, ptime);
+      SolverPhaseTimer.recordContacts (myHandlers);
       int nump = 0;
-      for (CollisionHandler ch : myHandlers) {
-         nump += ch.getLastContactInfo().numContourPoints();
+      for (int i=0; i<myHandlers.size(); i++) {
+         nump += myHandlers.get(i).getLastContactInfo().numContourPoints();
       }
       if (nump > maxNumContourPoints ) {
          maxNumContourPoints = nump;
@@ -2644,36 +3031,49 @@ public class CollisionManager extends RenderableCompositeBase
       updateHandlerTable();
       
       myMaxpen = 0;
+      myNumPairsTested = 0;
+      myNumPairsCulled = 0;
       // start of handlers added by this manager and all sub MechModels
       int hidx0 = handlers.size(); 
 
-      ArrayList<MechModel> subMechs = new ArrayList<MechModel>();
+      ArrayList<MechModel> subMechs = mySubMechs;
+      subMechs.clear();
       subMechs.add (myMechModel);
-      for (MechSystemModel m : myMechModel.getLocalModels()) {
+      ArrayList<MechSystemModel> localModels = myMechModel.getLocalModels();
+      for (int k=0; k<localModels.size(); k++) {
+         MechSystemModel m = localModels.get(k);
          if (m instanceof MechModel) {
             MechModel mech = (MechModel)m;
-            double pen = mech.getCollisionManager().updateConstraints (
-               handlers, t, flags);
+            CollisionManager cm = mech.getCollisionManager();
+            double pen = cm.updateConstraints (handlers, t, flags);
             if (pen > myMaxpen) {
                myMaxpen = pen;
             }
+            myNumPairsTested += cm.myNumPairsTested;
+            myNumPairsCulled += cm.myNumPairsCulled;
             subMechs.add (mech);
          }
       }
+      if (myBroadPhaseCulling && !testMode) {
+         updateBroadPhase (subMechs);
+      }
 
       // start of handlers added by this manager only
       int hidx1 = handlers.size(); 
       myHandlerTable.setHandlerActivity (false);
 
       // compute explicit collisions
-      for (Map.Entry<CollidablePair,CollisionBehavior> e :
-              myExplicitBehaviors.entrySet()) {
-         CollisionBehavior behav = e.getValue();
-         if (behav.isEnabled()) {
-            CollidablePair pair = e.getKey();
-            CollidableBody c0 = (CollidableBody)pair.myComp0;
-            CollidableBody c1 = (CollidableBody)pair.myComp1;
-            checkForContact (c0, c1, behav, BehaviorSource.EXPLICIT, testMode); 
+      if (myExplicitBehaviors.size() > 0) {
+         for (Map.Entry<CollidablePair,CollisionBehavior> e :
+                 myExplicitBehaviors.entrySet()) {
+            CollisionBehavior behav = e.getValue();
+            if (behav.isEnabled()) {
+               CollidablePair pair = e.getKey();
+               CollidableBody c0 = (CollidableBody)pair.myComp0;
+               CollidableBody c1 = (CollidableBody)pair.myComp1;
+               checkForContact (
+                  c0, c1, behav, BehaviorSource.EXPLICIT, testMode); 
+            }
          }
       }
       // compute implicit collisions
@@ -2700,14 +3100,15 @@ public class CollisionManager extends RenderableCompositeBase
                cmi.myDeformableExts, cmj.myDeformableExts, testMode);
          }
       }
+      computeNarrowPhase (testMode);
 
       myHandlerTable.removeInactiveHandlers();
       myHandlerTable.collectHandlers (handlers);
 
       // for handlers just added by this manager, reduce constraints
       // constraints if necessary and remove all inactive contacts
-      ArrayList<ContactConstraint> reducedBilaterals =
-         new ArrayList<ContactConstraint>();
+      ArrayList<ContactConstraint> reducedBilaterals = myReducedBilaterals;
+      reducedBilaterals.clear();
       for (int i=hidx1; i<handlers.size(); i++) {
          CollisionHandler handler = handlers.get(i);
          if (handler.getBehavior().getReduceConstraints()) {
@@ -10,6 +10,7 @@ import maspack.render.*;
 import artisynth.core.mechmodels.*;
 import artisynth.core.mechmodels.Collidable.Collidability;
 import artisynth.core.mechmodels.Collidable.Group;
+import artisynth.core.mechmodels.CollisionManager.ColliderType;
 import artisynth.core.modelbase.*;
 import artisynth.core.femmodels.*;
 import artisynth.core.workspace.*;
@@ -1713,9 +1714,125 @@ public class CollisionManagerTest extends UnitTest {
               "                        . 2 "+ // ball
               "                          . ");// base
 
+      testBroadPhaseCulling();
+      testParallelNarrowPhase (ColliderType.TRI_INTERSECTION);
+      testParallelNarrowPhase (ColliderType.AJL_CONTOUR);
+      testParallelNarrowPhase (ColliderType.SIGNED_DISTANCE);
+   }
+
+   private ArrayList<String> getContactPairs (CollisionManager cm) {
+      ArrayList<String> pairs = new ArrayList<String>();
+      for (CollisionHandler ch : cm.collisionHandlers()) {
+         pairs.add (
+            ch.getCollidable(0).getName()+"-"+ch.getCollidable(1).getName());
+      }
+      Collections.sort (pairs);
+      return pairs;
+   }
+
+   /**
+    * Checks that broad-phase culling does not change the contacts found for
+    * a row of boxes in which only adjacent pairs interpenetrate, and that it
+    * culls all the other pairs.
+    */
+   void testBroadPhaseCulling() {
+      MechModel mech = new MechModel ("broadPhase");
+      int npairs = 4;
+      for (int i=0; i<2*npairs; i++) {
+         RigidBody box = RigidBody.createBox ("box"+i, 1.0, 1.0, 1.0, 1000);
+         box.setPosition (new Point3d (3.0*(i/2) + 0.8*(i%2), 0, 0));
+         mech.addRigidBody (box);
+      }
+      mech.setDefaultCollisionBehavior (true, 0);
+      CollisionManager cm = mech.getCollisionManager();
+      int nbodies = 2*npairs;
+      int numPairs = nbodies*(nbodies-1)/2;
+
+      cm.setBroadPhaseCulling (false);
+      cm.updateConstraints (0, /*flags=*/0);
+      ArrayList<String> check = getContactPairs (cm);
+      checkEquals ("number of contact pairs", check.size(), npairs);
+      checkEquals ("pairs tested without culling", cm.numPairsTested(), numPairs);
+      checkEquals ("pairs culled without culling", cm.numPairsCulled(), 0);
+
+      cm.setBroadPhaseCulling (true);
+      for (int k=0; k<2; k++) {
+         cm.updateConstraints (0, /*flags=*/0);
+         ArrayList<String> pairs = getContactPairs (cm);
+         if (!pairs.equals (check)) {
+            throw new TestException (
+               "Contact pairs with culling are "+pairs+", expected "+check);
+         }
+         checkEquals ("pairs tested with culling", cm.numPairsTested(), npairs);
+         checkEquals (
+            "pairs culled with culling", cm.numPairsCulled(), numPairs-npairs);
+      }
+   }
+
+   private MechModel createBoxCluster (
+      ArrayList<RigidTransform3d> poses, ColliderType ctype) {
+      MechModel mech = new MechModel ("cluster");
+      for (int i=0; i<poses.size(); i++) {
+         RigidBody box = RigidBody.createBox ("box"+i, 1.0, 1.0, 1.0, 1000);
+         box.setPose (poses.get(i));
+         mech.addRigidBody (box);
+      }
+      mech.setDefaultCollisionBehavior (true, 0);
+      mech.getCollisionManager().setColliderType (ctype);
+      return mech;
+   }
+
+   /**
+    * Checks that computing the narrow phase with several threads produces
+    * the same handlers, in the same order and with the same contact
+    * constraints, as computing it serially, for a cluster of randomly posed
+    * interpenetrating boxes.
+    */
+   void testParallelNarrowPhase (ColliderType ctype) {
+      ArrayList<RigidTransform3d> poses = new ArrayList<RigidTransform3d>();
+      for (int i=0; i<12; i++) {
+         RigidTransform3d X = new RigidTransform3d();
+         X.setRandom();
+         X.p.scale (1.5);
+         poses.add (X);
+      }
+      CollisionManager cmSerial =
+         createBoxCluster (poses, ctype).getCollisionManager();
+      CollisionManager cmParallel =
+         createBoxCluster (poses, ctype).getCollisionManager();
+      cmParallel.setNumCollisionThreads (4);
+      cmSerial.updateConstraints (0, /*flags=*/0);
+      cmParallel.updateConstraints (0, /*flags=*/0);
+
+      ArrayList<CollisionHandler> serial = cmSerial.collisionHandlers();
+      ArrayList<CollisionHandler> parallel = cmParallel.collisionHandlers();
+      if (serial.size() == 0) {
+         throw new TestException ("No contacts found between boxes");
+      }
+      checkEquals ("number of parallel handlers", parallel.size(), serial.size());
+      for (int i=0; i<serial.size(); i++) {
+         CollisionHandler chs = serial.get(i);
+         CollisionHandler chp = parallel.get(i);
+         String names =
+            chs.getCollidable(0).getName()+"-"+chs.getCollidable(1).getName();
+         checkEquals (
+            "parallel handler "+i,
+            chp.getCollidable(0).getName()+"-"+chp.getCollidable(1).getName(),
+            names);
+         DataBuffer stateSerial = new DataBuffer();
+         DataBuffer stateParallel = new DataBuffer();
+         chs.getState (stateSerial);
+         chp.getState (stateParallel);
+         if (!stateParallel.numericEquals (stateSerial)) {
+            throw new TestException (
+               "Parallel contact constraints differ for handler " + names);
+         }
+      }
+      cmParallel.setNumCollisionThreads (1);
    }
 
    public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
       CollisionManagerTest tester = new CollisionManagerTest(); 
       tester.runtest();
    }
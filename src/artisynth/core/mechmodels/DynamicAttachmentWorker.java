@@ -16,6 +16,8 @@ import artisynth.core.modelbase.*;
 public class DynamicAttachmentWorker {
 
    private MatrixBlock[] myMasterBlks = null;
+   // stores attachment derivatives, reused to avoid allocating memory
+   private VectorNd myDerivative = new VectorNd();
 
    public int getSlaveSolveIndex (DynamicAttachment at) {
       DynamicComponent slave = at.getSlave();
@@ -65,7 +67,8 @@ public class DynamicAttachmentWorker {
       if (dg != null) {
          gbuf = dg.getBuffer();
          ssize = GT.getBlockRowSize(bs);
-         dbuf = getNegatedDerivative (at, new VectorNd (ssize));
+         myDerivative.setSize (ssize);
+         dbuf = getNegatedDerivative (at, myDerivative);
       }
       
       MatrixBlock srowBlk = GT.firstBlockInRow (bs);
@@ -276,7 +279,8 @@ public class DynamicAttachmentWorker {
          fbuf = f.getBuffer();
          soff = S.getBlockRowOffset(bs);
          ssize = S.getBlockRowSize(bs);
-         dbuf = getNegatedDerivative (at, new VectorNd (ssize));
+         myDerivative.setSize (ssize);
+         dbuf = getNegatedDerivative (at, myDerivative);
       }
       
       //
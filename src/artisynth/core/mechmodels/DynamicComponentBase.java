@@ -18,6 +18,9 @@ public abstract class DynamicComponentBase extends RenderableComponentBase
    implements DynamicComponent {
    protected DynamicAttachment myAttachment;
    protected LinkedList<DynamicAttachment> myMasterAttachments;
+   // copy of myMasterAttachments that can be traversed at each time step
+   // without allocating an iterator
+   protected DynamicAttachment[] myMasterAttachmentArray;
    protected ArrayList<Constrainer> myConstrainers;
 
    protected boolean myDynamicP;
@@ -107,6 +110,7 @@ public abstract class DynamicComponentBase extends RenderableComponentBase
          myMasterAttachments = new LinkedList<DynamicAttachment>();
       }
       myMasterAttachments.add (a);
+      updateMasterAttachmentArray();
    }
 
    /**
@@ -120,6 +124,17 @@ public abstract class DynamicComponentBase extends RenderableComponentBase
       if (myMasterAttachments.size() == 0) {
          myMasterAttachments = null;
       }
+      updateMasterAttachmentArray();
+   }
+
+   private void updateMasterAttachmentArray() {
+      if (myMasterAttachments == null) {
+         myMasterAttachmentArray = null;
+      }
+      else {
+         myMasterAttachmentArray =
+            myMasterAttachments.toArray (new DynamicAttachment[0]);
+      }
    }
 
    /**
@@ -159,6 +174,7 @@ public abstract class DynamicComponentBase extends RenderableComponentBase
          (DynamicComponentBase)super.copy (flags, copyMap);
       comp.myAttachment = null;
       comp.myMasterAttachments = null;
+      comp.myMasterAttachmentArray = null;
       comp.mySolveIdx = -1;
       comp.myDynamicP = myDynamicP;
       return comp;
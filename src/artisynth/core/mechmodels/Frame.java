@@ -81,6 +81,11 @@ public class Frame extends DynamicComponentBase
       new PropertyList (Frame.class, ModelComponentBase.class);
 
    protected Wrench myBodyForce = new Wrench(); // preallocated temporary
+   // preallocated temporaries for addPosImpulse()
+   private Twist myImpulseVel = new Twist();
+   private RigidTransform3d myImpulseX = new RigidTransform3d();
+   private Quaternion myImpulseRot = new Quaternion();
+   private RotationMatrix3d myImpulseRinc = new RotationMatrix3d();
 
    //protected MeshComponentList<RigidMeshComp> myMeshList;
 
@@ -1103,7 +1108,7 @@ public class Frame extends DynamicComponentBase
    public void addPosImpulse (
       double[] xbuf, int xidx, double h, double[] vbuf, int vidx) {
 
-      Twist vel = new Twist();
+      Twist vel = myImpulseVel;
       vel.v.x = vbuf[vidx++];
       vel.v.y = vbuf[vidx++];
       vel.v.z = vbuf[vidx++];
@@ -1114,18 +1119,18 @@ public class Frame extends DynamicComponentBase
       // XXX streamline this. This is only in the form it is to preserve exact
       // numeric compatibility with older code.
 
-      RigidTransform3d X = new RigidTransform3d();
+      RigidTransform3d X = myImpulseX;
       X.p.set (xbuf[xidx], xbuf[xidx+1], xbuf[xidx+2]);
-      Quaternion rot =
-         new Quaternion (xbuf[xidx+3], xbuf[xidx+4], xbuf[xidx+5], xbuf[xidx+6]);
+      Quaternion rot = myImpulseRot;
+      rot.set (xbuf[xidx+3], xbuf[xidx+4], xbuf[xidx+5], xbuf[xidx+6]);
       rot.normalize();
       X.R.set (rot);
 
       if (dynamicVelInWorldCoords) {
-         vel.extrapolateTransformWorld (X, h);
+         vel.extrapolateTransformWorld (X, h, myImpulseRinc);
       }
       else {
-         vel.extrapolateTransform (X, h);
+         vel.extrapolateTransform (X, h, myImpulseRinc);
       }
       rot.set (X.R);
 
@@ -1223,6 +1228,10 @@ public class Frame extends DynamicComponentBase
       comp.mySolveBlock = null;
       comp.mySolveBlockNum = -1;
       comp.mySolveBlockValidP = false;
+      comp.myImpulseVel = new Twist();
+      comp.myImpulseX = new RigidTransform3d();
+      comp.myImpulseRot = new Quaternion();
+      comp.myImpulseRinc = new RotationMatrix3d();
       comp.setPose (getPose());
       return comp;
    }
@@ -232,8 +232,7 @@ public abstract class FrameAttachment extends DynamicAttachmentBase
    public void mulSubMG (
       MatrixBlock D, MatrixBlock M, int idx) {
 
-      MatrixBlock G = myMasterBlocks[idx].createTranspose();
-      D.mulAdd (M, G); 
+      D.mulTransposeRightAdd (M, myMasterBlocks[idx]);
    }
 
    public MatrixBlock getGT (int idx) {
@@ -1669,8 +1669,8 @@ TransformableGeometry, ScalableUnits {
    @Override
    public void getMassMatrixValues (SparseNumberedBlockMatrix M, VectorNd f, double t) {
       updateLocalModels();
-      for (MechSystemModel m : myLocalModels) {
-         m.getMassMatrixValues (M, f, t);
+      for (int i=0; i<myLocalModels.size(); i++) {
+         myLocalModels.get(i).getMassMatrixValues (M, f, t);
       }
       updateLocalDynamicComponents();
       int bi;
@@ -29,11 +29,11 @@ import maspack.properties.PropertyMode;
 import maspack.properties.PropertyUtils;
 import maspack.render.RenderableUtils;
 import maspack.util.DataBuffer;
-import maspack.util.IntHolder;
 import maspack.util.InternalErrorException;
 import maspack.util.NumberFormat;
 import maspack.util.FunctionTimer;
 import artisynth.core.mechmodels.MechSystemSolver.PosStabilization;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
 import artisynth.core.modelbase.*;
 import artisynth.core.util.ArtisynthIO;
 import artisynth.core.util.TimeBase;
@@ -78,6 +78,8 @@ public abstract class MechSystemBase extends RenderableModelBase
 
    protected MechSystemSolver mySolver;
    protected DynamicAttachmentWorker myAttachmentWorker;
+   // flags which block rows have been reduced by addAttachmentJacobian
+   private boolean[] myReducedRows = new boolean[0];
 
    protected static boolean DEFAULT_DYNAMICS_ENABLED = true;
    protected static boolean DEFAULT_PROFILING = false;
@@ -339,8 +341,10 @@ public abstract class MechSystemBase extends RenderableModelBase
          idx = myConstrainers.get(i).addUnilateralConstraints (
             NT, dn, idx);
       }
-      for (DynamicAttachment a : getAttachments()) {
-         myAttachmentWorker.reduceConstraints (a, NT, dn, false);
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         myAttachmentWorker.reduceConstraints (
+            attachments.get(i), NT, dn, false);
       }
       // need this for now - would be good to get rid of it:
       NT.setVerticallyLinked (true);
@@ -383,14 +387,15 @@ public abstract class MechSystemBase extends RenderableModelBase
          dg.setSize (myBilateralSizes.sum());
       }
 
-      IntHolder changeCnt = new IntHolder(0);
       int idx = 0;
       for (int i=0; i<myConstrainers.size(); i++) {
          idx = myConstrainers.get(i).addBilateralConstraints (
             GT, dg, idx);
       }      
-      for (DynamicAttachment a : getAttachments()) {
-         myAttachmentWorker.reduceConstraints (a, GT, dg, false);
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         myAttachmentWorker.reduceConstraints (
+            attachments.get(i), GT, dg, false);
       }
       // need this for now - would be good to get rid of it:
       GT.setVerticallyLinked (true);
@@ -484,8 +489,10 @@ public abstract class MechSystemBase extends RenderableModelBase
          idx = myConstrainers.get(i).addFrictionConstraints (DT, finfo, idx);
       }      
       //idxh.value = addFrictionConstraints (DT, finfo, idxh.value);
-      for (DynamicAttachment a : getAttachments()) {
-         myAttachmentWorker.reduceConstraints (a, DT, null, false);
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         myAttachmentWorker.reduceConstraints (
+            attachments.get(i), DT, null, false);
       }
    }
    
@@ -1534,11 +1541,16 @@ public abstract class MechSystemBase extends RenderableModelBase
       updateDynamicComponentLists();
       //FunctionTimer timer = new FunctionTimer();
       //timer.start();
-      boolean[] reduced = new boolean[S.numBlockRows()];
-      int i = 0;
-      for (DynamicAttachment a : getAttachments()) {
-         myAttachmentWorker.addAttachmentJacobian (a, S, f, reduced);
-         i++;
+      if (myReducedRows.length < S.numBlockRows()) {
+         myReducedRows = new boolean[S.numBlockRows()];
+      }
+      else {
+         Arrays.fill (myReducedRows, 0, S.numBlockRows(), false);
+      }
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         myAttachmentWorker.addAttachmentJacobian (
+            attachments.get(i), S, f, myReducedRows);
       }
       //timer.stop();
       //System.out.println ("addAttachmentJacobian " + timer.result(1));
@@ -1600,8 +1612,9 @@ public abstract class MechSystemBase extends RenderableModelBase
 
    // Called from the top level
    public void applyAttachmentForces() {
-      for (DynamicAttachment a : getAttachments()) {
-         a.applyForces();
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         attachments.get(i).applyForces();
       }
    }
 
@@ -1651,8 +1664,9 @@ public abstract class MechSystemBase extends RenderableModelBase
          myDynamicComponents.get(i).resetEffectiveMass();
       }
       //timer.start();
-      for (DynamicAttachment a : getAttachments()) {
-         a.addMassToMasters ();
+      ArrayList<DynamicAttachment> attachments = getAttachments();
+      for (int i=0; i<attachments.size(); i++) {
+         attachments.get(i).addMassToMasters ();
       }
       //timer.stop();
       //System.out.println ("add mass to masters " + timer.result(1));
@@ -1996,6 +2010,7 @@ public abstract class MechSystemBase extends RenderableModelBase
    }
 
    public void updateForces (double t) {
+      long ptime = SolverPhaseTimer.start (Phase.ForceUpdate);
       updateDynamicComponentLists();
       updateForceComponentList();
       // initialize the forces by adding the initial forces that 
@@ -2022,10 +2037,12 @@ public abstract class MechSystemBase extends RenderableModelBase
          myForceEffectors.get(i).applyForces (t);
       }
       applyAttachmentForces();
+      SolverPhaseTimer.stop (Phase.ForceUpdate, ptime);
    }
 
    public void addPosJacobian (
       SparseNumberedBlockMatrix S, VectorNd f, double s) {
+      long ptime = SolverPhaseTimer.start (Phase.StiffnessAssembly);
       updateDynamicComponentLists();
       updateForceComponentList();
       if (!checkMatrixSize (S)) {
@@ -2040,10 +2057,12 @@ public abstract class MechSystemBase extends RenderableModelBase
          myForceEffectors.get(i).addPosJacobian (S, s);
       }
       addAttachmentJacobian(S, f);
+      SolverPhaseTimer.stop (Phase.StiffnessAssembly, ptime);
    }   
 
    public void addVelJacobian (
       SparseNumberedBlockMatrix S, VectorNd f, double s) {
+      long ptime = SolverPhaseTimer.start (Phase.StiffnessAssembly);
       updateDynamicComponentLists();
       updateForceComponentList();
       if (!checkMatrixSize (S)) {
@@ -2058,6 +2077,7 @@ public abstract class MechSystemBase extends RenderableModelBase
          myForceEffectors.get(i).addVelJacobian (S, s);
       }
       addAttachmentJacobian(S, f);
+      SolverPhaseTimer.stop (Phase.StiffnessAssembly, ptime);
    }    
 
    public void addGeneralMassBlocks (SparseNumberedBlockMatrix M) {
@@ -12,6 +12,8 @@ import java.util.Arrays;
 
 import artisynth.core.mechmodels.MechSystem.ConstraintInfo;
 import artisynth.core.mechmodels.MechSystem.FrictionInfo;
+import artisynth.core.mechmodels.SolverPhaseTimer.Counter;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
 import artisynth.core.modelbase.ModelComponent;
 import artisynth.core.modelbase.StepAdjustment;
 import artisynth.core.util.ArtisynthIO;
@@ -25,16 +27,22 @@ import maspack.matrix.Matrix6d;
 import maspack.matrix.MatrixBlock;
 import maspack.matrix.MatrixNd;
 import maspack.matrix.RotationMatrix3d;
+import maspack.matrix.SparseBinaryWriter;
 import maspack.matrix.SparseBlockMatrix;
 import maspack.matrix.SparseNumberedBlockMatrix;
 import maspack.matrix.Vector3d;
 import maspack.matrix.VectorNd;
 import maspack.solvers.CGSolver;
+import maspack.solvers.CGSolver.PreconditionerType;
+import maspack.solvers.KKTSolver.LCPSolverType;
 import maspack.solvers.DirectSolver;
 import maspack.solvers.IterativeSolver;
 import maspack.solvers.IterativeSolver.ToleranceType;
+import maspack.solvers.KKTIslandSolver;
 import maspack.solvers.KKTSolver;
 import maspack.solvers.PardisoSolver;
+import maspack.solvers.ProjectedGaussSeidelSolver;
+import maspack.solvers.SparseLDLSolver;
 import maspack.solvers.UmfpackSolver;
 import maspack.util.FunctionTimer;
 import maspack.util.InternalErrorException;
@@ -89,6 +97,7 @@ public class MechSystemSolver {
    private VectorNd myBg = new VectorNd();
    private VectorNd myLam = new VectorNd();
    private int myGTVersion = -1;
+   private int[] myGTStructure = null; // block structure of GT at last update
 
    // unilateral constraints
 
@@ -112,6 +121,9 @@ public class MechSystemSolver {
    protected UmfpackSolver umfpack;
    protected DirectSolver myDirectSolver;
    protected IterativeSolver myIterativeSolver;
+   // active part of the solve matrix, for iterative solvers
+   private SparseBlockMatrix myActiveSolveMatrix;
+   private int[] myActiveBlockIdxs;
 
    // auxiliary vectors for integrators
 
@@ -193,7 +205,7 @@ public class MechSystemSolver {
    }
 
    public static enum MatrixSolver {
-      Pardiso, Umfpack, ConjugateGradient, None
+      Pardiso, Umfpack, ConjugateGradient, AlgebraicMultigrid, SparseLDL, None
    }
 
    public static enum Integrator {
@@ -237,7 +249,13 @@ public class MechSystemSolver {
 
    PardisoSolver myPardisoSolver;
    UmfpackSolver myUmfpackSolver;
+   SparseLDLSolver mySparseLDLSolver;
    KKTSolver myKKTSolver;
+   KKTIslandSolver myKKTIslandSolver;
+   boolean myKKTIslandsUsed = false;
+   // true if myKKTSolver needs to be analyzed before it is next factored,
+   // because the structure changed while islands were being used
+   boolean myKKTAnalyzePending = false;
    KKTSolver myConSolver;
    KKTSolver myStaticSolver;
 
@@ -247,6 +265,14 @@ public class MechSystemSolver {
    double myTol = 0.01;
    ToleranceType myTolType = ToleranceType.RelativeResidual;
    int myMaxIterations = 20;
+   PreconditionerType myPreconditionerType = PreconditionerType.BlockJacobi;
+   LCPSolverType myLCPSolverType = LCPSolverType.Dantzig;
+   boolean myLCPWarmStart = false;
+   ProjectedGaussSeidelSolver myPGSSolver;
+   int myLCPIterationCnt = 0;
+   double myLCPResidual = 0;
+   int myLCPWarmStartCnt = 0;
+   boolean myIslandDecomposition = false;
    boolean myUseDirectSolver = true;
    PosStabilization myStabilization = PosStabilization.GlobalMass;
    
@@ -413,7 +439,8 @@ public class MechSystemSolver {
       switch (integrator) {
          case BackwardEuler: {
             if (solver != MatrixSolver.Umfpack &&
-               solver != MatrixSolver.Pardiso) {
+               solver != MatrixSolver.Pardiso &&
+               solver != MatrixSolver.SparseLDL) {
                return Integrator.SymplecticEuler;
             }
             break;
@@ -421,7 +448,8 @@ public class MechSystemSolver {
          case Trapezoidal:
          case FullBackwardEuler:
          case ConstrainedBackwardEuler: {
-            if (solver != MatrixSolver.Pardiso) {
+            if (solver != MatrixSolver.Pardiso &&
+                solver != MatrixSolver.SparseLDL) {
                if (solver == MatrixSolver.Umfpack) {
                   return Integrator.BackwardEuler;
                }
@@ -493,9 +521,230 @@ public class MechSystemSolver {
       solver.setMaxIterations (myMaxIterations);
       solver.setToleranceType (myTolType);
       solver.setTolerance (myTol);
+      if (solver instanceof CGSolver) {
+         ((CGSolver)solver).setPreconditionerType (myPreconditionerType);
+      }
       myIterativeSolver = solver;
    }
 
+   /**
+    * Returns the preconditioner used when the matrix solver is {@link
+    * MatrixSolver#ConjugateGradient}.
+    *
+    * @return conjugate gradient preconditioner type
+    */
+   public PreconditionerType getPreconditionerType() {
+      return myPreconditionerType;
+   }
+
+   /**
+    * Sets the preconditioner used when the matrix solver is {@link
+    * MatrixSolver#ConjugateGradient}. The default value is {@link
+    * PreconditionerType#BlockJacobi}.
+    *
+    * @param type conjugate gradient preconditioner type
+    */
+   public void setPreconditionerType (PreconditionerType type) {
+      myPreconditionerType = type;
+      if (myMatrixSolver == MatrixSolver.ConjugateGradient &&
+          myIterativeSolver instanceof CGSolver) {
+         ((CGSolver)myIterativeSolver).setPreconditionerType (type);
+      }
+   }
+
+   /**
+    * Returns the type of solver used for the contact LCP in the KKT solves
+    * that compute velocities.
+    *
+    * @return contact LCP solver type
+    */
+   public LCPSolverType getLCPSolverType() {
+      return myLCPSolverType;
+   }
+
+   /**
+    * Sets the type of solver used for the contact LCP in the KKT solves that
+    * compute velocities. The default value is {@link
+    * LCPSolverType#Dantzig}. {@link LCPSolverType#ProjectedGaussSeidel}
+    * gives an approximate solution, but solves independent contact islands
+    * in parallel; its parameters can be set via {@link
+    * #getProjectedGaussSeidelSolver}.
+    *
+    * @param type contact LCP solver type
+    */
+   public void setLCPSolverType (LCPSolverType type) {
+      myLCPSolverType = type;
+   }
+
+   /**
+    * Returns the solver used for contact LCPs when the LCP solver type is
+    * {@link LCPSolverType#ProjectedGaussSeidel}, allowing its method,
+    * tolerance, iteration limit and thread count to be set.
+    *
+    * @return projected Gauss-Seidel solver
+    */
+   public ProjectedGaussSeidelSolver getProjectedGaussSeidelSolver() {
+      if (myPGSSolver == null) {
+         myPGSSolver = new ProjectedGaussSeidelSolver();
+      }
+      return myPGSSolver;
+   }
+
+   /**
+    * Queries whether contact LCP solves are warm started.
+    *
+    * @return <code>true</code> if contact LCP solves are warm started
+    */
+   public boolean getLCPWarmStart() {
+      return myLCPWarmStart;
+   }
+
+   /**
+    * Enables or disables warm starting of the contact LCP solves. When
+    * enabled, the unilateral impulses from the previous step, which are
+    * stored in the contact constraints and saved with the collision handler
+    * state, are used as the initial guess; see {@link
+    * KKTSolver#setWarmStart}. The default value is <code>false</code>.
+    *
+    * @param enable if <code>true</code>, enables warm starting
+    */
+   public void setLCPWarmStart (boolean enable) {
+      myLCPWarmStart = enable;
+      if (mySys instanceof MechModel) {
+         setWarmStartContacts ((MechModel)mySys, enable);
+      }
+   }
+
+   /**
+    * Enables the carry-over of unilateral contact forces for the collision
+    * managers of a MechModel and its sub-models.
+    */
+   private void setWarmStartContacts (MechModel mech, boolean enable) {
+      mech.getCollisionManager().setWarmStartContacts (enable);
+      for (MechSystemModel m : mech.models()) {
+         if (m instanceof MechModel) {
+            setWarmStartContacts ((MechModel)m, enable);
+         }
+      }
+   }
+
+   /**
+    * Returns the total number of contact LCP iterations (pivots for the
+    * Dantzig solver, or sweeps for the projected Gauss-Seidel solver) used
+    * during the most recent step.
+    *
+    * @return LCP iterations for the last step
+    */
+   public int getLCPIterationCount() {
+      return myLCPIterationCnt;
+   }
+
+   /**
+    * Returns the maximum residual of the contact LCP solves performed during
+    * the most recent step; see {@link KKTSolver#getLCPResidual}.
+    *
+    * @return LCP residual for the last step
+    */
+   public double getLCPResidual() {
+      return myLCPResidual;
+   }
+
+   /**
+    * Returns the number of contact LCP solves during the most recent step
+    * for which the warm start guess was accepted without pivoting.
+    *
+    * @return number of accepted warm starts for the last step
+    */
+   public int getLCPWarmStartCount() {
+      return myLCPWarmStartCnt;
+   }
+
+   /**
+    * Queries whether island decomposition is enabled for the velocity KKT
+    * solves.
+    *
+    * @return <code>true</code> if island decomposition is enabled
+    */
+   public boolean getIslandDecomposition() {
+      return myIslandDecomposition;
+   }
+
+   /**
+    * Enables or disables island decomposition for the velocity KKT solves.
+    * When enabled, the solve matrix and the bilateral and unilateral
+    * constraints are partitioned into islands of mutually coupled
+    * components, such as separate groups of bodies in contact, which are
+    * then factored and solved independently and in parallel using a {@link
+    * KKTIslandSolver}. This reduces both the fill-in of the factorization
+    * and the size of the contact LCPs. It is not used for hybrid solves,
+    * position corrections, or implicit friction. The default value is
+    * <code>false</code>.
+    *
+    * @param enable if <code>true</code>, enables island decomposition
+    */
+   public void setIslandDecomposition (boolean enable) {
+      myIslandDecomposition = enable;
+   }
+
+   /**
+    * Returns the number of islands found by the most recent velocity KKT
+    * solve, or 1 if island decomposition was not used.
+    *
+    * @return number of islands in the last velocity solve
+    */
+   public int numKKTIslands() {
+      if (myKKTIslandsUsed && myKKTIslandSolver != null) {
+         return myKKTIslandSolver.numIslands();
+      }
+      else {
+         return 1;
+      }
+   }
+
+   /**
+    * Sets the LCP options of myKKTSolver for either a velocity solve, for
+    * which the impulses from the previous step provide a warm start, or for
+    * a position correction, which always uses a cold-started Dantzig solve.
+    */
+   private void setKKTLCPOptions (boolean velocitySolve) {
+      if (velocitySolve &&
+          myLCPSolverType == LCPSolverType.ProjectedGaussSeidel) {
+         myKKTSolver.setLCPSolverType (LCPSolverType.ProjectedGaussSeidel);
+         myKKTSolver.setProjectedGaussSeidelSolver (
+            getProjectedGaussSeidelSolver());
+      }
+      else {
+         myKKTSolver.setLCPSolverType (LCPSolverType.Dantzig);
+      }
+      myKKTSolver.setWarmStart (velocitySolve && myLCPWarmStart);
+   }
+
+   /**
+    * Sets the LCP options of myKKTIslandSolver for a velocity solve.
+    */
+   private void setIslandLCPOptions () {
+      myKKTIslandSolver.setLCPSolverType (myLCPSolverType);
+      if (myLCPSolverType == LCPSolverType.ProjectedGaussSeidel) {
+         myKKTIslandSolver.setProjectedGaussSeidelSolver (
+            getProjectedGaussSeidelSolver());
+      }
+      myKKTIslandSolver.setWarmStart (myLCPWarmStart);
+   }
+
+   private void recordLCPStats (KKTSolver solver) {
+      myLCPIterationCnt += solver.getLCPIterationCount();
+      myLCPResidual = Math.max (myLCPResidual, solver.getLCPResidual());
+      if (solver.lastLCPWarmStartAccepted()) {
+         myLCPWarmStartCnt++;
+      }
+   }
+
+   private void recordLCPStats (KKTIslandSolver solver) {
+      myLCPIterationCnt += solver.getLCPIterationCount();
+      myLCPResidual = Math.max (myLCPResidual, solver.getLCPResidual());
+      myLCPWarmStartCnt += solver.numLCPWarmStartsAccepted();
+   }
+
    public Integrator getIntegrator() {
       return myIntegrator;
    }
@@ -550,10 +799,14 @@ public class MechSystemSolver {
                }
                break;
             }
-            case ConjugateGradient: {
+            case ConjugateGradient:
+            case AlgebraicMultigrid: {
                setIterativeSolver (new CGSolver());
                break;
             }
+            case SparseLDL: {
+               break;
+            }
             case None: {
                break;
             }
@@ -565,10 +818,60 @@ public class MechSystemSolver {
          }
          mySolveMatrix = null;
          //myKKTSolveMatrix = null;
+         if (usesSparseLDL (solver) != usesSparseLDL (myMatrixSolver)) {
+            // KKT solvers need to be recreated with the new direct solver
+            disposeKKTSolvers();
+         }
          myMatrixSolver = solver;
       }
    }
 
+   private boolean usesSparseLDL (MatrixSolver solver) {
+      return (solver == MatrixSolver.SparseLDL || !PardisoSolver.isAvailable());
+   }
+
+   /**
+    * Creates a KKTSolver for the current matrix solver. This uses {@link
+    * SparseLDLSolver} if the matrix solver is <code>SparseLDL</code> or if
+    * Pardiso is unavailable, and Pardiso otherwise.
+    */
+   protected KKTSolver createKKTSolver() {
+      KKTSolver solver;
+      if (usesSparseLDL (myMatrixSolver)) {
+         solver = new KKTSolver (KKTSolver.SolverType.SparseLDL);
+      }
+      else {
+         solver = new KKTSolver();
+      }
+      return solver;
+   }
+
+   private void disposeKKTSolvers() {
+      if (myKKTSolver != null) {
+         myKKTSolver.dispose();
+         myKKTSolver = null;
+      }
+      myKKTAnalyzePending = false;
+      if (myStaticSolver != null) {
+         myStaticSolver.dispose();
+         myStaticSolver = null;
+      }
+      if (myConSolver != null) {
+         myConSolver.dispose();
+         myConSolver = null;
+      }
+      if (myKKTIslandSolver != null) {
+         myKKTIslandSolver.dispose();
+         myKKTIslandSolver = null;
+      }
+      // make sure the new solvers are analyzed
+      myKKTSolveMatrixVersion = -1;
+      myStaticKKTVersion = -1;
+      myKKTGTVersion = -1;
+      myConMassVersion = -1;
+      myConGTVersion = -1;
+   }
+
    public void setStabilization (PosStabilization stabilization) {
       myStabilization = stabilization;
    }
@@ -599,10 +902,23 @@ public class MechSystemSolver {
             myUseDirectSolver = true;
             break;
          }
-         case ConjugateGradient: {
+         case SparseLDL: {
+            if (mySparseLDLSolver == null) {
+               mySparseLDLSolver = new SparseLDLSolver();
+            }
+            myDirectSolver = mySparseLDLSolver;
+            myUseDirectSolver = true;
+            break;
+         }
+         case ConjugateGradient:
+         case AlgebraicMultigrid: {
             if (!(myIterativeSolver instanceof CGSolver)) {
                setIterativeSolver (new CGSolver());
             }
+            // AlgebraicMultigrid is CG with an AMG preconditioner
+            ((CGSolver)myIterativeSolver).setPreconditionerType (
+               myMatrixSolver == MatrixSolver.AlgebraicMultigrid ?
+               PreconditionerType.AlgebraicMultigrid : myPreconditionerType);
             myUseDirectSolver = false;
             break;
          }
@@ -630,7 +946,11 @@ public class MechSystemSolver {
          case Umfpack: {
             return UmfpackSolver.isAvailable();
          }
-         case ConjugateGradient: {
+         case ConjugateGradient:
+         case AlgebraicMultigrid: {
+            return true;
+         }
+         case SparseLDL: {
             return true;
          }
          case None: {
@@ -651,6 +971,9 @@ public class MechSystemSolver {
       if (PardisoSolver.isAvailable()) {
          setMatrixSolver (MatrixSolver.Pardiso);
       }
+      else {
+         setMatrixSolver (MatrixSolver.SparseLDL);
+      }
       // Umfpack no longer supported ...
       // else if (UmfpackSolver.isAvailable()) {
       //    setMatrixSolver (MatrixSolver.Umfpack);
@@ -677,6 +1000,10 @@ public class MechSystemSolver {
       setHybridSolve (solver.getHybridSolve());
       setIntegrator (solver.getIntegrator());
       setMatrixSolver (solver.getMatrixSolver());
+      setPreconditionerType (solver.getPreconditionerType());
+      setLCPSolverType (solver.getLCPSolverType());
+      setLCPWarmStart (solver.getLCPWarmStart());
+      setIslandDecomposition (solver.getIslandDecomposition());
    }
 
    public void nonDynamicSolve (double t0, double t1, StepAdjustment stepAdjust) {
@@ -693,6 +1020,13 @@ public class MechSystemSolver {
       updateStateSizes();
       updateMassMatrix (t0);
       setParametricTargets (1, t1-t0);
+      myLCPIterationCnt = 0;
+      myLCPResidual = 0;
+      myLCPWarmStartCnt = 0;
+      if (myLCPWarmStart && mySys instanceof MechModel) {
+         // in case sub-models have been added
+         setWarmStartContacts ((MechModel)mySys, true);
+      }
 
       if (myUpdateForcesAtStepEnd) {
          myFcon.setZero();
@@ -985,6 +1319,34 @@ public class MechSystemSolver {
 
    // end timing code for solver
 
+   /**
+    * Returns the active part of the solve matrix, for use by iterative
+    * solvers, which unlike the direct solvers cannot be restricted to a
+    * leading submatrix. The submatrix is rebuilt when the solve matrix is
+    * reanalyzed, and otherwise only has its values updated.
+    */
+   private SparseBlockMatrix getActiveSolveMatrix (
+      SparseBlockMatrix S, int velSize, boolean analyze) {
+      if (S.rowSize() == velSize) {
+         return S;
+      }
+      int nactive = mySys.numActiveComponents();
+      if (analyze || myActiveSolveMatrix == null ||
+          myActiveSolveMatrix.numBlockRows() != nactive) {
+         myActiveBlockIdxs = new int[nactive];
+         for (int i=0; i<nactive; i++) {
+            myActiveBlockIdxs[i] = i;
+         }
+         myActiveSolveMatrix =
+            S.createSubMatrix (myActiveBlockIdxs, myActiveBlockIdxs);
+      }
+      else {
+         S.setSubMatrix (
+            myActiveSolveMatrix, myActiveBlockIdxs, myActiveBlockIdxs);
+      }
+      return myActiveSolveMatrix;
+   }
+
    private void doDirectSolve (VectorNd x, SparseBlockMatrix M, VectorNd b) {
       if (myHybridSolveP && myDirectSolver.hasAutoIterativeSolving()) {
          myDirectSolver.autoFactorAndSolve (x, b, myHybridSolveTol);
@@ -1133,7 +1495,9 @@ public class MechSystemSolver {
             doDirectSolve (myU, mySolveMatrix, myB);
          }
          else {
-            myIterativeSolver.solve (myU, mySolveMatrix, myB);
+            myIterativeSolver.solve (
+               myU, getActiveSolveMatrix (mySolveMatrix, velSize, analyze),
+               myB);
          }
       }
 
@@ -1187,18 +1551,30 @@ public class MechSystemSolver {
       System.out.println ("");      
    }
 
+   /**
+    * Returns an empty constraint matrix. If <code>XT</code> is non-null,
+    * it is cleared and returned so that its storage is reused; otherwise, a
+    * new matrix is created.
+    */
+   private SparseBlockMatrix clearOrCreate (SparseBlockMatrix XT) {
+      if (XT == null) {
+         return new SparseNumberedBlockMatrix();
+      }
+      else {
+         XT.clear();
+         return XT;
+      }
+   }
+
    protected void updateBilateralConstraints () {
       // assumes that updateStateSizes() has been called
-      int[] oldStructure = null;
-
-      if (myGT != null) {
-         oldStructure = myGT.getBlockStructure();
-      }
-      myGT = new SparseNumberedBlockMatrix ();
+      long ptime = SolverPhaseTimer.start (Phase.ConstraintAssembly);
+      myGT = clearOrCreate (myGT);
       mySys.getBilateralConstraints (myGT, myGdot);
       // need to check  to see if structure of GT has changed
-      if (oldStructure == null || 
-          !myGT.blockStructureEquals (oldStructure)) {
+      if (myGTStructure == null || 
+          !myGT.blockStructureEquals (myGTStructure)) {
+         myGTStructure = myGT.getBlockStructure();
          myGTVersion++;
       }
       myGsize = myGT.colSize();
@@ -1206,22 +1582,28 @@ public class MechSystemSolver {
       myRg.setSize (myGsize);
       myBg.setSize (myGsize);
       myLam.setSize (myGsize);
+      SolverPhaseTimer.stop (Phase.ConstraintAssembly, ptime);
+      SolverPhaseTimer.count (Counter.BilateralConstraints, myGsize);
    }
 
    protected void updateUnilateralConstraints () {
       // assumes that updateStateSizes() has been called
-      myNT = new SparseNumberedBlockMatrix ();
+      long ptime = SolverPhaseTimer.start (Phase.ConstraintAssembly);
+      myNT = clearOrCreate (myNT);
       mySys.getUnilateralConstraints (myNT, myNdot);
       myNsize = myNT.colSize();
       ensureNInfoCapacity (myNsize);
       myRn.setSize (myNsize);
       myBn.setSize (myNsize);
       myThe.setSize (myNsize);
+      SolverPhaseTimer.stop (Phase.ConstraintAssembly, ptime);
+      SolverPhaseTimer.count (Counter.UnilateralConstraints, myNsize);
    }
 
    protected boolean updateFrictionConstraints () {
       // assumes that updateStateSizes() has been called
-      myDT = new SparseNumberedBlockMatrix ();
+      long ptime = SolverPhaseTimer.start (Phase.ConstraintAssembly);
+      myDT = clearOrCreate (myDT);
 
       int fmax = mySys.maxFrictionConstraintSets();
       ensureFrictionCapacity (fmax);
@@ -1239,6 +1621,8 @@ public class MechSystemSolver {
       else {
          myBd.setZero();
       }
+      SolverPhaseTimer.stop (Phase.ConstraintAssembly, ptime);
+      SolverPhaseTimer.count (Counter.FrictionConstraints, sizeD);
       return alwaysProjectFriction ? true : sizeD > 0;
    }
 
@@ -1286,6 +1670,10 @@ public class MechSystemSolver {
    private PrintWriter crsWriter = null;
    private boolean crsOmitDiag = false;
 
+   // Setting kktCaptureFileName will cause the next velocity KKT system to
+   // be written in binary form, after which the name is cleared.
+   private String kktCaptureFileName = null;
+
    private void setBilateralOffsets (double h, double dotscale) {
 
       if (myGsize > 0) {
@@ -1449,7 +1837,7 @@ public class MechSystemSolver {
       }
 
       if (myKKTSolver == null) {
-         myKKTSolver = new KKTSolver();
+         myKKTSolver = createKKTSolver();
       }
       if (profileKKTSolveTime) {
          timerStop("    KKT solve: build matrix");
@@ -1527,25 +1915,78 @@ public class MechSystemSolver {
             // set vel to vel0 in case the solver needs a warm start
             vel.set (vel0);
          }
-         if (analyze) {
-            myKKTSolver.analyze (
-               S, velSize, myGT, myRg, mySys.getSolveMatrixType());
+         // islands are not used when writing the linear problem, since that
+         // requires the global solver to be factored
+         boolean useIslands = (myIslandDecomposition && crsWriter == null);
+         boolean analyzeIslands = analyze;
+         if (useIslands &&
+             (myKKTIslandSolver == null || !myKKTIslandsUsed)) {
+            if (myKKTIslandSolver == null) {
+               myKKTIslandSolver = new KKTIslandSolver (
+                  myKKTSolver.getSolverType());
+            }
+            analyzeIslands = true;
+         }
+         myKKTIslandsUsed = useIslands;
+         // when islands are used, the global solver is analyzed only if it
+         // is later needed by position correction or implicit friction
+         if (useIslands) {
+            myKKTAnalyzePending |= analyze;
+         }
+         else {
+            analyze |= myKKTAnalyzePending;
+         }
+         boolean analyzeGlobal = (analyze && !useIslands);
+         if (analyzeGlobal || (useIslands && analyzeIslands)) {
+            long ptime = SolverPhaseTimer.start (Phase.KKTAnalyze);
+            if (analyzeGlobal) {
+               myKKTSolver.analyze (
+                  S, velSize, myGT, myRg, mySys.getSolveMatrixType());
+               myKKTAnalyzePending = false;
+            }
+            if (useIslands && analyzeIslands) {
+               myKKTIslandSolver.analyze (
+                  S, velSize, myGT, myRg, mySys.getSolveMatrixType());
+            }
+            SolverPhaseTimer.stop (Phase.KKTAnalyze, ptime);
          }
          if (analyze && profileKKTSolveTime) {
             timerStop("    KKT solve: analyze");
             timerStart();            
          }
-         if (myHybridSolveP && !analyze && myNT.colSize() == 0) {
+         if (useIslands) {
+            long ptime = SolverPhaseTimer.start (Phase.KKTFactor);
+            myKKTIslandSolver.factor (S, velSize, myGT, myRg, myNT, myRn);
+            SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
+            setIslandLCPOptions();
+            ptime = SolverPhaseTimer.start (Phase.KKTSolve);
+            myKKTIslandSolver.solve (vel, myLam, myThe, bf, myBg, myBn);
+            SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
+            recordLCPStats (myKKTIslandSolver);
+            if (profileKKTSolveTime) {
+               timerStop ("    KKTsolve(islands)");
+               timerStart();
+            }
+         }
+         else if (myHybridSolveP && !analyze && myNT.colSize() == 0) {
+            long ptime = SolverPhaseTimer.start (Phase.KKTFactor);
             myKKTSolver.factorAndSolve (
                S, velSize, myGT, myRg, vel, myLam, bf, myBg, myHybridSolveTol);
+            SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
             if (profileKKTSolveTime) {
                timerStop ("    KKTsolve(hybrid)");
                timerStart();
             }
          }
          else {
+            long ptime = SolverPhaseTimer.start (Phase.KKTFactor);
             myKKTSolver.factor (S, velSize, myGT, myRg, myNT, myRn);
+            SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
+            setKKTLCPOptions (/*velocitySolve=*/true);
+            ptime = SolverPhaseTimer.start (Phase.KKTSolve);
             myKKTSolver.solve (vel, myLam, myThe, bf, myBg, myBn);
+            SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
+            recordLCPStats (myKKTSolver);
             if (profileKKTSolveTime) {
                timerStop ("    KKTsolve");
                timerStart();
@@ -1577,6 +2018,15 @@ public class MechSystemSolver {
                crsFileName = null;
             }
          }
+         if (kktCaptureFileName != null) {
+            try {
+               writeKKTSystem (kktCaptureFileName, S, velSize, vel, bf);
+            }
+            catch (IOException e) {
+               e.printStackTrace();
+            }
+            kktCaptureFileName = null;
+         }
       }
 
       if (myLogWriter != null) {
@@ -1720,7 +2170,7 @@ public class MechSystemSolver {
       }
       
       if (myStaticSolver == null) {
-         myStaticSolver = new KKTSolver();
+         myStaticSolver = createKKTSolver();
       }
 
       updateBilateralConstraints ();
@@ -1902,6 +2352,63 @@ public class MechSystemSolver {
       crsWriter = null;
    }
 
+   /**
+    * Requests that the KKT system of the next velocity solve be captured
+    * and written to a binary file, using {@link SparseBinaryWriter}. This
+    * is much faster and more compact than the text output enabled by {@link
+    * #setCrsFileName}, and the captured system can be replayed through
+    * different solvers using {@link maspack.apps.KKTReplay}. Only one system
+    * is captured, after which the file name is cleared.
+    *
+    * <p>The file contains the block matrices <code>M</code>,
+    * <code>GT</code> and <code>NT</code>, the integers <code>sizeM</code>
+    * and <code>typeM</code>, the vectors <code>Rg</code>, <code>Rn</code>,
+    * <code>bm</code>, <code>bg</code> and <code>bn</code>, and the computed
+    * solution vectors <code>vel</code>, <code>lam</code> and
+    * <code>the</code>.
+    *
+    * @param name name of the file to write, or <code>null</code> to cancel
+    * a pending capture
+    */
+   public void setKKTCaptureFileName (String name) {
+      kktCaptureFileName = name;
+   }
+
+   /**
+    * Returns the name of the file to which the next velocity KKT system
+    * will be captured, or <code>null</code> if no capture is pending.
+    *
+    * @return name of the capture file, or <code>null</code>
+    */
+   public String getKKTCaptureFileName() {
+      return kktCaptureFileName;
+   }
+
+   private void writeKKTSystem (
+      String fileName, SparseBlockMatrix S, int velSize,
+      VectorNd vel, VectorNd bf) throws IOException {
+
+      SparseBinaryWriter writer = new SparseBinaryWriter (fileName);
+      try {
+         writer.writeInt ("sizeM", velSize);
+         writer.writeInt ("typeM", mySys.getSolveMatrixType());
+         writer.writeBlockMatrix ("M", S);
+         writer.writeBlockMatrix ("GT", myGT);
+         writer.writeVector ("Rg", myRg);
+         writer.writeBlockMatrix ("NT", myNT);
+         writer.writeVector ("Rn", myRn);
+         writer.writeVector ("bm", bf);
+         writer.writeVector ("bg", myBg);
+         writer.writeVector ("bn", myBn);
+         writer.writeVector ("vel", vel);
+         writer.writeVector ("lam", myLam);
+         writer.writeVector ("the", myThe);
+      }
+      finally {
+         writer.close();
+      }
+   }
+
    public static void setLogWriter(PrintWriter writer) {
       if (myLogWriter != null) {
          myLogWriter.close();
@@ -1940,7 +2447,15 @@ public class MechSystemSolver {
    public void KKTSolve (
       VectorNd vel, VectorNd lam, VectorNd the, VectorNd bf) {
 
-      if (myKKTSolver == null || !myKKTSolver.isFactored()) {
+      boolean factored;
+      if (myKKTIslandsUsed) {
+         factored = (myKKTIslandSolver != null &&
+                     myKKTIslandSolver.isFactored());
+      }
+      else {
+         factored = (myKKTSolver != null && myKKTSolver.isFactored());
+      }
+      if (!factored) {
          throw new IllegalStateException (
             "KKTFactorAndSolve must be called prior to KKTSolve");
       }
@@ -1974,7 +2489,20 @@ public class MechSystemSolver {
          the.setSize (0);
       }
       if (velSize != 0) {
-         myKKTSolver.solve (vel, lam, the, bf, myBg, myBn);
+         if (myKKTIslandsUsed) {
+            setIslandLCPOptions();
+            long ptime = SolverPhaseTimer.start (Phase.KKTSolve);
+            myKKTIslandSolver.solve (vel, lam, the, bf, myBg, myBn);
+            SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
+            recordLCPStats (myKKTIslandSolver);
+         }
+         else {
+            setKKTLCPOptions (/*velocitySolve=*/true);
+            long ptime = SolverPhaseTimer.start (Phase.KKTSolve);
+            myKKTSolver.solve (vel, lam, the, bf, myBg, myBn);
+            SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
+            recordLCPStats (myKKTSolver);
+         }
       }
    }
 
@@ -2006,8 +2534,22 @@ public class MechSystemSolver {
          }
       }
       
+      long ptime;
+      if (myKKTAnalyzePending) {
+         ptime = SolverPhaseTimer.start (Phase.KKTAnalyze);
+         myKKTSolver.analyze (
+            S, velSize, myGT, myRg, mySys.getSolveMatrixType());
+         SolverPhaseTimer.stop (Phase.KKTAnalyze, ptime);
+         myKKTAnalyzePending = false;
+      }
+      ptime = SolverPhaseTimer.start (Phase.KKTFactor);
       myKKTSolver.factor (S, velSize, myGT, myRg, myNT, myRn, myDT);
+      SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
+      setKKTLCPOptions (/*velocitySolve=*/true);
+      ptime = SolverPhaseTimer.start (Phase.KKTSolve);
       myKKTSolver.solve (vel, myLam, myThe, myPhi, bf, myBg, myBn, myBd, flim);
+      SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
+      recordLCPStats (myKKTSolver);
 
       //mySys.setBilateralForces (myLam, 1/h);
       //mySys.setUnilateralForces (myThe, 1/h);
@@ -2045,7 +2587,7 @@ public class MechSystemSolver {
       // do a Gauss-Siedel project on remaining friction constraints:
 
       int[] RBDTmap = myRBSolver.getDTMap();
-      if (RBDTmap != null) {
+      if (RBDTmap != null && myDT.numBlockCols() > RBDTmap.length) {
          int[] DTmap = new int[myDT.numBlockCols()-RBDTmap.length];
          int i = 0;
          int k = 0;
@@ -2198,7 +2740,7 @@ public class MechSystemSolver {
          return;
       }            
       if (myConSolver == null) {
-         myConSolver = new KKTSolver();
+         myConSolver = createKKTSolver();
       }
       updateBilateralConstraints ();
       updateUnilateralConstraints ();
@@ -2292,7 +2834,7 @@ public class MechSystemSolver {
          return;
       }            
       if (myConSolver == null) {
-         myConSolver = new KKTSolver();
+         myConSolver = createKKTSolver();
       }
       updateBilateralConstraints ();
       updateUnilateralConstraints ();
@@ -2398,7 +2940,9 @@ public class MechSystemSolver {
       mySys.updateConstraints (
          t, stepAdjust, /*flags=*/MechSystem.COMPUTE_CONTACTS);
       mySys.getActivePosState (q);
+      long ptime = SolverPhaseTimer.start (Phase.ConstraintProjection);
       computePosCorrections (q, u, t);
+      SolverPhaseTimer.stop (Phase.ConstraintProjection, ptime);
       mySys.setActivePosState (q);
       // mySys.updateConstraints (
       //    t, stepAdjust, /*flags=*/MechSystem.UPDATE_CONTACTS);
@@ -2415,7 +2959,7 @@ public class MechSystemSolver {
          return false;
       }            
       if (myConSolver == null) {
-         myConSolver = new KKTSolver();
+         myConSolver = createKKTSolver();
       }
       updateBilateralConstraints ();
       updateUnilateralConstraints ();
@@ -2488,24 +3032,35 @@ public class MechSystemSolver {
       mySys.addPosJacobian (S, null, -1);
       addActiveMassMatrix (mySys, S);
       if (myKKTSolver == null) {
-         myKKTSolver = new KKTSolver();
+         myKKTSolver = createKKTSolver();
          analyze = true;
       }
       if (myKKTGTVersion != myGTVersion) {
          analyze = true;
          myKKTGTVersion = myGTVersion;
       }
+      analyze |= myKKTAnalyzePending;
       if (analyze) {
+         long ptime = SolverPhaseTimer.start (Phase.KKTAnalyze);
          myKKTSolver.analyze (
             S, velSize, myGT, myRg, mySys.getSolveMatrixType());
+         SolverPhaseTimer.stop (Phase.KKTAnalyze, ptime);
+         myKKTAnalyzePending = false;
       }
       if (myHybridSolveP && !analyze && myNT.colSize() == 0) {
+         long ptime = SolverPhaseTimer.start (Phase.KKTFactor);
          myKKTSolver.factorAndSolve (
             S, velSize, myGT, myRg, vel, myLam, myBf, myBg, myHybridSolveTol);
+         SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
       }
       else {
+         long ptime = SolverPhaseTimer.start (Phase.KKTFactor);
          myKKTSolver.factor (S, velSize, myGT, myRg, myNT, myRn);
+         SolverPhaseTimer.stop (Phase.KKTFactor, ptime);
+         ptime = SolverPhaseTimer.start (Phase.KKTSolve);
+         setKKTLCPOptions (/*velocitySolve=*/false);
          myKKTSolver.solve (vel, myLam, myThe, myBf, myBg, myBn);
+         SolverPhaseTimer.stop (Phase.KKTSolve, ptime);
       }
       if (computeKKTResidual) {
          double res = myKKTSolver.residual (
@@ -2544,7 +3099,10 @@ public class MechSystemSolver {
          t, stepAdjust, /*flags=*/MechSystem.COMPUTE_CONTACTS);
       if (hasConstraints) {
          updateMassMatrix (-1);
-         if (computePosCorrections (pos, vel, t)) {
+         long ptime = SolverPhaseTimer.start (Phase.ConstraintProjection);
+         boolean corrected = computePosCorrections (pos, vel, t);
+         SolverPhaseTimer.stop (Phase.ConstraintProjection, ptime);
+         if (corrected) {
             mySys.setActivePosState (pos);
          }
       }
@@ -2560,7 +3118,7 @@ public class MechSystemSolver {
          return false;
       }            
       if (myConSolver == null) {
-         myConSolver = new KKTSolver();
+         myConSolver = createKKTSolver();
       }
       updateBilateralConstraints ();
       updateUnilateralConstraints ();
@@ -2631,7 +3189,10 @@ public class MechSystemSolver {
          t, steppingInfo, /*flags=*/MechSystem.COMPUTE_CONTACTS);
       mySys.getActivePosState (q);
 
-      if (computeRigidBodyPosCorrections (q, t)) {
+      long ptime = SolverPhaseTimer.start (Phase.ConstraintProjection);
+      boolean corrected = computeRigidBodyPosCorrections (q, t);
+      SolverPhaseTimer.stop (Phase.ConstraintProjection, ptime);
+      if (corrected) {
          mySys.setActivePosState (q);
          // mySys.updateConstraints (
          //    t, steppingInfo,  /*flags=*/MechSystem.UPDATE_CONTACTS);
@@ -3773,17 +4334,10 @@ public class MechSystemSolver {
          myPardisoSolver.dispose();
          myPardisoSolver = null;
       }
-      if (myKKTSolver != null) {
-         myKKTSolver.dispose();
-         myKKTSolver = null;
-      }
-      if (myStaticSolver != null) {
-         myStaticSolver.dispose();
-         myStaticSolver = null;
-      }
-      if (myConSolver != null) {
-         myConSolver.dispose();
-         myConSolver = null;
+      disposeKKTSolvers();
+      if (mySparseLDLSolver != null) {
+         mySparseLDLSolver.dispose();
+         mySparseLDLSolver = null;
       }
       if (myUmfpackSolver != null) {
          myUmfpackSolver.dispose();
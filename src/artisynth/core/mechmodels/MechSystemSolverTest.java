@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import artisynth.core.materials.LinearAxialMaterial;
+import artisynth.core.mechmodels.MechSystemSolver.Integrator;
+import artisynth.core.modelbase.StepAdjustment;
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests that, once a model with fixed structure has reached a steady state,
+ * the MechSystemSolver step loop does not allocate any memory, and that
+ * reusing the solver's constraint matrices gives the same results as
+ * allocating them anew. The allocation test model contains only particles,
+ * axial springs, point attachments and a rigid body. Other components, such
+ * as FEM models and joints, may still allocate memory in their force,
+ * stiffness and constraint updates and are not covered.
+ */
+public class MechSystemSolverTest extends UnitTest {
+
+   /**
+    * Creates a grid of particles connected by springs, with the top row
+    * fixed, and a rigid box hanging from the bottom row by two springs
+    * whose end points are attached to the box. If <code>constrained</code>
+    * is true, one end of the box is also held by a spherical joint, which
+    * supplies bilateral constraints, the first particle of the bottom row is
+    * kept in a plane by a bilateral constraint, and the last particle of the
+    * bottom row is kept on one side of a plane by a unilateral constraint.
+    */
+   MechModel createModel (int nx, int nz, boolean constrained) {
+      MechModel mech = new MechModel ("mech");
+      double len = 1.0;
+      Particle[][] parts = new Particle[nx][nz];
+      for (int i=0; i<nx; i++) {
+         for (int k=0; k<nz; k++) {
+            Particle p = new Particle (0.1, i*len, 0, -k*len);
+            if (k == 0) {
+               p.setDynamic (false);
+            }
+            mech.addParticle (p);
+            parts[i][k] = p;
+         }
+      }
+      LinearAxialMaterial mat = new LinearAxialMaterial (20.0, 1.0);
+      for (int i=0; i<nx; i++) {
+         for (int k=0; k<nz; k++) {
+            if (i < nx-1) {
+               addSpring (mech, parts[i][k], parts[i+1][k], mat);
+            }
+            if (k < nz-1) {
+               addSpring (mech, parts[i][k], parts[i][k+1], mat);
+            }
+         }
+      }
+      RigidBody box = RigidBody.createBox ("box", 2.0, 0.5, 0.5, 10.0);
+      box.setPose (0.5, 0, -nz*len, 0, 0, 0);
+      mech.addRigidBody (box);
+      for (int i=0; i<2; i++) {
+         Particle p = new Particle (0.1, i, 0, -nz*len+0.25);
+         mech.addParticle (p);
+         mech.attachPoint (p, box);
+         addSpring (mech, parts[i][nz-1], p, mat);
+      }
+      if (constrained) {
+         SphericalJoint joint =
+            new SphericalJoint (box, new Point3d (1.5, 0, -nz*len));
+         joint.setName ("joint");
+         mech.addBodyConnector (joint);
+         // place a wall inside the path of the particle, so that the
+         // contact engages and disengages as the grid swings
+         ParticlePlaneConstraint contact = new ParticlePlaneConstraint (
+            parts[nx-1][nz-1], new Vector3d (1, 0, 0),
+            new Point3d ((nx-1)*len/2, 0, 0));
+         contact.setUnilateral (true);
+         mech.addConstrainer (contact);
+         mech.addConstrainer (createPlaneConstraint (parts[0][nz-1]));
+      }
+      mech.setIntegrator (Integrator.ConstrainedBackwardEuler);
+      return mech;
+   }
+
+   /**
+    * Creates a bilateral constraint that keeps a particle in a plane
+    * through its current position.
+    */
+   ParticlePlaneConstraint createPlaneConstraint (Particle p) {
+      ParticlePlaneConstraint plane = new ParticlePlaneConstraint (
+         p, new Vector3d (1, 0, 1), p.getPosition());
+      plane.setName ("plane");
+      return plane;
+   }
+
+   void addSpring (
+      MechModel mech, Point p0, Point p1, LinearAxialMaterial mat) {
+      AxialSpring spr = new AxialSpring (null);
+      spr.setPoints (p0, p1);
+      spr.setMaterial (mat);
+      mech.addAxialSpring (spr);
+   }
+
+   /**
+    * Returns the number of bytes allocated by the current thread, or -1 if
+    * this cannot be determined.
+    */
+   long allocatedBytes() {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+         com.sun.management.ThreadMXBean sunBean =
+            (com.sun.management.ThreadMXBean)bean;
+         if (sunBean.isThreadAllocatedMemorySupported() &&
+             sunBean.isThreadAllocatedMemoryEnabled()) {
+            return sunBean.getThreadAllocatedBytes (
+               Thread.currentThread().getId());
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Advances the model until it reaches a steady state and the JIT compiler
+    * has optimized the step loop, and then checks the number of bytes
+    * allocated by subsequent calls to the solver. Since the structure of the
+    * model does not change, no memory should be allocated.
+    */
+   void testAllocation (Integrator integrator) {
+      MechModel mech = createModel (5, 4, /*constrained=*/false);
+      mech.setIntegrator (integrator);
+      MechSystemSolver solver = mech.getSolver();
+      StepAdjustment stepAdjust = new StepAdjustment();
+      double h = 0.01;
+      double t0 = 0;
+      for (int i=0; i<1000; i++) {
+         double t1 = t0 + h;
+         mech.preadvance (t0, t1, /*flags=*/0);
+         mech.advance (t0, t1, /*flags=*/0);
+         t0 = t1;
+      }
+      if (allocatedBytes() == -1) {
+         System.out.println (
+            "Thread allocation counting not supported; skipping test");
+         return;
+      }
+      for (int i=0; i<4000; i++) {
+         double t1 = t0 + h;
+         solver.solve (t0, t1, stepAdjust);
+         t0 = t1;
+      }
+      int nsteps = 2000;
+      long bytes0 = allocatedBytes();
+      for (int i=0; i<nsteps; i++) {
+         double t1 = t0 + h;
+         solver.solve (t0, t1, stepAdjust);
+         t0 = t1;
+      }
+      long bytes = allocatedBytes() - bytes0;
+      // Allow a small amount of allocation that is not caused by the solver,
+      // such as when the JIT compiler deoptimizes code and must
+      // materialize objects it had previously eliminated. This is still
+      // much less than one object (of at least 16 bytes) per step.
+      if (bytes >= 4*nsteps) {
+         throw new TestException (
+            integrator + ": solver allocated " + bytes + " bytes in " +
+            nsteps + " steps");
+      }
+   }
+
+   /**
+    * Checks that the active position and velocity states of two models are
+    * equal, to within a tolerance.
+    */
+   void checkStatesEqual (String msg, MechModel mech0, MechModel mech1) {
+      VectorNd x0 = new VectorNd();
+      VectorNd x1 = new VectorNd();
+      mech0.getActivePosState (x0);
+      mech1.getActivePosState (x1);
+      checkEquals (msg + ", positions", x1, x0, 1e-10*x0.norm());
+      mech0.getActiveVelState (x0);
+      mech1.getActiveVelState (x1);
+      checkEquals (msg + ", velocities", x1, x0, 1e-10*(1+x0.norm()));
+   }
+
+   /**
+    * Replaces the bilateral plane constraint of a model created by {@link
+    * #createModel} with one acting on the second particle of the bottom row.
+    */
+   void movePlaneConstraint (MechModel mech, int nz) {
+      mech.removeConstrainer (
+         (ConstrainerBase)mech.constrainers().get ("plane"));
+      // particles are added column by column
+      Particle p = mech.particles().get (nz + nz-1);
+      mech.addConstrainer (createPlaneConstraint (p));
+   }
+
+   /**
+    * Steps two identical models with bilateral and unilateral constraints,
+    * one using its own solver, which clears and rebuilds its constraint
+    * matrices at each step, and one using a new solver at each step, so
+    * that the matrices are freshly allocated. Halfway through, the bilateral
+    * plane constraint is moved to another particle, so that the structure
+    * of the bilateral constraint matrix changes while its size does not.
+    * Later, the joint is removed so that its size changes as well. The
+    * states of the two models should remain the same.
+    */
+   void testConstraintReuse () {
+      int nx = 5;
+      int nz = 4;
+      MechModel mech0 = createModel (nx, nz, /*constrained=*/true);
+      MechModel mech1 = createModel (nx, nz, /*constrained=*/true);
+      MechSystemSolver solver = mech0.getSolver();
+      StepAdjustment stepAdjust = new StepAdjustment();
+      double h = 0.01;
+      double t0 = 0;
+      int nsteps = 400;
+      int numEngaged = 0;
+      for (int i=0; i<nsteps; i++) {
+         if (i == nsteps/2) {
+            movePlaneConstraint (mech0, nz);
+            movePlaneConstraint (mech1, nz);
+         }
+         else if (i == 3*nsteps/4) {
+            mech0.removeBodyConnector (
+               (BodyConnector)mech0.bodyConnectors().get ("joint"));
+            mech1.removeBodyConnector (
+               (BodyConnector)mech1.bodyConnectors().get ("joint"));
+         }
+         double t1 = t0 + h;
+         solver.solve (t0, t1, stepAdjust);
+         MechSystemSolver freshSolver =
+            new MechSystemSolver (mech1, mech1.getSolver());
+         freshSolver.solve (t0, t1, stepAdjust);
+         checkStatesEqual ("step " + i, mech0, mech1);
+         if (mech0.getNumUnilateralForces() > 0) {
+            numEngaged++;
+         }
+         t0 = t1;
+      }
+      if (numEngaged == 0) {
+         throw new TestException ("unilateral constraint never engaged");
+      }
+   }
+
+   public void test() {
+      testConstraintReuse ();
+      testAllocation (Integrator.ConstrainedBackwardEuler);
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      MechSystemSolverTest tester = new MechSystemSolverTest();
+      tester.runtest();
+   }
+}
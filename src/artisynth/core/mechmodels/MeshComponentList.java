@@ -44,8 +44,8 @@ public class MeshComponentList<P extends MeshComponent>
     * Calls updatePos() for all meshes in this list
     */
    public void updateSlavePos() {
-      for (MeshComponent mc : this) {
-         mc.updateSlavePos();
+      for (int i=0; i<size(); i++) {
+         get(i).updateSlavePos();
       }
    }
    
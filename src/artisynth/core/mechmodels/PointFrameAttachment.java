@@ -23,6 +23,9 @@ public class PointFrameAttachment extends PointAttachment {
    protected Point3d myLoc = new Point3d(); // location of point in frame coords
    Frame myFrame;
    protected MatrixBlock[] myMasterBlocks;
+   // temporaries used to avoid allocating memory at each time step
+   private Point3d myTmpPos = new Point3d();
+   private Vector3d myTmpVel = new Vector3d();
 
    protected void collectMasters (List<DynamicComponent> masters) {
       super.collectMasters (masters);
@@ -124,10 +127,9 @@ public class PointFrameAttachment extends PointAttachment {
       if (myMasterBlocks == null) {
          allocateMasterBlocks();
       } 
-      Point3d posw = new Point3d();
-      Vector3d velw = new Vector3d();
-      myFrame.computePointPosVel (posw, velw, myMasterBlocks[0], null, myLoc);
-      myPoint.setPosition (posw);
+      myFrame.computePointPosVel (
+         myTmpPos, myTmpVel, myMasterBlocks[0], null, myLoc);
+      myPoint.setPosition (myTmpPos);
       //updateJacobian();
       //updateMasterBlocks();
    }
@@ -136,9 +138,8 @@ public class PointFrameAttachment extends PointAttachment {
       if (myFrame == null) {
          return;
       }
-      Vector3d velw = new Vector3d();
-      myFrame.computePointVelocity (velw, myLoc);
-      myPoint.setVelocity (velw);
+      myFrame.computePointVelocity (myTmpVel, myLoc);
+      myPoint.setVelocity (myTmpVel);
    }
 
    public void applyForces() {
@@ -152,8 +153,7 @@ public class PointFrameAttachment extends PointAttachment {
 
    public void mulSubMG (MatrixBlock D, MatrixBlock M, int idx) {
       if (myMasterBlocks != null) {
-         MatrixBlock G = myMasterBlocks[idx].createTranspose();
-         D.mulAdd (M, G);
+         D.mulTransposeRightAdd (M, myMasterBlocks[idx]);
       }         
    }
    public MatrixBlock getGT (int idx) {
@@ -243,7 +243,7 @@ public class PointFrameAttachment extends PointAttachment {
    
    // FIX
    public boolean getDerivative (double[] buf, int idx) {
-      Vector3d dvel = new Vector3d();
+      Vector3d dvel = myTmpVel;
       //computeVelDerivative (dvel);
       
       myFrame.computePointCoriolis (dvel, myLoc);
@@ -258,6 +258,8 @@ public class PointFrameAttachment extends PointAttachment {
       PointFrameAttachment a = (PointFrameAttachment)super.copy (flags, copyMap);
 
       a.myLoc = new Point3d (myLoc);
+      a.myTmpPos = new Point3d();
+      a.myTmpVel = new Vector3d();
       a.myMasterBlocks = null; // will be reinitialized
       if (myFrame != null) {
          Frame frame = (Frame)ComponentUtils.maybeCopy (flags, copyMap, myFrame);
@@ -66,6 +66,8 @@ public class RigidBody extends Frame
 
    protected SpatialInertia mySpatialInertia;
    protected SpatialInertia myEffectiveInertia;
+   // storage for myEffectiveInertia, retained between time steps
+   private SpatialInertia myEffectiveInertiaStorage = new SpatialInertia();
    protected GeometryTransformer.Constrainer myTransformConstrainer = null;
    
    //MeshInfo myMeshInfo = null;
@@ -75,6 +77,7 @@ public class RigidBody extends Frame
    protected Wrench myCoriolisForce = new Wrench();
    protected Twist myBodyVel = new Twist();
    protected Twist myBodyAcc = new Twist();
+   protected Vector3d myGravityForce = new Vector3d();
 
    private static double DEFAULT_DENSITY = 1.0;
    protected double myDensity = DEFAULT_DENSITY;
@@ -246,8 +249,14 @@ public class RigidBody extends Frame
       VectorNd f, double t, FrameState state, 
       SpatialInertia effectiveInertia, int idx) {
       
-      Wrench coriolisForce = new Wrench();
-      Twist bodyVel = new Twist();
+      return getEffectiveMassForces (
+         f, state, effectiveInertia, new Wrench(), new Twist(), idx);
+   }
+
+   private static int getEffectiveMassForces (
+      VectorNd f, FrameState state, SpatialInertia effectiveInertia, 
+      Wrench coriolisForce, Twist bodyVel, int idx) {
+      
       bodyVel.inverseTransform (state.XFrameToWorld.R, state.vel);
       SpatialInertia S = effectiveInertia;
       S.coriolisForce (coriolisForce, bodyVel);
@@ -266,19 +275,24 @@ public class RigidBody extends Frame
    
    public int getEffectiveMassForces (VectorNd f, double t, int idx) {
       return getEffectiveMassForces (
-         f, t, myState, getEffectiveInertia(), idx);
+         f, myState, getEffectiveInertia(), myCoriolisForce, myBodyVel, idx);
    }
 
    public void resetEffectiveMass() {
       myEffectiveInertia = null;
    }
 
+   private void initEffectiveInertia() {
+      myEffectiveInertiaStorage.set (mySpatialInertia);
+      myEffectiveInertia = myEffectiveInertiaStorage;
+   }
+
    /**
     * {@inheritDoc}
     */
    public void addEffectivePointMass (double m, Vector3d loc) {
       if (myEffectiveInertia == null) {
-         myEffectiveInertia = new SpatialInertia (mySpatialInertia);
+         initEffectiveInertia();
       }
       SpatialInertia.addPointMass (myEffectiveInertia, m, loc);
    }
@@ -288,7 +302,7 @@ public class RigidBody extends Frame
     */
    public void addEffectiveFrameMass (SpatialInertia M, RigidTransform3d TFL) {
       if (myEffectiveInertia == null) {
-         myEffectiveInertia = new SpatialInertia (mySpatialInertia);
+         initEffectiveInertia();
       }
       SpatialInertia MB = new SpatialInertia (M);
       MB.transform (TFL);
@@ -297,7 +311,7 @@ public class RigidBody extends Frame
 
    public void subEffectiveInertia (SpatialInertia M) {
       if (myEffectiveInertia == null) {
-         myEffectiveInertia = new SpatialInertia (mySpatialInertia);
+         initEffectiveInertia();
       }
       myEffectiveInertia.sub (M);
    }
@@ -762,7 +776,8 @@ public class RigidBody extends Frame
     * @return surface mesh component, or {@code null}.
     */
    public RigidMeshComp getSurfaceMeshComp() {
-      for (RigidMeshComp mc : myMeshList) {
+      for (int i=0; i<myMeshList.size(); i++) {
+         RigidMeshComp mc = myMeshList.get(i);
          if (mc.getMesh() instanceof PolygonalMesh) {
             return mc;
          }
@@ -1035,8 +1050,8 @@ public class RigidBody extends Frame
       if (mesh != null) {
          mesh.setMeshToWorld (myState.XFrameToWorld);
       }
-      for (RigidMeshComp mc : myMeshList) {
-         MeshBase mbase = mc.getMesh();
+      for (int i=0; i<myMeshList.size(); i++) {
+         MeshBase mbase = myMeshList.get(i).getMesh();
          mbase.setMeshToWorld(myState.XFrameToWorld);
       }
       myDistanceGridComp.setLocalToWorld (myState.XFrameToWorld);
@@ -1139,8 +1154,8 @@ public class RigidBody extends Frame
 
    public void applyGravity (Vector3d gacc) {
       // apply a force of -mass gacc at the bodies's center of mass
-      Point3d com = new Point3d();
-      Vector3d fgrav = new Vector3d();
+      Point3d com = myTmpPos;
+      Vector3d fgrav = myGravityForce;
       //      SpatialInertia inertia = MechModel.getEffectiveInertia(this);
       SpatialInertia inertia = mySpatialInertia;
       inertia.getCenterOfMass (com);
@@ -1462,6 +1477,9 @@ public class RigidBody extends Frame
       comp.myCoriolisForce = new Wrench();
       comp.myBodyVel = new Twist();
       comp.myBodyAcc = new Twist();
+      comp.myGravityForce = new Vector3d();
+      comp.myEffectiveInertia = null;
+      comp.myEffectiveInertiaStorage = new SpatialInertia();
       comp.myQvel = new Quaternion();
       comp.myTmpPos = new Point3d();
       comp.myConnectors = null;
@@ -1522,9 +1540,9 @@ public class RigidBody extends Frame
    }
 
    public void updateAttachmentPosStates() {
-      if (myMasterAttachments != null) {
-         for (DynamicAttachment a : myMasterAttachments) {
-            a.updatePosStates();
+      if (myMasterAttachmentArray != null) {
+         for (int i=0; i<myMasterAttachmentArray.length; i++) {
+            myMasterAttachmentArray[i].updatePosStates();
          }
       }
    }
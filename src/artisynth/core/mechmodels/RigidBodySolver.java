@@ -79,6 +79,8 @@ public class RigidBodySolver {
 
    private MechSystem mySys;
 
+   private static final int[] EMPTY_MAP = new int[0];
+
    public RigidBodySolver (MechSystem sys) {
       mySys = sys;
    }
@@ -376,8 +378,10 @@ public class RigidBodySolver {
       FrictionInfo[] finfo, VectorNd vel,
       VectorNd lam, VectorNd the, VectorNd phi) {
       
-      if (mySizeM == 0) {
-         myDTMap = new int[0];
+      if (mySizeM == 0 || DT.numBlockCols() == 0) {
+         // no rigid body friction constraints; this is checked here to
+         // avoid rebuilding the local constraint matrices at every step
+         myDTMap = EMPTY_MAP;
          return false;
       }
 
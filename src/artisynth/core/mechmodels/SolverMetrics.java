@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import artisynth.core.mechmodels.SolverPhaseTimer.Counter;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
+
+/**
+ * Snapshot of the metrics accumulated by {@link SolverPhaseTimer}: the time
+ * spent in, and number of executions of, each solver {@link Phase}, the
+ * value of each {@link Counter}, and the number of contact constraints for
+ * each collision handler at the most recent collision detection.
+ *
+ * <p>The metrics for a particular interval, such as a single time step, can
+ * be found by taking a snapshot at the start and end of the interval and
+ * then calling {@link #sub} on the second snapshot.
+ */
+public class SolverMetrics {
+
+   private static final int NUM_PHASES = Phase.values().length;
+   private static final int NUM_COUNTERS = Counter.values().length;
+
+   long[] myPhaseNsec = new long[NUM_PHASES];
+   int[] myPhaseCounts = new int[NUM_PHASES];
+   long[] myCounterValues = new long[NUM_COUNTERS];
+   LinkedHashMap<String,Integer> myHandlerContacts =
+      new LinkedHashMap<String,Integer>();
+
+   /**
+    * Creates a new SolverMetrics object with all values set to zero.
+    */
+   public SolverMetrics() {
+   }
+
+   /**
+    * Creates a new SolverMetrics object that is a copy of another.
+    *
+    * @param metrics metrics to copy
+    */
+   public SolverMetrics (SolverMetrics metrics) {
+      set (metrics.myPhaseNsec, metrics.myPhaseCounts,
+           metrics.myCounterValues, metrics.myHandlerContacts);
+   }
+
+   void set (
+      long[] phaseNsec, int[] phaseCounts, long[] counterValues,
+      Map<String,Integer> handlerContacts) {
+      System.arraycopy (phaseNsec, 0, myPhaseNsec, 0, NUM_PHASES);
+      System.arraycopy (phaseCounts, 0, myPhaseCounts, 0, NUM_PHASES);
+      System.arraycopy (counterValues, 0, myCounterValues, 0, NUM_COUNTERS);
+      myHandlerContacts.clear();
+      myHandlerContacts.putAll (handlerContacts);
+   }
+
+   /**
+    * Returns the total time spent in a phase, in nanoseconds.
+    *
+    * @param phase phase to query
+    * @return total time in the phase
+    */
+   public long getTimeNsec (Phase phase) {
+      return myPhaseNsec[phase.ordinal()];
+   }
+
+   /**
+    * Returns the total time spent in a phase, in milliseconds.
+    *
+    * @param phase phase to query
+    * @return total time in the phase
+    */
+   public double getTimeMsec (Phase phase) {
+      return myPhaseNsec[phase.ordinal()]/1e6;
+   }
+
+   /**
+    * Returns the number of times a phase was executed.
+    *
+    * @param phase phase to query
+    * @return number of executions of the phase
+    */
+   public int getCount (Phase phase) {
+      return myPhaseCounts[phase.ordinal()];
+   }
+
+   /**
+    * Returns the value of a counter.
+    *
+    * @param counter counter to query
+    * @return value of the counter
+    */
+   public long getCount (Counter counter) {
+      return myCounterValues[counter.ordinal()];
+   }
+
+   /**
+    * Returns the number of contact constraints for each collision handler at
+    * the most recent collision detection. Handlers are identified by the path
+    * names of their two collidables, relative to the root model and
+    * separated by a <code>'|'</code> character. The returned map should not be modified.
+    *
+    * @return contact constraint counts for each handler
+    */
+   public Map<String,Integer> getHandlerContacts() {
+      return myHandlerContacts;
+   }
+
+   /**
+    * Subtracts the phase times, phase counts and counter values of another
+    * set of metrics from this one. This is used to find the metrics for an
+    * interval. The per-handler contact counts are left unchanged, since they
+    * describe the most recent collision detection rather than being
+    * accumulated.
+    *
+    * @param metrics metrics to subtract
+    */
+   public void sub (SolverMetrics metrics) {
+      for (int i=0; i<NUM_PHASES; i++) {
+         myPhaseNsec[i] -= metrics.myPhaseNsec[i];
+         myPhaseCounts[i] -= metrics.myPhaseCounts[i];
+      }
+      for (int i=0; i<NUM_COUNTERS; i++) {
+         myCounterValues[i] -= metrics.myCounterValues[i];
+      }
+   }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.io.IOException;
+
+/**
+ * Receives the {@link SolverMetrics} for each time step of a simulation.
+ * A sink is attached to a root model using
+ * <code>RootModel.setSolverMetricsSink()</code>.
+ */
+public interface SolverMetricsSink {
+
+   /**
+    * Called after each time step with the metrics for that step.
+    *
+    * @param t0 time at the start of the step
+    * @param t1 time at the end of the step
+    * @param metrics metrics for the step
+    * @throws IOException if an I/O error occurs
+    */
+   public void write (double t0, double t1, SolverMetrics metrics)
+      throws IOException;
+
+   /**
+    * Called when the sink is no longer needed, to release any resources.
+    *
+    * @throws IOException if an I/O error occurs
+    */
+   public void close() throws IOException;
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
+import artisynth.core.mechmodels.SolverPhaseTimer.Counter;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
+import artisynth.core.mechmodels.SolverMetricsWriter.Format;
+import artisynth.core.workspace.RootModel;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests the solver metrics collected by SolverPhaseTimer, and the writing of
+ * those metrics by SolverMetricsWriter.
+ */
+public class SolverMetricsTest extends UnitTest {
+
+   static final String HANDLER_NAME =
+      "models/mech/rigidBodies/base|models/mech/rigidBodies/box";
+
+   /**
+    * Creates a root model containing a box resting on a fixed base, with
+    * collisions enabled between them.
+    */
+   RootModel createModel() {
+      RootModel root = new RootModel();
+      MechModel mech = new MechModel ("mech");
+      RigidBody base = RigidBody.createBox ("base", 2.0, 2.0, 0.5, 1000.0);
+      base.setDynamic (false);
+      mech.addRigidBody (base);
+      RigidBody box = RigidBody.createBox ("box", 0.5, 0.5, 0.5, 1000.0);
+      box.setPose (0, 0, 0.5, 0, 0, 0);
+      mech.addRigidBody (box);
+      mech.setCollisionBehavior (base, box, true);
+      root.addModel (mech);
+      return root;
+   }
+
+   void advance (RootModel root, int nsteps) {
+      double h = 0.01;
+      for (int i=0; i<nsteps; i++) {
+         root.advance (i*h, (i+1)*h, /*flags=*/0);
+      }
+   }
+
+   void testMetrics() {
+      RootModel root = createModel();
+      root.setSolverMetricsEnabled (true);
+      root.resetSolverMetrics();
+      int nsteps = 10;
+      advance (root, nsteps);
+      SolverMetrics metrics = root.getSolverMetrics();
+      root.setSolverMetricsEnabled (false);
+      // collision detection is also performed when the model is initialized
+      if (metrics.getCount (Phase.Collision) < nsteps) {
+         throw new TestException (
+            "Collision count is " + metrics.getCount (Phase.Collision) +
+            ", expected at least " + nsteps);
+      }
+      if (metrics.getCount (Phase.KKTSolve) < nsteps) {
+         throw new TestException (
+            "KKTSolve count is " + metrics.getCount (Phase.KKTSolve) +
+            ", expected at least " + nsteps);
+      }
+      if (metrics.getCount (Counter.ContactHandlers) !=
+          metrics.getCount (Phase.Collision)) {
+         throw new TestException (
+            "ContactHandlers count is " +
+            metrics.getCount (Counter.ContactHandlers) +
+            ", expected " + metrics.getCount (Phase.Collision));
+      }
+      if (metrics.getCount (Counter.ContactConstraints) <= 0) {
+         throw new TestException ("No contact constraints recorded");
+      }
+      Map<String,Integer> contacts = metrics.getHandlerContacts();
+      Integer ncons = contacts.get (HANDLER_NAME);
+      if (contacts.size() != 1 || ncons == null || ncons <= 0) {
+         throw new TestException (
+            "Unexpected handler contacts " + contacts);
+      }
+
+      // metrics should not change when disabled
+      SolverMetrics prev = new SolverMetrics (metrics);
+      advance (root, 2);
+      metrics = root.getSolverMetrics();
+      metrics.sub (prev);
+      for (Phase phase : Phase.values()) {
+         if (metrics.getCount (phase) != 0) {
+            throw new TestException (
+               phase + " count changed while metrics disabled");
+         }
+      }
+      for (Counter counter : Counter.values()) {
+         if (metrics.getCount (counter) != 0) {
+            throw new TestException (
+               counter + " changed while metrics disabled");
+         }
+      }
+   }
+
+   /**
+    * Checks that a phase which is started but not stopped, as happens when
+    * an exception is thrown, is timed again after the nesting is cleared.
+    */
+   void testUnmatchedStart() {
+      SolverPhaseTimer.setEnabled (true);
+      SolverPhaseTimer.reset();
+      SolverPhaseTimer.start (Phase.KKTFactor);
+      // no matching stop, so the next start is treated as nested
+      long t0 = SolverPhaseTimer.start (Phase.KKTFactor);
+      SolverPhaseTimer.stop (Phase.KKTFactor, t0);
+      checkEquals (
+         "KKTFactor count while nested",
+         SolverPhaseTimer.getCount (Phase.KKTFactor), 0);
+
+      SolverPhaseTimer.clearNesting();
+      t0 = SolverPhaseTimer.start (Phase.KKTFactor);
+      SolverPhaseTimer.stop (Phase.KKTFactor, t0);
+      checkEquals (
+         "KKTFactor count after clearNesting",
+         SolverPhaseTimer.getCount (Phase.KKTFactor), 1);
+
+      SolverPhaseTimer.start (Phase.KKTFactor);
+      SolverPhaseTimer.reset();
+      t0 = SolverPhaseTimer.start (Phase.KKTFactor);
+      SolverPhaseTimer.stop (Phase.KKTFactor, t0);
+      checkEquals (
+         "KKTFactor count after reset",
+         SolverPhaseTimer.getCount (Phase.KKTFactor), 1);
+      SolverPhaseTimer.setEnabled (false);
+      SolverPhaseTimer.reset();
+   }
+
+   void testWriter (Format format) {
+      RootModel root = createModel();
+      StringWriter sw = new StringWriter();
+      root.setSolverMetricsSink (
+         new SolverMetricsWriter (new PrintWriter (sw), format));
+      if (!root.getSolverMetricsEnabled()) {
+         throw new TestException ("Metrics not enabled by setting sink");
+      }
+      int nsteps = 5;
+      advance (root, nsteps);
+      root.setSolverMetricsSink (null);
+      root.setSolverMetricsEnabled (false);
+      String[] lines = sw.toString().split ("\n");
+      int nlines = (format == Format.CSV ? nsteps+1 : nsteps);
+      if (lines.length != nlines) {
+         throw new TestException (
+            format + ": " + lines.length + " lines written, expected " +
+            nlines);
+      }
+      if (format == Format.CSV) {
+         String[] header = lines[0].split (",");
+         int ncols =
+            2 + 2*Phase.values().length + Counter.values().length + 1;
+         if (header.length != ncols ||
+             !header[0].equals ("t0") ||
+             !header[ncols-1].equals ("handlerContacts")) {
+            throw new TestException ("CSV: bad header " + lines[0]);
+         }
+         for (int i=1; i<lines.length; i++) {
+            String[] cols = lines[i].split (",");
+            if (cols.length != ncols ||
+                !cols[ncols-1].startsWith (HANDLER_NAME+"=")) {
+               throw new TestException ("CSV: bad line " + lines[i]);
+            }
+         }
+      }
+      else {
+         for (int i=0; i<lines.length; i++) {
+            String line = lines[i];
+            if (!line.startsWith ("{ \"t0\": ") || !line.endsWith ("} }") ||
+                !line.contains ("\"Collision\": { \"msec\": ") ||
+                !line.contains ("\""+HANDLER_NAME+"\": ")) {
+               throw new TestException ("JSON: bad line " + line);
+            }
+         }
+      }
+   }
+
+   public void test() throws IOException {
+      testMetrics();
+      testUnmatchedStart();
+      testWriter (Format.CSV);
+      testWriter (Format.JSON);
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      SolverMetricsTest tester = new SolverMetricsTest();
+      tester.runtest();
+   }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import artisynth.core.mechmodels.SolverPhaseTimer.Counter;
+import artisynth.core.mechmodels.SolverPhaseTimer.Phase;
+import maspack.util.NumberFormat;
+
+/**
+ * A {@link SolverMetricsSink} that writes the metrics for each time step
+ * to a file, in either CSV or JSON format. In CSV format, the first line
+ * gives the column names and each subsequent line describes one step, with
+ * the per-handler contact counts written to a final column as a list of
+ * <code>name=count</code> entries separated by semicolons. In JSON format,
+ * each line contains a separate JSON object describing one step (the
+ * so-called "JSON lines" format), which allows the file to be read while it
+ * is still being written.
+ */
+public class SolverMetricsWriter implements SolverMetricsSink {
+
+   /**
+    * Output format for the metrics.
+    */
+   public enum Format {
+      /**
+       * Comma separated values, with one line per step.
+       */
+      CSV,
+
+      /**
+       * A JSON object for each step, with one object per line.
+       */
+      JSON
+   };
+
+   private PrintWriter myPw;
+   private Format myFormat;
+   private NumberFormat myFmt = new NumberFormat ("%.6g");
+   private boolean myHeaderWritten = false;
+
+   /**
+    * Creates a writer that writes metrics to a file.
+    *
+    * @param file file to write the metrics to
+    * @param format format for the metrics
+    * @throws IOException if the file cannot be opened
+    */
+   public SolverMetricsWriter (File file, Format format) throws IOException {
+      this (new PrintWriter (new BufferedWriter (new FileWriter (file))),
+            format);
+   }
+
+   /**
+    * Creates a writer that writes metrics to a PrintWriter.
+    *
+    * @param pw PrintWriter to write the metrics to
+    * @param format format for the metrics
+    */
+   public SolverMetricsWriter (PrintWriter pw, Format format) {
+      myPw = pw;
+      myFormat = format;
+   }
+
+   /**
+    * Returns the format used by this writer.
+    *
+    * @return output format
+    */
+   public Format getFormat() {
+      return myFormat;
+   }
+
+   private void writeCsvHeader() {
+      StringBuilder sb = new StringBuilder();
+      sb.append ("t0,t1");
+      for (Phase phase : Phase.values()) {
+         sb.append (","+phase+"Msec,"+phase+"Count");
+      }
+      for (Counter counter : Counter.values()) {
+         sb.append (","+counter);
+      }
+      sb.append (",handlerContacts");
+      myPw.println (sb);
+   }
+
+   private static String csvString (String str) {
+      if (str.indexOf (',') != -1 || str.indexOf ('"') != -1) {
+         return "\"" + str.replace ("\"", "\"\"") + "\"";
+      }
+      else {
+         return str;
+      }
+   }
+
+   private static String jsonString (String str) {
+      StringBuilder sb = new StringBuilder();
+      sb.append ('"');
+      for (int i=0; i<str.length(); i++) {
+         char c = str.charAt(i);
+         if (c == '"' || c == '\\') {
+            sb.append ('\\');
+            sb.append (c);
+         }
+         else if (c < 0x20) {
+            sb.append (String.format ("\\u%04x", (int)c));
+         }
+         else {
+            sb.append (c);
+         }
+      }
+      sb.append ('"');
+      return sb.toString();
+   }
+
+   private void writeCsv (double t0, double t1, SolverMetrics metrics) {
+      if (!myHeaderWritten) {
+         writeCsvHeader();
+         myHeaderWritten = true;
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append (myFmt.format (t0));
+      sb.append (","+myFmt.format (t1));
+      for (Phase phase : Phase.values()) {
+         sb.append (","+myFmt.format (metrics.getTimeMsec (phase)));
+         sb.append (","+metrics.getCount (phase));
+      }
+      for (Counter counter : Counter.values()) {
+         sb.append (","+metrics.getCount (counter));
+      }
+      StringBuilder contacts = new StringBuilder();
+      for (Map.Entry<String,Integer> e :
+              metrics.getHandlerContacts().entrySet()) {
+         if (contacts.length() > 0) {
+            contacts.append (';');
+         }
+         contacts.append (e.getKey()+"="+e.getValue());
+      }
+      sb.append (","+csvString (contacts.toString()));
+      myPw.println (sb);
+   }
+
+   private void writeJson (double t0, double t1, SolverMetrics metrics) {
+      StringBuilder sb = new StringBuilder();
+      sb.append ("{ \"t0\": "+myFmt.format (t0));
+      sb.append (", \"t1\": "+myFmt.format (t1));
+      sb.append (", \"phases\": {");
+      Phase[] phases = Phase.values();
+      for (int k=0; k<phases.length; k++) {
+         sb.append (k > 0 ? ", " : " ");
+         sb.append (
+            "\"" + phases[k] + "\": { \"msec\": " +
+            myFmt.format (metrics.getTimeMsec (phases[k])) +
+            ", \"count\": " + metrics.getCount (phases[k]) + " }");
+      }
+      sb.append (" }, \"counters\": {");
+      Counter[] counters = Counter.values();
+      for (int k=0; k<counters.length; k++) {
+         sb.append (k > 0 ? ", " : " ");
+         sb.append (
+            "\"" + counters[k] + "\": " + metrics.getCount (counters[k]));
+      }
+      sb.append (" }, \"handlerContacts\": {");
+      int k = 0;
+      for (Map.Entry<String,Integer> e :
+              metrics.getHandlerContacts().entrySet()) {
+         sb.append (k++ > 0 ? ", " : " ");
+         sb.append (jsonString (e.getKey()) + ": " + e.getValue());
+      }
+      sb.append (" } }");
+      myPw.println (sb);
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void write (double t0, double t1, SolverMetrics metrics)
+      throws IOException {
+      switch (myFormat) {
+         case CSV: {
+            writeCsv (t0, t1, metrics);
+            break;
+         }
+         case JSON: {
+            writeJson (t0, t1, metrics);
+            break;
+         }
+         default: {
+            throw new UnsupportedOperationException (
+               "Unknown format " + myFormat);
+         }
+      }
+      if (myPw.checkError()) {
+         throw new IOException ("error writing solver metrics");
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void close() throws IOException {
+      myPw.close();
+   }
+}
@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.mechmodels;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import artisynth.core.modelbase.ComponentUtils;
+import artisynth.core.modelbase.ModelComponent;
+
+/**
+ * Accumulates the time spent in the main phases of a mechanical system
+ * step, together with counts of quantities such as constraints and
+ * contacts, for use in profiling and benchmarking. Timing is disabled by
+ * default, in which case the overhead is a single static boolean check per
+ * phase or count. The accumulated values can be collected into a {@link
+ * SolverMetrics} object using {@link #getMetrics}.
+ *
+ * <p>Phase times are inclusive and may overlap: for instance, the time for
+ * {@link Phase#ConstraintProjection} includes any KKT factor and solve
+ * operations performed during the projection. Re-entrant calls for the same
+ * phase (such as might occur with nested models) are only timed at the
+ * outermost level. Timing should only be done from the simulation thread.
+ *
+ * <p>Since a phase whose {@link #start} is not matched by a {@link #stop},
+ * because of an exception, would otherwise be considered re-entrant and
+ * not timed again, the nesting of all phases is cleared by {@link #reset}
+ * and {@link #clearNesting}. The latter is called by {@code RootModel} at
+ * the start of each advance.
+ */
+public class SolverPhaseTimer {
+
+   /**
+    * Phases of a mechanical system step.
+    */
+   public enum Phase {
+      /**
+       * Computing forces (MechSystemBase.updateForces).
+       */
+      ForceUpdate,
+
+      /**
+       * Adding force Jacobians to the solve matrix.
+       */
+      StiffnessAssembly,
+
+      /**
+       * Collision detection and contact constraint creation.
+       */
+      Collision,
+
+      /**
+       * Symbolic analysis of the KKT system.
+       */
+      KKTAnalyze,
+
+      /**
+       * Numeric factorization of the KKT system.
+       */
+      KKTFactor,
+
+      /**
+       * Solving the KKT system, once factored.
+       */
+      KKTSolve,
+
+      /**
+       * Projecting positions to satisfy the constraints.
+       */
+      ConstraintProjection,
+
+      /**
+       * Assembling the bilateral, unilateral and friction constraint
+       * matrices.
+       */
+      ConstraintAssembly,
+
+      /**
+       * Computing element stresses and stiffnesses for FEM models.
+       */
+      StressAndStiffness
+   };
+
+   /**
+    * Quantities that are counted during a mechanical system step.
+    */
+   public enum Counter {
+      /**
+       * Number of bilateral constraints, summed over each time the
+       * constraints are assembled.
+       */
+      BilateralConstraints,
+
+      /**
+       * Number of unilateral constraints, summed over each time the
+       * constraints are assembled.
+       */
+      UnilateralConstraints,
+
+      /**
+       * Number of friction constraints, summed over each time the
+       * constraints are assembled.
+       */
+      FrictionConstraints,
+
+      /**
+       * Number of active collision handlers, summed over each collision
+       * detection.
+       */
+      ContactHandlers,
+
+      /**
+       * Number of contact constraints, summed over each collision
+       * detection.
+       */
+      ContactConstraints,
+
+      /**
+       * Number of FEM elements whose stresses were evaluated by models using
+       * an {@code ElementUpdateTracker}, summed over each stress update.
+       */
+      EvaluatedElements,
+
+      /**
+       * Number of FEM elements whose stress evaluation was skipped by models
+       * using an {@code ElementUpdateTracker}, summed over each stress
+       * update.
+       */
+      SkippedElements
+   };
+
+   private static final int NUM_PHASES = Phase.values().length;
+   private static final int NUM_COUNTERS = Counter.values().length;
+
+   private static boolean myEnabled = false;
+   private static long[] myNsec = new long[NUM_PHASES];
+   private static int[] myCounts = new int[NUM_PHASES];
+   private static int[] myDepths = new int[NUM_PHASES];
+   private static long[] myCounterValues = new long[NUM_COUNTERS];
+   // contact constraint counts for each handler at the most recent collision
+   // detection, keyed by the handler's collidable pair
+   private static LinkedHashMap<String,Integer> myHandlerContacts =
+      new LinkedHashMap<String,Integer>();
+
+   /**
+    * Enables or disables phase timing.
+    *
+    * @param enable if {@code true}, enables phase timing
+    */
+   public static void setEnabled (boolean enable) {
+      myEnabled = enable;
+      if (!enable) {
+         clearNesting();
+      }
+   }
+
+   /**
+    * Marks all phases as not having been started. This should be called
+    * when no phases are being executed, and recovers from calls to {@link
+    * #start} that were not matched by a call to {@link #stop}.
+    */
+   public static void clearNesting() {
+      for (int i=0; i<NUM_PHASES; i++) {
+         myDepths[i] = 0;
+      }
+   }
+
+   /**
+    * Queries whether phase timing is enabled.
+    *
+    * @return {@code true} if phase timing is enabled
+    */
+   public static boolean isEnabled() {
+      return myEnabled;
+   }
+
+   /**
+    * Marks the start of a phase. The returned value should be passed to
+    * the corresponding call to {@link #stop}.
+    *
+    * @param phase phase being started
+    * @return start time, or -1 if the phase is not being timed
+    */
+   public static long start (Phase phase) {
+      if (!myEnabled) {
+         return -1;
+      }
+      if (myDepths[phase.ordinal()]++ > 0) {
+         return -1;
+      }
+      return System.nanoTime();
+   }
+
+   /**
+    * Marks the end of a phase.
+    *
+    * @param phase phase being ended
+    * @param t0 value returned by the corresponding call to {@link #start}
+    */
+   public static void stop (Phase phase, long t0) {
+      if (!myEnabled) {
+         return;
+      }
+      int idx = phase.ordinal();
+      if (myDepths[idx] > 0) {
+         myDepths[idx]--;
+      }
+      if (t0 != -1) {
+         myNsec[idx] += System.nanoTime()-t0;
+         myCounts[idx]++;
+      }
+   }
+
+   /**
+    * Adds to the value of a counter.
+    *
+    * @param counter counter to increment
+    * @param num amount to add to the counter
+    */
+   public static void count (Counter counter, int num) {
+      if (myEnabled) {
+         myCounterValues[counter.ordinal()] += num;
+      }
+   }
+
+   /**
+    * Returns the path name of a component relative to the root of its
+    * hierarchy, so that handler names do not depend on the root's name.
+    */
+   private static String rootPathName (ModelComponent comp) {
+      ModelComponent root = comp;
+      while (root.getParent() != null) {
+         root = root.getParent();
+      }
+      return ComponentUtils.getPathName (root, comp);
+   }
+
+   /**
+    * Records the number of contact constraints for each of a list of
+    * collision handlers, replacing the values recorded by the previous call,
+    * and adds the number of handlers and contacts to the {@link
+    * Counter#ContactHandlers} and {@link Counter#ContactConstraints}
+    * counters.
+    *
+    * @param handlers collision handlers produced by a collision detection
+    */
+   static void recordContacts (List<CollisionHandler> handlers) {
+      if (!myEnabled) {
+         return;
+      }
+      myHandlerContacts.clear();
+      int numc = 0;
+      for (int i=0; i<handlers.size(); i++) {
+         CollisionHandler ch = handlers.get(i);
+         int num =
+            ch.numBilateralConstraints() + ch.numUnilateralConstraints();
+         String name =
+            rootPathName (ch.getCollidable(0)) + "|" +
+            rootPathName (ch.getCollidable(1));
+         Integer prev = myHandlerContacts.get (name);
+         myHandlerContacts.put (name, prev != null ? prev+num : num);
+         numc += num;
+      }
+      myCounterValues[Counter.ContactHandlers.ordinal()] += handlers.size();
+      myCounterValues[Counter.ContactConstraints.ordinal()] += numc;
+   }
+
+   /**
+    * Returns the total time spent in a phase since the last call to {@link
+    * #reset}, in nanoseconds.
+    *
+    * @param phase phase to query
+    * @return total time in the phase
+    */
+   public static long getTimeNsec (Phase phase) {
+      return myNsec[phase.ordinal()];
+   }
+
+   /**
+    * Returns the number of times a phase was executed since the last call
+    * to {@link #reset}.
+    *
+    * @param phase phase to query
+    * @return number of executions of the phase
+    */
+   public static int getCount (Phase phase) {
+      return myCounts[phase.ordinal()];
+   }
+
+   /**
+    * Returns the value of a counter accumulated since the last call to
+    * {@link #reset}.
+    *
+    * @param counter counter to query
+    * @return value of the counter
+    */
+   public static long getCount (Counter counter) {
+      return myCounterValues[counter.ordinal()];
+   }
+
+   /**
+    * Returns a snapshot of the current phase times and counts, counter
+    * values, and per-handler contact counts.
+    *
+    * @return snapshot of the current metrics
+    */
+   public static SolverMetrics getMetrics() {
+      SolverMetrics metrics = new SolverMetrics();
+      metrics.set (myNsec, myCounts, myCounterValues, myHandlerContacts);
+      return metrics;
+   }
+
+   /**
+    * Resets the accumulated times and counts for all phases, the values of
+    * all counters, and the per-handler contact counts. Also clears the
+    * nesting of all phases, as described for {@link #clearNesting}.
+    */
+   public static void reset() {
+      for (int i=0; i<NUM_PHASES; i++) {
+         myNsec[i] = 0;
+         myCounts[i] = 0;
+         myDepths[i] = 0;
+      }
+      for (int i=0; i<NUM_COUNTERS; i++) {
+         myCounterValues[i] = 0;
+      }
+      myHandlerContacts.clear();
+   }
+}
@@ -12,7 +12,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -20,7 +19,6 @@ import artisynth.core.modelbase.CompositeComponent;
 import artisynth.core.modelbase.ModelComponent;
 import artisynth.core.util.ScanToken;
 import maspack.interpolation.NumericList;
-import maspack.interpolation.NumericListKnot;
 import maspack.matrix.VectorNd;
 import maspack.properties.PropertyList;
 import maspack.util.InternalErrorException;
@@ -45,6 +43,9 @@ public class NumericMonitorProbe extends NumericDataFunctionProbe {
    private boolean myShowHeader;
    private static boolean defaultShowHeader = true;
 
+   // storage for values generated in apply()
+   private VectorNd myDataVals;
+
    public static PropertyList myProps =
       new PropertyList (NumericMonitorProbe.class, NumericProbeBase.class);
 
@@ -194,14 +195,7 @@ public class NumericMonitorProbe extends NumericDataFunctionProbe {
          }
       }
       NumberFormat fmt = new NumberFormat (fmtStr);
-      Iterator<NumericListKnot> it = myNumericList.iterator();
-      while (it.hasNext()) {
-         NumericListKnot knot = it.next();
-         if (showTime) {
-            pw.print (timeFmt.format (knot.t) + " ");
-         }
-         pw.println (knot.v.toString (fmt));
-      }
+      myNumericList.writeKnots (pw, fmt, timeFmt, " ");
    }
 
    /**
@@ -237,11 +231,11 @@ public class NumericMonitorProbe extends NumericDataFunctionProbe {
       // XXX don't we want to apply scaling here too?
       double trel = (t-getStartTime())/myScale;
 
-      NumericListKnot knot = new NumericListKnot (myVsize);
-      generateData (knot.v, t, trel);
-      knot.t = trel;
-      myNumericList.add (knot);
-      myNumericList.clearAfter (knot);
+      if (myDataVals == null || myDataVals.size() != myVsize) {
+         myDataVals = new VectorNd (myVsize);
+      }
+      generateData (myDataVals, t, trel);
+      myNumericList.append (myDataVals, trel);
    }
 
    public NumericList getOutput() {
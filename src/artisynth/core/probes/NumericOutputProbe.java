@@ -13,9 +13,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
 
+import maspack.interpolation.NumericKnotStore;
 import maspack.interpolation.NumericList;
-import maspack.interpolation.NumericListKnot;
 import maspack.matrix.ImproperStateException;
+import maspack.matrix.VectorNd;
 import maspack.properties.NumericConverter;
 import maspack.properties.Property;
 import maspack.properties.PropertyList;
@@ -32,6 +33,12 @@ public class NumericOutputProbe extends NumericProbeBase
    private boolean myShowHeader;
    private static boolean defaultShowHeader = true;
 
+   private boolean myUseCompactStorage = false;
+   private File myCompactStorageFile = null;
+
+   // storage for values computed in apply()
+   private VectorNd myDataVals;
+
    public static PropertyList myProps =
       new PropertyList (NumericOutputProbe.class, NumericProbeBase.class);
 
@@ -71,6 +78,88 @@ public class NumericOutputProbe extends NumericProbeBase
       myShowHeader = enable;
    }
 
+   /**
+    * Queries whether this probe records its data using compact storage.
+    *
+    * @return {@code true} if compact storage is used
+    * @see #setUseCompactStorage
+    */
+   public boolean getUseCompactStorage() {
+      return myUseCompactStorage;
+   }
+
+   /**
+    * Sets whether this probe records its data using compact storage, in
+    * which knot times and values are kept in primitive arrays (see {@link
+    * NumericKnotStore}) rather than as individual linked knots. This greatly
+    * reduces heap usage for long recordings, particularly in batch or
+    * headless runs. Interpolation, text export and data file output work
+    * directly on compact storage, but operations that need individual knots,
+    * such as knot editing in the probe display, cause the data to be moved
+    * back into linked storage. Compact storage is not restored after this
+    * happens unless this method is called again.
+    *
+    * @param enable if {@code true}, enables compact storage
+    */
+   public void setUseCompactStorage (boolean enable) {
+      myUseCompactStorage = enable;
+      updateKnotStore();
+   }
+
+   /**
+    * Returns the file used to store compact data values, if any.
+    *
+    * @return compact storage file, or {@code null}
+    * @see #setCompactStorageFile
+    */
+   public File getCompactStorageFile() {
+      return myCompactStorageFile;
+   }
+
+   /**
+    * Sets a file to which data values should be memory-mapped when compact
+    * storage is enabled (see {@link #setUseCompactStorage}), so that only the
+    * knot times are kept on the heap. The file is overwritten and serves
+    * only as backing storage; it is not in the probe's data file format. If
+    * {@code file} is {@code null}, values are kept on the heap.
+    *
+    * @param file compact storage file, or {@code null}
+    */
+   public void setCompactStorageFile (File file) {
+      myCompactStorageFile = file;
+      if (myNumericList != null && myNumericList.getKnotStore() != null) {
+         // move the data into a new store using the new file
+         myNumericList.setKnotStore (null);
+      }
+      updateKnotStore();
+   }
+
+   private void updateKnotStore() {
+      if (myNumericList == null) {
+         return;
+      }
+      NumericKnotStore store = myNumericList.getKnotStore();
+      if (myUseCompactStorage && store == null) {
+         if (myCompactStorageFile != null) {
+            try {
+               store = new NumericKnotStore (myVsize, myCompactStorageFile);
+            }
+            catch (IOException e) {
+               throw new IllegalArgumentException (
+                  "Can't open compact storage file "+myCompactStorageFile+
+                  ": "+e.getMessage(), e);
+            }
+         }
+         else {
+            store = new NumericKnotStore (myVsize);
+         }
+         myNumericList.setKnotStore (store);
+      }
+      else if (!myUseCompactStorage && store != null) {
+         myNumericList.setKnotStore (null);
+      }
+   }
+
    public NumericOutputProbe() {
       setDefaultValues();
       myPlotTraceManager = new PlotTraceManager ("output");
@@ -229,14 +318,7 @@ public class NumericOutputProbe extends NumericProbeBase
          }
       }
       NumberFormat fmt = new NumberFormat (fmtStr);
-      Iterator<NumericListKnot> it = myNumericList.iterator();
-      while (it.hasNext()) {
-         NumericListKnot knot = it.next();
-         if (showTime) {
-            pw.print (timeFmt.format (knot.t) + " ");
-         }
-         pw.println (knot.v.toString (fmt));
-      }
+      myNumericList.writeKnots (pw, fmt, timeFmt, " ");
    }
 
    public void apply (double t) {
@@ -246,7 +328,9 @@ public class NumericOutputProbe extends NumericProbeBase
       // XXX don't we want to apply scaling here too?
       double tloc = (t-getStartTime())/myScale;
 
-      NumericListKnot knot = new NumericListKnot (myVsize);
+      if (myDataVals == null || myDataVals.size() != myVsize) {
+         myDataVals = new VectorNd (myVsize);
+      }
       int i = 0;
       for (NumericProbeVariable var : myVariables.values()) {
          Object obj = myPropList.get (i).get();
@@ -255,16 +339,14 @@ public class NumericOutputProbe extends NumericProbeBase
       }
       updateJythonVariables (myVariables, tloc);
       int k = 0;
-      double[] buf = knot.v.getBuffer();
+      double[] buf = myDataVals.getBuffer();
       for (NumericProbeDriver driver : myDrivers) {
          double[] vals = driver.eval (myVariables, myJythonLocals);
          for (int j = 0; j < vals.length; j++) {
             buf[k++] = vals[j];
          }
       }
-      knot.t = tloc;
-      myNumericList.add (knot);
-      myNumericList.clearAfter (knot);
+      myNumericList.append (myDataVals, tloc);
    }
 
    // public void display (Component c, Graphics g)
@@ -273,6 +355,11 @@ public class NumericOutputProbe extends NumericProbeBase
 
    public Object clone() throws CloneNotSupportedException {
       NumericOutputProbe probe = (NumericOutputProbe)super.clone();
+      // cloned data is kept in linked storage, and the clone should not
+      // share a storage file with this probe
+      probe.myUseCompactStorage = false;
+      probe.myCompactStorageFile = null;
+      probe.myDataVals = null;
       //probe.myNumericList.clear();
       return probe;
    }
@@ -461,6 +548,7 @@ public class NumericOutputProbe extends NumericProbeBase
       myConverters = newConverters;
 
       myNumericList = new NumericList (myVsize);
+      updateKnotStore();
 
       if (traceInfos != null) {
          myPlotTraceManager.rebuild (getPropsOrDimens(), traceInfos);
@@ -670,7 +670,7 @@ public abstract class NumericProbeBase extends Probe implements Displayable {
       double t = getVirtualTime (sec);
       myNumericList.interpolate (
          vals, t, myNumericList.getInterpolation().getOrder(), 
-         true, myNumericList.getLast());
+         true, null);
       return vals;
    }
    
@@ -869,20 +869,8 @@ public abstract class NumericProbeBase extends Probe implements Displayable {
 
       try {
          NumberFormat fmt = new NumberFormat (fmtStr);
-         Iterator<NumericListKnot> it = myNumericList.iterator();
-         while (it.hasNext()) {
-            NumericListKnot knot = it.next();
-            if (includeTime) {
-               pw.print (fmt.format (knot.t));
-            }
-            for (int i=0; i<knot.v.size(); i++) {
-               if (includeTime || i>0) {
-                  pw.print (separator);
-               }
-               pw.print (fmt.format(knot.v.get(i)));
-            }
-            pw.println ("");
-         }     
+         myNumericList.writeKnots (
+            pw, fmt, includeTime ? fmt : null, separator);
       }
       catch (Exception e) {
          if (e instanceof IOException) {
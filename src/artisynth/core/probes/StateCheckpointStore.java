@@ -0,0 +1,706 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package artisynth.core.probes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import artisynth.core.modelbase.ComponentState;
+import artisynth.core.modelbase.CompositeState;
+import artisynth.core.modelbase.NumericState;
+
+/**
+ * Compact storage for a sequence of model states, used by {@link
+ * WayPointProbe} to reduce the memory needed for waypoint states.
+ *
+ * <p>When a state is added, the integer and double data of each of its
+ * {@link NumericState} components is removed and encoded into a {@link
+ * Checkpoint}, while the remaining state structure (sub-states, data frames
+ * and object references) is retained. The numeric data is stored as the
+ * bitwise XOR with the data of the previously added checkpoint, with leading
+ * zero bytes removed, so that data which changes little between checkpoints
+ * requires little storage. Every {@link #getKeyFrameInterval} checkpoints,
+ * or whenever the size of the numeric data changes, a key frame is stored
+ * that does not depend on previous checkpoints, so that restoring any
+ * checkpoint requires decoding at most <code>getKeyFrameInterval()</code>
+ * checkpoints. The encoded data can optionally be further compressed using
+ * {@link Deflater}.
+ *
+ * <p>If the total size of the encoded data kept in memory exceeds {@link
+ * #getMaxMemoryBytes}, the data for the oldest checkpoints is moved to a
+ * temporary file and accessed by memory mapping.
+ */
+public class StateCheckpointStore {
+
+   public static int DEFAULT_KEY_FRAME_INTERVAL = 8;
+   public static boolean DEFAULT_COMPRESSION_ENABLED = true;
+   public static long DEFAULT_MAX_MEMORY_BYTES = Long.MAX_VALUE;
+
+   protected int myKeyFrameInterval = DEFAULT_KEY_FRAME_INTERVAL;
+   protected boolean myCompressionEnabled = DEFAULT_COMPRESSION_ENABLED;
+   protected long myMaxMemoryBytes = DEFAULT_MAX_MEMORY_BYTES;
+   protected File mySpillDirectory = null;
+
+   // most recently added checkpoint and its values
+   protected Checkpoint myLast;
+   protected NumericValues myLastValues;
+
+   // most recently decoded checkpoint and its values
+   protected Checkpoint myDecoded;
+   protected NumericValues myDecodedValues;
+
+   // checkpoints whose data is held in memory, oldest first
+   protected ArrayDeque<CheckpointRef> myInMemory =
+      new ArrayDeque<CheckpointRef>();
+   protected long myMemoryBytes;
+   protected long myUncompressedBytes;
+   protected int myNumCheckpoints;
+
+   protected File mySpillFile;
+   protected RandomAccessFile mySpillRaf;
+   protected FileChannel mySpillChannel;
+   protected long mySpilledBytes;
+   // error that prevented data from being spilled, if any
+   protected IOException mySpillError;
+
+   /**
+    * Integer and double data for all the numeric components of a state.
+    */
+   protected static class NumericValues {
+      int[] zvals;
+      double[] dvals;
+
+      NumericValues (int zsize, int dsize) {
+         zvals = new int[zsize];
+         dvals = new double[dsize];
+      }
+   }
+
+   /**
+    * Weak reference to a checkpoint held in memory, which remembers the size
+    * of its data so that this can be accounted for after the checkpoint is
+    * garbage collected.
+    */
+   protected static class CheckpointRef extends WeakReference<Checkpoint> {
+      int mySize;
+
+      CheckpointRef (Checkpoint cp) {
+         super (cp);
+         mySize = cp.myData.length;
+      }
+   }
+
+   /**
+    * Encoded state stored by a StateCheckpointStore.
+    */
+   public class Checkpoint {
+      Checkpoint myBase;  // checkpoint this is encoded against, if any
+      int myDepth;        // number of checkpoints in the chain to the key frame
+      CompositeState mySkeleton; // state with the numeric data removed
+      int[] myLeafSizes;  // integer and double sizes for each numeric state
+      int myZsize;        // total number of integers
+      int myDsize;        // total number of doubles
+      int myRawLength;    // length of the encoded data before compression
+      boolean myCompressedP;
+      byte[] myData;      // encoded data, if held in memory
+      ByteBuffer mySpilledData; // encoded data, if spilled to the file
+
+      /**
+       * Queries whether this checkpoint is a key frame, which does not
+       * depend on any other checkpoint.
+       *
+       * @return {@code true} if this checkpoint is a key frame
+       */
+      public boolean isKeyFrame() {
+         return myBase == null;
+      }
+
+      /**
+       * Queries whether the data for this checkpoint has been moved to the
+       * store's spill file.
+       *
+       * @return {@code true} if this checkpoint has been spilled
+       */
+      public boolean isSpilled() {
+         return myData == null;
+      }
+
+      /**
+       * Returns the size of the encoded data for this checkpoint, in bytes.
+       *
+       * @return encoded data size
+       */
+      public int encodedSize() {
+         return myData != null ? myData.length : mySpilledData.capacity();
+      }
+
+      /**
+       * Returns a new state restored from this checkpoint.
+       *
+       * @return restored state
+       */
+      public CompositeState getState() {
+         return restore (this);
+      }
+   }
+
+   /**
+    * Creates a new StateCheckpointStore.
+    */
+   public StateCheckpointStore() {
+   }
+
+   /**
+    * Returns the maximum number of checkpoints between key frames.
+    *
+    * @return key frame interval
+    */
+   public int getKeyFrameInterval() {
+      return myKeyFrameInterval;
+   }
+
+   /**
+    * Sets the maximum number of checkpoints between key frames. Larger values
+    * reduce storage but increase the number of checkpoints that may need to
+    * be decoded to restore a state. A value of 1 causes every checkpoint to
+    * be a key frame.
+    *
+    * @param interval key frame interval. Must be {@code >= 1}.
+    */
+   public void setKeyFrameInterval (int interval) {
+      if (interval < 1) {
+         throw new IllegalArgumentException (
+            "Key frame interval must be >= 1");
+      }
+      myKeyFrameInterval = interval;
+   }
+
+   /**
+    * Queries whether encoded checkpoint data is further compressed.
+    *
+    * @return {@code true} if compression is enabled
+    */
+   public boolean getCompressionEnabled() {
+      return myCompressionEnabled;
+   }
+
+   /**
+    * Sets whether encoded checkpoint data is further compressed using
+    * {@link Deflater}. This affects only checkpoints added subsequently.
+    *
+    * @param enable if {@code true}, enables compression
+    */
+   public void setCompressionEnabled (boolean enable) {
+      myCompressionEnabled = enable;
+   }
+
+   /**
+    * Returns the maximum number of bytes of checkpoint data that are kept in
+    * memory before older checkpoints are spilled to a file.
+    *
+    * @return maximum in-memory data size
+    */
+   public long getMaxMemoryBytes() {
+      return myMaxMemoryBytes;
+   }
+
+   /**
+    * Sets the maximum number of bytes of checkpoint data that are kept in
+    * memory. When this is exceeded, the data for the oldest checkpoints is
+    * written to a temporary file and accessed by memory mapping. The default
+    * value is {@code Long.MAX_VALUE}, so that no data is spilled.
+    *
+    * <p>If a previous attempt to write the spill file failed, this method
+    * clears the error and tries again.
+    *
+    * @param nbytes maximum in-memory data size
+    * @return {@code false} if the data could not be reduced to the maximum
+    * because the spill file could not be written, in which case the cause
+    * is returned by {@link #getSpillError}
+    */
+   public synchronized boolean setMaxMemoryBytes (long nbytes) {
+      if (nbytes < 0) {
+         throw new IllegalArgumentException (
+            "Maximum memory bytes must be non-negative");
+      }
+      myMaxMemoryBytes = nbytes;
+      mySpillError = null;
+      return spillIfNecessary();
+   }
+
+   /**
+    * Returns the error that occurred when writing the spill file, or {@code
+    * null} if there was none. When an error occurs, no further data is
+    * spilled, and checkpoint data is instead kept in memory, until the error
+    * is cleared by {@link #setMaxMemoryBytes} or {@link #setSpillDirectory}.
+    *
+    * @return spill file error, or {@code null}
+    */
+   public IOException getSpillError() {
+      return mySpillError;
+   }
+
+   /**
+    * Returns the directory in which the spill file is created, or {@code
+    * null} if the default temporary-file directory is used.
+    *
+    * @return spill file directory
+    */
+   public File getSpillDirectory() {
+      return mySpillDirectory;
+   }
+
+   /**
+    * Sets the directory in which the spill file is created. If {@code null},
+    * the default temporary-file directory is used. This has no effect if the
+    * spill file has already been created. Otherwise, if a previous attempt
+    * to create the spill file failed, this method clears the error and tries
+    * again using the new directory.
+    *
+    * @param dir spill file directory
+    * @return {@code false} if the spill file still could not be written, in
+    * which case the cause is returned by {@link #getSpillError}
+    */
+   public synchronized boolean setSpillDirectory (File dir) {
+      mySpillDirectory = dir;
+      if (mySpillChannel == null && mySpillError != null) {
+         mySpillError = null;
+         return spillIfNecessary();
+      }
+      return mySpillError == null;
+   }
+
+   /**
+    * Returns the number of checkpoints that have been added to this store.
+    *
+    * @return number of checkpoints added
+    */
+   public int numCheckpoints() {
+      return myNumCheckpoints;
+   }
+
+   /**
+    * Returns the number of bytes of encoded checkpoint data currently held in
+    * memory. Data for checkpoints that are no longer referenced is included
+    * until the checkpoints are garbage collected.
+    *
+    * @return in-memory data size
+    */
+   public long getMemoryBytes() {
+      return myMemoryBytes;
+   }
+
+   /**
+    * Returns the number of bytes of checkpoint data that have been written
+    * to the spill file.
+    *
+    * @return spilled data size
+    */
+   public long getSpilledBytes() {
+      return mySpilledBytes;
+   }
+
+   /**
+    * Returns the number of bytes that would have been needed to store the
+    * numeric data of all added checkpoints without encoding.
+    *
+    * @return unencoded numeric data size
+    */
+   public long getUncompressedBytes() {
+      return myUncompressedBytes;
+   }
+
+   private void collectNumericStates (
+      ComponentState state, ArrayList<NumericState> leaves) {
+      if (state instanceof CompositeState) {
+         CompositeState cstate = (CompositeState)state;
+         for (int i=0; i<cstate.numSubStates(); i++) {
+            collectNumericStates (cstate.getState(i), leaves);
+         }
+      }
+      else if (state instanceof NumericState) {
+         leaves.add ((NumericState)state);
+      }
+   }
+
+   /**
+    * Adds a state to this store and returns the checkpoint that encodes it.
+    * The integer and double data of the state's numeric components is
+    * removed, and the state is retained by the checkpoint, so the
+    * state should not be used by the caller afterwards. If the maximum
+    * in-memory data size is exceeded and the spill file cannot be written,
+    * the data is kept in memory and the error is returned by {@link
+    * #getSpillError}.
+    *
+    * @param state state to add
+    * @return checkpoint encoding the state
+    */
+   public synchronized Checkpoint add (CompositeState state) {
+      ArrayList<NumericState> leaves = new ArrayList<NumericState>();
+      collectNumericStates (state, leaves);
+      int zsize = 0;
+      int dsize = 0;
+      for (NumericState leaf : leaves) {
+         zsize += leaf.zsize();
+         dsize += leaf.dsize();
+      }
+      NumericValues vals = new NumericValues (zsize, dsize);
+      int[] leafSizes = new int[2*leaves.size()];
+      int zoff = 0;
+      int doff = 0;
+      int k = 0;
+      for (NumericState leaf : leaves) {
+         leafSizes[k++] = leaf.zsize();
+         leafSizes[k++] = leaf.dsize();
+         System.arraycopy (leaf.zbuffer(), 0, vals.zvals, zoff, leaf.zsize());
+         System.arraycopy (leaf.dbuffer(), 0, vals.dvals, doff, leaf.dsize());
+         zoff += leaf.zsize();
+         doff += leaf.dsize();
+         // remove the numeric data, leaving the structure
+         leaf.zsetSize (0);
+         leaf.dsetSize (0);
+         leaf.trimToSize();
+      }
+      Checkpoint cp = new Checkpoint();
+      cp.mySkeleton = state;
+      cp.myLeafSizes = leafSizes;
+      cp.myZsize = zsize;
+      cp.myDsize = dsize;
+      NumericValues baseVals = null;
+      if (myLast != null && myLast.myDepth < myKeyFrameInterval-1 &&
+          myLast.myZsize == zsize && myLast.myDsize == dsize) {
+         cp.myBase = myLast;
+         cp.myDepth = myLast.myDepth+1;
+         baseVals = myLastValues;
+      }
+      byte[] data = encode (vals, baseVals);
+      cp.myRawLength = data.length;
+      if (myCompressionEnabled) {
+         byte[] compressed = compress (data);
+         if (compressed.length < data.length) {
+            data = compressed;
+            cp.myCompressedP = true;
+         }
+      }
+      cp.myData = data;
+      myLast = cp;
+      myLastValues = vals;
+      myInMemory.add (new CheckpointRef (cp));
+      myMemoryBytes += data.length;
+      myUncompressedBytes += 4L*zsize + 8L*dsize;
+      myNumCheckpoints++;
+      spillIfNecessary();
+      return cp;
+   }
+
+   /**
+    * Returns a new state restored from a checkpoint of this store.
+    *
+    * @param cp checkpoint to restore
+    * @return restored state
+    */
+   public CompositeState restore (Checkpoint cp) {
+      NumericValues vals = decode (cp);
+      // offsets into the values and leaf sizes
+      int[] offs = new int[3];
+      return (CompositeState)restoreState (cp.mySkeleton, cp, vals, offs);
+   }
+
+   private ComponentState restoreState (
+      ComponentState skel, Checkpoint cp, NumericValues vals, int[] offs) {
+      if (skel instanceof CompositeState) {
+         CompositeState cskel = (CompositeState)skel;
+         CompositeState state = new CompositeState (cskel.isAnnotated());
+         for (int i=0; i<cskel.numSubStates(); i++) {
+            state.addState (restoreState (cskel.getState(i), cp, vals, offs));
+         }
+         return state;
+      }
+      else if (skel instanceof NumericState) {
+         NumericState nskel = (NumericState)skel;
+         NumericState state;
+         try {
+            state = nskel.getClass().getDeclaredConstructor().newInstance();
+         }
+         catch (Exception e) {
+            throw new IllegalStateException (
+               "Class "+nskel.getClass().getName()+" cannot be instantiated");
+         }
+         // copies the data frames and object data
+         state.set (nskel);
+         int zsize = cp.myLeafSizes[offs[2]++];
+         int dsize = cp.myLeafSizes[offs[2]++];
+         state.zsetSize (zsize);
+         state.dsetSize (dsize);
+         System.arraycopy (vals.zvals, offs[0], state.zbuffer(), 0, zsize);
+         System.arraycopy (vals.dvals, offs[1], state.dbuffer(), 0, dsize);
+         offs[0] += zsize;
+         offs[1] += dsize;
+         return state;
+      }
+      else {
+         return skel.duplicate();
+      }
+   }
+
+   private synchronized NumericValues decode (Checkpoint cp) {
+      if (cp == myLast) {
+         return myLastValues;
+      }
+      else if (cp == myDecoded) {
+         return myDecodedValues;
+      }
+      NumericValues baseVals = null;
+      if (cp.myBase != null) {
+         baseVals = decode (cp.myBase);
+      }
+      byte[] data = getData (cp);
+      if (cp.myCompressedP) {
+         data = uncompress (data, cp.myRawLength);
+      }
+      NumericValues vals = new NumericValues (cp.myZsize, cp.myDsize);
+      decode (vals, data, baseVals);
+      myDecoded = cp;
+      myDecodedValues = vals;
+      return vals;
+   }
+
+   /**
+    * Encodes numeric values as the XOR with a set of base values (if any),
+    * with leading zero bytes removed. Each value is preceded by a 4-bit count
+    * of its remaining bytes, with counts for successive values packed two
+    * per byte.
+    */
+   static byte[] encode (NumericValues vals, NumericValues base) {
+      int[] zvals = vals.zvals;
+      double[] dvals = vals.dvals;
+      int nz = zvals.length;
+      int nd = dvals.length;
+      byte[] buf = new byte[(nz+1)/2 + 4*nz + (nd+1)/2 + 8*nd];
+      int pos = 0;
+      for (int i=0; i<nz; i+=2) {
+         int hpos = pos++;
+         int x = (base != null ? zvals[i]^base.zvals[i] : zvals[i]);
+         int n = 4 - Integer.numberOfLeadingZeros(x)/8;
+         pos = putBytes (buf, pos, x, n);
+         int header = n;
+         if (i+1 < nz) {
+            x = (base != null ? zvals[i+1]^base.zvals[i+1] : zvals[i+1]);
+            n = 4 - Integer.numberOfLeadingZeros(x)/8;
+            pos = putBytes (buf, pos, x, n);
+            header |= (n << 4);
+         }
+         buf[hpos] = (byte)header;
+      }
+      for (int i=0; i<nd; i+=2) {
+         int hpos = pos++;
+         long x = Double.doubleToRawLongBits (dvals[i]);
+         if (base != null) {
+            x ^= Double.doubleToRawLongBits (base.dvals[i]);
+         }
+         int n = 8 - Long.numberOfLeadingZeros(x)/8;
+         pos = putBytes (buf, pos, x, n);
+         int header = n;
+         if (i+1 < nd) {
+            x = Double.doubleToRawLongBits (dvals[i+1]);
+            if (base != null) {
+               x ^= Double.doubleToRawLongBits (base.dvals[i+1]);
+            }
+            n = 8 - Long.numberOfLeadingZeros(x)/8;
+            pos = putBytes (buf, pos, x, n);
+            header |= (n << 4);
+         }
+         buf[hpos] = (byte)header;
+      }
+      return Arrays.copyOf (buf, pos);
+   }
+
+   private static int putBytes (byte[] buf, int pos, long x, int n) {
+      for (int k=0; k<n; k++) {
+         buf[pos++] = (byte)(x >>> (8*k));
+      }
+      return pos;
+   }
+
+   /**
+    * Decodes numeric values encoded by {@link #encode}.
+    */
+   static void decode (NumericValues vals, byte[] buf, NumericValues base) {
+      int[] zvals = vals.zvals;
+      double[] dvals = vals.dvals;
+      int nz = zvals.length;
+      int nd = dvals.length;
+      int pos = 0;
+      for (int i=0; i<nz; i+=2) {
+         int header = buf[pos++];
+         int n = (header & 0xf);
+         for (int j=i; j<Math.min(i+2,nz); j++) {
+            int x = 0;
+            for (int k=0; k<n; k++) {
+               x |= (buf[pos++] & 0xff) << (8*k);
+            }
+            zvals[j] = (base != null ? x^base.zvals[j] : x);
+            n = ((header >> 4) & 0xf);
+         }
+      }
+      for (int i=0; i<nd; i+=2) {
+         int header = buf[pos++];
+         int n = (header & 0xf);
+         for (int j=i; j<Math.min(i+2,nd); j++) {
+            long x = 0;
+            for (int k=0; k<n; k++) {
+               x |= (buf[pos++] & 0xffL) << (8*k);
+            }
+            if (base != null) {
+               x ^= Double.doubleToRawLongBits (base.dvals[j]);
+            }
+            dvals[j] = Double.longBitsToDouble (x);
+            n = ((header >> 4) & 0xf);
+         }
+      }
+   }
+
+   private static byte[] compress (byte[] data) {
+      Deflater deflater = new Deflater (Deflater.BEST_SPEED);
+      deflater.setInput (data);
+      deflater.finish();
+      byte[] buf = new byte[data.length/2+64];
+      int len = 0;
+      while (!deflater.finished()) {
+         if (len == buf.length) {
+            buf = Arrays.copyOf (buf, 2*buf.length);
+         }
+         len += deflater.deflate (buf, len, buf.length-len);
+      }
+      deflater.end();
+      return Arrays.copyOf (buf, len);
+   }
+
+   private static byte[] uncompress (byte[] data, int rawLength) {
+      Inflater inflater = new Inflater();
+      inflater.setInput (data);
+      byte[] buf = new byte[rawLength];
+      try {
+         int len = 0;
+         while (len < rawLength && !inflater.finished()) {
+            len += inflater.inflate (buf, len, rawLength-len);
+         }
+      }
+      catch (DataFormatException e) {
+         throw new IllegalStateException ("Corrupted checkpoint data", e);
+      }
+      finally {
+         inflater.end();
+      }
+      return buf;
+   }
+
+   private byte[] getData (Checkpoint cp) {
+      if (cp.myData != null) {
+         return cp.myData;
+      }
+      else {
+         ByteBuffer buf = cp.mySpilledData.duplicate();
+         buf.clear();
+         byte[] data = new byte[buf.remaining()];
+         buf.get (data);
+         return data;
+      }
+   }
+
+   /**
+    * Spills the oldest checkpoints until the in-memory data size no longer
+    * exceeds the maximum. Returns {@code false} if this is prevented by an
+    * error writing the spill file.
+    */
+   private boolean spillIfNecessary() {
+      if (mySpillError != null) {
+         return false;
+      }
+      Iterator<CheckpointRef> it = myInMemory.iterator();
+      while (myMemoryBytes > myMaxMemoryBytes && it.hasNext()) {
+         CheckpointRef ref = it.next();
+         Checkpoint cp = ref.get();
+         if (cp != null && cp.myData.length > 0 && !spill (cp)) {
+            // unable to spill, so leave the remaining data in memory
+            return false;
+         }
+         it.remove();
+         myMemoryBytes -= ref.mySize;
+      }
+      return true;
+   }
+
+   private boolean spill (Checkpoint cp) {
+      try {
+         if (mySpillChannel == null) {
+            mySpillFile = File.createTempFile (
+               "checkpoints", ".dat", mySpillDirectory);
+            mySpillFile.deleteOnExit();
+            mySpillRaf = new RandomAccessFile (mySpillFile, "rw");
+            mySpillChannel = mySpillRaf.getChannel();
+         }
+         ByteBuffer src = ByteBuffer.wrap (cp.myData);
+         long off = mySpilledBytes;
+         while (src.hasRemaining()) {
+            mySpillChannel.write (src, off+src.position());
+         }
+         cp.mySpilledData = mySpillChannel.map (
+            FileChannel.MapMode.READ_ONLY, off, cp.myData.length);
+         mySpilledBytes += cp.myData.length;
+         cp.myData = null;
+         return true;
+      }
+      catch (IOException e) {
+         if (mySpillChannel == null && mySpillFile != null) {
+            // file was created but could not be opened
+            mySpillFile.delete();
+            mySpillFile = null;
+         }
+         mySpillError = e;
+         return false;
+      }
+   }
+
+   /**
+    * Closes and deletes the spill file, if any, and releases all references
+    * held by this store. Checkpoints created by this store should not be
+    * restored after this method is called.
+    */
+   public synchronized void dispose() {
+      if (mySpillChannel != null) {
+         try {
+            mySpillRaf.close();
+         }
+         catch (IOException e) {
+            // ignore
+         }
+         mySpillFile.delete();
+         mySpillChannel = null;
+         mySpillRaf = null;
+         mySpillFile = null;
+      }
+      myLast = null;
+      myLastValues = null;
+      myDecoded = null;
+      myDecodedValues = null;
+      myInMemory.clear();
+      myMemoryBytes = 0;
+      mySpillError = null;
+   }
+}
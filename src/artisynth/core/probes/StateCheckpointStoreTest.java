@@ -0,0 +1,246 @@
+package artisynth.core.probes;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import artisynth.core.modelbase.CompositeState;
+import artisynth.core.modelbase.EmptyState;
+import artisynth.core.modelbase.NumericState;
+import maspack.util.*;
+
+/**
+ * Tests StateCheckpointStore by adding a sequence of slowly changing states
+ * and checking that each can be restored exactly, for different key frame
+ * intervals, with and without compression and spilling to a file.
+ */
+public class StateCheckpointStoreTest extends UnitTest {
+
+   private NumericState createNumericState (int zsize, int dsize) {
+      NumericState state = new NumericState();
+      for (int i=0; i<zsize; i++) {
+         state.zput (RandomGenerator.nextInt (0, 100));
+      }
+      for (int i=0; i<dsize; i++) {
+         state.dput (RandomGenerator.nextDouble (-1, 1));
+      }
+      state.oput ("object"+zsize);
+      return state;
+   }
+
+   private CompositeState createState (int size) {
+      CompositeState state = new CompositeState();
+      state.addState (createNumericState (3, 6*size));
+      state.addState (new EmptyState());
+      CompositeState sub = new CompositeState();
+      sub.addState (createNumericState (size, 3*size));
+      sub.addState (createNumericState (0, 0));
+      sub.addState (createNumericState (2, size));
+      state.addState (sub);
+      return state;
+   }
+
+   /**
+    * Perturbs the numeric data of a state by small amounts, as happens
+    * between successive time steps.
+    */
+   private void perturbState (CompositeState state) {
+      for (int i=0; i<state.numSubStates(); i++) {
+         if (state.getState(i) instanceof CompositeState) {
+            perturbState ((CompositeState)state.getState(i));
+         }
+         else if (state.getState(i) instanceof NumericState) {
+            NumericState nstate = (NumericState)state.getState(i);
+            double[] dbuf = nstate.dbuffer();
+            for (int k=0; k<nstate.dsize(); k++) {
+               if (RandomGenerator.nextInt (0, 3) != 0) {
+                  dbuf[k] += 1e-6*RandomGenerator.nextDouble (-1, 1);
+               }
+            }
+            if (nstate.zsize() > 0 && RandomGenerator.nextInt (0, 4) == 0) {
+               nstate.zset (0, nstate.zpeek(0)+1);
+            }
+         }
+      }
+   }
+
+   private void checkStatesEqual (
+      String msg, CompositeState state, CompositeState check) {
+      StringBuilder errMsg = new StringBuilder();
+      if (!state.equals (check, errMsg)) {
+         throw new TestException (msg + ": states differ:\n" + errMsg);
+      }
+      if (state.numSubStates() != check.numSubStates()) {
+         throw new TestException (msg + ": number of sub-states differs");
+      }
+      for (int i=0; i<check.numSubStates(); i++) {
+         if (state.getState(i).getClass() != check.getState(i).getClass()) {
+            throw new TestException (msg + ": sub-state class differs");
+         }
+      }
+   }
+
+   void testStore (
+      int keyInterval, boolean compress, long maxMemoryBytes) {
+
+      StateCheckpointStore store = new StateCheckpointStore();
+      store.setKeyFrameInterval (keyInterval);
+      store.setCompressionEnabled (compress);
+      store.setMaxMemoryBytes (maxMemoryBytes);
+
+      ArrayList<CompositeState> checks = new ArrayList<CompositeState>();
+      ArrayList<StateCheckpointStore.Checkpoint> checkpoints =
+         new ArrayList<StateCheckpointStore.Checkpoint>();
+
+      int size = 200;
+      CompositeState state = createState (size);
+      int nstates = 40;
+      for (int i=0; i<nstates; i++) {
+         if (i == nstates/2) {
+            // change the structure midway through
+            state = createState (size+10);
+         }
+         else {
+            perturbState (state);
+         }
+         CompositeState check = state.duplicate();
+         checks.add (check);
+         StateCheckpointStore.Checkpoint cp = store.add (state.duplicate());
+         checkpoints.add (cp);
+         checkStatesEqual ("state "+i, cp.getState(), check);
+         if (i == nstates/2 && !cp.isKeyFrame()) {
+            throw new TestException (
+               "checkpoint "+i+" with new structure is not a key frame");
+         }
+         if (keyInterval == 1 && !cp.isKeyFrame()) {
+            throw new TestException (
+               "checkpoint "+i+" is not a key frame");
+         }
+      }
+      checkEquals ("numCheckpoints", store.numCheckpoints(), nstates);
+      // restore in random order
+      for (int k=0; k<nstates; k++) {
+         int i = RandomGenerator.nextInt (0, nstates-1);
+         checkStatesEqual (
+            "restored state "+i, checkpoints.get(i).getState(), checks.get(i));
+      }
+      long encodedBytes = 0;
+      int numSpilled = 0;
+      for (StateCheckpointStore.Checkpoint cp : checkpoints) {
+         encodedBytes += cp.encodedSize();
+         if (cp.isSpilled()) {
+            numSpilled++;
+         }
+      }
+      if (maxMemoryBytes == Long.MAX_VALUE) {
+         checkEquals ("numSpilled", numSpilled, 0);
+         checkEquals ("memory bytes", store.getMemoryBytes(), encodedBytes);
+      }
+      else {
+         if (numSpilled == 0) {
+            throw new TestException ("no checkpoints were spilled");
+         }
+         if (store.getMemoryBytes() > maxMemoryBytes) {
+            throw new TestException (
+               "memory bytes "+store.getMemoryBytes()+" exceeds maximum "+
+               maxMemoryBytes);
+         }
+      }
+      if (keyInterval > 1 && encodedBytes >= 0.75*store.getUncompressedBytes()) {
+         throw new TestException (
+            "encoded size "+encodedBytes+" not much smaller than "+
+            store.getUncompressedBytes());
+      }
+      store.dispose();
+   }
+
+   void testWayPointProbe() {
+      WayPointProbe probe = new WayPointProbe();
+      CompositeState state = createState (50);
+      ArrayList<CompositeState> checks = new ArrayList<CompositeState>();
+      for (int i=1; i<=10; i++) {
+         perturbState (state);
+         WayPoint way = new WayPoint (i);
+         way.setState (state.duplicate());
+         probe.add (way);
+         checks.add (state.duplicate());
+      }
+      probe.get(4).setValid (false);
+      probe.setCompressStates (true);
+      for (int i=1; i<=10; i++) {
+         WayPoint way = probe.get(i);
+         check ("waypoint "+i+" state not stored", way.isStateStored());
+         checkStatesEqual (
+            "waypoint "+i, way.getState(), checks.get(i-1));
+      }
+      probe.setCompressStates (false);
+      for (int i=1; i<=10; i++) {
+         WayPoint way = probe.get(i);
+         check ("waypoint "+i+" state still stored", !way.isStateStored());
+         check ("waypoint "+i+" validity changed", way.isValid() == (i != 4));
+         checkStatesEqual (
+            "waypoint "+i, way.getState(), checks.get(i-1));
+      }
+   }
+
+   /**
+    * Checks that a failure to write the spill file is reported, with the
+    * data kept in memory, and that spilling resumes once the spill
+    * directory is fixed.
+    */
+   void testSpillError() {
+      StateCheckpointStore store = new StateCheckpointStore();
+      File badDir = new File ("nonexistentCheckpointDir/subdir");
+      store.setSpillDirectory (badDir);
+      check ("spill error before data is added", store.setMaxMemoryBytes (0));
+
+      ArrayList<CompositeState> checks = new ArrayList<CompositeState>();
+      ArrayList<StateCheckpointStore.Checkpoint> checkpoints =
+         new ArrayList<StateCheckpointStore.Checkpoint>();
+      CompositeState state = createState (50);
+      for (int i=0; i<10; i++) {
+         perturbState (state);
+         checks.add (state.duplicate());
+         checkpoints.add (store.add (state.duplicate()));
+      }
+      check ("no spill error", store.getSpillError() != null);
+      checkEquals ("max memory bytes", store.getMaxMemoryBytes(), 0L);
+      checkEquals ("spilled bytes", store.getSpilledBytes(), 0L);
+      for (int i=0; i<checkpoints.size(); i++) {
+         check ("checkpoint "+i+" spilled", !checkpoints.get(i).isSpilled());
+      }
+      check ("spill error not reported", !store.setMaxMemoryBytes (0));
+
+      WayPoint way = new WayPoint (1);
+      way.setState (createState (50));
+      check ("spill error not reported by waypoint", !way.storeState (store));
+
+      check (
+         "spill error after fixing directory",
+         store.setSpillDirectory (null));
+      check ("spill error not cleared", store.getSpillError() == null);
+      checkEquals ("memory bytes", store.getMemoryBytes(), 0L);
+      for (int i=0; i<checkpoints.size(); i++) {
+         check ("checkpoint "+i+" not spilled", checkpoints.get(i).isSpilled());
+         checkStatesEqual (
+            "restored state "+i, checkpoints.get(i).getState(), checks.get(i));
+      }
+      store.dispose();
+   }
+
+   public void test() {
+      for (int keyInterval : new int[] { 1, 8 }) {
+         testStore (keyInterval, false, Long.MAX_VALUE);
+         testStore (keyInterval, true, Long.MAX_VALUE);
+         testStore (keyInterval, true, 0);
+         testStore (keyInterval, false, 20000);
+      }
+      testWayPointProbe();
+      testSpillError();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      StateCheckpointStoreTest tester = new StateCheckpointStoreTest();
+      tester.runtest();
+   }
+}
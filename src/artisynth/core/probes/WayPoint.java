@@ -13,6 +13,7 @@ import artisynth.core.workspace.RootModel;
 public class WayPoint {
    protected double myTime;
    protected CompositeState myState;
+   protected StateCheckpointStore.Checkpoint myCheckpoint;
    protected boolean myValidP;
    protected boolean myBreakPointP;
 
@@ -46,11 +47,22 @@ public class WayPoint {
       myValidP = valid;
    }
 
+   /**
+    * Returns the state for this waypoint. If the state has been placed in a
+    * {@link StateCheckpointStore}, a new copy of it is restored from the
+    * store.
+    *
+    * @return state for this waypoint
+    */
    public CompositeState getState() {
+      if (myCheckpoint != null) {
+         return myCheckpoint.getState();
+      }
       return myState;
    }
 
    public void setState (RootModel model) {
+      myCheckpoint = null;
       myState = (CompositeState)model.createState(null);
       if (myTime == 0) {
          model.getInitialState (myState, null);
@@ -62,10 +74,39 @@ public class WayPoint {
    }
    
    public void setState (CompositeState state) {
+      myCheckpoint = null;
       myState = state;
       setValid (true);
    }
 
+   /**
+    * Moves the state for this waypoint, if any, into a checkpoint store, in
+    * order to reduce memory usage. The state can still be obtained using
+    * {@link #getState}.
+    *
+    * @param store checkpoint store in which to place the state
+    * @return {@code false} if the store was unable to write data to its
+    * spill file, as described by {@link StateCheckpointStore#getSpillError}.
+    * The state is still placed in the store, but its data is kept in memory.
+    */
+   public boolean storeState (StateCheckpointStore store) {
+      if (myState != null) {
+         myCheckpoint = store.add (myState);
+         myState = null;
+      }
+      return store.getSpillError() == null;
+   }
+
+   /**
+    * Queries whether the state for this waypoint is held in a checkpoint
+    * store.
+    *
+    * @return {@code true} if the state is held in a checkpoint store
+    */
+   public boolean isStateStored() {
+      return myCheckpoint != null;
+   }
+
    public boolean isBreakPoint() {
       return myBreakPointP;
    }
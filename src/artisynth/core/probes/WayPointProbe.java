@@ -19,6 +19,8 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
    protected RootModel myRootModel; // root model associated with the waypoints
    protected WayPoint myWay0; // hard wired way point at time = 0
    protected boolean myCheckStateP = false; // for testing only
+   // if non-null, store for compressing waypoint states
+   protected StateCheckpointStore myCheckpointStore = null;
    
    private boolean myResetInitialState = false;
    private boolean myInitialStateValidP = true;
@@ -137,6 +139,66 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
       return myCheckStateP;
    }
 
+   /**
+    * Sets whether the states of waypoints with time {@code > 0} are
+    * compressed, by placing them in a {@link StateCheckpointStore}. This can
+    * greatly reduce the memory needed for waypoints with large models.
+    * Compression is disabled by default.
+    *
+    * <p>States recorded while the simulation runs are also placed in the
+    * store. If the store is unable to write data to its spill file, the
+    * data is kept in memory instead, and the error is returned by the
+    * store's {@link StateCheckpointStore#getSpillError} method.
+    *
+    * @param enable if {@code true}, enables state compression
+    * @return {@code false} if the states were compressed but the store was
+    * unable to write data to its spill file
+    */
+   public boolean setCompressStates (boolean enable) {
+      boolean stored = true;
+      if (enable && myCheckpointStore == null) {
+         myCheckpointStore = new StateCheckpointStore();
+         for (WayPoint way : myWayPoints.values()) {
+            if (way != myWay0) {
+               stored &= way.storeState (myCheckpointStore);
+            }
+         }
+      }
+      else if (!enable && myCheckpointStore != null) {
+         for (WayPoint way : myWayPoints.values()) {
+            if (way.isStateStored()) {
+               boolean valid = way.isValid();
+               way.setState (way.getState());
+               way.setValid (valid);
+            }
+         }
+         myCheckpointStore.dispose();
+         myCheckpointStore = null;
+      }
+      return stored;
+   }
+
+   /**
+    * Queries whether the states of waypoints are compressed.
+    *
+    * @return {@code true} if state compression is enabled
+    */
+   public boolean getCompressStates() {
+      return myCheckpointStore != null;
+   }
+
+   /**
+    * Returns the store used to compress waypoint states, or {@code null} if
+    * state compression is not enabled. The store can be used to adjust
+    * compression settings and the maximum amount of state data kept in
+    * memory.
+    *
+    * @return store for compressed states
+    */
+   public StateCheckpointStore getCheckpointStore() {
+      return myCheckpointStore;
+   }
+
    public void resetInitialState() {
       RootModel root = getRootModel();
       WayPoint way0 = get (0);
@@ -551,6 +613,9 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
                System.out.println ("States unequal at time "+tround);
             }
          }
+         if (myCheckpointStore != null) {
+            way.storeState (myCheckpointStore);
+         }
       }
    }
 
@@ -635,7 +700,10 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
    }
 
    /**
-    * Loads waypoints and state from binary data in the attached file.
+    * Loads waypoints and state from binary data in the attached file. If
+    * states are being compressed and the checkpoint store is unable to write
+    * its spill file, an exception is thrown after all the waypoints have
+    * been loaded, with their state data kept in memory.
     */
    public void load () throws IOException {
       updateInitialStateIfNecessary();
@@ -654,6 +722,7 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
                new DataInputStream (
                   new BufferedInputStream(new FileInputStream (file)));
             try {
+               boolean stored = true;
                int numways = dis.readInt();
                for (int i = 0; i < numways; i++) {
                   double t = dis.readDouble();
@@ -671,8 +740,17 @@ public class WayPointProbe extends OutputProbe implements Iterable<WayPoint> {
                      }
                      cs.readBinary (dis);
                      way.setState (cs); // note: cs is set by reference
+                     if (myCheckpointStore != null && way != myWay0) {
+                        stored &= way.storeState (myCheckpointStore);
+                     }
                   }
                }
+               if (!stored) {
+                  // the states were loaded, but are held in memory
+                  throw new IOException (
+                     "Can't write checkpoint spill file",
+                     myCheckpointStore.getSpillError());
+               }
             }
             catch (IOException e) {
                throw e;
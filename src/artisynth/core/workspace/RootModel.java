@@ -69,6 +69,9 @@ import artisynth.core.modelbase.StepAdjustment;
 import artisynth.core.modelbase.StructureChangeEvent;
 import artisynth.core.modelbase.Traceable;
 import artisynth.core.modelbase.ComponentChangeEvent.Code;
+import artisynth.core.mechmodels.SolverMetrics;
+import artisynth.core.mechmodels.SolverMetricsSink;
+import artisynth.core.mechmodels.SolverPhaseTimer;
 import artisynth.core.probes.Probe;
 import artisynth.core.probes.TracingProbe;
 import artisynth.core.probes.WayPoint;
@@ -117,6 +120,8 @@ public class RootModel extends RenderableModelBase
    protected boolean myStopRequest = false;
 
    protected boolean myModelInfoValid = false;
+   // if non-null, receives solver metrics after each advance
+   protected SolverMetricsSink mySolverMetricsSink = null;
    private ModelInfo myRootInfo;
    protected static boolean use125Stepping = true;
 
@@ -1582,10 +1587,101 @@ public class RootModel extends RenderableModelBase
             myModelInfoValid = true;
          }
       }
-      doadvance (t0, t1, flags);
+      // recover from phases left open by an exception in a previous step
+      SolverPhaseTimer.clearNesting();
+      if (mySolverMetricsSink != null) {
+         SolverMetrics m0 = SolverPhaseTimer.getMetrics();
+         doadvance (t0, t1, flags);
+         SolverMetrics m1 = SolverPhaseTimer.getMetrics();
+         m1.sub (m0);
+         try {
+            mySolverMetricsSink.write (t0, t1, m1);
+         }
+         catch (IOException e) {
+            System.out.println (
+               "Error writing solver metrics, sink removed: " + e);
+            setSolverMetricsSink (null);
+         }
+      }
+      else {
+         doadvance (t0, t1, flags);
+      }
       return null;
    }
 
+   /**
+    * Enables or disables the collection of solver metrics, including the
+    * time spent in each solver phase, constraint and contact counters, and
+    * per-handler contact counts. Metrics are collected by {@link
+    * SolverPhaseTimer}, and so this setting is global and applies to all
+    * models. When disabled, the collection overhead is negligible.
+    *
+    * @param enable if {@code true}, enables solver metrics
+    */
+   public void setSolverMetricsEnabled (boolean enable) {
+      SolverPhaseTimer.setEnabled (enable);
+   }
+
+   /**
+    * Queries whether the collection of solver metrics is enabled.
+    *
+    * @return {@code true} if solver metrics are enabled
+    * @see #setSolverMetricsEnabled
+    */
+   public boolean getSolverMetricsEnabled() {
+      return SolverPhaseTimer.isEnabled();
+   }
+
+   /**
+    * Returns a snapshot of the solver metrics accumulated since metrics were
+    * enabled or last reset.
+    *
+    * @return snapshot of the current solver metrics
+    */
+   public SolverMetrics getSolverMetrics() {
+      return SolverPhaseTimer.getMetrics();
+   }
+
+   /**
+    * Resets all accumulated solver metrics to zero.
+    */
+   public void resetSolverMetrics() {
+      SolverPhaseTimer.reset();
+   }
+
+   /**
+    * Sets a sink to which the solver metrics for each advance step are
+    * written. Any previous sink is closed. Setting a non-null sink also
+    * enables the collection of solver metrics.
+    *
+    * @param sink sink to receive the solver metrics, or {@code null}
+    * to remove the current sink
+    */
+   public void setSolverMetricsSink (SolverMetricsSink sink) {
+      if (mySolverMetricsSink != null && mySolverMetricsSink != sink) {
+         try {
+            mySolverMetricsSink.close();
+         }
+         catch (IOException e) {
+            System.out.println ("Error closing solver metrics sink: " + e);
+         }
+      }
+      mySolverMetricsSink = sink;
+      if (sink != null) {
+         SolverPhaseTimer.setEnabled (true);
+      }
+   }
+
+   /**
+    * Returns the sink, if any, to which the solver metrics for each advance
+    * step are written.
+    *
+    * @return solver metrics sink, or {@code null}
+    */
+   public SolverMetricsSink getSolverMetricsSink() {
+      return mySolverMetricsSink;
+   }
+
    public synchronized void applyInputProbes (List<Probe> list, double t) {
       for (Probe p : list) {
          if (p.isActive() && 
@@ -1919,6 +2015,7 @@ public class RootModel extends RenderableModelBase
    }
 
    public void dispose() {
+      setSolverMetricsSink (null);
       for (Model m : myModels) {
          m.dispose();
       }
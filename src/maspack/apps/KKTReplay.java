@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.apps;
+
+import java.io.File;
+import java.io.IOException;
+
+import maspack.matrix.SparseBinaryReader;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.solvers.KKTIslandSolver;
+import maspack.solvers.KKTSolver;
+import maspack.solvers.KKTSolver.LCPSolverType;
+import maspack.solvers.KKTSolver.SolverType;
+import maspack.solvers.KKTSolver.Status;
+import maspack.util.FunctionTimer;
+import argparser.ArgParser;
+import argparser.BooleanHolder;
+import argparser.IntHolder;
+import argparser.StringHolder;
+
+/**
+ * Replays a KKT system captured by
+ * <code>MechSystemSolver.setKKTCaptureFileName()</code> through a KKT
+ * solver, reporting the times required for the analyze, factor and solve
+ * phases, the residual of the solution, and its difference from the
+ * solution that was computed when the system was captured. This makes it
+ * possible to compare solvers and settings on the system of a particular
+ * slow step without having to rerun the simulation.
+ */
+public class KKTReplay {
+
+   static StringHolder inFileName = new StringHolder (null);
+   static StringHolder solverName = new StringHolder (null);
+   static StringHolder lcpSolverName = new StringHolder (null);
+   static BooleanHolder useIslands = new BooleanHolder (false);
+   static IntHolder numThreads = new IntHolder (0);
+   static IntHolder numRepeats = new IntHolder (1);
+
+   static SparseBinaryReader myReader;
+
+   static VectorNd readOptionalVector (String name) throws IOException {
+      if (myReader.hasRecord (name)) {
+         return myReader.readVector (name);
+      }
+      else {
+         return null;
+      }
+   }
+
+   static double timeMsec (FunctionTimer timer) {
+      return timer.getTimeUsec()/(1000.0*numRepeats.value);
+   }
+
+   public static void main (String[] args) {
+      ArgParser parser = new ArgParser ("[options] <captureFileName>");
+      parser.addOption (
+         "-solver %s #KKT solver type (Pardiso, Umfpack or SparseLDL)",
+         solverName);
+      parser.addOption (
+         "-lcp %s #LCP solver type (Dantzig or ProjectedGaussSeidel)",
+         lcpSolverName);
+      parser.addOption (
+         "-islands %v #solve independent islands separately", useIslands);
+      parser.addOption (
+         "-threads %d #number of threads used for islands", numThreads);
+      parser.addOption (
+         "-repeat %d #number of times to repeat each phase", numRepeats);
+
+      int idx = 0;
+      while (idx < args.length) {
+         try {
+            idx = parser.matchArg (args, idx);
+            if (parser.getUnmatchedArgument() != null) {
+               String fileName = parser.getUnmatchedArgument();
+               if (inFileName.value == null) {
+                  inFileName.value = fileName;
+               }
+               else {
+                  System.out.println ("Ignoring extra input file "+fileName);
+               }
+            }
+         }
+         catch (Exception e) {
+            // malformed or erroneous argument
+            parser.printErrorAndExit (e.getMessage());
+         }
+      }
+      if (inFileName.value == null) {
+         parser.printErrorAndExit ("capture file name missing");
+      }
+      if (numRepeats.value < 1) {
+         parser.printErrorAndExit ("repeat count must be positive");
+      }
+      SolverType solverType = KKTSolver.getDefaultSolverType();
+      LCPSolverType lcpType = LCPSolverType.Dantzig;
+      try {
+         if (solverName.value != null) {
+            solverType = SolverType.valueOf (solverName.value);
+         }
+         if (lcpSolverName.value != null) {
+            lcpType = LCPSolverType.valueOf (lcpSolverName.value);
+         }
+      }
+      catch (IllegalArgumentException e) {
+         parser.printErrorAndExit (e.getMessage());
+      }
+
+      int sizeM, typeM;
+      SparseBlockMatrix M, GT, NT;
+      VectorNd Rg, Rn, bm, bg, bn, velChk;
+      try {
+         myReader = new SparseBinaryReader (new File (inFileName.value));
+         sizeM = myReader.readInt ("sizeM");
+         typeM = myReader.readInt ("typeM");
+         M = myReader.readBlockMatrix ("M");
+         GT = myReader.readBlockMatrix ("GT");
+         NT = myReader.readBlockMatrix ("NT");
+         Rg = readOptionalVector ("Rg");
+         Rn = readOptionalVector ("Rn");
+         bm = myReader.readVector ("bm");
+         bg = myReader.readVector ("bg");
+         bn = myReader.readVector ("bn");
+         velChk = readOptionalVector ("vel");
+         myReader.close();
+      }
+      catch (IOException e) {
+         System.out.println ("Error reading " + inFileName.value + ":");
+         System.out.println (e.getMessage());
+         System.exit (1);
+         return;
+      }
+      System.out.println (
+         "KKT system: M="+sizeM+" G="+GT.colSize()+" N="+NT.colSize()+
+         ", "+M.numBlocks()+" blocks in M");
+
+      VectorNd vel = new VectorNd (sizeM);
+      VectorNd lam = new VectorNd (GT.colSize());
+      VectorNd the = new VectorNd (NT.colSize());
+      FunctionTimer analyzeTimer = new FunctionTimer();
+      FunctionTimer factorTimer = new FunctionTimer();
+      FunctionTimer solveTimer = new FunctionTimer();
+      Status status = null;
+
+      KKTSolver solver = null;
+      KKTIslandSolver islandSolver = null;
+      if (useIslands.value) {
+         islandSolver = new KKTIslandSolver (solverType);
+         islandSolver.setLCPSolverType (lcpType);
+         if (numThreads.value > 0) {
+            islandSolver.setNumThreads (numThreads.value);
+         }
+      }
+      else {
+         solver = new KKTSolver (solverType);
+         solver.setLCPSolverType (lcpType);
+      }
+      for (int i=0; i<numRepeats.value; i++) {
+         analyzeTimer.restart();
+         if (islandSolver != null) {
+            islandSolver.analyze (M, sizeM, GT, Rg, typeM);
+         }
+         else {
+            solver.analyze (M, sizeM, GT, Rg, typeM);
+         }
+         analyzeTimer.stop();
+         factorTimer.restart();
+         if (islandSolver != null) {
+            islandSolver.factor (M, sizeM, GT, Rg, NT, Rn);
+         }
+         else {
+            solver.factor (M, sizeM, GT, Rg, NT, Rn);
+         }
+         factorTimer.stop();
+         solveTimer.restart();
+         if (islandSolver != null) {
+            status = islandSolver.solve (vel, lam, the, bm, bg, bn);
+         }
+         else {
+            status = solver.solve (vel, lam, the, bm, bg, bn);
+         }
+         solveTimer.stop();
+      }
+      System.out.println (
+         "solver: " + solverType + ", LCP: " + lcpType +
+         (islandSolver != null ?
+          ", islands: " + islandSolver.numIslands() : ""));
+      System.out.printf (
+         "analyze: %.3f msec, factor: %.3f msec, solve: %.3f msec\n",
+         timeMsec (analyzeTimer), timeMsec (factorTimer),
+         timeMsec (solveTimer));
+      System.out.println ("status: " + status);
+
+      // residual is computed the same way in either case
+      KKTSolver checker = (solver != null ? solver : new KKTSolver());
+      double res = checker.residual (
+         M, sizeM, GT, Rg, NT, Rn, vel, lam, the, bm, bg, bn);
+      System.out.println ("residual: " + res);
+      if (velChk != null) {
+         VectorNd diff = new VectorNd (vel);
+         diff.sub (velChk);
+         System.out.println (
+            "max difference from captured vel: " + diff.infinityNorm());
+      }
+      if (islandSolver != null) {
+         islandSolver.dispose();
+      }
+      checker.dispose();
+   }
+}
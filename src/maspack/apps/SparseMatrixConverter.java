@@ -0,0 +1,448 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.apps;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import maspack.matrix.Matrix;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.SparseBinaryReader;
+import maspack.matrix.SparseBinaryWriter;
+import maspack.matrix.SparseBinaryWriter.RecordType;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.SparseMatrixCRS;
+import maspack.matrix.VectorNd;
+import maspack.util.IndentingPrintWriter;
+import maspack.util.NumberFormat;
+import maspack.util.ReaderTokenizer;
+import argparser.ArgParser;
+import argparser.BooleanHolder;
+import argparser.StringHolder;
+
+/**
+ * Converts files of sparse matrices and vectors between the binary format
+ * of {@link SparseBinaryWriter} and a text format, and can check that the
+ * conversion is lossless. The direction of conversion is determined from
+ * the input file: binary input is written as text, and text input is
+ * written as binary.
+ *
+ * <p>In the text format, each record starts with its type and name,
+ * followed by its value:
+ * <pre>
+ * BlockMatrix M
+ * [ ... ]                  (as written by SparseBlockMatrix.writeBlocks)
+ * CRSMatrix C
+ * [ nrows ncols
+ *   i j value              (zero-based indices, in row-major order)
+ *   ...
+ * ]
+ * Vector bm
+ * [ value value ... ]
+ * IntValue sizeM
+ * 123
+ * </pre>
+ * For convenience, a text file containing only a single matrix written by
+ * {@link SparseBlockMatrix#writeBlocks writeBlocks()} is also accepted, and
+ * is stored as a block matrix named by the <code>-name</code> option.
+ */
+public class SparseMatrixConverter {
+
+   static StringHolder inFileName = new StringHolder (null);
+   static StringHolder outFileName = new StringHolder (null);
+   static StringHolder formatStr = new StringHolder ("%.17g");
+   static StringHolder matrixName = new StringHolder ("M");
+   static BooleanHolder infoOnly = new BooleanHolder (false);
+   static BooleanHolder checkRoundTrip = new BooleanHolder (false);
+
+   /**
+    * Stores the value of a single record.
+    */
+   private static class Item {
+      RecordType myType;
+      String myName;
+      Object myValue;
+
+      Item (RecordType type, String name, Object value) {
+         myType = type;
+         myName = name;
+         myValue = value;
+      }
+   }
+
+   static ArrayList<Item> readBinary (File file) throws IOException {
+      ArrayList<Item> items = new ArrayList<Item>();
+      SparseBinaryReader reader = new SparseBinaryReader (file);
+      try {
+         for (int i=0; i<reader.numRecords(); i++) {
+            String name = reader.getName (i);
+            RecordType type = reader.getType (i);
+            Object value = null;
+            switch (type) {
+               case BlockMatrix: {
+                  value = reader.readBlockMatrix (name);
+                  break;
+               }
+               case CRSMatrix: {
+                  value = reader.readCRSMatrix (name);
+                  break;
+               }
+               case Vector: {
+                  value = reader.readVector (name);
+                  break;
+               }
+               case IntValue: {
+                  value = reader.readInt (name);
+                  break;
+               }
+            }
+            items.add (new Item (type, name, value));
+         }
+      }
+      finally {
+         reader.close();
+      }
+      return items;
+   }
+
+   static void writeBinary (File file, ArrayList<Item> items)
+      throws IOException {
+      SparseBinaryWriter writer = new SparseBinaryWriter (file);
+      try {
+         for (Item item : items) {
+            switch (item.myType) {
+               case BlockMatrix: {
+                  writer.writeBlockMatrix (
+                     item.myName, (SparseBlockMatrix)item.myValue);
+                  break;
+               }
+               case CRSMatrix: {
+                  writer.writeCRSMatrix (item.myName, (Matrix)item.myValue);
+                  break;
+               }
+               case Vector: {
+                  writer.writeVector (item.myName, (VectorNd)item.myValue);
+                  break;
+               }
+               case IntValue: {
+                  writer.writeInt (item.myName, (Integer)item.myValue);
+                  break;
+               }
+            }
+         }
+      }
+      finally {
+         writer.close();
+      }
+   }
+
+   static void writeCRSText (PrintWriter pw, Matrix M, NumberFormat fmt) {
+      int nrows = M.rowSize();
+      int nnz = M.numNonZeroVals();
+      int[] rowOffs = new int[nrows+1];
+      int[] colIdxs = new int[nnz];
+      double[] vals = new double[nnz];
+      M.getCRSIndices (colIdxs, rowOffs, Matrix.Partition.Full);
+      M.getCRSValues (vals, Matrix.Partition.Full);
+      pw.println ("[ " + nrows + " " + M.colSize());
+      for (int i=0; i<nrows; i++) {
+         for (int k=rowOffs[i]-1; k<rowOffs[i+1]-1; k++) {
+            pw.println ("  " + i + " " + (colIdxs[k]-1) + " " +
+                        fmt.format (vals[k]));
+         }
+      }
+      pw.println ("]");
+   }
+
+   static SparseMatrixCRS scanCRSText (ReaderTokenizer rtok)
+      throws IOException {
+      rtok.scanToken ('[');
+      int nrows = rtok.scanInteger();
+      int ncols = rtok.scanInteger();
+      ArrayList<Integer> rows = new ArrayList<Integer>();
+      ArrayList<Integer> cols = new ArrayList<Integer>();
+      ArrayList<Double> vals = new ArrayList<Double>();
+      while (rtok.nextToken() != ']') {
+         rtok.pushBack();
+         rows.add (rtok.scanInteger());
+         cols.add (rtok.scanInteger());
+         vals.add (rtok.scanNumber());
+      }
+      int nnz = vals.size();
+      int[] rowOffs = new int[nrows+1];
+      int[] colIdxs = new int[nnz];
+      double[] values = new double[nnz];
+      for (int k=0; k<nnz; k++) {
+         int i = rows.get(k);
+         if (i < 0 || i >= nrows || (k > 0 && i < rows.get(k-1))) {
+            throw new IOException (
+               "CRS row index "+i+" out of range or order, " + rtok);
+         }
+         rowOffs[i+1]++;
+         colIdxs[k] = cols.get(k)+1;
+         values[k] = vals.get(k);
+      }
+      rowOffs[0] = 1;
+      for (int i=0; i<nrows; i++) {
+         rowOffs[i+1] += rowOffs[i];
+      }
+      SparseMatrixCRS M = new SparseMatrixCRS (nrows, ncols);
+      M.setCRSValues (
+         values, colIdxs, rowOffs, nnz, nrows, Matrix.Partition.Full);
+      return M;
+   }
+
+   static void writeText (File file, ArrayList<Item> items, NumberFormat fmt)
+      throws IOException {
+      IndentingPrintWriter pw = new IndentingPrintWriter (
+         new BufferedWriter (new FileWriter (file)));
+      try {
+         for (Item item : items) {
+            pw.println (item.myType + " " + item.myName);
+            switch (item.myType) {
+               case BlockMatrix: {
+                  ((SparseBlockMatrix)item.myValue).writeBlocks (pw, fmt);
+                  break;
+               }
+               case CRSMatrix: {
+                  writeCRSText (pw, (Matrix)item.myValue, fmt);
+                  break;
+               }
+               case Vector: {
+                  pw.print ("[ ");
+                  ((VectorNd)item.myValue).write (pw, fmt);
+                  pw.println (" ]");
+                  break;
+               }
+               case IntValue: {
+                  pw.println (item.myValue);
+                  break;
+               }
+            }
+         }
+      }
+      finally {
+         pw.close();
+      }
+   }
+
+   static ArrayList<Item> readText (File file) throws IOException {
+      ArrayList<Item> items = new ArrayList<Item>();
+      ReaderTokenizer rtok = new ReaderTokenizer (
+         new BufferedReader (new FileReader (file)));
+      try {
+         if (rtok.nextToken() == '[') {
+            // single matrix written by writeBlocks
+            rtok.pushBack();
+            SparseBlockMatrix S = new SparseBlockMatrix();
+            S.scanBlocks (rtok);
+            items.add (new Item (RecordType.BlockMatrix, matrixName.value, S));
+            return items;
+         }
+         rtok.pushBack();
+         while (rtok.nextToken() != ReaderTokenizer.TT_EOF) {
+            rtok.pushBack();
+            String typeName = rtok.scanWord();
+            RecordType type;
+            try {
+               type = RecordType.valueOf (typeName);
+            }
+            catch (IllegalArgumentException e) {
+               throw new IOException (
+                  "Unknown record type '"+typeName+"', " + rtok);
+            }
+            String name = rtok.scanWordOrQuotedString ('"');
+            Object value = null;
+            switch (type) {
+               case BlockMatrix: {
+                  SparseBlockMatrix S = new SparseBlockMatrix();
+                  S.scanBlocks (rtok);
+                  value = S;
+                  break;
+               }
+               case CRSMatrix: {
+                  value = scanCRSText (rtok);
+                  break;
+               }
+               case Vector: {
+                  VectorNd vec = new VectorNd();
+                  vec.scan (rtok);
+                  value = vec;
+                  break;
+               }
+               case IntValue: {
+                  value = rtok.scanInteger();
+                  break;
+               }
+            }
+            items.add (new Item (type, name, value));
+         }
+      }
+      finally {
+         rtok.close();
+      }
+      return items;
+   }
+
+   static boolean itemsEqual (ArrayList<Item> items0, ArrayList<Item> items1) {
+      if (items0.size() != items1.size()) {
+         System.out.println (
+            "number of records differs: "+items0.size()+" vs. "+items1.size());
+         return false;
+      }
+      boolean equal = true;
+      for (int i=0; i<items0.size(); i++) {
+         Item item0 = items0.get(i);
+         Item item1 = items1.get(i);
+         boolean same = (item0.myType == item1.myType &&
+                         item0.myName.equals (item1.myName));
+         if (same) {
+            switch (item0.myType) {
+               case BlockMatrix: {
+                  SparseBlockMatrix S0 = (SparseBlockMatrix)item0.myValue;
+                  SparseBlockMatrix S1 = (SparseBlockMatrix)item1.myValue;
+                  same = (java.util.Arrays.equals (
+                             S0.getBlockStructure(), S1.getBlockStructure()) &&
+                          S0.epsilonEquals (S1, 0));
+                  break;
+               }
+               case CRSMatrix: {
+                  Matrix M0 = (Matrix)item0.myValue;
+                  Matrix M1 = (Matrix)item1.myValue;
+                  same = (M0.numNonZeroVals() == M1.numNonZeroVals() &&
+                          new MatrixNd(M0).epsilonEquals (
+                             new MatrixNd(M1), 0));
+                  break;
+               }
+               case Vector: {
+                  same = ((VectorNd)item0.myValue).equals (
+                     (VectorNd)item1.myValue);
+                  break;
+               }
+               case IntValue: {
+                  same = item0.myValue.equals (item1.myValue);
+                  break;
+               }
+            }
+         }
+         if (!same) {
+            System.out.println (
+               "record " + i + " (" + item0.myName + ") differs");
+            equal = false;
+         }
+      }
+      return equal;
+   }
+
+   static void printInfo (ArrayList<Item> items) {
+      for (Item item : items) {
+         String desc = "";
+         switch (item.myType) {
+            case BlockMatrix: {
+               SparseBlockMatrix S = (SparseBlockMatrix)item.myValue;
+               desc = S.rowSize()+"x"+S.colSize()+", "+
+                  S.numBlockRows()+"x"+S.numBlockCols()+" blocks, "+
+                  S.numBlocks()+" non-zero blocks";
+               break;
+            }
+            case CRSMatrix: {
+               Matrix M = (Matrix)item.myValue;
+               desc = M.rowSize()+"x"+M.colSize()+", "+
+                  M.numNonZeroVals()+" non-zero values";
+               break;
+            }
+            case Vector: {
+               desc = "size " + ((VectorNd)item.myValue).size();
+               break;
+            }
+            case IntValue: {
+               desc = "value " + item.myValue;
+               break;
+            }
+         }
+         System.out.println (item.myType + " " + item.myName + ": " + desc);
+      }
+   }
+
+   public static void main (String[] args) {
+      ArgParser parser = new ArgParser ("[options] <infileName>");
+      parser.addOption ("-out %s #name of the output file", outFileName);
+      parser.addOption (
+         "-format %s #printf-style format for text output", formatStr);
+      parser.addOption (
+         "-name %s #record name for a single writeBlocks matrix", matrixName);
+      parser.addOption (
+         "-info %v #print the records without converting", infoOnly);
+      parser.addOption (
+         "-check %v #read back the output and compare with the input",
+         checkRoundTrip);
+
+      int idx = 0;
+      while (idx < args.length) {
+         try {
+            idx = parser.matchArg (args, idx);
+            if (parser.getUnmatchedArgument() != null) {
+               String fileName = parser.getUnmatchedArgument();
+               if (inFileName.value == null) {
+                  inFileName.value = fileName;
+               }
+               else {
+                  System.out.println ("Ignoring extra input file "+fileName);
+               }
+            }
+         }
+         catch (Exception e) {
+            // malformed or erroneous argument
+            parser.printErrorAndExit (e.getMessage());
+         }
+      }
+      if (inFileName.value == null) {
+         parser.printErrorAndExit ("input file name missing");
+      }
+      try {
+         File inFile = new File (inFileName.value);
+         boolean binaryInput = SparseBinaryReader.isBinaryFile (inFile);
+         ArrayList<Item> items =
+            (binaryInput ? readBinary (inFile) : readText (inFile));
+         if (infoOnly.value) {
+            printInfo (items);
+            return;
+         }
+         if (outFileName.value == null) {
+            String name = inFileName.value;
+            int dotIdx = name.lastIndexOf ('.');
+            if (dotIdx != -1) {
+               name = name.substring (0, dotIdx);
+            }
+            outFileName.value = name + (binaryInput ? ".txt" : ".smb");
+         }
+         File outFile = new File (outFileName.value);
+         NumberFormat fmt = new NumberFormat (formatStr.value);
+         if (binaryInput) {
+            writeText (outFile, items, fmt);
+         }
+         else {
+            writeBinary (outFile, items);
+         }
+         if (checkRoundTrip.value) {
+            ArrayList<Item> check =
+               (binaryInput ? readText (outFile) : readBinary (outFile));
+            if (itemsEqual (items, check)) {
+               System.out.println ("Round trip check passed");
+            }
+            else {
+               System.out.println ("Round trip check FAILED");
+               System.exit (1);
+            }
+         }
+      }
+      catch (Exception e) {
+         e.printStackTrace();
+         System.exit (1);
+      }
+   }
+}
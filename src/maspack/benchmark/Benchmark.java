@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+/**
+ * Base class for a micro-benchmark that is run by {@link BenchmarkRunner}.
+ * A benchmark is parameterized by a problem size: for each size, {@link
+ * #setup} is called once to create the data, after which {@link #run} is
+ * called repeatedly to perform the operation being timed.
+ */
+public abstract class Benchmark {
+
+   private String myName;
+   private int[] mySizes;
+
+   /**
+    * Creates a new benchmark.
+    *
+    * @param name name of the benchmark, which should be unique since it
+    * identifies the benchmark in results files
+    * @param sizes problem sizes for which the benchmark should be run
+    */
+   public Benchmark (String name, int... sizes) {
+      myName = name;
+      mySizes = (sizes.length > 0 ? sizes : new int[] { 0 });
+   }
+
+   /**
+    * Returns the name of this benchmark.
+    *
+    * @return benchmark name
+    */
+   public String getName() {
+      return myName;
+   }
+
+   /**
+    * Returns the problem sizes for which this benchmark should be run.
+    *
+    * @return problem sizes
+    */
+   public int[] getSizes() {
+      return mySizes;
+   }
+
+   /**
+    * Creates the data needed for running this benchmark with a specified
+    * problem size. This is not included in the timing.
+    *
+    * @param size problem size
+    */
+   public abstract void setup (int size);
+
+   /**
+    * Performs one invocation of the operation being timed. The return value
+    * should depend on the result of the operation, so that the runtime
+    * compiler cannot eliminate it as dead code.
+    *
+    * @return value depending on the result of the operation
+    */
+   public abstract double run();
+
+   /**
+    * Releases any resources created by {@link #setup}. The default
+    * implementation does nothing.
+    */
+   public void teardown() {
+   }
+}
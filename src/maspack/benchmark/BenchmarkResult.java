@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+/**
+ * Timing result for a single benchmark at a specific problem size.
+ */
+public class BenchmarkResult {
+
+   String myName;
+   int mySize;
+   double myNsecPerOp;
+   double myStdDev;
+
+   /**
+    * Creates a new BenchmarkResult.
+    *
+    * @param name benchmark name
+    * @param size problem size
+    * @param nsecPerOp mean time per operation, in nanoseconds
+    * @param stdDev standard deviation of the time per operation, across the
+    * measurement iterations
+    */
+   public BenchmarkResult (
+      String name, int size, double nsecPerOp, double stdDev) {
+      myName = name;
+      mySize = size;
+      myNsecPerOp = nsecPerOp;
+      myStdDev = stdDev;
+   }
+
+   /**
+    * Returns the name of the benchmark.
+    *
+    * @return benchmark name
+    */
+   public String getName() {
+      return myName;
+   }
+
+   /**
+    * Returns the problem size.
+    *
+    * @return problem size
+    */
+   public int getSize() {
+      return mySize;
+   }
+
+   /**
+    * Returns the mean time per operation, in nanoseconds.
+    *
+    * @return mean time per operation
+    */
+   public double getNsecPerOp() {
+      return myNsecPerOp;
+   }
+
+   /**
+    * Returns the standard deviation of the time per operation across the
+    * measurement iterations, in nanoseconds.
+    *
+    * @return standard deviation of the time per operation
+    */
+   public double getStdDev() {
+      return myStdDev;
+   }
+
+   /**
+    * Returns a key identifying the benchmark and problem size, used for
+    * matching results against a baseline.
+    *
+    * @return key for this result
+    */
+   public String getKey() {
+      return myName + ":" + mySize;
+   }
+}
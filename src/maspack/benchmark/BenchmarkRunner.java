@@ -0,0 +1,470 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import maspack.util.NumberFormat;
+import maspack.util.RandomGenerator;
+
+/**
+ * Runs a set of {@link Benchmark}s and reports the time per operation for
+ * each, optionally comparing the results against a baseline results file in
+ * order to detect performance regressions.
+ *
+ * <p>Each benchmark is run, for each of its problem sizes, by first
+ * executing a number of warmup iterations (to allow the runtime compiler to
+ * optimize the code), followed by a number of measurement iterations. Each
+ * iteration calls {@link Benchmark#run} repeatedly for approximately a
+ * target amount of time, and the mean and standard deviation of the time per
+ * operation are computed across the measurement iterations.
+ *
+ * <p>Results are written in a simple text format, with one line per
+ * benchmark and size giving the name, size, mean nanoseconds per operation,
+ * and standard deviation. Lines beginning with <code>#</code> are comments.
+ * The default benchmark set covers dense and sparse kernels in
+ * <code>maspack.matrix</code> and solvers in <code>maspack.solvers</code>;
+ * the baseline for these is kept in <code>baseline.txt</code> in this
+ * package's source directory.
+ */
+public class BenchmarkRunner {
+
+   private int myWarmupIterations = 5;
+   private int myMeasureIterations = 10;
+   private double myIterationMsec = 100;
+   private Pattern myFilter = null;
+   private PrintStream myOut = System.out;
+
+   // accumulates benchmark return values so they can't be optimized away
+   private double mySink;
+
+   /**
+    * Sets the number of warmup iterations that are run before timing
+    * begins. The default value is 5.
+    *
+    * @param num number of warmup iterations
+    */
+   public void setWarmupIterations (int num) {
+      myWarmupIterations = num;
+   }
+
+   /**
+    * Returns the number of warmup iterations.
+    *
+    * @return number of warmup iterations
+    */
+   public int getWarmupIterations() {
+      return myWarmupIterations;
+   }
+
+   /**
+    * Sets the number of measurement iterations. The default value is 10.
+    *
+    * @param num number of measurement iterations
+    */
+   public void setMeasureIterations (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of measurement iterations must be positive");
+      }
+      myMeasureIterations = num;
+   }
+
+   /**
+    * Returns the number of measurement iterations.
+    *
+    * @return number of measurement iterations
+    */
+   public int getMeasureIterations() {
+      return myMeasureIterations;
+   }
+
+   /**
+    * Sets the approximate duration of each iteration, in milliseconds. The
+    * default value is 100.
+    *
+    * @param msec iteration duration
+    */
+   public void setIterationMsec (double msec) {
+      myIterationMsec = msec;
+   }
+
+   /**
+    * Returns the approximate duration of each iteration, in milliseconds.
+    *
+    * @return iteration duration
+    */
+   public double getIterationMsec() {
+      return myIterationMsec;
+   }
+
+   /**
+    * Sets a regular expression used to select which benchmarks are run,
+    * based on their names. If <code>null</code>, all benchmarks are run.
+    *
+    * @param regex filter for benchmark names
+    */
+   public void setFilter (String regex) {
+      myFilter = (regex != null ? Pattern.compile (regex) : null);
+   }
+
+   /**
+    * Sets the stream to which progress and results are printed. If
+    * <code>null</code>, nothing is printed.
+    *
+    * @param out output stream
+    */
+   public void setOutput (PrintStream out) {
+      myOut = out;
+   }
+
+   /**
+    * Runs the operation of a benchmark a specified number of times and
+    * returns the elapsed time in nanoseconds.
+    */
+   private long timeOps (Benchmark bench, long nops) {
+      double sink = 0;
+      long t0 = System.nanoTime();
+      for (long k=0; k<nops; k++) {
+         sink += bench.run();
+      }
+      long time = System.nanoTime() - t0;
+      mySink += sink;
+      return time;
+   }
+
+   /**
+    * Estimates the number of operations needed to fill one iteration.
+    */
+   private long calibrate (Benchmark bench) {
+      long targetNsec = (long)(1e6*myIterationMsec);
+      long nops = 1;
+      while (true) {
+         long time = timeOps (bench, nops);
+         if (time >= targetNsec/10 || nops >= (1L << 40)) {
+            return Math.max (1, (long)(nops*(double)targetNsec/Math.max(1,time)));
+         }
+         nops *= 10;
+      }
+   }
+
+   /**
+    * Runs a single benchmark for a specified problem size.
+    *
+    * @param bench benchmark to run
+    * @param size problem size
+    * @return timing result
+    */
+   public BenchmarkResult run (Benchmark bench, int size) {
+      RandomGenerator.setSeed (0x1234);
+      bench.setup (size);
+      try {
+         long nops = calibrate (bench);
+         for (int i=0; i<myWarmupIterations; i++) {
+            timeOps (bench, nops);
+         }
+         double[] times = new double[myMeasureIterations];
+         double mean = 0;
+         for (int i=0; i<myMeasureIterations; i++) {
+            times[i] = timeOps (bench, nops)/(double)nops;
+            mean += times[i];
+         }
+         mean /= myMeasureIterations;
+         double var = 0;
+         for (int i=0; i<myMeasureIterations; i++) {
+            var += (times[i]-mean)*(times[i]-mean);
+         }
+         if (myMeasureIterations > 1) {
+            var /= (myMeasureIterations-1);
+         }
+         return new BenchmarkResult (bench.getName(), size, mean, Math.sqrt(var));
+      }
+      finally {
+         bench.teardown();
+      }
+   }
+
+   /**
+    * Runs a list of benchmarks, for all of their problem sizes, and returns
+    * the results. Benchmarks whose names do not match the current filter
+    * are skipped.
+    *
+    * @param benchmarks benchmarks to run
+    * @return timing results
+    */
+   public ArrayList<BenchmarkResult> run (List<Benchmark> benchmarks) {
+      ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+      for (Benchmark bench : benchmarks) {
+         if (myFilter != null && !myFilter.matcher(bench.getName()).find()) {
+            continue;
+         }
+         for (int size : bench.getSizes()) {
+            BenchmarkResult res = run (bench, size);
+            if (myOut != null) {
+               myOut.println (formatResult (res));
+            }
+            results.add (res);
+         }
+      }
+      return results;
+   }
+
+   private static String formatResult (BenchmarkResult res) {
+      NumberFormat fmt = new NumberFormat ("%12.4g");
+      return String.format (
+         "%-32s %8d %s %s", res.getName(), res.getSize(),
+         fmt.format (res.getNsecPerOp()), fmt.format (res.getStdDev()));
+   }
+
+   /**
+    * Writes a set of results to a file.
+    *
+    * @param file file to write to
+    * @param results results to write
+    * @throws IOException if an I/O error occurs
+    */
+   public static void writeResults (File file, List<BenchmarkResult> results)
+      throws IOException {
+      PrintWriter pw =
+         new PrintWriter (new BufferedWriter (new FileWriter (file)));
+      try {
+         pw.println ("# benchmark size nsecPerOp stdDev");
+         pw.println (
+            "# java " + System.getProperty ("java.version") + ", " +
+            System.getProperty ("os.name") + " " +
+            System.getProperty ("os.arch") + ", " +
+            Runtime.getRuntime().availableProcessors() + " processors");
+         for (BenchmarkResult res : results) {
+            pw.println (formatResult (res));
+         }
+      }
+      finally {
+         pw.close();
+      }
+   }
+
+   /**
+    * Reads a set of results from a file.
+    *
+    * @param file file to read from
+    * @return results, arranged by their keys
+    * @throws IOException if an I/O or format error occurs
+    */
+   public static LinkedHashMap<String,BenchmarkResult> readResults (File file)
+      throws IOException {
+      LinkedHashMap<String,BenchmarkResult> results =
+         new LinkedHashMap<String,BenchmarkResult>();
+      BufferedReader reader = new BufferedReader (new FileReader (file));
+      try {
+         String line;
+         int lineno = 0;
+         while ((line = reader.readLine()) != null) {
+            lineno++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith ("#")) {
+               continue;
+            }
+            String[] fields = line.split ("\\s+");
+            if (fields.length != 4) {
+               throw new IOException (
+                  "Expected 4 fields, line "+lineno+", file "+file);
+            }
+            try {
+               BenchmarkResult res = new BenchmarkResult (
+                  fields[0], Integer.parseInt (fields[1]),
+                  Double.parseDouble (fields[2]),
+                  Double.parseDouble (fields[3]));
+               results.put (res.getKey(), res);
+            }
+            catch (NumberFormatException e) {
+               throw new IOException (
+                  "Malformed number, line "+lineno+", file "+file);
+            }
+         }
+      }
+      finally {
+         reader.close();
+      }
+      return results;
+   }
+
+   /**
+    * Compares a set of results against a baseline and prints the ratio of
+    * each result time to the baseline time. A result is considered a
+    * regression if its time exceeds the baseline time by more than a
+    * fraction <code>tol</code>, and also by more than three times the
+    * combined standard deviations.
+    *
+    * @param results results to compare
+    * @param baseline baseline results
+    * @param tol fractional tolerance for detecting regressions
+    * @param out if non-<code>null</code>, stream to print the comparison to
+    * @return number of regressions found
+    */
+   public static int compare (
+      List<BenchmarkResult> results,
+      LinkedHashMap<String,BenchmarkResult> baseline,
+      double tol, PrintStream out) {
+
+      int nregressions = 0;
+      NumberFormat fmt = new NumberFormat ("%12.4g");
+      NumberFormat rfmt = new NumberFormat ("%6.3f");
+      if (out != null) {
+         out.println (String.format (
+            "%-32s %8s %12s %12s %6s", "benchmark", "size",
+            "baseline", "current", "ratio"));
+      }
+      for (BenchmarkResult res : results) {
+         BenchmarkResult base = baseline.get (res.getKey());
+         if (base == null) {
+            if (out != null) {
+               out.println (String.format (
+                  "%-32s %8d %12s %s", res.getName(), res.getSize(),
+                  "none", fmt.format (res.getNsecPerOp())));
+            }
+            continue;
+         }
+         double ratio = res.getNsecPerOp()/base.getNsecPerOp();
+         double diff = res.getNsecPerOp()-base.getNsecPerOp();
+         double noise = 3*Math.hypot (res.getStdDev(), base.getStdDev());
+         boolean regression = (ratio > 1+tol && diff > noise);
+         if (regression) {
+            nregressions++;
+         }
+         if (out != null) {
+            out.println (String.format (
+               "%-32s %8d %s %s %s%s", res.getName(), res.getSize(),
+               fmt.format (base.getNsecPerOp()),
+               fmt.format (res.getNsecPerOp()), rfmt.format (ratio),
+               regression ? "  REGRESSION" : ""));
+         }
+      }
+      return nregressions;
+   }
+
+   /**
+    * Returns the default set of benchmarks, covering kernels in
+    * <code>maspack.matrix</code> and <code>maspack.solvers</code>.
+    *
+    * @return default benchmarks
+    */
+   public static ArrayList<Benchmark> createDefaultBenchmarks() {
+      ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+      MatrixBenchmarks.addBenchmarks (benchmarks);
+      SolverBenchmarks.addBenchmarks (benchmarks);
+      return benchmarks;
+   }
+
+   private static void printUsageAndExit() {
+      System.out.println (
+"Usage: java maspack.benchmark.BenchmarkRunner [options]\n" +
+"Options:\n" +
+"  -filter <regex>    only run benchmarks whose names match <regex>\n" +
+"  -warmup <n>        number of warmup iterations (default 5)\n" +
+"  -iterations <n>    number of measurement iterations (default 10)\n" +
+"  -time <msec>       duration of each iteration (default 100)\n" +
+"  -out <file>        write results to <file>\n" +
+"  -baseline <file>   compare results with those in <file>\n" +
+"  -tol <frac>        fractional slowdown considered a regression\n" +
+"                     (default 0.1)\n" +
+"  -list              list the available benchmarks and exit\n" +
+"The exit status is 1 if any regressions are found.");
+      System.exit (1);
+   }
+
+   public static void main (String[] args) {
+      BenchmarkRunner runner = new BenchmarkRunner();
+      File outFile = null;
+      File baselineFile = null;
+      double tol = 0.1;
+      boolean list = false;
+
+      try {
+         for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if (arg.equals ("-list")) {
+               list = true;
+               continue;
+            }
+            if (i == args.length-1) {
+               printUsageAndExit();
+            }
+            if (arg.equals ("-filter")) {
+               runner.setFilter (args[++i]);
+            }
+            else if (arg.equals ("-warmup")) {
+               runner.setWarmupIterations (Integer.parseInt (args[++i]));
+            }
+            else if (arg.equals ("-iterations")) {
+               runner.setMeasureIterations (Integer.parseInt (args[++i]));
+            }
+            else if (arg.equals ("-time")) {
+               runner.setIterationMsec (Double.parseDouble (args[++i]));
+            }
+            else if (arg.equals ("-out")) {
+               outFile = new File (args[++i]);
+            }
+            else if (arg.equals ("-baseline")) {
+               baselineFile = new File (args[++i]);
+            }
+            else if (arg.equals ("-tol")) {
+               tol = Double.parseDouble (args[++i]);
+            }
+            else {
+               printUsageAndExit();
+            }
+         }
+      }
+      catch (NumberFormatException e) {
+         printUsageAndExit();
+      }
+
+      ArrayList<Benchmark> benchmarks = createDefaultBenchmarks();
+      if (list) {
+         for (Benchmark bench : benchmarks) {
+            StringBuilder sizes = new StringBuilder();
+            for (int size : bench.getSizes()) {
+               sizes.append (" " + size);
+            }
+            System.out.println (bench.getName() + " sizes:" + sizes);
+         }
+         return;
+      }
+      int nregressions = 0;
+      try {
+         LinkedHashMap<String,BenchmarkResult> baseline = null;
+         if (baselineFile != null) {
+            baseline = readResults (baselineFile);
+         }
+         ArrayList<BenchmarkResult> results = runner.run (benchmarks);
+         if (outFile != null) {
+            writeResults (outFile, results);
+         }
+         if (baseline != null) {
+            System.out.println ("");
+            nregressions = compare (results, baseline, tol, System.out);
+            System.out.println ("" + nregressions + " regression(s) found");
+         }
+      }
+      catch (IOException e) {
+         System.out.println ("Error: " + e.getMessage());
+         System.exit (1);
+      }
+      System.exit (nregressions > 0 ? 1 : 0);
+   }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import maspack.util.RandomGenerator;
+import maspack.util.UnitTest;
+
+/**
+ * Tests BenchmarkRunner by running each default benchmark briefly, writing
+ * and reading back the results, and checking regression detection.
+ */
+public class BenchmarkRunnerTest extends UnitTest {
+
+   void testRunAndCompare() throws IOException {
+      BenchmarkRunner runner = new BenchmarkRunner();
+      runner.setOutput (null);
+      runner.setWarmupIterations (0);
+      runner.setMeasureIterations (2);
+      runner.setIterationMsec (1);
+
+      ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+      // run only the smallest size of each default benchmark
+      for (final Benchmark bench : BenchmarkRunner.createDefaultBenchmarks()) {
+         benchmarks.add (new Benchmark (bench.getName(), bench.getSizes()[0]) {
+            public void setup (int size) {
+               bench.setup (size);
+            }
+            public double run() {
+               return bench.run();
+            }
+            public void teardown() {
+               bench.teardown();
+            }
+         });
+      }
+      ArrayList<BenchmarkResult> results = runner.run (benchmarks);
+      checkEquals ("number of results", results.size(), benchmarks.size());
+      for (BenchmarkResult res : results) {
+         check (res.getKey()+": time not positive", res.getNsecPerOp() > 0);
+      }
+
+      File file = File.createTempFile ("benchmarks", ".txt");
+      file.deleteOnExit();
+      BenchmarkRunner.writeResults (file, results);
+      LinkedHashMap<String,BenchmarkResult> baseline =
+         BenchmarkRunner.readResults (file);
+      checkEquals ("number of baseline results", baseline.size(), results.size());
+      for (BenchmarkResult res : results) {
+         BenchmarkResult base = baseline.get (res.getKey());
+         check (res.getKey()+": not found in baseline", base != null);
+         checkEquals (
+            res.getKey()+": baseline time", base.getNsecPerOp(),
+            res.getNsecPerOp(), 1e-3*res.getNsecPerOp());
+      }
+      checkEquals (
+         "regressions against self",
+         BenchmarkRunner.compare (results, baseline, 0.1, null), 0);
+
+      // make one result twice as slow
+      ArrayList<BenchmarkResult> slower = new ArrayList<BenchmarkResult>();
+      slower.add (new BenchmarkResult ("test", 10, 200.0, 1.0));
+      slower.add (new BenchmarkResult ("test", 20, 101.0, 1.0));
+      LinkedHashMap<String,BenchmarkResult> base =
+         new LinkedHashMap<String,BenchmarkResult>();
+      base.put ("test:10", new BenchmarkResult ("test", 10, 100.0, 1.0));
+      base.put ("test:20", new BenchmarkResult ("test", 20, 100.0, 1.0));
+      checkEquals (
+         "regressions", BenchmarkRunner.compare (slower, base, 0.1, null), 1);
+   }
+
+   public void test() throws IOException {
+      testRunAndCompare();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      BenchmarkRunnerTest tester = new BenchmarkRunnerTest();
+      tester.runtest();
+   }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+import java.util.List;
+
+import maspack.matrix.BlockCRSMatrix;
+import maspack.matrix.CholeskyDecomposition;
+import maspack.matrix.LUDecomposition;
+import maspack.matrix.Matrix.Partition;
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix3x1Block;
+import maspack.matrix.Matrix3x3Block;
+import maspack.matrix.Matrix6d;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.PolarDecomposition3d;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+
+/**
+ * Benchmarks for dense and sparse kernels in <code>maspack.matrix</code>.
+ */
+public class MatrixBenchmarks {
+
+   /**
+    * Creates a symmetric positive definite sparse matrix resembling the
+    * stiffness plus mass matrix of a model with <code>n x n x n</code> nodes
+    * arranged in a grid, with each node coupled to its immediate neighbors
+    * by a 3 x 3 block.
+    *
+    * @param n number of nodes along each side of the grid
+    * @return stiffness-like matrix
+    */
+   public static SparseBlockMatrix createGridMatrix (int n) {
+      int nnodes = n*n*n;
+      int[] sizes = new int[nnodes];
+      for (int i=0; i<nnodes; i++) {
+         sizes[i] = 3;
+      }
+      SparseBlockMatrix M = new SparseBlockMatrix (sizes);
+      for (int i=0; i<nnodes; i++) {
+         Matrix3x3Block blk = new Matrix3x3Block();
+         blk.setIdentity();
+         M.addBlock (i, i, blk);
+      }
+      Matrix3d A = new Matrix3d();
+      Matrix3d E = new Matrix3d();
+      for (int i=0; i<n; i++) {
+         for (int j=0; j<n; j++) {
+            for (int k=0; k<n; k++) {
+               int node = (i*n + j)*n + k;
+               int[] nbrs = new int[] {
+                  (i < n-1 ? node+n*n : -1),
+                  (j < n-1 ? node+n : -1),
+                  (k < n-1 ? node+1 : -1) };
+               for (int nbr : nbrs) {
+                  if (nbr == -1) {
+                     continue;
+                  }
+                  // symmetric positive definite edge stiffness
+                  A.setRandom();
+                  E.mulTransposeLeft (A, A);
+                  E.m00 += 0.1;
+                  E.m11 += 0.1;
+                  E.m22 += 0.1;
+                  M.getBlock (node, node).add (E);
+                  M.getBlock (nbr, nbr).add (E);
+                  Matrix3x3Block blk = new Matrix3x3Block();
+                  blk.negate (E);
+                  M.addBlock (node, nbr, blk);
+                  blk = new Matrix3x3Block();
+                  blk.negate (E);
+                  M.addBlock (nbr, node, blk);
+               }
+            }
+         }
+      }
+      return M;
+   }
+
+   /**
+    * Creates the transpose of a constraint matrix for a grid matrix created
+    * by {@link #createGridMatrix}, in which each of <code>ncons</code>
+    * scalar constraints couples two adjacent nodes.
+    *
+    * @param M grid matrix
+    * @param ncons number of constraints
+    * @return transposed constraint matrix
+    */
+   public static SparseBlockMatrix createConstraintMatrix (
+      SparseBlockMatrix M, int ncons) {
+      int nnodes = M.numBlockRows();
+      int[] rowSizes = new int[nnodes];
+      for (int i=0; i<nnodes; i++) {
+         rowSizes[i] = 3;
+      }
+      int[] colSizes = new int[ncons];
+      for (int j=0; j<ncons; j++) {
+         colSizes[j] = 1;
+      }
+      SparseBlockMatrix GT = new SparseBlockMatrix (rowSizes, colSizes);
+      int stride = Math.max (2, nnodes/Math.max(1,ncons));
+      Vector3d dir = new Vector3d();
+      for (int j=0; j<ncons; j++) {
+         int node = (j*stride) % (nnodes-1);
+         dir.setRandom();
+         dir.normalize();
+         GT.addBlock (node, j, new Matrix3x1Block (dir));
+         dir.negate();
+         GT.addBlock (node+1, j, new Matrix3x1Block (dir));
+      }
+      return GT;
+   }
+
+   /**
+    * Creates a random dense symmetric positive definite matrix.
+    */
+   static MatrixNd createSPDMatrix (int size) {
+      MatrixNd A = new MatrixNd (size, size);
+      A.setRandom();
+      MatrixNd S = new MatrixNd (size, size);
+      S.mulTransposeLeft (A, A);
+      for (int i=0; i<size; i++) {
+         S.add (i, i, size);
+      }
+      return S;
+   }
+
+   /**
+    * Adds the matrix benchmarks to a list.
+    *
+    * @param list list to which benchmarks are added
+    */
+   public static void addBenchmarks (List<Benchmark> list) {
+
+      list.add (new Benchmark ("Matrix3d.mul") {
+         Matrix3d M1 = new Matrix3d();
+         Matrix3d M2 = new Matrix3d();
+         Matrix3d MR = new Matrix3d();
+         public void setup (int size) {
+            M1.setRandom();
+            M2.setRandom();
+         }
+         public double run() {
+            MR.mul (M1, M2);
+            M1.m01 = MR.m00*1e-8;
+            return MR.m22;
+         }
+      });
+
+      list.add (new Benchmark ("Matrix3d.invert") {
+         Matrix3d M = new Matrix3d();
+         Matrix3d MR = new Matrix3d();
+         public void setup (int size) {
+            M.setRandom();
+            M.m00 += 2;
+            M.m11 += 2;
+            M.m22 += 2;
+         }
+         public double run() {
+            MR.invert (M);
+            return MR.m11;
+         }
+      });
+
+      list.add (new Benchmark ("Matrix6d.mul") {
+         Matrix6d M1 = new Matrix6d();
+         Matrix6d M2 = new Matrix6d();
+         Matrix6d MR = new Matrix6d();
+         public void setup (int size) {
+            M1.setRandom();
+            M2.setRandom();
+         }
+         public double run() {
+            MR.mul (M1, M2);
+            M1.m01 = MR.m00*1e-8;
+            return MR.m55;
+         }
+      });
+
+      list.add (new Benchmark ("Matrix6d.invert") {
+         Matrix6d M = new Matrix6d();
+         Matrix6d MR = new Matrix6d();
+         public void setup (int size) {
+            M.setRandom();
+            Matrix6d I = new Matrix6d();
+            I.setIdentity();
+            I.scale (3);
+            M.add (I);
+         }
+         public double run() {
+            MR.invert (M);
+            return MR.m33;
+         }
+      });
+
+      list.add (new Benchmark ("PolarDecomposition3d.factor") {
+         Matrix3d M = new Matrix3d();
+         PolarDecomposition3d polard = new PolarDecomposition3d();
+         public void setup (int size) {
+            M.setRandom();
+         }
+         public double run() {
+            polard.factor (M);
+            return polard.getR().m00;
+         }
+      });
+
+      list.add (new Benchmark ("CholeskyDecomposition", 10, 50, 200) {
+         MatrixNd M;
+         CholeskyDecomposition chol = new CholeskyDecomposition();
+         public void setup (int size) {
+            M = createSPDMatrix (size);
+         }
+         public double run() {
+            chol.factor (M);
+            return chol.determinant();
+         }
+      });
+
+      list.add (new Benchmark ("CholeskyDecomposition.solve", 10, 50, 200) {
+         VectorNd x;
+         VectorNd b;
+         CholeskyDecomposition chol = new CholeskyDecomposition();
+         public void setup (int size) {
+            chol.factor (createSPDMatrix (size));
+            x = new VectorNd (size);
+            b = new VectorNd (size);
+            b.setRandom();
+         }
+         public double run() {
+            chol.solve (x, b);
+            return x.get(0);
+         }
+      });
+
+      list.add (new Benchmark ("LUDecomposition", 10, 50, 200) {
+         MatrixNd M;
+         LUDecomposition lud = new LUDecomposition();
+         public void setup (int size) {
+            M = new MatrixNd (size, size);
+            M.setRandom();
+         }
+         public double run() {
+            lud.factor (M);
+            return lud.determinant();
+         }
+      });
+
+      list.add (new Benchmark ("SparseBlockMatrix.mul", 5, 10, 20) {
+         SparseBlockMatrix M;
+         VectorNd x;
+         VectorNd y;
+         public void setup (int size) {
+            M = createGridMatrix (size);
+            x = new VectorNd (M.colSize());
+            y = new VectorNd (M.rowSize());
+            x.setRandom();
+         }
+         public double run() {
+            M.mul (y, x);
+            return y.get(0);
+         }
+      });
+
+      list.add (new Benchmark ("BlockCRSMatrix.mul", 5, 10, 20) {
+         BlockCRSMatrix M;
+         VectorNd x;
+         VectorNd y;
+         public void setup (int size) {
+            M = new BlockCRSMatrix (createGridMatrix (size));
+            x = new VectorNd (M.colSize());
+            y = new VectorNd (M.rowSize());
+            x.setRandom();
+         }
+         public double run() {
+            M.mul (y, x);
+            return y.get(0);
+         }
+      });
+
+      list.add (new Benchmark ("SparseBlockMatrix.getCRSValues", 5, 10, 20) {
+         SparseBlockMatrix M;
+         double[] vals;
+         public void setup (int size) {
+            M = createGridMatrix (size);
+            vals = new double[M.numNonZeroVals (Partition.UpperTriangular)];
+         }
+         public double run() {
+            M.getCRSValues (
+               vals, Partition.UpperTriangular, M.rowSize(), M.colSize());
+            return vals[0];
+         }
+      });
+   }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.benchmark;
+
+import java.util.List;
+
+import maspack.matrix.Matrix;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.solvers.CGSolver;
+import maspack.solvers.KKTSolver;
+
+/**
+ * Benchmarks for solvers in <code>maspack.solvers</code>. Problem sizes give
+ * the number of nodes along each side of the grid used to create the
+ * system matrix (see {@link MatrixBenchmarks#createGridMatrix}).
+ */
+public class SolverBenchmarks {
+
+   /**
+    * Adds the solver benchmarks to a list.
+    *
+    * @param list list to which benchmarks are added
+    */
+   public static void addBenchmarks (List<Benchmark> list) {
+
+      list.add (new Benchmark ("CGSolver.solve", 5, 10, 15) {
+         SparseBlockMatrix M;
+         VectorNd x;
+         VectorNd b;
+         CGSolver cg = new CGSolver();
+         public void setup (int size) {
+            M = MatrixBenchmarks.createGridMatrix (size);
+            x = new VectorNd (M.rowSize());
+            b = new VectorNd (M.rowSize());
+            b.setRandom();
+         }
+         public double run() {
+            x.setZero();
+            cg.solve (x, M, b, 1e-8, 10*M.rowSize());
+            return x.get(0);
+         }
+      });
+
+      list.add (new Benchmark ("KKTSolver.factor", 4, 8, 12) {
+         SparseBlockMatrix M;
+         SparseBlockMatrix GT;
+         KKTSolver solver;
+         public void setup (int size) {
+            M = MatrixBenchmarks.createGridMatrix (size);
+            GT = MatrixBenchmarks.createConstraintMatrix (
+               M, M.numBlockRows()/4);
+            solver = new KKTSolver();
+            solver.analyze (M, M.rowSize(), GT, null, Matrix.SPD);
+         }
+         public double run() {
+            solver.factor (M, M.rowSize(), GT, null);
+            return 0;
+         }
+         public void teardown() {
+            solver.dispose();
+         }
+      });
+
+      list.add (new Benchmark ("KKTSolver.solve", 4, 8, 12) {
+         SparseBlockMatrix M;
+         SparseBlockMatrix GT;
+         KKTSolver solver;
+         VectorNd vel;
+         VectorNd lam;
+         VectorNd bm;
+         VectorNd bg;
+         public void setup (int size) {
+            M = MatrixBenchmarks.createGridMatrix (size);
+            GT = MatrixBenchmarks.createConstraintMatrix (
+               M, M.numBlockRows()/4);
+            solver = new KKTSolver();
+            solver.analyze (M, M.rowSize(), GT, null, Matrix.SPD);
+            solver.factor (M, M.rowSize(), GT, null);
+            vel = new VectorNd (M.rowSize());
+            lam = new VectorNd (GT.colSize());
+            bm = new VectorNd (M.rowSize());
+            bg = new VectorNd (GT.colSize());
+            bm.setRandom();
+         }
+         public double run() {
+            solver.solve (vel, lam, bm, bg);
+            return vel.get(0);
+         }
+         public void teardown() {
+            solver.dispose();
+         }
+      });
+   }
+}
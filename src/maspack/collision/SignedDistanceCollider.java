@@ -9,6 +9,16 @@ import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 
 public class SignedDistanceCollider implements AbstractCollider {
+
+   // query storage for findPenetratingPoints(), grown as needed and reused
+   // across calls. Because of this, a collider should not be used by
+   // several threads at once.
+   private double[] myCoords = new double[0];
+   private double[] myDists = new double[0];
+   private double[] myNrms = new double[0];
+   private RigidTransform3d myX1to0 = new RigidTransform3d();
+   private Vector3d myNormal = new Vector3d();
+   private Point3d myVpnt = new Point3d();
    
    public SignedDistanceCollider() {
    }
@@ -83,23 +93,43 @@ public class SignedDistanceCollider implements AbstractCollider {
       PolygonalMesh mesh0, DistanceGrid grid0, PolygonalMesh mesh1) {
 
       ArrayList<Vertex3d> mesh1Vertices = mesh1.getVertices ();
-      Vector3d normal = new Vector3d();
-      double distance;
+      Vector3d normal = myNormal;
       RigidTransform3d X1to0 = null;
       if (!mesh0.meshToWorldIsIdentity() ||
           !mesh1.meshToWorldIsIdentity()) {
-         X1to0 = new RigidTransform3d();
+         X1to0 = myX1to0;
          // Transform from deformable mesh to rigid mesh.
          X1to0.mulInverseLeft (mesh0.getMeshToWorld(), mesh1.getMeshToWorld());
       }
-      Point3d vpnt = new Point3d();
-      for (Vertex3d v1 : mesh1Vertices) { // mesh1 is deformable
-         vpnt.set (v1.pnt);
-         if (X1to0 != null) {
-            vpnt.transform (X1to0);
-         }
-         distance = grid0.getLocalDistanceAndNormal (normal, vpnt);
+      // query all the vertices at once, so that the transform into grid
+      // coordinates is computed only once
+      int nverts = mesh1Vertices.size();
+      if (myDists.length < nverts) {
+         myCoords = new double[3*nverts];
+         myDists = new double[nverts];
+         myNrms = new double[3*nverts];
+      }
+      double[] coords = myCoords;
+      for (int i=0; i<nverts; i++) { // mesh1 is deformable
+         Point3d pnt = mesh1Vertices.get(i).pnt;
+         coords[3*i  ] = pnt.x;
+         coords[3*i+1] = pnt.y;
+         coords[3*i+2] = pnt.z;
+      }
+      double[] dists = myDists;
+      double[] nrms = myNrms;
+      grid0.getLocalDistancesAndNormals (
+         dists, nrms, coords, nverts, X1to0, /*workers=*/null);
+      Point3d vpnt = myVpnt;
+      for (int i=0; i<nverts; i++) {
+         double distance = dists[i];
          if (distance <= 0) {
+            Vertex3d v1 = mesh1Vertices.get(i);
+            vpnt.set (v1.pnt);
+            if (X1to0 != null) {
+               vpnt.transform (X1to0);
+            }
+            normal.set (nrms[3*i], nrms[3*i+1], nrms[3*i+2]);
             if (!mesh0.meshToWorldIsIdentity()) {
                normal.transform (mesh0.getMeshToWorld());
                vpnt.transform (mesh0.getMeshToWorld());
@@ -0,0 +1,364 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.collision;
+
+import java.util.Arrays;
+
+import maspack.matrix.Vector3d;
+
+/**
+ * Broad-phase collision culling using sweep and prune. The structure
+ * maintains a set of axis-aligned boxes, identified by indices in the range
+ * <code>[0, numBoxes)</code>, and finds all pairs of boxes that overlap.
+ *
+ * <p>The box endpoints along the sweep axis are kept sorted between calls
+ * to {@link #update}, so that when the boxes move coherently from one
+ * update to the next (as they do in a simulation), re-sorting them by
+ * insertion sort requires little more than linear time. Overlapping pairs
+ * are then found by sweeping along the axis and testing only boxes whose
+ * extents along the axis intersect.
+ *
+ * <p>A box can be marked as empty, in which case it overlaps no other box.
+ * Boxes are initially empty.
+ */
+public class SweepAndPrune {
+
+   private int myNumBoxes;
+   private int myAxis = 0;
+
+   // box bounds: minx, miny, minz, maxx, maxy, maxz for each box
+   private double[] myBounds = new double[0];
+   private boolean[] myEmpty = new boolean[0];
+
+   // endpoints along the sweep axis, encoded as 2*box for the minimum and
+   // 2*box+1 for the maximum
+   private int[] myEndpoints = new int[0];
+
+   // overlapping boxes for box i are given by myOverlaps[myOverlapPtr[i]] to
+   // myOverlaps[myOverlapPtr[i+1]-1], in increasing order
+   private int[] myOverlapPtr = new int[1];
+   private int[] myOverlaps = new int[0];
+   private int myNumOverlappingPairs;
+
+   private int[] myActive = new int[0];
+   private int[] myPairs = new int[0];
+   private int myNumSwaps;
+
+   /**
+    * Creates a new SweepAndPrune structure with no boxes.
+    */
+   public SweepAndPrune() {
+   }
+
+   /**
+    * Creates a new SweepAndPrune structure with a specified number of boxes,
+    * all of which are initially empty.
+    *
+    * @param numBoxes number of boxes
+    */
+   public SweepAndPrune (int numBoxes) {
+      setNumBoxes (numBoxes);
+   }
+
+   /**
+    * Sets the number of boxes in this structure. If the number changes, all
+    * boxes are reset to empty and the sort order is discarded.
+    *
+    * @param numBoxes number of boxes
+    */
+   public void setNumBoxes (int numBoxes) {
+      if (numBoxes < 0) {
+         throw new IllegalArgumentException (
+            "number of boxes must be non-negative");
+      }
+      if (numBoxes != myNumBoxes) {
+         myNumBoxes = numBoxes;
+         myBounds = new double[6*numBoxes];
+         myEmpty = new boolean[numBoxes];
+         Arrays.fill (myEmpty, true);
+         myEndpoints = new int[2*numBoxes];
+         for (int k=0; k<2*numBoxes; k++) {
+            myEndpoints[k] = k;
+         }
+         myActive = new int[numBoxes];
+         myOverlapPtr = new int[numBoxes+1];
+         myOverlaps = new int[0];
+         myNumOverlappingPairs = 0;
+      }
+   }
+
+   /**
+    * Returns the number of boxes in this structure.
+    *
+    * @return number of boxes
+    */
+   public int numBoxes() {
+      return myNumBoxes;
+   }
+
+   /**
+    * Sets the axis (0, 1 or 2, for x, y or z) along which the boxes are
+    * sorted. Ideally, this should be the axis along which the boxes are
+    * most spread out. The default value is 0.
+    *
+    * @param axis sweep axis
+    */
+   public void setSweepAxis (int axis) {
+      if (axis < 0 || axis > 2) {
+         throw new IllegalArgumentException ("axis must be 0, 1 or 2");
+      }
+      myAxis = axis;
+   }
+
+   /**
+    * Returns the axis along which the boxes are sorted.
+    *
+    * @return sweep axis
+    */
+   public int getSweepAxis() {
+      return myAxis;
+   }
+
+   /**
+    * Sets the bounds of a specific box.
+    *
+    * @param idx index of the box
+    * @param pmin minimum coordinates of the box
+    * @param pmax maximum coordinates of the box
+    */
+   public void setBox (int idx, Vector3d pmin, Vector3d pmax) {
+      setBox (idx, pmin.x, pmin.y, pmin.z, pmax.x, pmax.y, pmax.z);
+   }
+
+   /**
+    * Sets the bounds of a specific box.
+    *
+    * @param idx index of the box
+    * @param minx minimum x coordinate
+    * @param miny minimum y coordinate
+    * @param minz minimum z coordinate
+    * @param maxx maximum x coordinate
+    * @param maxy maximum y coordinate
+    * @param maxz maximum z coordinate
+    */
+   public void setBox (
+      int idx, double minx, double miny, double minz,
+      double maxx, double maxy, double maxz) {
+      int k = 6*idx;
+      myBounds[k++] = minx;
+      myBounds[k++] = miny;
+      myBounds[k++] = minz;
+      myBounds[k++] = maxx;
+      myBounds[k++] = maxy;
+      myBounds[k++] = maxz;
+      myEmpty[idx] = !(minx <= maxx && miny <= maxy && minz <= maxz);
+   }
+
+   /**
+    * Marks a specific box as empty, so that it overlaps no other box.
+    *
+    * @param idx index of the box
+    */
+   public void setEmpty (int idx) {
+      myEmpty[idx] = true;
+   }
+
+   /**
+    * Queries whether a specific box is empty.
+    *
+    * @param idx index of the box
+    * @return <code>true</code> if the box is empty
+    */
+   public boolean isEmpty (int idx) {
+      return myEmpty[idx];
+   }
+
+   private double endpointValue (int e) {
+      return myBounds[6*(e>>1) + 3*(e&1) + myAxis];
+   }
+
+   /**
+    * Returns true if endpoint e0 precedes endpoint e1. Minimum endpoints
+    * precede maximum endpoints with the same value, so that touching boxes
+    * are considered to overlap.
+    */
+   private boolean precedes (int e0, int e1) {
+      double v0 = endpointValue (e0);
+      double v1 = endpointValue (e1);
+      if (v0 != v1) {
+         return v0 < v1;
+      }
+      else if ((e0&1) != (e1&1)) {
+         return (e0&1) < (e1&1);
+      }
+      else {
+         return e0 < e1;
+      }
+   }
+
+   private boolean boxesOverlap (int i, int j) {
+      double[] b = myBounds;
+      int bi = 6*i;
+      int bj = 6*j;
+      for (int a=0; a<3; a++) {
+         if (b[bi+a] > b[bj+3+a] || b[bj+a] > b[bi+3+a]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Updates the sort order of the box endpoints and recomputes the set of
+    * overlapping box pairs. This should be called after the boxes have been
+    * set and before any overlap queries.
+    */
+   public void update() {
+      int[] ep = myEndpoints;
+      int nep = ep.length;
+      // insertion sort, which is nearly linear if the order has changed
+      // little since the last update
+      int nswaps = 0;
+      for (int k=1; k<nep; k++) {
+         int e = ep[k];
+         int j = k-1;
+         while (j >= 0 && precedes (e, ep[j])) {
+            ep[j+1] = ep[j];
+            j--;
+            nswaps++;
+         }
+         ep[j+1] = e;
+      }
+      myNumSwaps = nswaps;
+
+      // sweep along the axis, maintaining the set of boxes whose extents
+      // contain the current position
+      int nactive = 0;
+      int npairs = 0;
+      int[] active = myActive;
+      for (int k=0; k<nep; k++) {
+         int e = ep[k];
+         int box = e>>1;
+         if (myEmpty[box]) {
+            continue;
+         }
+         if ((e&1) == 0) {
+            for (int a=0; a<nactive; a++) {
+               int other = active[a];
+               if (boxesOverlap (box, other)) {
+                  if (2*npairs+2 > myPairs.length) {
+                     myPairs = Arrays.copyOf (
+                        myPairs, Math.max (16, 2*myPairs.length));
+                  }
+                  myPairs[2*npairs] = box;
+                  myPairs[2*npairs+1] = other;
+                  npairs++;
+               }
+            }
+            active[nactive++] = box;
+         }
+         else {
+            // remove the box, preserving the order of the active list
+            int a = nactive-1;
+            while (active[a] != box) {
+               a--;
+            }
+            System.arraycopy (active, a+1, active, a, nactive-a-1);
+            nactive--;
+         }
+      }
+      myNumOverlappingPairs = npairs;
+
+      // build the overlap lists for each box
+      int n = myNumBoxes;
+      int[] ptr = myOverlapPtr;
+      Arrays.fill (ptr, 0);
+      for (int p=0; p<npairs; p++) {
+         ptr[myPairs[2*p]+1]++;
+         ptr[myPairs[2*p+1]+1]++;
+      }
+      for (int i=0; i<n; i++) {
+         ptr[i+1] += ptr[i];
+      }
+      if (myOverlaps.length < 2*npairs) {
+         myOverlaps = new int[2*npairs];
+      }
+      int[] next = myActive;
+      System.arraycopy (ptr, 0, next, 0, n);
+      for (int p=0; p<npairs; p++) {
+         int i = myPairs[2*p];
+         int j = myPairs[2*p+1];
+         myOverlaps[next[i]++] = j;
+         myOverlaps[next[j]++] = i;
+      }
+      for (int i=0; i<n; i++) {
+         Arrays.sort (myOverlaps, ptr[i], ptr[i+1]);
+      }
+   }
+
+   /**
+    * Queries whether two boxes were found to overlap by the most recent call
+    * to {@link #update}.
+    *
+    * @param i index of the first box
+    * @param j index of the second box
+    * @return <code>true</code> if the boxes overlap
+    */
+   public boolean overlaps (int i, int j) {
+      int[] ptr = myOverlapPtr;
+      if (ptr[i+1]-ptr[i] > ptr[j+1]-ptr[j]) {
+         int tmp = i;
+         i = j;
+         j = tmp;
+      }
+      return Arrays.binarySearch (myOverlaps, ptr[i], ptr[i+1], j) >= 0;
+   }
+
+   /**
+    * Returns the number of boxes that overlap a specific box, as found by the
+    * most recent call to {@link #update}.
+    *
+    * @param idx index of the box
+    * @return number of overlapping boxes
+    */
+   public int numOverlaps (int idx) {
+      return myOverlapPtr[idx+1]-myOverlapPtr[idx];
+   }
+
+   /**
+    * Returns the index of the <code>k</code>-th box that overlaps a specific
+    * box. Overlapping boxes are ordered by increasing index.
+    *
+    * @param idx index of the box
+    * @param k index of the overlapping box within the overlap list
+    * @return index of the overlapping box
+    */
+   public int getOverlap (int idx, int k) {
+      return myOverlaps[myOverlapPtr[idx]+k];
+   }
+
+   /**
+    * Returns the number of overlapping box pairs found by the most recent
+    * call to {@link #update}.
+    *
+    * @return number of overlapping pairs
+    */
+   public int numOverlappingPairs() {
+      return myNumOverlappingPairs;
+   }
+
+   /**
+    * Returns the number of endpoint swaps that were needed to re-sort the
+    * boxes during the most recent call to {@link #update}. This gives an
+    * indication of how coherently the boxes are moving.
+    *
+    * @return number of endpoint swaps
+    */
+   public int numSwaps() {
+      return myNumSwaps;
+   }
+}
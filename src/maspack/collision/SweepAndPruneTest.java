@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.collision;
+
+import maspack.matrix.Point3d;
+import maspack.matrix.Vector3d;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests SweepAndPrune by comparing its overlapping pairs with those
+ * found by brute force, for boxes that move randomly over several updates.
+ */
+public class SweepAndPruneTest extends UnitTest {
+
+   Point3d[] myMin;
+   Point3d[] myMax;
+   boolean[] myEmpty;
+
+   void setRandomBoxes (SweepAndPrune sap, double size) {
+      int n = sap.numBoxes();
+      myMin = new Point3d[n];
+      myMax = new Point3d[n];
+      myEmpty = new boolean[n];
+      for (int i=0; i<n; i++) {
+         myMin[i] = new Point3d();
+         myMin[i].setRandom();
+         myMax[i] = new Point3d (myMin[i]);
+         Vector3d del = new Vector3d();
+         del.setRandom (0, size);
+         myMax[i].add (del);
+         sap.setBox (i, myMin[i], myMax[i]);
+      }
+   }
+
+   void moveBoxes (SweepAndPrune sap, double step) {
+      int n = sap.numBoxes();
+      Vector3d del = new Vector3d();
+      for (int i=0; i<n; i++) {
+         del.setRandom();
+         del.scale (step);
+         myMin[i].add (del);
+         myMax[i].add (del);
+         if (RandomGenerator.nextInt (0, 9) == 0) {
+            myEmpty[i] = !myEmpty[i];
+         }
+         if (myEmpty[i]) {
+            sap.setEmpty (i);
+         }
+         else {
+            sap.setBox (i, myMin[i], myMax[i]);
+         }
+      }
+   }
+
+   boolean overlaps (int i, int j) {
+      if (myEmpty[i] || myEmpty[j]) {
+         return false;
+      }
+      return (myMin[i].x <= myMax[j].x && myMin[j].x <= myMax[i].x &&
+              myMin[i].y <= myMax[j].y && myMin[j].y <= myMax[i].y &&
+              myMin[i].z <= myMax[j].z && myMin[j].z <= myMax[i].z);
+   }
+
+   void checkOverlaps (SweepAndPrune sap) {
+      int n = sap.numBoxes();
+      int npairs = 0;
+      for (int i=0; i<n; i++) {
+         int nover = 0;
+         for (int j=0; j<n; j++) {
+            if (j == i) {
+               continue;
+            }
+            boolean check = overlaps (i, j);
+            if (sap.overlaps (i, j) != check) {
+               throw new TestException (
+                  "Boxes "+i+" and "+j+": overlap is "+sap.overlaps(i, j)+
+                  ", expected "+check);
+            }
+            if (check) {
+               if (sap.getOverlap (i, nover) != j) {
+                  throw new TestException (
+                     "Overlap "+nover+" of box "+i+" is "+
+                     sap.getOverlap (i, nover)+", expected "+j);
+               }
+               nover++;
+               if (j > i) {
+                  npairs++;
+               }
+            }
+         }
+         if (sap.numOverlaps (i) != nover) {
+            throw new TestException (
+               "Box "+i+" has "+sap.numOverlaps(i)+" overlaps, expected "+nover);
+         }
+      }
+      if (sap.numOverlappingPairs() != npairs) {
+         throw new TestException (
+            "Number of overlapping pairs is "+sap.numOverlappingPairs()+
+            ", expected "+npairs);
+      }
+   }
+
+   void test (int nboxes, double size, int axis) {
+      SweepAndPrune sap = new SweepAndPrune (nboxes);
+      sap.setSweepAxis (axis);
+      setRandomBoxes (sap, size);
+      sap.update();
+      checkOverlaps (sap);
+      for (int k=0; k<20; k++) {
+         moveBoxes (sap, size/10);
+         sap.update();
+         checkOverlaps (sap);
+      }
+   }
+
+   public void test() {
+      test (0, 0.1, 0);
+      test (1, 0.1, 0);
+      for (int axis=0; axis<3; axis++) {
+         test (50, 0.1, axis);
+         test (200, 0.4, axis);
+      }
+      // boxes touching along the sweep axis should overlap
+      SweepAndPrune sap = new SweepAndPrune (2);
+      sap.setBox (0, 0, 0, 0, 1, 1, 1);
+      sap.setBox (1, 1, 0, 0, 2, 1, 1);
+      sap.update();
+      if (!sap.overlaps (0, 1)) {
+         throw new TestException ("Touching boxes do not overlap");
+      }
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      SweepAndPruneTest tester = new SweepAndPruneTest();
+      tester.runtest();
+   }
+}
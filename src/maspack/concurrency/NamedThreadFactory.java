@@ -10,19 +10,29 @@ public class NamedThreadFactory implements ThreadFactory {
 	private final ThreadGroup group;
 	private final AtomicInteger threadNumber = new AtomicInteger(1);
 	private final String namePrefix;
+	private final boolean daemon;
 
 	public NamedThreadFactory(String baseName) {
+		this(baseName, false);
+	}
+
+	/**
+	 * Creates a factory whose threads are daemon threads if
+	 * <code>daemon</code> is <code>true</code>.
+	 */
+	public NamedThreadFactory(String baseName, boolean daemon) {
 		SecurityManager s = System.getSecurityManager();
 		group = (s != null) ? s.getThreadGroup() : Thread.currentThread()
 				.getThreadGroup();
 		namePrefix = baseName + "-thread-";
+		this.daemon = daemon;
 	}
 
 	public Thread newThread(Runnable r) {
 		Thread t = new Thread(group, r, namePrefix
 				+ threadNumber.getAndIncrement(), 0);
-		if (t.isDaemon())
-			t.setDaemon(false);
+		if (t.isDaemon() != daemon)
+			t.setDaemon(daemon);
 		if (t.getPriority() != Thread.NORM_PRIORITY)
 			t.setPriority(Thread.NORM_PRIORITY);
 		return t;
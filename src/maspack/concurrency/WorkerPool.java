@@ -0,0 +1,266 @@
+package maspack.concurrency;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import maspack.util.InternalErrorException;
+
+/**
+ * Fixed-size pool of worker threads used to execute data-parallel loops,
+ * such as loops over FEM elements or over the rows of a sparse matrix. The
+ * calling thread always takes part in the work, so that a pool with
+ * <code>n</code> threads creates at most <code>n-1</code> additional worker
+ * threads. Worker threads are daemon threads and are released after a short
+ * idle period, so that an unused pool holds no resources.
+ *
+ * <p>The loop methods block until all work is complete. The assignment of
+ * work to thread indices depends only on the loop size and the number of
+ * threads, so that code which accumulates per-thread results and merges
+ * them in thread index order produces reproducible results.
+ */
+public class WorkerPool {
+
+   protected static long defaultTimeoutMS = 1000;
+
+   protected ThreadPoolExecutor myExecutor;
+   protected int myNumThreads;
+
+   /**
+    * Task that processes a contiguous range of loop indices.
+    */
+   public interface RangeTask {
+      /**
+       * Processes the loop indices in the range <code>[start, end)</code>.
+       *
+       * @param tidx index of the thread processing the range, in the
+       * interval <code>[0, numThreads()-1]</code>
+       * @param start first index of the range
+       * @param end last index of the range, plus one
+       */
+      public void run (int tidx, int start, int end);
+   }
+
+   /**
+    * Task that processes a single loop index.
+    */
+   public interface IndexTask {
+      /**
+       * Processes loop index <code>idx</code>.
+       *
+       * @param tidx index of the thread processing the index, in the
+       * interval <code>[0, numThreads()-1]</code>
+       * @param idx loop index
+       */
+      public void run (int tidx, int idx);
+   }
+
+   /**
+    * Creates a new WorkerPool.
+    *
+    * @param name base name for the worker threads
+    * @param nthreads total number of threads (including the calling
+    * thread) used to execute loops. Must be at least 1.
+    */
+   public WorkerPool (String name, int nthreads) {
+      if (nthreads < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      myNumThreads = nthreads;
+      if (nthreads > 1) {
+         myExecutor = new ThreadPoolExecutor (
+            nthreads-1, nthreads-1, defaultTimeoutMS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new NamedThreadFactory (name, /*daemon=*/true));
+         myExecutor.allowCoreThreadTimeOut (true);
+      }
+   }
+
+   /**
+    * Returns the total number of threads used by this pool, including
+    * the calling thread.
+    *
+    * @return number of threads
+    */
+   public int numThreads() {
+      return myNumThreads;
+   }
+
+   /**
+    * Returns a reasonable default number of threads, based on the number of
+    * available processors.
+    *
+    * @return default number of threads
+    */
+   public static int getDefaultNumThreads() {
+      return Runtime.getRuntime().availableProcessors();
+   }
+
+   /**
+    * Returns the start of the <code>k</code>-th range when <code>n</code>
+    * loop indices are divided into <code>nranges</code> contiguous ranges of
+    * nearly equal size.
+    */
+   public static int rangeStart (int k, int n, int nranges) {
+      return (int)(((long)k*n)/nranges);
+   }
+
+   /**
+    * Returns the number of ranges used when a loop of size <code>n</code>
+    * is executed by {@link #forEachRange}.
+    *
+    * @param n loop size
+    * @return number of ranges
+    */
+   public int numRanges (int n) {
+      return Math.max (1, Math.min (n, myNumThreads));
+   }
+
+   /**
+    * Divides the loop indices <code>[0, n)</code> into {@link #numRanges}
+    * contiguous ranges of nearly equal size and processes the
+    * <code>k</code>-th range using thread index <code>k</code>. Returns when
+    * all ranges have been processed.
+    *
+    * @param n loop size
+    * @param task task used to process each range
+    */
+   public void forEachRange (int n, RangeTask task) {
+      int nranges = numRanges (n);
+      if (nranges == 1 || myExecutor == null) {
+         if (n > 0) {
+            task.run (0, 0, n);
+         }
+         return;
+      }
+      ArrayList<Future<?>> futures = new ArrayList<>(nranges-1);
+      for (int k=0; k<nranges-1; k++) {
+         final int tidx = k;
+         final int start = rangeStart (k, n, nranges);
+         final int end = rangeStart (k+1, n, nranges);
+         futures.add (myExecutor.submit (() -> task.run (tidx, start, end)));
+      }
+      RuntimeException exception = null;
+      try {
+         task.run (
+            nranges-1, rangeStart (nranges-1, n, nranges), n);
+      }
+      catch (RuntimeException e) {
+         exception = e;
+      }
+      RuntimeException workerException = awaitAll (futures);
+      if (exception == null) {
+         exception = workerException;
+      }
+      if (exception != null) {
+         throw exception;
+      }
+   }
+
+   /**
+    * Processes the loop indices <code>[0, n)</code> individually, with
+    * threads taking the next unprocessed index as soon as they become free.
+    * This gives better load balancing than {@link #forEachRange} when the
+    * work per index varies greatly, but the assignment of indices to
+    * threads is not reproducible. Returns when all indices have been
+    * processed.
+    *
+    * @param n loop size
+    * @param task task used to process each index
+    */
+   public void forEachIndex (int n, IndexTask task) {
+      int nthreads = numRanges (n);
+      if (nthreads == 1 || myExecutor == null) {
+         for (int i=0; i<n; i++) {
+            task.run (0, i);
+         }
+         return;
+      }
+      AtomicInteger next = new AtomicInteger(0);
+      ArrayList<Future<?>> futures = new ArrayList<>(nthreads-1);
+      for (int k=0; k<nthreads-1; k++) {
+         final int tidx = k;
+         futures.add (myExecutor.submit (() -> {
+            int i;
+            while ((i = next.getAndIncrement()) < n) {
+               task.run (tidx, i);
+            }
+         }));
+      }
+      RuntimeException exception = null;
+      try {
+         int i;
+         while ((i = next.getAndIncrement()) < n) {
+            task.run (nthreads-1, i);
+         }
+      }
+      catch (RuntimeException e) {
+         exception = e;
+      }
+      RuntimeException workerException = awaitAll (futures);
+      if (exception == null) {
+         exception = workerException;
+      }
+      if (exception != null) {
+         throw exception;
+      }
+   }
+
+   /**
+    * Waits for all futures to complete and returns the first exception
+    * thrown by any of them, or <code>null</code>. Errors are rethrown
+    * directly.
+    */
+   private RuntimeException awaitAll (ArrayList<Future<?>> futures) {
+      RuntimeException exception = null;
+      boolean interrupted = false;
+      for (Future<?> fut : futures) {
+         while (true) {
+            try {
+               fut.get();
+               break;
+            }
+            catch (InterruptedException e) {
+               // keep waiting, since workers may still be writing results
+               interrupted = true;
+            }
+            catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof Error) {
+                  throw (Error)cause;
+               }
+               else if (exception == null) {
+                  if (cause instanceof RuntimeException) {
+                     exception = (RuntimeException)cause;
+                  }
+                  else {
+                     exception = new InternalErrorException (
+                        "Worker thread failed: " + cause);
+                  }
+               }
+               break;
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      return exception;
+   }
+
+   /**
+    * Releases the worker threads associated with this pool. The pool
+    * should not be used after this call.
+    */
+   public void shutdown() {
+      if (myExecutor != null) {
+         myExecutor.shutdown();
+         myExecutor = null;
+      }
+   }
+}
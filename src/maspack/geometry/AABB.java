@@ -38,6 +38,13 @@ public class AABB extends BVNode {
       center.scale (0.5);
    }
    
+   public double getSurfaceArea() {
+      double dx = myMax.x-myMin.x;
+      double dy = myMax.y-myMin.y;
+      double dz = myMax.z-myMin.z;
+      return 2*(dx*dy + dy*dz + dz*dx);
+   }
+
    public void getHalfWidths(Vector3d hw) {
       hw.sub(myMax, myMin);
       hw.scale(0.5);
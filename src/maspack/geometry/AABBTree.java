@@ -6,6 +6,9 @@
  */
 package maspack.geometry;
 
+import java.util.ArrayList;
+
+import maspack.concurrency.WorkerPool;
 import maspack.matrix.Vector3d;
 
 public class AABBTree extends BVTree {
@@ -14,6 +17,25 @@ public class AABBTree extends BVTree {
    
    protected AABB myRoot;
 
+   private static int defaultNumBuildThreads = 1;
+   private static int minParallelBuildSize = 20000;
+   protected int myNumBuildThreads = defaultNumBuildThreads;
+
+   // subtree whose construction is deferred during a parallel build
+   private class BuildTask {
+      AABB myNode;
+      ElemDesc[] myElems;
+      int myNumElems;
+      int myDepth;
+
+      BuildTask (AABB node, ElemDesc[] edescs, int nelems, int depth) {
+         myNode = node;
+         myElems = edescs;
+         myNumElems = nelems;
+         myDepth = depth;
+      }
+   }
+
    private class ElemDesc {
       Vector3d myCentroid;
       Boundable myElem;
@@ -29,9 +51,87 @@ public class AABBTree extends BVTree {
       return myRoot;
    }
 
+   protected void setRoot (BVNode root) {
+      myRoot = (AABB)root;
+   }
+
    public AABBTree () {
    }
 
+   /**
+    * Queries the default number of threads used to build newly created
+    * trees. See {@link #setDefaultNumBuildThreads}.
+    *
+    * @return default number of build threads
+    */
+   public static int getDefaultNumBuildThreads() {
+      return defaultNumBuildThreads;
+   }
+
+   /**
+    * Sets the default number of threads used to build newly created trees.
+    * See {@link #setNumBuildThreads}. The default value is 1.
+    *
+    * @param num default number of build threads
+    */
+   public static void setDefaultNumBuildThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      defaultNumBuildThreads = num;
+   }
+
+   /**
+    * Queries the minimum number of elements for which a tree is built in
+    * parallel. See {@link #setMinParallelBuildSize}.
+    *
+    * @return minimum number of elements for a parallel build
+    */
+   public static int getMinParallelBuildSize() {
+      return minParallelBuildSize;
+   }
+
+   /**
+    * Sets the minimum number of elements for which a tree is built in
+    * parallel, when its number of build threads is greater than 1. The
+    * default value is 20000.
+    *
+    * @param size minimum number of elements for a parallel build
+    */
+   public static void setMinParallelBuildSize (int size) {
+      minParallelBuildSize = size;
+   }
+
+   /**
+    * Queries the number of threads used to build this tree. See {@link
+    * #setNumBuildThreads}.
+    *
+    * @return number of build threads
+    */
+   public int getNumBuildThreads() {
+      return myNumBuildThreads;
+   }
+
+   /**
+    * Sets the number of threads used to build this tree. If greater than 1,
+    * and the number of elements is at least {@link
+    * #getMinParallelBuildSize MinParallelBuildSize},
+    * the top levels of the tree are split serially and the resulting
+    * subtrees are then built concurrently. The resulting tree is identical
+    * to the one built serially. Setting this value will only be effective
+    * for subsequent <code>build</code> calls.
+    *
+    * @param num number of build threads
+    */
+   public void setNumBuildThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      myNumBuildThreads = num;
+   }
+
    public AABBTree (MeshBase mesh, int maxLeafElems, double margin) {
       setMaxLeafElementsForMesh (mesh, maxLeafElems);
       setMarginForMesh (mesh, margin);
@@ -49,7 +149,7 @@ public class AABBTree extends BVTree {
   
    private boolean splitNode (
       AABB node, ElemDesc[] edescs,
-      int nelems, int depth) {
+      int nelems, int depth, ArrayList<BuildTask> deferred, int grainSize) {
 
       Vector3d minc = new Vector3d ( INF,  INF,  INF);
       Vector3d maxc = new Vector3d (-INF, -INF, -INF);
@@ -88,8 +188,12 @@ public class AABBTree extends BVTree {
       }
 
       if (numLeft < nelems && numRight < nelems) {
-         node.addChild (buildNodesRecursively (leftElems, numLeft, depth + 1));
-         node.addChild (buildNodesRecursively (rightElems, numRight, depth + 1));
+         node.addChild (
+            buildNodesRecursively (
+               leftElems, numLeft, depth + 1, deferred, grainSize));
+         node.addChild (
+            buildNodesRecursively (
+               rightElems, numRight, depth + 1, deferred, grainSize));
          return true;
       }
       else {
@@ -115,33 +219,90 @@ public class AABBTree extends BVTree {
       node.setElements (elems);
    }
 
+   /**
+    * Builds the subtree for a set of elements. If <code>deferred</code> is
+    * non-null, then the construction of subtrees with no more than
+    * <code>grainSize</code> elements is deferred by adding an empty node
+    * and a corresponding task to <code>deferred</code>.
+    */
    AABB buildNodesRecursively (
-      ElemDesc[] edescs, int nelems, int depth) {
+      ElemDesc[] edescs, int nelems, int depth,
+      ArrayList<BuildTask> deferred, int grainSize) {
       AABB node = new AABB();
+      if (deferred != null && nelems <= grainSize) {
+         deferred.add (new BuildTask (node, edescs, nelems, depth));
+      }
+      else {
+         buildNode (node, edescs, nelems, depth, deferred, grainSize);
+      }
+      return node;
+   }
+
+   private void buildNode (
+      AABB node, ElemDesc[] edescs, int nelems, int depth,
+      ArrayList<BuildTask> deferred, int grainSize) {
 
       setNodeBounds (node, edescs, nelems);
 
       // removed maxDepth test for now ...
       // if ((myMaxDepth == -1 || depth < myMaxDepth) &&
       if (nelems > myMaxLeafElements) {
-         if (!splitNode (node, edescs, nelems, depth)) {
+         if (!splitNode (node, edescs, nelems, depth, deferred, grainSize)) {
             setLeafElements (node, edescs, nelems);
          }
       }
       else {
          setLeafElements (node, edescs, nelems);
       }
-      return node;
    }
 
    public void build (
       Boundable[] elements, int nelems) {
       //myPoints = new Point3d[maxPoints];
+      ElemDesc[] edescs = new ElemDesc[nelems];
+      if (myNumBuildThreads > 1 && nelems >= minParallelBuildSize) {
+         WorkerPool workers = new WorkerPool ("aabbBuild", myNumBuildThreads);
+         try {
+            workers.forEachRange (nelems, (tidx, start, end) -> {
+               for (int i=start; i<end; i++) {
+                  edescs[i] = new ElemDesc (elements[i]);
+               }
+            });
+            // split the top of the tree serially, until there are enough
+            // subtrees to keep all threads busy, and then build these
+            // subtrees in parallel
+            ArrayList<BuildTask> deferred = new ArrayList<BuildTask>();
+            int grainSize = Math.max (nelems/(8*myNumBuildThreads), 1);
+            myRoot = buildNodesRecursively (
+               edescs, nelems, 0, deferred, grainSize);
+            workers.forEachIndex (deferred.size(), (tidx, idx) -> {
+               BuildTask task = deferred.get(idx);
+               buildNode (
+                  task.myNode, task.myElems, task.myNumElems, task.myDepth,
+                  null, 0);
+            });
+         }
+         finally {
+            workers.shutdown();
+         }
+      }
+      else {
+         for (int i=0; i<nelems; i++) {
+            edescs[i] = new ElemDesc (elements[i]);
+         }
+         myRoot = buildNodesRecursively (edescs, nelems, 0, null, 0);
+      }
+      if (myRebuildRatio > 0) {
+         initializeSAHReferences (myRoot);
+      }
+   }
+
+   protected AABB buildSubtree (Boundable[] elements, int nelems) {
       ElemDesc[] edescs = new ElemDesc[nelems];
       for (int i=0; i<nelems; i++) {
          edescs[i] = new ElemDesc (elements[i]);
       }
-      myRoot = buildNodesRecursively (edescs, nelems, 0);
+      return buildNodesRecursively (edescs, nelems, 0, null, 0);
    }
 
    protected void updateRecursively (AABB node) {
@@ -165,8 +326,23 @@ public class AABBTree extends BVTree {
       }
    }
 
+   /**
+    * Refits the boxes of this tree, from the bottom up, so that they
+    * properly contain their enclosed elements. If a rebuild ratio has been
+    * set, subtrees whose quality has degraded are then rebuilt, as
+    * described for {@link #setRebuildRatio}.
+    */
    public void update() {
       updateRecursively (myRoot);
+      ArrayList<BVNode> rebuilt = rebuildDegradedSubtrees();
+      if (rebuilt != null) {
+         // rebuilt subtrees are contained by the old boxes of their
+         // ancestors, but refit anyway so that the ancestors are tight
+         updateRecursively (myRoot);
+         for (BVNode node : rebuilt) {
+            initializeSAHReferences (node);
+         }
+      }
    }
 
 }
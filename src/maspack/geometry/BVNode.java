@@ -23,6 +23,12 @@ public abstract class BVNode implements IsRenderable {
    BVNode myParent;
    Boundable[] myElements;
    int myNumber;
+
+   // surface area heuristic (SAH) cost of the subtree rooted at this node,
+   // and the reference value of this cost divided by the node's surface
+   // area, used by BVTree to detect subtrees whose quality has degraded
+   double mySAHCost;
+   double mySAHRef;
    
    public BVNode() {
    }
@@ -102,6 +108,47 @@ public abstract class BVNode implements IsRenderable {
     */
    public abstract void getCenter (Vector3d center);
 
+   /**
+    * Returns the surface area of this bounding volume. This is used to
+    * estimate the quality of a bounding volume hierarchy using the surface
+    * area heuristic.
+    *
+    * @return surface area of the volume
+    */
+   public abstract double getSurfaceArea();
+
+   /**
+    * Replaces one of the children of this bounding volume with another
+    * volume.
+    *
+    * @param oldChild child to be replaced
+    * @param newChild replacement child
+    */
+   void replaceChild (BVNode oldChild, BVNode newChild) {
+      BVNode prev = null;
+      BVNode child = myFirstChild;
+      while (child != null && child != oldChild) {
+         prev = child;
+         child = child.myNext;
+      }
+      if (child == null) {
+         throw new IllegalArgumentException ("oldChild is not a child");
+      }
+      newChild.myNext = oldChild.myNext;
+      newChild.myParent = this;
+      if (prev == null) {
+         myFirstChild = newChild;
+      }
+      else {
+         prev.myNext = newChild;
+      }
+      if (myLastChild == oldChild) {
+         myLastChild = newChild;
+      }
+      oldChild.myNext = null;
+      oldChild.myParent = null;
+   }
+
    /**
     * Returns the number of child volumes contained by this bounding volume.
     *
@@ -28,6 +28,15 @@ public abstract class BVTree implements IsRenderable {
    protected static final double INF = Double.POSITIVE_INFINITY;
 
    protected RigidTransform3d myBvhToWorld = RigidTransform3d.IDENTITY;
+
+   private static double defaultRebuildRatio = 0;
+   protected double myRebuildRatio = defaultRebuildRatio;
+   protected int myNumSubtreeRebuilds = 0;
+
+   // relative costs of traversing a node and testing an element, used
+   // by the surface area heuristic
+   protected static final double SAH_TRAVERSAL_COST = 1.0;
+   protected static final double SAH_ELEMENT_COST = 1.0;
    
    /**
     * Returns an approximate "radius" for this bounding volume hierarchy.
@@ -593,6 +602,254 @@ public abstract class BVTree implements IsRenderable {
     */
    public abstract void update();
 
+   /**
+    * Returns the ratio by which the quality of a subtree must degrade
+    * before it is rebuilt by {@link #update}.
+    *
+    * @return subtree rebuild ratio
+    * @see #setRebuildRatio
+    */
+   public double getRebuildRatio() {
+      return myRebuildRatio;
+   }
+
+   /**
+    * Sets the ratio by which the quality of a subtree must degrade before it
+    * is rebuilt by {@link #update}. Normally, {@link #update} refits the
+    * volumes of the existing tree, which can become inefficient if the
+    * elements move far enough to make sibling volumes overlap heavily.
+    * Quality is measured using the surface area heuristic (SAH): the
+    * expected cost of a query that reaches a given node, which is the sum
+    * over all nodes in its subtree of their surface areas weighted by their
+    * traversal or element testing costs, divided by the surface area of the
+    * node itself. If <code>ratio</code> is positive, the cost for each node
+    * is recorded when the node is built, and after each update, each
+    * subtree whose cost exceeds <code>ratio</code> times its recorded cost
+    * is rebuilt from its elements. Calling this method also records the
+    * current costs of all nodes. A value of 0 (the default) disables
+    * rebuilding.
+    *
+    * @param ratio subtree rebuild ratio. Must be 0 or greater than 1.
+    */
+   public void setRebuildRatio (double ratio) {
+      if (ratio < 0 || (ratio > 0 && ratio <= 1)) {
+         throw new IllegalArgumentException (
+            "ratio must be 0 or greater than 1");
+      }
+      myRebuildRatio = ratio;
+      if (ratio > 0 && getRoot() != null) {
+         initializeSAHReferences (getRoot());
+      }
+   }
+
+   /**
+    * Returns the default rebuild ratio for newly created trees. See {@link
+    * #setDefaultRebuildRatio}.
+    *
+    * @return default subtree rebuild ratio
+    */
+   public static double getDefaultRebuildRatio() {
+      return defaultRebuildRatio;
+   }
+
+   /**
+    * Sets the default rebuild ratio for newly created trees. See {@link
+    * #setRebuildRatio}. The default value is 0, which disables rebuilding.
+    *
+    * @param ratio default subtree rebuild ratio. Must be 0 or greater than 1.
+    */
+   public static void setDefaultRebuildRatio (double ratio) {
+      if (ratio < 0 || (ratio > 0 && ratio <= 1)) {
+         throw new IllegalArgumentException (
+            "ratio must be 0 or greater than 1");
+      }
+      defaultRebuildRatio = ratio;
+   }
+
+   /**
+    * Returns the number of subtrees that have been rebuilt by {@link
+    * #update} because their quality has degraded. See {@link
+    * #setRebuildRatio}.
+    *
+    * @return number of subtree rebuilds
+    */
+   public int numSubtreeRebuilds() {
+      return myNumSubtreeRebuilds;
+   }
+
+   /**
+    * Computes the surface area heuristic (SAH) cost of this tree, divided
+    * by the surface area of the root volume. This gives the expected number
+    * of node traversals and element tests for a query that reaches the
+    * root, and can be used to compare the quality of different trees built
+    * for the same elements.
+    *
+    * @return normalized SAH cost for this tree
+    */
+   public double getSAHCost() {
+      BVNode root = getRoot();
+      if (root == null) {
+         return 0;
+      }
+      double area = root.getSurfaceArea();
+      double cost = computeSAHCosts (root);
+      return area > 0 ? cost/area : 0;
+   }
+
+   /**
+    * Recursively computes and stores the SAH cost of each node in the
+    * subtree rooted at <code>node</code>, and returns the cost of
+    * <code>node</code> itself.
+    */
+   protected double computeSAHCosts (BVNode node) {
+      double cost;
+      if (node.isLeaf()) {
+         int nelems = node.myElements != null ? node.myElements.length : 0;
+         cost = SAH_ELEMENT_COST*nelems*node.getSurfaceArea();
+      }
+      else {
+         cost = SAH_TRAVERSAL_COST*node.getSurfaceArea();
+         for (BVNode child=node.myFirstChild; child!=null; child=child.myNext) {
+            cost += computeSAHCosts (child);
+         }
+      }
+      node.mySAHCost = cost;
+      return cost;
+   }
+
+   /**
+    * Records the current normalized SAH cost for each node in the subtree
+    * rooted at <code>node</code>.
+    */
+   protected void initializeSAHReferences (BVNode node) {
+      computeSAHCosts (node);
+      storeSAHReferences (node);
+   }
+
+   private void storeSAHReferences (BVNode node) {
+      double area = node.getSurfaceArea();
+      node.mySAHRef = (area > 0 ? node.mySAHCost/area : 0);
+      for (BVNode child=node.myFirstChild; child!=null; child=child.myNext) {
+         storeSAHReferences (child);
+      }
+   }
+
+   /**
+    * Builds a subtree for a set of elements and returns its root, without
+    * modifying this tree. Used to rebuild subtrees whose quality has
+    * degraded.
+    *
+    * @param elems elements around which the subtree is to be built.
+    * @param num number of elements
+    * @return root of the subtree
+    */
+   protected abstract BVNode buildSubtree (Boundable[] elems, int num);
+
+   private void collectElements (ArrayList<Boundable> elems, BVNode node) {
+      if (node.isLeaf()) {
+         if (node.myElements != null) {
+            elems.addAll (Arrays.asList (node.myElements));
+         }
+      }
+      else {
+         for (BVNode child=node.myFirstChild; child!=null; child=child.myNext) {
+            collectElements (elems, child);
+         }
+      }
+   }
+
+   /**
+    * Sets the root bounding volume for this tree. Used when the whole tree
+    * is rebuilt because its quality has degraded.
+    *
+    * @param root new root volume
+    */
+   protected abstract void setRoot (BVNode root);
+
+   /**
+    * Rebuilds the subtree rooted at <code>node</code> if its normalized SAH
+    * cost exceeds its recorded cost by more than the rebuild ratio. The new
+    * subtree is kept only if its cost is lower than the current one;
+    * otherwise, the current cost is recorded as the new reference. Costs
+    * must have been computed beforehand using {@link #computeSAHCosts}.
+    * Returns the new subtree, or <code>null</code> if the subtree was not
+    * rebuilt.
+    */
+   private BVNode maybeRebuildSubtree (BVNode node) {
+      double area = node.getSurfaceArea();
+      if (node.isLeaf() || area <= 0 ||
+          node.mySAHCost <= myRebuildRatio*node.mySAHRef*area) {
+         return null;
+      }
+      ArrayList<Boundable> elems = new ArrayList<Boundable>();
+      collectElements (elems, node);
+      BVNode subtree =
+         buildSubtree (elems.toArray (new Boundable[0]), elems.size());
+      if (computeSAHCosts (subtree) < node.mySAHCost) {
+         return subtree;
+      }
+      else {
+         // rebuilding does not help, so accept the current quality
+         storeSAHReferences (node);
+         return null;
+      }
+   }
+
+   /**
+    * Recursively rebuilds the highest degraded subtrees below
+    * <code>node</code>, and adds their roots to <code>rebuilt</code>.
+    */
+   private void rebuildDegradedSubtrees (
+      ArrayList<BVNode> rebuilt, BVNode node) {
+
+      BVNode child = node.myFirstChild;
+      while (child != null) {
+         BVNode next = child.myNext;
+         BVNode subtree = maybeRebuildSubtree (child);
+         if (subtree != null) {
+            node.replaceChild (child, subtree);
+            rebuilt.add (subtree);
+         }
+         else {
+            rebuildDegradedSubtrees (rebuilt, child);
+         }
+         child = next;
+      }
+   }
+
+   /**
+    * Called by {@link #update} after the tree has been refit, to rebuild any
+    * subtrees whose quality has degraded, as described for {@link
+    * #setRebuildRatio}. The roots of the rebuilt subtrees are returned, so
+    * that the caller can refit their ancestors and then call {@link
+    * #initializeSAHReferences} for them.
+    *
+    * @return roots of the rebuilt subtrees, or <code>null</code> if
+    * no subtrees were rebuilt
+    */
+   protected ArrayList<BVNode> rebuildDegradedSubtrees() {
+      BVNode root = getRoot();
+      if (myRebuildRatio <= 0 || root == null) {
+         return null;
+      }
+      computeSAHCosts (root);
+      ArrayList<BVNode> rebuilt = new ArrayList<BVNode>();
+      BVNode subtree = maybeRebuildSubtree (root);
+      if (subtree != null) {
+         setRoot (subtree);
+         rebuilt.add (subtree);
+      }
+      else {
+         rebuildDegradedSubtrees (rebuilt, root);
+      }
+      if (rebuilt.size() == 0) {
+         return null;
+      }
+      myNumSubtreeRebuilds += rebuilt.size();
+      numberNodes (getRoot(), 0);
+      return rebuilt;
+   }
+
    /**
     * {@inheritDoc}
     */
@@ -415,6 +415,7 @@ public class BVTreeTest {
 
       AABBTree aabbTree = new AABBTree (mesh);
       OBBTree obbTree = new OBBTree (mesh);
+      OBBTree refitTree = new OBBTree (mesh);
       
       int numtrials = 50;
       Vector3d del = new Vector3d();
@@ -426,14 +427,157 @@ public class BVTreeTest {
          }
          aabbTree.update();
          obbTree.update();
+         refitTree.refit();
 
          testFeaturesContainedInAncestors (aabbTree);
          testFeaturesContainedInAncestors (obbTree);
+         testFeaturesContainedInAncestors (refitTree);
          testFeaturesBoundedByNodes (aabbTree.getRoot(), aabbTree.getMargin());
          testFeaturesBoundedByNodes (obbTree.getRoot(), obbTree.getMargin());
+         testFeaturesBoundedByNodes (refitTree.getRoot(), refitTree.getMargin());
+         checkRefitWithinUpdate (refitTree.getRoot(), obbTree.getRoot());
+      }
+   }
+
+   /**
+    * Checks that the leaf boxes of a refit OBB tree are no larger than those
+    * of an identically built tree that has been updated, since update() only
+    * enlarges boxes. (Interior refit boxes bound the corners of their
+    * children, and so may be larger.)
+    */
+   private void checkRefitWithinUpdate (BVNode node0, BVNode node1) {
+      if (node0.isLeaf()) {
+         Vector3d hw0 = ((OBB)node0).getHalfWidths();
+         Vector3d hw1 = ((OBB)node1).getHalfWidths();
+         double tol = 1e-10*hw1.norm();
+         if (hw0.x > hw1.x+tol || hw0.y > hw1.y+tol || hw0.z > hw1.z+tol) {
+            throw new TestException (
+               "node "+node0.getNumber()+": refit half widths "+
+               hw0.toString("%g")+" exceed updated half widths "+
+               hw1.toString("%g"));
+         }
+      }
+      BVNode child0 = node0.myFirstChild;
+      BVNode child1 = node1.myFirstChild;
+      while (child0 != null) {
+         checkRefitWithinUpdate (child0, child1);
+         child0 = child0.myNext;
+         child1 = child1.myNext;
       }
    }
       
+   /**
+    * Twists the vertices of a mesh about the z axis, by an angle
+    * proportional to their z coordinate.
+    */
+   private void twistMesh (MeshBase mesh, double angPerUnitZ) {
+      for (Vertex3d vtx : mesh.getVertices()) {
+         Point3d p = vtx.pnt;
+         double ang = angPerUnitZ*p.z;
+         double c = Math.cos (ang);
+         double s = Math.sin (ang);
+         double x = c*p.x - s*p.y;
+         double y = s*p.x + c*p.y;
+         p.x = x;
+         p.y = y;
+      }
+      mesh.notifyVertexPositionsModified();
+   }
+
+   public void testRebuilding (MeshBase mesh) {
+      ArrayList<BVTree> refitTrees = new ArrayList<BVTree>();
+      refitTrees.add (new AABBTree (mesh));
+      refitTrees.add (new OBBTree (mesh));
+      ArrayList<BVTree> rebuildTrees = new ArrayList<BVTree>();
+      rebuildTrees.add (new AABBTree (mesh));
+      rebuildTrees.add (new OBBTree (mesh));
+      for (BVTree tree : rebuildTrees) {
+         tree.setRebuildRatio (1.5);
+      }
+      int numtrials = 20;
+      for (int i=0; i<numtrials; i++) {
+         twistMesh (mesh, Math.PI/numtrials);
+         for (int k=0; k<refitTrees.size(); k++) {
+            BVTree refitTree = refitTrees.get(k);
+            BVTree rebuildTree = rebuildTrees.get(k);
+            refitTree.update();
+            rebuildTree.update();
+            testFeaturesContainedInAncestors (rebuildTree);
+            testFeaturesBoundedByNodes (
+               rebuildTree.getRoot(), rebuildTree.getMargin());
+            if (rebuildTree.numberNodes() != rebuildTree.numNodes()) {
+               throw new TestException ("nodes not numbered after rebuild");
+            }
+         }
+      }
+      for (int k=0; k<refitTrees.size(); k++) {
+         BVTree refitTree = refitTrees.get(k);
+         BVTree rebuildTree = rebuildTrees.get(k);
+         String name = rebuildTree.getClass().getSimpleName();
+         if (rebuildTree.numSubtreeRebuilds() == 0) {
+            throw new TestException (name + ": no subtrees were rebuilt");
+         }
+         // OBB subtrees are not built to minimize the SAH cost, so only
+         // check for an improvement with AABB trees
+         if (rebuildTree instanceof AABBTree &&
+             rebuildTree.getSAHCost() >= refitTree.getSAHCost()) {
+            throw new TestException (
+               name + ": SAH cost with rebuilding is " +
+               rebuildTree.getSAHCost() + ", without is " +
+               refitTree.getSAHCost());
+         }
+      }
+   }
+
+   private void checkTreesEqual (BVNode node0, BVNode node1) {
+      AABB box0 = (AABB)node0;
+      AABB box1 = (AABB)node1;
+      if (!box0.myMin.equals (box1.myMin) || !box0.myMax.equals (box1.myMax)) {
+         throw new TestException (
+            "node "+node0.getNumber()+": parallel build bounds differ");
+      }
+      if (node0.numChildren() != node1.numChildren()) {
+         throw new TestException (
+            "node "+node0.getNumber()+": parallel build children differ");
+      }
+      if (node0.isLeaf()) {
+         Boundable[] elems0 = node0.getElements();
+         Boundable[] elems1 = node1.getElements();
+         if (elems0.length != elems1.length) {
+            throw new TestException (
+               "node "+node0.getNumber()+": parallel build elements differ");
+         }
+         for (int i=0; i<elems0.length; i++) {
+            if (elems0[i] != elems1[i]) {
+               throw new TestException (
+                  "node "+node0.getNumber()+
+                  ": parallel build elements differ");
+            }
+         }
+      }
+      BVNode child0 = node0.getFirstChild();
+      BVNode child1 = node1.getFirstChild();
+      while (child0 != null) {
+         checkTreesEqual (child0, child1);
+         child0 = child0.getNext();
+         child1 = child1.getNext();
+      }
+   }
+
+   public void testParallelBuild (MeshBase mesh) {
+      int saveMinSize = AABBTree.getMinParallelBuildSize();
+      AABBTree.setMinParallelBuildSize (0);
+      AABBTree serialTree = new AABBTree (mesh);
+      AABBTree parallelTree = new AABBTree();
+      parallelTree.setMaxLeafElements (serialTree.getMaxLeafElements());
+      parallelTree.setMargin (serialTree.getMargin());
+      parallelTree.setNumBuildThreads (4);
+      parallelTree.build (mesh);
+      AABBTree.setMinParallelBuildSize (saveMinSize);
+      serialTree.numberNodes();
+      checkTreesEqual (serialTree.getRoot(), parallelTree.getRoot());
+   }
+
    public void test() {
       testIntersectTree();
       testContainment (MeshFactory.createBox (1.0, 1.5, 2.0));
@@ -447,6 +591,12 @@ public class BVTreeTest {
       testUpdating (new PolygonalMesh (myComplexMesh1));
       testUpdating (MeshFactory.createSphericalPolyline (8.0, 12, 12));
       testUpdating (MeshFactory.createRandomPointMesh (200, 5));
+
+      testRebuilding (MeshFactory.createBox (1.0, 1.0, 4.0, Point3d.ZERO, 4, 4, 16));
+      testRebuilding (MeshFactory.createRandomPointMesh (200, 5));
+
+      testParallelBuild (MeshFactory.createSphere (1.0, 24));
+      testParallelBuild (new PolygonalMesh (myComplexMesh1));
    }
 
    public static void main (String[] args) {
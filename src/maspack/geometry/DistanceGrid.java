@@ -23,6 +23,7 @@ import maspack.matrix.Vector3i;
 import maspack.matrix.VectorTransformer3d;
 import maspack.geometry.DistanceGridSurfCalc.*;
 import maspack.geometry.BVFeatureQuery.*;
+import maspack.concurrency.WorkerPool;
 import maspack.util.InternalErrorException;
 import maspack.util.*;
 
@@ -125,6 +126,7 @@ import maspack.util.*;
 public class DistanceGrid extends ScalarGridBase {
 
    protected Vector3d[] myNormals;      // normal values at each vertex
+   protected boolean myAllNormalsComputed; // true if myNormals is complete
    protected double[][] myQuadCoefs;    // quad tet interpolation coefficients 
    protected TetDesc[] myTets;          // quad tet interpolation coefficients 
    protected boolean[] myTetIsOutside;  // indicates "outside" tets
@@ -450,6 +452,7 @@ public class DistanceGrid extends ScalarGridBase {
    protected void initVertexValues (int numv) {
       super.initVertexValues (numv);
       myNormals = new Vector3d[numv];
+      myAllNormalsComputed = false;
    }
 
    protected void updateGridToLocal () {
@@ -488,6 +491,8 @@ public class DistanceGrid extends ScalarGridBase {
       else {
          myNormals = null;
       }
+      myAllNormalsComputed = grid.myAllNormalsComputed;
+      myMinSortedQuerySize = grid.myMinSortedQuerySize;
       
       myQuadCoefs = null;    // will be recomputed on demand
       myTetIsOutside = null; // will be recomputed on demand
@@ -534,6 +539,30 @@ public class DistanceGrid extends ScalarGridBase {
       for (int i=0; i<myNormals.length; i++) {
          myNormals[i] = null;
       }
+      myAllNormalsComputed = false;
+   }
+
+   /**
+    * Computes the normals at all the grid vertices. These are otherwise
+    * computed lazily when first needed by a distance query, which modifies
+    * the grid. Distance and normal queries may therefore be made
+    * concurrently from different threads only after this method has been
+    * called, and only until the grid's distance values are next changed.
+    * Calling this method again before then does nothing.
+    */
+   public void computeAllNormals() {
+      if (!myAllNormalsComputed) {
+         for (int zk=0; zk<myNz; zk++) {
+            for (int yj=0; yj<myNy; yj++) {
+               for (int xi=0; xi<myNx; xi++) {
+                  if (myNormals[xyzIndicesToVertex (xi, yj, zk)] == null) {
+                     calcNormal (xi, yj, zk);
+                  }
+               }
+            }
+         }
+         myAllNormalsComputed = true;
+      }
    }
 
    private final double sqr (double x) {
@@ -1513,6 +1542,355 @@ public class DistanceGrid extends ScalarGridBase {
       return d;
    }
 
+   protected int myMinSortedQuerySize = Integer.MAX_VALUE;
+
+   /**
+    * Scratch storage for the batched distance queries, which is grown as
+    * needed and reused across calls.
+    */
+   private static class QueryWorkspace {
+      double[] myAb = new double[12];
+      Vector3d myCol = new Vector3d();
+      int[] myCells = new int[0];
+      double[] myCoords = new double[0];
+      int[] myOrder = new int[0];
+      long[] myKeys = new long[0];
+
+      void ensureCapacity (int npnts) {
+         if (myCells.length < npnts) {
+            myCells = new int[npnts];
+            myCoords = new double[3*npnts];
+            myOrder = new int[npnts];
+            myKeys = new long[npnts];
+         }
+      }
+   }
+
+   // per-thread query workspaces, since queries may be made concurrently
+   private static final ThreadLocal<QueryWorkspace> myQueryWorkspace =
+      ThreadLocal.withInitial (() -> new QueryWorkspace());
+
+   /**
+    * Sets the minimum number of points for which batched queries are sorted
+    * by grid cell before being evaluated. Sorting improves memory locality
+    * only when the grid is much larger than the processor cache and the
+    * query points are incoherent, and otherwise costs more than it saves,
+    * so by default it is disabled, with the size set to {@link
+    * Integer#MAX_VALUE}. See {@link #getLocalDistancesAndNormals}.
+    *
+    * @param size minimum number of points for sorting queries
+    */
+   public void setMinSortedQuerySize (int size) {
+      myMinSortedQuerySize = size;
+   }
+
+   /**
+    * Returns the minimum number of points for which batched queries are
+    * sorted by grid cell. See {@link #setMinSortedQuerySize}.
+    *
+    * @return minimum number of points for sorting queries
+    */
+   public int getMinSortedQuerySize() {
+      return myMinSortedQuerySize;
+   }
+
+   /**
+    * Batched version of {@link #getLocalDistanceAndNormal(Vector3d,Point3d)},
+    * which computes the distances and normals for a set of points supplied
+    * as a packed coordinate array. The transform from the points to grid
+    * coordinates is computed only once, and if the number of points is
+    * <code>&gt;=</code> {@link #getMinSortedQuerySize}, the queries are
+    * evaluated in order of grid cell, to improve memory locality. If
+    * <code>workers</code> is non-<code>null</code>, the queries are
+    * evaluated in parallel. Results are identical in all cases.
+    *
+    * <p>Like the other distance queries, this method may compute vertex
+    * normals and store them in the grid. It should therefore not be called
+    * from several threads at once, unless {@link #computeAllNormals} has
+    * been called first.
+    *
+    * @param dists returns the distance for each point, or {@link
+    * #OUTSIDE_GRID} if the point is outside the grid. Must have length
+    * <code>&gt;= npnts</code>.
+    * @param nrms if non-<code>null</code>, returns the normal for each point
+    * (local coordinates), packed as x, y, z triples. Normals are not set for
+    * points outside the grid. Must have length <code>&gt;= 3*npnts</code>.
+    * @param pnts point coordinates, packed as x, y, z triples
+    * @param npnts number of points
+    * @param TPL if non-<code>null</code>, gives the transform from the
+    * coordinate frame of the points to local coordinates. Otherwise,
+    * points are assumed to be in local coordinates.
+    * @param workers if non-<code>null</code>, worker pool used to
+    * evaluate the queries in parallel
+    * @return number of points that are inside the grid
+    */
+   public int getLocalDistancesAndNormals (
+      double[] dists, double[] nrms, double[] pnts, int npnts,
+      RigidTransform3d TPL, WorkerPool workers) {
+
+      // affine map A, b from point coordinates to grid coordinates,
+      // stored in row-major order as a 3 x 4 matrix [ A b ]
+      QueryWorkspace work = myQueryWorkspace.get();
+      double[] Ab = work.myAb;
+      Vector3d col = work.myCol;
+      for (int j=0; j<4; j++) {
+         if (j < 3) {
+            col.setZero();
+            col.set (j, 1.0);
+            if (TPL != null) {
+               col.transform (TPL.R);
+            }
+            myGridToLocal.inverseTransformVec (col, col);
+         }
+         else {
+            col.setZero();
+            if (TPL != null) {
+               col.set (TPL.p);
+            }
+            myGridToLocal.inverseTransformPnt (col, col);
+         }
+         Ab[j] = col.x;
+         Ab[4+j] = col.y;
+         Ab[8+j] = col.z;
+      }
+      return queryDistancesAndNormals (
+         dists, nrms, pnts, npnts, Ab, work, workers);
+   }
+
+   /**
+    * Batched version of {@link #getWorldDistanceAndNormal(Vector3d,Point3d)},
+    * which computes the distances and normals for a set of points supplied
+    * as a packed coordinate array. Queries are evaluated as described for
+    * {@link #getLocalDistancesAndNormals}.
+    *
+    * @param dists returns the distance for each point, or {@link
+    * #OUTSIDE_GRID} if the point is outside the grid. Must have length
+    * <code>&gt;= npnts</code>.
+    * @param nrms if non-<code>null</code>, returns the normal for each point
+    * (world coordinates), packed as x, y, z triples. Normals are not set for
+    * points outside the grid. Must have length <code>&gt;= 3*npnts</code>.
+    * @param pnts point coordinates (world coordinates), packed as x, y, z
+    * triples
+    * @param npnts number of points
+    * @param workers if non-<code>null</code>, worker pool used to
+    * evaluate the queries in parallel
+    * @return number of points that are inside the grid
+    */
+   public int getWorldDistancesAndNormals (
+      double[] dists, double[] nrms, double[] pnts, int npnts,
+      WorkerPool workers) {
+
+      RigidTransform3d TPL = null;
+      if (myHasLocalToWorld) {
+         TPL = new RigidTransform3d();
+         TPL.invert (myTLocalToWorld);
+      }
+      int ninside =
+         getLocalDistancesAndNormals (dists, nrms, pnts, npnts, TPL, workers);
+      if (nrms != null && myHasLocalToWorld) {
+         Vector3d nrm = new Vector3d();
+         for (int i=0; i<npnts; i++) {
+            if (dists[i] != OUTSIDE_GRID) {
+               nrm.set (nrms[3*i], nrms[3*i+1], nrms[3*i+2]);
+               myLocalToWorld.transformCovec (nrm, nrm);
+               nrms[3*i  ] = nrm.x;
+               nrms[3*i+1] = nrm.y;
+               nrms[3*i+2] = nrm.z;
+            }
+         }
+      }
+      return ninside;
+   }
+
+   /**
+    * Implements the batched distance and normal queries, given the affine
+    * map <code>Ab</code> from point coordinates to grid coordinates.
+    */
+   private int queryDistancesAndNormals (
+      double[] dists, double[] nrms, double[] pnts, int npnts,
+      double[] Ab, QueryWorkspace work, WorkerPool workers) {
+
+      if (dists.length < npnts) {
+         throw new IllegalArgumentException (
+            "dists has length "+dists.length+"; must be >= "+npnts);
+      }
+      if (pnts.length < 3*npnts) {
+         throw new IllegalArgumentException (
+            "pnts has length "+pnts.length+"; must be >= "+3*npnts);
+      }
+      if (nrms != null && nrms.length < 3*npnts) {
+         throw new IllegalArgumentException (
+            "nrms has length "+nrms.length+"; must be >= "+3*npnts);
+      }
+      // compute the base vertex of the cell containing each point, along
+      // with the point's coordinates within the cell
+      work.ensureCapacity (npnts);
+      int[] cells = work.myCells;
+      double[] coords = work.myCoords;
+      int ninside = 0;
+      for (int i=0; i<npnts; i++) {
+         double px = pnts[3*i];
+         double py = pnts[3*i+1];
+         double pz = pnts[3*i+2];
+         double gx = Ab[0]*px + Ab[1]*py + Ab[2]*pz + Ab[3];
+         double gy = Ab[4]*px + Ab[5]*py + Ab[6]*pz + Ab[7];
+         double gz = Ab[8]*px + Ab[9]*py + Ab[10]*pz + Ab[11];
+         if (gx < 0 || gx > myNx-1 ||
+             gy < 0 || gy > myNy-1 ||
+             gz < 0 || gz > myNz-1) {
+            cells[i] = -1;
+            dists[i] = OUTSIDE_GRID;
+            continue;
+         }
+         int xi = Math.min ((int)gx, myNx-2);
+         int yj = Math.min ((int)gy, myNy-2);
+         int zk = Math.min ((int)gz, myNz-2);
+         coords[3*i  ] = gx-xi;
+         coords[3*i+1] = gy-yj;
+         coords[3*i+2] = gz-zk;
+         cells[i] = xyzIndicesToVertex (xi, yj, zk);
+         ninside++;
+      }
+      // order the inside points by cell
+      int[] order = work.myOrder;
+      if (ninside >= myMinSortedQuerySize) {
+         long[] keys = work.myKeys;
+         int k = 0;
+         for (int i=0; i<npnts; i++) {
+            if (cells[i] != -1) {
+               keys[k++] = ((long)cells[i] << 32) | i;
+            }
+         }
+         Arrays.sort (keys, 0, ninside);
+         for (k=0; k<ninside; k++) {
+            order[k] = (int)keys[k];
+         }
+      }
+      else {
+         int k = 0;
+         for (int i=0; i<npnts; i++) {
+            if (cells[i] != -1) {
+               order[k++] = i;
+            }
+         }
+      }
+      if (workers != null && workers.numThreads() > 1) {
+         if (nrms != null) {
+            // vertex normals are computed lazily, so compute the ones that
+            // are needed beforehand
+            int lastCell = -1;
+            for (int k=0; k<ninside; k++) {
+               int cell = cells[order[k]];
+               if (cell != lastCell) {
+                  computeCellNormals (cell);
+                  lastCell = cell;
+               }
+            }
+         }
+         workers.forEachRange (ninside, (tidx, start, end) -> {
+            evaluateQueries (
+               dists, nrms, cells, coords, order, start, end);
+         });
+      }
+      else {
+         evaluateQueries (dists, nrms, cells, coords, order, 0, ninside);
+      }
+      return ninside;
+   }
+
+   /**
+    * Ensures that the normals for all the vertices of a cell have been
+    * computed.
+    */
+   private void computeCellNormals (int vi) {
+      for (int k=0; k<8; k++) {
+         int v = vi + ((k&1) != 0 ? 1 : 0) + ((k&2) != 0 ? myNx : 0) +
+            ((k&4) != 0 ? myNxNy : 0);
+         if (myNormals[v] == null) {
+            Vector3i vxyz = vertexToXyzIndices (new Vector3i(), v);
+            calcNormal (vxyz.x, vxyz.y, vxyz.z);
+         }
+      }
+   }
+
+   private Vector3d getLocalVertexNormal (int vi) {
+      Vector3d nrm = myNormals[vi];
+      if (nrm == null) {
+         Vector3i vxyz = vertexToXyzIndices (new Vector3i(), vi);
+         nrm = calcNormal (vxyz.x, vxyz.y, vxyz.z);
+      }
+      return nrm;
+   }
+
+   /**
+    * Evaluates the distances and normals for the queries given by
+    * <code>order[start]</code> to <code>order[end-1]</code>, using the same
+    * interpolation as {@link #getLocalDistanceAndNormal}.
+    */
+   private void evaluateQueries (
+      double[] dists, double[] nrms, int[] cells, double[] coords,
+      int[] order, int start, int end) {
+
+      double[] vals = myValues;
+      int nx = myNx;
+      int nxny = myNxNy;
+      for (int k=start; k<end; k++) {
+         int i = order[k];
+         int v000 = cells[i];
+         int v100 = v000+1;
+         int v010 = v000+nx;
+         int v110 = v010+1;
+         int v001 = v000+nxny;
+         int v101 = v001+1;
+         int v011 = v001+nx;
+         int v111 = v011+1;
+
+         double dx = coords[3*i];
+         double dy = coords[3*i+1];
+         double dz = coords[3*i+2];
+
+         double w001z = (1-dx)*(1-dy);
+         double w011z = (1-dx)*dy;
+         double w101z = dx*(1-dy);
+         double w111z = dx*dy;
+
+         double w000  = w001z*(1-dz);
+         double w001  = w001z*dz;
+         double w010  = w011z*(1-dz);
+         double w011  = w011z*dz;
+         double w100  = w101z*(1-dz);
+         double w101  = w101z*dz;
+         double w110  = w111z*(1-dz);
+         double w111  = w111z*dz;
+
+         dists[i] =
+            w000*vals[v000] + w001*vals[v001] +
+            w010*vals[v010] + w011*vals[v011] +
+            w100*vals[v100] + w101*vals[v101] +
+            w110*vals[v110] + w111*vals[v111];
+
+         if (nrms != null) {
+            Vector3d n000 = getLocalVertexNormal (v000);
+            Vector3d n001 = getLocalVertexNormal (v001);
+            Vector3d n010 = getLocalVertexNormal (v010);
+            Vector3d n011 = getLocalVertexNormal (v011);
+            Vector3d n100 = getLocalVertexNormal (v100);
+            Vector3d n101 = getLocalVertexNormal (v101);
+            Vector3d n110 = getLocalVertexNormal (v110);
+            Vector3d n111 = getLocalVertexNormal (v111);
+            nrms[3*i] =
+               w000*n000.x + w001*n001.x + w010*n010.x + w011*n011.x +
+               w100*n100.x + w101*n101.x + w110*n110.x + w111*n111.x;
+            nrms[3*i+1] =
+               w000*n000.y + w001*n001.y + w010*n010.y + w011*n011.y +
+               w100*n100.y + w101*n101.y + w110*n110.y + w111*n111.y;
+            nrms[3*i+2] =
+               w000*n000.z + w001*n001.z + w010*n010.z + w011*n011.z +
+               w100*n100.z + w101*n101.z + w110*n110.z + w111*n111.z;
+         }
+      }
+   }
+
    /** 
     * Calculates the distance and normal at an arbitrary point in local
     * coordinates using multilinear interpolation, as described for {@link
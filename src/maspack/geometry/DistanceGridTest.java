@@ -5,6 +5,7 @@ import java.io.*;
 import maspack.matrix.*;
 import maspack.util.*;
 import maspack.geometry.DistanceGrid.*;
+import maspack.concurrency.WorkerPool;
 
 public class DistanceGridTest extends UnitTest {
 
@@ -511,9 +512,144 @@ public class DistanceGridTest extends UnitTest {
 
    }
 
+   private void checkBatchQueries (
+      DistanceGrid grid, Point3d[] pnts, RigidTransform3d TPL,
+      boolean world, WorkerPool workers) {
+
+      int npnts = pnts.length;
+      double[] coords = new double[3*npnts];
+      for (int i=0; i<npnts; i++) {
+         coords[3*i  ] = pnts[i].x;
+         coords[3*i+1] = pnts[i].y;
+         coords[3*i+2] = pnts[i].z;
+      }
+      double[] dists = new double[npnts];
+      double[] nrms = new double[3*npnts];
+      int ninside;
+      if (world) {
+         ninside = grid.getWorldDistancesAndNormals (
+            dists, nrms, coords, npnts, workers);
+      }
+      else {
+         ninside = grid.getLocalDistancesAndNormals (
+            dists, nrms, coords, npnts, TPL, workers);
+      }
+      int ninsideChk = 0;
+      Vector3d nrm = new Vector3d();
+      Vector3d nrmChk = new Vector3d();
+      Point3d q = new Point3d();
+      for (int i=0; i<npnts; i++) {
+         double dchk;
+         if (world) {
+            dchk = grid.getWorldDistanceAndNormal (nrmChk, pnts[i]);
+         }
+         else {
+            q.set (pnts[i]);
+            if (TPL != null) {
+               q.transform (TPL);
+            }
+            dchk = grid.getLocalDistanceAndNormal (nrmChk, q);
+         }
+         if (dchk == DistanceGrid.OUTSIDE_GRID) {
+            if (dists[i] != DistanceGrid.OUTSIDE_GRID) {
+               throw new TestException (
+                  "batch query "+i+" inside grid, expected outside");
+            }
+         }
+         else {
+            ninsideChk++;
+            checkEquals ("batch query distance "+i, dists[i], dchk, 1e-12);
+            nrm.set (nrms[3*i], nrms[3*i+1], nrms[3*i+2]);
+            checkEquals ("batch query normal "+i, nrm, nrmChk, 1e-12);
+         }
+      }
+      if (ninside != ninsideChk) {
+         throw new TestException (
+            "batch query found "+ninside+" points inside, expected "+
+            ninsideChk);
+      }
+      // distances should be the same if normals are not requested
+      double[] distsOnly = new double[npnts];
+      if (world) {
+         grid.getWorldDistancesAndNormals (
+            distsOnly, null, coords, npnts, workers);
+      }
+      else {
+         grid.getLocalDistancesAndNormals (
+            distsOnly, null, coords, npnts, TPL, workers);
+      }
+      for (int i=0; i<npnts; i++) {
+         if (distsOnly[i] != dists[i]) {
+            throw new TestException (
+               "batch query "+i+" without normals gives different distance");
+         }
+      }
+   }
+
+   /**
+    * Tests the batched distance and normal queries against the single point
+    * queries, for a grid containing the distances to a sphere.
+    */
+   public void testBatchQueries() {
+      double rad = 0.7;
+      Vector3d widths = new Vector3d (2.0, 2.5, 1.8);
+      Vector3i resolution = new Vector3i (10, 14, 8);
+      RigidTransform3d TGL = new RigidTransform3d();
+      RigidTransform3d TLW = new RigidTransform3d();
+      RigidTransform3d TPL = new RigidTransform3d();
+      TGL.setRandom();
+      TLW.setRandom();
+      TPL.setRandom();
+
+      DistanceGrid grid = new DistanceGrid (widths, resolution, TGL);
+      double[] dists = new double[grid.numVertices()];
+      Vector3d pos = new Vector3d();
+      for (int vi=0; vi<dists.length; vi++) {
+         grid.getLocalVertexCoords (pos, vi);
+         dists[vi] = pos.norm()-rad;
+      }
+      grid.setVertexDistances (dists, /*signed=*/true);
+      grid.setLocalToWorld (TLW);
+
+      // random points, some of which lie outside the grid
+      int npnts = 2000;
+      Point3d[] pnts = new Point3d[npnts];
+      for (int i=0; i<npnts; i++) {
+         pnts[i] = new Point3d();
+         pnts[i].setRandom();
+         pnts[i].scale (1.5);
+      }
+      WorkerPool workers = new WorkerPool ("distanceGridTest", 4);
+      try {
+         for (int minSize : new int[] { 0, npnts+1 }) {
+            grid.setMinSortedQuerySize (minSize);
+            for (WorkerPool w : new WorkerPool[] { null, workers }) {
+               // resetting the distances clears the cached normals
+               grid.setVertexDistances (dists, /*signed=*/true);
+               checkBatchQueries (grid, pnts, null, false, w);
+               checkBatchQueries (grid, pnts, TPL, false, w);
+               checkBatchQueries (grid, pnts, null, true, w);
+            }
+         }
+         // once all normals are computed, several threads can query the
+         // grid at once
+         grid.setVertexDistances (dists, /*signed=*/true);
+         grid.computeAllNormals();
+         workers.forEachIndex (4, (tidx, idx) -> {
+            checkBatchQueries (grid, pnts, TPL, idx%2 == 0, null);
+         });
+      }
+      finally {
+         workers.shutdown();
+      }
+   }
+
    public void test() {
       double EPS = 1e-14;
 
+      testBatchQueries();
+
+
       PolygonalMesh torus = MeshFactory.createTorus (1.0, 0.5, 24, 24);
       PolygonalMesh torusT = torus.copy();
 
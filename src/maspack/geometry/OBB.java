@@ -101,6 +101,11 @@ public class OBB extends BVNode {
       center.set (myX.p);
    }
 
+   public double getSurfaceArea() {
+      Vector3d hw = myHalfWidths;
+      return 8*(hw.x*hw.y + hw.y*hw.z + hw.z*hw.x);
+   }
+
    /**
     * Sets the widths for this OBB. These are the extents of the OBB along each
     * of its principal axes.
@@ -431,8 +436,12 @@ public class OBB extends BVNode {
 
    private void computeBoundsFromElements (
       Point3d min, Point3d max, Boundable[] elems, int num) {
+      computeBoundsFromElements (min, max, elems, num, new Point3d());
+   }
+
+   private void computeBoundsFromElements (
+      Point3d min, Point3d max, Boundable[] elems, int num, Point3d xpnt) {
 
-      Vector3d xpnt = new Point3d();
       for (int i=0; i<num; i++) {
          Boundable elem = elems[i];
          int n = elem.numPoints();
@@ -903,6 +912,50 @@ public class OBB extends BVNode {
       return modified;
    }
 
+   /**
+    * Refits this OBB so that it tightly bounds either its elements, if it is
+    * a leaf, or else the OBBs of its children. The orientation of the box is
+    * left unchanged, while its center and half-widths are recomputed. Unlike
+    * {@link #update}, this can shrink the box as well as enlarge it.
+    *
+    * @param margin extra space margin
+    * @param min workspace for computing the minimum bounds
+    * @param max workspace for computing the maximum bounds
+    * @param xpnt workspace for transforming points
+    */
+   void refit (double margin, Point3d min, Point3d max, Point3d xpnt) {
+      min.set (INF, INF, INF);
+      max.set (-INF, -INF, -INF);
+      if (isLeaf()) {
+         computeBoundsFromElements (
+            min, max, myElements, myElements.length, xpnt);
+      }
+      else {
+         for (BVNode node=myFirstChild; node!=null; node=node.myNext) {
+            OBB child = (OBB)node;
+            Vector3d hw = child.myHalfWidths;
+            for (int k=0; k<8; k++) {
+               xpnt.set (
+                  (k&1) != 0 ? hw.x : -hw.x,
+                  (k&2) != 0 ? hw.y : -hw.y,
+                  (k&4) != 0 ? hw.z : -hw.z);
+               xpnt.transform (child.myX);
+               xpnt.inverseTransform (myX);
+               xpnt.updateBounds (min, max);
+            }
+         }
+         margin = 0;
+      }
+      myHalfWidths.sub (max, min);
+      myHalfWidths.scale (0.5);
+      myHalfWidths.add (margin, margin, margin);
+      // use xpnt to compute the center correction
+      xpnt.add (max, min);
+      xpnt.scale (0.5);
+      xpnt.transform (myX.R);
+      myX.p.add (xpnt);
+   }
+
    public boolean isContained (Boundable[] boundables, double tol) {
       Vector3d hw = new Vector3d();
       double eps = myHalfWidths.norm()*EPS;
@@ -30,6 +30,10 @@ public class OBBTree extends BVTree {
 
    private Point3d meanCentroid = new Point3d();
    private Point3d tmpPnt = new Point3d();
+   // workspace for refit()
+   private Point3d myRefitMin = new Point3d();
+   private Point3d myRefitMax = new Point3d();
+   private Point3d myRefitPnt = new Point3d();
    private Vector3d[] obbAxes = new Vector3d[3];
 
    public static int myDefaultMaxLeafElems = 2;
@@ -58,6 +62,10 @@ public class OBBTree extends BVTree {
       return root;
    }
 
+   protected void setRoot (BVNode node) {
+      root = (OBB)node;
+   }
+
    // DBG
    public boolean debug = false;
 
@@ -130,6 +138,18 @@ public class OBBTree extends BVTree {
          elemData[i] = edata;
       }
       root = computeOBBNode (elemData, num, null);
+      if (myRebuildRatio > 0) {
+         initializeSAHReferences (root);
+      }
+   }
+
+   protected OBB buildSubtree (Boundable[] elems, int num) {
+      ElemData[] edata = new ElemData[num];
+      for (int i = 0; i < num; i++) {
+         edata[i] = new ElemData (elems[i], i);
+         elems[i].computeCentroid (edata[i].myCentroid);
+      }
+      return computeOBBNode (edata, num, null);
    }
 
    private OBB computeOBBNode (
@@ -263,8 +283,53 @@ public class OBBTree extends BVTree {
       }
    }
 
+   protected void refitRecursively (OBB node) {
+      OBB child = (OBB)node.myFirstChild;
+      while (child != null) {
+         refitRecursively (child);
+         child = (OBB)child.getNext();
+      }
+      node.refit (myMargin, myRefitMin, myRefitMax, myRefitPnt);
+   }
+
+   /**
+    * Updates the boxes of this tree so that they contain their enclosed
+    * elements. Boxes are only enlarged, never shrunk; use {@link #refit} to
+    * also shrink them. If a rebuild ratio has been set, subtrees whose
+    * quality has degraded are then rebuilt, as described for {@link
+    * #setRebuildRatio}.
+    */
    public void update() {
       updateRecursively (getRoot());
+      ArrayList<BVNode> rebuilt = rebuildDegradedSubtrees();
+      if (rebuilt != null) {
+         // the orientations of the rebuilt subtrees have changed, so
+         // their ancestors must be enlarged to contain them
+         updateRecursively (getRoot());
+         for (BVNode node : rebuilt) {
+            initializeSAHReferences (node);
+         }
+      }
+   }
+
+   /**
+    * Refits the boxes of this tree, from the bottom up, so that they tightly
+    * contain their enclosed elements, while keeping their orientations
+    * fixed. Unlike {@link #update}, this can shrink boxes as well as enlarge
+    * them. If a rebuild ratio has been set, subtrees whose quality has
+    * degraded are then rebuilt, as described for {@link #setRebuildRatio}.
+    */
+   public void refit() {
+      refitRecursively (getRoot());
+      ArrayList<BVNode> rebuilt = rebuildDegradedSubtrees();
+      if (rebuilt != null) {
+         // the orientations of the rebuilt subtrees have changed, so
+         // their ancestors must be refit
+         refitRecursively (getRoot());
+         for (BVNode node : rebuilt) {
+            initializeSAHReferences (node);
+         }
+      }
    }
 
 }
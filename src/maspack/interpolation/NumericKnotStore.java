@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.interpolation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compact storage for the knots of a {@link NumericList}, in which knot times
+ * and values are stored in primitive arrays rather than as individual
+ * {@link NumericListKnot} objects. Knot times are kept in a single array,
+ * while knot values are kept in fixed-size blocks, each containing the
+ * values for a fixed number of consecutive knots. Blocks can either be
+ * allocated on the heap, or memory-mapped to a file, in which case the
+ * heap usage is limited to the time values.
+ *
+ * <p>Knots can only be added in order of increasing time. Adding a knot
+ * whose time is not greater than that of the last knot first removes all
+ * knots whose times are greater than or equal to it, as happens when a
+ * simulation is rewound and then resumed.
+ */
+public class NumericKnotStore {
+
+   // maximum number of bytes in a single block
+   private static final int MAX_BLOCK_BYTES = (1 << 27);
+
+   private int myVsize;
+   private int myBlockSize; // number of knots per block
+   private int myNumKnots;
+   private double[] myTimes = new double[0];
+
+   // heap storage for knot values
+   private double[][] myBlocks = new double[0][];
+
+   // mapped storage for knot values
+   private File myFile;
+   private RandomAccessFile myRaf;
+   private FileChannel myChannel;
+   private DoubleBuffer[] myMappedBlocks = new DoubleBuffer[0];
+   private int myNumBlocks;
+
+   private boolean myMinMaxValid = true;
+   private double myMinValue = Double.POSITIVE_INFINITY;
+   private double myMaxValue = Double.NEGATIVE_INFINITY;
+
+   /**
+    * Creates a new NumericKnotStore, for vectors of a specified size, whose
+    * values are stored on the heap.
+    *
+    * @param vsize size of the knot vectors
+    */
+   public NumericKnotStore (int vsize) {
+      if (vsize < 0) {
+         throw new IllegalArgumentException ("vsize must be non-negative");
+      }
+      myVsize = vsize;
+      myBlockSize = Math.max (1, Math.min (1024, MAX_BLOCK_BYTES/(8*vsize+1)));
+   }
+
+   /**
+    * Creates a new NumericKnotStore, for vectors of a specified size, whose
+    * values are stored in memory-mapped blocks of a file. Any existing
+    * contents of the file are overwritten.
+    *
+    * @param vsize size of the knot vectors
+    * @param file file used to store the knot values
+    * @throws IOException if the file cannot be opened
+    */
+   public NumericKnotStore (int vsize, File file) throws IOException {
+      this (vsize);
+      myFile = file;
+      myRaf = new RandomAccessFile (file, "rw");
+      myRaf.setLength (0);
+      myChannel = myRaf.getChannel();
+   }
+
+   /**
+    * Returns the size of the knot vectors.
+    *
+    * @return knot vector size
+    */
+   public int getVectorSize() {
+      return myVsize;
+   }
+
+   /**
+    * Queries whether the knot values are stored in a memory-mapped file.
+    *
+    * @return {@code true} if the values are memory-mapped
+    */
+   public boolean isMapped() {
+      return myChannel != null;
+   }
+
+   /**
+    * Returns the file used to store the knot values, or {@code null} if the
+    * values are stored on the heap.
+    *
+    * @return file storing the knot values
+    */
+   public File getFile() {
+      return myFile;
+   }
+
+   /**
+    * Returns the number of knots in this store.
+    *
+    * @return number of knots
+    */
+   public int numKnots() {
+      return myNumKnots;
+   }
+
+   /**
+    * Returns the time of a specified knot.
+    *
+    * @param idx knot index
+    * @return time of the knot
+    */
+   public double getTime (int idx) {
+      if (idx < 0 || idx >= myNumKnots) {
+         throw new IndexOutOfBoundsException (
+            "index "+idx+" not in the range [0,"+myNumKnots+")");
+      }
+      return myTimes[idx];
+   }
+
+   /**
+    * Returns the value of a specified knot, in <code>vals</code>, which must
+    * have a length {@code >=} {@link #getVectorSize}.
+    *
+    * @param vals returns the knot values
+    * @param idx knot index
+    */
+   public void getValues (double[] vals, int idx) {
+      if (idx < 0 || idx >= myNumKnots) {
+         throw new IndexOutOfBoundsException (
+            "index "+idx+" not in the range [0,"+myNumKnots+")");
+      }
+      int bi = idx/myBlockSize;
+      int off = (idx%myBlockSize)*myVsize;
+      if (myChannel != null) {
+         DoubleBuffer buf = myMappedBlocks[bi].duplicate();
+         buf.position (off);
+         buf.get (vals, 0, myVsize);
+      }
+      else {
+         System.arraycopy (myBlocks[bi], off, vals, 0, myVsize);
+      }
+   }
+
+   /**
+    * Returns the index of the last knot whose time is less than or equal to
+    * <code>t</code>, or -1 if there is no such knot. This uses a binary
+    * search and so requires O(log n) time.
+    *
+    * @param t time to search for
+    * @return index of the last knot at or before <code>t</code>
+    */
+   public int findKnotAtOrBefore (double t) {
+      int lo = 0;
+      int hi = myNumKnots-1;
+      while (lo <= hi) {
+         int mid = (lo+hi) >>> 1;
+         if (myTimes[mid] <= t) {
+            lo = mid+1;
+         }
+         else {
+            hi = mid-1;
+         }
+      }
+      return hi;
+   }
+
+   private void addBlock() throws IOException {
+      int nvals = myBlockSize*myVsize;
+      if (myChannel != null) {
+         if (myNumBlocks == myMappedBlocks.length) {
+            myMappedBlocks = Arrays.copyOf (
+               myMappedBlocks, Math.max (16, 2*myNumBlocks));
+         }
+         long nbytes = 8L*nvals;
+         myMappedBlocks[myNumBlocks] = myChannel.map (
+            FileChannel.MapMode.READ_WRITE, myNumBlocks*nbytes, nbytes)
+            .order (ByteOrder.nativeOrder()).asDoubleBuffer();
+      }
+      else {
+         if (myNumBlocks == myBlocks.length) {
+            myBlocks = Arrays.copyOf (myBlocks, Math.max (16, 2*myNumBlocks));
+         }
+         myBlocks[myNumBlocks] = new double[nvals];
+      }
+      myNumBlocks++;
+   }
+
+   /**
+    * Adds a knot with a specified time and values to the end of this store.
+    * If the store contains knots whose times are greater than or equal to
+    * <code>t</code>, these are removed first.
+    *
+    * @param t time of the new knot
+    * @param vals values for the new knot. Must have a length {@code >=}
+    * {@link #getVectorSize}.
+    */
+   public void add (double t, double[] vals) {
+      if (myNumKnots > 0 && t <= myTimes[myNumKnots-1]) {
+         int idx = findKnotAtOrBefore (t);
+         if (idx >= 0 && myTimes[idx] == t) {
+            idx--;
+         }
+         truncate (idx+1);
+      }
+      int idx = myNumKnots;
+      int bi = idx/myBlockSize;
+      int off = (idx%myBlockSize)*myVsize;
+      if (bi == myNumBlocks) {
+         try {
+            addBlock();
+         }
+         catch (IOException e) {
+            throw new IllegalStateException (
+               "Can't map knot storage file "+myFile+": "+e.getMessage(), e);
+         }
+      }
+      if (myChannel != null) {
+         DoubleBuffer buf = myMappedBlocks[bi].duplicate();
+         buf.position (off);
+         buf.put (vals, 0, myVsize);
+      }
+      else {
+         System.arraycopy (vals, 0, myBlocks[bi], off, myVsize);
+      }
+      if (idx == myTimes.length) {
+         myTimes = Arrays.copyOf (myTimes, Math.max (1024, 2*idx));
+      }
+      myTimes[idx] = t;
+      myNumKnots++;
+      if (myMinMaxValid) {
+         updateMinMaxValues (vals);
+      }
+   }
+
+   private void updateMinMaxValues (double[] vals) {
+      for (int j=0; j<myVsize; j++) {
+         double x = vals[j];
+         if (x > myMaxValue) {
+            myMaxValue = x;
+         }
+         if (x < myMinValue) {
+            myMinValue = x;
+         }
+      }
+   }
+
+   /**
+    * Returns the minimum and maximum values over all knots in this store.
+    * If the store is empty, the minimum and maximum are returned as positive
+    * and negative infinity.
+    *
+    * @param minMax returns the minimum and maximum values
+    */
+   public void getMinMaxValues (double[] minMax) {
+      if (!myMinMaxValid) {
+         myMinValue = Double.POSITIVE_INFINITY;
+         myMaxValue = Double.NEGATIVE_INFINITY;
+         double[] vals = new double[myVsize];
+         for (int i=0; i<myNumKnots; i++) {
+            getValues (vals, i);
+            updateMinMaxValues (vals);
+         }
+         myMinMaxValid = true;
+      }
+      minMax[0] = myMinValue;
+      minMax[1] = myMaxValue;
+   }
+
+   /**
+    * Reduces the number of knots in this store to <code>num</code>, removing
+    * any knots beyond that. Blocks that are no longer needed are released
+    * (for heap storage).
+    *
+    * @param num new number of knots
+    */
+   public void truncate (int num) {
+      if (num < 0) {
+         num = 0;
+      }
+      if (num < myNumKnots) {
+         myNumKnots = num;
+         myMinMaxValid = false;
+         if (myChannel == null) {
+            int nblocks = (num+myBlockSize-1)/myBlockSize;
+            for (int bi=nblocks; bi<myNumBlocks; bi++) {
+               myBlocks[bi] = null;
+            }
+            myNumBlocks = nblocks;
+         }
+      }
+   }
+
+   /**
+    * Removes all knots from this store.
+    */
+   public void clear() {
+      truncate (0);
+      myMinValue = Double.POSITIVE_INFINITY;
+      myMaxValue = Double.NEGATIVE_INFINITY;
+      myMinMaxValid = true;
+   }
+
+   /**
+    * Removes all knots from this store and closes its file, if any. The
+    * store should not be used after this method is called.
+    */
+   public void dispose() {
+      clear();
+      myMappedBlocks = new DoubleBuffer[0];
+      myNumBlocks = 0;
+      if (myRaf != null) {
+         try {
+            myRaf.close();
+         }
+         catch (IOException e) {
+            // ignore
+         }
+         myRaf = null;
+         myChannel = null;
+      }
+   }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.interpolation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import maspack.interpolation.Interpolation.Order;
+import maspack.matrix.Quaternion;
+import maspack.matrix.VectorNd;
+import maspack.util.NumberFormat;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests NumericKnotStore, and NumericList when backed by one, by recording
+ * the same data into lists with and without a store and checking that
+ * interpolation, export, and other queries give identical results.
+ */
+public class NumericKnotStoreTest extends UnitTest {
+
+   private static final int VSIZE = 4;
+
+   private VectorNd randomValues() {
+      // use unit quaternions so that spherical interpolation is well defined
+      Quaternion q = new Quaternion();
+      q.setRandom();
+      q.normalize();
+      VectorNd vals = new VectorNd (VSIZE);
+      vals.set (0, q.s);
+      vals.set (1, q.u.x);
+      vals.set (2, q.u.y);
+      vals.set (3, q.u.z);
+      return vals;
+   }
+
+   /**
+    * Appends random data to both lists, including a few rewinds to an
+    * earlier time, as happens when a simulation is reset.
+    */
+   private void recordData (NumericList list, NumericList check, int nknots) {
+      double t = 0;
+      for (int i=0; i<nknots; i++) {
+         if (i > 0 && RandomGenerator.nextInt (0, 20) == 0) {
+            t -= 0.01*RandomGenerator.nextInt (0, 10);
+         }
+         else {
+            t += 0.01;
+         }
+         VectorNd vals = randomValues();
+         list.append (vals, t);
+         check.append (vals, t);
+      }
+   }
+
+   private String oldFormat (
+      NumericList list, NumberFormat fmt, NumberFormat timeFmt) {
+      // format produced by iterating over the knots directly
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter (sw);
+      for (NumericListKnot knot : list) {
+         if (timeFmt != null) {
+            pw.print (timeFmt.format (knot.t) + " ");
+         }
+         pw.println (knot.v.toString (fmt));
+      }
+      pw.close();
+      return sw.toString();
+   }
+
+   private String writeKnots (
+      NumericList list, NumberFormat fmt, NumberFormat timeFmt) {
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter (sw);
+      list.writeKnots (pw, fmt, timeFmt, " ");
+      pw.close();
+      return sw.toString();
+   }
+
+   private void checkInterpolation (NumericList list, NumericList check) {
+      VectorNd v = new VectorNd (VSIZE);
+      VectorNd vcheck = new VectorNd (VSIZE);
+      double tmax = check.getLast().t;
+      for (Order order : Order.values()) {
+         for (boolean extend : new boolean[] { false, true }) {
+            for (int k=0; k<100; k++) {
+               double t = RandomGenerator.nextDouble (-0.1, tmax+0.1);
+               if (k < check.getNumKnots()/10) {
+                  // hit knot times exactly
+                  t = 0.01*RandomGenerator.nextInt (0, (int)(100*tmax)+1);
+               }
+               list.interpolate (v, t, order, extend, null);
+               check.interpolate (vcheck, t, order, extend, null);
+               if (!v.equals (vcheck)) {
+                  throw new TestException (
+                     "Interpolation "+order+", extend="+extend+", t="+t+
+                     ": got "+v+", expected "+vcheck);
+               }
+            }
+         }
+      }
+   }
+
+   private void checkLists (NumericList list, NumericList check) {
+      checkEquals ("numKnots", list.getNumKnots(), check.getNumKnots());
+      check ("list not equal to check", list.equals (check));
+      check ("check not equal to list", check.equals (list));
+
+      double[] minMax = new double[2];
+      double[] minMaxCheck = new double[2];
+      list.getMinMaxValues (minMax);
+      check.getMinMaxValues (minMaxCheck);
+      checkEquals ("min value", minMax[0], minMaxCheck[0]);
+      checkEquals ("max value", minMax[1], minMaxCheck[1]);
+
+      double[][] vals = list.getValues();
+      double[][] valsCheck = check.getValues();
+      checkEquals ("values length", vals.length, valsCheck.length);
+      for (int i=0; i<vals.length; i++) {
+         checkEquals ("values row "+i, new VectorNd(vals[i]),
+                      new VectorNd(valsCheck[i]));
+      }
+      if (check.getNumKnots() > 0) {
+         checkInterpolation (list, check);
+      }
+      NumberFormat fmt = new NumberFormat ("%g");
+      NumberFormat timeFmt = new NumberFormat ("%9.6f");
+      String str = oldFormat (check, fmt, timeFmt);
+      checkEquals ("writeKnots", writeKnots (list, fmt, timeFmt), str);
+      checkEquals ("writeKnots, check", writeKnots (check, fmt, timeFmt), str);
+      checkEquals (
+         "writeKnots, no time", writeKnots (list, fmt, null),
+         oldFormat (check, fmt, null));
+      checkEquals ("toString", list.toString(), check.toString());
+   }
+
+   void testList (File file, int nknots) throws IOException {
+      NumericList list = new NumericList (VSIZE);
+      NumericList check = new NumericList (VSIZE);
+      NumericKnotStore store;
+      if (file != null) {
+         store = new NumericKnotStore (VSIZE, file);
+         check ("store is not mapped", store.isMapped());
+      }
+      else {
+         store = new NumericKnotStore (VSIZE);
+      }
+      list.setKnotStore (store);
+      checkLists (list, check);
+
+      recordData (list, check, nknots);
+      check ("store removed from list", list.getKnotStore() == store);
+      checkLists (list, check);
+
+      // clone should give an equivalent list with linked storage
+      try {
+         NumericList copy = (NumericList)list.clone();
+         check ("clone has a store", copy.getKnotStore() == null);
+         checkLists (copy, check);
+      }
+      catch (CloneNotSupportedException e) {
+         throw new TestException ("clone not supported");
+      }
+
+      // reset values
+      list.setValues (check.getValues());
+      check ("store removed from list", list.getKnotStore() == store);
+      checkLists (list, check);
+
+      // knot-level access moves knots back into linked storage
+      NumericListKnot last = list.getLast();
+      check ("store not removed from list", list.getKnotStore() == null);
+      checkLists (list, check);
+      if (nknots > 0) {
+         checkEquals ("last knot time", last.t, check.getLast().t);
+      }
+      // moving existing knots back into a store
+      list.setKnotStore (new NumericKnotStore (VSIZE));
+      checkLists (list, check);
+      list.clear();
+      check.clear();
+      checkLists (list, check);
+      recordData (list, check, nknots/2);
+      checkLists (list, check);
+      list.getKnotStore().dispose();
+   }
+
+   void testStore() {
+      NumericKnotStore store = new NumericKnotStore (2);
+      double[] vals = new double[2];
+      for (int i=0; i<10; i++) {
+         vals[0] = i;
+         vals[1] = -i;
+         store.add (i, vals);
+      }
+      checkEquals ("findKnotAtOrBefore(-1)", store.findKnotAtOrBefore(-1), -1);
+      checkEquals ("findKnotAtOrBefore(0)", store.findKnotAtOrBefore(0), 0);
+      checkEquals ("findKnotAtOrBefore(4.5)", store.findKnotAtOrBefore(4.5), 4);
+      checkEquals ("findKnotAtOrBefore(20)", store.findKnotAtOrBefore(20), 9);
+
+      // adding at an existing time removes it and all following knots
+      vals[0] = 100;
+      store.add (5, vals);
+      checkEquals ("numKnots", store.numKnots(), 6);
+      double[] minMax = new double[2];
+      store.getMinMaxValues (minMax);
+      checkEquals ("min value", minMax[0], -9.0);
+      checkEquals ("max value", minMax[1], 100.0);
+      store.truncate (3);
+      store.getMinMaxValues (minMax);
+      checkEquals ("min value", minMax[0], -2.0);
+      checkEquals ("max value", minMax[1], 2.0);
+      store.getValues (vals, 2);
+      checkEquals ("knot 2 values", new VectorNd(vals), new VectorNd(new double[] {2, -2}));
+   }
+
+   public void test() throws IOException {
+      testStore();
+      testList (null, 0);
+      testList (null, 500);
+      File file = File.createTempFile ("knotStoreTest", ".dat");
+      file.deleteOnExit();
+      testList (file, 500);
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      NumericKnotStoreTest tester = new NumericKnotStoreTest();
+      tester.runtest();
+   }
+}
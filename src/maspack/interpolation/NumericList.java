@@ -44,6 +44,12 @@ public class NumericList
    private VectorNd myTmp0;
    private VectorNd myTmp1;
 
+   // if non-null, knots are stored compactly here instead of in the list
+   private NumericKnotStore myStore;
+   // scratch knots used for interpolating values from myStore
+   private NumericListKnot[] myStoreKnots;
+   private double[] myStoreVals;
+
    private void allocateTmps (int size) {
       if (myTmp0 == null) {
          myTmp0 = new VectorNd (size);
@@ -98,6 +104,116 @@ public class NumericList
       return myVsize;
    }
 
+   /**
+    * Sets a compact store in which the knots of this list should be kept,
+    * instead of as individual linked {@link NumericListKnot} objects. Any
+    * existing knots are moved into the store. Knots can then be added using
+    * {@link #append}, while interpolation, export, and min/max queries
+    * operate directly on the store. Methods that require access to
+    * individual knots, such as {@link #iterator}, {@link #getFirst}, or
+    * {@link #add(NumericListKnot)}, cause the knots to be moved back into
+    * linked storage, after which the store is disposed and removed.
+    *
+    * <p>Specifying <code>store</code> as <code>null</code> moves the knots
+    * back into linked storage.
+    *
+    * @param store compact knot store, or <code>null</code>.  Must be empty
+    * and have a vector size equal to that of this list.
+    */
+   public synchronized void setKnotStore (NumericKnotStore store) {
+      if (store == myStore) {
+         return;
+      }
+      if (store != null) {
+         if (store.getVectorSize() != myVsize) {
+            throw new IllegalArgumentException (
+               "Store vector size "+store.getVectorSize()+
+               " incompatible with list vector size "+myVsize);
+         }
+         if (store.numKnots() != 0) {
+            throw new IllegalArgumentException ("Store is not empty");
+         }
+      }
+      useKnots();
+      if (store != null) {
+         double[] vals = new double[myVsize];
+         for (NumericListKnot knot=myHead; knot!=null; knot=knot.next) {
+            knot.v.get (vals);
+            store.add (knot.t, vals);
+            knot.myList = null;
+         }
+         myTail = myHead = myLast = null;
+         myMinMaxValid = false;
+         myStore = store;
+      }
+   }
+
+   /**
+    * Returns the compact store in which the knots of this list are being
+    * kept, or <code>null</code> if the knots are being kept as linked
+    * {@link NumericListKnot} objects.
+    *
+    * @return compact knot store, if any
+    * @see #setKnotStore
+    */
+   public NumericKnotStore getKnotStore() {
+      return myStore;
+   }
+
+   /**
+    * Moves knots from the compact store, if any, back into linked storage,
+    * and disposes of the store.
+    */
+   private synchronized void useKnots() {
+      if (myStore != null) {
+         NumericKnotStore store = myStore;
+         myStore = null;
+         myStoreKnots = null;
+         NumericListKnot last = null;
+         for (int i=0; i<store.numKnots(); i++) {
+            NumericListKnot knot = new NumericListKnot (myVsize);
+            knot.t = store.getTime (i);
+            store.getValues (knot.v.getBuffer(), i);
+            add (knot, last);
+            last = knot;
+         }
+         store.dispose();
+      }
+   }
+
+   /**
+    * Appends a knot with the specified values and time to the end of this
+    * list, after first removing any knots whose times are greater than or
+    * equal to <code>t</code>. This is the usual way to record data over the
+    * course of a simulation, since resetting the simulation to an earlier
+    * time also causes subsequent data to be discarded. The values are copied
+    * and so <code>vals</code> may be reused by the caller.
+    *
+    * @param vals values for the knot
+    * @param t time at which the knot should be added
+    * @throws IllegalArgumentException
+    * if <code>values</code> has a size less than the vector size for this
+    * list.
+    */
+   public synchronized void append (VectorNd vals, double t) {
+      if (vals.size() < myVsize) {
+         throw new IllegalArgumentException (
+            "Insufficient number of values specified for knot point");
+      }
+      if (myStore != null) {
+         myStore.add (t, vals.getBuffer());
+      }
+      else {
+         NumericListKnot knot = new NumericListKnot (myVsize);
+         for (int i=0; i<myVsize; i++) {
+            knot.v.set (i, vals.get (i));
+         }
+         knot.t = t;
+         add (knot);
+         clearAfter (knot);
+      }
+   }
+
    /**
     * Adds a knot into this numeric list. The knot will be added at the proper
     * location so that all t values are monotonically increasing. Any existing
@@ -150,6 +266,7 @@ public class NumericList
 
    public synchronized NumericListKnot add (
       NumericListKnot knot, NumericListKnot last) {
+      useKnots();
       NumericListKnot existing = null;
       if (knot.v.size() != myVsize) {
          throw new IllegalArgumentException (
@@ -207,6 +324,7 @@ public class NumericList
    }
    
    public void shiftTime(double t) {
+      useKnots();
       NumericListKnot nlk = myHead; 
       do {
          nlk.t += t;
@@ -216,6 +334,10 @@ public class NumericList
    }
 
    public void getMinMaxValues (double[] minMax) {
+      if (myStore != null) {
+         myStore.getMinMaxValues (minMax);
+         return;
+      }
       if (!myMinMaxValid) {
          updateMinMaxValues();
       }
@@ -289,6 +411,7 @@ public class NumericList
     * knot to remove
     */
    public void remove (NumericListKnot knot) {
+      useKnots();
       if (knot.prev == null) {
          myHead = knot.next;
       }
@@ -313,6 +436,7 @@ public class NumericList
     * all knots following this one will be removed
     */
    public synchronized void clearAfter (NumericListKnot knot) {
+      useKnots();
       for (NumericListKnot knotx = knot.next; knotx != null; knotx = knotx.next) {
          knotx.myList = null;
       }
@@ -330,6 +454,7 @@ public class NumericList
     * @return nearest knot less than t
     */
    public NumericListKnot findKnotAtOrBefore (double t, NumericListKnot last) {
+      useKnots();
       if (last == null || last.myList != this) { // no hint from last knot
                                                    // point.
          if (myHead == null) {
@@ -368,6 +493,7 @@ public class NumericList
 
    public synchronized NumericListKnot findKnotClosest (
       double t, NumericListKnot last) {
+      useKnots();
       if (myHead == null) {
          return null;
       }
@@ -724,6 +850,10 @@ public class NumericList
    public synchronized NumericListKnot interpolate (
       VectorNd v, double t, Order order, boolean extendData,
       NumericListKnot last) {
+      if (myStore != null) {
+         interpolateFromStore (v, t, order, extendData);
+         return null;
+      }
       if (myHead == null) {
          v.setZero();
          return null;
@@ -731,6 +861,61 @@ public class NumericList
       // try to find knots that bracket the t value
 
       NumericListKnot prev = findKnotAtOrBefore (t, last);
+      interpolateAt (v, t, order, extendData, prev);
+      return prev;
+   }
+
+   /**
+    * Interpolates from the store by loading the (up to four) knots
+    * surrounding t into scratch knots and then interpolating those.
+    */
+   private void interpolateFromStore (
+      VectorNd v, double t, Order order, boolean extendData) {
+      int num = myStore.numKnots();
+      if (num == 0) {
+         v.setZero();
+         return;
+      }
+      if (myStoreKnots == null) {
+         myStoreKnots = new NumericListKnot[4];
+         for (int k=0; k<4; k++) {
+            myStoreKnots[k] = new NumericListKnot (myVsize);
+         }
+      }
+      // find the knot at or before t, or the first knot if t is before that
+      int idx = Math.max (0, myStore.findKnotAtOrBefore (t));
+      int i0 = Math.max (0, idx-1);
+      int i1 = Math.min (num-1, idx+2);
+      NumericListKnot prev = null;
+      NumericListKnot knot = null;
+      for (int i=i0; i<=i1; i++) {
+         NumericListKnot k = myStoreKnots[i-i0];
+         k.t = myStore.getTime (i);
+         myStore.getValues (k.v.getBuffer(), i);
+         k.prev = knot;
+         k.next = null;
+         if (knot != null) {
+            knot.next = k;
+         }
+         else {
+            k.prev = null;
+         }
+         knot = k;
+         if (i == idx) {
+            prev = k;
+         }
+      }
+      interpolateAt (v, t, order, extendData, prev);
+   }
+
+   /**
+    * Interpolates the value at t given the knot <code>prev</code> at or
+    * before t (or the first knot if t lies before the start of the list).
+    */
+   private void interpolateAt (
+      VectorNd v, double t, Order order, boolean extendData,
+      NumericListKnot prev) {
+
       NumericListKnot next = prev.next;
 
       if (prev.t > t) // before the start of list
@@ -741,7 +926,7 @@ public class NumericList
          else {
             v.setZero();
          }
-         return prev;
+         return;
       }
       else if (next == null) // after end of list
       {
@@ -751,7 +936,7 @@ public class NumericList
          else {
             v.setZero();
          }
-         return prev;
+         return;
       }
 
       int size = v.size();
@@ -829,7 +1014,6 @@ public class NumericList
                "interpolation method " + order + " not implemented");
          }
       }
-      return prev;
    }
 
    private class MyIterator implements Iterator<NumericListKnot> {
@@ -866,6 +1050,7 @@ public class NumericList
     * @return first knot in this list
     */
    public NumericListKnot getFirst() {
+      useKnots();
       NumericListKnot knot = myHead;
       // myLast = knot;
       return knot;
@@ -877,6 +1062,7 @@ public class NumericList
     * @return last knot in this list
     */
    public NumericListKnot getLast() {
+      useKnots();
       NumericListKnot knot = myTail;
       // myLast = knot;
       return knot;
@@ -888,6 +1074,9 @@ public class NumericList
     * @return number of knots
     */
    public int getNumKnots() {
+      if (myStore != null) {
+         return myStore.numKnots();
+      }
       int cnt = 0;
       for (NumericListKnot knot = myHead; knot != null; knot = knot.next) {
          cnt++;
@@ -901,6 +1090,9 @@ public class NumericList
     * @return true if this list is empty
     */
    public boolean isEmpty() {
+      if (myStore != null) {
+         return myStore.numKnots() == 0;
+      }
       return myHead == null;
    }
 
@@ -908,6 +1100,9 @@ public class NumericList
     * Removes all knots in the numeric list.
     */
    public synchronized void clear() {
+      if (myStore != null) {
+         myStore.clear();
+      }
       // invalidate all the knots on this list
       for (NumericListKnot knot = myHead; knot != null; knot = knot.next) {
          knot.myList = null;
@@ -922,6 +1117,7 @@ public class NumericList
     * @return iterator over ths knots
     */
    public Iterator<NumericListKnot> iterator() {
+      useKnots();
       return new MyIterator (myHead);
    }
 
@@ -936,6 +1132,15 @@ public class NumericList
     */   
    public double[][] getValues () {
       double[][] vals = new double[getNumKnots()][1+myVsize];
+      if (myStore != null) {
+         double[] kvals = new double[myVsize];
+         for (int i=0; i<vals.length; i++) {
+            vals[i][0] = myStore.getTime (i);
+            myStore.getValues (kvals, i);
+            System.arraycopy (kvals, 0, vals[i], 1, myVsize);
+         }
+         return vals;
+      }
       int i=0;
       for (NumericListKnot knot=myHead; knot!=null; knot=knot.next) {
          vals[i][0] = knot.t;
@@ -962,6 +1167,14 @@ public class NumericList
          }
       }
       clear();
+      if (myStore != null && timesAreIncreasing (vals)) {
+         double[] kvals = new double[myVsize];
+         for (int i=0; i<vals.length; i++) {
+            System.arraycopy (vals[i], 1, kvals, 0, myVsize);
+            myStore.add (vals[i][0], kvals);
+         }
+         return;
+      }
       NumericListKnot last = null;
       for (int i=0; i<vals.length; i++) {
          NumericListKnot knot = new NumericListKnot (myVsize);
@@ -974,6 +1187,15 @@ public class NumericList
       }
    }
 
+   private boolean timesAreIncreasing (double[][] vals) {
+      for (int i=1; i<vals.length; i++) {
+         if (vals[i][0] <= vals[i-1][0]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
    /**
     * Returns true if the contents of this numeric list equal the contents of
     * another numeric list.
@@ -986,6 +1208,18 @@ public class NumericList
       if (myVsize != list.myVsize || getNumKnots() != list.getNumKnots()) {
          return false;
       }
+      if (myStore != null || list.myStore != null) {
+         double[][] vals0 = getValues();
+         double[][] vals1 = list.getValues();
+         for (int i=0; i<vals0.length; i++) {
+            for (int j=0; j<=myVsize; j++) {
+               if (vals0[i][j] != vals1[i][j]) {
+                  return false;
+               }
+            }
+         }
+         return true;
+      }
       NumericListKnot knot0 = myHead;
       NumericListKnot knot1 = list.myHead;
       while (knot0 != null) {
@@ -1034,19 +1268,76 @@ public class NumericList
     * numeric format
     * @return String representation of this list
     */
-   public String toString (NumberFormat fmt) {
-      StringBuffer sbuf = new StringBuffer (20 * getNumKnots());
-      NumericListKnot knot = myHead;
-      while (knot != null) {
-         sbuf.append (fmt.format (knot.t));
-         sbuf.append (' ');
-         sbuf.append (knot.v.toString (fmt));
-         sbuf.append ('\n');
-         knot = knot.next;
+   public synchronized String toString (NumberFormat fmt) {
+      StringBuilder sbuf = new StringBuilder (20 * getNumKnots());
+      if (myStore != null) {
+         double[] vals = new double[myVsize];
+         for (int i=0; i<myStore.numKnots(); i++) {
+            myStore.getValues (vals, i);
+            appendKnot (sbuf, myStore.getTime(i), vals, fmt, fmt, " ");
+            sbuf.append ('\n');
+         }
+      }
+      else {
+         for (NumericListKnot knot=myHead; knot!=null; knot=knot.next) {
+            appendKnot (sbuf, knot.t, knot.v.getBuffer(), fmt, fmt, " ");
+            sbuf.append ('\n');
+         }
       }
       return sbuf.toString();
    }
 
+   /**
+    * Writes the knots of this list to a PrintWriter, one knot per line. Each
+    * line contains the knot time (if <code>timeFmt</code> is
+    * non-<code>null</code>), followed by the knot values, separated by
+    * <code>separator</code>. This works directly on compact storage (see
+    * {@link #setKnotStore}) and so does not require knots to be moved back
+    * into linked storage.
+    *
+    * @param pw writer to write the knots to
+    * @param fmt numeric format for the knot values
+    * @param timeFmt numeric format for the knot times, or <code>null</code>
+    * if times should not be written
+    * @param separator string used to separate the numbers on each line
+    */
+   public synchronized void writeKnots (
+      PrintWriter pw, NumberFormat fmt, NumberFormat timeFmt,
+      String separator) {
+      StringBuilder sb = new StringBuilder();
+      if (myStore != null) {
+         double[] vals = new double[myVsize];
+         for (int i=0; i<myStore.numKnots(); i++) {
+            myStore.getValues (vals, i);
+            sb.setLength (0);
+            appendKnot (sb, myStore.getTime(i), vals, fmt, timeFmt, separator);
+            pw.println (sb);
+         }
+      }
+      else {
+         for (NumericListKnot knot=myHead; knot!=null; knot=knot.next) {
+            sb.setLength (0);
+            appendKnot (sb, knot.t, knot.v.getBuffer(), fmt, timeFmt, separator);
+            pw.println (sb);
+         }
+      }
+   }
+
+   private void appendKnot (
+      StringBuilder sb, double t, double[] vals,
+      NumberFormat fmt, NumberFormat timeFmt, String separator) {
+      if (timeFmt != null) {
+         sb.append (timeFmt.format (t));
+         sb.append (separator);
+      }
+      for (int j=0; j<myVsize; j++) {
+         if (j > 0) {
+            sb.append (separator);
+         }
+         sb.append (fmt.format (vals[j]));
+      }
+   }
+
    public String toStringSuper() {
       return super.toString();
    }
@@ -1058,10 +1349,16 @@ public class NumericList
       NumericList l = (NumericList)super.clone();
       l.myLast = l.myHead = l.myTail = null;
       l.myMinMaxValid = false;
+      l.myStore = null;
+      l.myStoreKnots = null;
       l.a1 = new VectorNd (0);
       l.a2 = new VectorNd (0);
       l.a3 = new VectorNd (0);
       l.myInterpolation = new Interpolation (myInterpolation);
+      if (myStore != null) {
+         l.setValues (getValues());
+         return l;
+      }
       NumericListKnot last = null;
       for (NumericListKnot knot = myHead; knot != null; knot = knot.next) {
          NumericListKnot newKnot = new NumericListKnot (knot);
@@ -1092,10 +1389,7 @@ public class NumericList
       pw.println ("interpolation=" + myInterpolation);
       pw.println ("knots=[");
       IndentingPrintWriter.addIndentation (pw, 2);      
-      for (NumericListKnot knot=myHead; knot!=null; knot=knot.next) {
-         pw.print (fmt.format(knot.t) + " ");
-         pw.println (knot.v.toString (fmt));
-      }
+      writeKnots (pw, fmt, fmt, " ");
       IndentingPrintWriter.addIndentation (pw, -2);      
       pw.println ("]");
       IndentingPrintWriter.addIndentation (pw, -2);
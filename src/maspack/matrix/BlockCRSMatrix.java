@@ -0,0 +1,593 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.matrix;
+
+/**
+ * Compact block compressed row storage (block CRS, or BSR) snapshot of a
+ * {@link SparseBlockMatrix}, used to accelerate repeated matrix-vector
+ * products. The values of each block are stored densely in row-major order
+ * within a single contiguous array, with blocks ordered by block row and then
+ * by block column, and the block structure is described by integer arrays.
+ * This avoids the linked list traversal and per-block virtual method calls
+ * used by {@link SparseBlockMatrix} itself.
+ *
+ * <p>The snapshot is not updated automatically when the original matrix
+ * changes. Instead, it should be refreshed by calling {@link #update}, which
+ * copies only the values if the block structure is unchanged, and otherwise
+ * rebuilds the snapshot.
+ */
+public class BlockCRSMatrix implements LinearTransformNd {
+
+   protected int myNumBlockRows;
+   protected int myNumBlockCols;
+   protected int[] myRowOffsets = new int[1]; // row offset for each block row
+   protected int[] myColOffsets = new int[1]; // col offset for each block col
+   protected int[] myRowBlockPtrs = new int[1]; // first block in each block row
+   protected int[] myBlockCols = new int[0];  // block column of each block
+   protected int[] myValueOffsets = new int[1]; // first value of each block
+   protected double[] myValues = new double[0];
+   protected int myNumBlocks;
+
+   // scratch space for extracting block values
+   private double[] myBlockBuf = new double[36];
+
+   /**
+    * Creates an empty block CRS matrix.
+    */
+   public BlockCRSMatrix () {
+   }
+
+   /**
+    * Creates a block CRS snapshot of a sparse block matrix.
+    *
+    * @param M matrix to take the snapshot of
+    */
+   public BlockCRSMatrix (SparseBlockMatrix M) {
+      set (M);
+   }
+
+   /**
+    * Returns the number of rows in this matrix.
+    *
+    * @return number of rows
+    */
+   public int rowSize() {
+      return myRowOffsets[myNumBlockRows];
+   }
+
+   /**
+    * Returns the number of columns in this matrix.
+    *
+    * @return number of columns
+    */
+   public int colSize() {
+      return myColOffsets[myNumBlockCols];
+   }
+
+   /**
+    * Returns the number of block rows in this matrix.
+    *
+    * @return number of block rows
+    */
+   public int numBlockRows() {
+      return myNumBlockRows;
+   }
+
+   /**
+    * Returns the number of block columns in this matrix.
+    *
+    * @return number of block columns
+    */
+   public int numBlockCols() {
+      return myNumBlockCols;
+   }
+
+   /**
+    * Returns the number of blocks in this matrix.
+    *
+    * @return number of blocks
+    */
+   public int numBlocks() {
+      return myNumBlocks;
+   }
+
+   /**
+    * Returns the number of explicitly stored values in this matrix.
+    *
+    * @return number of stored values
+    */
+   public int numValues() {
+      return myValueOffsets[myNumBlocks];
+   }
+
+   private double[] getBlockValues (MatrixBlock blk) {
+      int size = blk.rowSize()*blk.colSize();
+      if (myBlockBuf.length < size) {
+         myBlockBuf = new double[size];
+      }
+      blk.get (myBlockBuf);
+      return myBlockBuf;
+   }
+
+   /**
+    * Sets this matrix to be a snapshot of a sparse block matrix, rebuilding
+    * both the structure and the values.
+    *
+    * @param M matrix to take the snapshot of
+    */
+   public void set (SparseBlockMatrix M) {
+      int nbr = M.myNumBlockRows;
+      int nbc = M.myNumBlockCols;
+      int nblks = M.numBlocks();
+
+      if (myRowOffsets.length < nbr+1) {
+         myRowOffsets = new int[nbr+1];
+         myRowBlockPtrs = new int[nbr+1];
+      }
+      if (myColOffsets.length < nbc+1) {
+         myColOffsets = new int[nbc+1];
+      }
+      if (myBlockCols.length < nblks) {
+         myBlockCols = new int[nblks];
+         myValueOffsets = new int[nblks+1];
+      }
+      for (int bi=0; bi<=nbr; bi++) {
+         myRowOffsets[bi] = M.myRowOffsets[bi];
+      }
+      for (int bj=0; bj<=nbc; bj++) {
+         myColOffsets[bj] = M.myColOffsets[bj];
+      }
+      int k = 0;
+      int voff = 0;
+      for (int bi=0; bi<nbr; bi++) {
+         myRowBlockPtrs[bi] = k;
+         int nr = myRowOffsets[bi+1]-myRowOffsets[bi];
+         for (MatrixBlock blk=M.myRows[bi].myHead; blk!=null; blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            myBlockCols[k] = bj;
+            myValueOffsets[k] = voff;
+            voff += nr*(myColOffsets[bj+1]-myColOffsets[bj]);
+            k++;
+         }
+      }
+      myRowBlockPtrs[nbr] = k;
+      myValueOffsets[k] = voff;
+      if (myValues.length < voff) {
+         myValues = new double[voff];
+      }
+      myNumBlockRows = nbr;
+      myNumBlockCols = nbc;
+      myNumBlocks = k;
+      copyValues (M);
+   }
+
+   private void copyValues (SparseBlockMatrix M) {
+      int k = 0;
+      for (int bi=0; bi<myNumBlockRows; bi++) {
+         for (MatrixBlock blk=M.myRows[bi].myHead; blk!=null; blk=blk.next()) {
+            double[] buf = getBlockValues (blk);
+            int voff = myValueOffsets[k];
+            int nvals = myValueOffsets[k+1]-voff;
+            for (int i=0; i<nvals; i++) {
+               myValues[voff+i] = buf[i];
+            }
+            k++;
+         }
+      }
+   }
+
+   /**
+    * Returns <code>true</code> if the block structure of this matrix matches
+    * that of a sparse block matrix. This means the two matrices have the
+    * same block row and column sizes, and the same block placement, as
+    * determined by {@link SparseBlockMatrix#getBlockStructure}.
+    *
+    * @param M matrix to compare with
+    * @return <code>true</code> if the block structures match
+    */
+   public boolean structureEquals (SparseBlockMatrix M) {
+      if (M.myNumBlockRows != myNumBlockRows ||
+          M.myNumBlockCols != myNumBlockCols) {
+         return false;
+      }
+      for (int bi=0; bi<=myNumBlockRows; bi++) {
+         if (M.myRowOffsets[bi] != myRowOffsets[bi]) {
+            return false;
+         }
+      }
+      for (int bj=0; bj<=myNumBlockCols; bj++) {
+         if (M.myColOffsets[bj] != myColOffsets[bj]) {
+            return false;
+         }
+      }
+      for (int bi=0; bi<myNumBlockRows; bi++) {
+         int k = myRowBlockPtrs[bi];
+         int kend = myRowBlockPtrs[bi+1];
+         for (MatrixBlock blk=M.myRows[bi].myHead; blk!=null; blk=blk.next()) {
+            if (k == kend || myBlockCols[k++] != blk.getBlockCol()) {
+               return false;
+            }
+         }
+         if (k != kend) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Refreshes this snapshot from a sparse block matrix. If the block
+    * structure of <code>M</code> is unchanged, only the values are copied
+    * and no memory is allocated. Otherwise, the snapshot is rebuilt.
+    *
+    * @param M matrix to refresh the snapshot from
+    * @return <code>true</code> if the structure was unchanged and only
+    * the values were copied
+    */
+   public boolean update (SparseBlockMatrix M) {
+      if (structureEquals (M)) {
+         copyValues (M);
+         return true;
+      }
+      else {
+         set (M);
+         return false;
+      }
+   }
+
+   /**
+    * Finds the number of block rows or columns spanned by the first
+    * <code>n</code> rows or columns, as specified by an offset array, or -1
+    * if <code>n</code> does not fall on a block boundary.
+    */
+   private int numAlignedBlocks (int[] offsets, int nblks, int n) {
+      int lo = 0;
+      int hi = nblks;
+      while (lo <= hi) {
+         int mid = (lo+hi)/2;
+         if (offsets[mid] < n) {
+            lo = mid+1;
+         }
+         else if (offsets[mid] > n) {
+            hi = mid-1;
+         }
+         else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   private int checkAlignedRows (int nr) {
+      int nbr = numAlignedBlocks (myRowOffsets, myNumBlockRows, nr);
+      if (nr < 0 || nbr == -1) {
+         throw new ImproperSizeException (
+            "Row size "+nr+" is not block aligned");
+      }
+      return nbr;
+   }
+
+   private void checkAlignedCols (int nc) {
+      if (nc < 0 ||
+          numAlignedBlocks (myColOffsets, myNumBlockCols, nc) == -1) {
+         throw new ImproperSizeException (
+            "Column size "+nc+" is not block aligned");
+      }
+   }
+
+   private void checkVectorSize (VectorNd v, int size, String name) {
+      if (v.size() < size) {
+         throw new ImproperSizeException (
+            name+" size "+v.size()+" < "+size);
+      }
+   }
+
+   /**
+    * Multiplies this matrix by <code>v1</code> and places the result in
+    * <code>vr</code>. If necessary, <code>vr</code> is enlarged to
+    * accommodate the result.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    */
+   public void mul (VectorNd vr, VectorNd v1) {
+      mul (vr, v1, rowSize(), colSize());
+   }
+
+   /**
+    * Multiplies the leading <code>nr</code> x <code>nc</code> submatrix of
+    * this matrix by <code>v1</code> and places the result in
+    * <code>vr</code>. The submatrix must be block aligned.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    * @param nr number of rows in the submatrix
+    * @param nc number of columns in the submatrix
+    */
+   public void mul (VectorNd vr, VectorNd v1, int nr, int nc) {
+      int nbr = checkAlignedRows (nr);
+      checkAlignedCols (nc);
+      checkVectorSize (v1, nc, "v1");
+      if (vr.size < nr && vr != v1) {
+         vr.resetSize (nr);
+      }
+      double[] res = ((vr == v1) ? new double[nr] : vr.buf);
+      for (int i=0; i<nr; i++) {
+         res[i] = 0;
+      }
+      mulAddVec (res, v1.buf, nbr, nc);
+      if (vr.size < nr) {
+         vr.resetSize (nr);
+      }
+      if (vr == v1) {
+         System.arraycopy (res, 0, vr.buf, 0, nr);
+      }
+   }
+
+   /**
+    * Multiplies this matrix by <code>v1</code> and adds the result to
+    * <code>vr</code>.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    */
+   public void mulAdd (VectorNd vr, VectorNd v1) {
+      mulAdd (vr, v1, rowSize(), colSize());
+   }
+
+   /**
+    * Multiplies the leading <code>nr</code> x <code>nc</code> submatrix of
+    * this matrix by <code>v1</code> and adds the result to
+    * <code>vr</code>. The submatrix must be block aligned.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    * @param nr number of rows in the submatrix
+    * @param nc number of columns in the submatrix
+    */
+   public void mulAdd (VectorNd vr, VectorNd v1, int nr, int nc) {
+      int nbr = checkAlignedRows (nr);
+      checkAlignedCols (nc);
+      checkVectorSize (v1, nc, "v1");
+      checkVectorSize (vr, nr, "vr");
+      if (vr == v1) {
+         double[] res = new double[nr];
+         mulAddVec (res, v1.buf, nbr, nc);
+         for (int i=0; i<nr; i++) {
+            vr.buf[i] += res[i];
+         }
+      }
+      else {
+         mulAddVec (vr.buf, v1.buf, nbr, nc);
+      }
+   }
+
+   /**
+    * Multiplies the transpose of this matrix by <code>v1</code> and places
+    * the result in <code>vr</code>. If necessary, <code>vr</code> is
+    * enlarged to accommodate the result.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    */
+   public void mulTranspose (VectorNd vr, VectorNd v1) {
+      mulTranspose (vr, v1, colSize(), rowSize());
+   }
+
+   /**
+    * Multiplies the leading <code>nr</code> x <code>nc</code> submatrix of
+    * the transpose of this matrix by <code>v1</code> and places the result
+    * in <code>vr</code>. Note that <code>nr</code> and <code>nc</code> refer
+    * to the transposed matrix. The submatrix must be block aligned.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    * @param nr number of rows in the transposed submatrix
+    * @param nc number of columns in the transposed submatrix
+    */
+   public void mulTranspose (VectorNd vr, VectorNd v1, int nr, int nc) {
+      checkAlignedCols (nr);
+      int nbr = checkAlignedRows (nc);
+      checkVectorSize (v1, nc, "v1");
+      if (vr.size < nr && vr != v1) {
+         vr.resetSize (nr);
+      }
+      double[] res = ((vr == v1) ? new double[nr] : vr.buf);
+      for (int j=0; j<nr; j++) {
+         res[j] = 0;
+      }
+      mulTransposeAddVec (res, v1.buf, nbr, nr);
+      if (vr.size < nr) {
+         vr.resetSize (nr);
+      }
+      if (vr == v1) {
+         System.arraycopy (res, 0, vr.buf, 0, nr);
+      }
+   }
+
+   /**
+    * Multiplies the transpose of this matrix by <code>v1</code> and adds the
+    * result to <code>vr</code>.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    */
+   public void mulTransposeAdd (VectorNd vr, VectorNd v1) {
+      mulTransposeAdd (vr, v1, colSize(), rowSize());
+   }
+
+   /**
+    * Multiplies the leading <code>nr</code> x <code>nc</code> submatrix of
+    * the transpose of this matrix by <code>v1</code> and adds the result to
+    * <code>vr</code>. Note that <code>nr</code> and <code>nc</code> refer to
+    * the transposed matrix. The submatrix must be block aligned.
+    *
+    * @param vr result vector
+    * @param v1 vector to multiply by
+    * @param nr number of rows in the transposed submatrix
+    * @param nc number of columns in the transposed submatrix
+    */
+   public void mulTransposeAdd (VectorNd vr, VectorNd v1, int nr, int nc) {
+      checkAlignedCols (nr);
+      int nbr = checkAlignedRows (nc);
+      checkVectorSize (v1, nc, "v1");
+      checkVectorSize (vr, nr, "vr");
+      if (vr == v1) {
+         double[] res = new double[nr];
+         mulTransposeAddVec (res, v1.buf, nbr, nr);
+         for (int j=0; j<nr; j++) {
+            vr.buf[j] += res[j];
+         }
+      }
+      else {
+         mulTransposeAddVec (vr.buf, v1.buf, nbr, nr);
+      }
+   }
+
+   /**
+    * Computes res += A vec for the first <code>nbr</code> block rows and
+    * the first <code>ncols</code> columns of this matrix. Blocks within each
+    * row are sorted by column, so the row traversal can stop at the first
+    * block lying outside the column range.
+    */
+   protected void mulAddVec (double[] res, double[] vec, int nbr, int ncols) {
+      double[] vals = myValues;
+      for (int bi=0; bi<nbr; bi++) {
+         int r0 = myRowOffsets[bi];
+         int nr = myRowOffsets[bi+1]-r0;
+         int kend = myRowBlockPtrs[bi+1];
+         if (nr == 3) {
+            double s0 = 0;
+            double s1 = 0;
+            double s2 = 0;
+            for (int k=myRowBlockPtrs[bi]; k<kend; k++) {
+               int bj = myBlockCols[k];
+               int c0 = myColOffsets[bj];
+               if (c0 >= ncols) {
+                  break;
+               }
+               int nc = myColOffsets[bj+1]-c0;
+               int off = myValueOffsets[k];
+               if (nc == 3) {
+                  double v0 = vec[c0];
+                  double v1 = vec[c0+1];
+                  double v2 = vec[c0+2];
+                  s0 += vals[off  ]*v0 + vals[off+1]*v1 + vals[off+2]*v2;
+                  s1 += vals[off+3]*v0 + vals[off+4]*v1 + vals[off+5]*v2;
+                  s2 += vals[off+6]*v0 + vals[off+7]*v1 + vals[off+8]*v2;
+               }
+               else {
+                  for (int j=0; j<nc; j++) {
+                     double v = vec[c0+j];
+                     s0 += vals[off+j]*v;
+                     s1 += vals[off+nc+j]*v;
+                     s2 += vals[off+2*nc+j]*v;
+                  }
+               }
+            }
+            res[r0  ] += s0;
+            res[r0+1] += s1;
+            res[r0+2] += s2;
+         }
+         else {
+            for (int k=myRowBlockPtrs[bi]; k<kend; k++) {
+               int bj = myBlockCols[k];
+               int c0 = myColOffsets[bj];
+               if (c0 >= ncols) {
+                  break;
+               }
+               int nc = myColOffsets[bj+1]-c0;
+               int off = myValueOffsets[k];
+               for (int i=0; i<nr; i++) {
+                  double sum = 0;
+                  for (int j=0; j<nc; j++) {
+                     sum += vals[off++]*vec[c0+j];
+                  }
+                  res[r0+i] += sum;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Computes res += A^T vec for the first <code>nbr</code> block rows and
+    * the first <code>ncols</code> columns of this matrix.
+    */
+   protected void mulTransposeAddVec (
+      double[] res, double[] vec, int nbr, int ncols) {
+      double[] vals = myValues;
+      for (int bi=0; bi<nbr; bi++) {
+         int r0 = myRowOffsets[bi];
+         int nr = myRowOffsets[bi+1]-r0;
+         int kend = myRowBlockPtrs[bi+1];
+         if (nr == 3) {
+            double v0 = vec[r0];
+            double v1 = vec[r0+1];
+            double v2 = vec[r0+2];
+            for (int k=myRowBlockPtrs[bi]; k<kend; k++) {
+               int bj = myBlockCols[k];
+               int c0 = myColOffsets[bj];
+               if (c0 >= ncols) {
+                  break;
+               }
+               int nc = myColOffsets[bj+1]-c0;
+               int off = myValueOffsets[k];
+               for (int j=0; j<nc; j++) {
+                  res[c0+j] +=
+                     vals[off+j]*v0 + vals[off+nc+j]*v1 + vals[off+2*nc+j]*v2;
+               }
+            }
+         }
+         else {
+            for (int k=myRowBlockPtrs[bi]; k<kend; k++) {
+               int bj = myBlockCols[k];
+               int c0 = myColOffsets[bj];
+               if (c0 >= ncols) {
+                  break;
+               }
+               int nc = myColOffsets[bj+1]-c0;
+               int off = myValueOffsets[k];
+               for (int i=0; i<nr; i++) {
+                  double v = vec[r0+i];
+                  for (int j=0; j<nc; j++) {
+                     res[c0+j] += vals[off++]*v;
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the value at a specified row and column. This is provided
+    * mainly for testing, and is not efficient.
+    *
+    * @param i row index
+    * @param j column index
+    * @return value at (i,j)
+    */
+   public double get (int i, int j) {
+      if (i < 0 || i >= rowSize() || j < 0 || j >= colSize()) {
+         throw new ArrayIndexOutOfBoundsException (
+            "("+i+","+j+") is out of bounds");
+      }
+      int bi = 0;
+      while (myRowOffsets[bi+1] <= i) {
+         bi++;
+      }
+      for (int k=myRowBlockPtrs[bi]; k<myRowBlockPtrs[bi+1]; k++) {
+         int bj = myBlockCols[k];
+         int c0 = myColOffsets[bj];
+         int nc = myColOffsets[bj+1]-c0;
+         if (j >= c0 && j < c0+nc) {
+            return myValues[myValueOffsets[k]+(i-myRowOffsets[bi])*nc+j-c0];
+         }
+      }
+      return 0;
+   }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.matrix;
+
+import java.util.Random;
+
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests BlockCRSMatrix against the SparseBlockMatrix it is created from.
+ */
+public class BlockCRSMatrixTest extends UnitTest {
+
+   Random myRand = RandomGenerator.get();
+
+   SparseBlockMatrix createRandom (
+      int[] rowSizes, int[] colSizes, double density) {
+      SparseBlockMatrix M = new SparseBlockMatrix (rowSizes, colSizes);
+      for (int bi=0; bi<rowSizes.length; bi++) {
+         for (int bj=0; bj<colSizes.length; bj++) {
+            if (myRand.nextDouble() < density) {
+               MatrixBlock blk =
+                  MatrixBlockBase.alloc (rowSizes[bi], colSizes[bj]);
+               M.addBlock (bi, bj, blk);
+            }
+         }
+      }
+      M.setRandomValues();
+      return M;
+   }
+
+   int[] randomSizes (int num, int... sizes) {
+      int[] res = new int[num];
+      for (int i=0; i<num; i++) {
+         res[i] = sizes[myRand.nextInt (sizes.length)];
+      }
+      return res;
+   }
+
+   void checkValues (BlockCRSMatrix B, SparseBlockMatrix M) {
+      checkEquals ("rowSize", B.rowSize(), M.rowSize());
+      checkEquals ("colSize", B.colSize(), M.colSize());
+      checkEquals ("numBlocks", B.numBlocks(), M.numBlocks());
+      for (int i=0; i<M.rowSize(); i++) {
+         for (int j=0; j<M.colSize(); j++) {
+            if (B.get(i,j) != M.get(i,j)) {
+               throw new TestException (
+                  "value at ("+i+","+j+") is "+B.get(i,j)+
+                  ", expected "+M.get(i,j));
+            }
+         }
+      }
+   }
+
+   void checkProducts (BlockCRSMatrix B, SparseBlockMatrix M) {
+      double eps = 1e-12;
+      VectorNd x = new VectorNd (M.colSize());
+      VectorNd y = new VectorNd (M.rowSize());
+      x.setRandom();
+      y.setRandom();
+      VectorNd res = new VectorNd();
+      VectorNd chk = new VectorNd();
+
+      B.mul (res, x);
+      M.mul (chk, x);
+      checkEquals ("mul", res, chk, eps);
+
+      res.setRandom();
+      chk.set (res);
+      B.mulAdd (res, x);
+      M.mulAdd (chk, x);
+      checkEquals ("mulAdd", res, chk, eps);
+
+      res.setSize (0);
+      chk.setSize (0);
+      B.mulTranspose (res, y);
+      M.mulTranspose (chk, y);
+      checkEquals ("mulTranspose", res, chk, eps);
+
+      res.setRandom();
+      chk.set (res);
+      B.mulTransposeAdd (res, y);
+      M.mulTransposeAdd (chk, y);
+      checkEquals ("mulTransposeAdd", res, chk, eps);
+
+      // leading submatrices, aligned with the block boundaries
+      int nbr = M.numBlockRows()/2;
+      int nbc = M.numBlockCols()/2;
+      int nr = M.getBlockRowOffset (nbr);
+      int nc = M.getBlockColOffset (nbc);
+      res.setSize (nr);
+      chk.setSize (nr);
+      B.mul (res, x, nr, nc);
+      M.mul (chk, x, nr, nc);
+      checkEquals ("mul submatrix", res, chk, eps);
+
+      res.setSize (nc);
+      chk.setSize (nc);
+      B.mulTranspose (res, y, nc, nr);
+      M.mulTranspose (chk, y, nc, nr);
+      checkEquals ("mulTranspose submatrix", res, chk, eps);
+
+      if (M.getBlockRowSize(nbr) > 1) {
+         try {
+            B.mul (res, x, nr+1, nc);
+            throw new TestException (
+               "unaligned submatrix did not throw exception");
+         }
+         catch (ImproperSizeException e) {
+            // expected
+         }
+      }
+
+      // products where the result vector aliases the input
+      if (M.rowSize() == M.colSize()) {
+         res.set (x);
+         B.mul (res, res);
+         M.mul (chk, x);
+         checkEquals ("mul in place", res, chk, eps);
+      }
+   }
+
+   void testRandom (int nbr, int nbc, double density, int... sizes) {
+      SparseBlockMatrix M =
+         createRandom (randomSizes (nbr, sizes), randomSizes (nbc, sizes),
+                       density);
+      BlockCRSMatrix B = new BlockCRSMatrix (M);
+      checkValues (B, M);
+      checkProducts (B, M);
+
+      // change the values only; update should not rebuild
+      M.setRandomValues();
+      check ("structure changed", B.structureEquals (M));
+      check ("update rebuilt the matrix", B.update (M));
+      checkValues (B, M);
+      checkProducts (B, M);
+
+      // change the structure; update should rebuild
+      MatrixBlock blk = M.firstBlockInRow (0);
+      if (blk != null) {
+         M.removeBlock (blk);
+      }
+      else {
+         M.addBlock (
+            0, 0, MatrixBlockBase.alloc (
+               M.getBlockRowSize(0), M.getBlockColSize(0)));
+      }
+      check ("structure unchanged", !B.structureEquals (M));
+      check ("update did not rebuild the matrix", !B.update (M));
+      checkValues (B, M);
+      checkProducts (B, M);
+   }
+
+   public void test() {
+      testRandom (1, 1, 1.0, 3);
+      for (int i=0; i<20; i++) {
+         testRandom (10, 10, 0.3, 3);
+         testRandom (8, 12, 0.3, 1, 3, 6);
+         testRandom (12, 5, 0.5, 1, 2, 3, 6);
+      }
+      // empty matrix
+      BlockCRSMatrix B = new BlockCRSMatrix();
+      checkEquals ("empty rowSize", B.rowSize(), 0);
+      checkEquals ("empty colSize", B.colSize(), 0);
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      BlockCRSMatrixTest tester = new BlockCRSMatrixTest();
+      tester.runtest();
+   }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.matrix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import maspack.matrix.SparseBinaryWriter.RecordType;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests SparseBinaryWriter and SparseBinaryReader by writing matrices and
+ * vectors to a file and reading them back.
+ */
+public class SparseBinaryIOTest extends UnitTest {
+
+   Random myRand = RandomGenerator.get();
+
+   SparseBlockMatrix createRandom (int nbr, int nbc, double density) {
+      int[] rowSizes = new int[nbr];
+      int[] colSizes = new int[nbc];
+      for (int bi=0; bi<nbr; bi++) {
+         rowSizes[bi] = 1+myRand.nextInt (6);
+      }
+      for (int bj=0; bj<nbc; bj++) {
+         colSizes[bj] = 1+myRand.nextInt (6);
+      }
+      SparseBlockMatrix M = new SparseBlockMatrix (rowSizes, colSizes);
+      for (int bi=0; bi<nbr; bi++) {
+         for (int bj=0; bj<nbc; bj++) {
+            if (myRand.nextDouble() < density) {
+               M.addBlock (
+                  bi, bj, MatrixBlockBase.alloc (rowSizes[bi], colSizes[bj]));
+            }
+         }
+      }
+      M.setRandomValues();
+      return M;
+   }
+
+   void checkBlockMatrix (
+      String msg, SparseBlockMatrix M, SparseBlockMatrix Mchk) {
+      if (!Arrays.equals (M.getBlockStructure(), Mchk.getBlockStructure())) {
+         throw new TestException (msg + ": block structure differs");
+      }
+      if (!M.epsilonEquals (Mchk, 0)) {
+         throw new TestException (msg + ": values differ");
+      }
+   }
+
+   void checkMatrix (String msg, Matrix M, Matrix Mchk) {
+      checkEquals (msg + " rowSize", M.rowSize(), Mchk.rowSize());
+      checkEquals (msg + " colSize", M.colSize(), Mchk.colSize());
+      checkEquals (
+         msg + " numNonZeroVals", M.numNonZeroVals(), Mchk.numNonZeroVals());
+      if (!new MatrixNd(M).epsilonEquals (new MatrixNd(Mchk), 0)) {
+         throw new TestException (msg + ": values differ");
+      }
+   }
+
+   void testRoundTrip() throws IOException {
+      File file = File.createTempFile ("sparseBinaryIO", ".smb");
+      file.deleteOnExit();
+
+      SparseBlockMatrix S = createRandom (30, 30, 0.2);
+      SparseBlockMatrix GT = createRandom (30, 10, 0.1);
+      SparseBlockMatrix E = new SparseBlockMatrix (new int[0], new int[0]);
+      SparseMatrixCRS C = new SparseMatrixCRS (createRandom (8, 12, 0.3));
+      VectorNd v = new VectorNd (S.rowSize());
+      v.setRandom();
+      VectorNd e = new VectorNd (0);
+
+      SparseBinaryWriter writer = new SparseBinaryWriter (file);
+      writer.writeBlockMatrix ("S", S);
+      writer.writeInt ("sizeS", S.rowSize());
+      writer.writeBlockMatrix ("GT", GT);
+      writer.writeBlockMatrix ("empty", E);
+      writer.writeCRSMatrix ("C", C);
+      writer.writeCRSMatrix ("GTcrs", GT);
+      writer.writeVector ("v", v);
+      writer.writeVector ("e", e);
+      writer.close();
+
+      SparseBinaryReader reader = new SparseBinaryReader (file);
+      checkEquals ("numRecords", reader.numRecords(), 8);
+      checkEquals ("name 3", reader.getName (3), "empty");
+      checkEquals ("type 4", reader.getType (4), RecordType.CRSMatrix);
+      checkEquals ("type v", reader.getType ("v"), RecordType.Vector);
+      check ("missing record found", !reader.hasRecord ("missing"));
+
+      // read records in a different order from which they were written
+      checkEquals ("v", reader.readVector ("v"), v);
+      checkBlockMatrix ("GT", reader.readBlockMatrix ("GT"), GT);
+      checkBlockMatrix ("S", reader.readBlockMatrix ("S"), S);
+      checkEquals ("sizeS", reader.readInt ("sizeS"), S.rowSize());
+      checkBlockMatrix ("empty", reader.readBlockMatrix ("empty"), E);
+      checkMatrix ("C", reader.readCRSMatrix ("C"), C);
+      checkMatrix ("GTcrs", reader.readCRSMatrix ("GTcrs"), GT);
+      checkEquals ("e", reader.readVector ("e"), e);
+
+      try {
+         reader.readVector ("S");
+         throw new TestException ("reading S as a vector did not fail");
+      }
+      catch (IOException exc) {
+         // expected
+      }
+      try {
+         reader.readVector ("missing");
+         throw new TestException ("reading a missing record did not fail");
+      }
+      catch (IOException exc) {
+         // expected
+      }
+      reader.close();
+      file.delete();
+   }
+
+   void testInvalidFiles() throws IOException {
+      File file = File.createTempFile ("sparseBinaryIO", ".smb");
+      file.deleteOnExit();
+      FileOutputStream out = new FileOutputStream (file);
+      out.write ("[ [ 3 ] [ 3 ] ]".getBytes());
+      out.close();
+      try {
+         new SparseBinaryReader (file);
+         throw new TestException ("reading a text file did not fail");
+      }
+      catch (IOException exc) {
+         // expected
+      }
+
+      // truncated file
+      SparseBinaryWriter writer = new SparseBinaryWriter (file);
+      writer.writeBlockMatrix ("S", createRandom (10, 10, 0.3));
+      writer.close();
+      long length = file.length();
+      RandomAccessFile raf = new RandomAccessFile (file, "rw");
+      raf.setLength (length-8);
+      raf.close();
+      try {
+         new SparseBinaryReader (file);
+         throw new TestException ("reading a truncated file did not fail");
+      }
+      catch (IOException exc) {
+         // expected
+      }
+      file.delete();
+   }
+
+   public void test() throws IOException {
+      for (int i=0; i<5; i++) {
+         testRoundTrip();
+      }
+      testInvalidFiles();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      SparseBinaryIOTest tester = new SparseBinaryIOTest();
+      tester.runtest();
+   }
+}
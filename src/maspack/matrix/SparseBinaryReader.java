@@ -0,0 +1,453 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import maspack.matrix.SparseBinaryWriter.RecordType;
+
+/**
+ * Reads sparse matrices, vectors and integers from a binary file written by
+ * {@link SparseBinaryWriter}. When the reader is created, it scans the
+ * record headers of the file to build an index, so that records can then be
+ * read by name in any order. Record payloads are accessed by memory-mapping
+ * the relevant region of the file, which avoids copying the data through
+ * intermediate stream buffers.
+ */
+public class SparseBinaryReader {
+
+   // maximum number of bytes mapped at once, which must fit in an int
+   private static final int MAX_MAP_SIZE = 1 << 30;
+
+   private RandomAccessFile myFile;
+   private FileChannel myChannel;
+   private int myVersion;
+
+   private static class Record {
+      RecordType myType;
+      String myName;
+      long myOffset; // offset of the payload within the file
+      long mySize;   // size of the payload, in bytes
+
+      Record (RecordType type, String name, long offset, long size) {
+         myType = type;
+         myName = name;
+         myOffset = offset;
+         mySize = size;
+      }
+   }
+
+   private ArrayList<Record> myRecords = new ArrayList<Record>();
+   private LinkedHashMap<String,Record> myRecordMap =
+      new LinkedHashMap<String,Record>();
+
+   /**
+    * Opens the specified file and reads its record index.
+    *
+    * @param file file to read
+    * @throws IOException if the file cannot be read or is not a valid
+    * binary sparse matrix file
+    */
+   public SparseBinaryReader (File file) throws IOException {
+      myFile = new RandomAccessFile (file, "r");
+      myChannel = myFile.getChannel();
+      try {
+         scanRecords();
+      }
+      catch (IOException e) {
+         close();
+         throw e;
+      }
+   }
+
+   /**
+    * Opens the specified file and reads its record index.
+    *
+    * @param fileName name of the file to read
+    * @throws IOException if the file cannot be read or is not a valid
+    * binary sparse matrix file
+    */
+   public SparseBinaryReader (String fileName) throws IOException {
+      this (new File (fileName));
+   }
+
+   /**
+    * Queries whether a file starts with the header written by {@link
+    * SparseBinaryWriter}.
+    *
+    * @param file file to check
+    * @return {@code true} if the file appears to be a binary sparse matrix
+    * file
+    * @throws IOException if the file cannot be read
+    */
+   public static boolean isBinaryFile (File file) throws IOException {
+      byte[] magic = SparseBinaryWriter.MAGIC;
+      byte[] bytes = new byte[magic.length];
+      RandomAccessFile raf = new RandomAccessFile (file, "r");
+      try {
+         if (raf.length() < bytes.length) {
+            return false;
+         }
+         raf.readFully (bytes);
+      }
+      finally {
+         raf.close();
+      }
+      return Arrays.equals (bytes, magic);
+   }
+
+   private ByteBuffer readBytes (long pos, int nbytes) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate (nbytes);
+      buf.order (ByteOrder.LITTLE_ENDIAN);
+      while (buf.hasRemaining()) {
+         if (myChannel.read (buf, pos+buf.position()) < 0) {
+            throw new IOException ("Unexpected end of file at " + pos);
+         }
+      }
+      buf.flip();
+      return buf;
+   }
+
+   private void scanRecords() throws IOException {
+      long fileSize = myChannel.size();
+      ByteBuffer buf = readBytes (0, SparseBinaryWriter.MAGIC.length+4);
+      for (int i=0; i<SparseBinaryWriter.MAGIC.length; i++) {
+         if (buf.get() != SparseBinaryWriter.MAGIC[i]) {
+            throw new IOException ("Not a binary sparse matrix file");
+         }
+      }
+      myVersion = buf.getInt();
+      if (myVersion > SparseBinaryWriter.VERSION) {
+         throw new IOException (
+            "File version " + myVersion + " is not supported");
+      }
+      long pos = SparseBinaryWriter.MAGIC.length+4;
+      while (pos < fileSize) {
+         buf = readBytes (pos, 8);
+         int code = buf.getInt();
+         int nameLen = buf.getInt();
+         RecordType type = RecordType.fromCode (code);
+         if (type == null) {
+            throw new IOException (
+               "Unknown record type " + code + " at offset " + pos);
+         }
+         if (nameLen < 0 || pos+8+nameLen+8 > fileSize) {
+            throw new IOException ("Corrupt record header at offset " + pos);
+         }
+         buf = readBytes (pos+8, nameLen+8);
+         byte[] bytes = new byte[nameLen];
+         buf.get (bytes);
+         String name = new String (bytes, StandardCharsets.UTF_8);
+         long size = buf.getLong();
+         long offset = pos+8+nameLen+8;
+         if (size < 0 || offset+size > fileSize) {
+            throw new IOException (
+               "Record '" + name + "' extends past the end of the file");
+         }
+         Record rec = new Record (type, name, offset, size);
+         myRecords.add (rec);
+         myRecordMap.put (name, rec);
+         pos = offset+size;
+      }
+   }
+
+   /**
+    * Returns the format version of the file.
+    *
+    * @return file format version
+    */
+   public int getVersion() {
+      return myVersion;
+   }
+
+   /**
+    * Returns the number of records in the file.
+    *
+    * @return number of records
+    */
+   public int numRecords() {
+      return myRecords.size();
+   }
+
+   /**
+    * Returns the name of a specified record.
+    *
+    * @param idx index of the record
+    * @return name of the record
+    */
+   public String getName (int idx) {
+      return myRecords.get(idx).myName;
+   }
+
+   /**
+    * Returns the type of a specified record.
+    *
+    * @param idx index of the record
+    * @return type of the record
+    */
+   public RecordType getType (int idx) {
+      return myRecords.get(idx).myType;
+   }
+
+   /**
+    * Returns the type of the record with the specified name, or {@code
+    * null} if there is no such record. If several records have the same
+    * name, the last one is used.
+    *
+    * @param name name of the record
+    * @return type of the record, or {@code null}
+    */
+   public RecordType getType (String name) {
+      Record rec = myRecordMap.get (name);
+      return rec != null ? rec.myType : null;
+   }
+
+   /**
+    * Queries whether the file contains a record with the specified name.
+    *
+    * @param name name of the record
+    * @return {@code true} if the record exists
+    */
+   public boolean hasRecord (String name) {
+      return myRecordMap.containsKey (name);
+   }
+
+   private Record getRecord (String name, RecordType type) throws IOException {
+      if (myChannel == null) {
+         throw new IOException ("Reader has been closed");
+      }
+      Record rec = myRecordMap.get (name);
+      if (rec == null) {
+         throw new IOException ("No record named '" + name + "'");
+      }
+      if (rec.myType != type) {
+         throw new IOException (
+            "Record '" + name + "' has type " + rec.myType + ", not " + type);
+      }
+      return rec;
+   }
+
+   /**
+    * Sequentially reads values from a record payload, memory-mapping it in
+    * sections of at most MAX_MAP_SIZE bytes.
+    */
+   private class PayloadReader {
+      Record myRec;
+      long myPos;        // position of myBuf within the file
+      ByteBuffer myBuf;
+
+      PayloadReader (Record rec) throws IOException {
+         myRec = rec;
+         myPos = rec.myOffset;
+         myBuf = null;
+         map (0);
+      }
+
+      private void map (long nbytes) throws IOException {
+         // advance past the consumed part of the current buffer
+         if (myBuf != null) {
+            myPos += myBuf.position();
+         }
+         long end = myRec.myOffset + myRec.mySize;
+         long size = Math.min (end-myPos, MAX_MAP_SIZE);
+         if (size < nbytes) {
+            throw new IOException (
+               "Record '" + myRec.myName + "' is truncated");
+         }
+         myBuf = myChannel.map (FileChannel.MapMode.READ_ONLY, myPos, size);
+         myBuf.order (ByteOrder.LITTLE_ENDIAN);
+      }
+
+      int getInt() throws IOException {
+         if (myBuf.remaining() < 4) {
+            map (4);
+         }
+         return myBuf.getInt();
+      }
+
+      void getInts (int[] vals, int num) throws IOException {
+         int k = 0;
+         while (k < num) {
+            if (myBuf.remaining() < 4) {
+               map (4);
+            }
+            int n = Math.min (num-k, myBuf.remaining()/4);
+            myBuf.asIntBuffer().get (vals, k, n);
+            myBuf.position (myBuf.position()+4*n);
+            k += n;
+         }
+      }
+
+      void getDoubles (double[] vals, int num) throws IOException {
+         int k = 0;
+         while (k < num) {
+            if (myBuf.remaining() < 8) {
+               map (8);
+            }
+            int n = Math.min (num-k, myBuf.remaining()/8);
+            myBuf.asDoubleBuffer().get (vals, k, n);
+            myBuf.position (myBuf.position()+8*n);
+            k += n;
+         }
+      }
+   }
+
+   private static void checkSize (
+      String name, String what, int value) throws IOException {
+      if (value < 0) {
+         throw new IOException (
+            "Record '" + name + "' has negative " + what + ": " + value);
+      }
+   }
+
+   /**
+    * Reads a SparseBlockMatrix record.
+    *
+    * @param name name of the record
+    * @return matrix read from the file
+    * @throws IOException if the record does not exist, has a different type,
+    * or is corrupt
+    */
+   public SparseBlockMatrix readBlockMatrix (String name) throws IOException {
+      Record rec = getRecord (name, RecordType.BlockMatrix);
+      PayloadReader in = new PayloadReader (rec);
+      int nbr = in.getInt();
+      int nbc = in.getInt();
+      int nblks = in.getInt();
+      checkSize (name, "number of block rows", nbr);
+      checkSize (name, "number of block columns", nbc);
+      checkSize (name, "number of blocks", nblks);
+      int[] rowSizes = new int[nbr];
+      int[] colSizes = new int[nbc];
+      int[] rowCnts = new int[nbr];
+      int[] blkCols = new int[nblks];
+      in.getInts (rowSizes, nbr);
+      in.getInts (colSizes, nbc);
+      in.getInts (rowCnts, nbr);
+      in.getInts (blkCols, nblks);
+      SparseBlockMatrix S = new SparseBlockMatrix (rowSizes, colSizes);
+      double[] vals = new double[0];
+      int k = 0;
+      for (int bi=0; bi<nbr; bi++) {
+         if (k+rowCnts[bi] > nblks || rowCnts[bi] < 0) {
+            throw new IOException (
+               "Record '" + name + "' has inconsistent block counts");
+         }
+         for (int i=0; i<rowCnts[bi]; i++) {
+            int bj = blkCols[k++];
+            if (bj < 0 || bj >= nbc) {
+               throw new IOException (
+                  "Record '" + name + "' has block column " + bj +
+                  " out of range");
+            }
+            int n = rowSizes[bi]*colSizes[bj];
+            if (vals.length < n) {
+               vals = new double[n];
+            }
+            in.getDoubles (vals, n);
+            MatrixBlock blk = MatrixBlockBase.alloc (
+               rowSizes[bi], colSizes[bj]);
+            blk.set (vals);
+            S.addBlock (bi, bj, blk);
+         }
+      }
+      return S;
+   }
+
+   /**
+    * Reads a CRS matrix record.
+    *
+    * @param name name of the record
+    * @return matrix read from the file
+    * @throws IOException if the record does not exist, has a different type,
+    * or is corrupt
+    */
+   public SparseMatrixCRS readCRSMatrix (String name) throws IOException {
+      Record rec = getRecord (name, RecordType.CRSMatrix);
+      PayloadReader in = new PayloadReader (rec);
+      int nrows = in.getInt();
+      int ncols = in.getInt();
+      int nnz = in.getInt();
+      checkSize (name, "number of rows", nrows);
+      checkSize (name, "number of columns", ncols);
+      checkSize (name, "number of values", nnz);
+      int[] rowOffs = new int[nrows+1];
+      int[] colIdxs = new int[nnz];
+      double[] vals = new double[nnz];
+      in.getInts (rowOffs, nrows+1);
+      in.getInts (colIdxs, nnz);
+      in.getDoubles (vals, nnz);
+      // setCRSValues expects one-based indices
+      for (int i=0; i<=nrows; i++) {
+         if (rowOffs[i] < 0 || rowOffs[i] > nnz) {
+            throw new IOException (
+               "Record '" + name + "' has row offset out of range");
+         }
+         rowOffs[i]++;
+      }
+      for (int j=0; j<nnz; j++) {
+         colIdxs[j]++;
+      }
+      SparseMatrixCRS M = new SparseMatrixCRS (nrows, ncols);
+      M.setCRSValues (
+         vals, colIdxs, rowOffs, nnz, nrows, Matrix.Partition.Full);
+      return M;
+   }
+
+   /**
+    * Reads a vector record.
+    *
+    * @param name name of the record
+    * @return vector read from the file
+    * @throws IOException if the record does not exist, has a different type,
+    * or is corrupt
+    */
+   public VectorNd readVector (String name) throws IOException {
+      Record rec = getRecord (name, RecordType.Vector);
+      PayloadReader in = new PayloadReader (rec);
+      int size = in.getInt();
+      checkSize (name, "size", size);
+      VectorNd vec = new VectorNd (size);
+      in.getDoubles (vec.getBuffer(), size);
+      return vec;
+   }
+
+   /**
+    * Reads an integer record.
+    *
+    * @param name name of the record
+    * @return value read from the file
+    * @throws IOException if the record does not exist or has a different
+    * type
+    */
+   public int readInt (String name) throws IOException {
+      Record rec = getRecord (name, RecordType.IntValue);
+      return new PayloadReader (rec).getInt();
+   }
+
+   /**
+    * Closes the file. Records can no longer be read after this is called.
+    *
+    * @throws IOException if an I/O error occurs
+    */
+   public void close() throws IOException {
+      if (myFile != null) {
+         myFile.close();
+         myFile = null;
+         myChannel = null;
+      }
+   }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.matrix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes sparse matrices, vectors and integers to a compact binary file,
+ * which can be read back quickly using {@link SparseBinaryReader}. This is
+ * intended for capturing large linear systems, such as the KKT system of a
+ * slow simulation step, so that they can be replayed offline through
+ * different solvers. It is much faster and more compact than the text
+ * formats produced by {@link SparseBlockMatrix#writeBlocks writeBlocks()}
+ * and {@link Matrix#write write()}.
+ *
+ * <p>Each item is written as a named record. All values are little-endian.
+ * The file starts with the four ASCII bytes <code>SPMB</code> and an int
+ * version number, followed by the records, each of which has the form
+ * <pre>
+ *    int     record type (1 = block matrix, 2 = CRS matrix, 3 = vector,
+ *                         4 = integer)
+ *    int     length of the name in bytes
+ *    byte[]  name, UTF-8 encoded
+ *    long    length of the payload in bytes
+ *    byte[]  payload
+ * </pre>
+ * The payload for a {@link SparseBlockMatrix} is
+ * <pre>
+ *    int     number of block rows (nbr)
+ *    int     number of block columns (nbc)
+ *    int     number of blocks (nblks)
+ *    int[]   size of each block row             (nbr values)
+ *    int[]   size of each block column          (nbc values)
+ *    int[]   number of blocks in each block row (nbr values)
+ *    int[]   block column index of each block   (nblks values)
+ *    double[] values of each block, in row-major order
+ * </pre>
+ * where the blocks are ordered by block row and then by block column.
+ * The payload for a CRS matrix is
+ * <pre>
+ *    int     number of rows (nrows)
+ *    int     number of columns
+ *    int     number of non-zero values (nnz)
+ *    int[]   zero-based row offsets, followed by nnz  (nrows+1 values)
+ *    int[]   zero-based column index of each value     (nnz values)
+ *    double[] non-zero values in row-major order       (nnz values)
+ * </pre>
+ * Note that the CRS indices are zero-based, unlike those returned by {@link
+ * Matrix#getCRSIndices getCRSIndices()}. The payload for a vector is an int
+ * size followed by the double values, and the payload for an integer is the
+ * int value.
+ */
+public class SparseBinaryWriter {
+
+   /**
+    * Identifies the type of each record in a binary sparse matrix file.
+    */
+   public enum RecordType {
+      BlockMatrix,
+      CRSMatrix,
+      Vector,
+      IntValue;
+
+      /**
+       * Returns the code used for this record type in the file.
+       */
+      int code() {
+         return ordinal()+1;
+      }
+
+      /**
+       * Returns the record type for a specified code, or {@code null} if the
+       * code is invalid.
+       */
+      static RecordType fromCode (int code) {
+         RecordType[] types = values();
+         return (code >= 1 && code <= types.length ? types[code-1] : null);
+      }
+   }
+
+   static final byte[] MAGIC = new byte[] { 'S', 'P', 'M', 'B' };
+   static final int VERSION = 1;
+
+   private static final int BUFFER_SIZE = 1 << 16;
+
+   private FileOutputStream myStream;
+   private FileChannel myChannel;
+   private ByteBuffer myBuf;
+
+   /**
+    * Creates a writer for the specified file, which is created or
+    * overwritten.
+    *
+    * @param file file to write to
+    * @throws IOException if the file cannot be opened
+    */
+   public SparseBinaryWriter (File file) throws IOException {
+      myStream = new FileOutputStream (file);
+      myChannel = myStream.getChannel();
+      myBuf = ByteBuffer.allocateDirect (BUFFER_SIZE);
+      myBuf.order (ByteOrder.LITTLE_ENDIAN);
+      myBuf.put (MAGIC);
+      myBuf.putInt (VERSION);
+   }
+
+   /**
+    * Creates a writer for the specified file, which is created or
+    * overwritten.
+    *
+    * @param fileName name of the file to write to
+    * @throws IOException if the file cannot be opened
+    */
+   public SparseBinaryWriter (String fileName) throws IOException {
+      this (new File (fileName));
+   }
+
+   private void flushBuffer() throws IOException {
+      myBuf.flip();
+      while (myBuf.hasRemaining()) {
+         myChannel.write (myBuf);
+      }
+      myBuf.clear();
+   }
+
+   private void ensureSpace (int nbytes) throws IOException {
+      if (myBuf.remaining() < nbytes) {
+         flushBuffer();
+      }
+   }
+
+   private void putInt (int value) throws IOException {
+      ensureSpace (4);
+      myBuf.putInt (value);
+   }
+
+   private void putLong (long value) throws IOException {
+      ensureSpace (8);
+      myBuf.putLong (value);
+   }
+
+   private void putDouble (double value) throws IOException {
+      ensureSpace (8);
+      myBuf.putDouble (value);
+   }
+
+   private void putInts (int[] values, int num) throws IOException {
+      for (int i=0; i<num; i++) {
+         putInt (values[i]);
+      }
+   }
+
+   private void putDoubles (double[] values, int num) throws IOException {
+      for (int i=0; i<num; i++) {
+         putDouble (values[i]);
+      }
+   }
+
+   private void putRecordHeader (
+      RecordType type, String name, long payloadSize) throws IOException {
+      if (myChannel == null) {
+         throw new IOException ("Writer has been closed");
+      }
+      byte[] bytes = name.getBytes (StandardCharsets.UTF_8);
+      putInt (type.code());
+      putInt (bytes.length);
+      for (int i=0; i<bytes.length; i++) {
+         ensureSpace (1);
+         myBuf.put (bytes[i]);
+      }
+      putLong (payloadSize);
+   }
+
+   /**
+    * Writes a SparseBlockMatrix, preserving its block structure.
+    *
+    * @param name name of the record
+    * @param S matrix to write
+    * @throws IOException if an I/O error occurs
+    */
+   public void writeBlockMatrix (
+      String name, SparseBlockMatrix S) throws IOException {
+
+      int nbr = S.numBlockRows();
+      int nbc = S.numBlockCols();
+      int nblks = 0;
+      long nvals = 0;
+      for (int bi=0; bi<nbr; bi++) {
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            nblks++;
+            nvals += blk.rowSize()*blk.colSize();
+         }
+      }
+      long size = 4L*(3 + 2*nbr + nbc + nblks) + 8L*nvals;
+      putRecordHeader (RecordType.BlockMatrix, name, size);
+      putInt (nbr);
+      putInt (nbc);
+      putInt (nblks);
+      for (int bi=0; bi<nbr; bi++) {
+         putInt (S.getBlockRowSize (bi));
+      }
+      for (int bj=0; bj<nbc; bj++) {
+         putInt (S.getBlockColSize (bj));
+      }
+      for (int bi=0; bi<nbr; bi++) {
+         int cnt = 0;
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            cnt++;
+         }
+         putInt (cnt);
+      }
+      for (int bi=0; bi<nbr; bi++) {
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            putInt (blk.getBlockCol());
+         }
+      }
+      double[] vals = new double[0];
+      for (int bi=0; bi<nbr; bi++) {
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            int n = blk.rowSize()*blk.colSize();
+            if (vals.length < n) {
+               vals = new double[n];
+            }
+            blk.get (vals);
+            putDoubles (vals, n);
+         }
+      }
+   }
+
+   /**
+    * Writes a matrix in compressed row storage (CRS) format. Any matrix type
+    * may be written, but only its non-zero structure is preserved.
+    *
+    * @param name name of the record
+    * @param M matrix to write
+    * @throws IOException if an I/O error occurs
+    */
+   public void writeCRSMatrix (String name, Matrix M) throws IOException {
+      int nrows = M.rowSize();
+      int nnz = M.numNonZeroVals();
+      int[] rowOffs = new int[nrows+1];
+      int[] colIdxs = new int[nnz];
+      double[] vals = new double[nnz];
+      M.getCRSIndices (colIdxs, rowOffs, Matrix.Partition.Full);
+      M.getCRSValues (vals, Matrix.Partition.Full);
+      // convert to zero-based indices
+      for (int i=0; i<=nrows; i++) {
+         rowOffs[i]--;
+      }
+      for (int k=0; k<nnz; k++) {
+         colIdxs[k]--;
+      }
+      long size = 4L*(3 + nrows+1 + nnz) + 8L*nnz;
+      putRecordHeader (RecordType.CRSMatrix, name, size);
+      putInt (nrows);
+      putInt (M.colSize());
+      putInt (nnz);
+      putInts (rowOffs, nrows+1);
+      putInts (colIdxs, nnz);
+      putDoubles (vals, nnz);
+   }
+
+   /**
+    * Writes a vector.
+    *
+    * @param name name of the record
+    * @param vec vector to write
+    * @throws IOException if an I/O error occurs
+    */
+   public void writeVector (String name, VectorNd vec) throws IOException {
+      int size = vec.size();
+      putRecordHeader (RecordType.Vector, name, 4L + 8L*size);
+      putInt (size);
+      putDoubles (vec.getBuffer(), size);
+   }
+
+   /**
+    * Writes an integer value, such as a matrix size.
+    *
+    * @param name name of the record
+    * @param value value to write
+    * @throws IOException if an I/O error occurs
+    */
+   public void writeInt (String name, int value) throws IOException {
+      putRecordHeader (RecordType.IntValue, name, 4L);
+      putInt (value);
+   }
+
+   /**
+    * Flushes any buffered output to the file.
+    *
+    * @throws IOException if an I/O error occurs
+    */
+   public void flush() throws IOException {
+      if (myChannel != null) {
+         flushBuffer();
+      }
+   }
+
+   /**
+    * Flushes any buffered output and closes the file.
+    *
+    * @throws IOException if an I/O error occurs
+    */
+   public void close() throws IOException {
+      if (myChannel != null) {
+         try {
+            flushBuffer();
+         }
+         finally {
+            myStream.close();
+            myChannel = null;
+            myStream = null;
+         }
+      }
+   }
+}
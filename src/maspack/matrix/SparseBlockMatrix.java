@@ -9,9 +9,11 @@ package maspack.matrix;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Random;
 
+import maspack.concurrency.WorkerPool;
 import maspack.util.Clonable;
 import maspack.util.IndentingPrintWriter;
 import maspack.util.InternalErrorException;
@@ -32,6 +34,48 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
 
    static public int warningLevel = 1;
 
+   /**
+    * Minimum number of rows that must be traversed by a matrix-vector
+    * multiplication before it is performed in parallel.
+    */
+   public static int minParallelMulSize = 3000;
+
+   private static int myNumMulThreads = 1;
+   private static MulWorkers myMulWorkers;
+
+   /**
+    * Worker threads used for parallel matrix-vector multiplication, together
+    * with the per-thread result buffers used by transposed multiplications.
+    * Since the buffers are reused, these are used by only one multiplication
+    * at a time.
+    */
+   private static class MulWorkers {
+      WorkerPool myPool;
+      double[][] myBufs;
+      boolean myInUse;
+
+      MulWorkers (int nthreads) {
+         myPool = new WorkerPool ("SparseBlockMatrix", nthreads);
+         myBufs = new double[nthreads][];
+      }
+
+      /**
+       * Returns the result buffer for thread <code>tidx</code>, with its
+       * first <code>size</code> entries set to zero.
+       */
+      double[] getZeroedBuffer (int tidx, int size) {
+         double[] buf = myBufs[tidx];
+         if (buf == null || buf.length < size) {
+            buf = new double[size];
+            myBufs[tidx] = buf;
+         }
+         else {
+            Arrays.fill (buf, 0, size, 0);
+         }
+         return buf;
+      }
+   }
+
    // amount by which to increase row/column information arrays when
    // matrix is enlarged on demand.
    // private static int bufferSizeInc = 256;
@@ -53,6 +97,11 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
 
    protected boolean myVerticallyLinkedP = false;
 
+   // per-thread storage for block row offsets used by getBlockCRSValues(),
+   // so that it can be called concurrently without allocating each time
+   private static final ThreadLocal<int[]> myLocalRowOffsets =
+      ThreadLocal.withInitial (() -> new int[0]);
+
    public enum PrintFormat {
       MatrixMarket, CRS, CCS,
    }
@@ -85,6 +134,9 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
    }
 
    public void setRowCapacity (int newCap) {
+      if (newCap == myRows.length) {
+         return;
+      }
       int nbk = myNumBlockRows;
       MatrixBlockRowList[] newRows = new MatrixBlockRowList[newCap];
       for (int i = 0; i < Math.min(nbk,newCap); i++) {
@@ -101,7 +153,9 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
          setRowCapacity (Math.max (((nbk+1)*3)/2, 256));
       }
       myRowOffsets[nbk+1] = myRowOffsets[nbk]+size;
-      myRows[nbk] = new MatrixBlockRowList();
+      if (myRows[nbk] == null) {
+         myRows[nbk] = new MatrixBlockRowList();
+      }
       myNumRows += size;
 
       myNumBlockRows++;
@@ -116,13 +170,18 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
       for (int k=0; k<num; k++) {
          myRowOffsets[nbk+k+1] = myRowOffsets[nbk+k]+sizes[k];
          nrows += sizes[k];
-         myRows[nbk+k] = new MatrixBlockRowList();
+         if (myRows[nbk+k] == null) {
+            myRows[nbk+k] = new MatrixBlockRowList();
+         }
       }
       myNumRows += nrows;
       myNumBlockRows += num;
    }
 
    public void setColCapacity (int newCap) {
+      if (newCap == myCols.length) {
+         return;
+      }
       int nbk = myNumBlockCols;
       MatrixBlockColList[] newCols = new MatrixBlockColList[newCap];
       for (int i = 0; i < Math.min(nbk, newCap); i++) {
@@ -139,7 +198,7 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
          setColCapacity (Math.max (((nbk+1)*3)/2, 256));
       }
       myColOffsets[nbk+1] = myColOffsets[nbk]+size;
-      if (myVerticallyLinkedP) {
+      if (myVerticallyLinkedP && myCols[nbk] == null) {
          myCols[nbk] = new MatrixBlockColList();
       }
       myNumCols += size;
@@ -155,7 +214,7 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
       for (int k=0; k<num; k++) {
          myColOffsets[nbk+k+1] = myColOffsets[nbk+k]+sizes[k];
          ncols += sizes[k];
-         if (myVerticallyLinkedP) {
+         if (myVerticallyLinkedP && myCols[nbk+k] == null) {
             myCols[nbk+k] = new MatrixBlockColList();
          }
       }
@@ -325,6 +384,20 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
       invalidateRowColIndices();
    }
 
+   /**
+    * Removes all blocks, block rows and block columns from this matrix,
+    * leaving it with zero size. Unlike creating a new matrix, this retains
+    * the storage allocated for the block rows and columns, so that a matrix
+    * with the same structure can be rebuilt without allocating memory.
+    */
+   public void clear() {
+      removeAllBlocks();
+      myNumBlockRows = 0;
+      myNumBlockCols = 0;
+      myNumRows = 0;
+      myNumCols = 0;
+   }
+
    public MatrixBlock getBlock (int bi, int bj) {
       if (bi < 0 || bi >= myNumBlockRows || bj < 0 || bj >= myNumBlockCols) {
          return null;
@@ -608,6 +681,100 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
    //    }
    // }
 
+   /**
+    * Sets the number of threads used for matrix-vector multiplication by
+    * all sparse block matrices. Multiplications traversing fewer than
+    * {@link #minParallelMulSize} rows are always performed serially, as
+    * are multiplications started while another thread is performing a
+    * parallel multiplication. By default, only one thread is used, so that
+    * the results do not depend on the number of processors, since
+    * transposed multiplications with more than one thread may sum values in
+    * a different order.
+    *
+    * @param num number of threads to use
+    * @see #getNumMulThreads
+    */
+   public static synchronized void setNumMulThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumMulThreads) {
+         if (myMulWorkers != null) {
+            // if the workers are in use, they are shut down when released
+            if (!myMulWorkers.myInUse) {
+               myMulWorkers.myPool.shutdown();
+            }
+            myMulWorkers = null;
+         }
+         myNumMulThreads = num;
+      }
+   }
+
+   /**
+    * Returns the number of threads used for matrix-vector multiplication by
+    * all sparse block matrices.
+    *
+    * @return number of threads
+    * @see #setNumMulThreads
+    */
+   public static int getNumMulThreads() {
+      return myNumMulThreads;
+   }
+
+   /**
+    * Acquires the workers to use for a multiplication traversing
+    * <code>nrows</code> rows, or returns <code>null</code> if the
+    * multiplication should be performed serially. Acquired workers must be
+    * released using {@link #releaseMulWorkers}.
+    */
+   private static synchronized MulWorkers acquireMulWorkers (int nrows) {
+      if (myNumMulThreads == 1 || nrows < minParallelMulSize) {
+         return null;
+      }
+      if (myMulWorkers == null) {
+         myMulWorkers = new MulWorkers (myNumMulThreads);
+      }
+      if (myMulWorkers.myInUse) {
+         // being used by another thread
+         return null;
+      }
+      myMulWorkers.myInUse = true;
+      return myMulWorkers;
+   }
+
+   private static synchronized void releaseMulWorkers (MulWorkers workers) {
+      workers.myInUse = false;
+      if (workers != myMulWorkers) {
+         // number of threads was changed while the workers were in use
+         workers.myPool.shutdown();
+      }
+   }
+
+   /**
+    * Returns the index of the first block row whose offset is {@code >=
+    * rowf}.
+    */
+   private int getBlockRowLimit (int rowf) {
+      if (rowf >= myNumRows) {
+         return myNumBlockRows;
+      }
+      int bi = getBlockRow (rowf);
+      return myRowOffsets[bi] < rowf ? bi+1 : bi;
+   }
+
+   /**
+    * Returns the index of the first block column whose offset is {@code >=
+    * colf}.
+    */
+   private int getBlockColLimit (int colf) {
+      if (colf >= myNumCols) {
+         return myNumBlockCols;
+      }
+      int bj = getBlockCol (colf);
+      return myColOffsets[bj] < colf ? bj+1 : bj;
+   }
+
    protected void mulVec (
       double[] res, double[] vec, int r0, int nr, int c0, int nc) {
       for (int i=0; i<nr; i++) {
@@ -619,16 +786,36 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
    protected void mulAddVec (
       double[] res, double[] vec, int r0, int nr, int c0, int nc) {
 
-      int rowf = r0 + nr;
-      int colf = c0 + nc;
       int bi0 = getBlockRow (r0);
       
       // not a valid row
       if (bi0 < 0) {
          return;
       }
+      int bif = getBlockRowLimit (r0+nr);
+      MulWorkers workers = acquireMulWorkers (nr);
+      if (workers == null) {
+         mulAddRows (res, vec, r0, c0, nc, bi0, bif);
+         return;
+      }
+      try {
+         // each thread writes to a disjoint set of rows
+         workers.myPool.forEachRange (bif-bi0, (tidx, start, end) ->
+            mulAddRows (res, vec, r0, c0, nc, bi0+start, bi0+end));
+      }
+      finally {
+         releaseMulWorkers (workers);
+      }
+   }
 
-      for (int bi=bi0; bi<myNumBlockRows && myRowOffsets[bi]<rowf; bi++) {
+   /**
+    * Computes the contribution to res from block rows <code>[bi0,
+    * bif)</code>.
+    */
+   private void mulAddRows (
+      double[] res, double[] vec, int r0, int c0, int nc, int bi0, int bif) {
+      int colf = c0 + nc;
+      for (int bi=bi0; bi<bif; bi++) {
          int rowOff = myRowOffsets[bi];
          for (MatrixBlock blk=myRows[bi].myHead; blk!=null; blk=blk.next()) {
             int colOff = myColOffsets[blk.getBlockCol()];
@@ -654,11 +841,64 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
    protected void mulTransposeAddVec (
       double[] res, double[] vec, int r0, int nr, int c0, int nc) {
 
-      int rowf = c0 + nc;
-      int colf = r0 + nr;
       int bi0 = getBlockRow (c0);
 
-      for (int bi=bi0; bi<myNumBlockRows && myRowOffsets[bi]<rowf; bi++) {
+      // not a valid row
+      if (bi0 < 0) {
+         return;
+      }
+      int bif = getBlockRowLimit (c0+nc);
+      MulWorkers workers = acquireMulWorkers (nc);
+      if (workers == null) {
+         mulTransposeAddRows (res, vec, r0, nr, c0, bi0, bif);
+         return;
+      }
+      try {
+         WorkerPool pool = workers.myPool;
+         if (myVerticallyLinkedP) {
+            // partition by block column, so that each thread writes to a
+            // disjoint set of result entries
+            int bj0 = getBlockCol (r0);
+            if (bj0 < 0) {
+               return;
+            }
+            int bjf = getBlockColLimit (r0+nr);
+            pool.forEachRange (bjf-bj0, (tidx, start, end) ->
+               mulTransposeAddCols (
+                  res, vec, r0, c0, nc, bj0+start, bj0+end));
+         }
+         else {
+            // partition by block row, with each thread other than the first
+            // accumulating into its own buffer
+            int nthreads = pool.numRanges (bif-bi0);
+            pool.forEachRange (bif-bi0, (tidx, start, end) ->
+               mulTransposeAddRows (
+                  tidx == 0 ? res : workers.getZeroedBuffer (tidx, nr),
+                  vec, r0, nr, c0, bi0+start, bi0+end));
+            // merge in thread order, so that results are reproducible
+            pool.forEachRange (nr, (tidx, start, end) -> {
+               for (int k=1; k<nthreads; k++) {
+                  double[] buf = workers.myBufs[k];
+                  for (int j=start; j<end; j++) {
+                     res[j] += buf[j];
+                  }
+               }
+            });
+         }
+      }
+      finally {
+         releaseMulWorkers (workers);
+      }
+   }
+
+   /**
+    * Computes the transpose contribution to res from block rows
+    * <code>[bi0, bif)</code>.
+    */
+   private void mulTransposeAddRows (
+      double[] res, double[] vec, int r0, int nr, int c0, int bi0, int bif) {
+      int colf = r0 + nr;
+      for (int bi=bi0; bi<bif; bi++) {
          int rowOff = myRowOffsets[bi];
          for (MatrixBlock blk=myRows[bi].myHead; blk!=null; blk = blk.next()) {
             int colOff = myColOffsets[blk.getBlockCol()];
@@ -672,6 +912,27 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
       }
    }
 
+   /**
+    * Computes the transpose contribution to res from block columns
+    * <code>[bj0, bjf)</code>, using the vertical block links.
+    */
+   private void mulTransposeAddCols (
+      double[] res, double[] vec, int r0, int c0, int nc, int bj0, int bjf) {
+      int rowf = c0 + nc;
+      for (int bj=bj0; bj<bjf; bj++) {
+         int colOff = myColOffsets[bj];
+         for (MatrixBlock blk=myCols[bj].myHead; blk!=null; blk=blk.down()) {
+            int rowOff = myRowOffsets[blk.getBlockRow()];
+            if (rowOff >= rowf) {
+               break;
+            }
+            else if (rowOff >= c0) {
+               blk.mulTransposeAdd (res, colOff-r0, vec, rowOff-c0);
+            }
+         }
+      }
+   }
+
    protected void mulCheckArgs (
       VectorNd vr, VectorNd v1, int r0, int nr, int c0, int nc) {
       super.mulCheckArgs (vr, v1, r0, nr, c0, nc);
@@ -1052,9 +1313,16 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
 
    public int getBlockCRSValues (
       double[] vals, int[] offsets, Partition part, int numRows, int numCols) {
-      BlockSize bsize = getBlockSize (numRows, numCols);
+      // avoid allocating a BlockSize, since this is called at every step
+      int numBlkRows = getAlignedBlockRow (numRows);
+      int numBlkCols = getAlignedBlockCol (numCols);
+      if (numBlkRows == -1 || numBlkCols == -1) {
+         throw new IllegalArgumentException (
+            "submatrix "+getSubMatrixStr(0,numRows-1,0,numCols-1)+
+            " is not block aligned");
+      }
       return doGetBlockCRSValues (
-         vals, offsets, part, bsize.numBlkRows, bsize.numBlkCols);
+         vals, offsets, part, numBlkRows, numBlkCols);
    }
 
    private int doGetBlockCRSValues (
@@ -1062,11 +1330,13 @@ public class SparseBlockMatrix extends SparseMatrixBase implements Clonable {
       int numBlkCols) {
       int off = 0;
       int nnz = 0;
-      int[] localOffsets = null;
+      // reuse the offset storage, since this is called at every solve
+      int[] localOffsets = myLocalRowOffsets.get();
       for (int bi = 0; bi < numBlkRows; bi++) {
          int nrows = getBlockRowSize(bi);
-         if (localOffsets == null || localOffsets.length != nrows) {
+         if (localOffsets.length < nrows) {
             localOffsets = new int[nrows];
+            myLocalRowOffsets.set (localOffsets);
          }
          for (int i = 0; i < nrows; i++) {
             localOffsets[i] = offsets[off + i];
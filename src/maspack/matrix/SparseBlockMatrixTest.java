@@ -788,6 +788,77 @@ public class SparseBlockMatrixTest extends MatrixTest {
       }
    }
 
+   private void checkParallelMul (
+      SparseBlockMatrix M, int nbr, int nbc, int nthreads) {
+      int nr = M.getBlockRowOffset (nbr);
+      int nc = M.getBlockColOffset (nbc);
+      VectorNd x = new VectorNd (M.colSize());
+      VectorNd y = new VectorNd (M.rowSize());
+      x.setRandom();
+      y.setRandom();
+      VectorNd mulChk = new VectorNd (nr);
+      VectorNd mulTChk = new VectorNd (nc);
+      VectorNd mulRes = new VectorNd (nr);
+      VectorNd mulTRes = new VectorNd (nc);
+      VectorNd mulTRep = new VectorNd (nc);
+
+      int numThreads = SparseBlockMatrix.getNumMulThreads();
+      int minSize = SparseBlockMatrix.minParallelMulSize;
+      SparseBlockMatrix.setNumMulThreads (1);
+      M.mul (mulChk, x, nr, nc);
+      M.mulTranspose (mulTChk, y, nc, nr);
+      SparseBlockMatrix.setNumMulThreads (nthreads);
+      SparseBlockMatrix.minParallelMulSize = 0;
+      try {
+         M.mul (mulRes, x, nr, nc);
+         M.mulTranspose (mulTRes, y, nc, nr);
+         // repeat, to check that reused thread buffers are cleared
+         M.mulTranspose (mulTRep, y, nc, nr);
+      }
+      finally {
+         SparseBlockMatrix.setNumMulThreads (numThreads);
+         SparseBlockMatrix.minParallelMulSize = minSize;
+      }
+      if (!mulRes.epsilonEquals (mulChk, 1e-12)) {
+         throw new TestException (
+            "parallel mul with "+nthreads+" threads failed:\n" +
+            mulRes + "\nExpected:\n" + mulChk);
+      }
+      if (!mulTRes.epsilonEquals (mulTChk, 1e-12)) {
+         throw new TestException (
+            "parallel mulTranspose with "+nthreads+" threads failed:\n" +
+            mulTRes + "\nExpected:\n" + mulTChk);
+      }
+      if (!mulTRep.equals (mulTRes)) {
+         throw new TestException (
+            "repeated parallel mulTranspose with "+nthreads+
+            " threads gave different results");
+      }
+   }
+
+   private void testParallelMul() {
+      int nbr = 100;
+      int nbc = 80;
+      int[] rowSizes = new int[nbr];
+      int[] colSizes = new int[nbc];
+      int[] sizes = new int[] { 1, 3, 6 };
+      for (int i=0; i<nbr; i++) {
+         rowSizes[i] = sizes[randGen.nextInt (sizes.length)];
+      }
+      for (int j=0; j<nbc; j++) {
+         colSizes[j] = sizes[randGen.nextInt (sizes.length)];
+      }
+      SparseBlockMatrix M = createRandom (rowSizes, colSizes, 0.1);
+      for (int nthreads=2; nthreads<=5; nthreads++) {
+         M.setVerticallyLinked (false);
+         checkParallelMul (M, nbr, nbc, nthreads);
+         checkParallelMul (M, nbr/2, nbc/3, nthreads);
+         M.setVerticallyLinked (true);
+         checkParallelMul (M, nbr, nbc, nthreads);
+         checkParallelMul (M, nbr/2, nbc/3, nthreads);
+      }
+   }
+
    public void test() {
 
       MatSym.setRandomValues (true);
@@ -855,6 +926,7 @@ public class SparseBlockMatrixTest extends MatrixTest {
 
       testStructureEquals ();
       testAdd ();
+      testParallelMul ();
    }
 
    public static void main (String[] args) {
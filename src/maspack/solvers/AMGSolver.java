@@ -0,0 +1,1146 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import maspack.matrix.ImproperSizeException;
+import maspack.matrix.LinearTransformNd;
+import maspack.matrix.Matrix;
+import maspack.matrix.Matrix.Partition;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+
+/**
+ * Smoothed aggregation algebraic multigrid (AMG) solver for large, sparse,
+ * symmetric positive definite systems such as FEM stiffness matrices.
+ *
+ * <p>The hierarchy is built directly from a {@link SparseBlockMatrix}, and
+ * respects its block structure: aggregates are formed from the graph of
+ * strongly coupled blocks (such as the 3 x 3 blocks associated with FEM
+ * nodes), using only blocks of the same size, and the near null space used
+ * to form the tentative prolongator consists of the per-block translations.
+ * The tentative prolongator is smoothed with one step of damped block-Jacobi,
+ * coarse operators are formed by the Galerkin product P' A P, damped
+ * block-Jacobi is used as the smoother, and the coarsest system is solved
+ * with a dense Cholesky factorization.
+ *
+ * <p>The solver can be used either on its own, through {@link
+ * #solve(VectorNd,LinearTransformNd,VectorNd)}, which applies V-cycles until
+ * convergence, or as a preconditioner for {@link CGSolver}, in which case
+ * {@link #mul mul} applies a single V-cycle. Aggregation, which is the most
+ * expensive part of the setup, is reused by {@link #factor} as long as the
+ * block structure of the matrix does not change; only the numeric parts of
+ * the hierarchy are then recomputed.
+ */
+public class AMGSolver implements BlockPreconditioner, IterativeSolver {
+
+   private double myTol = 1e-8;
+   private int myMaxIter = 100;
+   private ToleranceType myTolType = ToleranceType.RelativeResidual;
+   private int myLastIterationCnt;
+   private double myLastResidual;
+
+   private double myStrengthThreshold = 0.0;
+   private int myMaxCoarseSize = 500;
+   private int myMaxLevels = 10;
+   private int myNumPreSmooth = 1;
+   private int myNumPostSmooth = 1;
+
+   // coarsening that reduces the size by less than this is stopped
+   private static final double MIN_COARSENING = 0.9;
+   // coarsest systems larger than this are smoothed instead of factored
+   private static final int MAX_DIRECT_SIZE = 2000;
+   private static final int NUM_COARSE_SWEEPS = 20;
+   private static final int NUM_POWER_ITERATIONS = 15;
+
+   private ArrayList<Level> myLevels = new ArrayList<Level>();
+   private boolean myHierarchyReused;
+
+   // work arrays for reading the CRS structure of the matrix
+   private int[] myRowOffs = new int[0];
+   private int[] myColIdxs = new int[0];
+
+   private VectorNd myRes = new VectorNd();
+   private VectorNd myDel = new VectorNd();
+
+   /**
+    * Compressed row storage matrix, with 0-based indices.
+    */
+   private static class CRS {
+      int nrows;
+      int ncols;
+      int[] rowPtr;
+      int[] cols;
+      double[] vals;
+
+      CRS (int nrows, int ncols, int nnz) {
+         this.nrows = nrows;
+         this.ncols = ncols;
+         rowPtr = new int[nrows+1];
+         cols = new int[nnz];
+         vals = new double[nnz];
+      }
+
+      int numNonZeros() {
+         return rowPtr[nrows];
+      }
+
+      void mul (double[] y, double[] x) {
+         for (int i=0; i<nrows; i++) {
+            double sum = 0;
+            for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+               sum += vals[k]*x[cols[k]];
+            }
+            y[i] = sum;
+         }
+      }
+
+      void mulAdd (double[] y, double[] x) {
+         for (int i=0; i<nrows; i++) {
+            double sum = 0;
+            for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+               sum += vals[k]*x[cols[k]];
+            }
+            y[i] += sum;
+         }
+      }
+   }
+
+   /**
+    * One level of the multigrid hierarchy.
+    */
+   private static class Level {
+      CRS A;           // operator for this level
+      int numBlks;
+      int[] blkOffs;   // scalar offsets of the blocks
+      int[] dinvOffs;  // offsets of the diagonal block inverses
+      double[] dinv;   // row-major diagonal block inverses
+      double omega;    // damping for the block-Jacobi smoother
+      CRS P;           // prolongation from the next level
+      CRS R;           // restriction to the next level, P'
+      int[] aggs;      // aggregate for each block
+      int numAggs;
+      double[] x;
+      double[] b;
+      double[] r;
+      double[] chol;   // dense Cholesky factor, for the coarsest level
+
+      int size() {
+         return A.nrows;
+      }
+
+      int blockSize (int bi) {
+         return blkOffs[bi+1]-blkOffs[bi];
+      }
+
+      void allocateWork() {
+         int n = A.nrows;
+         if (x == null || x.length != n) {
+            x = new double[n];
+            b = new double[n];
+            r = new double[n];
+         }
+      }
+   }
+
+   /**
+    * Creates a new AMG solver.
+    */
+   public AMGSolver() {
+   }
+
+   /**
+    * Creates a new AMG solver and builds its hierarchy for a specified
+    * matrix.
+    *
+    * @param S matrix to build the hierarchy for
+    */
+   public AMGSolver (SparseBlockMatrix S) {
+      factor (S);
+   }
+
+   public double getTolerance() {
+      return myTol;
+   }
+
+   public void setTolerance (double tol) {
+      myTol = tol;
+   }
+
+   public ToleranceType getToleranceType() {
+      return myTolType;
+   }
+
+   public void setToleranceType (ToleranceType type) {
+      myTolType = type;
+   }
+
+   public int getMaxIterations() {
+      return myMaxIter;
+   }
+
+   public void setMaxIterations (int max) {
+      myMaxIter = max;
+   }
+
+   /**
+    * Returns the threshold used to decide whether two blocks are strongly
+    * coupled. See {@link #setStrengthThreshold}.
+    *
+    * @return strength of connection threshold
+    */
+   public double getStrengthThreshold() {
+      return myStrengthThreshold;
+   }
+
+   /**
+    * Sets the threshold used to decide whether two blocks are strongly
+    * coupled. Blocks i and j are strongly coupled if ||A_ij|| &gt;= theta
+    * sqrt(||A_ii|| ||A_jj||), where theta is the threshold and ||.|| denotes
+    * the Frobenius norm. Larger values result in smaller aggregates. The
+    * default value is 0, so that all non-zero couplings are treated as
+    * strong. Changes take effect the next time the hierarchy
+    * is rebuilt.
+    *
+    * @param theta strength of connection threshold
+    */
+   public void setStrengthThreshold (double theta) {
+      myStrengthThreshold = theta;
+      myLevels.clear();
+   }
+
+   /**
+    * Returns the system size below which coarsening stops.
+    *
+    * @return maximum coarse system size
+    */
+   public int getMaxCoarseSize() {
+      return myMaxCoarseSize;
+   }
+
+   /**
+    * Sets the system size below which coarsening stops, and the coarsest
+    * system is solved directly. The default value is 500.
+    *
+    * @param size maximum coarse system size
+    */
+   public void setMaxCoarseSize (int size) {
+      myMaxCoarseSize = size;
+      myLevels.clear();
+   }
+
+   /**
+    * Returns the maximum number of levels in the hierarchy.
+    *
+    * @return maximum number of levels
+    */
+   public int getMaxLevels() {
+      return myMaxLevels;
+   }
+
+   /**
+    * Sets the maximum number of levels in the hierarchy. The default value
+    * is 10.
+    *
+    * @param max maximum number of levels
+    */
+   public void setMaxLevels (int max) {
+      if (max < 1) {
+         throw new IllegalArgumentException ("max must be at least 1");
+      }
+      myMaxLevels = max;
+      myLevels.clear();
+   }
+
+   /**
+    * Returns the number of smoothing steps applied before and after the
+    * coarse grid correction on each level.
+    *
+    * @return number of smoothing steps
+    */
+   public int getNumSmoothingSteps() {
+      return myNumPreSmooth;
+   }
+
+   /**
+    * Sets the number of smoothing steps applied before and after the coarse
+    * grid correction on each level. Using the same number before and after
+    * keeps the V-cycle symmetric, as required for use with {@link
+    * CGSolver}. The default value is 1.
+    *
+    * @param num number of smoothing steps
+    */
+   public void setNumSmoothingSteps (int num) {
+      myNumPreSmooth = num;
+      myNumPostSmooth = num;
+   }
+
+   /**
+    * Returns the number of levels in the current hierarchy.
+    *
+    * @return number of levels
+    */
+   public int numLevels() {
+      return myLevels.size();
+   }
+
+   /**
+    * Returns the system size at a specified level of the current hierarchy,
+    * where level 0 is the finest.
+    *
+    * @param l level index
+    * @return size of the system at level l
+    */
+   public int getLevelSize (int l) {
+      return myLevels.get(l).size();
+   }
+
+   /**
+    * Returns the operator complexity of the current hierarchy, which is the
+    * total number of non-zeros in the operators of all levels divided by the
+    * number of non-zeros in the finest operator.
+    *
+    * @return operator complexity
+    */
+   public double getOperatorComplexity() {
+      if (myLevels.size() == 0 || myLevels.get(0).A.numNonZeros() == 0) {
+         return 0;
+      }
+      double nnz = 0;
+      for (Level L : myLevels) {
+         nnz += L.A.numNonZeros();
+      }
+      return nnz/myLevels.get(0).A.numNonZeros();
+   }
+
+   /**
+    * Queries whether the most recent call to {@link #factor} reused the
+    * aggregation from the previous call, because the block structure of the
+    * matrix had not changed.
+    *
+    * @return {@code true} if the aggregation was reused
+    */
+   public boolean isHierarchyReused() {
+      return myHierarchyReused;
+   }
+
+   /**
+    * Builds the multigrid hierarchy for a symmetric positive definite block
+    * matrix. If the block structure of the matrix is the same as in the
+    * previous call, the aggregation is reused and only the prolongators and
+    * coarse operators are recomputed.
+    *
+    * @param S matrix to build the hierarchy for
+    */
+   public void factor (SparseBlockMatrix S) {
+      BlockJacobiPreconditioner.checkStructure (S);
+      int n = S.rowSize();
+      int nnz = S.numNonZeroVals();
+      if (myRowOffs.length < n+1) {
+         myRowOffs = new int[n+1];
+      }
+      if (myColIdxs.length < nnz) {
+         myColIdxs = new int[nnz];
+      }
+      S.getCRSIndices (myColIdxs, myRowOffs, Partition.Full);
+      boolean reuse = structureEquals (S, n, nnz);
+      Level L0;
+      if (reuse) {
+         L0 = myLevels.get(0);
+      }
+      else {
+         myLevels.clear();
+         L0 = new Level();
+         L0.A = new CRS (n, n, nnz);
+         for (int i=0; i<=n; i++) {
+            L0.A.rowPtr[i] = myRowOffs[i]-1;
+         }
+         for (int k=0; k<nnz; k++) {
+            L0.A.cols[k] = myColIdxs[k]-1;
+         }
+         int nb = S.numBlockRows();
+         L0.numBlks = nb;
+         L0.blkOffs = new int[nb+1];
+         for (int bi=0; bi<=nb; bi++) {
+            L0.blkOffs[bi] = S.getBlockRowOffset (bi);
+         }
+         myLevels.add (L0);
+      }
+      S.getCRSValues (L0.A.vals, Partition.Full);
+      L0.allocateWork();
+      buildHierarchy (reuse);
+      myHierarchyReused = reuse;
+   }
+
+   private boolean structureEquals (SparseBlockMatrix S, int n, int nnz) {
+      if (myLevels.size() == 0) {
+         return false;
+      }
+      Level L0 = myLevels.get(0);
+      CRS A = L0.A;
+      if (A.nrows != n || A.numNonZeros() != nnz ||
+          L0.numBlks != S.numBlockRows()) {
+         return false;
+      }
+      for (int bi=0; bi<=L0.numBlks; bi++) {
+         if (L0.blkOffs[bi] != S.getBlockRowOffset (bi)) {
+            return false;
+         }
+      }
+      for (int i=0; i<=n; i++) {
+         if (A.rowPtr[i] != myRowOffs[i]-1) {
+            return false;
+         }
+      }
+      for (int k=0; k<nnz; k++) {
+         if (A.cols[k] != myColIdxs[k]-1) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void buildHierarchy (boolean reuse) {
+      int l = 0;
+      while (true) {
+         Level L = myLevels.get(l);
+         computeDiagonalInverse (L);
+         L.omega = 4/(3*estimateSpectralRadius (L));
+         boolean coarsest;
+         if (reuse) {
+            coarsest = (l == myLevels.size()-1);
+         }
+         else {
+            coarsest = (L.size() <= myMaxCoarseSize || l == myMaxLevels-1);
+            if (!coarsest) {
+               aggregate (L);
+               int nc = coarseSize (L);
+               if (nc == 0 || nc > MIN_COARSENING*L.size()) {
+                  coarsest = true;
+               }
+            }
+         }
+         if (coarsest) {
+            factorCoarsest (L);
+            while (myLevels.size() > l+1) {
+               myLevels.remove (myLevels.size()-1);
+            }
+            L.P = null;
+            L.R = null;
+            break;
+         }
+         L.chol = null;
+         buildProlongator (L);
+         L.R = transpose (L.P);
+         Level C;
+         if (reuse) {
+            C = myLevels.get(l+1);
+         }
+         else {
+            C = new Level();
+            C.numBlks = L.numAggs;
+            C.blkOffs = coarseOffsets (L);
+            myLevels.add (C);
+         }
+         C.A = multiply (L.R, multiply (L.A, L.P));
+         C.allocateWork();
+         l++;
+      }
+   }
+
+   private int coarseSize (Level L) {
+      int[] offs = coarseOffsets (L);
+      return offs[L.numAggs];
+   }
+
+   private int[] coarseOffsets (Level L) {
+      int[] offs = new int[L.numAggs+1];
+      for (int bi=0; bi<L.numBlks; bi++) {
+         offs[L.aggs[bi]+1] = L.blockSize (bi);
+      }
+      for (int a=0; a<L.numAggs; a++) {
+         offs[a+1] += offs[a];
+      }
+      return offs;
+   }
+
+   /**
+    * Computes the inverses of the diagonal blocks of the level operator.
+    */
+   private void computeDiagonalInverse (Level L) {
+      int nb = L.numBlks;
+      if (L.dinvOffs == null || L.dinvOffs.length != nb+1) {
+         L.dinvOffs = new int[nb+1];
+      }
+      int voff = 0;
+      int maxsize = 0;
+      for (int bi=0; bi<nb; bi++) {
+         int s = L.blockSize (bi);
+         L.dinvOffs[bi] = voff;
+         voff += s*s;
+         maxsize = Math.max (maxsize, s);
+      }
+      L.dinvOffs[nb] = voff;
+      if (L.dinv == null || L.dinv.length != voff) {
+         L.dinv = new double[voff];
+      }
+      double[] buf = new double[maxsize*maxsize];
+      CRS A = L.A;
+      for (int bi=0; bi<nb; bi++) {
+         int o = L.blkOffs[bi];
+         int s = L.blockSize (bi);
+         for (int k=0; k<s*s; k++) {
+            buf[k] = 0;
+         }
+         for (int i=0; i<s; i++) {
+            for (int k=A.rowPtr[o+i]; k<A.rowPtr[o+i+1]; k++) {
+               int j = A.cols[k]-o;
+               if (j >= 0 && j < s) {
+                  buf[i*s+j] += A.vals[k];
+               }
+            }
+         }
+         int d = L.dinvOffs[bi];
+         if (!BlockJacobiPreconditioner.invert (L.dinv, d, buf, s)) {
+            for (int k=0; k<s*s; k++) {
+               L.dinv[d+k] = (k%(s+1) == 0 ? 1 : 0);
+            }
+         }
+      }
+   }
+
+   /**
+    * Computes y = D^{-1} x, where D is the block diagonal of the level
+    * operator.
+    */
+   private void mulDiagonalInverse (Level L, double[] y, double[] x) {
+      for (int bi=0; bi<L.numBlks; bi++) {
+         int o = L.blkOffs[bi];
+         int s = L.blockSize (bi);
+         int d = L.dinvOffs[bi];
+         for (int i=0; i<s; i++) {
+            double sum = 0;
+            for (int j=0; j<s; j++) {
+               sum += L.dinv[d+i*s+j]*x[o+j];
+            }
+            y[o+i] = sum;
+         }
+      }
+   }
+
+   /**
+    * Estimates the spectral radius of D^{-1} A using power iteration.
+    */
+   private double estimateSpectralRadius (Level L) {
+      int n = L.size();
+      if (n == 0) {
+         return 1;
+      }
+      double[] v = new double[n];
+      double[] w = new double[n];
+      // fixed seed so that the hierarchy is reproducible
+      Random rand = new Random (0x1234);
+      for (int i=0; i<n; i++) {
+         v[i] = rand.nextDouble()-0.5;
+      }
+      double rho = 0;
+      for (int it=0; it<NUM_POWER_ITERATIONS; it++) {
+         double vnorm = norm (v);
+         if (vnorm == 0) {
+            break;
+         }
+         for (int i=0; i<n; i++) {
+            v[i] /= vnorm;
+         }
+         L.A.mul (w, v);
+         mulDiagonalInverse (L, v, w);
+         rho = norm (v);
+      }
+      return rho > 0 ? rho : 1;
+   }
+
+   private static double norm (double[] v) {
+      double sum = 0;
+      for (int i=0; i<v.length; i++) {
+         sum += v[i]*v[i];
+      }
+      return Math.sqrt (sum);
+   }
+
+   /**
+    * Forms aggregates from the graph of strongly coupled blocks, using the
+    * greedy three pass algorithm of Vanek, Mandel and Brezina.
+    */
+   private void aggregate (Level L) {
+      int nb = L.numBlks;
+      int n = L.size();
+      CRS A = L.A;
+
+      int[] blockOf = new int[n];
+      for (int bi=0; bi<nb; bi++) {
+         for (int i=L.blkOffs[bi]; i<L.blkOffs[bi+1]; i++) {
+            blockOf[i] = bi;
+         }
+      }
+      // squared Frobenius norms of the blocks in each block row
+      double[] diag = new double[nb];
+      double[] acc = new double[nb];
+      int[] mark = new int[nb];
+      int[] list = new int[nb];
+      for (int bi=0; bi<nb; bi++) {
+         mark[bi] = -1;
+      }
+      int[] strongPtr = new int[nb+1];
+      int[] strong = new int[Math.max (A.numNonZeros(), 1)];
+      double[] strength = new double[strong.length];
+      int ns = 0;
+      for (int pass=0; pass<2; pass++) {
+         // first pass computes the diagonal norms
+         for (int bi=0; bi<nb; bi++) {
+            int nlist = 0;
+            for (int i=L.blkOffs[bi]; i<L.blkOffs[bi+1]; i++) {
+               for (int k=A.rowPtr[i]; k<A.rowPtr[i+1]; k++) {
+                  int bj = blockOf[A.cols[k]];
+                  if (mark[bj] != bi) {
+                     mark[bj] = bi;
+                     acc[bj] = 0;
+                     list[nlist++] = bj;
+                  }
+                  acc[bj] += A.vals[k]*A.vals[k];
+               }
+            }
+            if (pass == 0) {
+               diag[bi] = (mark[bi] == bi ? acc[bi] : 0);
+            }
+            else {
+               strongPtr[bi] = ns;
+               double theta2 = myStrengthThreshold*myStrengthThreshold;
+               for (int m=0; m<nlist; m++) {
+                  int bj = list[m];
+                  if (bj != bi && L.blockSize(bj) == L.blockSize(bi) &&
+                      acc[bj] >= theta2*Math.sqrt (diag[bi]*diag[bj]) &&
+                      acc[bj] > 0) {
+                     strong[ns] = bj;
+                     strength[ns] = acc[bj];
+                     ns++;
+                  }
+               }
+            }
+            for (int m=0; m<nlist; m++) {
+               mark[list[m]] = -1;
+            }
+         }
+      }
+      strongPtr[nb] = ns;
+
+      int[] aggs = new int[nb];
+      for (int bi=0; bi<nb; bi++) {
+         aggs[bi] = -1;
+      }
+      int na = 0;
+      // pass 1: blocks whose strong neighbours are all unaggregated
+      for (int bi=0; bi<nb; bi++) {
+         if (aggs[bi] != -1) {
+            continue;
+         }
+         boolean free = true;
+         for (int k=strongPtr[bi]; k<strongPtr[bi+1]; k++) {
+            if (aggs[strong[k]] != -1) {
+               free = false;
+               break;
+            }
+         }
+         if (free) {
+            aggs[bi] = na;
+            for (int k=strongPtr[bi]; k<strongPtr[bi+1]; k++) {
+               aggs[strong[k]] = na;
+            }
+            na++;
+         }
+      }
+      // pass 2: attach remaining blocks to their most strongly coupled
+      // neighbouring aggregate from pass 1
+      int[] pass1 = aggs.clone();
+      for (int bi=0; bi<nb; bi++) {
+         if (pass1[bi] != -1) {
+            continue;
+         }
+         double max = 0;
+         for (int k=strongPtr[bi]; k<strongPtr[bi+1]; k++) {
+            int a = pass1[strong[k]];
+            if (a != -1 && strength[k] > max) {
+               max = strength[k];
+               aggs[bi] = a;
+            }
+         }
+      }
+      // pass 3: remaining blocks form aggregates with their unaggregated
+      // neighbours
+      for (int bi=0; bi<nb; bi++) {
+         if (aggs[bi] != -1) {
+            continue;
+         }
+         aggs[bi] = na;
+         for (int k=strongPtr[bi]; k<strongPtr[bi+1]; k++) {
+            if (aggs[strong[k]] == -1) {
+               aggs[strong[k]] = na;
+            }
+         }
+         na++;
+      }
+      L.aggs = aggs;
+      L.numAggs = na;
+   }
+
+   /**
+    * Builds the smoothed prolongator P = (I - omega D^{-1} A) Ptent, where
+    * Ptent maps each coarse block to the blocks of its aggregate with a
+    * scaled identity.
+    */
+   private void buildProlongator (Level L) {
+      int nb = L.numBlks;
+      int na = L.numAggs;
+      CRS A = L.A;
+      int[] coffs = coarseOffsets (L);
+      int nc = coffs[na];
+
+      // tentative prolongator values, 1/sqrt(aggregate size)
+      double[] tval = new double[na];
+      for (int bi=0; bi<nb; bi++) {
+         tval[L.aggs[bi]] += 1;
+      }
+      for (int a=0; a<na; a++) {
+         tval[a] = 1/Math.sqrt (tval[a]);
+      }
+      int n = L.size();
+      int[] blockOf = new int[n];
+      for (int bi=0; bi<nb; bi++) {
+         for (int i=L.blkOffs[bi]; i<L.blkOffs[bi+1]; i++) {
+            blockOf[i] = bi;
+         }
+      }
+      int[] colMark = new int[nc];
+      for (int c=0; c<nc; c++) {
+         colMark[c] = -1;
+      }
+      int[] localCols = new int[16];
+      double[] W = new double[0];
+      int[] rowPtr = new int[n+1];
+      int[] cols = new int[Math.max (A.numNonZeros(), 16)];
+      double[] vals = new double[cols.length];
+      int nnz = 0;
+
+      for (int bi=0; bi<nb; bi++) {
+         int o = L.blkOffs[bi];
+         int s = L.blockSize (bi);
+         int ca = coffs[L.aggs[bi]];
+         // find the coarse columns touched by this block row
+         int m = 0;
+         for (int r=0; r<s; r++) {
+            if (m == localCols.length) {
+               localCols = grow (localCols);
+            }
+            colMark[ca+r] = m;
+            localCols[m++] = ca+r;
+         }
+         for (int i=o; i<o+s; i++) {
+            for (int k=A.rowPtr[i]; k<A.rowPtr[i+1]; k++) {
+               int c = A.cols[k];
+               int bj = blockOf[c];
+               int cc = coffs[L.aggs[bj]] + c - L.blkOffs[bj];
+               if (colMark[cc] == -1) {
+                  if (m == localCols.length) {
+                     localCols = grow (localCols);
+                  }
+                  colMark[cc] = m;
+                  localCols[m++] = cc;
+               }
+            }
+         }
+         // W = A Ptent for the rows of this block, stored densely
+         if (W.length < s*m) {
+            W = new double[2*s*m];
+         }
+         for (int k=0; k<s*m; k++) {
+            W[k] = 0;
+         }
+         for (int r=0; r<s; r++) {
+            int i = o+r;
+            for (int k=A.rowPtr[i]; k<A.rowPtr[i+1]; k++) {
+               int c = A.cols[k];
+               int bj = blockOf[c];
+               int cc = coffs[L.aggs[bj]] + c - L.blkOffs[bj];
+               W[r*m+colMark[cc]] += A.vals[k]*tval[L.aggs[bj]];
+            }
+         }
+         // P rows = Ptent - omega Dinv W
+         int d = L.dinvOffs[bi];
+         double t = tval[L.aggs[bi]];
+         if (nnz + s*m > cols.length) {
+            int cap = Math.max (2*cols.length, nnz + s*m);
+            int[] newCols = new int[cap];
+            double[] newVals = new double[cap];
+            System.arraycopy (cols, 0, newCols, 0, nnz);
+            System.arraycopy (vals, 0, newVals, 0, nnz);
+            cols = newCols;
+            vals = newVals;
+         }
+         for (int r=0; r<s; r++) {
+            rowPtr[o+r] = nnz;
+            for (int j=0; j<m; j++) {
+               double sum = 0;
+               for (int p=0; p<s; p++) {
+                  sum += L.dinv[d+r*s+p]*W[p*m+j];
+               }
+               double val = -L.omega*sum;
+               if (j == r) {
+                  val += t;
+               }
+               if (val != 0) {
+                  cols[nnz] = localCols[j];
+                  vals[nnz] = val;
+                  nnz++;
+               }
+            }
+         }
+         for (int j=0; j<m; j++) {
+            colMark[localCols[j]] = -1;
+         }
+      }
+      rowPtr[n] = nnz;
+      CRS P = new CRS (n, nc, 0);
+      P.rowPtr = rowPtr;
+      P.cols = cols;
+      P.vals = vals;
+      L.P = P;
+   }
+
+   private static int[] grow (int[] array) {
+      int[] newArray = new int[2*array.length];
+      System.arraycopy (array, 0, newArray, 0, array.length);
+      return newArray;
+   }
+
+   private static CRS transpose (CRS A) {
+      int nnz = A.numNonZeros();
+      CRS T = new CRS (A.ncols, A.nrows, nnz);
+      for (int k=0; k<nnz; k++) {
+         T.rowPtr[A.cols[k]+1]++;
+      }
+      for (int j=0; j<A.ncols; j++) {
+         T.rowPtr[j+1] += T.rowPtr[j];
+      }
+      int[] next = new int[A.ncols];
+      System.arraycopy (T.rowPtr, 0, next, 0, A.ncols);
+      for (int i=0; i<A.nrows; i++) {
+         for (int k=A.rowPtr[i]; k<A.rowPtr[i+1]; k++) {
+            int p = next[A.cols[k]]++;
+            T.cols[p] = i;
+            T.vals[p] = A.vals[k];
+         }
+      }
+      return T;
+   }
+
+   /**
+    * Computes the sparse product A B using Gustavson's algorithm.
+    */
+   private static CRS multiply (CRS A, CRS B) {
+      int[] mark = new int[B.ncols];
+      for (int j=0; j<B.ncols; j++) {
+         mark[j] = -1;
+      }
+      // symbolic pass
+      int nnz = 0;
+      for (int i=0; i<A.nrows; i++) {
+         for (int ka=A.rowPtr[i]; ka<A.rowPtr[i+1]; ka++) {
+            int p = A.cols[ka];
+            for (int kb=B.rowPtr[p]; kb<B.rowPtr[p+1]; kb++) {
+               int j = B.cols[kb];
+               if (mark[j] != i) {
+                  mark[j] = i;
+                  nnz++;
+               }
+            }
+         }
+      }
+      CRS C = new CRS (A.nrows, B.ncols, nnz);
+      // numeric pass; mark now records the position of column j in row i
+      for (int j=0; j<B.ncols; j++) {
+         mark[j] = -1;
+      }
+      int k = 0;
+      for (int i=0; i<A.nrows; i++) {
+         int kstart = k;
+         C.rowPtr[i] = k;
+         for (int ka=A.rowPtr[i]; ka<A.rowPtr[i+1]; ka++) {
+            int p = A.cols[ka];
+            double a = A.vals[ka];
+            for (int kb=B.rowPtr[p]; kb<B.rowPtr[p+1]; kb++) {
+               int j = B.cols[kb];
+               int pos = mark[j];
+               if (pos < kstart) {
+                  mark[j] = k;
+                  C.cols[k] = j;
+                  C.vals[k] = a*B.vals[kb];
+                  k++;
+               }
+               else {
+                  C.vals[pos] += a*B.vals[kb];
+               }
+            }
+         }
+      }
+      C.rowPtr[A.nrows] = k;
+      return C;
+   }
+
+   /**
+    * Factors the coarsest operator with a dense Cholesky factorization, if
+    * it is small enough and positive definite.
+    */
+   private void factorCoarsest (Level L) {
+      int n = L.size();
+      L.chol = null;
+      if (n > MAX_DIRECT_SIZE) {
+         return;
+      }
+      double[] C = new double[n*n];
+      CRS A = L.A;
+      for (int i=0; i<n; i++) {
+         for (int k=A.rowPtr[i]; k<A.rowPtr[i+1]; k++) {
+            C[i*n+A.cols[k]] += A.vals[k];
+         }
+      }
+      // lower triangular factor L L' = C, stored in the lower part of C
+      for (int j=0; j<n; j++) {
+         double s = C[j*n+j];
+         for (int p=0; p<j; p++) {
+            s -= C[j*n+p]*C[j*n+p];
+         }
+         if (!(s > 0)) {
+            return;
+         }
+         double ljj = Math.sqrt (s);
+         C[j*n+j] = ljj;
+         for (int i=j+1; i<n; i++) {
+            double sum = C[i*n+j];
+            for (int p=0; p<j; p++) {
+               sum -= C[i*n+p]*C[j*n+p];
+            }
+            C[i*n+j] = sum/ljj;
+         }
+      }
+      L.chol = C;
+   }
+
+   private void solveCoarsest (Level L, double[] x, double[] b) {
+      int n = L.size();
+      if (L.chol != null) {
+         double[] C = L.chol;
+         for (int i=0; i<n; i++) {
+            double sum = b[i];
+            for (int p=0; p<i; p++) {
+               sum -= C[i*n+p]*x[p];
+            }
+            x[i] = sum/C[i*n+i];
+         }
+         for (int i=n-1; i>=0; i--) {
+            double sum = x[i];
+            for (int p=i+1; p<n; p++) {
+               sum -= C[p*n+i]*x[p];
+            }
+            x[i] = sum/C[i*n+i];
+         }
+      }
+      else {
+         for (int i=0; i<n; i++) {
+            x[i] = 0;
+         }
+         for (int k=0; k<NUM_COARSE_SWEEPS; k++) {
+            smooth (L, x, b);
+         }
+      }
+   }
+
+   /**
+    * Applies one damped block-Jacobi step: x += omega D^{-1} (b - A x).
+    */
+   private void smooth (Level L, double[] x, double[] b) {
+      double[] r = L.r;
+      int n = L.size();
+      L.A.mul (r, x);
+      for (int i=0; i<n; i++) {
+         r[i] = b[i]-r[i];
+      }
+      for (int bi=0; bi<L.numBlks; bi++) {
+         int o = L.blkOffs[bi];
+         int s = L.blockSize (bi);
+         int d = L.dinvOffs[bi];
+         for (int i=0; i<s; i++) {
+            double sum = 0;
+            for (int j=0; j<s; j++) {
+               sum += L.dinv[d+i*s+j]*r[o+j];
+            }
+            x[o+i] += L.omega*sum;
+         }
+      }
+   }
+
+   /**
+    * Applies a V-cycle at level l to approximately solve A x = b, starting
+    * from x = 0.
+    */
+   private void vcycle (int l, double[] x, double[] b) {
+      Level L = myLevels.get(l);
+      int n = L.size();
+      if (l == myLevels.size()-1) {
+         solveCoarsest (L, x, b);
+         return;
+      }
+      for (int i=0; i<n; i++) {
+         x[i] = 0;
+      }
+      for (int k=0; k<myNumPreSmooth; k++) {
+         smooth (L, x, b);
+      }
+      double[] r = L.r;
+      L.A.mul (r, x);
+      for (int i=0; i<n; i++) {
+         r[i] = b[i]-r[i];
+      }
+      Level C = myLevels.get(l+1);
+      L.R.mul (C.b, r);
+      vcycle (l+1, C.x, C.b);
+      L.P.mulAdd (x, C.x);
+      for (int k=0; k<myNumPostSmooth; k++) {
+         smooth (L, x, b);
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int rowSize() {
+      return myLevels.size() > 0 ? myLevels.get(0).size() : 0;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int colSize() {
+      return rowSize();
+   }
+
+   /**
+    * Applies one V-cycle to v1, starting from a zero initial guess, and
+    * places the result in vr. This approximates the product of v1 with the
+    * inverse of the matrix, and so allows this solver to be used as a
+    * preconditioner.
+    *
+    * @param vr result vector
+    * @param v1 vector to apply the V-cycle to
+    */
+   public void mul (VectorNd vr, VectorNd v1) {
+      int n = rowSize();
+      if (v1.size() != n) {
+         throw new ImproperSizeException (
+            "Vector has size "+v1.size()+", expecting "+n);
+      }
+      if (n == 0) {
+         vr.setSize (0);
+         return;
+      }
+      Level L0 = myLevels.get(0);
+      v1.get (L0.b);
+      vcycle (0, L0.x, L0.b);
+      if (vr.size() != n) {
+         vr.setSize (n);
+      }
+      vr.set (L0.x);
+   }
+
+   /**
+    * Solves A x = b by applying V-cycles until the tolerance is met or the
+    * maximum number of iterations is reached. If A is a {@link
+    * SparseBlockMatrix}, the hierarchy is first rebuilt using {@link
+    * #factor}; otherwise, the hierarchy from the most recent call to {@link
+    * #factor} is used.
+    *
+    * @param x result vector, as well as initial guess of the solution
+    * @param A matrix for the system to be solved
+    * @param b right hand side
+    * @return true if the tolerance was met
+    */
+   public boolean solve (VectorNd x, LinearTransformNd A, VectorNd b) {
+      if (A instanceof SparseBlockMatrix) {
+         factor ((SparseBlockMatrix)A);
+      }
+      int n = rowSize();
+      if (A.rowSize() != n || A.colSize() != n) {
+         throw new ImproperSizeException (
+            "Matrix size inconsistent with hierarchy size "+n);
+      }
+      if (b.size() != n || x.size() != n) {
+         throw new ImproperSizeException ("Inconsistent argument sizes");
+      }
+      if (myRes.size() != n) {
+         myRes.setSize (n);
+         myDel.setSize (n);
+      }
+      double bnorm = b.norm();
+      int cnt = 0;
+      boolean converged = false;
+      while (true) {
+         A.mul (myRes, x);
+         myRes.sub (b, myRes);
+         double rnorm = myRes.norm();
+         if (myTolType == ToleranceType.RelativeResidual) {
+            myLastResidual = (bnorm > 0 ? rnorm/bnorm : rnorm);
+            converged = (rnorm <= myTol*bnorm);
+         }
+         else if (myTolType == ToleranceType.AbsoluteResidual) {
+            myLastResidual = rnorm;
+            converged = (rnorm <= myTol);
+         }
+         if (converged || cnt == myMaxIter) {
+            break;
+         }
+         mul (myDel, myRes);
+         x.add (myDel);
+         cnt++;
+         if (myTolType == ToleranceType.AbsoluteError &&
+             myDel.norm() <= myTol) {
+            converged = true;
+            break;
+         }
+      }
+      myLastIterationCnt = cnt;
+      return converged;
+   }
+
+   public int getNumIterations() {
+      return myLastIterationCnt;
+   }
+
+   /**
+    * Returns the relative residual ||A x - b||/||b|| at the end of the last
+    * call to {@link #solve solve}, or the absolute residual if the tolerance
+    * type is not {@link ToleranceType#RelativeResidual}.
+    *
+    * @return last residual
+    */
+   public double getRelativeResidual() {
+      return myLastResidual;
+   }
+
+   public boolean isCompatible (int matrixType) {
+      return ((matrixType & Matrix.SYMMETRIC) != 0);
+   }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.matrix.Matrix3d;
+import maspack.matrix.Matrix3x3Block;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.Vector3d;
+import maspack.matrix.VectorNd;
+import maspack.solvers.CGSolver.PreconditionerType;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests AMGSolver, both on its own and as a preconditioner for CGSolver.
+ */
+public class AMGSolverTest extends UnitTest {
+
+   /**
+    * Creates a stiffness-like matrix for a grid of nodes connected by
+    * springs to their neighbours, plus a small mass term, similar to the
+    * solve matrix M + h^2 K of an FEM model.
+    */
+   SparseBlockMatrix createGridMatrix (int nx, int ny, int nz, double mass) {
+      int numNodes = nx*ny*nz;
+      int[] sizes = new int[numNodes];
+      for (int i=0; i<numNodes; i++) {
+         sizes[i] = 3;
+      }
+      SparseBlockMatrix S = new SparseBlockMatrix (sizes, sizes);
+      Matrix3d[] diag = new Matrix3d[numNodes];
+      for (int i=0; i<numNodes; i++) {
+         diag[i] = new Matrix3d();
+         diag[i].setDiagonal (mass, mass, mass);
+      }
+      Vector3d d = new Vector3d();
+      Matrix3d K = new Matrix3d();
+      for (int i=0; i<nx; i++) {
+         for (int j=0; j<ny; j++) {
+            for (int k=0; k<nz; k++) {
+               int n0 = (i*ny+j)*nz+k;
+               for (int di=-1; di<=1; di++) {
+                  for (int dj=-1; dj<=1; dj++) {
+                     for (int dk=-1; dk<=1; dk++) {
+                        int ii = i+di;
+                        int jj = j+dj;
+                        int kk = k+dk;
+                        if (ii < 0 || ii >= nx || jj < 0 || jj >= ny ||
+                            kk < 0 || kk >= nz || (di == 0 && dj == 0 &&
+                                                   dk == 0)) {
+                           continue;
+                        }
+                        int n1 = (ii*ny+jj)*nz+kk;
+                        d.set (di, dj, dk);
+                        d.normalize();
+                        K.outerProduct (d, d);
+                        K.m00 += 0.1;
+                        K.m11 += 0.1;
+                        K.m22 += 0.1;
+                        Matrix3x3Block blk = new Matrix3x3Block();
+                        blk.scale (-1, K);
+                        S.addBlock (n0, n1, blk);
+                        diag[n0].add (K);
+                     }
+                  }
+               }
+            }
+         }
+      }
+      for (int i=0; i<numNodes; i++) {
+         Matrix3x3Block blk = new Matrix3x3Block();
+         blk.set (diag[i]);
+         S.addBlock (i, i, blk);
+      }
+      return S;
+   }
+
+   void checkResidual (
+      String msg, SparseBlockMatrix S, VectorNd x, VectorNd b, double tol) {
+      VectorNd res = new VectorNd (S.rowSize());
+      S.mul (res, x);
+      res.sub (b);
+      if (res.norm() > tol*b.norm()) {
+         throw new TestException (
+            msg + ": relative residual " + res.norm()/b.norm() +
+            " exceeds " + tol);
+      }
+   }
+
+   int solveCG (
+      SparseBlockMatrix S, VectorNd b, PreconditionerType type, double tol) {
+      CGSolver cg = new CGSolver();
+      cg.setPreconditionerType (type);
+      cg.setTolerance (tol);
+      cg.setMaxIterations (10*S.rowSize());
+      VectorNd x = new VectorNd (S.rowSize());
+      if (!cg.solve (x, S, b)) {
+         throw new TestException (
+            "No convergence with preconditioner " + type);
+      }
+      checkResidual ("CG with "+type, S, x, b, 100*tol);
+      return cg.getNumIterations();
+   }
+
+   void testPreconditioner() {
+      SparseBlockMatrix S = createGridMatrix (10, 10, 10, 1e-2);
+      VectorNd b = new VectorNd (S.rowSize());
+      b.setRandom();
+      double tol = 1e-8;
+      int numJacobi = solveCG (S, b, PreconditionerType.BlockJacobi, tol);
+      int numAMG = solveCG (S, b, PreconditionerType.AlgebraicMultigrid, tol);
+      if (2*numAMG > numJacobi) {
+         throw new TestException (
+            "AMG preconditioning took " + numAMG + " iterations, vs. " +
+            numJacobi + " for block Jacobi");
+      }
+   }
+
+   void testSolve() {
+      SparseBlockMatrix S = createGridMatrix (12, 10, 8, 1e-2);
+      AMGSolver amg = new AMGSolver();
+      amg.setTolerance (1e-8);
+      amg.setMaxIterations (200);
+      VectorNd b = new VectorNd (S.rowSize());
+      VectorNd x = new VectorNd (S.rowSize());
+      b.setRandom();
+      if (!amg.solve (x, S, b)) {
+         throw new TestException (
+            "AMG did not converge: residual=" + amg.getRelativeResidual());
+      }
+      checkResidual ("AMG solve", S, x, b, 1e-8);
+      check ("hierarchy has only one level", amg.numLevels() > 1);
+      check ("hierarchy reused on first factor", !amg.isHierarchyReused());
+      for (int l=1; l<amg.numLevels(); l++) {
+         check ("level "+l+" not coarser",
+                amg.getLevelSize(l) < amg.getLevelSize(l-1));
+      }
+      check ("level 0 size", amg.getLevelSize(0) == S.rowSize());
+      check ("operator complexity "+amg.getOperatorComplexity(),
+             amg.getOperatorComplexity() < 3);
+      int numLevels = amg.numLevels();
+
+      // new values, same structure: hierarchy should be reused
+      S.scale (2.0);
+      x.setZero();
+      if (!amg.solve (x, S, b)) {
+         throw new TestException (
+            "AMG did not converge after rescaling: residual=" +
+            amg.getRelativeResidual());
+      }
+      checkResidual ("AMG solve, rescaled", S, x, b, 1e-8);
+      check ("hierarchy not reused", amg.isHierarchyReused());
+      checkEquals ("numLevels", amg.numLevels(), numLevels);
+
+      // changed structure: hierarchy should be rebuilt
+      S.removeBlock (S.getBlock (0, 1));
+      S.removeBlock (S.getBlock (1, 0));
+      x.setZero();
+      if (!amg.solve (x, S, b)) {
+         throw new TestException (
+            "AMG did not converge after structure change: residual=" +
+            amg.getRelativeResidual());
+      }
+      check ("hierarchy reused after structure change",
+             !amg.isHierarchyReused());
+   }
+
+   void testMixedBlocks() {
+      // random SPD matrices with 3x3 and 6x6 blocks
+      BlockPreconditionerTest btest = new BlockPreconditionerTest();
+      AMGSolver amg = new AMGSolver();
+      amg.setMaxCoarseSize (30);
+      amg.setTolerance (1e-10);
+      for (int i=0; i<5; i++) {
+         SparseBlockMatrix S = btest.createRandom (60, 0.1);
+         VectorNd b = new VectorNd (S.rowSize());
+         VectorNd x = new VectorNd (S.rowSize());
+         b.setRandom();
+         if (!amg.solve (x, S, b)) {
+            throw new TestException (
+               "AMG did not converge for mixed blocks: residual=" +
+               amg.getRelativeResidual());
+         }
+         checkResidual ("AMG solve, mixed blocks", S, x, b, 1e-10);
+      }
+   }
+
+   void testSingleLevel() {
+      // with no coarsening, one V-cycle is an exact solve
+      SparseBlockMatrix S = createGridMatrix (3, 3, 3, 1e-2);
+      AMGSolver amg = new AMGSolver (S);
+      checkEquals ("numLevels", amg.numLevels(), 1);
+      VectorNd r = new VectorNd (S.rowSize());
+      VectorNd z = new VectorNd (S.rowSize());
+      r.setRandom();
+      amg.mul (z, r);
+      checkResidual ("single level V-cycle", S, z, r, 1e-10);
+   }
+
+   public void test() {
+      testSingleLevel();
+      testSolve();
+      testPreconditioner();
+      testMixedBlocks();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      AMGSolverTest tester = new AMGSolverTest();
+      tester.runtest();
+   }
+}
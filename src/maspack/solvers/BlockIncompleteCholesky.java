@@ -0,0 +1,446 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.matrix.ImproperSizeException;
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.NumericalException;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+
+/**
+ * Block incomplete Cholesky preconditioner, IC(0), for a symmetric positive
+ * definite {@link SparseBlockMatrix}. This computes a block upper-triangular
+ * factor U such that A is approximately U' U, where U has the same block
+ * sparsity as the upper triangle of A and any fill-in outside that structure
+ * is discarded. Each diagonal block of U is itself upper triangular, formed
+ * by a dense Cholesky factorization. Unlike {@link
+ * IncompleteCholeskyDecomposition}, the matrix does not need to be converted
+ * to a scalar sparse form, and the symbolic structure is reused between
+ * factorizations as long as the block structure of A does not change.
+ *
+ * <p>Incomplete factorizations can break down even when A is positive
+ * definite. If this happens, the factorization is restarted with the
+ * diagonal entries of A scaled by (1 + alpha), where alpha starts at {@link
+ * #getInitialShift} and is doubled after each subsequent breakdown.
+ */
+public class BlockIncompleteCholesky implements BlockPreconditioner {
+
+   private static final int MAX_SHIFT_ATTEMPTS = 30;
+
+   private int mySize;
+   private int myNumBlockRows;
+   private int[] myOffsets = new int[1];   // scalar offset of each block row
+   private int[] myRowPtrs = new int[1];   // first block entry of each row
+   private int[] myDiagPtrs = new int[0];  // diagonal block entry of each row
+   private int[] myCols = new int[0];      // block column of each entry
+   private int[] myValueOffsets = new int[1]; // value offset of each entry
+   private double[] myValues = new double[0]; // row-major block values
+   private int[] myMarker = new int[0];
+   private double[] myBlockBuf = new double[36];
+   private boolean myFactored;
+
+   private double myInitialShift = 1e-3;
+   private double myLastShift;
+
+   /**
+    * Creates an empty preconditioner.
+    */
+   public BlockIncompleteCholesky() {
+   }
+
+   /**
+    * Creates a preconditioner for a specified matrix.
+    *
+    * @param S matrix to build the preconditioner from
+    */
+   public BlockIncompleteCholesky (SparseBlockMatrix S) {
+      factor (S);
+   }
+
+   /**
+    * Returns the initial diagonal shift used when the factorization breaks
+    * down.
+    *
+    * @return initial diagonal shift
+    */
+   public double getInitialShift() {
+      return myInitialShift;
+   }
+
+   /**
+    * Sets the initial diagonal shift used when the factorization breaks
+    * down. The default value is 1e-3.
+    *
+    * @param shift initial diagonal shift
+    */
+   public void setInitialShift (double shift) {
+      if (shift <= 0) {
+         throw new IllegalArgumentException ("shift must be positive");
+      }
+      myInitialShift = shift;
+   }
+
+   /**
+    * Returns the diagonal shift that was needed by the most recent
+    * factorization, or 0 if the factorization did not break down.
+    *
+    * @return last diagonal shift
+    */
+   public double getLastShift() {
+      return myLastShift;
+   }
+
+   /**
+    * Returns the number of blocks stored in the factor.
+    *
+    * @return number of factor blocks
+    */
+   public int numBlocks() {
+      return myRowPtrs[myNumBlockRows];
+   }
+
+   private boolean structureEquals (SparseBlockMatrix S) {
+      int nb = S.numBlockRows();
+      if (nb != myNumBlockRows || S.rowSize() != mySize) {
+         return false;
+      }
+      for (int bi=0; bi<nb; bi++) {
+         if (S.getBlockRowSize(bi) != myOffsets[bi+1]-myOffsets[bi]) {
+            return false;
+         }
+         int k = myRowPtrs[bi];
+         int kend = myRowPtrs[bi+1];
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null; blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            if (bj >= bi) {
+               if (k == kend || myCols[k++] != bj) {
+                  return false;
+               }
+            }
+         }
+         if (k != kend && !(k == kend-1 && myDiagPtrs[bi] == k)) {
+            // remaining entry can only be an added diagonal
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void setStructure (SparseBlockMatrix S) {
+      int nb = S.numBlockRows();
+      if (myOffsets.length < nb+1) {
+         myOffsets = new int[nb+1];
+         myRowPtrs = new int[nb+1];
+         myDiagPtrs = new int[nb];
+         myMarker = new int[nb];
+      }
+      // count entries, allowing for diagonal blocks not present in S
+      int nblks = 0;
+      for (int bi=0; bi<nb; bi++) {
+         boolean hasDiag = false;
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null; blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            if (bj >= bi) {
+               nblks++;
+               hasDiag |= (bj == bi);
+            }
+         }
+         if (!hasDiag) {
+            nblks++;
+         }
+      }
+      if (myCols.length < nblks) {
+         myCols = new int[nblks];
+         myValueOffsets = new int[nblks+1];
+      }
+      int off = 0;
+      int k = 0;
+      int voff = 0;
+      for (int bi=0; bi<nb; bi++) {
+         int n = S.getBlockRowSize(bi);
+         myOffsets[bi] = off;
+         myRowPtrs[bi] = k;
+         myDiagPtrs[bi] = -1;
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null; blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            if (bj >= bi) {
+               if (bj == bi) {
+                  myDiagPtrs[bi] = k;
+               }
+               myCols[k] = bj;
+               myValueOffsets[k] = voff;
+               voff += n*S.getBlockColSize(bj);
+               k++;
+            }
+         }
+         if (myDiagPtrs[bi] == -1) {
+            myDiagPtrs[bi] = k;
+            myCols[k] = bi;
+            myValueOffsets[k] = voff;
+            voff += n*n;
+            k++;
+         }
+         off += n;
+      }
+      myOffsets[nb] = off;
+      myRowPtrs[nb] = k;
+      myValueOffsets[k] = voff;
+      if (myValues.length < voff) {
+         myValues = new double[voff];
+      }
+      for (int bi=0; bi<nb; bi++) {
+         myMarker[bi] = -1;
+      }
+      myNumBlockRows = nb;
+      mySize = off;
+   }
+
+   private void copyValues (SparseBlockMatrix S, double shift) {
+      double[] vals = myValues;
+      for (int bi=0; bi<myNumBlockRows; bi++) {
+         int k = myRowPtrs[bi];
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null; blk=blk.next()) {
+            if (blk.getBlockCol() >= bi) {
+               int size = blk.rowSize()*blk.colSize();
+               if (myBlockBuf.length < size) {
+                  myBlockBuf = new double[size];
+               }
+               blk.get (myBlockBuf);
+               System.arraycopy (
+                  myBlockBuf, 0, vals, myValueOffsets[k++], size);
+            }
+         }
+         int kd = myDiagPtrs[bi];
+         int n = myOffsets[bi+1]-myOffsets[bi];
+         int d = myValueOffsets[kd];
+         if (k == kd) {
+            // diagonal block was not present in S
+            for (int j=0; j<n*n; j++) {
+               vals[d+j] = 0;
+            }
+         }
+         if (shift != 0) {
+            for (int j=0; j<n; j++) {
+               vals[d+j*(n+1)] *= (1+shift);
+            }
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    *
+    * @throws NumericalException if the factorization fails even after
+    * repeatedly shifting the diagonal
+    */
+   public void factor (SparseBlockMatrix S) {
+      BlockJacobiPreconditioner.checkStructure (S);
+      if (!structureEquals (S)) {
+         setStructure (S);
+      }
+      double shift = 0;
+      for (int i=0; i<=MAX_SHIFT_ATTEMPTS; i++) {
+         copyValues (S, shift);
+         if (factorValues()) {
+            myLastShift = shift;
+            myFactored = true;
+            return;
+         }
+         shift = (shift == 0 ? myInitialShift : 2*shift);
+      }
+      myFactored = false;
+      throw new NumericalException (
+         "Incomplete Cholesky factorization failed; matrix may not be "+
+         "positive definite");
+   }
+
+   /**
+    * Factors the values in place, returning false on breakdown.
+    */
+   private boolean factorValues() {
+      double[] vals = myValues;
+      for (int bi=0; bi<myNumBlockRows; bi++) {
+         int ni = myOffsets[bi+1]-myOffsets[bi];
+         int kd = myDiagPtrs[bi];
+         int d = myValueOffsets[kd];
+
+         // dense Cholesky of the diagonal block, R' R = W, stored in place
+         for (int j=0; j<ni; j++) {
+            double s = vals[d+j*ni+j];
+            for (int p=0; p<j; p++) {
+               double r = vals[d+p*ni+j];
+               s -= r*r;
+            }
+            if (!(s > 0)) {
+               return false;
+            }
+            double rjj = Math.sqrt (s);
+            vals[d+j*ni+j] = rjj;
+            for (int l=j+1; l<ni; l++) {
+               double w = vals[d+j*ni+l];
+               for (int p=0; p<j; p++) {
+                  w -= vals[d+p*ni+j]*vals[d+p*ni+l];
+               }
+               vals[d+j*ni+l] = w/rjj;
+               vals[d+l*ni+j] = 0;
+            }
+         }
+         // off-diagonal blocks: solve R' U_ij = W_ij
+         int kbeg = myRowPtrs[bi];
+         int kend = myRowPtrs[bi+1];
+         for (int k=kbeg; k<kend; k++) {
+            if (k == kd) {
+               continue;
+            }
+            int nj = (myValueOffsets[k+1]-myValueOffsets[k])/ni;
+            int u = myValueOffsets[k];
+            for (int j=0; j<ni; j++) {
+               double rjj = vals[d+j*ni+j];
+               for (int c=0; c<nj; c++) {
+                  double w = vals[u+j*nj+c];
+                  for (int p=0; p<j; p++) {
+                     w -= vals[d+p*ni+j]*vals[u+p*nj+c];
+                  }
+                  vals[u+j*nj+c] = w/rjj;
+               }
+            }
+         }
+         // update the trailing blocks: W_ab -= U_ia' U_ib, dropping fill-in
+         for (int ka=kbeg; ka<kend; ka++) {
+            if (ka == kd) {
+               continue;
+            }
+            int ja = myCols[ka];
+            for (int kt=myRowPtrs[ja]; kt<myRowPtrs[ja+1]; kt++) {
+               myMarker[myCols[kt]] = kt;
+            }
+            int na = (myValueOffsets[ka+1]-myValueOffsets[ka])/ni;
+            int ua = myValueOffsets[ka];
+            for (int kb=kbeg; kb<kend; kb++) {
+               int jb = myCols[kb];
+               int kt;
+               if (kb == kd || jb < ja || (kt = myMarker[jb]) == -1) {
+                  continue;
+               }
+               int nb = (myValueOffsets[kb+1]-myValueOffsets[kb])/ni;
+               int ub = myValueOffsets[kb];
+               int w = myValueOffsets[kt];
+               for (int r=0; r<na; r++) {
+                  for (int c=0; c<nb; c++) {
+                     double sum = 0;
+                     for (int p=0; p<ni; p++) {
+                        sum += vals[ua+p*na+r]*vals[ub+p*nb+c];
+                     }
+                     vals[w+r*nb+c] -= sum;
+                  }
+               }
+            }
+            for (int kt=myRowPtrs[ja]; kt<myRowPtrs[ja+1]; kt++) {
+               myMarker[myCols[kt]] = -1;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int rowSize() {
+      return mySize;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int colSize() {
+      return mySize;
+   }
+
+   /**
+    * Applies this preconditioner to v1, placing the result in vr. This
+    * solves U' U vr = v1 by forward and backward substitution.
+    *
+    * @param vr result vector
+    * @param v1 vector to apply the preconditioner to
+    */
+   public void mul (VectorNd vr, VectorNd v1) {
+      if (v1.size() != mySize) {
+         throw new ImproperSizeException (
+            "Vector has size "+v1.size()+", expecting "+mySize);
+      }
+      if (!myFactored && mySize > 0) {
+         throw new IllegalStateException ("Preconditioner is not factored");
+      }
+      if (vr != v1) {
+         vr.set (v1);
+      }
+      double[] y = vr.getBuffer();
+      double[] vals = myValues;
+
+      // forward substitution: U' y = v1
+      for (int bi=0; bi<myNumBlockRows; bi++) {
+         int oi = myOffsets[bi];
+         int ni = myOffsets[bi+1]-oi;
+         int kd = myDiagPtrs[bi];
+         int d = myValueOffsets[kd];
+         for (int j=0; j<ni; j++) {
+            double s = y[oi+j];
+            for (int p=0; p<j; p++) {
+               s -= vals[d+p*ni+j]*y[oi+p];
+            }
+            y[oi+j] = s/vals[d+j*ni+j];
+         }
+         for (int k=myRowPtrs[bi]; k<myRowPtrs[bi+1]; k++) {
+            if (k == kd) {
+               continue;
+            }
+            int oj = myOffsets[myCols[k]];
+            int nj = (myValueOffsets[k+1]-myValueOffsets[k])/ni;
+            int u = myValueOffsets[k];
+            for (int p=0; p<ni; p++) {
+               double yp = y[oi+p];
+               if (yp != 0) {
+                  for (int c=0; c<nj; c++) {
+                     y[oj+c] -= vals[u+p*nj+c]*yp;
+                  }
+               }
+            }
+         }
+      }
+      // backward substitution: U vr = y
+      for (int bi=myNumBlockRows-1; bi>=0; bi--) {
+         int oi = myOffsets[bi];
+         int ni = myOffsets[bi+1]-oi;
+         int kd = myDiagPtrs[bi];
+         for (int k=myRowPtrs[bi]; k<myRowPtrs[bi+1]; k++) {
+            if (k == kd) {
+               continue;
+            }
+            int oj = myOffsets[myCols[k]];
+            int nj = (myValueOffsets[k+1]-myValueOffsets[k])/ni;
+            int u = myValueOffsets[k];
+            for (int p=0; p<ni; p++) {
+               double s = 0;
+               for (int c=0; c<nj; c++) {
+                  s += vals[u+p*nj+c]*y[oj+c];
+               }
+               y[oi+p] -= s;
+            }
+         }
+         int d = myValueOffsets[kd];
+         for (int j=ni-1; j>=0; j--) {
+            double s = y[oi+j];
+            for (int l=j+1; l<ni; l++) {
+               s -= vals[d+j*ni+l]*y[oi+l];
+            }
+            y[oi+j] = s/vals[d+j*ni+j];
+         }
+      }
+   }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.matrix.ImproperSizeException;
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+
+/**
+ * Block-Jacobi preconditioner, formed from the inverses of the diagonal
+ * blocks of a {@link SparseBlockMatrix}. For mechanical systems these are
+ * typically the 3 x 3 blocks associated with particles and FEM nodes and the
+ * 6 x 6 blocks associated with rigid bodies, and so the preconditioner
+ * accounts for the coupling between the degrees of freedom of each
+ * component. A diagonal block that is missing or singular is replaced by the
+ * identity.
+ */
+public class BlockJacobiPreconditioner implements BlockPreconditioner {
+
+   private int mySize;
+   private int myNumBlocks;
+   private int[] myOffsets = new int[1]; // scalar offset of each block row
+   private int[] myValueOffsets = new int[1]; // offset of each inverse
+   private double[] myValues = new double[0]; // row-major block inverses
+   private double[] myWork = new double[0];
+
+   /**
+    * Creates an empty preconditioner.
+    */
+   public BlockJacobiPreconditioner() {
+   }
+
+   /**
+    * Creates a preconditioner for a specified matrix.
+    *
+    * @param S matrix to build the preconditioner from
+    */
+   public BlockJacobiPreconditioner (SparseBlockMatrix S) {
+      factor (S);
+   }
+
+   static void checkStructure (SparseBlockMatrix S) {
+      int nb = S.numBlockRows();
+      if (nb != S.numBlockCols()) {
+         throw new ImproperSizeException (
+            "Matrix must have the same number of block rows and columns");
+      }
+      for (int bi=0; bi<nb; bi++) {
+         if (S.getBlockRowSize(bi) != S.getBlockColSize(bi)) {
+            throw new ImproperSizeException (
+               "Diagonal block "+bi+" is not square");
+         }
+      }
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public void factor (SparseBlockMatrix S) {
+      checkStructure (S);
+      int nb = S.numBlockRows();
+      if (myOffsets.length < nb+1) {
+         myOffsets = new int[nb+1];
+         myValueOffsets = new int[nb+1];
+      }
+      int off = 0;
+      int voff = 0;
+      int maxsize = 0;
+      for (int bi=0; bi<nb; bi++) {
+         int n = S.getBlockRowSize(bi);
+         myOffsets[bi] = off;
+         myValueOffsets[bi] = voff;
+         off += n;
+         voff += n*n;
+         maxsize = Math.max (maxsize, n);
+      }
+      myOffsets[nb] = off;
+      myValueOffsets[nb] = voff;
+      if (myValues.length < voff) {
+         myValues = new double[voff];
+      }
+      if (myWork.length < maxsize*maxsize) {
+         myWork = new double[maxsize*maxsize];
+      }
+      for (int bi=0; bi<nb; bi++) {
+         int n = myOffsets[bi+1]-myOffsets[bi];
+         int voffi = myValueOffsets[bi];
+         MatrixBlock blk = S.getBlock (bi, bi);
+         boolean inverted = false;
+         if (blk != null) {
+            blk.get (myWork);
+            inverted = invert (myValues, voffi, myWork, n);
+         }
+         if (!inverted) {
+            for (int k=0; k<n*n; k++) {
+               myValues[voffi+k] = (k%(n+1) == 0 ? 1 : 0);
+            }
+         }
+      }
+      mySize = off;
+      myNumBlocks = nb;
+   }
+
+   /**
+    * Inverts an n x n row-major matrix stored in a, using Gauss-Jordan
+    * elimination with partial pivoting, and places the result in inv
+    * starting at ioff. The contents of a are destroyed.
+    *
+    * @return false if the matrix is singular
+    */
+   static boolean invert (double[] inv, int ioff, double[] a, int n) {
+      for (int i=0; i<n; i++) {
+         for (int j=0; j<n; j++) {
+            inv[ioff+i*n+j] = (i == j ? 1 : 0);
+         }
+      }
+      for (int k=0; k<n; k++) {
+         // find pivot row
+         int p = k;
+         double max = Math.abs (a[k*n+k]);
+         for (int i=k+1; i<n; i++) {
+            double abs = Math.abs (a[i*n+k]);
+            if (abs > max) {
+               max = abs;
+               p = i;
+            }
+         }
+         if (max == 0 || Double.isNaN (max)) {
+            return false;
+         }
+         if (p != k) {
+            for (int j=0; j<n; j++) {
+               double tmp = a[k*n+j];
+               a[k*n+j] = a[p*n+j];
+               a[p*n+j] = tmp;
+               tmp = inv[ioff+k*n+j];
+               inv[ioff+k*n+j] = inv[ioff+p*n+j];
+               inv[ioff+p*n+j] = tmp;
+            }
+         }
+         double s = 1/a[k*n+k];
+         for (int j=0; j<n; j++) {
+            a[k*n+j] *= s;
+            inv[ioff+k*n+j] *= s;
+         }
+         for (int i=0; i<n; i++) {
+            double f = a[i*n+k];
+            if (i != k && f != 0) {
+               for (int j=0; j<n; j++) {
+                  a[i*n+j] -= f*a[k*n+j];
+                  inv[ioff+i*n+j] -= f*inv[ioff+k*n+j];
+               }
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int rowSize() {
+      return mySize;
+   }
+
+   /**
+    * {@inheritDoc}
+    */
+   public int colSize() {
+      return mySize;
+   }
+
+   /**
+    * Applies this preconditioner to v1, placing the result in vr.
+    *
+    * @param vr result vector
+    * @param v1 vector to apply the preconditioner to
+    */
+   public void mul (VectorNd vr, VectorNd v1) {
+      if (v1.size() != mySize) {
+         throw new ImproperSizeException (
+            "Vector has size "+v1.size()+", expecting "+mySize);
+      }
+      if (vr.size() != mySize) {
+         vr.setSize (mySize);
+      }
+      double[] r = vr.getBuffer();
+      double[] x = v1.getBuffer();
+      double[] vals = myValues;
+      for (int bi=0; bi<myNumBlocks; bi++) {
+         int off = myOffsets[bi];
+         int n = myOffsets[bi+1]-off;
+         int k = myValueOffsets[bi];
+         if (n == 3) {
+            double x0 = x[off];
+            double x1 = x[off+1];
+            double x2 = x[off+2];
+            r[off  ] = vals[k  ]*x0 + vals[k+1]*x1 + vals[k+2]*x2;
+            r[off+1] = vals[k+3]*x0 + vals[k+4]*x1 + vals[k+5]*x2;
+            r[off+2] = vals[k+6]*x0 + vals[k+7]*x1 + vals[k+8]*x2;
+         }
+         else {
+            // copy the input block in case r and x are the same
+            double[] w = myWork;
+            for (int i=0; i<n; i++) {
+               w[i] = x[off+i];
+            }
+            for (int i=0; i<n; i++) {
+               double sum = 0;
+               for (int j=0; j<n; j++) {
+                  sum += vals[k++]*w[j];
+               }
+               r[off+i] = sum;
+            }
+         }
+      }
+   }
+}
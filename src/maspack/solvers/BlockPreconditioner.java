@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.matrix.LinearTransformNd;
+import maspack.matrix.SparseBlockMatrix;
+
+/**
+ * Preconditioner for iterative solvers that is built directly from the blocks
+ * of a symmetric {@link SparseBlockMatrix}. After {@link #factor} has been
+ * called for a matrix A, the {@link LinearTransformNd#mul mul} method applies
+ * an approximation of the inverse of A.
+ */
+public interface BlockPreconditioner extends LinearTransformNd {
+
+   /**
+    * Builds this preconditioner from the current values of a symmetric
+    * block matrix. The matrix must be square, with square diagonal blocks
+    * whose sizes give the block row (and column) sizes. Internal storage is
+    * reused if the block structure has not changed since the previous call.
+    *
+    * @param S matrix to build the preconditioner from
+    */
+   public void factor (SparseBlockMatrix S);
+}
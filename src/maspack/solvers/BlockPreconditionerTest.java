@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.Random;
+
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.MatrixBlockBase;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.NumericalException;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.solvers.CGSolver.PreconditionerType;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests BlockJacobiPreconditioner and BlockIncompleteCholesky, and their use
+ * within CGSolver.
+ */
+public class BlockPreconditionerTest extends UnitTest {
+
+   Random myRand = RandomGenerator.get();
+
+   int[] randomSizes (int num) {
+      int[] sizes = new int[num];
+      for (int i=0; i<num; i++) {
+         sizes[i] = (myRand.nextDouble() < 0.8 ? 3 : 6);
+      }
+      return sizes;
+   }
+
+   MatrixBlock randomBlock (int nr, int nc) {
+      MatrixBlock blk = MatrixBlockBase.alloc (nr, nc);
+      for (int i=0; i<nr; i++) {
+         for (int j=0; j<nc; j++) {
+            blk.set (i, j, myRand.nextDouble()-0.5);
+         }
+      }
+      return blk;
+   }
+
+   void addSymmetricBlock (SparseBlockMatrix S, int bi, int bj) {
+      MatrixBlock blk = randomBlock (
+         S.getBlockRowSize(bi), S.getBlockColSize(bj));
+      S.addBlock (bi, bj, blk);
+      MatrixBlock blkT = MatrixBlockBase.alloc (blk.colSize(), blk.rowSize());
+      for (int i=0; i<blk.rowSize(); i++) {
+         for (int j=0; j<blk.colSize(); j++) {
+            blkT.set (j, i, blk.get (i, j));
+         }
+      }
+      S.addBlock (bj, bi, blkT);
+   }
+
+   /**
+    * Adds SPD diagonal blocks that make the matrix block diagonally dominant,
+    * and hence positive definite.
+    */
+   void addDiagonalBlocks (SparseBlockMatrix S, boolean fullBlocks) {
+      for (int bi=0; bi<S.numBlockRows(); bi++) {
+         int n = S.getBlockRowSize(bi);
+         double rowsum = 0;
+         for (MatrixBlock blk=S.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            rowsum += blk.frobeniusNorm();
+         }
+         MatrixNd D = new MatrixNd (n, n);
+         if (fullBlocks) {
+            MatrixNd R = new MatrixNd (n, n);
+            R.setRandom (-0.5, 0.5, myRand);
+            D.mulTransposeRight (R, R);
+         }
+         double scale = 1 + 10*myRand.nextDouble();
+         for (int i=0; i<n; i++) {
+            D.add (i, i, scale*(rowsum+1));
+         }
+         MatrixBlock blk = MatrixBlockBase.alloc (n, n);
+         blk.set (D);
+         S.addBlock (bi, bi, blk);
+      }
+   }
+
+   SparseBlockMatrix createRandom (int nb, double density) {
+      int[] sizes = randomSizes (nb);
+      SparseBlockMatrix S = new SparseBlockMatrix (sizes, sizes);
+      for (int bi=0; bi<nb; bi++) {
+         for (int bj=bi+1; bj<nb; bj++) {
+            if (myRand.nextDouble() < density) {
+               addSymmetricBlock (S, bi, bj);
+            }
+         }
+      }
+      addDiagonalBlocks (S, true);
+      return S;
+   }
+
+   /**
+    * Creates a block tridiagonal matrix, for which the Cholesky factor has
+    * no fill-in and so IC(0) is exact.
+    */
+   SparseBlockMatrix createTridiagonal (int nb) {
+      int[] sizes = randomSizes (nb);
+      SparseBlockMatrix S = new SparseBlockMatrix (sizes, sizes);
+      for (int bi=0; bi<nb-1; bi++) {
+         addSymmetricBlock (S, bi, bi+1);
+      }
+      addDiagonalBlocks (S, true);
+      return S;
+   }
+
+   void checkEquals (String msg, VectorNd res, VectorNd chk, double tol) {
+      if (!res.epsilonEquals (chk, tol*chk.norm())) {
+         throw new TestException (
+            msg + ": got\n" + res.toString ("%12.8f") +
+            "\nexpected\n" + chk.toString ("%12.8f"));
+      }
+   }
+
+   void testBlockJacobi (SparseBlockMatrix S) {
+      double tol = 1e-10;
+      BlockJacobiPreconditioner P = new BlockJacobiPreconditioner (S);
+      checkEquals ("rowSize", P.rowSize(), S.rowSize());
+
+      // applying the block diagonal of S to P r should give back r
+      int[] sizes = new int[S.numBlockRows()];
+      for (int bi=0; bi<sizes.length; bi++) {
+         sizes[bi] = S.getBlockRowSize(bi);
+      }
+      SparseBlockMatrix D = new SparseBlockMatrix (sizes, sizes);
+      for (int bi=0; bi<S.numBlockRows(); bi++) {
+         D.addBlock (bi, bi, S.getBlock(bi,bi).clone());
+      }
+      VectorNd r = new VectorNd (S.rowSize());
+      VectorNd z = new VectorNd (S.rowSize());
+      VectorNd chk = new VectorNd (S.rowSize());
+      r.setRandom();
+      P.mul (z, r);
+      D.mul (chk, z);
+      checkEquals ("block Jacobi", chk, r, tol);
+
+      // result may alias the input
+      z.set (r);
+      P.mul (z, z);
+      D.mul (chk, z);
+      checkEquals ("block Jacobi in place", chk, r, tol);
+   }
+
+   void testExactIC (SparseBlockMatrix S) {
+      double tol = 1e-10;
+      BlockIncompleteCholesky P = new BlockIncompleteCholesky (S);
+      VectorNd r = new VectorNd (S.rowSize());
+      VectorNd z = new VectorNd (S.rowSize());
+      VectorNd chk = new VectorNd (S.rowSize());
+      r.setRandom();
+      P.mul (z, r);
+      S.mul (chk, z);
+      checkEquals ("exact incomplete Cholesky", chk, r, tol);
+      check ("unexpected shift", P.getLastShift() == 0);
+
+      // refactor with new values and the same structure
+      SparseBlockMatrix S2 = createScaled (S, 2.0);
+      P.factor (S2);
+      P.mul (z, r);
+      S2.mul (chk, z);
+      checkEquals ("exact incomplete Cholesky, refactored", chk, r, tol);
+
+      // CG should converge immediately with an exact preconditioner
+      CGSolver cg = new CGSolver();
+      VectorNd x = new VectorNd (S.rowSize());
+      if (!cg.solve (x, S2, r, 1e-10, 10, P)) {
+         throw new TestException (
+            "No convergence with exact incomplete Cholesky");
+      }
+      if (cg.getNumIterations() > 2) {
+         throw new TestException (
+            "Num iterations > 2 with exact incomplete Cholesky");
+      }
+   }
+
+   SparseBlockMatrix createScaled (SparseBlockMatrix S, double s) {
+      SparseBlockMatrix S2 = S.clone();
+      S2.scale (s);
+      return S2;
+   }
+
+   int solveCG (
+      SparseBlockMatrix S, VectorNd b, PreconditionerType type, double tol) {
+      CGSolver cg = new CGSolver();
+      cg.setPreconditionerType (type);
+      cg.setTolerance (tol);
+      cg.setMaxIterations (10*S.rowSize());
+      VectorNd x = new VectorNd (S.rowSize());
+      if (!cg.solve (x, S, b)) {
+         throw new TestException (
+            "No convergence with preconditioner " + type);
+      }
+      VectorNd res = new VectorNd (S.rowSize());
+      S.mul (res, x);
+      res.sub (b);
+      if (res.norm() > 100*tol*b.norm()) {
+         throw new TestException (
+            "Residual " + res.norm()/b.norm() +
+            " too large with preconditioner " + type);
+      }
+      return cg.getNumIterations();
+   }
+
+   void testCG (SparseBlockMatrix S) {
+      double tol = 1e-10;
+      VectorNd b = new VectorNd (S.rowSize());
+      b.setRandom();
+      int numNone = solveCG (S, b, PreconditionerType.None, tol);
+      int numJacobi = solveCG (S, b, PreconditionerType.BlockJacobi, tol);
+      int numIC = solveCG (
+         S, b, PreconditionerType.BlockIncompleteCholesky, tol);
+      if (numJacobi > numNone) {
+         throw new TestException (
+            "Block Jacobi took " + numJacobi + " iterations, vs. " +
+            numNone + " without preconditioning");
+      }
+      if (numIC > numJacobi) {
+         throw new TestException (
+            "Incomplete Cholesky took " + numIC + " iterations, vs. " +
+            numJacobi + " for block Jacobi");
+      }
+   }
+
+   void testStructureChange() {
+      double tol = 1e-10;
+      SparseBlockMatrix S = createTridiagonal (10);
+      BlockIncompleteCholesky P = new BlockIncompleteCholesky (S);
+      int numBlocks = P.numBlocks();
+
+      // remove a pair of off-diagonal blocks, so the factor is still exact
+      S.removeBlock (S.getBlock (3, 4));
+      S.removeBlock (S.getBlock (4, 3));
+      P.factor (S);
+      checkEquals ("numBlocks", P.numBlocks(), numBlocks-1);
+      VectorNd r = new VectorNd (S.rowSize());
+      VectorNd z = new VectorNd (S.rowSize());
+      VectorNd chk = new VectorNd (S.rowSize());
+      r.setRandom();
+      P.mul (z, r);
+      S.mul (chk, z);
+      checkEquals ("incomplete Cholesky, changed structure", chk, r, tol);
+
+      // remove a diagonal block; the missing block is treated as zero
+      S.removeBlock (S.getBlock (0, 0));
+      try {
+         P.factor (S);
+         throw new TestException (
+            "factor did not fail for missing diagonal block");
+      }
+      catch (NumericalException e) {
+         // expected
+      }
+   }
+
+   public void test() {
+      for (int i=0; i<10; i++) {
+         SparseBlockMatrix S = createRandom (20, 0.2);
+         testBlockJacobi (S);
+         testCG (S);
+         testExactIC (createTridiagonal (15));
+      }
+      testStructureChange();
+
+      // empty matrices
+      SparseBlockMatrix S = new SparseBlockMatrix (new int[0], new int[0]);
+      checkEquals (
+         "empty rowSize", new BlockJacobiPreconditioner(S).rowSize(), 0);
+      checkEquals (
+         "empty rowSize", new BlockIncompleteCholesky(S).rowSize(), 0);
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      BlockPreconditionerTest tester = new BlockPreconditionerTest();
+      tester.runtest();
+   }
+}
@@ -6,11 +6,14 @@
  */
 package maspack.solvers;
 
+import maspack.matrix.BlockCRSMatrix;
 import maspack.matrix.ImproperSizeException;
 import maspack.matrix.LinearTransformNd;
 import maspack.matrix.Matrix;
+import maspack.matrix.SparseBlockMatrix;
 import maspack.matrix.SparseMatrixNd;
 import maspack.matrix.VectorNd;
+import maspack.util.InternalErrorException;
 
 /**
  * Solves linear systems using the conjugate gradient algorithm
@@ -29,6 +32,41 @@ public class CGSolver implements IterativeSolver {
    VectorNd dir = new VectorNd (0); // direction
    VectorNd A_dir = new VectorNd (0); // direction multiplied by A
 
+   private boolean myUseBlockCRS = true;
+   private BlockCRSMatrix myBlockCRS; // compact copy of A for fast products
+
+   /**
+    * Describes the preconditioner that is built from the system matrix
+    * when it is a {@link SparseBlockMatrix}.
+    */
+   public enum PreconditionerType {
+      /**
+       * No preconditioning
+       */
+      None,
+
+      /**
+       * Block-Jacobi preconditioning, using the diagonal blocks;
+       * see {@link BlockJacobiPreconditioner}
+       */
+      BlockJacobi,
+
+      /**
+       * Block incomplete Cholesky preconditioning;
+       * see {@link BlockIncompleteCholesky}
+       */
+      BlockIncompleteCholesky,
+
+      /**
+       * One V-cycle of smoothed aggregation algebraic multigrid;
+       * see {@link AMGSolver}
+       */
+      AlgebraicMultigrid
+   };
+
+   private PreconditionerType myPreconditionerType = PreconditionerType.None;
+   private BlockPreconditioner myPreconditioner;
+
    // public enum ToleranceType
    // {
    // RelativeResidual,
@@ -52,6 +90,98 @@ public class CGSolver implements IterativeSolver {
       myTolType = type;
    }
 
+   /**
+    * Queries whether a compact {@link BlockCRSMatrix} copy is used for
+    * matrix-vector products when the system matrix is a {@link
+    * SparseBlockMatrix}. See {@link #setUseBlockCRS}.
+    *
+    * @return {@code true} if a compact matrix copy is used
+    */
+   public boolean getUseBlockCRS() {
+      return myUseBlockCRS;
+   }
+
+   /**
+    * Sets whether a compact {@link BlockCRSMatrix} copy is used for
+    * matrix-vector products when the system matrix is a {@link
+    * SparseBlockMatrix}. The copy is refreshed at the start of each solve,
+    * and is reused without reallocation if the block structure of the
+    * matrix has not changed. The default value is {@code true}.
+    *
+    * @param enable if {@code true}, use a compact matrix copy
+    */
+   public void setUseBlockCRS (boolean enable) {
+      myUseBlockCRS = enable;
+      if (!enable) {
+         myBlockCRS = null;
+      }
+   }
+
+   private LinearTransformNd getBlockCRS (SparseBlockMatrix S) {
+      if (myBlockCRS == null) {
+         myBlockCRS = new BlockCRSMatrix (S);
+      }
+      else {
+         myBlockCRS.update (S);
+      }
+      return myBlockCRS;
+   }
+
+   /**
+    * Returns the type of preconditioner that is built from the system
+    * matrix. See {@link #setPreconditionerType}.
+    *
+    * @return preconditioner type
+    */
+   public PreconditionerType getPreconditionerType() {
+      return myPreconditionerType;
+   }
+
+   /**
+    * Sets the type of preconditioner that is built from the system matrix by
+    * {@link #solve(VectorNd,LinearTransformNd,VectorNd)}. The preconditioner
+    * is rebuilt at the start of each solve, and is only used when the system
+    * matrix is a {@link SparseBlockMatrix}. The default value is {@link
+    * PreconditionerType#None}.
+    *
+    * @param type preconditioner type
+    */
+   public void setPreconditionerType (PreconditionerType type) {
+      if (type != myPreconditionerType) {
+         myPreconditionerType = type;
+         myPreconditioner = null;
+      }
+   }
+
+   private LinearTransformNd getPreconditioner (LinearTransformNd A) {
+      if (myPreconditionerType == PreconditionerType.None ||
+          !(A instanceof SparseBlockMatrix)) {
+         return null;
+      }
+      if (myPreconditioner == null) {
+         switch (myPreconditionerType) {
+            case BlockJacobi: {
+               myPreconditioner = new BlockJacobiPreconditioner();
+               break;
+            }
+            case BlockIncompleteCholesky: {
+               myPreconditioner = new BlockIncompleteCholesky();
+               break;
+            }
+            case AlgebraicMultigrid: {
+               myPreconditioner = new AMGSolver();
+               break;
+            }
+            default: {
+               throw new InternalErrorException (
+                  "Unknown preconditioner type " + myPreconditionerType);
+            }
+         }
+      }
+      myPreconditioner.factor ((SparseBlockMatrix)A);
+      return myPreconditioner;
+   }
+
    public int getMaxIterations() {
       return myMaxIter;
    }
@@ -66,7 +196,11 @@ public class CGSolver implements IterativeSolver {
     * {@link maspack.matrix.LinearTransformNd LinearTransformNd}. The method
     * will iterate while relative residual ||A x - b||/||b|| is greater than a
     * supplied tolerance and the number of iterations is less than a specified
-    * maximum.
+    * maximum. If A is a {@link SparseBlockMatrix}, a preconditioner is built
+    * from it as specified by {@link #setPreconditionerType}. When such a
+    * preconditioner is used, the residual and ||b|| are instead measured in
+    * the norm defined by the preconditioner, so that the test does not
+    * require an additional unpreconditioned residual norm per iteration.
     * 
     * @param x
     * result vector, as well as initial guess of the solution
@@ -77,7 +211,9 @@ public class CGSolver implements IterativeSolver {
     * @return true if a solution was found within the specified tolerance
     */
    public boolean solve (VectorNd x, LinearTransformNd A, VectorNd b) {
-      return solve (x, A, b, myTol, myMaxIter, null);
+      return solve (
+         x, A, b, myTol, myMaxIter, getPreconditioner (A),
+         /*precondNorm=*/true);
    }
 
    /**
@@ -133,8 +269,24 @@ public class CGSolver implements IterativeSolver {
    public boolean solve (
       VectorNd x, LinearTransformNd A, VectorNd b, double tol, int maxIter,
       LinearTransformNd P) {
+      return solve (x, A, b, tol, maxIter, P, /*precondNorm=*/false);
+   }
+
+   /**
+    * Implements the conjugate gradient solve. If <code>precondNorm</code> is
+    * <code>true</code> and <code>P</code> is non-null, the relative residual
+    * is measured in the norm defined by <code>P</code>, i.e., the iteration
+    * stops when res' P res &lt;= tol^2 b' P b. Otherwise, the value res' P
+    * res (which CG computes anyway) is compared with tol^2 ||b||^2.
+    */
+   private boolean solve (
+      VectorNd x, LinearTransformNd A, VectorNd b, double tol, int maxIter,
+      LinearTransformNd P, boolean precondNorm) {
 
       // System.out.println ("CGSolve: " + tol+" "+maxIter+" "+myTolType);
+      if (myUseBlockCRS && A instanceof SparseBlockMatrix) {
+         A = getBlockCRS ((SparseBlockMatrix)A);
+      }
       if (A.rowSize() != A.colSize()) {
          throw new ImproperSizeException ("Matrix must be square");
       }
@@ -167,7 +319,14 @@ public class CGSolver implements IterativeSolver {
       double resLimit;
       switch (myTolType) {
          case RelativeResidual: {
-            resLimit = tol * tol * b.dot (b);
+            if (P != null && precondNorm) {
+               // measure b in the same norm as dnew = res'P res
+               P.mul (P_res, b);
+               resLimit = tol * tol * b.dot (P_res);
+            }
+            else {
+               resLimit = tol * tol * b.dot (b);
+            }
             break;
          }
          case AbsoluteResidual:
@@ -0,0 +1,751 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import maspack.concurrency.WorkerPool;
+import maspack.matrix.ImproperStateException;
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.solvers.KKTSolver.LCPSolverType;
+import maspack.solvers.KKTSolver.Status;
+
+/**
+ * Solves KKT systems with equality and inequality constraints, of the form
+ *
+ * <pre>
+ * {@code
+ *
+ * [  M  -G^T  -N^T ] [ vel ]   [ bm ]   [ 0 ]
+ * [                ] [     ]   [    ]   [   ]
+ * [  G   Rg    0   ] [ lam ] = [ bg ] + [ 0 ]
+ * [                ] [     ]   [    ]   [   ]
+ * [  N   0     Rn  ] [ the ]   [ bn ]   [ w ]
+ * }
+ * </pre>
+ *
+ * by first decomposing them into <i>islands</i>, each of which can be
+ * factored and solved independently of the others. Two block rows of M
+ * belong to the same island if they are connected by a chain of off-diagonal
+ * blocks of M, or of constraints (block columns of G^T or N^T) that act on
+ * both of them. For a mechanical system, each island is a group of bodies
+ * coupled by joints, elastic forces or contacts. Each island is handled by
+ * its own {@link KKTSolver}, which reduces both the fill-in of the
+ * factorization and the size of the dense LCP formed for the unilateral
+ * constraints, and the islands are factored and solved in parallel when more
+ * than one thread is available.
+ *
+ * <p>The calling sequence is the same as for {@link KKTSolver}: {@link
+ * #analyze analyze()} must be called whenever the structure of M or G^T
+ * changes, after which {@link #factor factor()} and {@link #solve solve()}
+ * may be called repeatedly. Since the islands also depend on N^T, they are
+ * recomputed by every call to factor(); islands whose block rows are the
+ * same as in the previous call keep their solvers and are reanalyzed only if
+ * analyze() has been called in the meantime.
+ */
+public class KKTIslandSolver {
+
+   private KKTSolver.SolverType mySolverType;
+   private int myTypeM;
+   private boolean myAnalyzed;
+   private boolean myFactored;
+
+   private int myNumThreads = WorkerPool.getDefaultNumThreads();
+   private WorkerPool myWorkers;
+
+   private LCPSolverType myLCPSolverType = LCPSolverType.Dantzig;
+   private ProjectedGaussSeidelSolver myPGS;
+   private boolean myWarmStart = false;
+
+   private int mySizeM;
+   private int myNumG;
+   private int myNumN;
+
+   private ArrayList<Island> myIslands = new ArrayList<Island>();
+   private HashMap<RowsKey,Island> myIslandMap = new HashMap<RowsKey,Island>();
+   private int[] myParents = new int[0];
+
+   private int myLCPIterationCnt;
+   private double myLCPResidual;
+   private int myLCPWarmStartCnt;
+
+   /**
+    * Key identifying an island by its block rows.
+    */
+   private static class RowsKey {
+      int[] myRows;
+      int myHash;
+
+      RowsKey (int[] rows) {
+         myRows = rows;
+         myHash = Arrays.hashCode (rows);
+      }
+
+      public int hashCode() {
+         return myHash;
+      }
+
+      public boolean equals (Object obj) {
+         return (obj instanceof RowsKey &&
+                 Arrays.equals (myRows, ((RowsKey)obj).myRows));
+      }
+   }
+
+   /**
+    * Stores the sub-problem and solver associated with a single island.
+    */
+   private class Island {
+      RowsKey myKey;
+      int[] myBlkRows;
+      int[] myGTCols;
+      int[] myNTCols;
+      // indices of the island's entries within vel, lam and the
+      int[] myVelIdxs;
+      int[] myLamIdxs;
+      int[] myTheIdxs;
+      // true if the island contains the entire system, in which case the
+      // original matrices and vectors are used directly
+      boolean myWholeSystem;
+      boolean myAnalyzed;
+      KKTSolver mySolver;
+
+      SparseBlockMatrix myM;
+      SparseBlockMatrix myGT;
+      SparseBlockMatrix myNT;
+      // GT columns used to create myGT
+      int[] mySubGTCols;
+      VectorNd myRg = new VectorNd();
+      VectorNd myRn = new VectorNd();
+
+      VectorNd myVel = new VectorNd();
+      VectorNd myLam = new VectorNd();
+      VectorNd myThe = new VectorNd();
+      VectorNd myBm = new VectorNd();
+      VectorNd myBg = new VectorNd();
+      VectorNd myBn = new VectorNd();
+      Status myStatus;
+
+      Island (RowsKey key) {
+         myKey = key;
+         myBlkRows = key.myRows;
+         mySolver = (mySolverType != null ?
+                     new KKTSolver (mySolverType) : new KKTSolver());
+      }
+
+      void factor (
+         SparseBlockMatrix M, int sizeM, SparseBlockMatrix GT, VectorNd Rg,
+         SparseBlockMatrix NT, VectorNd Rn) {
+
+         if (myWholeSystem) {
+            if (!myAnalyzed) {
+               mySolver.analyze (M, sizeM, GT, Rg, myTypeM);
+               myAnalyzed = true;
+            }
+            mySolver.factor (M, sizeM, GT, Rg, NT, Rn);
+            return;
+         }
+         if (myM != null && myAnalyzed &&
+             Arrays.equals (myGTCols, mySubGTCols)) {
+            // structures of M and GT are unchanged since they were last
+            // analyzed, so just update the values of the submatrices
+            setSubMatrixValues (myM, M, myBlkRows, myBlkRows);
+            setSubMatrixValues (myGT, GT, myBlkRows, myGTCols);
+         }
+         else {
+            myM = M.createSubMatrix (myBlkRows, myBlkRows);
+            myGT = createSubMatrix (GT, myBlkRows, myGTCols);
+            mySubGTCols = myGTCols;
+            myAnalyzed = false;
+         }
+         // the structure of NT can change without reanalysis
+         myNT = createSubMatrix (NT, myBlkRows, myNTCols);
+         VectorNd rg = null;
+         VectorNd rn = null;
+         if (Rg != null) {
+            gather (rg = myRg, Rg, myLamIdxs);
+         }
+         if (Rn != null) {
+            gather (rn = myRn, Rn, myTheIdxs);
+         }
+         if (!myAnalyzed) {
+            mySolver.analyze (myM, myM.rowSize(), myGT, rg, myTypeM);
+            myAnalyzed = true;
+         }
+         mySolver.factor (myM, myM.rowSize(), myGT, rg, myNT, rn);
+      }
+
+      void solve (
+         VectorNd vel, VectorNd lam, VectorNd the,
+         VectorNd bm, VectorNd bg, VectorNd bn) {
+
+         setLCPOptions (mySolver);
+         if (myWholeSystem) {
+            myStatus = mySolver.solve (vel, lam, the, bm, bg, bn);
+            return;
+         }
+         gather (myVel, vel, myVelIdxs);
+         gather (myBm, bm, myVelIdxs);
+         gather (myLam, lam, myLamIdxs);
+         gather (myBg, bg, myLamIdxs);
+         gather (myThe, the, myTheIdxs);
+         gather (myBn, bn, myTheIdxs);
+         myStatus = mySolver.solve (myVel, myLam, myThe, myBm, myBg, myBn);
+         // islands write to disjoint parts of vel, lam and the
+         scatter (vel, myVel, myVelIdxs);
+         scatter (lam, myLam, myLamIdxs);
+         scatter (the, myThe, myTheIdxs);
+      }
+   }
+
+   /**
+    * Creates a new KKTIslandSolver, whose island solvers use the default
+    * solver type of {@link KKTSolver}.
+    */
+   public KKTIslandSolver() {
+      mySolverType = null;
+   }
+
+   /**
+    * Creates a new KKTIslandSolver whose island solvers use a specified
+    * solver type.
+    *
+    * @param type solver type for the island solvers
+    */
+   public KKTIslandSolver (KKTSolver.SolverType type) {
+      mySolverType = type;
+   }
+
+   /**
+    * Returns the maximum number of threads used to factor and solve
+    * islands in parallel.
+    *
+    * @return maximum number of threads
+    */
+   public int getNumThreads() {
+      return myNumThreads;
+   }
+
+   /**
+    * Sets the maximum number of threads used to factor and solve islands in
+    * parallel. The default value is given by {@link
+    * WorkerPool#getDefaultNumThreads}. A value of 1 causes islands to be
+    * processed sequentially.
+    *
+    * @param num maximum number of threads
+    */
+   public void setNumThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumThreads) {
+         if (myWorkers != null) {
+            myWorkers.shutdown();
+            myWorkers = null;
+         }
+         myNumThreads = num;
+      }
+   }
+
+   /**
+    * Returns the solver used for the unilateral constraint LCPs.
+    *
+    * @return LCP solver type
+    * @see KKTSolver#getLCPSolverType
+    */
+   public LCPSolverType getLCPSolverType() {
+      return myLCPSolverType;
+   }
+
+   /**
+    * Sets the solver used for the unilateral constraint LCPs of each
+    * island.
+    *
+    * @param type LCP solver type
+    * @see KKTSolver#setLCPSolverType
+    */
+   public void setLCPSolverType (LCPSolverType type) {
+      myLCPSolverType = type;
+   }
+
+   /**
+    * Sets a projected Gauss-Seidel solver whose settings are used for the
+    * LCPs of each island when the LCP solver type is {@link
+    * LCPSolverType#ProjectedGaussSeidel}. Since islands may be solved
+    * concurrently, each island uses its own single-threaded copy of the
+    * solver, to which these settings are transferred before each solve.
+    *
+    * @param pgs solver providing settings for the island LCP solves
+    */
+   public void setProjectedGaussSeidelSolver (ProjectedGaussSeidelSolver pgs) {
+      myPGS = pgs;
+   }
+
+   /**
+    * Returns whether the unilateral impulses supplied to {@link #solve
+    * solve()} are used as a warm start for the LCP solves.
+    *
+    * @return {@code true} if warm starting is enabled
+    * @see KKTSolver#getWarmStart
+    */
+   public boolean getWarmStart() {
+      return myWarmStart;
+   }
+
+   /**
+    * Sets whether the unilateral impulses supplied to {@link #solve solve()}
+    * are used as a warm start for the LCP solves.
+    *
+    * @param enable if {@code true}, enables warm starting
+    * @see KKTSolver#setWarmStart
+    */
+   public void setWarmStart (boolean enable) {
+      myWarmStart = enable;
+   }
+
+   /**
+    * Returns the number of islands found by the most recent call to {@link
+    * #factor factor()}.
+    *
+    * @return number of islands
+    */
+   public int numIslands() {
+      return myIslands.size();
+   }
+
+   /**
+    * Returns the size of the M matrix for a specific island found by the
+    * most recent call to {@link #factor factor()}.
+    *
+    * @param k island index
+    * @return size of the island's M matrix
+    */
+   public int getIslandSize (int k) {
+      return myIslands.get(k).myVelIdxs.length;
+   }
+
+   /**
+    * Returns the total number of LCP iterations or pivots, summed over all
+    * islands, for the most recent call to {@link #solve solve()}.
+    *
+    * @return total LCP iteration count
+    */
+   public int getLCPIterationCount() {
+      return myLCPIterationCnt;
+   }
+
+   /**
+    * Returns the maximum LCP residual over all islands for the most recent
+    * call to {@link #solve solve()}.
+    *
+    * @return maximum LCP residual
+    */
+   public double getLCPResidual() {
+      return myLCPResidual;
+   }
+
+   /**
+    * Returns the number of islands whose LCP warm start was accepted in the
+    * most recent call to {@link #solve solve()}.
+    *
+    * @return number of accepted warm starts
+    */
+   public int numLCPWarmStartsAccepted() {
+      return myLCPWarmStartCnt;
+   }
+
+   /**
+    * Notes that the structures of M and GT have been set or changed, so that
+    * each island will be reanalyzed the next time {@link #factor factor()}
+    * is called.
+    *
+    * @param M Sparse matrix defining M
+    * @param sizeM size of M
+    * @param GT Sparse matrix defining the transpose of G
+    * @param Rg if non-null, supplies the diagonal regularization matrix R
+    * @param typeM type of M, as described for {@link
+    * KKTSolver#analyze(SparseBlockMatrix,int,SparseBlockMatrix,VectorNd,int)}
+    */
+   public void analyze (
+      SparseBlockMatrix M, int sizeM,
+      SparseBlockMatrix GT, VectorNd Rg, int typeM) {
+      myTypeM = typeM;
+      for (Island island : myIslandMap.values()) {
+         island.myAnalyzed = false;
+      }
+      myAnalyzed = true;
+      myFactored = false;
+   }
+
+   /**
+    * Finds the islands of a KKT system containing equality and inequality
+    * constraints, and does a numeric factorization of each one. analyze()
+    * must have been previously called with M and G matrices having the same
+    * symbolic structure as the ones supplied to this method. The size of M
+    * must fall on a block row boundary.
+    */
+   public void factor (
+      SparseBlockMatrix M, int sizeM, SparseBlockMatrix GT, VectorNd Rg,
+      SparseBlockMatrix NT, VectorNd Rn) {
+
+      if (!myAnalyzed) {
+         throw new ImproperStateException ("Analyze has not been called");
+      }
+      if (sizeM <= 0) {
+         throw new IllegalArgumentException ("sizeM must be positive");
+      }
+      final int nbm = M.getBlockRow (sizeM-1) + 1;
+      if (M.getBlockRowOffset (nbm) != sizeM) {
+         throw new IllegalArgumentException (
+            "sizeM=" + sizeM + " does not fall on a block row boundary");
+      }
+      mySizeM = sizeM;
+      myNumG = (GT != null ? GT.colSize() : 0);
+      myNumN = (NT != null ? NT.colSize() : 0);
+      findIslands (M, nbm, GT, NT);
+
+      forEachIsland ((tidx, k) ->
+         myIslands.get(k).factor (M, sizeM, GT, Rg, NT, Rn));
+      myFactored = true;
+   }
+
+   public boolean isFactored() {
+      return myFactored;
+   }
+
+   /**
+    * Solves the equality and inequality parts of a factored system. If warm
+    * starting is enabled, {@code the} should contain an initial guess for
+    * the unilateral impulses.
+    *
+    * @return the worst status of all the island solves
+    */
+   public Status solve (
+      VectorNd vel, VectorNd lam, VectorNd the, VectorNd bm, VectorNd bg,
+      VectorNd bn) {
+
+      if (!myFactored) {
+         throw new ImproperStateException ("Solver has not been factored");
+      }
+      if (vel.size() < mySizeM || bm.size() < mySizeM) {
+         throw new IllegalArgumentException (
+            "vel or bm is smaller than the size of M");
+      }
+      lam.setSize (myNumG);
+      the.setSize (myNumN);
+      forEachIsland ((tidx, k) ->
+         myIslands.get(k).solve (vel, lam, the, bm, bg, bn));
+      Status status = Status.SOLVED;
+      myLCPIterationCnt = 0;
+      myLCPResidual = 0;
+      myLCPWarmStartCnt = 0;
+      for (Island island : myIslands) {
+         KKTSolver solver = island.mySolver;
+         if (island.myStatus.ordinal() > status.ordinal()) {
+            status = island.myStatus;
+         }
+         myLCPIterationCnt += solver.getLCPIterationCount();
+         myLCPResidual = Math.max (myLCPResidual, solver.getLCPResidual());
+         if (solver.lastLCPWarmStartAccepted()) {
+            myLCPWarmStartCnt++;
+         }
+      }
+      return status;
+   }
+
+   /**
+    * Releases the resources used by the island solvers.
+    */
+   public void dispose() {
+      for (Island island : myIslandMap.values()) {
+         island.mySolver.dispose();
+      }
+      myIslandMap.clear();
+      myIslands.clear();
+      if (myWorkers != null) {
+         myWorkers.shutdown();
+         myWorkers = null;
+      }
+      myFactored = false;
+   }
+
+   private void setLCPOptions (KKTSolver solver) {
+      solver.setLCPSolverType (myLCPSolverType);
+      solver.setWarmStart (myWarmStart);
+      if (myLCPSolverType == LCPSolverType.ProjectedGaussSeidel &&
+          myPGS != null) {
+         ProjectedGaussSeidelSolver pgs =
+            solver.getProjectedGaussSeidelSolver();
+         pgs.setNumThreads (1);
+         pgs.setMethod (myPGS.getMethod());
+         pgs.setTolerance (myPGS.getTolerance());
+         pgs.setMaxIterations (myPGS.getMaxIterations());
+         pgs.setRelaxation (myPGS.getRelaxation());
+      }
+   }
+
+   private void forEachIsland (WorkerPool.IndexTask task) {
+      int num = myIslands.size();
+      if (myNumThreads > 1 && num > 1) {
+         if (myWorkers == null) {
+            myWorkers = new WorkerPool ("KKTIslandSolver", myNumThreads);
+         }
+         myWorkers.forEachIndex (num, task);
+      }
+      else {
+         for (int k=0; k<num; k++) {
+            task.run (0, k);
+         }
+      }
+   }
+
+   private int findRoot (int i) {
+      while (myParents[i] != i) {
+         myParents[i] = myParents[myParents[i]];
+         i = myParents[i];
+      }
+      return i;
+   }
+
+   private void union (int i, int j) {
+      int ri = findRoot (i);
+      int rj = findRoot (j);
+      if (ri != rj) {
+         myParents[Math.max(ri,rj)] = Math.min(ri,rj);
+      }
+   }
+
+   /**
+    * Unions all the block rows of M that are acted on by the same block
+    * column of a constraint matrix. colRoots is used to store the first
+    * block row found for each block column.
+    */
+   private void unionConstraintRows (SparseBlockMatrix CT, int nbm) {
+      int[] colRows = new int[CT.numBlockCols()];
+      Arrays.fill (colRows, -1);
+      int nrows = Math.min (nbm, CT.numBlockRows());
+      for (int bi=0; bi<nrows; bi++) {
+         for (MatrixBlock blk=CT.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            if (colRows[bj] == -1) {
+               colRows[bj] = bi;
+            }
+            else {
+               union (colRows[bj], bi);
+            }
+         }
+      }
+   }
+
+   /**
+    * Assigns each block column of a constraint matrix to the island of the
+    * block rows it acts on. Columns that act on no rows are assigned to the
+    * first island. Returns, for each island, the assigned block columns in
+    * increasing order.
+    */
+   private int[][] assignConstraintCols (
+      SparseBlockMatrix CT, int nbm, int[] islandNums, int numIslands) {
+      int ncols = (CT != null ? CT.numBlockCols() : 0);
+      int[] colIslands = new int[ncols];
+      int[] counts = new int[numIslands];
+      if (ncols > 0) {
+         Arrays.fill (colIslands, 0);
+         boolean[] assigned = new boolean[ncols];
+         int nrows = Math.min (nbm, CT.numBlockRows());
+         for (int bi=0; bi<nrows; bi++) {
+            for (MatrixBlock blk=CT.firstBlockInRow(bi); blk!=null;
+                 blk=blk.next()) {
+               int bj = blk.getBlockCol();
+               if (!assigned[bj]) {
+                  colIslands[bj] = islandNums[findRoot(bi)];
+                  assigned[bj] = true;
+               }
+            }
+         }
+         for (int bj=0; bj<ncols; bj++) {
+            counts[colIslands[bj]]++;
+         }
+      }
+      int[][] cols = new int[numIslands][];
+      for (int k=0; k<numIslands; k++) {
+         cols[k] = new int[counts[k]];
+         counts[k] = 0;
+      }
+      for (int bj=0; bj<ncols; bj++) {
+         int k = colIslands[bj];
+         cols[k][counts[k]++] = bj;
+      }
+      return cols;
+   }
+
+   /**
+    * Finds the connected components of the block rows of M, using a
+    * union-find over the off-diagonal blocks of M and the columns of GT and
+    * NT, and sets up the island list. Islands whose block rows are
+    * unchanged from the previous call are reused.
+    */
+   private void findIslands (
+      SparseBlockMatrix M, int nbm, SparseBlockMatrix GT, SparseBlockMatrix NT) {
+
+      if (myParents.length < nbm) {
+         myParents = new int[nbm];
+      }
+      for (int bi=0; bi<nbm; bi++) {
+         myParents[bi] = bi;
+      }
+      for (int bi=0; bi<nbm; bi++) {
+         for (MatrixBlock blk=M.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            int bj = blk.getBlockCol();
+            if (bj != bi && bj < nbm) {
+               union (bi, bj);
+            }
+         }
+      }
+      if (GT != null) {
+         unionConstraintRows (GT, nbm);
+      }
+      if (NT != null) {
+         unionConstraintRows (NT, nbm);
+      }
+      // each root is the smallest block row in its island; number the
+      // islands in order of their roots
+      int[] islandNums = new int[nbm];
+      int[] counts = new int[nbm];
+      int num = 0;
+      for (int bi=0; bi<nbm; bi++) {
+         if (findRoot (bi) == bi) {
+            islandNums[bi] = num++;
+         }
+      }
+      for (int bi=0; bi<nbm; bi++) {
+         counts[islandNums[findRoot(bi)]]++;
+      }
+      int[][] rows = new int[num][];
+      for (int k=0; k<num; k++) {
+         rows[k] = new int[counts[k]];
+         counts[k] = 0;
+      }
+      for (int bi=0; bi<nbm; bi++) {
+         int k = islandNums[findRoot(bi)];
+         rows[k][counts[k]++] = bi;
+      }
+      // islandNums is indexed by root, so fill in the remaining rows
+      for (int bi=0; bi<nbm; bi++) {
+         islandNums[bi] = islandNums[findRoot(bi)];
+      }
+      int[][] gtCols = assignConstraintCols (GT, nbm, islandNums, num);
+      int[][] ntCols = assignConstraintCols (NT, nbm, islandNums, num);
+
+      HashMap<RowsKey,Island> prevMap = myIslandMap;
+      myIslandMap = new HashMap<RowsKey,Island>();
+      myIslands.clear();
+      for (int k=0; k<num; k++) {
+         RowsKey key = new RowsKey (rows[k]);
+         Island island = prevMap.remove (key);
+         if (island == null) {
+            island = new Island (key);
+         }
+         island.myWholeSystem = (num == 1);
+         island.myGTCols = gtCols[k];
+         island.myNTCols = ntCols[k];
+         island.myVelIdxs = createIndices (M, rows[k], /*cols=*/false);
+         island.myLamIdxs = createIndices (GT, gtCols[k], /*cols=*/true);
+         island.myTheIdxs = createIndices (NT, ntCols[k], /*cols=*/true);
+         myIslandMap.put (key, island);
+         myIslands.add (island);
+      }
+      for (Island island : prevMap.values()) {
+         island.mySolver.dispose();
+      }
+   }
+
+   /**
+    * Creates the submatrix of CT formed from specific block rows and
+    * columns. Unlike {@link SparseBlockMatrix#createSubMatrix}, this returns
+    * an empty matrix with the proper row sizes when there are no columns.
+    */
+   private static SparseBlockMatrix createSubMatrix (
+      SparseBlockMatrix CT, int[] blkRows, int[] blkCols) {
+      if (blkCols.length == 0) {
+         int[] rowSizes = new int[blkRows.length];
+         for (int i=0; i<blkRows.length; i++) {
+            rowSizes[i] = CT != null ? CT.getBlockRowSize (blkRows[i]) : 0;
+         }
+         return new SparseBlockMatrix (rowSizes, new int[0]);
+      }
+      return CT.createSubMatrix (blkRows, blkCols);
+   }
+
+   /**
+    * Sets the values of a submatrix S previously created from CT using
+    * specific block rows and columns. The structure of CT within those rows
+    * and columns must be unchanged since S was created.
+    */
+   private static void setSubMatrixValues (
+      SparseBlockMatrix S, SparseBlockMatrix CT, int[] blkRows, int[] blkCols) {
+      if (blkCols.length == 0) {
+         return;
+      }
+      for (int i=0; i<blkRows.length; i++) {
+         // blocks of S are in the same order as the corresponding blocks
+         // of CT, since blkCols is increasing
+         MatrixBlock sblk = S.firstBlockInRow (i);
+         for (MatrixBlock blk=CT.firstBlockInRow(blkRows[i]); blk!=null;
+              blk=blk.next()) {
+            if (Arrays.binarySearch (blkCols, blk.getBlockCol()) >= 0) {
+               sblk.set (blk);
+               sblk = sblk.next();
+            }
+         }
+      }
+   }
+
+   /**
+    * Returns the indices of the entries associated with specific block rows
+    * (or columns) of a matrix A.
+    */
+   private static int[] createIndices (
+      SparseBlockMatrix A, int[] blks, boolean cols) {
+      int size = 0;
+      for (int b : blks) {
+         size += (cols ? A.getBlockColSize(b) : A.getBlockRowSize(b));
+      }
+      int[] idxs = new int[size];
+      int k = 0;
+      for (int b : blks) {
+         int off = (cols ? A.getBlockColOffset(b) : A.getBlockRowOffset(b));
+         int n = (cols ? A.getBlockColSize(b) : A.getBlockRowSize(b));
+         for (int i=0; i<n; i++) {
+            idxs[k++] = off+i;
+         }
+      }
+      return idxs;
+   }
+
+   private static void gather (VectorNd dst, VectorNd src, int[] idxs) {
+      dst.setSize (idxs.length);
+      double[] dbuf = dst.getBuffer();
+      double[] sbuf = src.getBuffer();
+      for (int k=0; k<idxs.length; k++) {
+         dbuf[k] = sbuf[idxs[k]];
+      }
+   }
+
+   private static void scatter (VectorNd dst, VectorNd src, int[] idxs) {
+      double[] dbuf = dst.getBuffer();
+      double[] sbuf = src.getBuffer();
+      for (int k=0; k<idxs.length; k++) {
+         dbuf[idxs[k]] = sbuf[k];
+      }
+   }
+}
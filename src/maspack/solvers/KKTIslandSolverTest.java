@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import maspack.matrix.Matrix;
+import maspack.matrix.MatrixBlock;
+import maspack.matrix.MatrixBlockBase;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.solvers.KKTSolver.Status;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests KKTIslandSolver against the solutions produced by a single KKTSolver
+ * applied to the whole system.
+ */
+public class KKTIslandSolverTest extends UnitTest {
+
+   Random myRand = RandomGenerator.get();
+   BlockPreconditionerTest myBlockTest = new BlockPreconditionerTest();
+
+   /**
+    * Randomly assigns each of nb block rows to one of numIslands islands,
+    * making sure that each island gets at least one row.
+    */
+   int[] assignIslands (int nb, int numIslands) {
+      int[] islands = new int[nb];
+      for (int bi=0; bi<nb; bi++) {
+         islands[bi] = (bi < numIslands ? bi : myRand.nextInt (numIslands));
+      }
+      for (int bi=nb-1; bi>0; bi--) {
+         int k = myRand.nextInt (bi+1);
+         int tmp = islands[bi];
+         islands[bi] = islands[k];
+         islands[k] = tmp;
+      }
+      return islands;
+   }
+
+   int[] rowsInIsland (int[] islands, int k) {
+      ArrayList<Integer> rows = new ArrayList<Integer>();
+      for (int bi=0; bi<islands.length; bi++) {
+         if (islands[bi] == k) {
+            rows.add (bi);
+         }
+      }
+      int[] array = new int[rows.size()];
+      for (int i=0; i<array.length; i++) {
+         array[i] = rows.get(i);
+      }
+      return array;
+   }
+
+   /**
+    * Creates an SPD matrix whose off-diagonal blocks only connect block rows
+    * belonging to the same island. Within each island, the rows are chained
+    * together so that the island is connected.
+    */
+   SparseBlockMatrix createMatrix (int[] islands, int numIslands) {
+      int nb = islands.length;
+      int[] sizes = myBlockTest.randomSizes (nb);
+      SparseBlockMatrix M = new SparseBlockMatrix (sizes, sizes);
+      for (int k=0; k<numIslands; k++) {
+         int[] rows = rowsInIsland (islands, k);
+         for (int i=0; i<rows.length-1; i++) {
+            myBlockTest.addSymmetricBlock (M, rows[i], rows[i+1]);
+         }
+      }
+      myBlockTest.addDiagonalBlocks (M, true);
+      return M;
+   }
+
+   MatrixBlock randomColumnBlock (int nr) {
+      MatrixBlock blk = MatrixBlockBase.alloc (nr, 1);
+      for (int i=0; i<nr; i++) {
+         blk.set (i, 0, myRand.nextDouble()-0.5);
+      }
+      return blk;
+   }
+
+   /**
+    * Creates a constraint matrix with numc single columns, each acting on
+    * one or two block rows of the same island.
+    */
+   SparseBlockMatrix createConstraints (
+      SparseBlockMatrix M, int[] islands, int numIslands, int numc) {
+      int nb = M.numBlockRows();
+      int[] rowSizes = new int[nb];
+      for (int bi=0; bi<nb; bi++) {
+         rowSizes[bi] = M.getBlockRowSize (bi);
+      }
+      int[] colSizes = new int[numc];
+      for (int j=0; j<numc; j++) {
+         colSizes[j] = 1;
+      }
+      SparseBlockMatrix CT = new SparseBlockMatrix (rowSizes, colSizes);
+      for (int j=0; j<numc; j++) {
+         int[] rows = rowsInIsland (islands, myRand.nextInt (numIslands));
+         int bi0 = rows[myRand.nextInt (rows.length)];
+         int bi1 = rows[myRand.nextInt (rows.length)];
+         CT.addBlock (bi0, j, randomColumnBlock (rowSizes[bi0]));
+         if (bi1 != bi0) {
+            CT.addBlock (bi1, j, randomColumnBlock (rowSizes[bi1]));
+         }
+      }
+      return CT;
+   }
+
+   /**
+    * Adds a column to NT that connects the first block rows of two
+    * islands.
+    */
+   SparseBlockMatrix addConnectingContact (
+      SparseBlockMatrix NT, int[] islands, int k0, int k1) {
+      int nb = NT.numBlockRows();
+      int[] rowSizes = new int[nb];
+      for (int bi=0; bi<nb; bi++) {
+         rowSizes[bi] = NT.getBlockRowSize (bi);
+      }
+      int[] colSizes = new int[NT.numBlockCols()+1];
+      for (int j=0; j<colSizes.length; j++) {
+         colSizes[j] = 1;
+      }
+      SparseBlockMatrix newNT = new SparseBlockMatrix (rowSizes, colSizes);
+      for (int bi=0; bi<nb; bi++) {
+         for (MatrixBlock blk=NT.firstBlockInRow(bi); blk!=null;
+              blk=blk.next()) {
+            newNT.addBlock (bi, blk.getBlockCol(), blk.clone());
+         }
+      }
+      int bi0 = rowsInIsland (islands, k0)[0];
+      int bi1 = rowsInIsland (islands, k1)[0];
+      int j = colSizes.length-1;
+      newNT.addBlock (bi0, j, randomColumnBlock (rowSizes[bi0]));
+      newNT.addBlock (bi1, j, randomColumnBlock (rowSizes[bi1]));
+      return newNT;
+   }
+
+   void checkVector (String msg, VectorNd x, VectorNd xcheck, double tol) {
+      if (!x.epsilonEquals (xcheck, tol*(1+xcheck.infinityNorm()))) {
+         throw new TestException (
+            msg + ": got\n" + x.toString ("%12.8f") +
+            "\nexpected\n" + xcheck.toString ("%12.8f"));
+      }
+   }
+
+   /**
+    * Solves the system with both KKTIslandSolver and KKTSolver and checks
+    * that the solutions agree.
+    */
+   void solveAndCheck (
+      KKTIslandSolver islandSolver, boolean analyze,
+      SparseBlockMatrix M, SparseBlockMatrix GT, VectorNd Rg,
+      SparseBlockMatrix NT, VectorNd Rn, int numIslands) {
+
+      int sizeM = M.rowSize();
+      VectorNd bm = new VectorNd (sizeM);
+      VectorNd bg = new VectorNd (GT.colSize());
+      VectorNd bn = new VectorNd (NT.colSize());
+      bm.setRandom (-1, 1, myRand);
+      bg.setRandom (-1, 1, myRand);
+      bn.setRandom (-1, 1, myRand);
+
+      KKTSolver solver = new KKTSolver();
+      VectorNd velChk = new VectorNd (sizeM);
+      VectorNd lamChk = new VectorNd (GT.colSize());
+      VectorNd theChk = new VectorNd (NT.colSize());
+      solver.analyze (M, sizeM, GT, Rg, Matrix.SPD);
+      solver.factor (M, sizeM, GT, Rg, NT, Rn);
+      checkEquals (
+         "global status",
+         solver.solve (velChk, lamChk, theChk, bm, bg, bn), Status.SOLVED);
+      solver.dispose();
+
+      VectorNd vel = new VectorNd (sizeM);
+      VectorNd lam = new VectorNd (0);
+      VectorNd the = new VectorNd (0);
+      if (analyze) {
+         islandSolver.analyze (M, sizeM, GT, Rg, Matrix.SPD);
+      }
+      islandSolver.factor (M, sizeM, GT, Rg, NT, Rn);
+      checkEquals ("numIslands", islandSolver.numIslands(), numIslands);
+      int totalSize = 0;
+      for (int k=0; k<numIslands; k++) {
+         totalSize += islandSolver.getIslandSize (k);
+      }
+      checkEquals ("total island size", totalSize, sizeM);
+      checkEquals (
+         "island status",
+         islandSolver.solve (vel, lam, the, bm, bg, bn), Status.SOLVED);
+      checkVector ("vel", vel, velChk, 1e-8);
+      checkVector ("lam", lam, lamChk, 1e-8);
+      checkVector ("the", the, theChk, 1e-8);
+   }
+
+   void testIslands (int nb, int numIslands, boolean regularize) {
+      int[] islands = assignIslands (nb, numIslands);
+      SparseBlockMatrix M = createMatrix (islands, numIslands);
+      SparseBlockMatrix GT = createConstraints (M, islands, numIslands, nb/4);
+      SparseBlockMatrix NT = createConstraints (M, islands, numIslands, nb/3);
+      VectorNd Rg = null;
+      VectorNd Rn = null;
+      if (regularize) {
+         Rg = new VectorNd (GT.colSize());
+         Rn = new VectorNd (NT.colSize());
+         Rg.setRandom (0, 0.01, myRand);
+         Rn.setRandom (0, 0.01, myRand);
+      }
+      for (int nthreads=1; nthreads<=3; nthreads+=2) {
+         KKTIslandSolver islandSolver = new KKTIslandSolver();
+         islandSolver.setNumThreads (nthreads);
+         solveAndCheck (
+            islandSolver, true, M, GT, Rg, NT, Rn, numIslands);
+
+         // new values with the same structure, without reanalyzing, so that
+         // the island submatrices are updated in place
+         M.scale (1.5);
+         GT.scale (0.5);
+         solveAndCheck (
+            islandSolver, false, M, GT, Rg, NT, Rn, numIslands);
+
+         // a contact connecting two islands merges them
+         if (numIslands > 1) {
+            SparseBlockMatrix NTc =
+               addConnectingContact (NT, islands, 0, numIslands-1);
+            VectorNd Rnc = null;
+            if (Rn != null) {
+               Rnc = new VectorNd (NTc.colSize());
+               Rnc.setSubVector (0, Rn);
+            }
+            solveAndCheck (
+               islandSolver, false, M, GT, Rg, NTc, Rnc, numIslands-1);
+         }
+         islandSolver.dispose();
+      }
+   }
+
+   void testWarmStart() {
+      int numIslands = 3;
+      int[] islands = assignIslands (12, numIslands);
+      SparseBlockMatrix M = createMatrix (islands, numIslands);
+      SparseBlockMatrix GT = createConstraints (M, islands, numIslands, 3);
+      SparseBlockMatrix NT = createConstraints (M, islands, numIslands, 5);
+      int sizeM = M.rowSize();
+
+      VectorNd bm = new VectorNd (sizeM);
+      VectorNd bg = new VectorNd (GT.colSize());
+      VectorNd bn = new VectorNd (NT.colSize());
+      bm.setRandom (-1, 1, myRand);
+      bn.setRandom (-1, 1, myRand);
+
+      KKTIslandSolver islandSolver = new KKTIslandSolver();
+      islandSolver.analyze (M, sizeM, GT, null, Matrix.SPD);
+      islandSolver.factor (M, sizeM, GT, null, NT, null);
+      VectorNd vel = new VectorNd (sizeM);
+      VectorNd lam = new VectorNd (0);
+      VectorNd the = new VectorNd (0);
+      islandSolver.solve (vel, lam, the, bm, bg, bn);
+      VectorNd velChk = new VectorNd (vel);
+
+      // starting from the solution, each island's guess should be accepted
+      islandSolver.setWarmStart (true);
+      islandSolver.solve (vel, lam, the, bm, bg, bn);
+      check ("no warm starts accepted",
+             islandSolver.numLCPWarmStartsAccepted() > 0);
+      checkEquals ("warm start pivots", islandSolver.getLCPIterationCount(), 0);
+      checkVector ("warm start vel", vel, velChk, 1e-8);
+      islandSolver.dispose();
+   }
+
+   public void test() {
+      for (int i=0; i<5; i++) {
+         testIslands (10, 1, false);
+         testIslands (20, 4, false);
+         testIslands (30, 5, true);
+      }
+      testWarmStart();
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      KKTIslandSolverTest tester = new KKTIslandSolverTest();
+      tester.runtest();
+   }
+}
@@ -30,15 +30,25 @@ public class KKTSolver {
    int myNumD;
    SparseBlockMatrix myNT;
    SparseBlockMatrix myDT;
+   // compact copies of NT and DT, used for the repeated products in the LCP
+   BlockCRSMatrix myNTCRS = new BlockCRSMatrix();
+   BlockCRSMatrix myDTCRS = new BlockCRSMatrix();
    SparseBlockMatrix myM;
    SparseBlockMatrix myGT;
    UmfpackSolver myUmfpack;
    PardisoSolver myPardiso;
+   SparseLDLSolver mySparseLDL;
    DirectSolver myMatrixSolver;
    boolean myIndices1Based = false;
    boolean myLastSolveWasIterative = false;
 
    DantzigLCPSolver myDantzig = new DantzigLCPSolver();
+   ProjectedGaussSeidelSolver myPGS;
+   LCPSolverType myLCPSolverType = LCPSolverType.Dantzig;
+   boolean myWarmStart = false;
+   int myLCPIterationCnt = 0;
+   double myLCPResidual = 0;
+   boolean myLCPGuessAccepted = false;
 
    int myNumVals = 0;
    int[] myColIdxs = new int[0];
@@ -56,6 +66,11 @@ public class KKTSolver {
    VectorNd myMGy = new VectorNd();
 
    MatrixNd myLcpM = new MatrixNd();
+   // workspace for solveFromGuess()
+   int[] myFreeIdxs = new int[0];
+   MatrixNd myFreeM = new MatrixNd();
+   VectorNd myFreeZ = new VectorNd();
+   CholeskyDecomposition myFreeChol = new CholeskyDecomposition();
    VectorNd myQ = new VectorNd();
    VectorNd myZ = new VectorNd();
    boolean[] myZBasic = new boolean[0];
@@ -95,15 +110,235 @@ public class KKTSolver {
       NUMERIC_ERROR
    };
 
+   /**
+    * Identifies the sparse direct solver used to factor the KKT system.
+    */
+   public enum SolverType {
+      /**
+       * Native Pardiso solver.
+       */
+      Pardiso,
+      /**
+       * Native Umfpack solver.
+       */
+      Umfpack,
+      /**
+       * Pure Java {@link SparseLDLSolver}, which does not depend on any
+       * native libraries.
+       */
+      SparseLDL
+   };
+
+   /**
+    * Identifies the solver used for the LCP (or bounded MLCP, when friction
+    * is present) that determines the unilateral and friction impulses.
+    */
+   public enum LCPSolverType {
+      /**
+       * Dantzig's pivoting method, implemented by {@link DantzigLCPSolver},
+       * which gives an exact solution.
+       */
+      Dantzig,
+      /**
+       * Projected Gauss-Seidel or Jacobi iteration, implemented by {@link
+       * ProjectedGaussSeidelSolver}, which gives an approximate solution and
+       * solves independent contact islands in parallel.
+       */
+      ProjectedGaussSeidel
+   };
+
+   /**
+    * Creates a KKTSolver that uses Pardiso, or {@link SparseLDLSolver} if
+    * the Pardiso native libraries are not available.
+    */
    public KKTSolver() {
+      this (getDefaultSolverType());
+   }
+
+   /**
+    * Returns the type of direct solver used by KKTSolvers created with the
+    * default constructor.
+    *
+    * @return default direct solver type
+    */
+   public static SolverType getDefaultSolverType() {
       if (myUseUmfpack) {
-         myUmfpack = new UmfpackSolver();
-         myMatrixSolver = myUmfpack;
+         return SolverType.Umfpack;
+      }
+      else if (PardisoSolver.isAvailable()) {
+         return SolverType.Pardiso;
+      }
+      else {
+         return SolverType.SparseLDL;
+      }
+   }
+
+   /**
+    * Creates a KKTSolver that uses a specified type of sparse direct solver.
+    *
+    * @param type type of direct solver to use
+    */
+   public KKTSolver (SolverType type) {
+      switch (type) {
+         case Umfpack: {
+            myUmfpack = new UmfpackSolver();
+            myMatrixSolver = myUmfpack;
+            break;
+         }
+         case SparseLDL: {
+            mySparseLDL = new SparseLDLSolver();
+            myMatrixSolver = mySparseLDL;
+            break;
+         }
+         default: {
+            myPardiso = new PardisoSolver();
+            myMatrixSolver = myPardiso;
+            break;
+         }
+      }
+   }
+
+   /**
+    * Returns the type of sparse direct solver used by this KKTSolver.
+    *
+    * @return type of direct solver
+    */
+   public SolverType getSolverType() {
+      if (myUmfpack != null) {
+         return SolverType.Umfpack;
+      }
+      else if (mySparseLDL != null) {
+         return SolverType.SparseLDL;
+      }
+      else {
+         return SolverType.Pardiso;
+      }
+   }
+
+   /**
+    * Returns the cache used by the underlying direct solver to reuse the
+    * symbolic analyses of previously seen matrix structures, or
+    * <code>null</code> if analyses are not being cached. Caching is
+    * currently supported only by the {@link SolverType#SparseLDL} solver,
+    * since Pardiso and Umfpack keep their analyses in native memory.
+    *
+    * @return symbolic analysis cache, or <code>null</code>
+    */
+   public SymbolicAnalysisCache getAnalysisCache() {
+      if (mySparseLDL != null) {
+         return mySparseLDL.getAnalysisCache();
       }
       else {
-         myPardiso = new PardisoSolver();
-         myMatrixSolver = myPardiso;
+         return null;
+      }
+   }
+
+   /**
+    * Returns the type of solver used for the LCP that determines the
+    * unilateral and friction impulses.
+    *
+    * @return LCP solver type
+    */
+   public LCPSolverType getLCPSolverType() {
+      return myLCPSolverType;
+   }
+
+   /**
+    * Sets the type of solver used for the LCP that determines the unilateral
+    * and friction impulses. The default is {@link LCPSolverType#Dantzig}.
+    *
+    * @param type LCP solver type
+    */
+   public void setLCPSolverType (LCPSolverType type) {
+      myLCPSolverType = type;
+   }
+
+   /**
+    * Returns the projected Gauss-Seidel solver used when the LCP solver type
+    * is {@link LCPSolverType#ProjectedGaussSeidel}, allowing its method,
+    * tolerance, iteration limit and thread count to be set.
+    *
+    * @return projected Gauss-Seidel solver
+    */
+   public ProjectedGaussSeidelSolver getProjectedGaussSeidelSolver() {
+      if (myPGS == null) {
+         myPGS = new ProjectedGaussSeidelSolver();
       }
+      return myPGS;
+   }
+
+   /**
+    * Sets the projected Gauss-Seidel solver used when the LCP solver type
+    * is {@link LCPSolverType#ProjectedGaussSeidel}. This allows a solver
+    * and its settings to be shared among several KKTSolvers.
+    *
+    * @param pgs projected Gauss-Seidel solver
+    */
+   public void setProjectedGaussSeidelSolver (ProjectedGaussSeidelSolver pgs) {
+      myPGS = pgs;
+   }
+
+   /**
+    * Queries whether LCP solves are warm started.
+    *
+    * @return <code>true</code> if LCP solves are warm started
+    * @see #setWarmStart
+    */
+   public boolean getWarmStart() {
+      return myWarmStart;
+   }
+
+   /**
+    * Enables or disables warm starting of LCP solves. When enabled, the
+    * values of <code>the</code> (and <code>phi</code>) supplied to the
+    * <code>solve</code> methods are used as an initial guess, which will
+    * typically be the impulses from the previous time step. For the Dantzig
+    * solver, the guess is used to predict the active set, and if the
+    * resulting solution satisfies the complementarity conditions no pivoting
+    * is needed. For the projected Gauss-Seidel solver, the guess is used as
+    * the starting iterate. When disabled, <code>the</code> and
+    * <code>phi</code> are used only for output.
+    *
+    * @param enable if <code>true</code>, enables warm starting
+    */
+   public void setWarmStart (boolean enable) {
+      myWarmStart = enable;
+   }
+
+   /**
+    * Returns the number of iterations used by the LCP solve in the most
+    * recent call to <code>solve</code>. For the Dantzig solver this is the
+    * number of pivots, and for the projected Gauss-Seidel solver it is the
+    * number of sweeps. The value is 0 if there were no unilateral
+    * constraints, or if a warm start guess was accepted without pivoting.
+    *
+    * @return number of LCP iterations for the last solve
+    */
+   public int getLCPIterationCount() {
+      return myLCPIterationCnt;
+   }
+
+   /**
+    * Returns the infinity norm of the natural residual <code>z - clamp (z -
+    * w, lo, hi)</code> of the LCP solution found in the most recent call to
+    * <code>solve</code>, where z contains the unilateral and friction
+    * impulses. The value is 0 if there were no unilateral constraints.
+    *
+    * @return LCP residual for the last solve
+    */
+   public double getLCPResidual() {
+      return myLCPResidual;
+   }
+
+   /**
+    * Queries whether, in the most recent call to <code>solve</code>, the
+    * LCP solution was obtained directly from the warm start guess supplied by
+    * the caller, without any pivoting.
+    *
+    * @return <code>true</code> if the warm start guess was accepted
+    */
+   public boolean lastLCPWarmStartAccepted() {
+      return myLCPGuessAccepted;
    }
 
    /**
@@ -173,7 +408,7 @@ public class KKTSolver {
       // values in some cases
       getCRSValues (M, sizeM, numVals, GT, Rg);
 
-      if (myUseUmfpack) {
+      if (myUmfpack != null) {
          setUmfpackIndices (sizeMG, numVals);
          if (myUmfpack.analyze (
             myColOffs, myRowIdxs, sizeMG, myUmfpackVals.length) !=
@@ -190,7 +425,18 @@ public class KKTSolver {
             myRowOffs[i]++;
          }
          myIndices1Based = true;
-         if ((myTypeM & Matrix.SYMMETRIC) != 0) {
+         if (mySparseLDL != null) {
+            // SparseLDLSolver uses the same CRS conventions as Pardiso
+            if ((myTypeM & Matrix.SYMMETRIC) != 0) {
+               mySparseLDL.analyze (
+                  myVals, myColIdxs, myRowOffs, sizeMG, Matrix.SYMMETRIC);
+            }
+            else {
+               mySparseLDL.analyze (
+                  myVals, myColIdxs, myRowOffs, sizeMG, Matrix.INDEFINITE);
+            }
+         }
+         else if ((myTypeM & Matrix.SYMMETRIC) != 0) {
             // even if myTypeM is SPD, the KKT system won't be, so
             // we need a symmetric solve regardless
             myPardiso.analyze (
@@ -200,7 +446,8 @@ public class KKTSolver {
             myPardiso.analyze (
                myVals, myColIdxs, myRowOffs, sizeMG, Matrix.INDEFINITE);
          }
-         if (myPardiso.getState() == PardisoSolver.UNSET) {
+         if (myPardiso != null &&
+             myPardiso.getState() == PardisoSolver.UNSET) {
             throw new NumericalException (
                "Pardiso: unable to analyze matrix: "+myPardiso.getErrorMessage());
          }
@@ -686,7 +933,7 @@ public class KKTSolver {
       myNumD = 0;
       myDT = null;
       
-      if (!myUseUmfpack && myDirectCnt > 0 &&
+      if (myPardiso != null && myDirectCnt > 0 &&
           (myIterativeCnt == 0 || myIterativeCnt+1 < estimateOptimalCount())) {
          long t0 = System.nanoTime();
          getCRSValues (M, sizeM, myNumVals, GT, Rg);
@@ -788,6 +1035,9 @@ public class KKTSolver {
       }
       Status status;
       if (myNumN == 0 || the == null) {
+         myLCPIterationCnt = 0;
+         myLCPResidual = 0;
+         myLCPGuessAccepted = false;
          if (myTimeSolves) timerStart();
          solveMG (vel, lam, bm, bg);
          if (myTimeSolves) timerStop ("solveMG:");
@@ -827,51 +1077,32 @@ public class KKTSolver {
       if (myTimeSolves) timerStart();
       solveMG (myMGy, myMGx);
       if (myTimeSolves) timerStop ("solveMG:");
-      myNT.mulTranspose (myQ, myMGy, myNT.colSize(), mySizeM);
+      myNTCRS.mulTranspose (myQ, myMGy, myNT.colSize(), mySizeM);
       double[] qbuf = myQ.getBuffer();
       for (int i = 0; i < myNumN; i++) {
          qbuf[i] -= bn.get(i);
       }
-      // don't currently need this:
-      for (int i = 0; i < myQ.size(); i++) {
-         myZBasic[i] = false;
+      for (int i = 0; i < myNumN; i++) {
+         myLo.set (i, 0);
+         myHi.set (i, Double.POSITIVE_INFINITY);
       }
       // System.out.println ("LCP M=[\n" + myLcpM + "]");
       // System.out.println ("Q=" + myQ);
 
-      myDantzig.setComputeResidual (true);
       if (myTimeSolves) timerStart();
-      DantzigLCPSolver.Status status =
-         myDantzig.solve (myZ, myLcpM, myQ, myZBasic);
+      Status status = solveForZ (the, null);
       if (myTimeSolves) timerStop("solveLCP:");
-      myDantzig.setComputeResidual (false);
-      // System.out.println ("status=" + status + " res=" + myDantzig.getResidual());
-      // System.out.println ("M=\n" + myLcpM);
-      // System.out.println ("q=\n" + myQ);
+      // System.out.println ("status=" + status + " res=" + myLCPResidual);
       // System.out.println ("z=\n" + myZ);
-      if (status != DantzigLCPSolver.Status.SOLVED) {
-         switch (status) {
-            case NO_SOLUTION: {
-               return Status.NO_SOLUTION;
-            }
-            case ITERATION_LIMIT_EXCEEDED: {
-               return Status.ITERATION_LIMIT_EXCEEDED;
-            }
-            case NUMERIC_ERROR: {
-               return Status.NUMERIC_ERROR;
-            }
-            default: {
-               throw new InternalErrorException ("Unknown LCP solver status: "
-               + status);
-            }
-         }
+      if (!lcpSolutionUsable (status)) {
+         return status;
       }
       //System.out.println ("kktN= " + myQ.toString("%12.8f"));
       // System.out.println ("myM11=\n" + myLcpM);
       // System.out.println ("myQ=" + myQ);
       // System.out.println ("myZ=" + myZ);
       the.set (myZ);
-      myNT.mul (myMGx, myZ, mySizeM, myNumN);
+      myNTCRS.mul (myMGx, myZ, mySizeM, myNumN);
 
       // reset size of MGx because myNT.mul & myDT.mul will have set it to mySizeM
       myMGx.setSize (mySizeM+myNumG); 
@@ -889,7 +1120,7 @@ public class KKTSolver {
       for (int i = mySizeM; i < mySizeM + myNumG; i++) {
          lam.set (i - mySizeM, ybuf[i]);
       }
-      return Status.SOLVED;
+      return status;
    }
 
    private Status solveLCP (
@@ -909,8 +1140,8 @@ public class KKTSolver {
          xbuf[i] = bg.get (i - mySizeM);
       }
       solveMG (myMGy, myMGx);
-      myNT.mulTranspose (nmul, myMGy, myNumN, mySizeM);
-      myDT.mulTranspose (dmul, myMGy, myNumD, mySizeM);
+      myNTCRS.mulTranspose (nmul, myMGy, myNumN, mySizeM);
+      myDTCRS.mulTranspose (dmul, myMGy, myNumD, mySizeM);
 
       myQ.setSubVector (0, nmul);      
       myQ.setSubVector (myNumN, dmul);
@@ -928,24 +1159,9 @@ public class KKTSolver {
          myLo.set (myNumN+i, -fmax);
          myHi.set (myNumN+i, +fmax);
       }
-      DantzigLCPSolver.Status status =
-         myDantzig.solve (myZ, myW, myLcpM, myQ, myLo, myHi, 0, myZState);
-      if (status != DantzigLCPSolver.Status.SOLVED) {
-         switch (status) {
-            case NO_SOLUTION: {
-               return Status.NO_SOLUTION;
-            }
-            case ITERATION_LIMIT_EXCEEDED: {
-               return Status.ITERATION_LIMIT_EXCEEDED;
-            }
-            case NUMERIC_ERROR: {
-               return Status.NUMERIC_ERROR;
-            }
-            default: {
-               throw new InternalErrorException ("Unknown LCP solver status: "
-               + status);
-            }
-         }
+      Status status = solveForZ (the, phi);
+      if (!lcpSolutionUsable (status)) {
+         return status;
       }
       //System.out.println ("kktF= " + myQ.toString("%12.8f"));
       //System.out.println ("kktQ= " + myQ);
@@ -961,8 +1177,8 @@ public class KKTSolver {
       for (int i=0; i<myNumD; i++) {
          phi.set (i, myZ.get(myNumN+i));
       }
-      myNT.mul (myMGx, the, mySizeM, myNumN);
-      myDT.mulAdd (myMGx, phi, mySizeM, myNumD);
+      myNTCRS.mul (myMGx, the, mySizeM, myNumN);
+      myDTCRS.mulAdd (myMGx, phi, mySizeM, myNumD);
 
       // reset size of MGx because myNT.mul will have set it to mySizeM
       myMGx.setSize (mySizeM+myNumG); 
@@ -980,7 +1196,212 @@ public class KKTSolver {
       for (int i = mySizeM; i < mySizeM + myNumG; i++) {
          lam.set (i - mySizeM, ybuf[i]);
       }
-      return Status.SOLVED;
+      return status;
+   }
+
+   /**
+    * Solves the LCP defined by myLcpM, myQ, myLo and myHi for myZ using the
+    * current LCP solver type, and records the iteration count and
+    * residual. If warm starting is enabled, the and phi (if non-null) supply
+    * the initial guess.
+    */
+   private Status solveForZ (VectorNd the, VectorNd phi) {
+      double[] zbuf = myZ.getBuffer();
+      if (myWarmStart) {
+         for (int i=0; i<myNumN; i++) {
+            zbuf[i] = the.get(i);
+         }
+         for (int i=0; i<myNumD; i++) {
+            zbuf[myNumN+i] = (phi != null ? phi.get(i) : 0);
+         }
+      }
+      else {
+         myZ.setZero();
+      }
+      myLCPGuessAccepted = false;
+      Status status;
+      if (myLCPSolverType == LCPSolverType.ProjectedGaussSeidel) {
+         ProjectedGaussSeidelSolver pgs = getProjectedGaussSeidelSolver();
+         ProjectedGaussSeidelSolver.Status pstatus =
+            pgs.solve (myZ, myW, myLcpM, myQ, myLo, myHi);
+         myLCPIterationCnt = pgs.getIterationCount();
+         myLCPResidual = pgs.getResidual();
+         // status enums share the same names
+         return Status.valueOf (pstatus.name());
+      }
+      if (myWarmStart && solveFromGuess()) {
+         myLCPGuessAccepted = true;
+         myLCPIterationCnt = 0;
+         status = Status.SOLVED;
+      }
+      else {
+         DantzigLCPSolver.Status dstatus;
+         if (myDT != null) {
+            dstatus = myDantzig.solve (
+               myZ, myW, myLcpM, myQ, myLo, myHi, 0, myZState);
+         }
+         else {
+            // don't currently need this:
+            for (int i = 0; i < myNumN; i++) {
+               myZBasic[i] = false;
+            }
+            dstatus = myDantzig.solve (myZ, myLcpM, myQ, myZBasic);
+         }
+         myLCPIterationCnt = myDantzig.getIterationCount();
+         // status enums share the same names
+         status = Status.valueOf (dstatus.name());
+      }
+      myLCPResidual = computeLCPResidual();
+      return status;
+   }
+
+   /**
+    * Returns true if the solution for myZ can be used to compute the
+    * velocities, given the status returned by the LCP solve.
+    */
+   private boolean lcpSolutionUsable (Status status) {
+      // projected Gauss-Seidel returns its last iterate when the iteration
+      // limit is exceeded, which is still a reasonable approximation
+      return (status == Status.SOLVED ||
+              (status == Status.ITERATION_LIMIT_EXCEEDED &&
+               myLCPSolverType == LCPSolverType.ProjectedGaussSeidel));
+   }
+
+   /**
+    * Attempts to solve the LCP directly by assuming that the entries of
+    * the guess in myZ which lie strictly within their bounds identify the
+    * active set. When contact changes little between time steps this is
+    * usually the case, and no pivoting is needed. Returns false, leaving myZ
+    * undefined, if the guess does not produce a valid solution.
+    */
+   private boolean solveFromGuess() {
+      int n = myNumN + myNumD;
+      double[] zbuf = myZ.getBuffer();
+      double[] qbuf = myQ.getBuffer();
+      double[] lo = myLo.getBuffer();
+      double[] hi = myHi.getBuffer();
+      if (myFreeIdxs.length < n) {
+         myFreeIdxs = new int[n];
+      }
+      int[] freeIdxs = myFreeIdxs;
+      int numFree = 0;
+      double qnorm = 0;
+      for (int i=0; i<n; i++) {
+         double zi = zbuf[i];
+         if (zi > lo[i] && zi < hi[i]) {
+            freeIdxs[numFree++] = i;
+            zbuf[i] = 0;
+         }
+         else if (zi >= hi[i]) {
+            zbuf[i] = hi[i];
+         }
+         else {
+            zbuf[i] = lo[i];
+         }
+         if (Double.isInfinite (zbuf[i])) {
+            return false;
+         }
+         qnorm = Math.max (qnorm, Math.abs (qbuf[i]));
+      }
+      if (numFree > 0) {
+         // solve M_FF z_F = -(q_F + M_FC z_C), where F and C denote the free
+         // and clamped variables
+         myLcpM.mul (myW, myZ);
+         MatrixNd MFF = myFreeM;
+         VectorNd zF = myFreeZ;
+         MFF.setSize (numFree, numFree);
+         zF.setSize (numFree);
+         for (int a=0; a<numFree; a++) {
+            int i = freeIdxs[a];
+            for (int b=0; b<numFree; b++) {
+               MFF.set (a, b, myLcpM.get (i, freeIdxs[b]));
+            }
+            zF.set (a, -(qbuf[i]+myW.get(i)));
+         }
+         CholeskyDecomposition chol = myFreeChol;
+         try {
+            chol.factor (MFF);
+         }
+         catch (IllegalArgumentException e) {
+            // M_FF not positive definite
+            return false;
+         }
+         chol.solve (zF, zF);
+         for (int a=0; a<numFree; a++) {
+            double za = zF.get(a);
+            if (Double.isNaN (za) || Double.isInfinite (za)) {
+               return false;
+            }
+            zbuf[freeIdxs[a]] = za;
+         }
+      }
+      // check that z is within bounds and w has the correct signs
+      double tol = 1e-10*qnorm;
+      myLcpM.mul (myW, myZ);
+      myW.add (myQ);
+      double[] wbuf = myW.getBuffer();
+      for (int i=0; i<n; i++) {
+         double zi = zbuf[i];
+         if (zi < lo[i] - tol || zi > hi[i] + tol) {
+            return false;
+         }
+         if (lo[i] < hi[i]) {
+            if ((zi == lo[i] && wbuf[i] < -tol) ||
+                (zi == hi[i] && wbuf[i] > tol)) {
+               return false;
+            }
+         }
+      }
+      for (int a=0; a<numFree; a++) {
+         int i = freeIdxs[a];
+         zbuf[i] = Math.max (lo[i], Math.min (hi[i], zbuf[i]));
+      }
+      // set the basis information for getZBasic() and getZState()
+      for (int i=0; i<n; i++) {
+         if (myDT != null) {
+            myZState[i] = DantzigLCPSolver.W_VAR_LOWER;
+         }
+         else {
+            myZBasic[i] = false;
+         }
+      }
+      for (int a=0; a<numFree; a++) {
+         if (myDT != null) {
+            myZState[freeIdxs[a]] = DantzigLCPSolver.Z_VAR;
+         }
+         else {
+            myZBasic[freeIdxs[a]] = true;
+         }
+      }
+      if (myDT != null) {
+         for (int i=0; i<n; i++) {
+            if (myZState[i] != DantzigLCPSolver.Z_VAR && zbuf[i] == hi[i] &&
+                lo[i] < hi[i]) {
+               myZState[i] = DantzigLCPSolver.W_VAR_UPPER;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Computes the infinity norm of the natural residual of the current LCP
+    * solution in myZ, leaving w = M z + q in myW.
+    */
+   private double computeLCPResidual() {
+      myLcpM.mul (myW, myZ);
+      myW.add (myQ);
+      double[] zbuf = myZ.getBuffer();
+      double[] wbuf = myW.getBuffer();
+      double[] lo = myLo.getBuffer();
+      double[] hi = myHi.getBuffer();
+      double res = 0;
+      for (int i=0; i<myZ.size(); i++) {
+         double zi = zbuf[i];
+         double pi = Math.max (lo[i], Math.min (hi[i], zi-wbuf[i]));
+         res = Math.max (res, Math.abs (zi-pi));
+      }
+      return res;
    }
 
    private void buildLCP (SparseBlockMatrix NT, VectorNd Rn) {
@@ -991,16 +1412,20 @@ public class KKTSolver {
       }
       myQ.setSize (n);
       myZ.setSize (n);
+      myW.setSize (n);
+      myHi.setSize (n);
+      myLo.setSize (n);
       double[] xbuf = myMGx.getBuffer();
       double[] ybuf = myMGy.getBuffer();
       for (int i = mySizeM; i < mySizeM + myNumG; i++) {
          xbuf[i] = 0;
       }
       VectorNd mcol = new VectorNd (n);
+      myNTCRS.update (NT);
       for (int j = 0; j < n; j++) {
          NT.getColumn (j, xbuf, 0, mySizeM);
          solveMG (myMGy, myMGx);
-         NT.mulTranspose (mcol, myMGy, NT.colSize(), mySizeM);
+         myNTCRS.mulTranspose (mcol, myMGy, NT.colSize(), mySizeM);
          myLcpM.setColumn (j, mcol);
       }
       if (Rn != null) {
@@ -1037,21 +1462,23 @@ public class KKTSolver {
       VectorNd nmul = new VectorNd (Nsize);
       VectorNd dmul = new VectorNd (Dsize);
       VectorNd mcol = new VectorNd (n);
+      myNTCRS.update (NT);
+      myDTCRS.update (DT);
       for (int j = 0; j < Nsize; j++) {
          NT.getColumn (j, xbuf, 0, mySizeM);
          solveMG (myMGy, myMGx);
-         NT.mulTranspose (nmul, myMGy, Nsize, mySizeM);
+         myNTCRS.mulTranspose (nmul, myMGy, Nsize, mySizeM);
          mcol.setSubVector (0, nmul);
-         DT.mulTranspose (dmul, myMGy, Dsize, mySizeM);
+         myDTCRS.mulTranspose (dmul, myMGy, Dsize, mySizeM);
          mcol.setSubVector (Nsize, dmul);
          myLcpM.setColumn (j, mcol);
       }
       for (int j = 0; j < Dsize; j++) {
          DT.getColumn (j, xbuf, 0, mySizeM);
          solveMG (myMGy, myMGx);
-         NT.mulTranspose (nmul, myMGy, Nsize, mySizeM);
+         myNTCRS.mulTranspose (nmul, myMGy, Nsize, mySizeM);
          mcol.setSubVector (0, nmul);
-         DT.mulTranspose (dmul, myMGy, Dsize, mySizeM);
+         myDTCRS.mulTranspose (dmul, myMGy, Dsize, mySizeM);
          mcol.setSubVector (Nsize, dmul);
          myLcpM.setColumn (Nsize+j, mcol);
       }
@@ -1297,7 +1724,7 @@ public class KKTSolver {
     */
    public void solveMG (VectorNd x, VectorNd b) {
       myMatrixSolver.solve (x, b);
-      if (computeResidualMG) {
+      if (computeResidualMG && myPardiso != null) {
          double res = 
             myPardiso.residual (
                myRowOffs, myColIdxs, myVals, mySizeM+myNumG, 
@@ -1367,7 +1794,7 @@ public class KKTSolver {
    private void factorMG (
       Object M, int sizeM, SparseBlockMatrix GT, VectorNd Rg) {
       getCRSValues (M, sizeM, myNumVals, GT, Rg);
-      if (myUseUmfpack) {
+      if (myUmfpack != null) {
          loadUmfpackValues (mySizeM + myNumG, myNumVals);
          int status = myUmfpack.factor (myUmfpackVals);
          if (status < 0) {
@@ -1378,6 +1805,9 @@ public class KKTSolver {
                "Umfpack: Matrix is near singular, solve could fail");
          }
       }
+      else if (mySparseLDL != null) {
+         mySparseLDL.factor (myVals);
+      }
       else {
          myPardiso.factor (myVals);
          if (myPardiso.getState() != PardisoSolver.FACTORED) {
@@ -1392,7 +1822,15 @@ public class KKTSolver {
    }
 
    public int getNumNonZerosInFactors() {
-      return myPardiso.getNumNonZerosInFactors();
+      if (mySparseLDL != null) {
+         return mySparseLDL.getNumNonZerosInFactors();
+      }
+      else if (myPardiso != null) {
+         return myPardiso.getNumNonZerosInFactors();
+      }
+      else {
+         return 0;
+      }
    }
 
    public boolean lastSolveWasIterative() {
@@ -1405,6 +1843,7 @@ public class KKTSolver {
          myMatrixSolver = null;
          myPardiso = null;
          myUmfpack = null;
+         mySparseLDL = null;
       }
    }
 
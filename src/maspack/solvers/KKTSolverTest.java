@@ -164,6 +164,9 @@ public class KKTSolverTest {
 
       checkComplementarity (
          GT, NT, null, Rg, Rn, bg, bn, null, null, vel, lam, the, null);
+      if (numN > 0) {
+         checkLCPOptions (solver, vel, lam, the, bm, bg, bn);
+      }
 
       // GT.mulTranspose (bgCheck, vel);
       // for (int i = 0; i < numG; i++) {
@@ -199,6 +202,63 @@ public class KKTSolverTest {
       // }
    }
 
+   /**
+    * Checks that warm starting from the current solution, and solving with
+    * the projected Gauss-Seidel solver, both give the same solution.
+    */
+   private void checkLCPOptions (
+      KKTSolver solver, VectorNd vel, VectorNd lam, VectorNd the,
+      VectorNd bm, VectorNd bg, VectorNd bn) {
+
+      VectorNd velChk = new VectorNd (vel);
+      VectorNd theChk = new VectorNd (the);
+
+      // warm start from the solution should require no pivots
+      solver.setWarmStart (true);
+      Status status = solver.solve (vel, lam, the, bm, bg, bn);
+      if (status != Status.SOLVED) {
+         throw new TestException (
+            "Could not solve system with warm start, status " + status);
+      }
+      if (!solver.lastLCPWarmStartAccepted() ||
+          solver.getLCPIterationCount() != 0) {
+         throw new TestException (
+            "Warm start from solution not accepted, LCP iterations=" +
+            solver.getLCPIterationCount());
+      }
+      checkVector ("warm started vel", vel, velChk, 1e-10);
+      checkVector ("warm started the", the, theChk, 1e-10);
+
+      // projected Gauss-Seidel from a cold start
+      solver.setWarmStart (false);
+      solver.setLCPSolverType (KKTSolver.LCPSolverType.ProjectedGaussSeidel);
+      solver.getProjectedGaussSeidelSolver().setMaxIterations (10000);
+      the.setZero();
+      status = solver.solve (vel, lam, the, bm, bg, bn);
+      if (status != Status.SOLVED) {
+         throw new TestException (
+            "Could not solve system with projected Gauss-Seidel, status " +
+            status);
+      }
+      if (solver.getLCPResidual() > 1e-8*(1+bn.infinityNorm())) {
+         throw new TestException (
+            "Projected Gauss-Seidel LCP residual " + solver.getLCPResidual());
+      }
+      checkVector ("projected Gauss-Seidel vel", vel, velChk, 1e-6);
+      solver.setLCPSolverType (KKTSolver.LCPSolverType.Dantzig);
+      vel.set (velChk);
+      the.set (theChk);
+   }
+
+   private void checkVector (
+      String msg, VectorNd vec, VectorNd chk, double tol) {
+      if (!vec.epsilonEquals (chk, tol*(1+chk.norm()))) {
+         throw new TestException (
+            msg + "=" + vec.toString ("%12.8f") +
+            ", expected\n   " + chk.toString ("%12.8f"));
+      }
+   }
+
    private void checkComplementarity (
       SparseBlockMatrix GT, SparseBlockMatrix NT, SparseBlockMatrix DT,
       VectorNd Rg, VectorNd Rn, VectorNd bg, VectorNd bn, VectorNd bd,
@@ -0,0 +1,442 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Computes fill-reducing orderings for sparse symmetric factorizations,
+ * using an approximate minimum degree (AMD) method based on the quotient
+ * graph. Before ordering, variables with identical adjacency (such as the
+ * three degrees of freedom of an FEM node) are merged into weighted
+ * supervariables, which greatly reduces the ordering time for matrices
+ * arising from mechanical systems.
+ *
+ * <p>Variables can be marked as <i>delayed</i>, which is used for variables
+ * whose diagonal entry is zero, such as the constraint variables of a KKT
+ * system. A delayed variable is not eliminated until all of its neighbors
+ * have been eliminated, so that its pivot does not vanish in a factorization
+ * without numeric pivoting.
+ */
+public class MinimumDegreeOrdering {
+
+   private static final byte VAR = 0;
+   private static final byte ELEM = 1;
+   private static final byte DEAD = 2;
+
+   // quotient graph
+   private int[][] myVarAdj;
+   private int[] myVarLen;
+   private int[][] myElemAdj;
+   private int[] myElemLen;
+   private int[][] myElemVars;
+   private int[] myElemVarLen;
+   private int[] myElemSize;
+   private byte[] myStatus;
+
+   // degree lists
+   private int[] myDeg;
+   private int[] myHead;
+   private int[] myNext;
+   private int[] myPrev;
+   private boolean[] myInList;
+   private int myMinDeg;
+
+   /**
+    * Computes a fill-reducing ordering for a symmetric sparsity pattern.
+    * The pattern is described by adjacency lists in compressed form, such
+    * that the neighbors of variable <code>i</code> are given by
+    * <code>adj[k]</code> for <code>adjPtr[i] &lt;= k &lt; adjPtr[i+1]</code>.
+    * The lists should be symmetric and should not contain either
+    * self-references or duplicates.
+    *
+    * @param n number of variables
+    * @param adjPtr start offsets of the adjacency lists, with length n+1
+    * @param adj adjacency lists
+    * @param delayed if non-<code>null</code>, identifies variables whose
+    * elimination should be delayed until all their neighbors are eliminated
+    * @return permutation giving the original index of each variable in
+    * elimination order
+    */
+   public static int[] computeOrdering (
+      int n, int[] adjPtr, int[] adj, boolean[] delayed) {
+      return new MinimumDegreeOrdering().order (n, adjPtr, adj, delayed);
+   }
+
+   private int[] order (int n, int[] adjPtr, int[] adj, boolean[] delayed) {
+      if (n == 0) {
+         return new int[0];
+      }
+      // merge variables with identical closed adjacency into supervariables
+      int[] cmap = new int[n];
+      int[] reps = new int[n];
+      int nc = 0;
+      int[] stamp = new int[n];
+      Arrays.fill (stamp, -1);
+      int[] chain = new int[n];
+      HashMap<Long,Integer> firstRep = new HashMap<>();
+      for (int i=0; i<n; i++) {
+         long key = i;
+         for (int k=adjPtr[i]; k<adjPtr[i+1]; k++) {
+            key += adj[k];
+         }
+         key = 31*key + (adjPtr[i+1]-adjPtr[i]);
+         if (delayed != null && delayed[i]) {
+            key = -key-1;
+         }
+         Integer r0 = firstRep.get (key);
+         int c = -1;
+         if (r0 == null) {
+            firstRep.put (key, nc);
+         }
+         else {
+            int last = -1;
+            for (int rc=r0; rc!=-1; rc=chain[rc]) {
+               if (sameClosedAdjacency (
+                      i, reps[rc], adjPtr, adj, delayed, stamp)) {
+                  c = rc;
+                  break;
+               }
+               last = rc;
+            }
+            if (c == -1) {
+               chain[last] = nc;
+            }
+         }
+         if (c == -1) {
+            c = nc++;
+            reps[c] = i;
+            chain[c] = -1;
+         }
+         cmap[i] = c;
+      }
+      int[] weight = new int[nc];
+      int[] memPtr = new int[nc+1];
+      for (int i=0; i<n; i++) {
+         weight[cmap[i]]++;
+      }
+      for (int c=0; c<nc; c++) {
+         memPtr[c+1] = memPtr[c] + weight[c];
+      }
+      int[] members = new int[n];
+      int[] fill = Arrays.copyOf (memPtr, nc);
+      for (int i=0; i<n; i++) {
+         members[fill[cmap[i]]++] = i;
+      }
+
+      // compressed adjacency
+      int[] cadjPtr = new int[nc+1];
+      int[] cadj = new int[adjPtr[n]];
+      int[] cmark = new int[nc];
+      Arrays.fill (cmark, -1);
+      int cnt = 0;
+      for (int c=0; c<nc; c++) {
+         int r = reps[c];
+         cmark[c] = c;
+         cadjPtr[c] = cnt;
+         for (int k=adjPtr[r]; k<adjPtr[r+1]; k++) {
+            int cj = cmap[adj[k]];
+            if (cmark[cj] != c) {
+               cmark[cj] = c;
+               cadj[cnt++] = cj;
+            }
+         }
+      }
+      cadjPtr[nc] = cnt;
+
+      int[] corder = orderCompressed (
+         nc, cadjPtr, cadj, weight, n, delayed, reps);
+
+      int[] perm = new int[n];
+      int k = 0;
+      for (int c : corder) {
+         for (int m=memPtr[c]; m<memPtr[c+1]; m++) {
+            perm[k++] = members[m];
+         }
+      }
+      return perm;
+   }
+
+   private static boolean sameClosedAdjacency (
+      int i, int r, int[] adjPtr, int[] adj, boolean[] delayed, int[] stamp) {
+
+      int leni = adjPtr[i+1]-adjPtr[i];
+      if (leni != adjPtr[r+1]-adjPtr[r]) {
+         return false;
+      }
+      if (delayed != null && delayed[i] != delayed[r]) {
+         return false;
+      }
+      stamp[r] = i;
+      for (int k=adjPtr[r]; k<adjPtr[r+1]; k++) {
+         stamp[adj[k]] = i;
+      }
+      if (stamp[i] != i) {
+         return false;
+      }
+      for (int k=adjPtr[i]; k<adjPtr[i+1]; k++) {
+         if (stamp[adj[k]] != i) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void insert (int i, int d) {
+      myDeg[i] = d;
+      int h = myHead[d];
+      myNext[i] = h;
+      myPrev[i] = -1;
+      if (h != -1) {
+         myPrev[h] = i;
+      }
+      myHead[d] = i;
+      myInList[i] = true;
+      if (d < myMinDeg) {
+         myMinDeg = d;
+      }
+   }
+
+   private void remove (int i) {
+      if (myPrev[i] != -1) {
+         myNext[myPrev[i]] = myNext[i];
+      }
+      else {
+         myHead[myDeg[i]] = myNext[i];
+      }
+      if (myNext[i] != -1) {
+         myPrev[myNext[i]] = myPrev[i];
+      }
+      myInList[i] = false;
+   }
+
+   private int[] appendElement (int[] list, int len, int e) {
+      if (list == null) {
+         list = new int[4];
+      }
+      else if (len == list.length) {
+         list = Arrays.copyOf (list, 2*len);
+      }
+      list[len] = e;
+      return list;
+   }
+
+   /**
+    * Approximate minimum degree ordering of the compressed graph.
+    */
+   private int[] orderCompressed (
+      int nc, int[] cadjPtr, int[] cadj, int[] weight, int n,
+      boolean[] delayed, int[] reps) {
+
+      myVarAdj = new int[nc][];
+      myVarLen = new int[nc];
+      myElemAdj = new int[nc][];
+      myElemLen = new int[nc];
+      myElemVars = new int[nc][];
+      myElemVarLen = new int[nc];
+      myElemSize = new int[nc];
+      myStatus = new byte[nc];
+
+      myDeg = new int[nc];
+      myHead = new int[n+1];
+      myNext = new int[nc];
+      myPrev = new int[nc];
+      myInList = new boolean[nc];
+      Arrays.fill (myHead, -1);
+      myMinDeg = n;
+
+      // number of uneliminated neighbors for which each delayed variable
+      // is still waiting
+      int[] nwait = new int[nc];
+      for (int c=0; c<nc; c++) {
+         int len = cadjPtr[c+1]-cadjPtr[c];
+         myVarAdj[c] = Arrays.copyOfRange (cadj, cadjPtr[c], cadjPtr[c+1]);
+         myVarLen[c] = len;
+         int d = 0;
+         for (int k=cadjPtr[c]; k<cadjPtr[c+1]; k++) {
+            d += weight[cadj[k]];
+         }
+         if (delayed != null && delayed[reps[c]]) {
+            nwait[c] = len;
+         }
+         if (nwait[c] == 0) {
+            insert (c, d);
+         }
+         else {
+            myDeg[c] = d;
+         }
+      }
+
+      int[] mark = new int[nc];
+      int tag = 0;
+      long[] wext = new long[nc];
+      long wflg = 1;
+      int[] lbuf = new int[nc];
+      int[] extDeg = new int[nc];
+
+      int[] order = new int[nc];
+      int nord = 0;
+      int nleft = n;
+
+      while (nord < nc) {
+         while (myMinDeg <= n && myHead[myMinDeg] == -1) {
+            myMinDeg++;
+         }
+         if (myMinDeg > n) {
+            // only variables still waiting on other waiting variables
+            // remain; release them
+            for (int c=0; c<nc; c++) {
+               if (myStatus[c] == VAR && !myInList[c]) {
+                  nwait[c] = 0;
+                  insert (c, Math.min (myDeg[c], n));
+               }
+            }
+            continue;
+         }
+         int p = myHead[myMinDeg];
+         remove (p);
+         myStatus[p] = ELEM;
+         order[nord++] = p;
+         nleft -= weight[p];
+         for (int k=cadjPtr[p]; k<cadjPtr[p+1]; k++) {
+            if (nwait[cadj[k]] > 0) {
+               nwait[cadj[k]]--;
+            }
+         }
+
+         // form the new element Lp from the variables and elements adjacent
+         // to p, absorbing the latter
+         tag++;
+         mark[p] = tag;
+         int lcnt = 0;
+         int[] vl = myVarAdj[p];
+         for (int k=0; k<myVarLen[p]; k++) {
+            int v = vl[k];
+            if (myStatus[v] == VAR && mark[v] != tag) {
+               mark[v] = tag;
+               lbuf[lcnt++] = v;
+            }
+         }
+         int[] el = myElemAdj[p];
+         for (int k=0; k<myElemLen[p]; k++) {
+            int e = el[k];
+            if (myStatus[e] == ELEM) {
+               int[] ev = myElemVars[e];
+               for (int m=0; m<myElemVarLen[e]; m++) {
+                  int v = ev[m];
+                  if (myStatus[v] == VAR && mark[v] != tag) {
+                     mark[v] = tag;
+                     lbuf[lcnt++] = v;
+                  }
+               }
+               myStatus[e] = DEAD;
+               myElemVars[e] = null;
+            }
+         }
+         myVarAdj[p] = null;
+         myElemAdj[p] = null;
+         int[] lp = Arrays.copyOf (lbuf, lcnt);
+         int esize = 0;
+         for (int k=0; k<lcnt; k++) {
+            int v = lp[k];
+            esize += weight[v];
+            if (myInList[v]) {
+               remove (v);
+            }
+         }
+
+         // compute |Le \ Lp| for all elements adjacent to Lp
+         for (int k=0; k<lcnt; k++) {
+            int v = lp[k];
+            el = myElemAdj[v];
+            for (int m=0; m<myElemLen[v]; m++) {
+               int e = el[m];
+               if (myStatus[e] == ELEM) {
+                  if (wext[e] < wflg) {
+                     wext[e] = wflg + myElemSize[e];
+                  }
+                  wext[e] -= weight[v];
+               }
+            }
+         }
+
+         // prune the adjacency of each variable in Lp
+         int newcnt = 0;
+         for (int k=0; k<lcnt; k++) {
+            int v = lp[k];
+            el = myElemAdj[v];
+            int ne = 0;
+            int eext = 0;
+            for (int m=0; m<myElemLen[v]; m++) {
+               int e = el[m];
+               if (myStatus[e] != ELEM) {
+                  continue;
+               }
+               int ext = (int)(wext[e]-wflg);
+               if (ext <= 0) {
+                  // aggressive absorption: Le is a subset of Lp
+                  myStatus[e] = DEAD;
+                  myElemVars[e] = null;
+                  continue;
+               }
+               el[ne++] = e;
+               eext += ext;
+            }
+            vl = myVarAdj[v];
+            int nv = 0;
+            for (int m=0; m<myVarLen[v]; m++) {
+               int u = vl[m];
+               if (myStatus[u] == VAR && mark[u] != tag) {
+                  vl[nv++] = u;
+                  eext += weight[u];
+               }
+            }
+            myVarLen[v] = nv;
+            if (ne == 0 && nv == 0 && nwait[v] == 0) {
+               // mass elimination: v is adjacent only to Lp
+               myStatus[v] = DEAD;
+               order[nord++] = v;
+               nleft -= weight[v];
+               esize -= weight[v];
+               myVarAdj[v] = null;
+               myElemAdj[v] = null;
+               myElemLen[v] = 0;
+               for (int m=cadjPtr[v]; m<cadjPtr[v+1]; m++) {
+                  if (nwait[cadj[m]] > 0) {
+                     nwait[cadj[m]]--;
+                  }
+               }
+               continue;
+            }
+            myElemAdj[v] = appendElement (el, ne, p);
+            myElemLen[v] = ne+1;
+            extDeg[newcnt] = eext;
+            lp[newcnt++] = v;
+         }
+         myElemVars[p] = lp;
+         myElemVarLen[p] = newcnt;
+         myElemSize[p] = esize;
+
+         // update approximate degrees
+         for (int k=0; k<newcnt; k++) {
+            int v = lp[k];
+            int w = weight[v];
+            int d = Math.min (nleft-w, myDeg[v]+esize-w);
+            d = Math.max (0, Math.min (d, extDeg[k]+esize-w));
+            if (nwait[v] == 0) {
+               insert (v, d);
+            }
+            else {
+               myDeg[v] = d;
+            }
+         }
+         wflg += n+1;
+      }
+      return order;
+   }
+}
@@ -8,9 +8,11 @@ package maspack.solvers;
 
 import maspack.solvers.IterativeSolver.ToleranceType;
 
+import maspack.matrix.BlockCRSMatrix;
 import maspack.matrix.ImproperSizeException;
 import maspack.matrix.LinearTransformNd;
 import maspack.matrix.Matrix;
+import maspack.matrix.SparseBlockMatrix;
 import maspack.matrix.SparseMatrixCRS;
 import maspack.matrix.VectorNd;
 
@@ -31,6 +33,9 @@ public class ProjectedCGSolver {
    VectorNd dir = new VectorNd (0); // direction
    VectorNd A_dir = new VectorNd (0); // direction multiplied by A
 
+   private boolean myUseBlockCRS = true;
+   private BlockCRSMatrix myBlockCRS; // compact copy of A for fast products
+
    // public enum ToleranceType
    // {
    // RelativeResidual,
@@ -54,6 +59,43 @@ public class ProjectedCGSolver {
       myTolType = type;
    }
 
+   /**
+    * Queries whether a compact {@link BlockCRSMatrix} copy is used for
+    * matrix-vector products when the system matrix is a {@link
+    * SparseBlockMatrix}. See {@link #setUseBlockCRS}.
+    *
+    * @return {@code true} if a compact matrix copy is used
+    */
+   public boolean getUseBlockCRS() {
+      return myUseBlockCRS;
+   }
+
+   /**
+    * Sets whether a compact {@link BlockCRSMatrix} copy is used for
+    * matrix-vector products when the system matrix is a {@link
+    * SparseBlockMatrix}. The copy is refreshed at the start of each solve,
+    * and is reused without reallocation if the block structure of the
+    * matrix has not changed. The default value is {@code true}.
+    *
+    * @param enable if {@code true}, use a compact matrix copy
+    */
+   public void setUseBlockCRS (boolean enable) {
+      myUseBlockCRS = enable;
+      if (!enable) {
+         myBlockCRS = null;
+      }
+   }
+
+   private LinearTransformNd getBlockCRS (SparseBlockMatrix S) {
+      if (myBlockCRS == null) {
+         myBlockCRS = new BlockCRSMatrix (S);
+      }
+      else {
+         myBlockCRS.update (S);
+      }
+      return myBlockCRS;
+   }
+
    public int getMaxIterations() {
       return myMaxIter;
    }
@@ -156,6 +198,9 @@ public class ProjectedCGSolver {
       VectorNd b, VectorNd g, double tol, int maxIter, LinearTransformNd P) {
 
       // System.out.println ("CGSolve: " + tol+" "+maxIter+" "+myTolType);
+      if (myUseBlockCRS && A instanceof SparseBlockMatrix) {
+         A = getBlockCRS ((SparseBlockMatrix)A);
+      }
       if (A.rowSize() != A.colSize()) {
          throw new ImproperSizeException ("Matrix must be square");
       }
@@ -0,0 +1,563 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.concurrency.WorkerPool;
+import maspack.matrix.MatrixNd;
+import maspack.matrix.VectorNd;
+
+/**
+ * Iterative solver for bounded mixed linear complementarity problems (MLCPs)
+ * with symmetric positive semi-definite (SPSD) matrices, using projected
+ * Gauss-Seidel or projected Jacobi iterations. The problem is defined by
+ *
+ * <pre>
+ * {@code
+ * w = M z + q
+ * }
+ * </pre>
+ *
+ * together with the bounds lo {@code <=} z {@code <=} hi, and solving it
+ * entails finding z such that for each i, either
+ *
+ * <pre>
+ * {@code
+ * z_i = lo_i and w_i >= 0, or
+ * z_i = hi_i and w_i <= 0, or
+ * lo_i < z_i < hi_i and w_i = 0.
+ * }
+ * </pre>
+ *
+ * With lo = 0 and hi = infinity this reduces to a standard LCP.
+ *
+ * <p>Unlike the pivoting solvers {@link DantzigLCPSolver} and {@link
+ * KellerLCPSolver}, this solver only finds an approximate solution, whose
+ * accuracy is controlled by a tolerance and an iteration limit. However, it
+ * can be warm started: the value of z supplied on input is used as the
+ * initial guess, so that when the problem changes little from one solve to
+ * the next (as with contact between time steps) very few iterations are
+ * needed.
+ *
+ * <p>Before iterating, the solver partitions the variables into
+ * <i>islands</i>, which are the connected components of the non-zero
+ * structure of M. For contact problems, each island corresponds to a
+ * group of bodies that are in contact with each other. Islands are
+ * independent, and so are solved separately, to their own convergence
+ * tolerance, and in parallel when more than one thread is available.
+ */
+public class ProjectedGaussSeidelSolver {
+
+   /**
+    * Iteration method used by the solver.
+    */
+   public enum Method {
+      /**
+       * Projected Gauss-Seidel, in which each variable update uses the
+       * latest values of the other variables.
+       */
+      GaussSeidel,
+      /**
+       * Projected Jacobi, in which each sweep updates all variables from the
+       * values of the previous sweep. Usually requires a relaxation
+       * parameter less than 1 to converge.
+       */
+      Jacobi
+   }
+
+   /**
+    * Described whether or not a solution was found.
+    */
+   public enum Status {
+      /**
+       * A solution was found to within the specified tolerance.
+       */
+      SOLVED,
+      /**
+       * No solution appears to be possible, because a variable with a zero
+       * diagonal entry must be moved to an infinite bound.
+       */
+      NO_SOLUTION,
+      /**
+       * The tolerance was not met within the iteration limit. The values in z
+       * are those of the last iteration.
+       */
+      ITERATION_LIMIT_EXCEEDED,
+      /**
+       * A numeric error was detected in the solution.
+       */
+      NUMERIC_ERROR
+   }
+
+   private static double inf = Double.POSITIVE_INFINITY;
+
+   private Method myMethod = Method.GaussSeidel;
+   private double myTol = 1e-10;
+   private int myMaxIterations = 500;
+   private double myRelaxation = 1.0;
+   private int myNumThreads = WorkerPool.getDefaultNumThreads();
+   private WorkerPool myWorkers;
+
+   // island structure: variables of island k are
+   // myIslandIdxs[myIslandOffs[k]] ... myIslandIdxs[myIslandOffs[k+1]-1]
+   private int myNumIslands;
+   private int[] myIslandOffs = new int[1];
+   private int[] myIslandIdxs = new int[0];
+   private int[] myParents = new int[0];
+
+   private double[] myZPrev = new double[0]; // previous values for Jacobi
+   private int[] myIslandIters = new int[0];
+   private Status[] myIslandStatus = new Status[0];
+
+   private int myIterationCnt;
+   private double myResidual;
+
+   // problem being solved
+   private double[] myMbuf;
+   private int myMw;
+   private int myMbase;
+   private double[] myQbuf;
+   private double[] myZbuf;
+   private double[] myLo;
+   private double[] myHi;
+
+   /**
+    * Creates a new projected Gauss-Seidel solver.
+    */
+   public ProjectedGaussSeidelSolver() {
+   }
+
+   /**
+    * Returns the iteration method used by this solver.
+    *
+    * @return iteration method
+    */
+   public Method getMethod() {
+      return myMethod;
+   }
+
+   /**
+    * Sets the iteration method used by this solver. The default is {@link
+    * Method#GaussSeidel}.
+    *
+    * @param method new iteration method
+    */
+   public void setMethod (Method method) {
+      myMethod = method;
+   }
+
+   /**
+    * Returns the convergence tolerance for this solver.
+    *
+    * @return convergence tolerance
+    * @see #setTolerance
+    */
+   public double getTolerance() {
+      return myTol;
+   }
+
+   /**
+    * Sets the convergence tolerance for this solver. An island is considered
+    * solved when the infinity norm of its natural residual
+    * <code>z - clamp (z - w, lo, hi)</code> is less than or equal to
+    * <code>tol</code> times the infinity norm of its portion of q.
+    *
+    * @param tol new convergence tolerance
+    */
+   public void setTolerance (double tol) {
+      myTol = Math.max (tol, 0);
+   }
+
+   /**
+    * Returns the maximum number of sweeps allowed for each island.
+    *
+    * @return maximum number of iterations
+    */
+   public int getMaxIterations() {
+      return myMaxIterations;
+   }
+
+   /**
+    * Sets the maximum number of sweeps allowed for each island.
+    *
+    * @param max maximum number of iterations
+    */
+   public void setMaxIterations (int max) {
+      myMaxIterations = Math.max (max, 1);
+   }
+
+   /**
+    * Returns the relaxation parameter for this solver.
+    *
+    * @return relaxation parameter
+    * @see #setRelaxation
+    */
+   public double getRelaxation() {
+      return myRelaxation;
+   }
+
+   /**
+    * Sets the relaxation parameter omega, which scales each variable
+    * update. For Gauss-Seidel, values in (0, 2) ensure convergence for SPSD
+    * matrices, with values greater than 1 giving over-relaxation. For
+    * Jacobi, convergence is only guaranteed for sufficiently small values,
+    * such as 1/n for an island with n variables, although values in the
+    * range 0.3 to 0.5 usually work for contact problems. The default value
+    * is 1.
+    *
+    * @param omega new relaxation parameter
+    */
+   public void setRelaxation (double omega) {
+      if (omega <= 0) {
+         throw new IllegalArgumentException (
+            "relaxation parameter must be positive");
+      }
+      myRelaxation = omega;
+   }
+
+   /**
+    * Returns the maximum number of threads used to solve islands in
+    * parallel.
+    *
+    * @return maximum number of threads
+    */
+   public int getNumThreads() {
+      return myNumThreads;
+   }
+
+   /**
+    * Sets the maximum number of threads used to solve islands in
+    * parallel. The default is the number of available processors.
+    *
+    * @param num maximum number of threads
+    */
+   public void setNumThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumThreads) {
+         if (myWorkers != null) {
+            myWorkers.shutdown();
+            myWorkers = null;
+         }
+         myNumThreads = num;
+      }
+   }
+
+   /**
+    * Returns the number of sweeps used in the most recent solve. Since
+    * islands are solved independently, this is the maximum over all
+    * islands.
+    *
+    * @return iteration count for the last solve
+    */
+   public int getIterationCount() {
+      return myIterationCnt;
+   }
+
+   /**
+    * Returns the infinity norm of the natural residual <code>z - clamp (z -
+    * w, lo, hi)</code> for the solution of the most recent solve.
+    *
+    * @return residual for the last solve
+    */
+   public double getResidual() {
+      return myResidual;
+   }
+
+   /**
+    * Returns the number of independent islands found in the most recent
+    * solve.
+    *
+    * @return number of islands for the last solve
+    */
+   public int numIslands() {
+      return myNumIslands;
+   }
+
+   /**
+    * Solves a standard LCP, for which lo = 0 and hi = infinity.
+    *
+    * @param z on input, the initial guess for z (which should be zeroed to
+    * obtain a cold start); on output, the solution for z
+    * @param M system matrix
+    * @param q system vector
+    * @return Status of the solution
+    */
+   public Status solve (VectorNd z, MatrixNd M, VectorNd q) {
+      VectorNd lo = new VectorNd (z.size());
+      VectorNd hi = new VectorNd (z.size());
+      for (int i=0; i<z.size(); i++) {
+         hi.set (i, inf);
+      }
+      return solve (z, null, M, q, lo, hi);
+   }
+
+   /**
+    * Solves a bounded MLCP.
+    *
+    * @param z on input, the initial guess for z (which should be zeroed to
+    * obtain a cold start); on output, the solution for z
+    * @param w if non-null, returns the value of w = M z + q
+    * @param M system matrix
+    * @param q system vector
+    * @param lo lower bounds for z. Entries may be negative infinity.
+    * @param hi upper bounds for z. Entries may be positive infinity.
+    * @return Status of the solution
+    */
+   public Status solve (
+      VectorNd z, VectorNd w, MatrixNd M, VectorNd q, VectorNd lo, VectorNd hi) {
+      if (M.rowSize() != M.colSize()) {
+         throw new IllegalArgumentException ("Matrix is not square");
+      }
+      int size = z.size();
+      if (M.rowSize() != size) {
+         throw new IllegalArgumentException (
+            "z and M do not have the same size");
+      }
+      if (q.size() != size || lo.size() != size || hi.size() != size) {
+         throw new IllegalArgumentException (
+            "z, q, lo and hi do not have the same sizes");
+      }
+      myMbuf = M.getBuffer();
+      myMw = M.getBufferWidth();
+      myMbase = M.getBufferBase();
+      myQbuf = q.getBuffer();
+      myZbuf = z.getBuffer();
+      myLo = lo.getBuffer();
+      myHi = hi.getBuffer();
+      for (int i=0; i<size; i++) {
+         myZbuf[i] = clamp (myZbuf[i], myLo[i], myHi[i]);
+      }
+      findIslands (size);
+      if (myIslandIters.length < myNumIslands) {
+         myIslandIters = new int[myNumIslands];
+         myIslandStatus = new Status[myNumIslands];
+      }
+      if (myMethod == Method.Jacobi && myZPrev.length < size) {
+         myZPrev = new double[size];
+      }
+      if (myNumThreads > 1 && myNumIslands > 1) {
+         getWorkers().forEachIndex (
+            myNumIslands, new WorkerPool.IndexTask() {
+               public void run (int tidx, int k) {
+                  solveIsland (k);
+               }
+            });
+      }
+      else {
+         for (int k=0; k<myNumIslands; k++) {
+            solveIsland (k);
+         }
+      }
+      Status status = Status.SOLVED;
+      myIterationCnt = 0;
+      for (int k=0; k<myNumIslands; k++) {
+         myIterationCnt = Math.max (myIterationCnt, myIslandIters[k]);
+         if (myIslandStatus[k].ordinal() > status.ordinal()) {
+            status = myIslandStatus[k];
+         }
+      }
+      myResidual = computeResidual (w);
+      myMbuf = null;
+      myQbuf = null;
+      myZbuf = null;
+      myLo = null;
+      myHi = null;
+      return status;
+   }
+
+   private WorkerPool getWorkers() {
+      if (myWorkers == null) {
+         myWorkers = new WorkerPool ("ProjectedGaussSeidel", myNumThreads);
+      }
+      return myWorkers;
+   }
+
+   private static double clamp (double x, double lo, double hi) {
+      return x < lo ? lo : (x > hi ? hi : x);
+   }
+
+   private int findRoot (int i) {
+      while (myParents[i] != i) {
+         myParents[i] = myParents[myParents[i]];
+         i = myParents[i];
+      }
+      return i;
+   }
+
+   /**
+    * Finds the connected components of the non-zero structure of M using a
+    * union-find, and stores them in myIslandOffs and myIslandIdxs, with the
+    * variables of each island in increasing order.
+    */
+   private void findIslands (int size) {
+      if (myParents.length < size) {
+         myParents = new int[size];
+         myIslandIdxs = new int[size];
+      }
+      for (int i=0; i<size; i++) {
+         myParents[i] = i;
+      }
+      for (int i=0; i<size; i++) {
+         int off = myMbase + i*myMw;
+         for (int j=i+1; j<size; j++) {
+            if (myMbuf[off+j] != 0 || myMbuf[myMbase+j*myMw+i] != 0) {
+               int ri = findRoot (i);
+               int rj = findRoot (j);
+               if (ri != rj) {
+                  myParents[Math.max(ri,rj)] = Math.min(ri,rj);
+               }
+            }
+         }
+      }
+      // each root is the smallest index in its island; number the islands
+      // in order of their roots and count their sizes
+      int[] islandNums = new int[size];
+      int num = 0;
+      for (int i=0; i<size; i++) {
+         int r = findRoot (i);
+         if (r == i) {
+            islandNums[i] = num++;
+         }
+      }
+      if (myIslandOffs.length < num+1) {
+         myIslandOffs = new int[num+1];
+      }
+      for (int k=0; k<=num; k++) {
+         myIslandOffs[k] = 0;
+      }
+      for (int i=0; i<size; i++) {
+         myIslandOffs[islandNums[findRoot(i)]+1]++;
+      }
+      for (int k=0; k<num; k++) {
+         myIslandOffs[k+1] += myIslandOffs[k];
+      }
+      int[] fill = new int[num];
+      for (int i=0; i<size; i++) {
+         int k = islandNums[findRoot(i)];
+         myIslandIdxs[myIslandOffs[k]+fill[k]++] = i;
+      }
+      myNumIslands = num;
+   }
+
+   /**
+    * Computes w_i = (M z + q)_i, restricted to the variables of the island
+    * between idx0 and idx1, using the values in zbuf.
+    */
+   private double computeW (int i, double[] zbuf, int idx0, int idx1) {
+      double wi = myQbuf[i];
+      int off = myMbase + i*myMw;
+      for (int l=idx0; l<idx1; l++) {
+         int j = myIslandIdxs[l];
+         wi += myMbuf[off+j]*zbuf[j];
+      }
+      return wi;
+   }
+
+   /**
+    * Computes the update for z_i given w_i. Returns NaN if z_i would need to
+    * be set to an infinite bound.
+    */
+   private double updateZ (int i, double wi, double zi) {
+      double mii = myMbuf[myMbase+i*myMw+i];
+      if (mii > 0) {
+         return clamp (zi - myRelaxation*wi/mii, myLo[i], myHi[i]);
+      }
+      else {
+         // w_i does not depend on z_i, so z_i must be at one of its bounds
+         double znew = zi;
+         if (wi > 0) {
+            znew = myLo[i];
+         }
+         else if (wi < 0) {
+            znew = myHi[i];
+         }
+         return Double.isInfinite (znew) ? Double.NaN : znew;
+      }
+   }
+
+   private void solveIsland (int k) {
+      int idx0 = myIslandOffs[k];
+      int idx1 = myIslandOffs[k+1];
+      double[] zbuf = myZbuf;
+      double qnorm = 0;
+      for (int l=idx0; l<idx1; l++) {
+         qnorm = Math.max (qnorm, Math.abs (myQbuf[myIslandIdxs[l]]));
+      }
+      double tol = myTol*qnorm;
+      Status status = Status.ITERATION_LIMIT_EXCEEDED;
+      int iter = 0;
+      while (iter < myMaxIterations) {
+         iter++;
+         double res = 0;
+         if (myMethod == Method.Jacobi) {
+            for (int l=idx0; l<idx1; l++) {
+               int i = myIslandIdxs[l];
+               myZPrev[i] = zbuf[i];
+            }
+            zbuf = myZPrev;
+         }
+         for (int l=idx0; l<idx1; l++) {
+            int i = myIslandIdxs[l];
+            double zi = zbuf[i];
+            double wi = computeW (i, zbuf, idx0, idx1);
+            // natural residual, based on the values before the update
+            double ri = Math.abs (zi - clamp (zi - wi, myLo[i], myHi[i]));
+            if (ri != ri) {
+               myIslandStatus[k] = Status.NUMERIC_ERROR;
+               myIslandIters[k] = iter;
+               return;
+            }
+            else if (ri > res) {
+               res = ri;
+            }
+            double znew = updateZ (i, wi, zi);
+            if (znew != znew) {
+               myIslandStatus[k] = Status.NO_SOLUTION;
+               myIslandIters[k] = iter;
+               return;
+            }
+            myZbuf[i] = znew;
+         }
+         zbuf = myZbuf;
+         if (res <= tol) {
+            status = Status.SOLVED;
+            break;
+         }
+      }
+      myIslandStatus[k] = status;
+      myIslandIters[k] = iter;
+   }
+
+   private double computeResidual (VectorNd w) {
+      int size = myIslandOffs[myNumIslands];
+      double[] wbuf = null;
+      if (w != null) {
+         if (w.size() != size) {
+            w.setSize (size);
+         }
+         wbuf = w.getBuffer();
+      }
+      double res = 0;
+      for (int k=0; k<myNumIslands; k++) {
+         int idx0 = myIslandOffs[k];
+         int idx1 = myIslandOffs[k+1];
+         for (int l=idx0; l<idx1; l++) {
+            int i = myIslandIdxs[l];
+            double zi = myZbuf[i];
+            double wi = computeW (i, myZbuf, idx0, idx1);
+            if (wbuf != null) {
+               wbuf[i] = wi;
+            }
+            res = Math.max (
+               res, Math.abs (zi - clamp (zi - wi, myLo[i], myHi[i])));
+         }
+      }
+      return res;
+   }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.Random;
+
+import maspack.matrix.MatrixNd;
+import maspack.matrix.VectorNd;
+import maspack.solvers.ProjectedGaussSeidelSolver.Method;
+import maspack.solvers.ProjectedGaussSeidelSolver.Status;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests ProjectedGaussSeidelSolver against the solutions produced by
+ * DantzigLCPSolver.
+ */
+public class ProjectedGaussSeidelSolverTest extends UnitTest {
+
+   private static double inf = Double.POSITIVE_INFINITY;
+
+   Random myRand = RandomGenerator.get();
+
+   /**
+    * Creates an SPD matrix consisting of numIslands independent blocks, each
+    * of size m, with the variables of the blocks randomly interleaved.
+    */
+   MatrixNd createIslandMatrix (int numIslands, int m) {
+      int n = numIslands*m;
+      int[] perm = new int[n];
+      for (int i=0; i<n; i++) {
+         perm[i] = i;
+      }
+      for (int i=n-1; i>0; i--) {
+         int k = myRand.nextInt (i+1);
+         int tmp = perm[i];
+         perm[i] = perm[k];
+         perm[k] = tmp;
+      }
+      MatrixNd M = new MatrixNd (n, n);
+      MatrixNd A = new MatrixNd (m, m);
+      MatrixNd B = new MatrixNd (m, m);
+      for (int k=0; k<numIslands; k++) {
+         A.setRandom (-0.5, 0.5, myRand);
+         B.mulTransposeRight (A, A);
+         for (int i=0; i<m; i++) {
+            B.add (i, i, 0.1);
+         }
+         for (int i=0; i<m; i++) {
+            for (int j=0; j<m; j++) {
+               M.set (perm[k*m+i], perm[k*m+j], B.get (i, j));
+            }
+         }
+      }
+      return M;
+   }
+
+   void checkSolution (
+      String msg, VectorNd z, VectorNd zcheck, double tol) {
+      if (!z.epsilonEquals (zcheck, tol*(1+zcheck.infinityNorm()))) {
+         throw new TestException (
+            msg + ": got\n" + z.toString ("%12.8f") +
+            "\nexpected\n" + zcheck.toString ("%12.8f"));
+      }
+   }
+
+   void testLCP (int numIslands, int m) {
+      MatrixNd M = createIslandMatrix (numIslands, m);
+      int n = M.rowSize();
+      VectorNd q = new VectorNd (n);
+      q.setRandom (-1, 1, myRand);
+
+      DantzigLCPSolver dantzig = new DantzigLCPSolver();
+      VectorNd zcheck = new VectorNd (n);
+      if (dantzig.solve (zcheck, M, q, new boolean[n]) !=
+          DantzigLCPSolver.Status.SOLVED) {
+         throw new TestException ("Dantzig solver failed");
+      }
+
+      ProjectedGaussSeidelSolver pgs = new ProjectedGaussSeidelSolver();
+      pgs.setTolerance (1e-12);
+      pgs.setMaxIterations (100000);
+      VectorNd z = new VectorNd (n);
+      for (int nthreads=1; nthreads<=3; nthreads+=2) {
+         pgs.setNumThreads (nthreads);
+         z.setZero();
+         checkEquals ("status", pgs.solve (z, M, q), Status.SOLVED);
+         checkEquals ("numIslands", pgs.numIslands(), numIslands);
+         checkSolution ("Gauss-Seidel", z, zcheck, 1e-8);
+         check ("residual " + pgs.getResidual(),
+                pgs.getResidual() <= 1e-10*q.infinityNorm());
+      }
+      int coldIters = pgs.getIterationCount();
+
+      // warm start from the solution should converge in one sweep
+      checkEquals ("warm start status", pgs.solve (z, M, q), Status.SOLVED);
+      checkEquals ("warm start iterations", pgs.getIterationCount(), 1);
+      check ("cold start took only one iteration", coldIters > 1);
+
+      // iteration limit
+      pgs.setMaxIterations (1);
+      z.setZero();
+      checkEquals (
+         "limited status", pgs.solve (z, M, q),
+         Status.ITERATION_LIMIT_EXCEEDED);
+      pgs.setMaxIterations (100000);
+
+      // Jacobi, with under-relaxation
+      pgs.setMethod (Method.Jacobi);
+      pgs.setRelaxation (1.0/m);
+      z.setZero();
+      checkEquals ("Jacobi status", pgs.solve (z, M, q), Status.SOLVED);
+      checkSolution ("Jacobi", z, zcheck, 1e-8);
+   }
+
+   void testBoxedMLCP (int numIslands, int m) {
+      MatrixNd M = createIslandMatrix (numIslands, m);
+      int n = M.rowSize();
+      VectorNd q = new VectorNd (n);
+      VectorNd lo = new VectorNd (n);
+      VectorNd hi = new VectorNd (n);
+      q.setRandom (-1, 1, myRand);
+      // mix of unilateral and friction-like bounds
+      for (int i=0; i<n; i++) {
+         if (myRand.nextBoolean()) {
+            lo.set (i, 0);
+            hi.set (i, inf);
+         }
+         else {
+            double lim = 0.5*myRand.nextDouble();
+            lo.set (i, -lim);
+            hi.set (i, lim);
+         }
+      }
+      DantzigLCPSolver dantzig = new DantzigLCPSolver();
+      VectorNd zcheck = new VectorNd (n);
+      VectorNd wcheck = new VectorNd (n);
+      if (dantzig.solve (zcheck, wcheck, M, q, lo, hi, 0, new int[n]) !=
+          DantzigLCPSolver.Status.SOLVED) {
+         throw new TestException ("Dantzig solver failed");
+      }
+      ProjectedGaussSeidelSolver pgs = new ProjectedGaussSeidelSolver();
+      pgs.setTolerance (1e-12);
+      pgs.setMaxIterations (100000);
+      pgs.setRelaxation (1.2);
+      VectorNd z = new VectorNd (n);
+      VectorNd w = new VectorNd (n);
+      checkEquals (
+         "boxed status", pgs.solve (z, w, M, q, lo, hi), Status.SOLVED);
+      checkSolution ("boxed MLCP", z, zcheck, 1e-8);
+      VectorNd wchk = new VectorNd (n);
+      M.mul (wchk, z);
+      wchk.add (q);
+      checkSolution ("w", w, wchk, 1e-12);
+   }
+
+   public void test() {
+      for (int i=0; i<5; i++) {
+         testLCP (1, 8);
+         testLCP (6, 5);
+         testBoxedMLCP (1, 8);
+         testBoxedMLCP (4, 6);
+      }
+   }
+
+   public static void main (String[] args) {
+      RandomGenerator.setSeed (0x1234);
+      ProjectedGaussSeidelSolverTest tester =
+         new ProjectedGaussSeidelSolverTest();
+      tester.runtest();
+   }
+}
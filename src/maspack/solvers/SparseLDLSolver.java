@@ -0,0 +1,1624 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.Arrays;
+
+import maspack.concurrency.WorkerPool;
+import maspack.matrix.ImproperStateException;
+import maspack.matrix.Matrix;
+import maspack.matrix.Matrix.Partition;
+import maspack.matrix.NumericalException;
+import maspack.matrix.VectorNd;
+
+/**
+ * Sparse direct solver implemented entirely in Java, which can be used in
+ * place of {@link PardisoSolver} on systems where the Pardiso native library
+ * is not available. Usage follows the same three phases as Pardiso:
+ *
+ * <ul>
+ * <li>An <i>analyze</i> phase that computes a fill-reducing ordering
+ * (using {@link MinimumDegreeOrdering}), the elimination tree, and the
+ * sparsity structure of the factor;
+ * <li>A <i>factor</i> phase that numerically factors the matrix;
+ * <li>A <i>solve</i> phase that uses the factorization to solve
+ * M x = b for some given right-hand-side b.
+ * </ul>
+ *
+ * Symmetric matrices are factored as L D L^T. Non-symmetric matrices are
+ * factored as L D U, using the sparsity structure of M + M^T, and so are
+ * assumed to have a nearly symmetric structure, as is typical for mechanical
+ * systems. No numeric pivoting is performed. Instead, variables whose
+ * diagonal entries are zero (such as the constraint variables of a KKT
+ * system) are ordered after their neighbors, and pivots which are still
+ * too small are perturbed, in which case the solution is improved using
+ * iterative refinement. This is the same strategy used by Pardiso.
+ *
+ * <p>The factorization is supernodal: columns of L with the same sparsity
+ * structure are grouped into supernodes, each of which is stored and
+ * factored as a dense panel, and small supernodes are amalgamated at the
+ * cost of storing some explicit zeros. The numeric factorization is
+ * multithreaded: supernodes which are at the same height in the elimination
+ * tree do not depend on each other and are computed concurrently, while the
+ * large supernodes near the root of the tree have their columns divided
+ * among the threads. The factorization does not depend on the number of
+ * threads, so results are reproducible regardless of thread count.
+ *
+ * <p>As with {@link PardisoSolver}, <code>analyze()</code> needs to be
+ * called only when a matrix is first presented to the solver or when its
+ * sparsity structure changes, and the CRS versions of
+ * <code>analyze()</code> and <code>factor()</code> use 1-based indices.
+ */
+public class SparseLDLSolver implements DirectSolver {
+
+   private static int myDefaultNumThreads =
+      WorkerPool.getDefaultNumThreads();
+
+   /**
+    * Minimum estimated number of floating point updates that a level of the
+    * supernodal elimination tree must require before it is factored in
+    * parallel.
+    */
+   public static int minParallelWork = 20000;
+
+   /**
+    * Matrix has not been set
+    */
+   public static final int UNSET = 0;
+
+   /**
+    * Matrix has been set and analyzed
+    */
+   public static final int ANALYZED = 1;
+
+   /**
+    * Matrix has been numerically factored
+    */
+   public static final int FACTORED = 2;
+
+   private int myState = UNSET;
+   private Matrix myMatrix;
+   private int myType;
+   private boolean mySymmetric;
+   private int mySize;
+   private int myNumVals;
+
+   // permutation: myPerm[k] is the original index of the k-th variable
+   private int[] myPerm = new int[0];
+
+   // lower triangular part of the permuted input matrix, stored by columns,
+   // with the indices of the source values in the CRS value array
+   private int[] myAp;
+   private int[] myAi;
+   private int[] mySrcL;
+   private int[] mySrcU;
+   private double[] myAx;
+   private double[] myAux;
+
+   // supernodes: the columns mySnodeCols[s] to mySnodeCols[s+1]-1 of L
+   // share the row indices given by mySnodeRows[mySnodeRowPtr[s]] to
+   // mySnodeRows[mySnodeRowPtr[s+1]-1], the first of which are the columns
+   // themselves
+   private int myNumSnodes;
+   private int[] mySnodeCols;
+   private int[] mySnodeRowPtr;
+   private int[] mySnodeRows;
+   private int[] mySnodeValPtr;
+   private int myMaxSnodeRows;
+   private long myNumFactorNonZeros;
+
+   // unit lower triangular factor L, stored as one dense column-major panel
+   // per supernode starting at mySnodeValPtr[s], along with the transpose of
+   // U for non-symmetric matrices. The diagonal is stored separately in myD.
+   private double[] myLx;
+   private double[] myUx;
+   private double[] myD;
+
+   // supernodes that update supernode s are given by myUpdSnode[u] for u
+   // from myUpdPtr[s] to myUpdPtr[s+1]-1. Rows myUpdStart[u] to
+   // myUpdEnd[u]-1 of the updating supernode lie within the columns of s.
+   private int[] myUpdPtr;
+   private int[] myUpdSnode;
+   private int[] myUpdStart;
+   private int[] myUpdEnd;
+
+   // supernodal elimination tree levels
+   private int[] myLevelPtr;
+   private int[] myLevelNodes;
+   private long[] myLevelWork;
+
+   private int myNumThreads = myDefaultNumThreads;
+   private WorkerPool myWorkers;
+   private SymbolicAnalysisCache myAnalysisCache =
+      SymbolicAnalysisCache.getDefault();
+   private int[][] myRelMap = new int[0][];
+   private int[][] myRelIdx = new int[0][];
+   private double[][] myWork = new double[0][];
+   private double[][] myWorkU = new double[0][];
+   private int[] myThreadPerturbed = new int[0];
+
+   // number of columns that are factored together within a panel
+   private static final int PANEL_BLOCK_SIZE = 32;
+
+   private double myPivotPerturbation = 1e-8;
+   private double myPivotTol;
+   private int myNumPerturbed;
+   private int myMaxRefinementSteps = 2;
+   private int myNumRefinementSteps;
+
+   private double[] myY = new double[0];
+   private double[] myR = new double[0];
+   private double[] myBp = new double[0];
+
+   /**
+    * Creates a new SparseLDLSolver.
+    */
+   public SparseLDLSolver() {
+   }
+
+   /**
+    * Sets the default number of threads that is assigned when a
+    * <code>SparseLDLSolver</code> is created.
+    *
+    * @param num default number of threads to use
+    * @see #getDefaultNumThreads
+    */
+   public static void setDefaultNumThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      myDefaultNumThreads = num;
+   }
+
+   /**
+    * Returns the default number of threads that is assigned when a
+    * <code>SparseLDLSolver</code> is created. By default, this equals the
+    * number of available processors.
+    *
+    * @return default number of threads
+    * @see #setDefaultNumThreads
+    */
+   public static int getDefaultNumThreads () {
+      return myDefaultNumThreads;
+   }
+
+   /**
+    * Sets the number of threads used for numeric factorization.
+    *
+    * @param num number of threads to use
+    * @see #getNumThreads
+    */
+   public void setNumThreads (int num) {
+      if (num < 1) {
+         throw new IllegalArgumentException (
+            "number of threads must be at least 1");
+      }
+      if (num != myNumThreads) {
+         if (myWorkers != null) {
+            myWorkers.shutdown();
+            myWorkers = null;
+         }
+         myNumThreads = num;
+      }
+   }
+
+   /**
+    * Returns the number of threads used for numeric factorization.
+    *
+    * @return number of threads
+    * @see #setNumThreads
+    */
+   public int getNumThreads () {
+      return myNumThreads;
+   }
+
+   /**
+    * Sets the maximum number of iterative refinement steps that are
+    * performed after a solve when pivots had to be perturbed during the
+    * factorization. Setting this to 0 disables iterative refinement.
+    *
+    * @param nsteps maximum number of refinement steps
+    * @see #getMaxRefinementSteps
+    */
+   public void setMaxRefinementSteps (int nsteps) {
+      myMaxRefinementSteps = Math.max (0, nsteps);
+   }
+
+   /**
+    * Returns the maximum number of iterative refinement steps.
+    *
+    * @return maximum number of refinement steps
+    * @see #setMaxRefinementSteps
+    */
+   public int getMaxRefinementSteps () {
+      return myMaxRefinementSteps;
+   }
+
+   /**
+    * Returns the number of iterative refinement steps that were performed
+    * during the most recent solve.
+    *
+    * @return number of refinement steps
+    */
+   public int getNumRefinementSteps () {
+      return myNumRefinementSteps;
+   }
+
+   /**
+    * Sets the relative size, with respect to the largest matrix entry,
+    * below which pivots are perturbed. The default value is 1e-8.
+    *
+    * @param eps relative pivot perturbation
+    * @see #getPivotPerturbation
+    */
+   public void setPivotPerturbation (double eps) {
+      myPivotPerturbation = eps;
+   }
+
+   /**
+    * Returns the relative size below which pivots are perturbed.
+    *
+    * @return relative pivot perturbation
+    * @see #setPivotPerturbation
+    */
+   public double getPivotPerturbation () {
+      return myPivotPerturbation;
+   }
+
+   /**
+    * Returns the number of pivots that were perturbed during the most recent
+    * factorization.
+    *
+    * @return number of perturbed pivots
+    */
+   public int getNumPerturbedPivots () {
+      return myNumPerturbed;
+   }
+
+   /**
+    * Returns the number of non-zero entries in the factorization, including
+    * the diagonal and any explicit zeros stored within supernodes. For
+    * non-symmetric matrices, this includes both L and U.
+    *
+    * @return number of non-zeros in the factors
+    */
+   public int getNumNonZerosInFactors () {
+      if (myState == UNSET) {
+         return 0;
+      }
+      long nnz = myNumFactorNonZeros;
+      return (int)Math.min (
+         (mySymmetric ? nnz : 2*nnz) + mySize, Integer.MAX_VALUE);
+   }
+
+   /**
+    * Returns the state of this solver, which is either {@link #UNSET},
+    * {@link #ANALYZED}, or {@link #FACTORED}.
+    *
+    * @return solver state
+    */
+   public int getState() {
+      return myState;
+   }
+
+   /**
+    * Results of a symbolic analysis that depend only on the matrix structure,
+    * and which can therefore be shared between solvers via a {@link
+    * SymbolicAnalysisCache}. Arrays are not modified after the analysis.
+    */
+   private static class SymbolicAnalysis {
+      int[] perm;
+      int[] ap;
+      int[] ai;
+      int[] srcL;
+      int[] srcU;
+      int numSnodes;
+      int[] snodeCols;
+      int[] snodeRowPtr;
+      int[] snodeRows;
+      int[] snodeValPtr;
+      int maxSnodeRows;
+      long numFactorNonZeros;
+      int[] updPtr;
+      int[] updSnode;
+      int[] updStart;
+      int[] updEnd;
+      int[] levelPtr;
+      int[] levelNodes;
+      long[] levelWork;
+
+      long getMemorySize() {
+         long nints =
+            perm.length + ap.length + ai.length + srcL.length +
+            (srcU != null ? srcU.length : 0) + snodeCols.length +
+            snodeRowPtr.length + snodeRows.length + snodeValPtr.length +
+            updPtr.length + updSnode.length + updStart.length +
+            updEnd.length + levelPtr.length + levelNodes.length;
+         return 4*nints + 8*levelWork.length;
+      }
+   }
+
+   private SymbolicAnalysis getAnalysis() {
+      SymbolicAnalysis sa = new SymbolicAnalysis();
+      sa.perm = myPerm;
+      sa.ap = myAp;
+      sa.ai = myAi;
+      sa.srcL = mySrcL;
+      sa.srcU = mySrcU;
+      sa.numSnodes = myNumSnodes;
+      sa.snodeCols = mySnodeCols;
+      sa.snodeRowPtr = mySnodeRowPtr;
+      sa.snodeRows = mySnodeRows;
+      sa.snodeValPtr = mySnodeValPtr;
+      sa.maxSnodeRows = myMaxSnodeRows;
+      sa.numFactorNonZeros = myNumFactorNonZeros;
+      sa.updPtr = myUpdPtr;
+      sa.updSnode = myUpdSnode;
+      sa.updStart = myUpdStart;
+      sa.updEnd = myUpdEnd;
+      sa.levelPtr = myLevelPtr;
+      sa.levelNodes = myLevelNodes;
+      sa.levelWork = myLevelWork;
+      return sa;
+   }
+
+   private void setAnalysis (SymbolicAnalysis sa) {
+      myPerm = sa.perm;
+      myAp = sa.ap;
+      myAi = sa.ai;
+      mySrcL = sa.srcL;
+      mySrcU = sa.srcU;
+      myNumSnodes = sa.numSnodes;
+      mySnodeCols = sa.snodeCols;
+      mySnodeRowPtr = sa.snodeRowPtr;
+      mySnodeRows = sa.snodeRows;
+      mySnodeValPtr = sa.snodeValPtr;
+      myMaxSnodeRows = sa.maxSnodeRows;
+      myNumFactorNonZeros = sa.numFactorNonZeros;
+      myUpdPtr = sa.updPtr;
+      myUpdSnode = sa.updSnode;
+      myUpdStart = sa.updStart;
+      myUpdEnd = sa.updEnd;
+      myLevelPtr = sa.levelPtr;
+      myLevelNodes = sa.levelNodes;
+      myLevelWork = sa.levelWork;
+
+      // numeric storage is private to this solver
+      int nvals = myAp[mySize];
+      myAx = new double[nvals];
+      myAux = (mySymmetric ? null : new double[nvals]);
+      int nfactor = mySnodeValPtr[myNumSnodes];
+      myLx = new double[nfactor];
+      myUx = (mySymmetric ? null : new double[nfactor]);
+      myD = new double[mySize];
+   }
+
+   /**
+    * Sets the cache used to store and retrieve symbolic analyses, so that
+    * matrices whose structure has been seen before do not need to be
+    * reanalyzed. By default, this is the cache returned by {@link
+    * SymbolicAnalysisCache#getDefault}, which is shared by all solvers.
+    * Specifying <code>null</code> disables caching.
+    *
+    * @param cache cache for symbolic analyses, or <code>null</code>
+    * @see #getAnalysisCache
+    */
+   public void setAnalysisCache (SymbolicAnalysisCache cache) {
+      myAnalysisCache = cache;
+   }
+
+   /**
+    * Returns the cache used to store and retrieve symbolic analyses, or
+    * <code>null</code> if caching is disabled.
+    *
+    * @return cache for symbolic analyses
+    * @see #setAnalysisCache
+    */
+   public SymbolicAnalysisCache getAnalysisCache() {
+      return myAnalysisCache;
+   }
+
+   private Partition getPartition (int type) {
+      if ((type & Matrix.SYMMETRIC) != 0) {
+         return Partition.UpperTriangular;
+      }
+      else {
+         return Partition.Full;
+      }
+   }
+
+   /**
+    * Sets the matrix associated with this solver and performs symbolic
+    * analysis on it. The matrix is assumed to be square.  If
+    * <code>size</code> is less than <code>M.rowSize()</code>, the matrix is
+    * taken to be the top-left diagonal sub-matrix of the indicated size. This
+    * solver retains a pointer to <code>M</code> until the next call to
+    * <code>analyze()</code>.
+    *
+    * <p>If <code>type</code> contains {@link Matrix#SYMMETRIC}, the matrix
+    * is factored as L D L^T; otherwise it is factored as L D U.
+    *
+    * @param M supples the matrix to be analyzed
+    * @param size size of the matrix to be analyzed
+    * @param type type of the matrix to be analyzed
+    * @throws IllegalArgumentException if the matrix is not square or if
+    * <code>size</code> is out of bounds
+    */
+   public void analyze (Matrix M, int size, int type) {
+      if (M.rowSize() != M.colSize()) {
+         throw new IllegalArgumentException ("Matrix is not square");
+      }
+      if (size < 0 || size > M.rowSize()) {
+         throw new IllegalArgumentException (
+            "Requested size " + size + " is out of bounds");
+      }
+      Partition part = getPartition (type);
+      int numVals = M.numNonZeroVals (part, size, size);
+      double[] vals = new double[numVals];
+      int[] colIdxs = new int[numVals];
+      int[] rowOffs = new int[size+1];
+      M.getCRSIndices (colIdxs, rowOffs, part, size, size);
+      M.getCRSValues (vals, part, size, size);
+      analyze (vals, colIdxs, rowOffs, size, type);
+      myMatrix = M;
+   }
+
+   /**
+    * Sets the matrix associated with this solver and performs symbolic
+    * analysis on it, using a compressed row storage (CRS) description with
+    * 1-based indices. For symmetric matrices, only the upper triangular part
+    * should be given. See {@link PardisoSolver#analyze(double[],int[],int[],
+    * int,int)} for details.
+    *
+    * @param vals values of the non-zero matrix elements. These are used to
+    * identify zero diagonal entries.
+    * @param colIdxs 1-based column indices of the non-zero matrix elements.
+    * @param rowOffs 1-based row start offsets into <code>vals</code> and
+    * <code>colIdxs</code>, corresponding to CRS format.
+    * @param size size of the matrix to be analyzed
+    * @param type type of the matrix to be analyzed
+    * @throws IllegalArgumentException if the CRS data structures
+    * are inconsistent.
+    */
+   public void analyze (
+      double[] vals, int[] colIdxs, int[] rowOffs, int size, int type) {
+
+      if (rowOffs.length < size+1) {
+         throw new IllegalArgumentException (
+            "Not enough row start indices: rowOffs.length=" + rowOffs.length
+            + ", size=" + size);
+      }
+      int numVals = rowOffs[size]-1;
+      if (colIdxs.length < numVals || vals.length < numVals) {
+         throw new IllegalArgumentException (
+            "Not enough column indices or values for numVals=" + numVals);
+      }
+      boolean symmetric = ((type & Matrix.SYMMETRIC) != 0);
+      myState = UNSET;
+      myMatrix = null;
+
+      // adjacency structure of M + M^T, without the diagonal
+      int[] adjPtr = new int[size+1];
+      boolean[] zeroDiag = new boolean[size];
+      Arrays.fill (zeroDiag, true);
+      for (int i=0; i<size; i++) {
+         for (int p=rowOffs[i]-1; p<rowOffs[i+1]-1; p++) {
+            int j = colIdxs[p]-1;
+            if (j < 0 || j >= size) {
+               throw new IllegalArgumentException (
+                  "Column index "+(j+1)+" in row "+(i+1)+" is out of range");
+            }
+            if (j == i) {
+               if (vals[p] != 0) {
+                  zeroDiag[i] = false;
+               }
+            }
+            else if (symmetric && j < i) {
+               throw new IllegalArgumentException (
+                  "Symmetric matrix entry ("+(i+1)+","+(j+1)+
+                  ") is not in the upper triangle");
+            }
+            else {
+               adjPtr[i+1]++;
+               adjPtr[j+1]++;
+            }
+         }
+      }
+
+      // reuse a previous analysis if the structure has been seen before
+      SymbolicAnalysisCache.Key key = null;
+      if (myAnalysisCache != null) {
+         key = myAnalysisCache.createKey (
+            size, symmetric ? 1 : 0, rowOffs, colIdxs, numVals, zeroDiag);
+         SymbolicAnalysis sa = (SymbolicAnalysis)myAnalysisCache.get (key);
+         if (sa != null) {
+            mySize = size;
+            myNumVals = numVals;
+            myType = type;
+            mySymmetric = symmetric;
+            setAnalysis (sa);
+            allocateWorkspace();
+            myState = ANALYZED;
+            return;
+         }
+      }
+
+      for (int i=0; i<size; i++) {
+         adjPtr[i+1] += adjPtr[i];
+      }
+      int[] adj = new int[adjPtr[size]];
+      int[] next = Arrays.copyOf (adjPtr, size);
+      for (int i=0; i<size; i++) {
+         for (int p=rowOffs[i]-1; p<rowOffs[i+1]-1; p++) {
+            int j = colIdxs[p]-1;
+            if (j != i) {
+               adj[next[i]++] = j;
+               adj[next[j]++] = i;
+            }
+         }
+      }
+      // remove duplicates, which arise for non-symmetric storage
+      int[] mark = new int[size];
+      Arrays.fill (mark, -1);
+      int cnt = 0;
+      for (int i=0; i<size; i++) {
+         int start = adjPtr[i];
+         adjPtr[i] = cnt;
+         mark[i] = i;
+         for (int p=start; p<adjPtr[i+1]; p++) {
+            int j = adj[p];
+            if (mark[j] != i) {
+               mark[j] = i;
+               adj[cnt++] = j;
+            }
+         }
+      }
+      adjPtr[size] = cnt;
+
+      myPerm = MinimumDegreeOrdering.computeOrdering (
+         size, adjPtr, adj, zeroDiag);
+
+      mySize = size;
+      myNumVals = numVals;
+      myType = type;
+      mySymmetric = symmetric;
+      buildPermutedMatrix (colIdxs, rowOffs);
+      // renumber the variables in a postorder of the elimination tree, which
+      // leaves the fill unchanged but makes the columns of each supernode
+      // contiguous
+      int[] post = postorder (computeEtree (computeUpperStructure()));
+      if (!isIdentity (post)) {
+         int[] perm = new int[size];
+         for (int k=0; k<size; k++) {
+            perm[k] = myPerm[post[k]];
+         }
+         myPerm = perm;
+         buildPermutedMatrix (colIdxs, rowOffs);
+      }
+      symbolicFactor();
+      allocateWorkspace();
+      if (key != null) {
+         SymbolicAnalysis sa = getAnalysis();
+         myAnalysisCache.put (key, sa, sa.getMemorySize());
+      }
+      myState = ANALYZED;
+   }
+
+   /**
+    * Builds the lower triangular part of the permuted matrix, by columns.
+    */
+   private void buildPermutedMatrix (int[] colIdxs, int[] rowOffs) {
+      int n = mySize;
+      int[] iperm = new int[n];
+      for (int k=0; k<n; k++) {
+         iperm[myPerm[k]] = k;
+      }
+      // bucket the entries by permuted column
+      int[] colPtr = new int[n+1];
+      for (int i=0; i<n; i++) {
+         for (int p=rowOffs[i]-1; p<rowOffs[i+1]-1; p++) {
+            int a = iperm[i];
+            int b = iperm[colIdxs[p]-1];
+            colPtr[Math.min(a,b)+1]++;
+         }
+      }
+      for (int j=0; j<n; j++) {
+         colPtr[j+1] += colPtr[j];
+      }
+      int[] rows = new int[myNumVals];
+      int[] srcs = new int[myNumVals];
+      int[] next = Arrays.copyOf (colPtr, n);
+      for (int i=0; i<n; i++) {
+         for (int p=rowOffs[i]-1; p<rowOffs[i+1]-1; p++) {
+            int a = iperm[i];
+            int b = iperm[colIdxs[p]-1];
+            int k;
+            if (a >= b) {
+               // entry of the lower triangle
+               k = next[b]++;
+               rows[k] = a;
+               srcs[k] = p;
+            }
+            else {
+               // entry of the upper triangle, encoded as a negative source
+               k = next[a]++;
+               rows[k] = b;
+               srcs[k] = (mySymmetric ? p : -p-1);
+            }
+         }
+      }
+      // merge entries for the same location
+      myAp = new int[n+1];
+      myAi = new int[myNumVals];
+      mySrcL = new int[myNumVals];
+      mySrcU = (mySymmetric ? null : new int[myNumVals]);
+      int[] slot = new int[n];
+      Arrays.fill (slot, -1);
+      int cnt = 0;
+      for (int j=0; j<n; j++) {
+         myAp[j] = cnt;
+         for (int k=colPtr[j]; k<colPtr[j+1]; k++) {
+            int i = rows[k];
+            int q = slot[i];
+            if (q < myAp[j]) {
+               q = cnt++;
+               slot[i] = q;
+               myAi[q] = i;
+               mySrcL[q] = -1;
+               if (mySrcU != null) {
+                  mySrcU[q] = -1;
+               }
+            }
+            if (srcs[k] >= 0) {
+               mySrcL[q] = srcs[k];
+            }
+            else {
+               mySrcU[q] = -srcs[k]-1;
+            }
+         }
+      }
+      myAp[n] = cnt;
+      myAx = new double[cnt];
+      myAux = (mySymmetric ? null : new double[cnt]);
+   }
+
+   /**
+    * Returns the structure of the strictly upper triangular part of the
+    * permuted matrix, stored by columns, as the two arrays
+    * <code>{ up, ui }</code>.
+    */
+   private int[][] computeUpperStructure() {
+      int n = mySize;
+      int[] up = new int[n+1];
+      for (int j=0; j<n; j++) {
+         for (int p=myAp[j]; p<myAp[j+1]; p++) {
+            if (myAi[p] != j) {
+               up[myAi[p]+1]++;
+            }
+         }
+      }
+      for (int i=0; i<n; i++) {
+         up[i+1] += up[i];
+      }
+      int[] ui = new int[up[n]];
+      int[] next = Arrays.copyOf (up, n);
+      for (int j=0; j<n; j++) {
+         for (int p=myAp[j]; p<myAp[j+1]; p++) {
+            int i = myAi[p];
+            if (i != j) {
+               ui[next[i]++] = j;
+            }
+         }
+      }
+      return new int[][] { up, ui };
+   }
+
+   /**
+    * Computes the elimination tree of the permuted matrix, given the
+    * structure of its upper triangular part.
+    */
+   private int[] computeEtree (int[][] ustruct) {
+      int n = mySize;
+      int[] up = ustruct[0];
+      int[] ui = ustruct[1];
+      int[] parent = new int[n];
+      int[] ancestor = new int[n];
+      for (int k=0; k<n; k++) {
+         parent[k] = -1;
+         ancestor[k] = -1;
+         for (int p=up[k]; p<up[k+1]; p++) {
+            int i = ui[p];
+            while (i != -1 && i < k) {
+               int inext = ancestor[i];
+               ancestor[i] = k;
+               if (inext == -1) {
+                  parent[i] = k;
+               }
+               i = inext;
+            }
+         }
+      }
+      return parent;
+   }
+
+   /**
+    * Computes a postorder of a tree, with the children of each node visited
+    * in increasing order.
+    */
+   private int[] postorder (int[] parent) {
+      int n = parent.length;
+      int[] head = new int[n];
+      int[] next = new int[n];
+      Arrays.fill (head, -1);
+      for (int j=n-1; j>=0; j--) {
+         if (parent[j] != -1) {
+            next[j] = head[parent[j]];
+            head[parent[j]] = j;
+         }
+      }
+      int[] post = new int[n];
+      int[] stack = new int[n];
+      int k = 0;
+      for (int root=0; root<n; root++) {
+         if (parent[root] != -1) {
+            continue;
+         }
+         int top = 0;
+         stack[0] = root;
+         while (top >= 0) {
+            int j = stack[top];
+            int child = head[j];
+            if (child == -1) {
+               post[k++] = j;
+               top--;
+            }
+            else {
+               head[j] = next[child];
+               stack[++top] = child;
+            }
+         }
+      }
+      return post;
+   }
+
+   private boolean isIdentity (int[] perm) {
+      for (int k=0; k<perm.length; k++) {
+         if (perm[k] != k) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Decides whether a supernode with <code>ncols</code> columns and
+    * <code>nzeros</code> explicitly stored zeros, out of a total of
+    * <code>nentries</code>, is acceptable when amalgamating supernodes.
+    * Small supernodes are allowed more zeros, since dense operations on them
+    * are relatively more efficient.
+    */
+   private boolean acceptAmalgamation (int ncols, long nzeros, long nentries) {
+      if (ncols <= 4) {
+         return true;
+      }
+      else if (ncols <= 16) {
+         return nzeros < 0.5*nentries;
+      }
+      else if (ncols <= 48) {
+         return nzeros < 0.1*nentries;
+      }
+      else {
+         return nzeros < 0.05*nentries;
+      }
+   }
+
+   /**
+    * Computes the elimination tree, the supernodes of L and their row
+    * structure, the supernodal updates, and the tree levels used for
+    * parallel factorization.
+    */
+   private void symbolicFactor() {
+      int n = mySize;
+      int[][] ustruct = computeUpperStructure();
+      int[] up = ustruct[0];
+      int[] ui = ustruct[1];
+      int[] parent = computeEtree (ustruct);
+
+      // column counts, traversing the row subtrees of L
+      int[] mark = new int[n];
+      Arrays.fill (mark, -1);
+      int[] colCnt = new int[n];
+      for (int k=0; k<n; k++) {
+         mark[k] = k;
+         for (int p=up[k]; p<up[k+1]; p++) {
+            for (int i=ui[p]; mark[i] != k; i=parent[i]) {
+               mark[i] = k;
+               colCnt[i]++;
+            }
+         }
+      }
+
+      // fundamental supernodes: column j joins the supernode of column j-1
+      // if it is the only child of j-1 and has the same structure
+      int[] nchild = new int[n];
+      for (int j=0; j<n; j++) {
+         if (parent[j] != -1) {
+            nchild[parent[j]]++;
+         }
+      }
+      int[] first = new int[n+1];
+      int ns = 0;
+      for (int j=0; j<n; j++) {
+         if (j == 0 || parent[j-1] != j || colCnt[j-1] != colCnt[j]+1 ||
+             nchild[j] != 1) {
+            first[ns++] = j;
+         }
+      }
+      first[ns] = n;
+
+      // amalgamate each supernode with its parent, if the parent immediately
+      // follows it and the number of explicit zeros remains acceptable
+      int[] cols = new int[ns+1];
+      int nsnodes = 0;
+      int gcols = 0;
+      long gentries = 0;
+      long gzeros = 0;
+      for (int s=0; s<ns; s++) {
+         int nc = first[s+1]-first[s];
+         long nb = colCnt[first[s+1]-1];
+         long entries = (long)nc*(nc+1)/2 + nc*nb;
+         if (s > 0 && parent[first[s]-1] == first[s]) {
+            int mcols = gcols + nc;
+            long mentries = (long)mcols*(mcols+1)/2 + mcols*nb;
+            long mzeros = mentries - (gentries - gzeros) - entries;
+            if (acceptAmalgamation (mcols, mzeros, mentries)) {
+               gcols = mcols;
+               gentries = mentries;
+               gzeros = mzeros;
+               continue;
+            }
+         }
+         cols[nsnodes++] = first[s];
+         gcols = nc;
+         gentries = entries;
+         gzeros = 0;
+      }
+      cols[nsnodes] = n;
+      ns = nsnodes;
+      myNumSnodes = ns;
+      mySnodeCols = Arrays.copyOf (cols, ns+1);
+      int[] snodeOf = new int[n];
+      for (int s=0; s<ns; s++) {
+         for (int j=mySnodeCols[s]; j<mySnodeCols[s+1]; j++) {
+            snodeOf[j] = s;
+         }
+      }
+
+      // row structure of each supernode, given by its columns followed by
+      // the structure of its last column
+      mySnodeRowPtr = new int[ns+1];
+      mySnodeValPtr = new int[ns+1];
+      long nrowsTotal = 0;
+      long nvalsTotal = 0;
+      long nnz = 0;
+      myMaxSnodeRows = 0;
+      for (int s=0; s<ns; s++) {
+         int nc = mySnodeCols[s+1]-mySnodeCols[s];
+         int nr = nc + colCnt[mySnodeCols[s+1]-1];
+         nrowsTotal += nr;
+         nvalsTotal += (long)nr*nc;
+         nnz += (long)nr*nc - (long)nc*(nc+1)/2;
+         if (nrowsTotal > Integer.MAX_VALUE || nvalsTotal > Integer.MAX_VALUE) {
+            throw new NumericalException (
+               "Factor is too large: number of non-zeros exceeds " +
+               Integer.MAX_VALUE);
+         }
+         mySnodeRowPtr[s+1] = (int)nrowsTotal;
+         mySnodeValPtr[s+1] = (int)nvalsTotal;
+         myMaxSnodeRows = Math.max (myMaxSnodeRows, nr);
+      }
+      myNumFactorNonZeros = nnz;
+      mySnodeRows = new int[(int)nrowsTotal];
+      int[] next = new int[ns];
+      for (int s=0; s<ns; s++) {
+         int k = mySnodeRowPtr[s];
+         for (int j=mySnodeCols[s]; j<mySnodeCols[s+1]; j++) {
+            mySnodeRows[k++] = j;
+         }
+         next[s] = k;
+      }
+      Arrays.fill (mark, -1);
+      for (int k=0; k<n; k++) {
+         mark[k] = k;
+         for (int p=up[k]; p<up[k+1]; p++) {
+            for (int i=ui[p]; mark[i] != k; i=parent[i]) {
+               mark[i] = k;
+               int s = snodeOf[i];
+               if (i == mySnodeCols[s+1]-1) {
+                  mySnodeRows[next[s]++] = k;
+               }
+            }
+         }
+      }
+      myLx = new double[(int)nvalsTotal];
+      myUx = (mySymmetric ? null : new double[(int)nvalsTotal]);
+      myD = new double[n];
+
+      // supernodal updates: the rows of supernode d below its diagonal block
+      // are divided into contiguous runs, each of which updates the supernode
+      // containing the corresponding columns
+      long[] snodeWork = new long[ns];
+      myUpdPtr = new int[ns+1];
+      for (int d=0; d<ns; d++) {
+         int rp = mySnodeRowPtr[d];
+         int end = mySnodeRowPtr[d+1];
+         for (int p=rp+mySnodeCols[d+1]-mySnodeCols[d]; p<end; ) {
+            int s = snodeOf[mySnodeRows[p]];
+            while (p < end && mySnodeRows[p] < mySnodeCols[s+1]) {
+               p++;
+            }
+            myUpdPtr[s+1]++;
+         }
+      }
+      for (int s=0; s<ns; s++) {
+         myUpdPtr[s+1] += myUpdPtr[s];
+      }
+      int nupd = myUpdPtr[ns];
+      myUpdSnode = new int[nupd];
+      myUpdStart = new int[nupd];
+      myUpdEnd = new int[nupd];
+      System.arraycopy (myUpdPtr, 0, next, 0, ns);
+      for (int d=0; d<ns; d++) {
+         int rp = mySnodeRowPtr[d];
+         int nr = mySnodeRowPtr[d+1]-rp;
+         int nc = mySnodeCols[d+1]-mySnodeCols[d];
+         for (int q=nc; q<nr; ) {
+            int s = snodeOf[mySnodeRows[rp+q]];
+            int q0 = q;
+            while (q < nr && mySnodeRows[rp+q] < mySnodeCols[s+1]) {
+               q++;
+            }
+            int u = next[s]++;
+            myUpdSnode[u] = d;
+            myUpdStart[u] = q0;
+            myUpdEnd[u] = q;
+            long nk = q-q0;
+            long m = nr-q0;
+            snodeWork[s] += nc*(nk*m - nk*(nk-1)/2);
+         }
+      }
+
+      // group the supernodes by their height in the supernodal elimination
+      // tree, and estimate the work for each group
+      int[] height = new int[ns];
+      int maxh = 0;
+      for (int s=0; s<ns; s++) {
+         int nc = mySnodeCols[s+1]-mySnodeCols[s];
+         int nr = mySnodeRowPtr[s+1]-mySnodeRowPtr[s];
+         snodeWork[s] += (long)nc*(nc+1)/2*nr;
+         int pcol = parent[mySnodeCols[s+1]-1];
+         if (pcol != -1) {
+            int ps = snodeOf[pcol];
+            height[ps] = Math.max (height[ps], height[s]+1);
+         }
+         maxh = Math.max (maxh, height[s]);
+      }
+      int nlevels = (ns > 0 ? maxh+1 : 0);
+      myLevelPtr = new int[nlevels+1];
+      myLevelWork = new long[nlevels];
+      for (int s=0; s<ns; s++) {
+         myLevelPtr[height[s]+1]++;
+         myLevelWork[height[s]] += snodeWork[s];
+      }
+      for (int l=0; l<nlevels; l++) {
+         myLevelPtr[l+1] += myLevelPtr[l];
+      }
+      myLevelNodes = new int[ns];
+      next = Arrays.copyOf (myLevelPtr, Math.max(nlevels,1));
+      for (int s=0; s<ns; s++) {
+         myLevelNodes[next[height[s]]++] = s;
+      }
+   }
+
+   private void allocateWorkspace() {
+      int n = mySize;
+      int nthreads = myNumThreads;
+      int maxr = myMaxSnodeRows;
+      if (myWork.length != nthreads ||
+          (nthreads > 0 && myRelMap[0].length < n) ||
+          (nthreads > 0 && myWork[0].length < maxr) ||
+          (!mySymmetric && myWorkU[0] == null)) {
+         myRelMap = new int[nthreads][];
+         myRelIdx = new int[nthreads][];
+         myWork = new double[nthreads][];
+         myWorkU = new double[nthreads][];
+         for (int t=0; t<nthreads; t++) {
+            myRelMap[t] = new int[n];
+            myRelIdx[t] = new int[maxr];
+            myWork[t] = new double[maxr];
+            if (!mySymmetric) {
+               myWorkU[t] = new double[maxr];
+            }
+         }
+         myThreadPerturbed = new int[nthreads];
+      }
+      if (myY.length < n) {
+         myY = new double[n];
+         myR = new double[n];
+         myBp = new double[n];
+      }
+   }
+
+   /**
+    * Performs a numeric factorization of the matrix associated with this
+    * solver, using the current numeric values contained within the matrix
+    * that was supplied by a previous call to {@link
+    * #analyze(maspack.matrix.Matrix,int,int) analyze(Matrix,int,int)}.
+    *
+    * @throws ImproperStateException if not preceded by a call to
+    * {@link #analyze(maspack.matrix.Matrix,int,int) analyze(Matrix,int,int)}
+    * @throws NumericalException if the matrix cannot be factored for numeric
+    * reasons.
+    */
+   public void factor() {
+      if (myMatrix == null) {
+         throw new ImproperStateException (
+            "analyze(Matrix) or analyzeAndFactor(Matrix) not previously called");
+      }
+      double[] vals = new double[myNumVals];
+      myMatrix.getCRSValues (vals, getPartition (myType), mySize, mySize);
+      factor (vals);
+   }
+
+   /**
+    * Performs a numeric factorization of the most recently analyzed matrix
+    * using the supplied numeric values, given in the same CRS order as
+    * was used for the analysis.
+    *
+    * @param vals non-zero matrix element values
+    * @throws IllegalStateException if this solver's state is
+    * {@link #UNSET UNSET}
+    * @throws IllegalArgumentException if the number of supplied values is
+    * less that the number of non-zero elements in the analyzed matrix.
+    * @throws NumericalException if the matrix cannot be factored for numeric
+    * reasons.
+    */
+   public void factor (double[] vals) {
+      if (myState == UNSET) {
+         throw new IllegalStateException ("No matrix currently set");
+      }
+      else if (vals.length < myNumVals) {
+         throw new IllegalArgumentException ("Not enough values: vals.length="
+         + vals.length + ", expected number is " + myNumVals);
+      }
+      myState = ANALYZED;
+      allocateWorkspace();
+      // load the permuted values and find the largest magnitude
+      double maxAbs = 0;
+      for (int p=0; p<myAp[mySize]; p++) {
+         int s = mySrcL[p];
+         double a = (s >= 0 ? vals[s] : 0);
+         myAx[p] = a;
+         maxAbs = Math.max (maxAbs, Math.abs(a));
+         if (myAux != null) {
+            s = mySrcU[p];
+            a = (s >= 0 ? vals[s] : 0);
+            myAux[p] = a;
+            maxAbs = Math.max (maxAbs, Math.abs(a));
+         }
+      }
+      myPivotTol = myPivotPerturbation*(maxAbs > 0 ? maxAbs : 1);
+
+      Arrays.fill (myThreadPerturbed, 0);
+      if (myNumThreads > 1 && myWorkers == null) {
+         myWorkers = new WorkerPool ("SparseLDLSolver", myNumThreads);
+      }
+      int nlevels = myLevelWork.length;
+      for (int l=0; l<nlevels; l++) {
+         final int start = myLevelPtr[l];
+         int nnodes = myLevelPtr[l+1]-start;
+         boolean parallel =
+            (myWorkers != null && myLevelWork[l] >= minParallelWork);
+         if (parallel && nnodes > 1) {
+            myWorkers.forEachIndex (nnodes, (tidx, idx) -> {
+                  int s = myLevelNodes[start+idx];
+                  assembleSupernode (s, tidx, 0, numSnodeCols(s));
+                  myThreadPerturbed[tidx] += factorPanel (s, tidx, null);
+               });
+         }
+         else if (parallel) {
+            // single supernode: divide its columns among the threads
+            final int s = myLevelNodes[start];
+            myWorkers.forEachRange (numSnodeCols(s), (tidx, c0, c1) -> {
+                  assembleSupernode (s, tidx, c0, c1);
+               });
+            myThreadPerturbed[0] += factorPanel (s, 0, myWorkers);
+         }
+         else {
+            for (int k=start; k<start+nnodes; k++) {
+               int s = myLevelNodes[k];
+               assembleSupernode (s, 0, 0, numSnodeCols(s));
+               myThreadPerturbed[0] += factorPanel (s, 0, null);
+            }
+         }
+      }
+      myNumPerturbed = 0;
+      for (int t=0; t<myThreadPerturbed.length; t++) {
+         myNumPerturbed += myThreadPerturbed[t];
+      }
+      myState = FACTORED;
+   }
+
+   private int numSnodeCols (int s) {
+      return mySnodeCols[s+1]-mySnodeCols[s];
+   }
+
+   /**
+    * Assembles columns <code>c0</code> to <code>c1-1</code> of the panel for
+    * supernode <code>s</code>, by loading the values of the permuted matrix
+    * and applying left-looking updates from all the supernodes that have
+    * rows within these columns. Each update is formed one target column at a
+    * time in a dense work vector, which is then scattered into the panel.
+    * The result does not depend on how the columns are divided among
+    * threads.
+    */
+   private void assembleSupernode (int s, int tidx, int c0, int c1) {
+      int[] rows = mySnodeRows;
+      double[] Lx = myLx;
+      double[] Ux = myUx;
+      double[] D = myD;
+      int f = mySnodeCols[s];
+      int nc = mySnodeCols[s+1]-f;
+      int rp = mySnodeRowPtr[s];
+      int nr = mySnodeRowPtr[s+1]-rp;
+      int vp = mySnodeValPtr[s];
+      int[] rel = myRelMap[tidx];
+      for (int r=0; r<nr; r++) {
+         rel[rows[rp+r]] = r;
+      }
+      Arrays.fill (Lx, vp+c0*nr, vp+c1*nr, 0);
+      if (Ux != null) {
+         Arrays.fill (Ux, vp+c0*nr, vp+c1*nr, 0);
+      }
+      for (int j=f+c0; j<f+c1; j++) {
+         int base = vp + (j-f)*nr;
+         for (int p=myAp[j]; p<myAp[j+1]; p++) {
+            int i = myAi[p];
+            Lx[base+rel[i]] = myAx[p];
+            if (Ux != null && i != j) {
+               Ux[base+rel[i]] = myAux[p];
+            }
+         }
+      }
+      int[] ridx = myRelIdx[tidx];
+      double[] x = myWork[tidx];
+      double[] xu = myWorkU[tidx];
+      for (int u=myUpdPtr[s]; u<myUpdPtr[s+1]; u++) {
+         int d = myUpdSnode[u];
+         int df = mySnodeCols[d];
+         int dnc = mySnodeCols[d+1]-df;
+         int drp = mySnodeRowPtr[d];
+         int dnr = mySnodeRowPtr[d+1]-drp;
+         int dvp = mySnodeValPtr[d];
+         int q0 = myUpdStart[u];
+         int q1 = myUpdEnd[u];
+         if (c0 > 0 || c1 < nc) {
+            while (q0 < q1 && rows[drp+q0] < f+c0) {
+               q0++;
+            }
+            while (q1 > q0 && rows[drp+q1-1] >= f+c1) {
+               q1--;
+            }
+            if (q0 == q1) {
+               continue;
+            }
+         }
+         int m = dnr-q0;
+         for (int i=0; i<m; i++) {
+            ridx[i] = rel[rows[drp+q0+i]];
+         }
+         for (int k=0; k<q1-q0; k++) {
+            // update the target column corresponding to row q0+k of d
+            Arrays.fill (x, k, m, 0);
+            if (Ux == null) {
+               int t = 0;
+               for ( ; t+3<dnc; t+=4) {
+                  int lb0 = dvp + t*dnr + q0;
+                  int lb1 = lb0 + dnr;
+                  int lb2 = lb1 + dnr;
+                  int lb3 = lb2 + dnr;
+                  double w0 = Lx[lb0+k]*D[df+t];
+                  double w1 = Lx[lb1+k]*D[df+t+1];
+                  double w2 = Lx[lb2+k]*D[df+t+2];
+                  double w3 = Lx[lb3+k]*D[df+t+3];
+                  for (int i=k; i<m; i++) {
+                     x[i] += (Lx[lb0+i]*w0 + Lx[lb1+i]*w1 +
+                              Lx[lb2+i]*w2 + Lx[lb3+i]*w3);
+                  }
+               }
+               for ( ; t<dnc; t++) {
+                  int lb = dvp + t*dnr + q0;
+                  double w = Lx[lb+k]*D[df+t];
+                  for (int i=k; i<m; i++) {
+                     x[i] += Lx[lb+i]*w;
+                  }
+               }
+            }
+            else {
+               Arrays.fill (xu, k, m, 0);
+               int t = 0;
+               for ( ; t+1<dnc; t+=2) {
+                  int lb0 = dvp + t*dnr + q0;
+                  int lb1 = lb0 + dnr;
+                  double wl0 = Ux[lb0+k]*D[df+t];
+                  double wl1 = Ux[lb1+k]*D[df+t+1];
+                  double wu0 = Lx[lb0+k]*D[df+t];
+                  double wu1 = Lx[lb1+k]*D[df+t+1];
+                  for (int i=k; i<m; i++) {
+                     x[i] += Lx[lb0+i]*wl0 + Lx[lb1+i]*wl1;
+                  }
+                  for (int i=k+1; i<m; i++) {
+                     xu[i] += Ux[lb0+i]*wu0 + Ux[lb1+i]*wu1;
+                  }
+               }
+               for ( ; t<dnc; t++) {
+                  int lb = dvp + t*dnr + q0;
+                  double wl = Ux[lb+k]*D[df+t];
+                  double wu = Lx[lb+k]*D[df+t];
+                  for (int i=k; i<m; i++) {
+                     x[i] += Lx[lb+i]*wl;
+                  }
+                  for (int i=k+1; i<m; i++) {
+                     xu[i] += Ux[lb+i]*wu;
+                  }
+               }
+            }
+            int base = vp + ridx[k]*nr;
+            for (int i=k; i<m; i++) {
+               Lx[base+ridx[i]] -= x[i];
+            }
+            if (Ux != null) {
+               for (int i=k+1; i<m; i++) {
+                  Ux[base+ridx[i]] -= xu[i];
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Factors the assembled panel for supernode <code>s</code>, computing the
+    * diagonal entries and the columns of L (and U) for the supernode. The
+    * columns are processed in blocks, and if <code>workers</code> is
+    * non-null, the updates of the columns to the right of each block are
+    * divided among its threads. Returns the number of pivots that had to be
+    * perturbed.
+    */
+   private int factorPanel (int s, int tidx, WorkerPool workers) {
+      int nc = numSnodeCols (s);
+      int perturbed = 0;
+      for (int b0=0; b0<nc; b0+=PANEL_BLOCK_SIZE) {
+         final int cb0 = b0;
+         final int cb1 = Math.min (nc, b0+PANEL_BLOCK_SIZE);
+         for (int c=cb0; c<cb1; c++) {
+            perturbed += factorPanelColumn (s, c);
+            updatePanelColumns (s, tidx, c, c+1, c+1, cb1);
+         }
+         if (cb1 < nc) {
+            if (workers != null) {
+               workers.forEachRange (nc-cb1, (t, k0, k1) -> {
+                     updatePanelColumns (s, t, cb0, cb1, cb1+k0, cb1+k1);
+                  });
+            }
+            else {
+               updatePanelColumns (s, tidx, cb0, cb1, cb1, nc);
+            }
+         }
+      }
+      return perturbed;
+   }
+
+   /**
+    * Computes the pivot for column <code>c</code> of the panel for
+    * supernode <code>s</code> and scales the column. Returns 1 if the pivot
+    * had to be perturbed and 0 otherwise.
+    */
+   private int factorPanelColumn (int s, int c) {
+      int f = mySnodeCols[s];
+      int nr = mySnodeRowPtr[s+1]-mySnodeRowPtr[s];
+      int base = mySnodeValPtr[s] + c*nr;
+      double[] Lx = myLx;
+      double d = Lx[base+c];
+      int perturbed = 0;
+      if ((myType & Matrix.POSITIVE_DEFINITE) != 0 &&
+          (myType & Matrix.SYMMETRIC) != 0 && !(d > 0)) {
+         throw new NumericalException (
+            "Matrix is not positive definite: pivot "+d+" at column "+(f+c));
+      }
+      if (!(Math.abs(d) >= myPivotTol)) {
+         d = (d < 0 ? -myPivotTol : myPivotTol);
+         perturbed = 1;
+      }
+      myD[f+c] = d;
+      Lx[base+c] = d;
+      for (int r=c+1; r<nr; r++) {
+         Lx[base+r] /= d;
+      }
+      if (myUx != null) {
+         double[] Ux = myUx;
+         for (int r=c+1; r<nr; r++) {
+            Ux[base+r] /= d;
+         }
+      }
+      return perturbed;
+   }
+
+   /**
+    * Updates columns <code>k0</code> to <code>k1-1</code> of the panel for
+    * supernode <code>s</code> using the factored columns <code>c0</code> to
+    * <code>c1-1</code>.
+    */
+   private void updatePanelColumns (
+      int s, int tidx, int c0, int c1, int k0, int k1) {
+      int f = mySnodeCols[s];
+      int nr = mySnodeRowPtr[s+1]-mySnodeRowPtr[s];
+      int vp = mySnodeValPtr[s];
+      double[] Lx = myLx;
+      double[] Ux = myUx;
+      double[] D = myD;
+      // each target column is accumulated in a separate work vector, which
+      // allows the inner loops to be vectorized
+      double[] x = myWork[tidx];
+      double[] xu = myWorkU[tidx];
+      for (int k=k0; k<k1; k++) {
+         int base = vp + k*nr;
+         System.arraycopy (Lx, base+k, x, k, nr-k);
+         if (Ux == null) {
+            int c = c0;
+            for ( ; c+3<c1; c+=4) {
+               int cb0 = vp + c*nr;
+               int cb1 = cb0 + nr;
+               int cb2 = cb1 + nr;
+               int cb3 = cb2 + nr;
+               double w0 = Lx[cb0+k]*D[f+c];
+               double w1 = Lx[cb1+k]*D[f+c+1];
+               double w2 = Lx[cb2+k]*D[f+c+2];
+               double w3 = Lx[cb3+k]*D[f+c+3];
+               for (int r=k; r<nr; r++) {
+                  x[r] -= (Lx[cb0+r]*w0 + Lx[cb1+r]*w1 +
+                           Lx[cb2+r]*w2 + Lx[cb3+r]*w3);
+               }
+            }
+            for ( ; c<c1; c++) {
+               int cb = vp + c*nr;
+               double w = Lx[cb+k]*D[f+c];
+               for (int r=k; r<nr; r++) {
+                  x[r] -= Lx[cb+r]*w;
+               }
+            }
+         }
+         else {
+            System.arraycopy (Ux, base+k, xu, k, nr-k);
+            int c = c0;
+            for ( ; c+1<c1; c+=2) {
+               int cb0 = vp + c*nr;
+               int cb1 = cb0 + nr;
+               double wl0 = Ux[cb0+k]*D[f+c];
+               double wl1 = Ux[cb1+k]*D[f+c+1];
+               double wu0 = Lx[cb0+k]*D[f+c];
+               double wu1 = Lx[cb1+k]*D[f+c+1];
+               for (int r=k; r<nr; r++) {
+                  x[r] -= Lx[cb0+r]*wl0 + Lx[cb1+r]*wl1;
+               }
+               for (int r=k+1; r<nr; r++) {
+                  xu[r] -= Ux[cb0+r]*wu0 + Ux[cb1+r]*wu1;
+               }
+            }
+            for ( ; c<c1; c++) {
+               int cb = vp + c*nr;
+               double wl = Ux[cb+k]*D[f+c];
+               double wu = Lx[cb+k]*D[f+c];
+               for (int r=k; r<nr; r++) {
+                  x[r] -= Lx[cb+r]*wl;
+               }
+               for (int r=k+1; r<nr; r++) {
+                  xu[r] -= Ux[cb+r]*wu;
+               }
+            }
+            System.arraycopy (xu, k, Ux, base+k, nr-k);
+         }
+         System.arraycopy (x, k, Lx, base+k, nr-k);
+      }
+   }
+
+   /**
+    * Convenience method that sets the matrix associated with this solver,
+    * performs symbolic analysis on it, and factors it. The matrix is
+    * assumed to be square and have a type of
+    * <code>Matrix.INDEFINITE</code>.
+    *
+    * @throws NumericalException if the matrix cannot be factored for
+    * numeric reasons.
+    */
+   public void analyzeAndFactor (Matrix M) {
+      analyze (M, M.rowSize(), 0);
+      factor();
+   }
+
+   /**
+    * Factors the matrix supplied by a previous call to {@link
+    * #analyze(maspack.matrix.Matrix,int,int) analyze(Matrix,int,int)} and
+    * solves the system. Iterative solving is not supported, and so
+    * <code>tolExp</code> is ignored.
+    */
+   public void autoFactorAndSolve (VectorNd x, VectorNd b, int tolExp) {
+      factor();
+      solve (x, b);
+   }
+
+   /**
+    * Returns <code>false</code>, since this solver does not support
+    * auto-iterative solving.
+    */
+   public boolean hasAutoIterativeSolving() {
+      return false;
+   }
+
+   private void checkSolveArgs (int xsize, int bsize) {
+      if (myState != FACTORED) {
+         throw new IllegalStateException ("Matrix is not factored");
+      }
+      if (xsize < mySize) {
+         throw new IllegalArgumentException (
+            "x is too small: size="+xsize+", expected size is " + mySize);
+      }
+      else if (bsize < mySize) {
+         throw new IllegalArgumentException (
+            "b is too small: size="+bsize+", expected size is " + mySize);
+      }
+   }
+
+   /**
+    * Solves the matrix associated with this solver for x, given a
+    * specific right-hand-side b. It is assumed that the matrix
+    * has been factored.
+    *
+    * @param x returns the solution value
+    * @param b supplies the right-hand-side
+    * @throws IllegalStateException if the matrix has not been factored
+    * @throws IllegalArgumentException if the dimensions of <code>x</code> or
+    * <code>b</code> are incompatible with the matrix size.
+    */
+   public void solve (VectorNd x, VectorNd b) {
+      checkSolveArgs (x.size(), b.size());
+      solve (x.getBuffer(), b.getBuffer());
+   }
+
+   /**
+    * Solves the matrix associated with this solver for x, given a
+    * specific right-hand-side b. It is assumed that the matrix
+    * has been factored.
+    *
+    * @param x returns the solution value
+    * @param b supplies the right-hand-side
+    * @throws IllegalStateException if the matrix has not been factored
+    * @throws IllegalArgumentException if the dimensions of <code>x</code> or
+    * <code>b</code> are incompatible with the matrix size.
+    */
+   public void solve (double[] x, double[] b) {
+      checkSolveArgs (x.length, b.length);
+      int n = mySize;
+      double[] y = myY;
+      double[] bp = myBp;
+      for (int k=0; k<n; k++) {
+         bp[k] = b[myPerm[k]];
+         y[k] = bp[k];
+      }
+      solvePermuted (y);
+      myNumRefinementSteps = 0;
+      if (myNumPerturbed > 0) {
+         double[] r = myR;
+         for (int s=0; s<myMaxRefinementSteps; s++) {
+            computeResidual (r, y, bp);
+            solvePermuted (r);
+            for (int k=0; k<n; k++) {
+               y[k] += r[k];
+            }
+            myNumRefinementSteps++;
+         }
+      }
+      for (int k=0; k<n; k++) {
+         x[myPerm[k]] = y[k];
+      }
+   }
+
+   /**
+    * Solves L D U y = b in place, for the permuted system.
+    */
+   private void solvePermuted (double[] y) {
+      int[] rows = mySnodeRows;
+      double[] Lx = myLx;
+      int ns = myNumSnodes;
+      for (int s=0; s<ns; s++) {
+         int f = mySnodeCols[s];
+         int nc = mySnodeCols[s+1]-f;
+         int rp = mySnodeRowPtr[s];
+         int nr = mySnodeRowPtr[s+1]-rp;
+         for (int c=0; c<nc; c++) {
+            double yc = y[f+c];
+            if (yc != 0) {
+               int base = mySnodeValPtr[s] + c*nr;
+               for (int r=c+1; r<nr; r++) {
+                  y[rows[rp+r]] -= Lx[base+r]*yc;
+               }
+            }
+         }
+      }
+      for (int j=0; j<mySize; j++) {
+         y[j] /= myD[j];
+      }
+      double[] Ux = (mySymmetric ? Lx : myUx);
+      for (int s=ns-1; s>=0; s--) {
+         int f = mySnodeCols[s];
+         int nc = mySnodeCols[s+1]-f;
+         int rp = mySnodeRowPtr[s];
+         int nr = mySnodeRowPtr[s+1]-rp;
+         for (int c=nc-1; c>=0; c--) {
+            int base = mySnodeValPtr[s] + c*nr;
+            double yc = y[f+c];
+            for (int r=c+1; r<nr; r++) {
+               yc -= Ux[base+r]*y[rows[rp+r]];
+            }
+            y[f+c] = yc;
+         }
+      }
+   }
+
+   /**
+    * Computes r = b - A y for the permuted system.
+    */
+   private void computeResidual (double[] r, double[] y, double[] b) {
+      int n = mySize;
+      System.arraycopy (b, 0, r, 0, n);
+      double[] Aux = (mySymmetric ? myAx : myAux);
+      for (int j=0; j<n; j++) {
+         double yj = y[j];
+         double rj = 0;
+         for (int p=myAp[j]; p<myAp[j+1]; p++) {
+            int i = myAi[p];
+            r[i] -= myAx[p]*yj;
+            if (i != j) {
+               rj += Aux[p]*y[i];
+            }
+         }
+         r[j] -= rj;
+      }
+   }
+
+   /**
+    * Releases the resources used by this solver.
+    */
+   public void dispose() {
+      if (myWorkers != null) {
+         myWorkers.shutdown();
+         myWorkers = null;
+      }
+      myState = UNSET;
+      myMatrix = null;
+      myLx = null;
+      myUx = null;
+      mySnodeRows = null;
+      myUpdSnode = null;
+      myUpdStart = null;
+      myUpdEnd = null;
+      myRelMap = new int[0][];
+      myRelIdx = new int[0][];
+      myWork = new double[0][];
+      myWorkU = new double[0][];
+   }
+}
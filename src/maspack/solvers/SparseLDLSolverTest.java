@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import maspack.matrix.Matrix;
+import maspack.matrix.Matrix3x1Block;
+import maspack.matrix.Matrix3x3Block;
+import maspack.matrix.SparseBlockMatrix;
+import maspack.matrix.VectorNd;
+import maspack.util.FunctionTimer;
+import maspack.util.RandomGenerator;
+import maspack.util.TestException;
+import maspack.util.UnitTest;
+
+/**
+ * Tests SparseLDLSolver on symmetric, non-symmetric and KKT systems with
+ * the structure of a hexahedral FEM grid. Run with the argument
+ * <code>-timing</code> to instead time the analyze, factor and solve phases
+ * for grids of increasing size.
+ */
+public class SparseLDLSolverTest extends UnitTest {
+
+   private static double EPS = 1e-10;
+
+   private Matrix3x3Block getBlock (SparseBlockMatrix S, int bi, int bj) {
+      Matrix3x3Block blk = (Matrix3x3Block)S.getBlock (bi, bj);
+      if (blk == null) {
+         blk = new Matrix3x3Block();
+         S.addBlock (bi, bj, blk);
+      }
+      return blk;
+   }
+
+   private int nodeIndex (int i, int j, int k, int n) {
+      return i + (n+1)*(j + (n+1)*k);
+   }
+
+   /**
+    * Creates a stiffness-like matrix for a grid of (n+1)^3 nodes, coupling
+    * each node to its 26 neighbors. If <code>symmetric</code> is false,
+    * random non-symmetric perturbations are added.
+    */
+   SparseBlockMatrix createGridMatrix (int n, boolean symmetric) {
+      int numNodes = (n+1)*(n+1)*(n+1);
+      int[] sizes = new int[numNodes];
+      for (int i=0; i<numNodes; i++) {
+         sizes[i] = 3;
+      }
+      SparseBlockMatrix S = new SparseBlockMatrix (sizes, sizes);
+      Matrix3x3Block C = new Matrix3x3Block();
+      Matrix3x3Block K = new Matrix3x3Block();
+      for (int k=0; k<=n; k++) {
+         for (int j=0; j<=n; j++) {
+            for (int i=0; i<=n; i++) {
+               int a = nodeIndex (i, j, k, n);
+               for (int dk=0; dk<=1; dk++) {
+                  for (int dj=-1; dj<=1; dj++) {
+                     for (int di=-1; di<=1; di++) {
+                        if (i+di < 0 || i+di > n || j+dj < 0 || j+dj > n ||
+                            k+dk > n) {
+                           continue;
+                        }
+                        int b = nodeIndex (i+di, j+dj, k+dk, n);
+                        if (b <= a) {
+                           continue;
+                        }
+                        C.setRandom();
+                        K.mulTransposeLeft (C, C);
+                        getBlock (S, a, a).add (K);
+                        getBlock (S, b, b).add (K);
+                        getBlock (S, a, b).sub (K);
+                        getBlock (S, b, a).sub (K);
+                        if (!symmetric) {
+                           C.setRandom();
+                           C.scale (0.1);
+                           getBlock (S, a, b).add (C);
+                           C.setRandom();
+                           C.scale (0.1);
+                           getBlock (S, b, a).add (C);
+                        }
+                     }
+                  }
+               }
+            }
+         }
+      }
+      for (int a=0; a<numNodes; a++) {
+         Matrix3x3Block blk = getBlock (S, a, a);
+         blk.m00 += 1.0;
+         blk.m11 += 1.0;
+         blk.m22 += 1.0;
+      }
+      return S;
+   }
+
+   /**
+    * Creates a constraint matrix GT with <code>numc</code> constraints,
+    * each coupling two random nodes.
+    */
+   SparseBlockMatrix createConstraints (int numNodes, int numc) {
+      int[] rowSizes = new int[numNodes];
+      int[] colSizes = new int[numc];
+      for (int i=0; i<numNodes; i++) {
+         rowSizes[i] = 3;
+      }
+      for (int j=0; j<numc; j++) {
+         colSizes[j] = 1;
+      }
+      SparseBlockMatrix GT = new SparseBlockMatrix (rowSizes, colSizes);
+      for (int j=0; j<numc; j++) {
+         int a = RandomGenerator.nextInt (0, numNodes-1);
+         int b = RandomGenerator.nextInt (0, numNodes-1);
+         GT.addBlock (a, j, createRandomColumn());
+         if (b != a) {
+            GT.addBlock (b, j, createRandomColumn());
+         }
+      }
+      return GT;
+   }
+
+   private Matrix3x1Block createRandomColumn() {
+      Matrix3x1Block blk = new Matrix3x1Block();
+      for (int i=0; i<3; i++) {
+         blk.set (i, 0, RandomGenerator.nextDouble (-1, 1));
+      }
+      return blk;
+   }
+
+   double residual (Matrix M, VectorNd x, VectorNd b) {
+      VectorNd r = new VectorNd (b.size());
+      M.mul (r, x);
+      r.sub (b);
+      return r.norm()/b.norm();
+   }
+
+   void testMatrix (String name, SparseBlockMatrix M, int type) {
+      int size = M.rowSize();
+      VectorNd b = new VectorNd (size);
+      VectorNd x = new VectorNd (size);
+      b.setRandom();
+
+      SparseLDLSolver solver = new SparseLDLSolver();
+      solver.setNumThreads (1);
+      solver.analyze (M, size, type);
+      solver.factor();
+      solver.solve (x, b);
+      double res = residual (M, x, b);
+      if (res > EPS) {
+         throw new TestException (
+            name + ": relative residual is " + res + ", expected < " + EPS);
+      }
+
+      // factor again using several threads, forcing parallel execution of
+      // all tree levels; the result should be identical
+      int saveMinWork = SparseLDLSolver.minParallelWork;
+      SparseLDLSolver.minParallelWork = 0;
+      VectorNd xpar = new VectorNd (size);
+      solver.setNumThreads (4);
+      solver.factor();
+      solver.solve (xpar, b);
+      SparseLDLSolver.minParallelWork = saveMinWork;
+      if (!xpar.equals (x)) {
+         throw new TestException (
+            name + ": multithreaded solution differs from serial solution");
+      }
+      solver.dispose();
+   }
+
+   void testKKT (String name, int n, int numc, boolean regularize, int type) {
+      SparseBlockMatrix M = createGridMatrix (n, (type & Matrix.SYMMETRIC) != 0);
+      int sizeM = M.rowSize();
+      SparseBlockMatrix GT = createConstraints (M.numBlockRows(), numc);
+      VectorNd Rg = new VectorNd (numc);
+      if (regularize) {
+         Rg.setRandom (0.001, 0.01);
+      }
+      VectorNd bm = new VectorNd (sizeM);
+      VectorNd bg = new VectorNd (numc);
+      VectorNd vel = new VectorNd (sizeM);
+      VectorNd lam = new VectorNd (numc);
+      bm.setRandom();
+      bg.setRandom();
+
+      KKTSolver solver = new KKTSolver (KKTSolver.SolverType.SparseLDL);
+      solver.analyze (M, sizeM, GT, Rg, type);
+      solver.factor (M, sizeM, GT, Rg);
+      solver.solve (vel, lam, bm, bg);
+      double res = solver.residual (
+         M, sizeM, GT, Rg, null, null, vel, lam, null, bm, bg, null);
+      double bnorm = Math.sqrt (bm.dot(bm) + bg.dot(bg));
+      if (res > EPS*bnorm) {
+         throw new TestException (
+            name + ": relative residual is " + res/bnorm +
+            ", expected < " + EPS);
+      }
+      solver.dispose();
+   }
+
+   VectorNd solve (SparseLDLSolver solver, SparseBlockMatrix M, VectorNd b) {
+      VectorNd x = new VectorNd (M.rowSize());
+      solver.analyze (M, M.rowSize(), Matrix.SYMMETRIC);
+      solver.factor();
+      solver.solve (x, b);
+      double res = residual (M, x, b);
+      if (res > EPS) {
+         throw new TestException (
+            "relative residual is " + res + ", expected < " + EPS);
+      }
+      return x;
+   }
+
+   void testAnalysisCache() {
+      SymbolicAnalysisCache cache =
+         new SymbolicAnalysisCache (SymbolicAnalysisCache.DEFAULT_MAX_MEMORY_SIZE);
+      SparseLDLSolver solver = new SparseLDLSolver();
+      solver.setNumThreads (1);
+      solver.setAnalysisCache (cache);
+      SparseLDLSolver uncached = new SparseLDLSolver();
+      uncached.setNumThreads (1);
+      uncached.setAnalysisCache (null);
+
+      SparseBlockMatrix A = createGridMatrix (3, true);
+      SparseBlockMatrix B = createGridMatrix (4, true);
+      VectorNd bA = new VectorNd (A.rowSize());
+      VectorNd bB = new VectorNd (B.rowSize());
+      bA.setRandom();
+      bB.setRandom();
+
+      solve (solver, A, bA);
+      solve (solver, B, bB);
+      checkEquals ("misses", cache.getNumMisses(), 2L);
+      checkEquals ("hits", cache.getNumHits(), 0L);
+      checkEquals ("entries", cache.numEntries(), 2);
+
+      // same structure with new values should reuse the analysis and give
+      // the same result as an uncached analysis
+      SparseBlockMatrix A2 = createGridMatrix (3, true);
+      VectorNd x = solve (solver, A2, bA);
+      checkEquals ("hits", cache.getNumHits(), 1L);
+      VectorNd xchk = solve (uncached, A2, bA);
+      if (!x.equals (xchk)) {
+         throw new TestException (
+            "solution using cached analysis differs from uncached solution");
+      }
+      checkEquals ("nonzeros in factors",
+         solver.getNumNonZerosInFactors(), uncached.getNumNonZerosInFactors());
+
+      // a non-symmetric analysis of the same structure is a different entry
+      solver.analyze (A2, A2.rowSize(), Matrix.INDEFINITE);
+      checkEquals ("misses", cache.getNumMisses(), 3L);
+
+      // shrinking the cache should evict the least recently used entries
+      long size = cache.getMemorySize();
+      cache.setMaxMemorySize (size-1);
+      check ("no evictions", cache.getNumEvictions() > 0);
+      check ("memory size not reduced", cache.getMemorySize() < size);
+      cache.clear();
+      checkEquals ("entries after clear", cache.numEntries(), 0);
+      solver.dispose();
+      uncached.dispose();
+   }
+
+   public void test() {
+      testAnalysisCache();
+      testMatrix ("SPD grid", createGridMatrix (5, true), Matrix.SPD);
+      testMatrix ("symmetric grid", createGridMatrix (5, true), Matrix.SYMMETRIC);
+      testMatrix (
+         "non-symmetric grid", createGridMatrix (5, false), Matrix.INDEFINITE);
+
+      testKKT ("symmetric KKT", 4, 40, false, Matrix.SYMMETRIC);
+      testKKT ("regularized KKT", 4, 40, true, Matrix.SYMMETRIC);
+      testKKT ("non-symmetric KKT", 4, 40, false, Matrix.INDEFINITE);
+   }
+
+   public void timing() {
+      FunctionTimer timer = new FunctionTimer();
+      int[] threadCounts = new int[] { 1, 2, 4, 8 };
+      int cnt = 5;
+
+      System.out.println ("SPD grid factor timing (msec):");
+      System.out.print ("    size   nnz(L)  analyze");
+      for (int nthreads : threadCounts) {
+         System.out.printf ("   %d thread%s", nthreads, nthreads>1 ? "s" : " ");
+      }
+      System.out.println ("    solve");
+      for (int n=4; n<=16; n += 4) {
+         SparseBlockMatrix M = createGridMatrix (n, true);
+         int size = M.rowSize();
+         SparseLDLSolver solver = new SparseLDLSolver();
+         timer.start();
+         solver.analyze (M, size, Matrix.SYMMETRIC);
+         timer.stop();
+         System.out.printf (
+            "%8d %8d %8.2f", size, solver.getNumNonZerosInFactors(),
+            timer.getTimeUsec()/1000.0);
+         for (int nthreads : threadCounts) {
+            solver.setNumThreads (nthreads);
+            solver.factor(); // warm up
+            timer.start();
+            for (int i=0; i<cnt; i++) {
+               solver.factor();
+            }
+            timer.stop();
+            System.out.printf ("%11.2f", timer.getTimeUsec()/(1000.0*cnt));
+         }
+         VectorNd b = new VectorNd (size);
+         VectorNd x = new VectorNd (size);
+         b.setRandom();
+         timer.start();
+         for (int i=0; i<cnt; i++) {
+            solver.solve (x, b);
+         }
+         timer.stop();
+         System.out.printf ("%9.2f\n", timer.getTimeUsec()/(1000.0*cnt));
+         solver.dispose();
+      }
+   }
+
+   public static void main (String[] args) {
+      SparseLDLSolverTest tester = new SparseLDLSolverTest();
+      RandomGenerator.setSeed (0x1234);
+      if (args.length > 0 && args[0].equals ("-timing")) {
+         tester.timing();
+      }
+      else {
+         tester.runtest();
+      }
+   }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2014, by the Authors: John E Lloyd (UBC)
+ *
+ * This software is freely available under a 2-clause BSD license. Please see
+ * the LICENSE file in the ArtiSynth distribution directory for details.
+ */
+package maspack.solvers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of symbolic matrix analyses (such as
+ * fill-reducing orderings and symbolic factorizations), keyed on the sparsity
+ * structure of the matrix being analyzed. This allows a solver presented
+ * with a previously seen structure, such as when a set of contacts or
+ * constraints recurs, to reuse an earlier analysis instead of recomputing
+ * it. The total memory used by the cached analyses is bounded, with the
+ * least recently used entries being discarded when the bound is exceeded.
+ *
+ * <p>Structures are described in compressed row storage (CRS) format,
+ * together with an optional set of flags (such as which diagonal entries
+ * are zero) that also affect the analysis. Keys are compared exactly, so
+ * that hash collisions cannot cause an incorrect analysis to be returned.
+ * Cached analyses are shared between solvers and must not be modified.
+ *
+ * <p>A default cache, shared by all solvers within the process, is
+ * returned by {@link #getDefault}. All methods are thread-safe.
+ */
+public class SymbolicAnalysisCache {
+
+   /**
+    * Default maximum memory size, in bytes, for the default cache.
+    */
+   public static final long DEFAULT_MAX_MEMORY_SIZE = 64*1024*1024;
+
+   private static SymbolicAnalysisCache myDefault =
+      new SymbolicAnalysisCache (DEFAULT_MAX_MEMORY_SIZE);
+
+   private long myMaxMemorySize;
+   private long myMemorySize;
+   private long myNumHits;
+   private long myNumMisses;
+   private long myNumEvictions;
+
+   private LinkedHashMap<Key,Entry> myMap =
+      new LinkedHashMap<Key,Entry> (16, 0.75f, /*accessOrder=*/true);
+
+   /**
+    * Key describing the structure of an analyzed matrix. A key created by
+    * {@link #createKey} refers to the caller's arrays, which are copied only
+    * if the key is added to the cache.
+    */
+   public static class Key {
+      int mySize;
+      int myType;
+      int myNumVals;
+      int[] myRowOffs;
+      int[] myColIdxs;
+      boolean[] myFlags;
+      int myHash;
+      boolean myOwnsArrays;
+
+      Key (int size, int type, int[] rowOffs, int[] colIdxs, int numVals,
+           boolean[] flags) {
+         mySize = size;
+         myType = type;
+         myNumVals = numVals;
+         myRowOffs = rowOffs;
+         myColIdxs = colIdxs;
+         myFlags = flags;
+         myHash = computeHash();
+      }
+
+      private int computeHash() {
+         int h = 31*mySize + myType;
+         h = 31*h + myNumVals;
+         int off0 = myRowOffs[0];
+         for (int i=0; i<=mySize; i++) {
+            h = 31*h + (myRowOffs[i]-off0);
+         }
+         for (int k=0; k<myNumVals; k++) {
+            h = 31*h + myColIdxs[k];
+         }
+         if (myFlags != null) {
+            for (int i=0; i<mySize; i++) {
+               h = 31*h + (myFlags[i] ? 1 : 0);
+            }
+         }
+         return h;
+      }
+
+      void copyArrays() {
+         if (!myOwnsArrays) {
+            int[] rowOffs = new int[mySize+1];
+            int off0 = myRowOffs[0];
+            for (int i=0; i<=mySize; i++) {
+               rowOffs[i] = myRowOffs[i]-off0;
+            }
+            myRowOffs = rowOffs;
+            int[] colIdxs = new int[myNumVals];
+            System.arraycopy (myColIdxs, 0, colIdxs, 0, myNumVals);
+            myColIdxs = colIdxs;
+            if (myFlags != null) {
+               boolean[] flags = new boolean[mySize];
+               System.arraycopy (myFlags, 0, flags, 0, mySize);
+               myFlags = flags;
+            }
+            myOwnsArrays = true;
+         }
+      }
+
+      long getMemorySize() {
+         return 4L*(mySize+1) + 4L*myNumVals + (myFlags != null ? mySize : 0);
+      }
+
+      public int hashCode() {
+         return myHash;
+      }
+
+      public boolean equals (Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key key = (Key)obj;
+         if (key.myHash != myHash ||
+             key.mySize != mySize ||
+             key.myType != myType ||
+             key.myNumVals != myNumVals ||
+             (key.myFlags == null) != (myFlags == null)) {
+            return false;
+         }
+         int off0 = myRowOffs[0];
+         int keyOff0 = key.myRowOffs[0];
+         for (int i=0; i<=mySize; i++) {
+            if (myRowOffs[i]-off0 != key.myRowOffs[i]-keyOff0) {
+               return false;
+            }
+         }
+         for (int k=0; k<myNumVals; k++) {
+            if (myColIdxs[k] != key.myColIdxs[k]) {
+               return false;
+            }
+         }
+         if (myFlags != null) {
+            for (int i=0; i<mySize; i++) {
+               if (myFlags[i] != key.myFlags[i]) {
+                  return false;
+               }
+            }
+         }
+         return true;
+      }
+   }
+
+   private static class Entry {
+      Object myAnalysis;
+      long myMemorySize;
+
+      Entry (Object analysis, long size) {
+         myAnalysis = analysis;
+         myMemorySize = size;
+      }
+   }
+
+   /**
+    * Creates a new cache with a specified maximum memory size.
+    *
+    * @param maxMemorySize maximum memory size, in bytes
+    */
+   public SymbolicAnalysisCache (long maxMemorySize) {
+      myMaxMemorySize = maxMemorySize;
+   }
+
+   /**
+    * Returns the default cache, which is shared by all solvers that do not
+    * specify their own cache.
+    *
+    * @return default cache
+    */
+   public static SymbolicAnalysisCache getDefault() {
+      return myDefault;
+   }
+
+   /**
+    * Creates a key for a matrix structure given in CRS format. The indices
+    * may be either 0 or 1-based, but must be consistent between keys that
+    * are to be compared. The key refers to the supplied arrays, which must
+    * not be modified until the key is either discarded or passed to {@link
+    * #put}.
+    *
+    * @param size number of rows in the matrix
+    * @param type type code for the analysis, such as whether the matrix is
+    * symmetric
+    * @param rowOffs row start offsets (of length at least
+    * <code>size+1</code>)
+    * @param colIdxs column indices of the non-zero elements
+    * @param numVals number of non-zero elements
+    * @param flags optional per-row flags that also affect the analysis,
+    * or <code>null</code>
+    * @return key for the structure
+    */
+   public Key createKey (
+      int size, int type, int[] rowOffs, int[] colIdxs, int numVals,
+      boolean[] flags) {
+      return new Key (size, type, rowOffs, colIdxs, numVals, flags);
+   }
+
+   /**
+    * Returns the analysis associated with a key, or <code>null</code> if
+    * there is none. Updates the hit and miss counts accordingly.
+    *
+    * @param key key for the matrix structure
+    * @return cached analysis, or <code>null</code>
+    */
+   public synchronized Object get (Key key) {
+      Entry entry = myMap.get (key);
+      if (entry != null) {
+         myNumHits++;
+         return entry.myAnalysis;
+      }
+      else {
+         myNumMisses++;
+         return null;
+      }
+   }
+
+   /**
+    * Adds an analysis to this cache. Least recently used entries are then
+    * discarded as needed to keep the memory size within bounds. An analysis
+    * whose size exceeds the memory bound is not added.
+    *
+    * @param key key for the matrix structure, as returned by {@link
+    * #createKey}
+    * @param analysis analysis to add
+    * @param memorySize estimated memory size of the analysis, in bytes
+    */
+   public synchronized void put (Key key, Object analysis, long memorySize) {
+      long size = memorySize + key.getMemorySize();
+      if (size > myMaxMemorySize) {
+         return;
+      }
+      key.copyArrays();
+      Entry old = myMap.put (key, new Entry (analysis, size));
+      if (old != null) {
+         myMemorySize -= old.myMemorySize;
+      }
+      myMemorySize += size;
+      trim();
+   }
+
+   private void trim() {
+      Iterator<Map.Entry<Key,Entry>> it = myMap.entrySet().iterator();
+      while (myMemorySize > myMaxMemorySize && it.hasNext()) {
+         Entry entry = it.next().getValue();
+         it.remove();
+         myMemorySize -= entry.myMemorySize;
+         myNumEvictions++;
+      }
+   }
+
+   /**
+    * Sets the maximum memory size for this cache, discarding least recently
+    * used entries as needed.
+    *
+    * @param maxMemorySize maximum memory size, in bytes
+    */
+   public synchronized void setMaxMemorySize (long maxMemorySize) {
+      myMaxMemorySize = maxMemorySize;
+      trim();
+   }
+
+   /**
+    * Returns the maximum memory size for this cache.
+    *
+    * @return maximum memory size, in bytes
+    */
+   public synchronized long getMaxMemorySize() {
+      return myMaxMemorySize;
+   }
+
+   /**
+    * Returns the estimated memory size of all the analyses in this cache.
+    *
+    * @return memory size, in bytes
+    */
+   public synchronized long getMemorySize() {
+      return myMemorySize;
+   }
+
+   /**
+    * Returns the number of analyses in this cache.
+    *
+    * @return number of cached analyses
+    */
+   public synchronized int numEntries() {
+      return myMap.size();
+   }
+
+   /**
+    * Returns the number of calls to {@link #get} that found an analysis.
+    *
+    * @return number of cache hits
+    */
+   public synchronized long getNumHits() {
+      return myNumHits;
+   }
+
+   /**
+    * Returns the number of calls to {@link #get} that did not find an
+    * analysis.
+    *
+    * @return number of cache misses
+    */
+   public synchronized long getNumMisses() {
+      return myNumMisses;
+   }
+
+   /**
+    * Returns the number of analyses that have been discarded to keep the
+    * memory size within bounds.
+    *
+    * @return number of evictions
+    */
+   public synchronized long getNumEvictions() {
+      return myNumEvictions;
+   }
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void resetStatistics() {
+      myNumHits = 0;
+      myNumMisses = 0;
+      myNumEvictions = 0;
+   }
+
+   /**
+    * Removes all analyses from this cache.
+    */
+   public synchronized void clear() {
+      myMap.clear();
+      myMemorySize = 0;
+   }
+
+   /**
+    * Returns a summary of the cache statistics.
+    *
+    * @return statistics summary
+    */
+   public synchronized String getStatisticsString() {
+      long total = myNumHits + myNumMisses;
+      return ("entries=" + myMap.size() + " memory=" + myMemorySize +
+              " hits=" + myNumHits + " misses=" + myNumMisses +
+              " evictions=" + myNumEvictions +
+              (total > 0 ?
+               String.format (" hitRate=%.3f", myNumHits/(double)total) : ""));
+   }
+}
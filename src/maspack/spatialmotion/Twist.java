@@ -117,7 +117,25 @@ public class Twist extends SpatialVector {
     * @see #setTransform
     */
    public void extrapolateTransform (RigidTransform3d X, double h) {
-      RotationMatrix3d Rinc = new RotationMatrix3d();
+      extrapolateTransform (X, h, new RotationMatrix3d());
+   }
+
+   /**
+    * Extrapolates a rigid spatial transformation by an increment corresponding
+    * to this Twist scaled by h, using a supplied rotation matrix to store the
+    * rotational increment. Otherwise identical to {@link
+    * #extrapolateTransform(RigidTransform3d,double)}, but avoids allocating
+    * memory.
+    * 
+    * @param X
+    * rigid transform to extrapolate
+    * @param h
+    * scaling factor used to compute increment from this twist
+    * @param Rinc
+    * workspace used to store the rotational increment
+    */
+   public void extrapolateTransform (
+      RigidTransform3d X, double h, RotationMatrix3d Rinc) {
       // create rotational displacement
       Rinc.setAxisAngle (w.x, w.y, w.z, h * w.norm());
       Vector3d p = X.p;
@@ -148,7 +166,25 @@ public class Twist extends SpatialVector {
     * @see #setTransform
     */
    public void extrapolateTransformWorld (RigidTransform3d X, double h) {
-      RotationMatrix3d Rinc = new RotationMatrix3d();
+      extrapolateTransformWorld (X, h, new RotationMatrix3d());
+   }
+
+   /**
+    * Extrapolates a rigid spatial transformation by an increment corresponding
+    * to this Twist scaled by h, using a supplied rotation matrix to store the
+    * rotational increment. Otherwise identical to {@link
+    * #extrapolateTransformWorld(RigidTransform3d,double)}, but avoids
+    * allocating memory.
+    * 
+    * @param X
+    * rigid transform to extrapolate
+    * @param h
+    * scaling factor used to compute increment from this twist
+    * @param Rinc
+    * workspace used to store the rotational increment
+    */
+   public void extrapolateTransformWorld (
+      RigidTransform3d X, double h, RotationMatrix3d Rinc) {
       // create rotational displacement
       Rinc.setAxisAngle (w.x, w.y, w.z, h * w.norm());
 
@@ -937,6 +937,22 @@ public class DataBuffer {
       ooff = 0;
    }      
 
+   /**
+    * Reduces the capacity of the integer, double and Object buffers to their
+    * current sizes.
+    */
+   public void trimToSize() {
+      if (zbuf.length > zsize) {
+         zbuf = Arrays.copyOf (zbuf, zsize);
+      }
+      if (dbuf.length > dsize) {
+         dbuf = Arrays.copyOf (dbuf, dsize);
+      }
+      if (obuf.length > osize) {
+         obuf = Arrays.copyOf (obuf, osize);
+      }
+   }
+
    public void set (DataBuffer data) {
 
       if (data.zsize > zbuf.length) {